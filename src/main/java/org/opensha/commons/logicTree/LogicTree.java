@@ -50,7 +50,7 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 	
 	private ImmutableList<LogicTreeLevel<? extends E>> levels;
 	private ImmutableList<LogicTreeBranch<E>> branches;
-	private HashSet<LogicTreeBranch<E>> branchesSet;
+	private transient volatile LogicTreeBranchIndex branchIndex;
 
 	// default to using original weights when this logic tree was instantiated
 	private static final BranchWeightProvider DEFAULT_WEIGHTS = new BranchWeightProvider.OriginalWeights();
@@ -108,14 +108,26 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 	 * @return true if this logic tree contains the given branch, false otherwise
 	 */
 	public boolean contains(LogicTreeBranch<?> branch) {
-		if (branchesSet == null) {
+		return indexOf(branch) >= 0;
+	}
+	
+	/**
+	 * @param branch
+	 * @return the index of the first occurrence of the given branch in this logic tree, or -1 if not contained
+	 */
+	public int indexOf(LogicTreeBranch<?> branch) {
+		if (branchIndex == null) {
 			synchronized (this) {
-				if (branchesSet == null) {
-					branchesSet = new HashSet<>(branches);
+				if (branchIndex == null) {
+					branchIndex = new LogicTreeBranchIndex(levels, branches);
 				}
 			}
 		}
-		return branchesSet.contains(branch);
+		int index = branchIndex.indexOf(branch);
+		if (index >= 0 && !branches.get(index).equals(branch))
+			// same values, but different type or levels
+			return -1;
+		return index;
 	}
 	
 	/**
@@ -136,6 +148,9 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 	public void setWeightProvider(BranchWeightProvider weightProvider) {
 		Preconditions.checkNotNull(weightProvider);
 		this.weightProvider = weightProvider;
+		// clear any cached samplers, which depend on weights
+		this.sampler = null;
+		this.designSampler = null;
 	}
 
 	@Override
@@ -297,31 +312,32 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 	 * use a {@link BranchWeightProvider} instance modified to reflect the even (post-sampling) weights.
 	 */
 	public final LogicTree<E> sample(int numSamples, boolean redrawDuplicates, Random rand, boolean verbose) {
-		if (verbose) System.out.println("Resampling logic tree of size="+size()+" to "+numSamples+" samples...");
-		Preconditions.checkArgument(numSamples > 0);
-		Preconditions.checkState(!redrawDuplicates || numSamples <= size(),
-				"Cannot randomly sample %s branches from %s values without any duplicates!", numSamples, size());
-		IntegerPDF_FunctionSampler sampler = getSampler();
-		int[] indexCounts = new int[branches.size()];
+		return sample(numSamples, redrawDuplicates, rand, verbose, LogicTreeSamplingMethod.MONTE_CARLO);
+	}
+	
+	/**
+	 * @param numSamples number of samples
+	 * @param redrawDuplicates if true, each branch will be unique, drawing another branch if an already sampled branch
+	 * has been selected. Branches that are drawn multiple times will be assigned greater weight and the total number
+	 * of branches will exactly match the specified number of samples. For methods other than
+	 * {@link LogicTreeSamplingMethod#MONTE_CARLO}, any additional draws needed after the initial design are random.
+	 * @param rand random number generator
+	 * @param verbose if true, sampling statistics will be printed
+	 * @param method sampling method
+	 * @return a sampled subset of this logic tree, according to their weights. The returned logic tree will
+	 * use a {@link BranchWeightProvider} instance modified to reflect the even (post-sampling) weights.
+	 */
+	public final LogicTree<E> sample(int numSamples, boolean redrawDuplicates, Random rand, boolean verbose,
+			LogicTreeSamplingMethod method) {
+		if (verbose) System.out.println("Resampling logic tree of size="+size()+" to "+numSamples+" samples ("
+				+method+")...");
+		int[] indexCounts = sampleIndexCounts(numSamples, redrawDuplicates, rand, method);
 		int sampleCountSum = 0;
 		int uniqueBranches = 0;
-		if (redrawDuplicates) {
-			while (uniqueBranches < numSamples) {
-				int index = sampler.getRandomInt(rand);
-				if (indexCounts[index] == 0)
-					// first time this branch has been sampled
-					uniqueBranches++;
-				sampleCountSum++;
-				indexCounts[index]++;
-			}
-		} else {
-			for (int i=0; i<numSamples; i++) {
-				int index = sampler.getRandomInt(rand);
-				if (indexCounts[index] == 0)
-					uniqueBranches++;
-				sampleCountSum++;
-				indexCounts[index]++;
-			}
+		for (int count : indexCounts) {
+			sampleCountSum += count;
+			if (count > 0)
+				uniqueBranches++;
 		}
 		double weightEach = 1d/(double)sampleCountSum;
 //		ImmutableList.Builder<LogicTreeBranch<E>> samples = ImmutableList.builder();
@@ -390,6 +406,47 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 		return ret;
 	}
 
+	/**
+	 * @param numSamples
+	 * @param redrawDuplicates
+	 * @param rand
+	 * @param method
+	 * @return the number of times that each branch was sampled
+	 */
+	int[] sampleIndexCounts(int numSamples, boolean redrawDuplicates, Random rand, LogicTreeSamplingMethod method) {
+		Preconditions.checkArgument(numSamples > 0);
+		Preconditions.checkState(!redrawDuplicates || numSamples <= size(),
+				"Cannot randomly sample %s branches from %s values without any duplicates!", numSamples, size());
+		Preconditions.checkNotNull(method);
+		int[] indexCounts = new int[branches.size()];
+		int uniqueBranches = 0;
+		if (method != LogicTreeSamplingMethod.MONTE_CARLO) {
+			for (int index : getDesignSampler().sample(numSamples, method, rand)) {
+				if (indexCounts[index] == 0)
+					uniqueBranches++;
+				indexCounts[index]++;
+			}
+			if (!redrawDuplicates)
+				return indexCounts;
+		}
+		IntegerPDF_FunctionSampler sampler = getSampler();
+		if (redrawDuplicates) {
+			while (uniqueBranches < numSamples) {
+				int index = sampler.getRandomInt(rand);
+				if (indexCounts[index] == 0)
+					// first time this branch has been sampled
+					uniqueBranches++;
+				indexCounts[index]++;
+			}
+		} else {
+			for (int i=0; i<numSamples; i++) {
+				int index = sampler.getRandomInt(rand);
+				indexCounts[index]++;
+			}
+		}
+		return indexCounts;
+	}
+
 	public static void printSamplingStats(List<? extends LogicTreeLevel<?>> levels,
 			double sampledWeightEach, Map<LogicTreeNode, Integer> sampledNodeCounts,
 			Map<LogicTreeNode, Integer> origNodeCounts, Map<LogicTreeNode, Double> origNodeWeights) {
@@ -470,6 +527,13 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 	}
 	
 	private transient IntegerPDF_FunctionSampler sampler = null;
+	private transient LogicTreeDesignSampler designSampler = null;
+	
+	private LogicTreeDesignSampler getDesignSampler() {
+		if (designSampler == null)
+			designSampler = new LogicTreeDesignSampler(this);
+		return designSampler;
+	}
 	public IntegerPDF_FunctionSampler getSampler() {
 		if (sampler == null) {
 			double[] weights = new double[size()];
@@ -694,6 +758,8 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 					while (in.hasNext())
 						levels.add(levelAdapter.read(in));
 					in.endArray();
+					// immutable so that all branches share the same list
+					levels = ImmutableList.copyOf(levels);
 					break;
 				case "weightProvider":
 					weightProvider = weightAdapter.read(in);
@@ -701,58 +767,45 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 				case "branches":
 					Preconditions.checkNotNull(levels, "levels must be supplied before branches");
 					branches = new ArrayList<>();
+					Constructor<? extends LogicTreeBranch<E>> constructor = null;
+					if (type != null) {
+						try {
+							constructor = type.getDeclaredConstructor();
+							constructor.setAccessible(true);
+						} catch (Exception e) {
+							System.err.println("WARNING: cannot instantiate empty branch as '"+type.getName()
+									+"', will load as default type. Exception: "+e.getMessage());
+						}
+					}
+					// choices are repeated across branches, only match each one once per level
+					List<Map<String, E>> levelChoiceNodes = new ArrayList<>(levels.size());
+					for (int i=0; i<levels.size(); i++)
+						levelChoiceNodes.add(new HashMap<>());
 					in.beginArray();
 					while (in.hasNext()) {
-						LogicTreeBranch<E> branch;
-						if (type == null) {
-							branch = new LogicTreeBranch<>(levels);
-						} else {
-							Constructor<? extends LogicTreeBranch<E>> constructor;
+						LogicTreeBranch<E> branch = null;
+						if (constructor != null) {
 							try {
-								constructor = type.getDeclaredConstructor();
-								constructor.setAccessible(true);
 								branch = constructor.newInstance();
 							} catch (Exception e) {
 								System.err.println("WARNING: cannot instantiate empty branch as '"+type.getName()
 										+"', will load as default type. Exception: "+e.getMessage());
-								branch = new LogicTreeBranch<>(levels);
+								constructor = null;
 							}
 						}
+						if (branch == null)
+							branch = new LogicTreeBranch<>(levels);
 						branch.init(levels, null);
 						in.beginArray();
 						int index = 0;
 						while (in.hasNext()) {
-							LogicTreeLevel<? extends E> level = levels.get(index);
 							String choice = in.nextString();
-							String modChoice = simplifyChoiceString(choice);
-							int numFuzzyMatches = 0;
-							boolean perfectMatch = false;
-							E node = null;
-							for (E possible : level.getNodes()) {
-								if (choice.equals(possible.getFilePrefix())) {
-									// perfect match
-									Preconditions.checkState(!perfectMatch, "Multiple choices for %s match %s",
-											level.getName(), choice);
-									node = possible;
-									perfectMatch = true;
-								} else if (!perfectMatch) {
-									// look for a partial match
-									boolean match = modChoice.equals(simplifyChoiceString(possible.getShortName()));
-									match = match || modChoice.equals(simplifyChoiceString(possible.getFilePrefix()));
-									match = match || (possible instanceof Enum<?> &&
-											modChoice.equals(simplifyChoiceString(((Enum<?>)possible).name())));
-									if (match) {
-//										System.out.println(possible.getShortName()+" matches "+choice);
-//										System.out.println("\t"+possible.getShortName()+"\t"+possible.getFilePrefix()+"\t"+((Enum<?>)node).name());
-										node = possible;
-										numFuzzyMatches++;
-									}
-								}
+							Map<String, E> choiceNodes = levelChoiceNodes.get(index);
+							E node = choiceNodes.get(choice);
+							if (node == null) {
+								node = matchChoice(levels.get(index), choice);
+								choiceNodes.put(choice, node);
 							}
-							Preconditions.checkNotNull(node, "No matching node found for intputName=%s for level %s",
-									choice, level.getName());
-							Preconditions.checkState(perfectMatch || numFuzzyMatches == 1,
-									"%s choices for %s match %s", numFuzzyMatches, level.getName(), choice);
 							branch.setValue(index, node);
 							index++;
 						}
@@ -791,6 +844,37 @@ public class LogicTree<E extends LogicTreeNode> implements Iterable<LogicTreeBra
 		
 	}
 	
+	private static <E extends LogicTreeNode> E matchChoice(LogicTreeLevel<? extends E> level, String choice) {
+		String modChoice = simplifyChoiceString(choice);
+		int numFuzzyMatches = 0;
+		boolean perfectMatch = false;
+		E node = null;
+		for (E possible : level.getNodes()) {
+			if (choice.equals(possible.getFilePrefix())) {
+				// perfect match
+				Preconditions.checkState(!perfectMatch, "Multiple choices for %s match %s",
+						level.getName(), choice);
+				node = possible;
+				perfectMatch = true;
+			} else if (!perfectMatch) {
+				// look for a partial match
+				boolean match = modChoice.equals(simplifyChoiceString(possible.getShortName()));
+				match = match || modChoice.equals(simplifyChoiceString(possible.getFilePrefix()));
+				match = match || (possible instanceof Enum<?> &&
+						modChoice.equals(simplifyChoiceString(((Enum<?>)possible).name())));
+				if (match) {
+					node = possible;
+					numFuzzyMatches++;
+				}
+			}
+		}
+		Preconditions.checkNotNull(node, "No matching node found for intputName=%s for level %s",
+				choice, level.getName());
+		Preconditions.checkState(perfectMatch || numFuzzyMatches == 1,
+				"%s choices for %s match %s", numFuzzyMatches, level.getName(), choice);
+		return node;
+	}
+	
 	private static String simplifyChoiceString(String str) {
 		str = str.replace(" ", "").replace("_", "").replace(",", "").toLowerCase();
 		return str;
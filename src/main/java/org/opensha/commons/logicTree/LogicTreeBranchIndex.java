@@ -0,0 +1,175 @@
+package org.opensha.commons.logicTree;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Compact index of the branches in a {@link LogicTree}, used for fast {@link LogicTree#indexOf(LogicTreeBranch)} and
+ * {@link LogicTree#contains(LogicTreeBranch)} lookups.
+ * <br><br>
+ * Node values are interned in a table for each level, and each branch is encoded as the per-level node indexes
+ * bit-packed into one or more longs (typically one). Branches are found through an open-addressing hash table over
+ * those codes, which avoids hashing the branch levels and node lists and uses far less memory than a
+ * {@link java.util.HashMap} of branches.
+ *
+ * @author kevin
+ *
+ */
+class LogicTreeBranchIndex {
+	
+	private static final int MAX_SCAN_NODES = 16;
+
+	private final int numLevels;
+	// nodes for each level, and node index (1-based, 0 is null) maps for levels with many nodes
+	private final LogicTreeNode[][] levelNodes;
+	private final Map<LogicTreeNode, Integer>[] levelNodeIndexes;
+	// bit offset and width for each level
+	private final int[] levelWords;
+	private final int[] levelShifts;
+	private final int wordsPerBranch;
+
+	private final long[] codes;
+	// open-addressing table of branch index + 1 (0 is empty)
+	private final int[] table;
+	private final int tableMask;
+
+	@SuppressWarnings("unchecked")
+	LogicTreeBranchIndex(List<? extends LogicTreeLevel<?>> levels, List<? extends LogicTreeBranch<?>> branches) {
+		numLevels = levels.size();
+		levelNodeIndexes = new Map[numLevels];
+		levelWords = new int[numLevels];
+		levelShifts = new int[numLevels];
+		for (int l=0; l<numLevels; l++)
+			levelNodeIndexes[l] = new HashMap<>();
+		for (LogicTreeBranch<?> branch : branches) {
+			Preconditions.checkState(branch.size() == numLevels,
+					"Branch has %s levels but expected %s", branch.size(), numLevels);
+			for (int l=0; l<numLevels; l++) {
+				LogicTreeNode node = branch.getValue(l);
+				if (node != null && !levelNodeIndexes[l].containsKey(node))
+					levelNodeIndexes[l].put(node, levelNodeIndexes[l].size()+1);
+			}
+		}
+		levelNodes = new LogicTreeNode[numLevels][];
+		for (int l=0; l<numLevels; l++) {
+			levelNodes[l] = new LogicTreeNode[levelNodeIndexes[l].size()];
+			for (LogicTreeNode node : levelNodeIndexes[l].keySet())
+				levelNodes[l][levelNodeIndexes[l].get(node)-1] = node;
+			if (levelNodes[l].length <= MAX_SCAN_NODES)
+				// a scan is faster for small levels
+				levelNodeIndexes[l] = null;
+		}
+		// pack levels into 64 bit words without splitting a level across words
+		int word = 0;
+		int shift = 0;
+		for (int l=0; l<numLevels; l++) {
+			int bits = 32 - Integer.numberOfLeadingZeros(levelNodes[l].length);
+			if (shift + bits > 64) {
+				word++;
+				shift = 0;
+			}
+			levelWords[l] = word;
+			levelShifts[l] = shift;
+			shift += bits;
+		}
+		wordsPerBranch = word+1;
+
+		int numBranches = branches.size();
+		codes = new long[numBranches*wordsPerBranch];
+		int tableSize = Integer.highestOneBit(Integer.max(4, numBranches*2)-1) << 1;
+		table = new int[tableSize];
+		tableMask = tableSize - 1;
+		for (int b=0; b<numBranches; b++) {
+			Preconditions.checkState(encode(branches.get(b), codes, b*wordsPerBranch));
+			int slot = hash(codes, b*wordsPerBranch) & tableMask;
+			boolean duplicate = false;
+			while (table[slot] != 0) {
+				if (codesEqual(codes, (table[slot]-1)*wordsPerBranch, codes, b*wordsPerBranch)) {
+					// duplicate (e.g., sampled more than once), keep the first occurrence
+					duplicate = true;
+					break;
+				}
+				slot = (slot + 1) & tableMask;
+			}
+			if (!duplicate)
+				table[slot] = b+1;
+		}
+	}
+
+	/**
+	 * Encodes the given branch into the given array
+	 *
+	 * @return false if any of the branch's values are not in this index
+	 */
+	private boolean encode(LogicTreeBranch<?> branch, long[] dest, int offset) {
+		for (int w=0; w<wordsPerBranch; w++)
+			dest[offset+w] = 0l;
+		for (int l=0; l<numLevels; l++) {
+			LogicTreeNode node = branch.getValue(l);
+			if (node == null)
+				continue;
+			int index = nodeIndex(l, node);
+			if (index == 0)
+				return false;
+			dest[offset+levelWords[l]] |= ((long)index) << levelShifts[l];
+		}
+		return true;
+	}
+
+	private int nodeIndex(int level, LogicTreeNode node) {
+		if (levelNodeIndexes[level] != null) {
+			Integer index = levelNodeIndexes[level].get(node);
+			return index == null ? 0 : index;
+		}
+		LogicTreeNode[] nodes = levelNodes[level];
+		// nodes are usually the same instances (e.g., enums), check identity first
+		for (int i=0; i<nodes.length; i++)
+			if (nodes[i] == node)
+				return i+1;
+		for (int i=0; i<nodes.length; i++)
+			if (nodes[i].equals(node))
+				return i+1;
+		return 0;
+	}
+	
+	private int hash(long[] src, int offset) {
+		long h = 0l;
+		for (int w=0; w<wordsPerBranch; w++) {
+			h = (h ^ src[offset+w]) * 0x9E3779B97F4A7C15l;
+			h ^= h >>> 32;
+		}
+		return (int)h;
+	}
+
+	private boolean codesEqual(long[] src1, int offset1, long[] src2, int offset2) {
+		for (int w=0; w<wordsPerBranch; w++)
+			if (src1[offset1+w] != src2[offset2+w])
+				return false;
+		return true;
+	}
+
+	/**
+	 * @param branch
+	 * @return index of the first branch with the same values as the given branch, or -1 if no such branch exists. The
+	 * caller is responsible for any further equality checks (e.g., branch type and levels).
+	 */
+	int indexOf(LogicTreeBranch<?> branch) {
+		if (branch.size() != numLevels)
+			return -1;
+		long[] code = new long[wordsPerBranch];
+		if (!encode(branch, code, 0))
+			return -1;
+		int slot = hash(code, 0) & tableMask;
+		while (table[slot] != 0) {
+			int index = table[slot]-1;
+			if (codesEqual(codes, index*wordsPerBranch, code, 0))
+				return index;
+			slot = (slot + 1) & tableMask;
+		}
+		return -1;
+	}
+
+}
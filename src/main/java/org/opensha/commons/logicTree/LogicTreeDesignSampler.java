@@ -0,0 +1,262 @@
+package org.opensha.commons.logicTree;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Random;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Maps sampling designs in the unit hypercube (one dimension per logic tree level) to branches of a {@link LogicTree},
+ * used for all {@link LogicTreeSamplingMethod}s other than {@link LogicTreeSamplingMethod#MONTE_CARLO}.
+ * <br><br>
+ * Branches are organized into a trie by level value (in order of first appearance). A point is mapped to a branch by
+ * descending the trie, choosing the value at each level from its weight distribution conditioned on the values chosen
+ * for prior levels, using that level's coordinate. Levels with a single value in the tree don't use a dimension.
+ * Zero-weight branches are never sampled.
+ *
+ * @author kevin
+ *
+ */
+class LogicTreeDesignSampler {
+
+	private static class TrieNode {
+		private final TrieNode[] children;
+		// cumulative weights of the children
+		private final double[] cumWeights;
+		private final int branchIndex;
+
+		private TrieNode(TrieNode[] children, double[] cumWeights, int branchIndex) {
+			this.children = children;
+			this.cumWeights = cumWeights;
+			this.branchIndex = branchIndex;
+		}
+
+		private int childIndex(double u) {
+			double target = u*cumWeights[cumWeights.length-1];
+			int low = 0;
+			int high = cumWeights.length-1;
+			// first child with a cumulative weight above the target
+			while (low < high) {
+				int mid = (low + high) >>> 1;
+				if (cumWeights[mid] > target)
+					high = mid;
+				else
+					low = mid+1;
+			}
+			return low;
+		}
+	}
+
+	private static class TrieBuilder {
+		private final LinkedHashMap<LogicTreeNode, TrieBuilder> children = new LinkedHashMap<>();
+		private double weight = 0d;
+		private int branchIndex = -1;
+	}
+
+	private final int numLevels;
+	private final TrieNode root;
+	// dimension for each level, or -1 if the level has a single value
+	private final int[] levelDims;
+	private final int numDims;
+
+	// branch indexes and cumulative weights in trie order, for 1-D stratification
+	private final int[] leafBranchIndexes;
+	private final double[] leafCumWeights;
+
+	LogicTreeDesignSampler(LogicTree<?> tree) {
+		numLevels = tree.getLevels().size();
+		TrieBuilder rootBuilder = new TrieBuilder();
+		int numLeaves = 0;
+		for (int b=0; b<tree.size(); b++) {
+			double weight = tree.getBranchWeight(b);
+			Preconditions.checkState(weight >= 0d && Double.isFinite(weight), "Bad weight for branch %s: %s", b, (Double)weight);
+			if (weight == 0d)
+				continue;
+			LogicTreeBranch<?> branch = tree.getBranch(b);
+			TrieBuilder node = rootBuilder;
+			node.weight += weight;
+			for (int l=0; l<numLevels; l++) {
+				LogicTreeNode value = branch.getValue(l);
+				TrieBuilder child = node.children.get(value);
+				if (child == null) {
+					child = new TrieBuilder();
+					node.children.put(value, child);
+				}
+				child.weight += weight;
+				node = child;
+			}
+			Preconditions.checkState(node.branchIndex < 0, "Duplicate branch in tree: %s", branch);
+			node.branchIndex = b;
+			numLeaves++;
+		}
+		Preconditions.checkState(numLeaves > 0, "Logic tree has no branches with nonzero weight");
+
+		boolean[] varies = new boolean[numLevels];
+		List<Integer> leafIndexes = new ArrayList<>(numLeaves);
+		root = build(rootBuilder, 0, varies, leafIndexes);
+
+		levelDims = new int[numLevels];
+		int dims = 0;
+		for (int l=0; l<numLevels; l++)
+			levelDims[l] = varies[l] ? dims++ : -1;
+		numDims = dims;
+
+		leafBranchIndexes = new int[numLeaves];
+		leafCumWeights = new double[numLeaves];
+		double cumWeight = 0d;
+		for (int i=0; i<numLeaves; i++) {
+			leafBranchIndexes[i] = leafIndexes.get(i);
+			cumWeight += tree.getBranchWeight(leafBranchIndexes[i]);
+			leafCumWeights[i] = cumWeight;
+		}
+	}
+
+	private TrieNode build(TrieBuilder builder, int depth, boolean[] varies, List<Integer> leafIndexes) {
+		if (depth == numLevels) {
+			leafIndexes.add(builder.branchIndex);
+			return new TrieNode(null, null, builder.branchIndex);
+		}
+		int num = builder.children.size();
+		if (num > 1)
+			varies[depth] = true;
+		TrieNode[] children = new TrieNode[num];
+		double[] cumWeights = new double[num];
+		double cumWeight = 0d;
+		int index = 0;
+		for (TrieBuilder child : builder.children.values()) {
+			cumWeight += child.weight;
+			cumWeights[index] = cumWeight;
+			children[index] = build(child, depth+1, varies, leafIndexes);
+			index++;
+		}
+		return new TrieNode(children, cumWeights, -1);
+	}
+
+	/**
+	 * @return number of dimensions in the sampling design (the number of levels with more than one value)
+	 */
+	int getNumDimensions() {
+		return numDims;
+	}
+
+	/**
+	 * @param point point in the unit hypercube, with {@link #getNumDimensions()} dimensions
+	 * @return branch index for the given point
+	 */
+	int getBranchIndex(double[] point) {
+		TrieNode node = root;
+		for (int l=0; l<numLevels; l++) {
+			int dim = levelDims[l];
+			double u = dim < 0 ? 0d : point[dim];
+			node = node.children[node.childIndex(u)];
+		}
+		return node.branchIndex;
+	}
+
+	/**
+	 * @param u value in [0, 1)
+	 * @return branch index at the given value of the cumulative weight distribution, with branches in trie order
+	 */
+	int getBranchIndex(double u) {
+		double target = u*leafCumWeights[leafCumWeights.length-1];
+		int low = 0;
+		int high = leafCumWeights.length-1;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (leafCumWeights[mid] > target)
+				high = mid;
+			else
+				low = mid+1;
+		}
+		return leafBranchIndexes[low];
+	}
+
+	/**
+	 * Draws the given number of samples using the given method
+	 *
+	 * @param numSamples
+	 * @param method sampling method, must not be {@link LogicTreeSamplingMethod#MONTE_CARLO}
+	 * @param rand
+	 * @return sampled branch indexes (which may contain duplicates)
+	 */
+	int[] sample(int numSamples, LogicTreeSamplingMethod method, Random rand) {
+		Preconditions.checkArgument(numSamples > 0);
+		int[] ret = new int[numSamples];
+		switch (method) {
+		case STRATIFIED:
+			for (int i=0; i<numSamples; i++)
+				ret[i] = getBranchIndex((i + rand.nextDouble())/numSamples);
+			break;
+		case LATIN_HYPERCUBE:
+			double[][] points = new double[numSamples][numDims];
+			int[] perm = new int[numSamples];
+			for (int d=0; d<numDims; d++) {
+				for (int i=0; i<numSamples; i++)
+					perm[i] = i;
+				// Fisher-Yates shuffle
+				for (int i=numSamples-1; i>0; i--) {
+					int j = rand.nextInt(i+1);
+					int tmp = perm[i];
+					perm[i] = perm[j];
+					perm[j] = tmp;
+				}
+				for (int i=0; i<numSamples; i++)
+					points[i][d] = (perm[i] + rand.nextDouble())/numSamples;
+			}
+			for (int i=0; i<numSamples; i++)
+				ret[i] = getBranchIndex(points[i]);
+			break;
+		case QUASI_RANDOM:
+			int[] bases = firstPrimes(numDims);
+			double[] shifts = new double[numDims];
+			for (int d=0; d<numDims; d++)
+				shifts[d] = rand.nextDouble();
+			double[] point = new double[numDims];
+			for (int i=0; i<numSamples; i++) {
+				for (int d=0; d<numDims; d++) {
+					// Cranley-Patterson rotation of the Halton sequence, skipping the origin
+					double u = radicalInverse(i+1, bases[d]) + shifts[d];
+					point[d] = u >= 1d ? u - 1d : u;
+				}
+				ret[i] = getBranchIndex(point);
+			}
+			break;
+
+		default:
+			throw new IllegalStateException("Unsupported sampling method: "+method);
+		}
+		return ret;
+	}
+
+	static double radicalInverse(int index, int base) {
+		double inv = 1d/base;
+		double factor = inv;
+		double ret = 0d;
+		while (index > 0) {
+			ret += (index % base)*factor;
+			index /= base;
+			factor *= inv;
+		}
+		return ret;
+	}
+
+	private static int[] firstPrimes(int num) {
+		int[] ret = new int[num];
+		int count = 0;
+		for (int candidate=2; count<num; candidate++) {
+			boolean prime = true;
+			for (int i=0; i<count && ret[i]*ret[i] <= candidate; i++) {
+				if (candidate % ret[i] == 0) {
+					prime = false;
+					break;
+				}
+			}
+			if (prime)
+				ret[count++] = candidate;
+		}
+		return ret;
+	}
+
+}
@@ -0,0 +1,297 @@
+package org.opensha.commons.logicTree;
+
+import java.io.File;
+import java.io.IOException;
+import java.text.DecimalFormat;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.opensha.commons.data.CSVFile;
+import org.opensha.commons.data.function.ArbDiscrEmpiricalDistFunc;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Convergence diagnostics for logic tree sampling: shows how stable the weighted mean and fractiles of a per-branch
+ * value (e.g., hazard at a site and return period), and the sampled weights of each level's values, are as a function
+ * of the number of samples for a given {@link LogicTreeSamplingMethod}. Errors are relative to the full logic tree
+ * and are computed over many independent trials.
+ *
+ * @author kevin
+ *
+ */
+public class LogicTreeSamplingConvergence {
+
+	public static class ConvergenceResult {
+		public final LogicTreeSamplingMethod method;
+		public final int numSamples;
+		public final int numTrials;
+		/**
+		 * RMS error of the sampled weighted mean, or NaN if no branch values were supplied
+		 */
+		public final double meanRMSE;
+		/**
+		 * RMS error of the sampled weighted fractiles, or NaN if no branch values were supplied
+		 */
+		public final double[] fractileRMSEs;
+		/**
+		 * average over trials of the maximum absolute error in sampled node weight (across all levels)
+		 */
+		public final double meanMaxNodeWeightError;
+
+		private ConvergenceResult(LogicTreeSamplingMethod method, int numSamples, int numTrials, double meanRMSE,
+				double[] fractileRMSEs, double meanMaxNodeWeightError) {
+			this.method = method;
+			this.numSamples = numSamples;
+			this.numTrials = numTrials;
+			this.meanRMSE = meanRMSE;
+			this.fractileRMSEs = fractileRMSEs;
+			this.meanMaxNodeWeightError = meanMaxNodeWeightError;
+		}
+	}
+
+	private LogicTree<?> tree;
+	private double[] branchValues;
+	private double[] fractiles;
+
+	private double totWeight;
+	private double fullMean;
+	private double[] fullFractiles;
+
+	private List<LogicTreeNode> nodes;
+	private int[][] branchNodeIndexes;
+	private double[] fullNodeWeights;
+
+	/**
+	 * @param tree logic tree
+	 * @param branchValues value for each branch (in tree order), or null to only compute node weight errors
+	 * @param fractiles fractiles to evaluate (between 0 and 1), may be empty
+	 */
+	public LogicTreeSamplingConvergence(LogicTree<?> tree, double[] branchValues, double... fractiles) {
+		Preconditions.checkArgument(branchValues == null || branchValues.length == tree.size(),
+				"Have %s branch values but %s branches", branchValues == null ? 0 : branchValues.length, tree.size());
+		this.tree = tree;
+		this.branchValues = branchValues;
+		this.fractiles = fractiles;
+
+		double[] weights = new double[tree.size()];
+		totWeight = 0d;
+		for (int b=0; b<weights.length; b++) {
+			weights[b] = tree.getBranchWeight(b);
+			totWeight += weights[b];
+		}
+
+		// index the nodes of each branch
+		Map<LogicTreeNode, Integer> nodeIndexes = new HashMap<>();
+		nodes = new ArrayList<>();
+		branchNodeIndexes = new int[tree.size()][];
+		for (int b=0; b<tree.size(); b++) {
+			LogicTreeBranch<?> branch = tree.getBranch(b);
+			branchNodeIndexes[b] = new int[branch.size()];
+			for (int l=0; l<branch.size(); l++) {
+				LogicTreeNode node = branch.getValue(l);
+				Integer index = nodeIndexes.get(node);
+				if (index == null) {
+					index = nodes.size();
+					nodes.add(node);
+					nodeIndexes.put(node, index);
+				}
+				branchNodeIndexes[b][l] = index;
+			}
+		}
+		fullNodeWeights = calcNodeWeights(weights, totWeight);
+
+		if (branchValues != null) {
+			fullMean = calcMean(weights, totWeight);
+			fullFractiles = calcFractiles(weights);
+		}
+	}
+
+	private double[] calcNodeWeights(double[] weights, double sumWeight) {
+		double[] ret = new double[nodes.size()];
+		for (int b=0; b<weights.length; b++)
+			if (weights[b] > 0d)
+				for (int index : branchNodeIndexes[b])
+					ret[index] += weights[b]/sumWeight;
+		return ret;
+	}
+
+	private double calcMean(double[] weights, double sumWeight) {
+		double ret = 0d;
+		for (int b=0; b<weights.length; b++)
+			if (weights[b] > 0d)
+				ret += branchValues[b]*weights[b]/sumWeight;
+		return ret;
+	}
+
+	private double[] calcFractiles(double[] weights) {
+		ArbDiscrEmpiricalDistFunc dist = new ArbDiscrEmpiricalDistFunc();
+		for (int b=0; b<weights.length; b++)
+			if (weights[b] > 0d)
+				dist.set(branchValues[b], weights[b]);
+		double[] ret = new double[fractiles.length];
+		for (int f=0; f<fractiles.length; f++)
+			ret[f] = dist.getInterpolatedFractile(fractiles[f]);
+		return ret;
+	}
+
+	/**
+	 * @return weighted mean of the branch values across the full logic tree
+	 */
+	public double getFullMean() {
+		return fullMean;
+	}
+
+	/**
+	 * @return weighted fractiles of the branch values across the full logic tree
+	 */
+	public double[] getFullFractiles() {
+		return fullFractiles;
+	}
+
+	/**
+	 * Calculates sampling errors for each of the given sample counts. Samples are drawn as they are for hazard
+	 * calculations (see {@link org.opensha.sha.earthquake.faultSysSolution.util.SolLogicTreeSampler}), redrawing
+	 * duplicates such that each sample count is the number of unique branches, with duplicates given extra weight.
+	 *
+	 * @param method sampling method
+	 * @param sampleCounts sample counts to evaluate, each no larger than the tree size
+	 * @param numTrials number of independent trials for each sample count
+	 * @param rand
+	 * @return results for each sample count
+	 */
+	public List<ConvergenceResult> calc(LogicTreeSamplingMethod method, int[] sampleCounts, int numTrials, Random rand) {
+		Preconditions.checkArgument(numTrials > 0);
+		for (int numSamples : sampleCounts)
+			Preconditions.checkArgument(numSamples <= tree.size(),
+					"Can't draw %s unique samples from %s branches", numSamples, tree.size());
+		List<ConvergenceResult> ret = new ArrayList<>(sampleCounts.length);
+		double[] weights = new double[tree.size()];
+		for (int numSamples : sampleCounts) {
+			double meanSumSq = 0d;
+			double[] fractSumSq = new double[fractiles.length];
+			double maxNodeErrSum = 0d;
+			for (int t=0; t<numTrials; t++) {
+				// same mode as LogicTree.sample(numSamples, true, ...), where branch weights are proportional to counts
+				int[] counts = tree.sampleIndexCounts(numSamples, true, rand, method);
+				double sumWeight = 0d;
+				for (int b=0; b<counts.length; b++) {
+					weights[b] = counts[b];
+					sumWeight += counts[b];
+				}
+
+				double[] nodeWeights = calcNodeWeights(weights, sumWeight);
+				double maxNodeErr = 0d;
+				for (int n=0; n<nodeWeights.length; n++)
+					maxNodeErr = Math.max(maxNodeErr, Math.abs(nodeWeights[n] - fullNodeWeights[n]));
+				maxNodeErrSum += maxNodeErr;
+
+				if (branchValues != null) {
+					double diff = calcMean(weights, sumWeight) - fullMean;
+					meanSumSq += diff*diff;
+					double[] sampledFractiles = calcFractiles(weights);
+					for (int f=0; f<fractiles.length; f++) {
+						diff = sampledFractiles[f] - fullFractiles[f];
+						fractSumSq[f] += diff*diff;
+					}
+				}
+			}
+			double meanRMSE = Double.NaN;
+			double[] fractileRMSEs = new double[fractiles.length];
+			if (branchValues != null) {
+				meanRMSE = Math.sqrt(meanSumSq/numTrials);
+				for (int f=0; f<fractiles.length; f++)
+					fractileRMSEs[f] = Math.sqrt(fractSumSq[f]/numTrials);
+			} else {
+				for (int f=0; f<fractiles.length; f++)
+					fractileRMSEs[f] = Double.NaN;
+			}
+			ret.add(new ConvergenceResult(method, numSamples, numTrials, meanRMSE, fractileRMSEs,
+					maxNodeErrSum/numTrials));
+		}
+		return ret;
+	}
+
+	/**
+	 * @param results
+	 * @return CSV representation of the given results
+	 */
+	public CSVFile<String> toCSV(List<ConvergenceResult> results) {
+		CSVFile<String> csv = new CSVFile<>(true);
+		List<String> header = new ArrayList<>();
+		header.add("Method");
+		header.add("Num Samples");
+		header.add("Num Trials");
+		header.add("Mean Max Node Weight Error");
+		if (branchValues != null) {
+			header.add("Mean RMSE");
+			for (double fractile : fractiles)
+				header.add("p"+(float)(fractile*100d)+" RMSE");
+		}
+		csv.addLine(header);
+		for (ConvergenceResult result : results) {
+			List<String> line = new ArrayList<>(header.size());
+			line.add(result.method.name());
+			line.add(result.numSamples+"");
+			line.add(result.numTrials+"");
+			line.add((float)result.meanMaxNodeWeightError+"");
+			if (branchValues != null) {
+				line.add((float)result.meanRMSE+"");
+				for (double rmse : result.fractileRMSEs)
+					line.add((float)rmse+"");
+			}
+			csv.addLine(line);
+		}
+		return csv;
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1 || args.length > 3) {
+			System.err.println("USAGE: <logic-tree.json> [<branch-values.csv> [<num-trials>]]");
+			System.err.println("\tBranch values CSV should have a header row, and one row for each branch (in tree "
+					+ "order) with the value in the last column");
+			System.exit(2);
+		}
+		LogicTree<?> tree = LogicTree.read(new File(args[0]));
+		double[] branchValues = null;
+		if (args.length > 1) {
+			CSVFile<String> csv = CSVFile.readFile(new File(args[1]), false);
+			Preconditions.checkState(csv.getNumRows() == tree.size()+1,
+					"Expected %s rows (with header) but have %s", tree.size()+1, csv.getNumRows());
+			branchValues = new double[tree.size()];
+			for (int b=0; b<branchValues.length; b++) {
+				int row = b+1;
+				branchValues[b] = csv.getDouble(row, csv.getLine(row).size()-1);
+			}
+		}
+		int numTrials = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+
+		List<Integer> countsList = new ArrayList<>();
+		for (int count=10; count<tree.size(); count *= 2)
+			countsList.add(count);
+		int[] sampleCounts = new int[countsList.size()];
+		for (int i=0; i<sampleCounts.length; i++)
+			sampleCounts[i] = countsList.get(i);
+
+		LogicTreeSamplingConvergence conv = new LogicTreeSamplingConvergence(tree, branchValues, 0.025, 0.5, 0.975);
+		DecimalFormat df = new DecimalFormat("0.###E0");
+		if (branchValues != null)
+			System.out.println("Full tree mean: "+(float)conv.getFullMean());
+		for (LogicTreeSamplingMethod method : LogicTreeSamplingMethod.values()) {
+			System.out.println(method);
+			for (ConvergenceResult result : conv.calc(method, sampleCounts, numTrials, new Random(tree.size()))) {
+				String line = "\tN="+result.numSamples+"\tnodeWeightErr="+df.format(result.meanMaxNodeWeightError);
+				if (branchValues != null) {
+					line += "\tmeanRMSE="+df.format(result.meanRMSE);
+					for (int f=0; f<conv.fractiles.length; f++)
+						line += "\tp"+(float)(conv.fractiles[f]*100d)+"RMSE="+df.format(result.fractileRMSEs[f]);
+				}
+				System.out.println(line);
+			}
+		}
+	}
+
+}
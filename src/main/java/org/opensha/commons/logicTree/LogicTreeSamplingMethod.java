@@ -0,0 +1,52 @@
+package org.opensha.commons.logicTree;
+
+/**
+ * Methods for sampling branches from a {@link LogicTree} according to their weights, see
+ * {@link LogicTree#sample(int, boolean, java.util.Random, boolean, LogicTreeSamplingMethod)}.
+ * <br><br>
+ * All methods other than {@link #MONTE_CARLO} map points in the unit hypercube (one dimension per logic tree level)
+ * to branches by drawing the value for each level from its weight distribution conditioned on the values already
+ * chosen for prior levels. This works for any tree (not just full factorial trees) and respects the tree's
+ * {@link BranchWeightProvider}, but spreads samples much more evenly across level values than independent draws, so
+ * fewer samples are needed for stable means and fractiles.
+ *
+ * @author kevin
+ *
+ */
+public enum LogicTreeSamplingMethod {
+	/**
+	 * Independent random draws according to branch weights
+	 */
+	MONTE_CARLO("Monte Carlo", "MC"),
+	/**
+	 * One random draw from each of N equal-weight strata of the cumulative branch weight distribution, with branches
+	 * ordered by level value (so that the earliest levels are the most evenly stratified)
+	 */
+	STRATIFIED("Stratified", "Strat"),
+	/**
+	 * Latin hypercube design: each level is independently stratified into N equal-probability strata, each used once
+	 */
+	LATIN_HYPERCUBE("Latin Hypercube", "LHS"),
+	/**
+	 * Low-discrepancy design: a randomly shifted Halton sequence, with one dimension per level
+	 */
+	QUASI_RANDOM("Quasi-Random", "QMC");
+
+	private String name;
+	private String shortName;
+
+	private LogicTreeSamplingMethod(String name, String shortName) {
+		this.name = name;
+		this.shortName = shortName;
+	}
+
+	public String getShortName() {
+		return shortName;
+	}
+
+	@Override
+	public String toString() {
+		return name;
+	}
+
+}
@@ -6,11 +6,14 @@ import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.FileSystem;
 import java.nio.file.FileSystems;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Enumeration;
 import java.util.Iterator;
 import java.util.List;
@@ -60,6 +63,48 @@ public interface ArchiveInput extends Named, Closeable {
 	 */
 	public InputStream getInputStream(String name) throws IOException;
 	
+	/**
+	 * Returns the full contents of the given entry as a read-only {@link ByteBuffer}. The default implementation reads
+	 * the entry into memory; file-backed implementations memory-map the entry instead if it is stored uncompressed
+	 * on disk (e.g., a file in a directory archive, or a STORED zip entry), in which case the entry is only paged in
+	 * as it is accessed.
+	 * 
+	 * @param name
+	 * @return read-only buffer containing the entry
+	 * @throws IOException if the entry doesn't exist, is larger than 2 GB, or another I/O exception occurs
+	 */
+	public default ByteBuffer getByteBuffer(String name) throws IOException {
+		try (InputStream is = getInputStream(name)) {
+			return ByteBuffer.wrap(is.readAllBytes()).asReadOnlyBuffer();
+		}
+	}
+	
+	/**
+	 * @param name
+	 * @return the uncompressed size of the given entry in bytes, or -1 if it doesn't exist or the size is unknown
+	 * @throws IOException
+	 */
+	public default long getEntrySize(String name) throws IOException {
+		return -1l;
+	}
+	
+	/**
+	 * Memory-maps the given section of a file as a read-only {@link ByteBuffer}
+	 * 
+	 * @param file
+	 * @param offset
+	 * @param size
+	 * @return mapped buffer
+	 * @throws IOException
+	 */
+	private static ByteBuffer mapReadOnly(Path file, long offset, long size) throws IOException {
+		Preconditions.checkState(size <= Integer.MAX_VALUE, "Can't map entry larger than 2 GB: %s", size);
+		// the mapping remains valid after the channel is closed
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			return channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+		}
+	}
+	
 	/**
 	 * @return iterable view of all entries
 	 * @throws IOException
@@ -161,6 +206,12 @@ public interface ArchiveInput extends Named, Closeable {
 			return zip.getInputStream(entry);
 		}
 
+		@Override
+		public long getEntrySize(String name) {
+			java.util.zip.ZipEntry entry = getEntry(name);
+			return entry == null ? -1l : entry.getSize();
+		}
+
 		@Override
 		public Iterable<String> getEntries() throws IOException {
 			Stream<String> stream = entryStream();
@@ -222,6 +273,12 @@ public interface ArchiveInput extends Named, Closeable {
 		public InputStream getInputStream(String name) throws IOException {
 			return zip.getInputStream(getEntry(name));
 		}
+
+		@Override
+		public long getEntrySize(String name) {
+			org.apache.commons.compress.archivers.zip.ZipArchiveEntry entry = getEntry(name);
+			return entry == null ? -1l : entry.getSize();
+		}
 		
 		private Spliterator<String> entryNameSpliterator() {
 			return Spliterators.spliteratorUnknownSize(
@@ -296,6 +353,16 @@ public interface ArchiveInput extends Named, Closeable {
 		public File getInputFile() {
 			return file;
 		}
+
+		@Override
+		public ByteBuffer getByteBuffer(String name) throws IOException {
+			org.apache.commons.compress.archivers.zip.ZipArchiveEntry entry = getEntry(name);
+			if (entry != null && entry.getMethod() == java.util.zip.ZipEntry.STORED && entry.getDataOffset() >= 0
+					&& entry.getSize() >= 0)
+				// stored uncompressed, map it directly
+				return mapReadOnly(file.toPath(), entry.getDataOffset(), entry.getSize());
+			return super.getByteBuffer(name);
+		}
 		
 	}
 	
@@ -400,6 +467,21 @@ public interface ArchiveInput extends Named, Closeable {
 			return new BufferedInputStream(Files.newInputStream(path));
 		}
 
+		@Override
+		public long getEntrySize(String name) throws IOException {
+			Path path = getPath(name);
+			return path == null ? -1l : Files.size(path);
+		}
+
+		@Override
+		public ByteBuffer getByteBuffer(String name) throws IOException {
+			Path path = getPath(name);
+			if (path != null && path.getFileSystem() == FileSystems.getDefault())
+				// regular file on disk, map it directly
+				return mapReadOnly(path, 0l, Files.size(path));
+			return ArchiveInput.super.getByteBuffer(name);
+		}
+
 		@Override
 		public Stream<String> entryStream() throws IOException {
 			Path root;
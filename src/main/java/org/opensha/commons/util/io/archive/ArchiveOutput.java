@@ -22,11 +22,13 @@ import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.function.Supplier;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ResourceAlignmentExtraField;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.io.output.ByteArrayOutputStream;
@@ -66,6 +68,20 @@ public interface ArchiveOutput extends Closeable, Named {
 	 */
 	public void putNextEntry(String name) throws IOException;
 	
+	/**
+	 * Begins a file entry with the given name that should be stored without compression if supported by this
+	 * implementation, e.g., for binary data that will be memory-mapped when read (see
+	 * {@link ArchiveInput#getByteBuffer(String)}). Usage is otherwise identical to {@link #putNextEntry(String)}.
+	 * 
+	 * <p>The default implementation simply calls {@link #putNextEntry(String)}.
+	 * 
+	 * @param name
+	 * @throws IOException
+	 */
+	public default void putNextUncompressedEntry(String name) throws IOException {
+		putNextEntry(name);
+	}
+	
 	/**
 	 * Gets an {@link OutputStream} for the currently entry. Must call {@link #putNextEntry(String)} first, and must
 	 * only call this once per entry. After writing to the stream, callers must then call {@link #closeEntry()}.
@@ -169,6 +185,15 @@ public interface ArchiveOutput extends Closeable, Named {
 		closeEntry();
 	}
 	
+	/**
+	 * @return true if {@link #transferFrom(ArchiveInput, String, String)} copies already-compressed entries from an
+	 * {@link ArchiveInput.AbstractApacheZipInput} without inflating and re-deflating them. The default implementation
+	 * returns false.
+	 */
+	public default boolean isRawTransferSupported() {
+		return false;
+	}
+	
 	/**
 	 * {@link ArchiveOutput} that is backed by a {@link File}, possibly with a temporary file during writing
 	 * (see {@link #getInProgressFile()}) that is moved to a final file (see {@link #getDestinationFile()}) when
@@ -256,6 +281,10 @@ public interface ArchiveOutput extends Closeable, Named {
 		private File inProgressFile;
 		private File outputFile;
 		private ZipOutputStream zout;
+		
+		// STORED entries must have their size and CRC set before writing, so we buffer them
+		private String storedEntryName;
+		private ByteArrayOutputStream storedBuffer;
 
 		/**
 		 * Initializes a standard Java {@link ZipOutputStream}, first writing to the given file with <code>.tmp</code>
@@ -296,13 +325,36 @@ public interface ArchiveOutput extends Closeable, Named {
 			zout.putNextEntry(new ZipEntry(name));
 		}
 
+		@Override
+		public void putNextUncompressedEntry(String name) throws IOException {
+			Preconditions.checkState(storedEntryName == null, "Never closed previous entry (%s)", storedEntryName);
+			storedEntryName = name;
+			storedBuffer = new ByteArrayOutputStream();
+		}
+
 		@Override
 		public OutputStream getOutputStream() throws IOException {
+			if (storedBuffer != null)
+				return storedBuffer;
 			return zout;
 		}
 
 		@Override
 		public void closeEntry() throws IOException {
+			if (storedEntryName != null) {
+				byte[] data = storedBuffer.toByteArray();
+				CRC32 crc = new CRC32();
+				crc.update(data);
+				ZipEntry entry = new ZipEntry(storedEntryName);
+				entry.setMethod(ZipEntry.STORED);
+				entry.setSize(data.length);
+				entry.setCompressedSize(data.length);
+				entry.setCrc(crc.getValue());
+				zout.putNextEntry(entry);
+				zout.write(data);
+				storedEntryName = null;
+				storedBuffer = null;
+			}
 			zout.flush();
 			zout.closeEntry();
 		}
@@ -351,6 +403,15 @@ public interface ArchiveOutput extends Closeable, Named {
 			zout.putArchiveEntry(new ZipArchiveEntry(name));
 		}
 
+		@Override
+		public void putNextUncompressedEntry(String name) throws IOException {
+			ZipArchiveEntry entry = new ZipArchiveEntry(name);
+			entry.setMethod(ZipEntry.STORED);
+			// align the data so that memory-mapped primitive views are aligned
+			entry.setAlignment(8);
+			zout.putArchiveEntry(entry);
+		}
+
 		@Override
 		public OutputStream getOutputStream() throws IOException {
 			return zout;
@@ -371,6 +432,11 @@ public interface ArchiveOutput extends Closeable, Named {
 				ArchiveOutput.super.transferFrom(input, sourceName, destName);
 			}
 		}
+
+		@Override
+		public boolean isRawTransferSupported() {
+			return true;
+		}
 		
 		protected void rawTransferApache(ArchiveInput.AbstractApacheZipInput apache, String sourceName, String destName) throws IOException {
 			ZipArchiveEntry sourceEntry = apache.getEntry(sourceName);
@@ -385,6 +451,10 @@ public interface ArchiveOutput extends Closeable, Named {
 			outEntry.setMethod(sourceEntry.getMethod());
 			outEntry.setRawFlag(sourceEntry.getRawFlag());
 			outEntry.setSize(sourceEntry.getSize());
+			if (sourceEntry.getMethod() == ZipEntry.STORED)
+				// keep stored entries aligned (see putNextUncompressedEntry), padding is recomputed for the new offset.
+				// this must be an extra field rather than setAlignment(8) as raw entries are copied before writing
+				outEntry.addExtraField(new ResourceAlignmentExtraField(8));
 			
 			zout.addRawArchiveEntry(outEntry, apache.getRawInputStream(sourceEntry));
 		}
@@ -543,6 +613,7 @@ public interface ArchiveOutput extends Closeable, Named {
 		private CopyAvoidantInMemorySeekableByteChannel writingBuffer;
 		
 		private String currentEntry;
+		private boolean currentUncompressed;
 		private InMemoryZipOutput currentOutput;
 		
 		private CompletableFuture<?> writeFuture;
@@ -592,6 +663,7 @@ public interface ArchiveOutput extends Closeable, Named {
 				});
 			}
 			currentEntry = null;
+			currentUncompressed = false;
 			currentOutput = null;
 			// swap the buffers as the current compressed data buffer is being written to disk
 			// this buffer is now available (finished writing via writeFuture.join() at the beginning of this method)
@@ -609,11 +681,17 @@ public interface ArchiveOutput extends Closeable, Named {
 			currentEntry = name;
 		}
 
+		@Override
+		public synchronized void putNextUncompressedEntry(String name) throws IOException {
+			putNextEntry(name);
+			currentUncompressed = true;
+		}
+
 		@Override
 		public synchronized OutputStream getOutputStream() throws IOException {
 			Preconditions.checkNotNull(currentEntry, "Called getOutputStream() without first calling putNextEntry()");
 			Preconditions.checkState(currentOutput == null, "Can't call getOutputStream() twice on the same entry");
-			currentOutput = new InMemoryZipOutput(true, zippingBuffer);
+			currentOutput = new InMemoryZipOutput(!currentUncompressed, zippingBuffer);
 			currentOutput.putNextEntry(currentEntry);
 			return currentOutput.getOutputStream();
 		}
@@ -914,6 +992,12 @@ public interface ArchiveOutput extends Closeable, Named {
 			currentZipper.putNextEntry(name);
 		}
 
+		@Override
+		public synchronized void putNextUncompressedEntry(String name) throws IOException {
+			// zippers always compress
+			putNextEntry(name);
+		}
+
 		@Override
 		public synchronized OutputStream getOutputStream() throws IOException {
 			if (D) System.out.println("getOutputStream()");
@@ -994,6 +1078,7 @@ public interface ArchiveOutput extends Closeable, Named {
 				// already closed
 				return;
 			tout.close();
+			tout = null;
 		}
 		
 	}
@@ -0,0 +1,232 @@
+package org.opensha.commons.util.io.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Supplier;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.commons.util.io.archive.ArchiveInput.InMemoryZipInput;
+import org.opensha.commons.util.io.archive.ArchiveOutput.InMemoryZipOutput;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Writes groups of archive entries in parallel and assembles them into a destination {@link ArchiveOutput} in the
+ * order that they were submitted, so the output is identical to a serial write.
+ * <p>
+ * Each {@link WriteTask} writes to its own in-memory zip buffer on a worker thread. If the destination supports raw
+ * transfers (see {@link ArchiveOutput#isRawTransferSupported()}, e.g., {@link ArchiveOutput.ApacheZipFileOutput}),
+ * entries are also deflated on the worker thread and then raw-copied to the destination; otherwise, entries are
+ * buffered uncompressed and compressed by the destination.
+ * <p>
+ * Memory is bounded by the maximum number of pending tasks: once that many tasks have been submitted but not yet
+ * transferred, {@link #submit(WriteTask, CompletionCallback)} blocks and transfers the oldest one.
+ * <p>
+ * Submission, transfers, and callbacks all happen on the calling thread; this class is not thread safe.
+ *
+ * @author kevin
+ *
+ */
+public class ParallelArchiveWriter implements Closeable {
+
+	/**
+	 * Writes one or more entries to the supplied output
+	 */
+	public interface WriteTask {
+
+		public void write(ArchiveOutput output) throws IOException;
+	}
+
+	/**
+	 * Called on the submitting thread after a task's entries have been transferred to the destination output
+	 */
+	public interface CompletionCallback {
+
+		public void completed(List<String> entries) throws IOException;
+	}
+
+	private ArchiveOutput output;
+	private ExecutorService exec;
+	private int maxPending;
+	private boolean compressInWorkers;
+
+	private ArrayDeque<PendingTask> pending;
+
+	private static final int INITIAL_BUFFER_SIZE = 1024*1024; // 1 MB
+
+	private static class PendingTask {
+		private final CompletableFuture<BufferedTask> future;
+		private final CompletionCallback callback;
+
+		public PendingTask(CompletableFuture<BufferedTask> future, CompletionCallback callback) {
+			this.future = future;
+			this.callback = callback;
+		}
+	}
+
+	private static class BufferedTask {
+		private final InMemoryZipInput input;
+		private final Set<String> uncompressedEntries;
+
+		public BufferedTask(InMemoryZipInput input, Set<String> uncompressedEntries) {
+			this.input = input;
+			this.uncompressedEntries = uncompressedEntries;
+		}
+	}
+
+	/**
+	 * Parallel writer with the given number of threads, allowing up to <code>2 x threads</code> pending tasks
+	 *
+	 * @param output destination output
+	 * @param threads number of worker threads
+	 */
+	public ParallelArchiveWriter(ArchiveOutput output, int threads) {
+		this(output, threads, 2*threads);
+	}
+
+	/**
+	 * @param output destination output
+	 * @param threads number of worker threads
+	 * @param maxPending maximum number of tasks buffered in memory at any time
+	 */
+	public ParallelArchiveWriter(ArchiveOutput output, int threads, int maxPending) {
+		this(output, threads, maxPending, output.isRawTransferSupported());
+	}
+
+	/**
+	 * @param output destination output
+	 * @param threads number of worker threads
+	 * @param maxPending maximum number of tasks buffered in memory at any time
+	 * @param compressInWorkers if true, entries will be deflated by worker threads and transferred to the destination
+	 * via {@link ArchiveOutput#transferFrom(ArchiveInput, String)}; this should only be used if the destination can
+	 * copy entries from an {@link ArchiveInput.AbstractApacheZipInput} without reinflating them
+	 */
+	public ParallelArchiveWriter(ArchiveOutput output, int threads, int maxPending, boolean compressInWorkers) {
+		Preconditions.checkArgument(threads > 0, "Must supply at least 1 thread");
+		Preconditions.checkArgument(maxPending >= threads, "maxPending must be >= threads");
+		this.output = output;
+		this.maxPending = maxPending;
+		this.compressInWorkers = compressInWorkers;
+		this.exec = Executors.newFixedThreadPool(threads);
+		this.pending = new ArrayDeque<>(maxPending);
+	}
+
+	/**
+	 * Submits the given task to be written in parallel. If the maximum number of tasks are already pending, this
+	 * will block until the oldest is transferred to the destination.
+	 *
+	 * @param task task that writes entries
+	 * @param callback optional callback, executed (in submission order) once this task has been transferred
+	 * @throws IOException
+	 */
+	public void submit(WriteTask task, CompletionCallback callback) throws IOException {
+		Preconditions.checkState(exec != null, "Already closed");
+		while (pending.size() >= maxPending)
+			transferNext();
+		CompletableFuture<BufferedTask> future = CompletableFuture.supplyAsync(new Supplier<BufferedTask>() {
+
+			@Override
+			public BufferedTask get() {
+				try {
+					Set<String> uncompressedEntries = new HashSet<>();
+					InMemoryZipOutput buffer = new InMemoryZipOutput(compressInWorkers, INITIAL_BUFFER_SIZE) {
+
+						@Override
+						public void putNextUncompressedEntry(String name) throws IOException {
+							// track these so that they stay uncompressed in the destination
+							uncompressedEntries.add(name);
+							super.putNextUncompressedEntry(name);
+						}
+					};
+					task.write(buffer);
+					buffer.close();
+					return new BufferedTask(buffer.getCompletedInput(), uncompressedEntries);
+				} catch (IOException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+			}
+		}, exec);
+		pending.add(new PendingTask(future, callback));
+	}
+
+	/**
+	 * Transfers all pending tasks to the destination, blocking until they are complete. Call this before writing
+	 * anything directly to the destination output in order to preserve ordering.
+	 *
+	 * @throws IOException
+	 */
+	public void flush() throws IOException {
+		while (!pending.isEmpty())
+			transferNext();
+	}
+
+	private void transferNext() throws IOException {
+		PendingTask task = pending.remove();
+		BufferedTask buffered;
+		try {
+			buffered = task.future.join();
+		} catch (Exception e) {
+			// cancel anything else that's pending
+			for (PendingTask other : pending)
+				other.future.cancel(true);
+			pending.clear();
+			Throwable cause = e.getCause() == null ? e : e.getCause();
+			if (cause instanceof IOException)
+				throw (IOException)cause;
+			throw ExceptionUtils.asRuntimeException(cause);
+		}
+		InMemoryZipInput buffer = buffered.input;
+		List<String> entries = new ArrayList<>();
+		for (String entry : buffer.getEntries()) {
+			if (compressInWorkers) {
+				// raw copy, already compressed
+				output.transferFrom(buffer, entry);
+			} else {
+				ZipArchiveEntry zipEntry = buffer.getEntry(entry);
+				if (buffered.uncompressedEntries.contains(entry))
+					output.putNextUncompressedEntry(entry);
+				else
+					output.putNextEntry(entry);
+				if (!zipEntry.isDirectory()) {
+					OutputStream out = output.getOutputStream();
+					InputStream in = buffer.getInputStream(entry);
+					in.transferTo(out);
+					in.close();
+					out.flush();
+				}
+				output.closeEntry();
+			}
+			entries.add(entry);
+		}
+		buffer.close();
+		if (task.callback != null)
+			task.callback.completed(entries);
+	}
+
+	/**
+	 * Transfers all pending tasks and shuts down worker threads. Does not close the destination output.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (exec == null)
+			return;
+		try {
+			flush();
+		} finally {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+}
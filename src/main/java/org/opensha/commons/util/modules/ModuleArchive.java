@@ -9,18 +9,24 @@ import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.lang.reflect.Constructor;
+import java.text.DecimalFormat;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashSet;
 import java.util.List;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
 import java.util.zip.ZipFile;
 
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.io.archive.ArchiveInput;
 import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.io.archive.ParallelArchiveWriter;
 
 import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.gson.reflect.TypeToken;
@@ -37,6 +43,10 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 	
 	private ArchiveInput input;
 	
+	private final List<ModuleLoadStats> loadStats = Collections.synchronizedList(new ArrayList<>());
+	
+	private int writeThreads = 1;
+	
 	/**
 	 * Create a new module container that can be written to an archive
 	 */
@@ -113,7 +123,7 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			System.out.println("------------ LOADING ARCHIVE ------------");
 			System.out.println("Archive: "+input.getName());
 		}
-		loadModules(this, input, getPrefix(null, getNestingPrefix()), preloadClass, new HashSet<>(), verbose);
+		loadModules(this, input, getPrefix(null, getNestingPrefix()), preloadClass, new HashSet<>(), verbose, loadStats);
 		List<E> modules = getModules(false);
 		if (verbose && !modules.isEmpty())
 			System.out.println("Loaded "+modules.size()+" top-level modules");
@@ -146,9 +156,15 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 	 * @param prefix prefix applied when writing modules for this container to the zip file, or null if top level archive
 	 * @throws IOException
 	 */
-	@SuppressWarnings("unchecked")
 	public static <E extends OpenSHA_Module> void loadModules(ModuleContainer<E> container, ArchiveInput input, String prefix,
 			Class<? extends E> preloadClass, HashSet<String> prevPrefixes, boolean verbose) throws IOException {
+		loadModules(container, input, prefix, preloadClass, prevPrefixes, verbose, null);
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static <E extends OpenSHA_Module> void loadModules(ModuleContainer<E> container, ArchiveInput input, String prefix,
+			Class<? extends E> preloadClass, HashSet<String> prevPrefixes, boolean verbose,
+			List<ModuleLoadStats> loadStats) throws IOException {
 //		System.out.println("Loading modules for "+container.getClass().getName()+" with prefix="+prefix);
 		if (prefix ==null)
 			prefix = "";
@@ -206,7 +222,8 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 						record.name, record.path);
 			}
 			
-			ArchiveLoadCallable<E> call = new ArchiveLoadCallable<E>(record, moduleClass, input, container, prevPrefixes, verbose);
+			ArchiveLoadCallable<E> call = new ArchiveLoadCallable<E>(record, moduleClass, input, container, prevPrefixes,
+					verbose, loadStats);
 			if (preloadClass != null && preloadClass.isAssignableFrom(moduleClass)) {
 				// load it now
 				E module = null;
@@ -253,7 +270,8 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			ModuleContainer<E> container) {
 		ModuleRecord record = new ModuleRecord("Unlisted Module", loadingClass.getName(), entryPrefix, null);
 		Preconditions.checkNotNull(input, "Can only unlisted modules for an archives loaded from an existing archives");
-		ArchiveLoadCallable<E> call = new ArchiveLoadCallable<>(record, (Class<E>)loadingClass, input, container, new HashSet<>(), verbose);
+		ArchiveLoadCallable<E> call = new ArchiveLoadCallable<>(record, (Class<E>)loadingClass, input, container,
+				new HashSet<>(), verbose, loadStats);
 		try {
 			M module = (M)call.call();
 			container.addModule(module);
@@ -275,19 +293,50 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 		
 		private Throwable t;
 		private boolean verbose;
+		private List<ModuleLoadStats> loadStats;
+		
+		/*
+		 * Modules can load other modules (e.g., nested containers or dependencies) from within initFromArchive. Track
+		 * time spent on those loads for each load in progress on this thread so that each module's stats only include
+		 * its own (exclusive) time.
+		 */
+		private static final ThreadLocal<Deque<long[]>> childLoadNanos = new ThreadLocal<Deque<long[]>>() {
+
+			@Override
+			protected Deque<long[]> initialValue() {
+				return new ArrayDeque<>();
+			}
+		};
 
 		public ArchiveLoadCallable(ModuleRecord record, Class<E> clazz, ArchiveInput input, ModuleContainer<E> container,
-				HashSet<String> prevPrefixes, boolean verbose) {
+				HashSet<String> prevPrefixes, boolean verbose, List<ModuleLoadStats> loadStats) {
 			this.record = record;
 			this.clazz = clazz;
 			this.input = input;
 			this.container = container;
 			this.prevPrefixes = prevPrefixes;
 			this.verbose = verbose;
+			this.loadStats = loadStats;
 		}
 
 		@Override
 		public E call() throws Exception {
+			Deque<long[]> stack = childLoadNanos.get();
+			long[] childNanos = { 0l };
+			stack.push(childNanos);
+			Stopwatch watch = Stopwatch.createStarted();
+			try {
+				return load(childNanos);
+			} finally {
+				stack.pop();
+				long[] parentChildNanos = stack.peek();
+				if (parentChildNanos != null)
+					// we were loaded from within another module's load, exclude our time from theirs
+					parentChildNanos[0] += watch.elapsed(TimeUnit.NANOSECONDS);
+			}
+		}
+		
+		private E load(long[] childNanos) throws Exception {
 			if (!ArchivableModule.class.isAssignableFrom(clazz)) {
 				System.err.println("WARNING: Module class is not an ArchivableModule, skipping: "+record.className);
 				return null;
@@ -313,6 +362,7 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			try {
 				if (verbose)
 					System.out.println("Building instance: "+clazz.getName());
+				Stopwatch watch = Stopwatch.createStarted();
 				E module = constructor.newInstance();
 				if (module instanceof SubModule<?>) {
 					SubModule<ModuleContainer<E>> subModule;
@@ -330,11 +380,20 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 				((ArchivableModule)module).initFromArchive(input, record.path);
 				if (module instanceof ModuleContainer<?>) {
 					ModuleContainer<?> moduleContainer = (ModuleContainer<?>)module;
-					loadModules(moduleContainer, input, record.path, null, prevPrefixes, verbose);
+					loadModules(moduleContainer, input, record.path, null, prevPrefixes, verbose, loadStats);
 					int availableModules = moduleContainer.getAvailableModules().size();
 					if (availableModules > 0 && verbose)
 						System.out.println("Loaded "+availableModules+" available sub-modules");
 				}
+				watch.stop();
+				long totalNanos = watch.elapsed(TimeUnit.NANOSECONDS);
+				ModuleLoadStats stats = new ModuleLoadStats(record.name, clazz.getName(), record.path,
+						TimeUnit.NANOSECONDS.toMillis(totalNanos - childNanos[0]), TimeUnit.NANOSECONDS.toMillis(totalNanos),
+						getAssetBytes());
+				if (verbose)
+					System.out.println("Loaded "+stats);
+				if (loadStats != null)
+					loadStats.add(stats);
 				return (E)module;
 			} catch (Exception e) {
 				e.printStackTrace();
@@ -344,6 +403,100 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			return null;
 		}
 		
+		private long getAssetBytes() throws IOException {
+			if (record.assets == null || record.assets.isEmpty())
+				return -1l;
+			String prefix = record.path == null ? "" : record.path;
+			long bytes = 0l;
+			for (String asset : record.assets) {
+				long size = input.getEntrySize(prefix+asset);
+				if (size < 0l)
+					return -1l;
+				bytes += size;
+			}
+			return bytes;
+		}
+		
+	}
+	
+	/**
+	 * Load time and size statistics for a module that was loaded from an archive
+	 */
+	public static class ModuleLoadStats {
+		public final String name;
+		public final String className;
+		public final String path;
+		/**
+		 * Exclusive load time, i.e., excluding time spent loading any other modules from within this module's load
+		 * (e.g., nested containers or dependencies), which are recorded separately
+		 */
+		public final long millis;
+		/**
+		 * Inclusive load time, including any other modules loaded from within this module's load
+		 */
+		public final long totalMillis;
+		/**
+		 * Uncompressed size of this module's own assets, or -1 if unknown
+		 */
+		public final long bytes;
+		
+		private ModuleLoadStats(String name, String className, String path, long millis, long totalMillis, long bytes) {
+			this.name = name;
+			this.className = className;
+			this.path = path;
+			this.millis = millis;
+			this.totalMillis = totalMillis;
+			this.bytes = bytes;
+		}
+		
+		@Override
+		public String toString() {
+			return "'"+name+"'"+(path == null ? "" : " from '"+path+"'")+" in "+millis+" ms"
+					+(totalMillis > millis ? " ("+totalMillis+" ms including other modules loaded within)" : "")
+					+" ("+(bytes < 0l ? "unknown size" : bytesToString(bytes))+")";
+		}
+	}
+	
+	private static final DecimalFormat sizeDF = new DecimalFormat("0.##");
+	
+	private static String bytesToString(long bytes) {
+		if (bytes < 1024l)
+			return bytes+" B";
+		if (bytes < 1024l*1024l)
+			return sizeDF.format(bytes/1024d)+" KB";
+		return sizeDF.format(bytes/(1024d*1024d))+" MB";
+	}
+	
+	/**
+	 * @return load time and (uncompressed) size statistics for each module loaded so far from the backing archive,
+	 * in the order that they were loaded. This includes lazily loaded modules and those loaded into nested containers.
+	 */
+	public List<ModuleLoadStats> getModuleLoadStats() {
+		synchronized (loadStats) {
+			return new ArrayList<>(loadStats);
+		}
+	}
+	
+	/**
+	 * @return report of load times and sizes for each module loaded so far from the backing archive. Totals are
+	 * summed from exclusive load times (see {@link ModuleLoadStats#millis}), so time spent loading modules from within
+	 * other modules is only counted once.
+	 * @see #getModuleLoadStats()
+	 */
+	public String getModuleLoadReport() {
+		List<ModuleLoadStats> stats = getModuleLoadStats();
+		StringBuilder str = new StringBuilder();
+		str.append("Loaded ").append(stats.size()).append(" modules from ").append(input == null ? null : input.getName());
+		long totMillis = 0l;
+		long totBytes = 0l;
+		for (ModuleLoadStats stat : stats) {
+			str.append("\n\t").append(stat);
+			totMillis += stat.millis;
+			if (stat.bytes > 0l)
+				totBytes += stat.bytes;
+		}
+		str.append("\nTotal: ").append(totMillis).append(" ms, ").append(bytesToString(totBytes));
+		return str.toString();
 	}
 
 	/**
@@ -371,7 +524,33 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 	 * @throws IOException
 	 */
 	public void write(File outputFile, boolean copySourceFiles) throws IOException {
-		write(ArchiveOutput.getDefaultOutput(outputFile, input), copySourceFiles);
+		ArchiveOutput output;
+		if (writeThreads > 1 && !outputFile.isDirectory() && outputFile.getName().toLowerCase().endsWith(".zip"))
+			// use the Apache implementation so that entries can be deflated in parallel and then copied directly
+			output = new ArchiveOutput.ApacheZipFileOutput(outputFile);
+		else
+			output = ArchiveOutput.getDefaultOutput(outputFile, input);
+		write(output, copySourceFiles);
+	}
+	
+	/**
+	 * Sets the number of threads used to write modules. If greater than 1, modules (including those in nested
+	 * containers) are serialized in parallel, each to its own in-memory buffer, and then assembled into the output
+	 * in order such that the resulting archive is identical to a serial write. If the output uses the Apache zip
+	 * library (e.g., {@link ArchiveOutput.ApacheZipFileOutput}), entries are also deflated in parallel.
+	 * <p>
+	 * Memory use is bounded by <code>2 x threads</code> buffered modules. Modules must be safe to write concurrently
+	 * with other modules in the same container.
+	 * 
+	 * @param writeThreads
+	 */
+	public void setWriteThreads(int writeThreads) {
+		Preconditions.checkArgument(writeThreads > 0, "Must supply at least 1 thread");
+		this.writeThreads = writeThreads;
+	}
+	
+	public int getWriteThreads() {
+		return writeThreads;
 	}
 
 	/**
@@ -416,8 +595,20 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 		copySourceFiles = copySourceFiles && input != null;
 		EntryTrackingArchiveOutput trackOutput = new EntryTrackingArchiveOutput(output);
 		
-		// no prefix=null for top level container
-		writeModules(this, trackOutput, null, new HashSet<>(), verbose);
+		if (writeThreads > 1) {
+			if (verbose)
+				System.out.println("Writing modules with "+writeThreads+" threads");
+			ParallelArchiveWriter parallel = new ParallelArchiveWriter(trackOutput, writeThreads);
+			try {
+				// no prefix=null for top level container
+				writeModules(this, trackOutput, null, new HashSet<>(), verbose, parallel);
+			} finally {
+				parallel.close();
+			}
+		} else {
+			// no prefix=null for top level container
+			writeModules(this, trackOutput, null, new HashSet<>(), verbose);
+		}
 		
 		if (copySourceFiles) {
 //			Enumeration<? extends ZipEntry> entries = zip.entries();
@@ -452,6 +643,19 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 	 */
 	public static <E extends OpenSHA_Module> boolean writeModules(ModuleContainer<E> container, ArchiveOutput output,
 			String prefix, HashSet<String> prevPrefixes, boolean verbose) throws IOException {
+		return writeModules(container, output, prefix, prevPrefixes, verbose, null);
+	}
+	
+	/**
+	 * Writes modules to the given output, optionally serializing modules in parallel. Nested module containers are
+	 * always written from the calling thread, but their modules will also be written in parallel.
+	 * 
+	 * @param parallel if non-null, modules will be written in parallel through this writer. It must write to the
+	 * same output.
+	 */
+	private static <E extends OpenSHA_Module> boolean writeModules(ModuleContainer<E> container, ArchiveOutput output,
+			String prefix, HashSet<String> prevPrefixes, boolean verbose, ParallelArchiveWriter parallel)
+					throws IOException {
 		EntryTrackingArchiveOutput trackOutput;
 		if (output instanceof EntryTrackingArchiveOutput)
 			trackOutput = (EntryTrackingArchiveOutput)output;
@@ -494,7 +698,35 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 				
 				List<String> moduleAssets = new ArrayList<>();
 				String modulePrefix;
-				if (module instanceof ModuleContainer && module != container) {
+				boolean nested = module instanceof ModuleContainer && module != container;
+				if (parallel != null && !nested) {
+					// serialize it in parallel; assets will be filled in once it has been written to the output
+					ModuleRecord record = new ModuleRecord(archivable.getName(), archivable.getLoadingClass().getName(),
+							prefix, moduleAssets);
+					records.add(record);
+					String myPrefix = prefix;
+					parallel.submit(new ParallelArchiveWriter.WriteTask() {
+						
+						@Override
+						public void write(ArchiveOutput output) throws IOException {
+							archivable.writeToArchive(output, myPrefix);
+						}
+					}, new ParallelArchiveWriter.CompletionCallback() {
+						
+						@Override
+						public void completed(List<String> entries) throws IOException {
+							for (String entry : entries)
+								if (entry.startsWith(myPrefix))
+									moduleAssets.add(entry.substring(myPrefix.length()));
+							Collections.sort(moduleAssets);
+						}
+					});
+					continue;
+				}
+				if (parallel != null)
+					// anything written directly must come after everything already submitted
+					parallel.flush();
+				if (nested) {
 					ModuleContainer<?> archive = (ModuleContainer<?>)module;
 					String nestingPrefix = archive.getNestingPrefix();
 //					System.out.println("\tWriting nested module container '"+module.getName()
@@ -510,7 +742,7 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 //					System.out.println("ds pre: "+downstreamPrefix);
 //					if (downstreamPrefix.length() > 20)
 //						throw new IllegalStateException("here I be");
-					if (writeModules(archive, trackOutput, downstreamPrefix, prevPrefixes, verbose))
+					if (writeModules(archive, trackOutput, downstreamPrefix, prevPrefixes, verbose, parallel))
 						moduleAssets.add(MODULE_FILE_NAME);
 					
 					modulePrefix = downstreamPrefix;
@@ -530,6 +762,10 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			}
 		}
 		
+		if (parallel != null)
+			// make sure that all modules have been written (and their assets recorded) before writing the index
+			parallel.flush();
+		
 		if (!records.isEmpty()) {
 			Gson gson = new GsonBuilder().setPrettyPrinting().create();
 			
@@ -626,16 +862,26 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 			return out.getName();
 		}
 
-		@Override
-		public void putNextEntry(String name) throws IOException {
+		private void trackEntry(String name) {
 			this.writtenEntries.add(name);
 			if (moduleEntries != null && name.startsWith(modulePath)) {
 				String subPath = name.substring(modulePath.length());
 				moduleEntries.add(subPath);
 			}
+		}
+
+		@Override
+		public void putNextEntry(String name) throws IOException {
+			trackEntry(name);
 			out.putNextEntry(name);
 		}
 
+		@Override
+		public void putNextUncompressedEntry(String name) throws IOException {
+			trackEntry(name);
+			out.putNextUncompressedEntry(name);
+		}
+
 		@Override
 		public OutputStream getOutputStream() throws IOException {
 			return out.getOutputStream();
@@ -648,22 +894,27 @@ public class ModuleArchive<E extends OpenSHA_Module> extends ModuleContainer<E>
 
 		@Override
 		public void transferFrom(ArchiveInput input, String name) throws IOException {
-			this.writtenEntries.add(name);
+			trackEntry(name);
 			out.transferFrom(input, name);
 		}
 		
 		@Override
 		public void transferFrom(ArchiveInput input, String sourceName, String destName) throws IOException {
-			this.writtenEntries.add(destName);
+			trackEntry(destName);
 			out.transferFrom(input, sourceName, destName);
 		}
 
 		@Override
 		public void transferFrom(InputStream is, String name) throws IOException {
-			this.writtenEntries.add(name);
+			trackEntry(name);
 			out.transferFrom(is, name);
 		}
 
+		@Override
+		public boolean isRawTransferSupported() {
+			return out.isRawTransferSupported();
+		}
+
 		@Override
 		public ArchiveInput getCompletedInput() throws IOException {
 			return out.getCompletedInput();
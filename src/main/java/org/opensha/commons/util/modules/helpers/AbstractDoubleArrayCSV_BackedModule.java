@@ -3,14 +3,17 @@ package org.opensha.commons.util.modules.helpers;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.util.modules.AverageableModule;
 import org.opensha.commons.util.modules.ModuleHelper;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
 
 import com.google.common.base.Preconditions;
 
 @ModuleHelper
-public abstract class AbstractDoubleArrayCSV_BackedModule implements CSV_BackedModule {
+public abstract class AbstractDoubleArrayCSV_BackedModule implements BinaryColumnBackedModule {
 	
 	protected double[] values;
 	
+	private transient Encoding binaryEncoding;
+	
 	protected AbstractDoubleArrayCSV_BackedModule() {
 		
 	}
@@ -64,6 +67,32 @@ public abstract class AbstractDoubleArrayCSV_BackedModule implements CSV_BackedM
 		this.values = vals;
 	}
 	
+	/**
+	 * Sets the binary encoding used when writing this module to an archive, or null (default) to use
+	 * {@link BinaryColumns#getDefaultEncoding()} (CSV unless configured)
+	 * 
+	 * @param binaryEncoding
+	 */
+	public void setBinaryEncoding(Encoding binaryEncoding) {
+		this.binaryEncoding = binaryEncoding;
+	}
+
+	@Override
+	public Encoding getBinaryEncoding() {
+		return binaryEncoding;
+	}
+
+	@Override
+	public BinaryColumns getBinaryColumns() {
+		return new BinaryColumns().add(getValueHeading(), values);
+	}
+
+	@Override
+	public void initFromBinaryColumns(BinaryColumns columns) {
+		this.values = columns.getDoubles(getValueHeading());
+		this.binaryEncoding = columns.getEncoding();
+	}
+	
 	@ModuleHelper
 	public static abstract class Averageable<E extends Averageable<E>> extends AbstractDoubleArrayCSV_BackedModule
 	implements AverageableModule<E> {
@@ -82,6 +111,7 @@ public abstract class AbstractDoubleArrayCSV_BackedModule implements CSV_BackedM
 				
 				private double[] avgValues = null;
 				private double sumWeight = 0d;
+				private AveragingEncodingTracker encodings = new AveragingEncodingTracker();
 
 				@Override
 				public void process(E module, double relWeight) {
@@ -93,12 +123,15 @@ public abstract class AbstractDoubleArrayCSV_BackedModule implements CSV_BackedM
 					for (int i=0; i< avgValues.length; i++)
 						avgValues[i] += module.values[i]*relWeight;
 					sumWeight += relWeight;
+					encodings.process(module);
 				}
 
 				@Override
 				public E getAverage() {
 					AverageableModule.scaleToTotalWeight(avgValues, sumWeight);
-					return averageInstance(avgValues);
+					E average = averageInstance(avgValues);
+					average.setBinaryEncoding(encodings.getEncoding());
+					return average;
 				}
 
 				@SuppressWarnings("unchecked") // it's guaranteed by generics to be the correct type at runtime
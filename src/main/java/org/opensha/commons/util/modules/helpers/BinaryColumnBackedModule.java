@@ -0,0 +1,127 @@
+package org.opensha.commons.util.modules.helpers;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import org.opensha.commons.util.io.archive.ArchiveInput;
+import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.modules.ArchivableModule;
+import org.opensha.commons.util.modules.ModuleHelper;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
+
+/**
+ * Helper interface for {@link CSV_BackedModule}'s that can optionally be written as {@link BinaryColumns} rather than
+ * CSV. The encoding is {@link #getBinaryEncoding()} if non-null, otherwise {@link BinaryColumns#getDefaultEncoding()};
+ * if both are null, the CSV file is written as usual, otherwise a binary file (see {@link #getBinaryFileName()}) is
+ * written instead. When loading, the binary file is used if present, falling back to the legacy CSV file otherwise.
+ *
+ * @author kevin
+ *
+ */
+@ModuleHelper // don't map this class to any implementation in ModuleContainer
+public interface BinaryColumnBackedModule extends CSV_BackedModule {
+
+	public static final String BINARY_FILE_EXTENSION = ".bin";
+
+	/**
+	 * @return binary encoding to use when writing, or null to use {@link BinaryColumns#getDefaultEncoding()}
+	 */
+	public Encoding getBinaryEncoding();
+
+	/**
+	 * @return binary column representation of this module
+	 */
+	public BinaryColumns getBinaryColumns();
+
+	/**
+	 * Loads this module from binary columns. Implementations should typically retain
+	 * {@link BinaryColumns#getEncoding()} such that the module is written back in the same format.
+	 *
+	 * @param columns
+	 */
+	public void initFromBinaryColumns(BinaryColumns columns);
+
+	/**
+	 * @return binary file name, which defaults to {@link #getFileName()} with the extension replaced by
+	 * {@link #BINARY_FILE_EXTENSION}
+	 */
+	public default String getBinaryFileName() {
+		String fileName = getFileName();
+		int index = fileName.lastIndexOf('.');
+		if (index > 0)
+			fileName = fileName.substring(0, index);
+		return fileName+BINARY_FILE_EXTENSION;
+	}
+
+	@Override
+	public default void writeToArchive(ArchiveOutput output, String entryPrefix) throws IOException {
+		Encoding encoding = getBinaryEncoding();
+		if (encoding == null)
+			encoding = BinaryColumns.getDefaultEncoding();
+		if (encoding == null) {
+			CSV_BackedModule.super.writeToArchive(output, entryPrefix);
+			return;
+		}
+		String entryName = ArchivableModule.getEntryName(entryPrefix, getBinaryFileName());
+		if (encoding.isCompressed())
+			// already compressed, don't compress it again
+			output.putNextUncompressedEntry(entryName);
+		else
+			output.putNextEntry(entryName);
+		BufferedOutputStream out = new BufferedOutputStream(output.getOutputStream());
+		getBinaryColumns().write(out, encoding);
+		out.flush();
+		output.closeEntry();
+	}
+
+	/**
+	 * Tracks the binary encodings of modules as they are averaged, such that the average can be written in the same
+	 * encoding
+	 * 
+	 * @author kevin
+	 *
+	 */
+	public static class AveragingEncodingTracker {
+		
+		private boolean first = true;
+		private Encoding encoding;
+		
+		/**
+		 * Processes the encoding of the given module (null if it isn't a {@link BinaryColumnBackedModule})
+		 * 
+		 * @param module
+		 */
+		public void process(Object module) {
+			Encoding moduleEncoding = module instanceof BinaryColumnBackedModule ?
+					((BinaryColumnBackedModule)module).getBinaryEncoding() : null;
+			if (first) {
+				encoding = moduleEncoding;
+				first = false;
+			} else if (encoding != moduleEncoding) {
+				// mixed encodings, use the default
+				encoding = null;
+			}
+		}
+		
+		/**
+		 * @return the encoding of all processed modules, or null if none were processed or they had different
+		 * encodings
+		 */
+		public Encoding getEncoding() {
+			return encoding;
+		}
+	}
+
+	@Override
+	public default void initFromArchive(ArchiveInput input, String entryPrefix) throws IOException {
+		String binaryName = getBinaryFileName();
+		if (FileBackedModule.hasEntry(input, entryPrefix, binaryName)) {
+			ByteBuffer buffer = input.getByteBuffer(ArchivableModule.getEntryName(entryPrefix, binaryName));
+			initFromBinaryColumns(BinaryColumns.read(buffer));
+		} else {
+			CSV_BackedModule.super.initFromArchive(input, entryPrefix);
+		}
+	}
+
+}
@@ -0,0 +1,461 @@
+package org.opensha.commons.util.modules.helpers;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Simple container of named, equal or variable length numeric columns (double, float, or int) with a compact
+ * little-endian binary encoding. Used by {@link BinaryColumnBackedModule} as an alternative to CSV files for large
+ * numeric arrays.
+ * <br><br>
+ * File layout (all values little-endian):
+ * <pre>
+ * int magic, int version, byte compression, byte delta, short (unused)
+ * int numColumns
+ * for each column: int nameLength, UTF-8 name bytes, byte type, int length
+ * int payloadLength (on disk, after compression)
+ * payload: column data in order, optionally delta-encoded and DEFLATE compressed
+ * </pre>
+ * Delta encoding stores differences between consecutive int values, and the XOR of consecutive raw bit patterns for
+ * floating point values; both are exactly reversible and greatly improve compression of smoothly varying or sorted
+ * data.
+ *
+ * @author kevin
+ *
+ */
+public class BinaryColumns {
+
+	private static final int MAGIC = 0x4F424331; // "OBC1"
+	private static final int VERSION = 1;
+
+	private static final byte TYPE_DOUBLE = 0;
+	private static final byte TYPE_FLOAT = 1;
+	private static final byte TYPE_INT = 2;
+
+	/**
+	 * Binary encoding options
+	 *
+	 * @author kevin
+	 *
+	 */
+	public enum Encoding {
+		/**
+		 * Raw little-endian values, fastest to read. Archive entries will still be compressed by the archive itself
+		 * if supported.
+		 */
+		RAW(false, false),
+		/**
+		 * Raw values, DEFLATE compressed
+		 */
+		DEFLATE(true, false),
+		/**
+		 * Delta encoded values, DEFLATE compressed. Smallest for sorted or smoothly varying data.
+		 */
+		DELTA_DEFLATE(true, true);
+
+		private final boolean compressed;
+		private final boolean delta;
+
+		private Encoding(boolean compressed, boolean delta) {
+			this.compressed = compressed;
+			this.delta = delta;
+		}
+
+		public boolean isCompressed() {
+			return compressed;
+		}
+
+		public boolean isDelta() {
+			return delta;
+		}
+
+		private static Encoding get(boolean compressed, boolean delta) {
+			for (Encoding encoding : values())
+				if (encoding.compressed == compressed && encoding.delta == delta)
+					return encoding;
+			throw new IllegalStateException("Unsupported encoding: compressed="+compressed+", delta="+delta);
+		}
+	}
+
+	/**
+	 * Environmental variable that can be used to set the default encoding, see {@link #getDefaultEncoding()}
+	 */
+	public static final String DEFAULT_ENCODING_ENV = "FST_BINARY_ENCODING";
+	
+	private static Encoding defaultEncoding = null;
+	
+	static {
+		String encodingEnv = System.getenv(DEFAULT_ENCODING_ENV);
+		if (encodingEnv != null && !encodingEnv.isBlank() && !encodingEnv.trim().equalsIgnoreCase("CSV")) {
+			try {
+				defaultEncoding = Encoding.valueOf(encodingEnv.trim().toUpperCase());
+			} catch (IllegalArgumentException e) {
+				System.err.println("Couldn't parse "+DEFAULT_ENCODING_ENV+" environmental variable as an encoding: "+encodingEnv);
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * @return the default encoding used when writing {@link BinaryColumnBackedModule}s that don't specify their own
+	 * encoding, or null (the default) for CSV. This can be set via the {@value #DEFAULT_ENCODING_ENV} environmental
+	 * variable (to the name of an {@link Encoding}, or CSV) or with {@link #setDefaultEncoding(Encoding)}.
+	 */
+	public static Encoding getDefaultEncoding() {
+		return defaultEncoding;
+	}
+	
+	/**
+	 * Sets the default encoding used when writing {@link BinaryColumnBackedModule}s that don't specify their own
+	 * encoding
+	 * 
+	 * @param encoding default encoding, or null for CSV
+	 */
+	public static void setDefaultEncoding(Encoding encoding) {
+		defaultEncoding = encoding;
+	}
+
+	private List<String> names = new ArrayList<>();
+	private List<Object> columns = new ArrayList<>();
+
+	private Encoding encoding;
+
+	public BinaryColumns() {
+
+	}
+
+	public BinaryColumns add(String name, double[] values) {
+		return addColumn(name, values);
+	}
+
+	public BinaryColumns add(String name, float[] values) {
+		return addColumn(name, values);
+	}
+
+	public BinaryColumns add(String name, int[] values) {
+		return addColumn(name, values);
+	}
+
+	private BinaryColumns addColumn(String name, Object values) {
+		Preconditions.checkNotNull(name, "Column name cannot be null");
+		Preconditions.checkNotNull(values, "Column values cannot be null");
+		Preconditions.checkState(!names.contains(name), "Duplicate column: %s", name);
+		names.add(name);
+		columns.add(values);
+		return this;
+	}
+
+	public int getNumColumns() {
+		return names.size();
+	}
+
+	public List<String> getColumnNames() {
+		return names;
+	}
+
+	public boolean hasColumn(String name) {
+		return names.contains(name);
+	}
+
+	/**
+	 * @return encoding that these columns were read with, or null if not read from a file
+	 */
+	public Encoding getEncoding() {
+		return encoding;
+	}
+
+	private Object getColumn(String name) {
+		int index = names.indexOf(name);
+		Preconditions.checkState(index >= 0, "Column not found: %s", name);
+		return columns.get(index);
+	}
+
+	/**
+	 * @param name
+	 * @return values for the given column; float and int columns will be converted
+	 */
+	public double[] getDoubles(String name) {
+		Object column = getColumn(name);
+		if (column instanceof double[])
+			return (double[])column;
+		if (column instanceof float[]) {
+			float[] floats = (float[])column;
+			double[] ret = new double[floats.length];
+			for (int i=0; i<ret.length; i++)
+				ret[i] = floats[i];
+			return ret;
+		}
+		int[] ints = (int[])column;
+		double[] ret = new double[ints.length];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = ints[i];
+		return ret;
+	}
+
+	public float[] getFloats(String name) {
+		Object column = getColumn(name);
+		Preconditions.checkState(column instanceof float[], "Column %s is not a float column", name);
+		return (float[])column;
+	}
+
+	public int[] getInts(String name) {
+		Object column = getColumn(name);
+		Preconditions.checkState(column instanceof int[], "Column %s is not an int column", name);
+		return (int[])column;
+	}
+
+	private static int length(Object column) {
+		if (column instanceof double[])
+			return ((double[])column).length;
+		if (column instanceof float[])
+			return ((float[])column).length;
+		return ((int[])column).length;
+	}
+
+	private static byte type(Object column) {
+		if (column instanceof double[])
+			return TYPE_DOUBLE;
+		if (column instanceof float[])
+			return TYPE_FLOAT;
+		return TYPE_INT;
+	}
+
+	private static int bytesPer(byte type) {
+		return type == TYPE_DOUBLE ? Double.BYTES : Integer.BYTES;
+	}
+
+	/**
+	 * Writes these columns to the given stream with the given encoding. The stream is not closed.
+	 *
+	 * @param out
+	 * @param encoding
+	 * @throws IOException
+	 */
+	public void write(OutputStream out, Encoding encoding) throws IOException {
+		Preconditions.checkNotNull(encoding);
+		List<byte[]> nameBytes = new ArrayList<>(names.size());
+		int headerLen = 5*4;
+		long dataLen = 0l;
+		for (int c=0; c<names.size(); c++) {
+			byte[] bytes = names.get(c).getBytes(StandardCharsets.UTF_8);
+			nameBytes.add(bytes);
+			headerLen += 4 + bytes.length + 1 + 4;
+			Object column = columns.get(c);
+			dataLen += (long)length(column)*bytesPer(type(column));
+		}
+		Preconditions.checkState(dataLen <= Integer.MAX_VALUE, "Binary columns too large: %s bytes", dataLen);
+
+		ByteBuffer data = ByteBuffer.allocate((int)dataLen).order(ByteOrder.LITTLE_ENDIAN);
+		for (Object column : columns)
+			encode(column, data, encoding.delta);
+
+		byte[] payload;
+		int payloadLen;
+		if (encoding.compressed) {
+			ByteArrayOutputStream bout = new ByteArrayOutputStream(Integer.max(1024, (int)dataLen/4));
+			Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+			DeflaterOutputStream dout = new DeflaterOutputStream(bout, deflater, 64*1024);
+			dout.write(data.array());
+			dout.finish();
+			deflater.end();
+			payload = bout.toByteArray();
+		} else {
+			payload = data.array();
+		}
+		payloadLen = payload.length;
+
+		ByteBuffer header = ByteBuffer.allocate(headerLen).order(ByteOrder.LITTLE_ENDIAN);
+		header.putInt(MAGIC);
+		header.putInt(VERSION);
+		header.put(encoding.compressed ? (byte)1 : (byte)0);
+		header.put(encoding.delta ? (byte)1 : (byte)0);
+		header.putShort((short)0);
+		header.putInt(names.size());
+		for (int c=0; c<names.size(); c++) {
+			byte[] bytes = nameBytes.get(c);
+			header.putInt(bytes.length);
+			header.put(bytes);
+			Object column = columns.get(c);
+			header.put(type(column));
+			header.putInt(length(column));
+		}
+		header.putInt(payloadLen);
+		Preconditions.checkState(!header.hasRemaining());
+
+		out.write(header.array());
+		out.write(payload, 0, payloadLen);
+	}
+
+	private static void encode(Object column, ByteBuffer data, boolean delta) {
+		if (column instanceof double[]) {
+			long prev = 0l;
+			for (double val : (double[])column) {
+				long bits = Double.doubleToRawLongBits(val);
+				data.putLong(delta ? bits ^ prev : bits);
+				prev = bits;
+			}
+		} else if (column instanceof float[]) {
+			int prev = 0;
+			for (float val : (float[])column) {
+				int bits = Float.floatToRawIntBits(val);
+				data.putInt(delta ? bits ^ prev : bits);
+				prev = bits;
+			}
+		} else {
+			int prev = 0;
+			for (int val : (int[])column) {
+				data.putInt(delta ? val - prev : val);
+				prev = val;
+			}
+		}
+	}
+
+	/**
+	 * @param bytes
+	 * @return true if the given bytes start with the binary columns magic number
+	 */
+	public static boolean isBinaryColumns(ByteBuffer bytes) {
+		if (bytes.remaining() < 4)
+			return false;
+		return bytes.duplicate().order(ByteOrder.LITTLE_ENDIAN).getInt() == MAGIC;
+	}
+
+	/**
+	 * Reads binary columns from the given stream (which will be fully consumed but not closed).
+	 *
+	 * @param in
+	 * @return columns
+	 * @throws IOException
+	 */
+	public static BinaryColumns read(InputStream in) throws IOException {
+		return read(ByteBuffer.wrap(in.readAllBytes()));
+	}
+
+	/**
+	 * Reads binary columns from the given buffer, starting at its current position. The buffer may be memory mapped;
+	 * column arrays are always copied to the heap.
+	 *
+	 * @param buffer
+	 * @return columns
+	 * @throws IOException
+	 */
+	public static BinaryColumns read(ByteBuffer buffer) throws IOException {
+		ByteBuffer in = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		int magic = in.getInt();
+		if (magic != MAGIC)
+			throw new IOException("Not a binary columns file (bad magic number)");
+		int version = in.getInt();
+		if (version != VERSION)
+			throw new IOException("Unsupported binary columns version: "+version);
+		boolean compressed = in.get() != 0;
+		boolean delta = in.get() != 0;
+		in.getShort();
+		BinaryColumns ret = new BinaryColumns();
+		ret.encoding = Encoding.get(compressed, delta);
+
+		int numColumns = in.getInt();
+		byte[] types = new byte[numColumns];
+		int[] lengths = new int[numColumns];
+		long dataLen = 0l;
+		for (int c=0; c<numColumns; c++) {
+			byte[] nameBytes = new byte[in.getInt()];
+			in.get(nameBytes);
+			ret.names.add(new String(nameBytes, StandardCharsets.UTF_8));
+			types[c] = in.get();
+			Preconditions.checkState(types[c] >= TYPE_DOUBLE && types[c] <= TYPE_INT, "Bad column type: %s", types[c]);
+			lengths[c] = in.getInt();
+			dataLen += (long)lengths[c]*bytesPer(types[c]);
+		}
+		int payloadLen = in.getInt();
+		if (payloadLen > in.remaining())
+			throw new IOException("Truncated binary columns file: expected "+payloadLen
+					+" payload bytes, have "+in.remaining());
+
+		ByteBuffer data;
+		if (compressed) {
+			Preconditions.checkState(dataLen <= Integer.MAX_VALUE, "Binary columns too large: %s bytes", dataLen);
+			byte[] inflated = new byte[(int)dataLen];
+			ByteBuffer payload = in.slice();
+			payload.limit(payloadLen);
+			Inflater inflater = new Inflater();
+			try {
+				inflater.setInput(payload);
+				int offset = 0;
+				while (offset < inflated.length) {
+					int read = inflater.inflate(inflated, offset, inflated.length - offset);
+					if (read == 0 && (inflater.finished() || inflater.needsInput()))
+						throw new IOException("Truncated binary columns payload: expected "+dataLen
+								+" bytes, inflated "+offset);
+					offset += read;
+				}
+			} catch (DataFormatException e) {
+				throw new IOException(e);
+			} finally {
+				inflater.end();
+			}
+			data = ByteBuffer.wrap(inflated).order(ByteOrder.LITTLE_ENDIAN);
+		} else {
+			Preconditions.checkState(payloadLen == dataLen,
+					"Payload length mismatch: expected %s, have %s", dataLen, payloadLen);
+			data = in.slice().order(ByteOrder.LITTLE_ENDIAN);
+			data.limit(payloadLen);
+		}
+
+		for (int c=0; c<numColumns; c++) {
+			int len = lengths[c];
+			switch (types[c]) {
+			case TYPE_DOUBLE:
+				// read the raw bit patterns, undoing any delta encoding on the integer bits, and only then convert to
+				// floating point so that every bit pattern (including NaN payloads) is preserved
+				long[] longBits = new long[len];
+				data.asLongBuffer().get(longBits);
+				data.position(data.position() + len*Long.BYTES);
+				if (delta)
+					for (int i=1; i<len; i++)
+						longBits[i] ^= longBits[i-1];
+				double[] doubles = new double[len];
+				for (int i=0; i<len; i++)
+					doubles[i] = Double.longBitsToDouble(longBits[i]);
+				ret.columns.add(doubles);
+				break;
+			case TYPE_FLOAT:
+				int[] intBits = new int[len];
+				data.asIntBuffer().get(intBits);
+				data.position(data.position() + len*Integer.BYTES);
+				if (delta)
+					for (int i=1; i<len; i++)
+						intBits[i] ^= intBits[i-1];
+				float[] floats = new float[len];
+				for (int i=0; i<len; i++)
+					floats[i] = Float.intBitsToFloat(intBits[i]);
+				ret.columns.add(floats);
+				break;
+			default:
+				int[] ints = new int[len];
+				data.asIntBuffer().get(ints);
+				data.position(data.position() + len*Integer.BYTES);
+				if (delta)
+					for (int i=1; i<len; i++)
+						ints[i] += ints[i-1];
+				ret.columns.add(ints);
+				break;
+			}
+		}
+
+		return ret;
+	}
+
+}
@@ -2,12 +2,19 @@ package org.opensha.sha.calc;
 
 
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.HashMap;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.Objects;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 import org.opensha.commons.data.Site;
 import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
@@ -48,6 +55,8 @@ import org.opensha.sha.earthquake.rupForecastImpl.Frankel96.Frankel96_EqkRupFore
 import org.opensha.sha.faultSurface.PointSurface;
 import org.opensha.sha.faultSurface.utils.PtSrcDistCorr;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DirectIMR_Input;
+import org.opensha.sha.imr.DirectInputIMR;
 import org.opensha.sha.imr.ScalarIMR;
 import org.opensha.sha.imr.attenRelImpl.BJF_1997_AttenRel;
 import org.opensha.sha.util.TRTUtils;
@@ -106,6 +115,25 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 	private PtSrcDistanceCorrectionParam ptSrcDistCorrParam;
 
 	private ParameterList adjustableParams;
+	
+	// optional point source exceedance tables
+	private PointSourceExceedanceCache ptSrcExceedCache;
+	
+	// if true, IMRs that support direct inputs will be set without the parameter machinery
+	private boolean useDirectIMR_Inputs = false;
+	
+	// source-parallel calculation of individual curves
+	private int sourceThreads = 1;
+	private Map<TectonicRegionType, ? extends Supplier<ScalarIMR>> sourceIMR_Suppliers;
+	private ForkJoinPool sourcePool;
+	private List<Map<TectonicRegionType, ScalarIMR>> workerIMRs;
+	private volatile AtomicInteger sourceCounter;
+	
+	// adaptive rupture skipping, disabled if zero
+	private double ruptureSkipTol = 0d;
+	private long numSkippedRuptures;
+	private double skippedRuptureRate;
+	private DiscretizedFunc skippedErrorEstimate;
 
 	// misc counting and index variables
 	protected int currRuptures = -1;
@@ -168,6 +196,82 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 	
 
 //	@Override
+	/**
+	 * Sets an optional cache of point source exceedance probability tables. If non null, exceedance probabilities for
+	 * point source ruptures will be interpolated from (and stored in) tables in the given cache, see
+	 * {@link PointSourceExceedanceCache} for details. The cache is thread safe and can be shared between calculators.
+	 * 
+	 * @param ptSrcExceedCache
+	 */
+	public void setPointSourceExceedanceCache(PointSourceExceedanceCache ptSrcExceedCache) {
+		this.ptSrcExceedCache = ptSrcExceedCache;
+	}
+	
+	public PointSourceExceedanceCache getPointSourceExceedanceCache() {
+		return ptSrcExceedCache;
+	}
+	
+	/**
+	 * Sets whether or not IMRs that implement {@link DirectInputIMR} should be set directly from primitive values
+	 * (see {@link DirectIMR_Input}) rather than via {@link ScalarIMR#setEqkRupture(EqkRupture)}, bypassing parameter
+	 * constraint checks and change events for each rupture. Disabled by default.
+	 * 
+	 * @param useDirectIMR_Inputs
+	 */
+	public void setUseDirectIMR_Inputs(boolean useDirectIMR_Inputs) {
+		this.useDirectIMR_Inputs = useDirectIMR_Inputs;
+	}
+	
+	public boolean isUseDirectIMR_Inputs() {
+		return useDirectIMR_Inputs;
+	}
+	
+	/**
+	 * Enables adaptive skipping of ruptures with negligible contributions. For each Poisson rupture that passes the
+	 * source filters, its contribution at each IML is estimated from its rate and a cheap, conservative GMM estimate
+	 * at its magnitude and distance (see {@link RuptureExceedanceEstimates}). The rupture is skipped if that estimate,
+	 * plus the estimates of all ruptures already skipped, is at most the given fraction of the rate from the ruptures
+	 * that have been calculated at every IML. Which ruptures are skipped depends on source order.
+	 * <br><br>
+	 * The GMM estimates are not strict bounds (they come from a simplified proxy rupture with a heuristic margin), so
+	 * the relative error of the curve is targeted to be at most the tolerance, but that isn't guaranteed. The
+	 * corresponding error estimate is reported by {@link #getSkippedRuptureErrorEstimate()} after each calculation.
+	 * 
+	 * @param relTol relative tolerance, or zero to disable (the default)
+	 */
+	public void setRuptureSkipTolerance(double relTol) {
+		Preconditions.checkArgument(relTol >= 0d && relTol < 1d, "Rupture skip tolerance must be in [0, 1): %s", relTol);
+		this.ruptureSkipTol = relTol;
+	}
+	
+	public double getRuptureSkipTolerance() {
+		return ruptureSkipTol;
+	}
+	
+	/**
+	 * @return number of ruptures skipped in the last calculation (see {@link #setRuptureSkipTolerance(double)})
+	 */
+	public long getNumSkippedRuptures() {
+		return numSkippedRuptures;
+	}
+	
+	/**
+	 * @return total rate (expected number over the forecast duration) of ruptures skipped in the last calculation
+	 * (see {@link #setRuptureSkipTolerance(double)})
+	 */
+	public double getSkippedRuptureRate() {
+		return skippedRuptureRate;
+	}
+	
+	/**
+	 * @return estimated absolute error (underestimation) in the exceedance probability at each IML due to skipped
+	 * ruptures in the last calculation, or null if rupture skipping was disabled. This is conservative in typical
+	 * cases, but is an estimate rather than a strict bound (see {@link #setRuptureSkipTolerance(double)})
+	 */
+	public DiscretizedFunc getSkippedRuptureErrorEstimate() {
+		return skippedErrorEstimate;
+	}
+	
 	public PtSrcDistCorr.Type getPtSrcDistCorrType(){
 		return ptSrcDistCorrParam.getValueAsTypePtSrcDistCorr();
 	}
@@ -263,48 +367,15 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 //		if(includeMagDistFilterParam.getValue() && D)
 //			System.out.println("Haz Curv Calc: magDistCutoffParam.getValue()="+magDistCutoffParam.getValue().toString());
 		
-		boolean setTRTinIMR_FromSource = setTRTinIMR_FromSourceParam.getValue();
-		HashMap<ScalarIMR, TectonicRegionType> trtOrigVals = null;
-		if (setTRTinIMR_FromSource)
-			trtOrigVals = TRTUtils.getTRTsSetInIMRs(imrMap);
-
 		this.currRuptures = -1;
-		
-		PtSrcDistCorr.Type distCorrType = getPtSrcDistCorrType();
-
-		/* this determines how the calucations are done (doing it the way it's outlined
-    in our original SRL paper gives probs greater than 1 if the total rate of events for the
-    source exceeds 1.0, even if the rates of individual ruptures are << 1).
-		 */
-		boolean poissonSource = false;
 
-//		DiscretizedFunc condProbFunc = hazFunction.deepClone();
-//		DiscretizedFunc sourceHazFunc = hazFunction.deepClone();
 		// these light functions are much faster on set operations
 		DiscretizedFunc origHazFunc = hazFunction;
 		hazFunction = new LightFixedXFunc(hazFunction);
-		DiscretizedFunc condProbFunc = new LightFixedXFunc(hazFunction);
-		DiscretizedFunc sourceHazFunc = new LightFixedXFunc(hazFunction);
-
-		// declare some varibles used in the calculation
-		double qkProb;
-		int k;
 
 		// get the number of points
 		int numPoints = hazFunction.size();
 
-		// define source/rup filtering stuff
-		double maxDistance = getMaxSourceDistance();
-		List<SourceFilter> filters = getSourceFilters();
-
-		// initialize IMRs w/ max distance, site, and reset parameter listeners 
-		// (the latter allows server versions to listen to parameter changes)
-		for (ScalarIMR imr:imrMap.values()) {
-			imr.resetParameterEventListeners();
-			imr.setUserMaxDistance(maxDistance);
-			imr.setSite(site);
-		}
-
 		// get total number of sources
 		numSources = eqkRupForecast.getNumSources();
 		//System.out.println("Number of Sources: "+numSources);
@@ -321,7 +392,6 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 
 		// init the current rupture number (also for progress bar)
 		currRuptures = 0;
-		int numRupRejected =0;
 
 		// initialize the hazard function to 1.0
 		initDiscretizeValues(hazFunction, 1.0);
@@ -331,10 +401,162 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 		boolean sourceUsed = false;
 
 		if (D) System.out.println(C+": starting hazard curve calculation");
+		
+		numSkippedRuptures = 0l;
+		skippedRuptureRate = 0d;
+		// sum of the estimated contributions of skipped ruptures (in terms of rate) at each IML
+		double[] skippedEstimates = ruptureSkipTol > 0d ? new double[numPoints] : null;
+		
+		int numWorkers = getNumSourceWorkers(imrMap, numSources);
+		if (numWorkers > 1) {
+			sourceUsed = calcSourcesParallel(hazFunction, site, imrMap, eqkRupForecast, numWorkers, skippedEstimates);
+		} else {
+			SourceLoopWorker worker = new SourceLoopWorker(hazFunction, site, imrMap, eqkRupForecast, true);
+
+			// loop over sources
+			for(sourceIndex=0;sourceIndex < numSources ;sourceIndex++)
+				worker.processSource(sourceIndex);
+			worker.finish();
+			sourceUsed = worker.sourceUsed;
+			worker.addSkipped(skippedEstimates);
+		}
+		
+		if (skippedEstimates != null) {
+			// the true curve is estimated to be at most 1 - exp(-(rate + skipped rate)) at each IML
+			skippedErrorEstimate = new ArbitrarilyDiscretizedFunc();
+			for (int k=0; k<numPoints; k++)
+				skippedErrorEstimate.set(origHazFunc.getX(k), hazFunction.getY(k)*(1d - Math.exp(-skippedEstimates[k])));
+		} else {
+			skippedErrorEstimate = null;
+		}
+
+		int i;
+		// finalize the hazard function
+		if(sourceUsed) {
+			for(i=0;i<numPoints;++i)
+				origHazFunc.set(i,1-hazFunction.getY(i));
+			hazFunction = origHazFunc;
+		} else {
+			hazFunction = origHazFunc;
+			this.initDiscretizeValues(hazFunction, 0.0);
+		}
 
-		// loop over sources
-		for(sourceIndex=0;sourceIndex < numSources ;sourceIndex++) {
+		if (D) System.out.println(C+"hazFunction.toString"+hazFunction.toString());
 
+		return hazFunction;
+	}
+	
+	/**
+	 * Calculates the contributions of sources (in terms of the product of non-exceedance probabilities) to a hazard
+	 * function for a single set of IMRs, which must not be used concurrently elsewhere.
+	 */
+	private class SourceLoopWorker {
+		
+		private final DiscretizedFunc hazFunction;
+		private final DiscretizedFunc sourceHazFunc;
+		private DiscretizedFunc condProbFunc;
+		private final int numPoints;
+		
+		private final Site site;
+		private final Location siteLoc;
+		private final Map<TectonicRegionType, ScalarIMR> imrMap;
+		private final ERF eqkRupForecast;
+		// if true, the rupture count is updated for each rupture (otherwise once per source)
+		private final boolean serial;
+		
+		private final boolean setTRTinIMR_FromSource;
+		private final HashMap<ScalarIMR, TectonicRegionType> trtOrigVals;
+		private final PtSrcDistCorr.Type distCorrType;
+		private final List<SourceFilter> filters;
+		// point source exceedance tables for each IMR
+		private final Map<ScalarIMR, PointSourceExceedanceCache.ContextTables> ptSrcTablesMap;
+		// primitive site/rupture inputs for each IMR that supports them, reused for all ruptures
+		private final Map<ScalarIMR, DirectIMR_Input> directInputs;
+		
+		// rupture skipping: estimates for each IMR, rates computed so far and skipped estimates at each IML
+		private final Map<ScalarIMR, RuptureExceedanceEstimates> skipEstimatesMap;
+		private final double[] rates;
+		private int numSinceRatesUpdate = 0;
+		private final double[] skippedEstimates;
+		private long numSkipped = 0l;
+		private double skippedRate = 0d;
+		
+		private boolean sourceUsed = false;
+		
+		private SourceLoopWorker(DiscretizedFunc hazFunction, Site site, Map<TectonicRegionType, ScalarIMR> imrMap,
+				ERF eqkRupForecast, boolean serial) {
+			this.hazFunction = hazFunction;
+			this.site = site;
+			this.siteLoc = site.getLocation();
+			this.imrMap = imrMap;
+			this.eqkRupForecast = eqkRupForecast;
+			this.serial = serial;
+			
+			numPoints = hazFunction.size();
+			condProbFunc = new LightFixedXFunc(hazFunction);
+			sourceHazFunc = new LightFixedXFunc(hazFunction);
+			
+			setTRTinIMR_FromSource = setTRTinIMR_FromSourceParam.getValue();
+			if (setTRTinIMR_FromSource)
+				trtOrigVals = TRTUtils.getTRTsSetInIMRs(imrMap);
+			else
+				trtOrigVals = null;
+			
+			distCorrType = getPtSrcDistCorrType();
+			
+			// define source/rup filtering stuff
+			double maxDistance = getMaxSourceDistance();
+			filters = getSourceFilters();
+
+			// initialize IMRs w/ max distance, site, and reset parameter listeners 
+			// (the latter allows server versions to listen to parameter changes)
+			for (ScalarIMR imr:imrMap.values()) {
+				imr.resetParameterEventListeners();
+				imr.setUserMaxDistance(maxDistance);
+				imr.setSite(site);
+			}
+			
+			if (ptSrcExceedCache != null) {
+				ptSrcTablesMap = new HashMap<>();
+				for (ScalarIMR imr:imrMap.values())
+					if (!ptSrcTablesMap.containsKey(imr))
+						ptSrcTablesMap.put(imr, ptSrcExceedCache.getTables(imr, hazFunction, maxDistance));
+			} else {
+				ptSrcTablesMap = null;
+			}
+			
+			Map<ScalarIMR, DirectIMR_Input> directInputs = null;
+			if (useDirectIMR_Inputs) {
+				for (ScalarIMR imr:imrMap.values()) {
+					if (imr instanceof DirectInputIMR && ((DirectInputIMR)imr).isDirectInputSupported()) {
+						if (directInputs == null)
+							directInputs = new HashMap<>();
+						if (!directInputs.containsKey(imr)) {
+							// site values can differ between IMRs if the site is missing any parameters
+							DirectIMR_Input directInput = new DirectIMR_Input();
+							directInput.setSite(site, imr);
+							directInputs.put(imr, directInput);
+						}
+					}
+				}
+			}
+			this.directInputs = directInputs;
+			
+			if (ruptureSkipTol > 0d) {
+				skipEstimatesMap = new HashMap<>();
+				for (ScalarIMR imr:imrMap.values())
+					if (!skipEstimatesMap.containsKey(imr))
+						skipEstimatesMap.put(imr, new RuptureExceedanceEstimates(imr, site, hazFunction));
+				rates = new double[numPoints];
+				skippedEstimates = new double[numPoints];
+			} else {
+				skipEstimatesMap = null;
+				rates = null;
+				skippedEstimates = null;
+			}
+		}
+		
+		private void processSource(int sourceIndex) {
 			//if (sourceIndex%1000 ==0) System.out.println("SourceIdx: " + sourceIndex);
 			
 			// get the ith source
@@ -343,45 +565,49 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 			
 			// get the IMR
 			ScalarIMR imr = TRTUtils.getIMRforTRT(imrMap, trt);
+			DirectIMR_Input directInput = directInputs == null ? null : directInputs.get(imr);
+			DirectInputIMR directIMR = null;
+			if (directInput != null && ((DirectInputIMR)imr).isDirectInputSupported())
+				directIMR = (DirectInputIMR)imr;
 
 			// Set Tectonic Region Type in IMR
 			if(setTRTinIMR_FromSource) { // (otherwise leave as originally set)
 				TRTUtils.setTRTinIMR(imr, trt, nonSupportedTRT_OptionsParam, trtOrigVals.get(imr));
 			}
+			
+			// get the number of ruptures for the current source
+			int numRuptures = source.getNumRuptures();
 
 			// apply any filters
 			if (canSkipSource(filters, source, site)) {
-				currRuptures += source.getNumRuptures();  //update progress bar for skipped ruptures
-				continue;
+				addCurrRuptures(numRuptures);  //update progress bar for skipped ruptures
+				return;
 			}
 
 			// determine whether it's poissonian (calcs depend on this)
-			poissonSource = source.isSourcePoissonian();
+			boolean poissonSource = source.isSourcePoissonian();
 
 			// initialize the source hazard function to 0.0 if it's a non-poisson source
 			if(!poissonSource)
 				initDiscretizeValues(sourceHazFunc, 0.0);
 
-			// get the number of ruptures for the current source
-			int numRuptures = source.getNumRuptures();
-
 			// loop over these ruptures
-			for(int n=0; n < numRuptures ; n++,++currRuptures) {
+			for(int n=0; n < numRuptures ; n++) {
+				if (serial)
+					++currRuptures;
 				
 				ProbEqkRupture rupture = source.getRupture(n);
 
 				try {
 					// get the rupture probability
-					qkProb = rupture.getProbability();
+					double qkProb = rupture.getProbability();
 					
 					if (qkProb == 0d)
 						continue;
 					
 					// apply any filters
-					if (canSkipRupture(filters, rupture, site)) {
-						numRupRejected ++;
+					if (canSkipRupture(filters, rupture, site))
 						continue;
-					}
 					
 					// set point-source distance correction type & mag if it's a pointSurface
 					if(rupture.getRuptureSurface() instanceof PointSurface)
@@ -389,12 +615,27 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 					
 					// indicate that a source has been used (put here because of above filters)
 					sourceUsed = true;
+					
+					if (rates != null && poissonSource && isNegligible(rupture, imr, trt, -Math.log(1.0-qkProb)))
+						continue;
 
-					// set the EqkRup in the IMR
-					imr.setEqkRupture(rupture);
-
-					// get the conditional probability of exceedance from the IMR
-					condProbFunc = imr.getExceedProbabilities(condProbFunc);
+					if (ptSrcTablesMap != null && PointSourceExceedanceCache.isSupported(rupture)) {
+						// get the conditional probability of exceedance from the point source tables
+						condProbFunc = ptSrcTablesMap.get(imr).getExceedProbabilities(
+								rupture, trt, site, imr, condProbFunc);
+					} else if (directIMR != null) {
+						// set the inputs directly, bypassing parameters
+						directInput.setRupture(rupture, siteLoc);
+						directIMR.setDirectInput(directInput);
+						
+						condProbFunc = directIMR.getExceedProbabilities(condProbFunc);
+					} else {
+						// set the EqkRup in the IMR
+						imr.setEqkRupture(rupture);
+
+						// get the conditional probability of exceedance from the IMR
+						condProbFunc = imr.getExceedProbabilities(condProbFunc);
+					}
 					
 					// For poisson source
 					if(poissonSource) {
@@ -409,12 +650,13 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 							throw new RuntimeException("Error: The probability for this ProbEqkRupture ("+qkProb+
 							") is too high for a Possion source (~infinite number of events)");
 
-						for(k=0;k<numPoints;k++)
+						for(int k=0;k<numPoints;k++)
 							hazFunction.set(k,hazFunction.getY(k)*Math.pow(1-qkProb,condProbFunc.getY(k)));
+						numSinceRatesUpdate++;
 					}
 					// For non-Poissin source
 					else
-						for(k=0;k<numPoints;k++)
+						for(int k=0;k<numPoints;k++)
 							sourceHazFunc.set(k,sourceHazFunc.getY(k) + qkProb*condProbFunc.getY(k));
 				} catch (Throwable t) {
 					System.err.println("Error occured while calculating hazard curve " +
@@ -434,32 +676,272 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 					ExceptionUtils.throwAsRuntimeException(t);
 				}
 			}
+			if (!serial)
+				addCurrRuptures(numRuptures);
 			// for non-poisson source:
-			if(!poissonSource)
-				for(k=0;k<numPoints;k++)
+			if(!poissonSource) {
+				for(int k=0;k<numPoints;k++)
 					hazFunction.set(k,hazFunction.getY(k)*(1-sourceHazFunc.getY(k)));
+				numSinceRatesUpdate++;
+			}
 		}
-
-		int i;
-		// finalize the hazard function
-		if(sourceUsed) {
-			for(i=0;i<numPoints;++i)
-				origHazFunc.set(i,1-hazFunction.getY(i));
-			hazFunction = origHazFunc;
-		} else {
-			hazFunction = origHazFunc;
-			this.initDiscretizeValues(hazFunction, 0.0);
+		
+		/**
+		 * Checks if the given rupture can be skipped: it can if the estimate of its contribution (in terms of rate)
+		 * at each IML, plus those of all ruptures already skipped, is at most the tolerance times the rate from ruptures
+		 * calculated so far. Rates only increase, so this holds for the final curve as well. If it can be skipped, its
+		 * estimates are added to the skipped estimates.
+		 * <br><br>
+		 * Rates are derived from the hazard function (the product of non-exceedance probabilities), and are only
+		 * updated periodically.
+		 */
+		private boolean isNegligible(ProbEqkRupture rupture, ScalarIMR imr, TectonicRegionType trt, double rate) {
+			if (numSinceRatesUpdate >= RATES_UPDATE_INTERVAL) {
+				// rates only increase, so stale rates are still a valid (if conservative) reference
+				for (int k=0; k<numPoints; k++)
+					rates[k] = -Math.log(hazFunction.getY(k));
+				numSinceRatesUpdate = 0;
+			}
+			// quick check that there's any room left at the lowest IML (where the estimate is usually largest)
+			if (skippedEstimates[0] >= ruptureSkipTol*rates[0])
+				return false;
+			double[] estimate = skipEstimatesMap.get(imr).getEstimate(rupture, trt);
+			for (int k=0; k<numPoints; k++) {
+				double contrib = rate*estimate[k];
+				if (contrib > 0d && skippedEstimates[k] + contrib > ruptureSkipTol*rates[k])
+					return false;
+			}
+			for (int k=0; k<numPoints; k++)
+				skippedEstimates[k] += rate*estimate[k];
+			numSkipped++;
+			skippedRate += rate;
+			return true;
 		}
-
-		if (D) System.out.println(C+"hazFunction.toString"+hazFunction.toString());
-
-		// System.out.println("numRupRejected="+numRupRejected);
 		
-		// reset TRT parameter in IMRs
-		if (trtOrigVals != null)
-			TRTUtils.resetTRTsInIMRs(trtOrigVals);
-
-		return hazFunction;
+		/**
+		 * Adds this worker's skipped rupture estimates and statistics to the given array and the calculator totals
+		 */
+		private void addSkipped(double[] skippedEstimates) {
+			if (skippedEstimates == null || this.skippedEstimates == null)
+				return;
+			for (int k=0; k<numPoints; k++)
+				skippedEstimates[k] += this.skippedEstimates[k];
+			numSkippedRuptures += numSkipped;
+			skippedRuptureRate += skippedRate;
+		}
+		
+		private void finish() {
+			// reset TRT parameter in IMRs
+			if (trtOrigVals != null)
+				TRTUtils.resetTRTsInIMRs(trtOrigVals);
+		}
+	}
+	
+	private synchronized void addCurrRuptures(int numRuptures) {
+		currRuptures += numRuptures;
+	}
+	
+	/**
+	 * Enables calculation of individual hazard curves in parallel over sources, which is useful when calculating
+	 * hazard for few sites on a machine with many cores. Each additional thread uses its own IMR instances from the
+	 * given suppliers, which will be configured to match the IMRs passed in to
+	 * {@link #getHazardCurve(DiscretizedFunc, Site, Map, ERF)}. Only the intensity measure (with its independent
+	 * parameters) and other parameters ({@link ScalarIMR#getOtherParams()}) are copied, and an exception is thrown if
+	 * they can't be; any other IMR configuration must already be set by the suppliers. The ERF must support concurrent
+	 * calls to {@link ERF#getSource(int)}.
+	 * <br><br>
+	 * Partial curves (products of non-exceedance probabilities) from each thread are multiplied together at the end,
+	 * so results can differ from a serial calculation at the level of floating point precision.
+	 * 
+	 * @param numThreads maximum number of threads to use, or 1 to disable
+	 * @param imrSuppliers IMR suppliers for each tectonic region type in IMR maps that will be passed in
+	 */
+	public void setSourceParallelism(int numThreads, Map<TectonicRegionType, ? extends Supplier<ScalarIMR>> imrSuppliers) {
+		Preconditions.checkArgument(numThreads > 0, "numThreads must be positive");
+		Preconditions.checkArgument(numThreads == 1 || imrSuppliers != null, "Must supply IMR suppliers");
+		if (sourcePool != null && sourcePool.getParallelism() != numThreads) {
+			sourcePool.shutdown();
+			sourcePool = null;
+		}
+		this.sourceThreads = numThreads;
+		this.sourceIMR_Suppliers = numThreads > 1 ? imrSuppliers : null;
+		this.workerIMRs = null;
+	}
+	
+	/**
+	 * Enables calculation of individual hazard curves in parallel over sources, using the given supplier for all
+	 * tectonic region types. See {@link #setSourceParallelism(int, Map)}.
+	 * 
+	 * @param numThreads
+	 * @param imrSupplier
+	 */
+	public void setSourceParallelism(int numThreads, Supplier<ScalarIMR> imrSupplier) {
+		Map<TectonicRegionType, Supplier<ScalarIMR>> suppliers = null;
+		if (imrSupplier != null) {
+			suppliers = new EnumMap<>(TectonicRegionType.class);
+			for (TectonicRegionType trt : TectonicRegionType.values())
+				suppliers.put(trt, imrSupplier);
+		}
+		setSourceParallelism(numThreads, suppliers);
+	}
+	
+	/**
+	 * @return maximum number of threads used to calculate a single hazard curve
+	 */
+	public int getSourceParallelism() {
+		return sourceThreads;
+	}
+	
+	/**
+	 * Shuts down any threads used for source-parallel calculations
+	 */
+	public void shutdownSourceParallelism() {
+		if (sourcePool != null) {
+			sourcePool.shutdown();
+			sourcePool = null;
+		}
+		workerIMRs = null;
+	}
+	
+	private int getNumSourceWorkers(Map<TectonicRegionType, ScalarIMR> imrMap, int numSources) {
+		if (sourceThreads < 2 || sourceIMR_Suppliers == null)
+			return 1;
+		for (TectonicRegionType trt : imrMap.keySet())
+			if (!sourceIMR_Suppliers.containsKey(trt))
+				return 1;
+		// not worth the overhead for small ERFs
+		return Integer.max(1, Integer.min(sourceThreads, numSources/MIN_SOURCES_PER_WORKER));
+	}
+	
+	private static final int MIN_SOURCES_PER_WORKER = 20;
+	private static final int RATES_UPDATE_INTERVAL = 20;
+	private static final int SOURCE_CHUNK_SIZE = 10;
+	
+	private boolean calcSourcesParallel(DiscretizedFunc hazFunction, Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap, ERF eqkRupForecast, int numWorkers, double[] skippedEstimates) {
+		if (sourcePool == null)
+			sourcePool = new ForkJoinPool(sourceThreads);
+		
+		// the first worker uses the passed in IMRs, the others use matching copies
+		List<Map<TectonicRegionType, ScalarIMR>> imrMaps = new ArrayList<>(numWorkers);
+		imrMaps.add(imrMap);
+		for (int w=1; w<numWorkers; w++)
+			imrMaps.add(getWorkerIMRs(w-1, imrMap));
+		
+		AtomicInteger sourceCounter = new AtomicInteger(0);
+		this.sourceCounter = sourceCounter;
+		List<SourceLoopWorker> workers = new ArrayList<>(numWorkers);
+		List<ForkJoinTask<?>> tasks = new ArrayList<>(numWorkers);
+		for (int w=0; w<numWorkers; w++) {
+			SourceLoopWorker worker = new SourceLoopWorker(new LightFixedXFunc(hazFunction), site, imrMaps.get(w),
+					eqkRupForecast, false);
+			workers.add(worker);
+			tasks.add(sourcePool.submit(new Runnable() {
+				
+				@Override
+				public void run() {
+					try {
+						while (true) {
+							int start = sourceCounter.getAndAdd(SOURCE_CHUNK_SIZE);
+							if (start >= numSources)
+								break;
+							int end = Integer.min(numSources, start+SOURCE_CHUNK_SIZE);
+							for (int s=start; s<end; s++)
+								worker.processSource(s);
+						}
+					} finally {
+						worker.finish();
+					}
+				}
+			}));
+		}
+		for (ForkJoinTask<?> task : tasks)
+			task.join();
+		this.sourceCounter = null;
+		
+		// merge partial curves
+		boolean sourceUsed = false;
+		int numPoints = hazFunction.size();
+		for (SourceLoopWorker worker : workers) {
+			sourceUsed |= worker.sourceUsed;
+			worker.addSkipped(skippedEstimates);
+			for (int k=0; k<numPoints; k++)
+				hazFunction.set(k, hazFunction.getY(k)*worker.hazFunction.getY(k));
+		}
+		return sourceUsed;
+	}
+	
+	private Map<TectonicRegionType, ScalarIMR> getWorkerIMRs(int index, Map<TectonicRegionType, ScalarIMR> imrMap) {
+		if (workerIMRs == null)
+			workerIMRs = new ArrayList<>();
+		while (workerIMRs.size() <= index)
+			workerIMRs.add(new HashMap<>());
+		Map<TectonicRegionType, ScalarIMR> cached = workerIMRs.get(index);
+		// mirror the structure of the passed in map (which may use the same IMR for multiple TRTs)
+		Map<ScalarIMR, ScalarIMR> copies = new HashMap<>();
+		Map<TectonicRegionType, ScalarIMR> ret = new EnumMap<>(TectonicRegionType.class);
+		for (TectonicRegionType trt : imrMap.keySet()) {
+			ScalarIMR imr = imrMap.get(trt);
+			ScalarIMR copy = copies.get(imr);
+			if (copy == null) {
+				copy = cached.get(trt);
+				if (copy == null || !copy.getShortName().equals(imr.getShortName()) || copies.containsValue(copy)) {
+					copy = sourceIMR_Suppliers.get(trt).get();
+					Preconditions.checkState(copy.getShortName().equals(imr.getShortName()),
+							"IMR supplier for %s is for %s, but IMR is %s", trt, copy.getShortName(), imr.getShortName());
+					copy.setParamDefaults();
+				}
+				copyIMR_Settings(imr, copy);
+				copies.put(imr, copy);
+			}
+			ret.put(trt, copy);
+		}
+		cached.clear();
+		cached.putAll(ret);
+		return ret;
+	}
+	
+	/**
+	 * Copies the intensity measure (name and independent parameters, e.g., SA period) and other parameters (e.g.,
+	 * component, standard deviation type, truncation, tectonic region type) from one IMR to another. Nothing else is
+	 * copied: site and rupture parameters are set for each site and rupture in the calculation, and any state that
+	 * isn't held in those parameters (e.g., set through IMR-specific methods) must already match in supplied IMRs.
+	 * 
+	 * @throws IllegalStateException if the destination IMR is missing any of those parameters, or if any values differ
+	 * after copying (e.g., if parameter listeners reset them)
+	 */
+	@SuppressWarnings("unchecked")
+	private static void copyIMR_Settings(ScalarIMR from, ScalarIMR to) {
+		Parameter<?> fromIM = from.getIntensityMeasure();
+		if (to.getIntensityMeasure() == null || !to.getIntensityMeasure().getName().equals(fromIM.getName()))
+			to.setIntensityMeasure(fromIM.getName());
+		ParameterList fromIMParams = fromIM.getIndependentParameterList();
+		ParameterList toIMParams = to.getIntensityMeasure().getIndependentParameterList();
+		copyParams(fromIMParams, toIMParams, to, fromIM.getName()+" parameter");
+		copyParams(from.getOtherParams(), to.getOtherParams(), to, "other parameter");
+		// check after everything is set, as setting one parameter can change others
+		checkParams(fromIMParams, toIMParams, to, fromIM.getName()+" parameter");
+		checkParams(from.getOtherParams(), to.getOtherParams(), to, "other parameter");
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static void copyParams(ParameterList fromParams, ParameterList toParams, ScalarIMR to, String type) {
+		for (Parameter<?> param : fromParams) {
+			Preconditions.checkState(toParams.containsParameter(param.getName()),
+					"Supplied %s IMR doesn't have %s '%s'", to.getShortName(), type, param.getName());
+			Parameter<Object> toParam = (Parameter<Object>)toParams.getParameter(param.getName());
+			if (!Objects.equals(toParam.getValue(), param.getValue()))
+				toParam.setValue(param.getValue());
+		}
+	}
+	
+	private static void checkParams(ParameterList fromParams, ParameterList toParams, ScalarIMR to, String type) {
+		for (Parameter<?> param : fromParams) {
+			Object toValue = toParams.getParameter(param.getName()).getValue();
+			Preconditions.checkState(Objects.equals(toValue, param.getValue()),
+					"Couldn't copy %s '%s' to supplied %s IMR: value is %s, expected %s",
+					type, param.getName(), to.getShortName(), toValue, param.getValue());
+		}
 	}
 	
 	public static boolean canSkipSource(Collection<SourceFilter> filters, ProbEqkSource source, Site site) {
@@ -946,6 +1428,9 @@ public class HazardCurveCalculator implements HazardCurveCalculatorAPI, Paramete
 	@Override
 	public void stopCalc(){
 		sourceIndex = numSources;
+		AtomicInteger sourceCounter = this.sourceCounter;
+		if (sourceCounter != null)
+			sourceCounter.set(numSources);
 	}
 
 	/**
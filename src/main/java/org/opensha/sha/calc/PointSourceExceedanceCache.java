@@ -0,0 +1,377 @@
+package org.opensha.sha.calc;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.faultSurface.FiniteApproxPointSurface;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.faultSurface.utils.PtSrcDistCorr;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Thread-safe cache of precomputed exceedance probability tables for point source ruptures, generalizing the idea of
+ * {@link org.opensha.nshmp2.util.CurveTable} to any {@link ScalarIMR} and any {@link PointSurface} or
+ * {@link FiniteApproxPointSurface} rupture.
+ * <br><br>
+ * All distance metrics for those surfaces are functions of the horizontal distance between the site and the point
+ * location, so exceedance probabilities for a point source rupture only depend on that distance, the rupture
+ * properties (magnitude, rake, depths, dip, width, footwall flag, distance correction, and tectonic regime), the IMR
+ * and its parameters (including site parameters), and the IMLs. Tables are keyed on everything but the distance, and
+ * store exceedance probabilities at log-spaced distances that are filled in on demand. They can be shared between
+ * all sites with the same site parameters, and between threads that each use their own IMR instance.
+ * <br><br>
+ * Interpolation error is controlled by the number of table distances per decade (probabilities are interpolated
+ * linearly in log-distance, so error decreases with the square of this number), and by the minimum table distance
+ * below which exact calculations are always used. Distances beyond the maximum table distance (or the IMR maximum
+ * distance) are also calculated exactly. With the default of 50 points per decade and an NGA-West2 GMM, relative
+ * errors in hazard curves for gridded sources are below 0.1% for sites within the source region, and up to about 1%
+ * in the low probability tails of curves for sites outside of it (see PointSourceExceedanceCacheTest).
+ * <br><br>
+ * IMRs that depend on the absolute location of the rupture or site (rather than just distances and site parameters)
+ * should not be used with this cache.
+ *
+ * @author kevin
+ *
+ */
+public class PointSourceExceedanceCache {
+
+	public static final double POINTS_PER_DECADE_DEFAULT = 50d;
+	public static final double MIN_TABLE_DIST_DEFAULT = 1d;
+	public static final double MAX_TABLE_DIST_DEFAULT = 1000d;
+
+	private final double pointsPerDecade;
+	private final double minTableDist;
+	private final double maxTableDist;
+
+	private final ConcurrentMap<String, ConcurrentMap<RuptureKey, Table>> contextTables;
+
+	private final LongAdder tableCalcs = new LongAdder();
+	private final LongAdder exactCalcs = new LongAdder();
+	private final LongAdder nodeCalcs = new LongAdder();
+
+	public PointSourceExceedanceCache() {
+		this(POINTS_PER_DECADE_DEFAULT, MIN_TABLE_DIST_DEFAULT, MAX_TABLE_DIST_DEFAULT);
+	}
+
+	/**
+	 * @param pointsPerDecade number of table distances per decade, larger values reduce interpolation error
+	 * @param minTableDist horizontal distance below which exceedance probabilities are calculated exactly
+	 * @param maxTableDist horizontal distance above which exceedance probabilities are calculated exactly
+	 */
+	public PointSourceExceedanceCache(double pointsPerDecade, double minTableDist, double maxTableDist) {
+		Preconditions.checkArgument(pointsPerDecade >= 1d, "Must have at least 1 point per decade");
+		Preconditions.checkArgument(minTableDist > 0d && maxTableDist > minTableDist,
+				"Bad table distance range: [%s, %s]", minTableDist, maxTableDist);
+		this.pointsPerDecade = pointsPerDecade;
+		this.minTableDist = minTableDist;
+		this.maxTableDist = maxTableDist;
+		contextTables = new ConcurrentHashMap<>();
+	}
+
+	/**
+	 * @param rupture
+	 * @return true if the given rupture can use exceedance tables, i.e., it has a {@link PointSurface} or
+	 * {@link FiniteApproxPointSurface} surface (subclasses that may compute distances differently are excluded)
+	 */
+	public static boolean isSupported(EqkRupture rupture) {
+		Class<? extends RuptureSurface> surfClass = rupture.getRuptureSurface().getClass();
+		return surfClass == PointSurface.class || surfClass == FiniteApproxPointSurface.class;
+	}
+
+	/**
+	 * Gets the tables for the current state of the given IMR. The IMR must already be fully configured (including
+	 * the site and the intensity measure), and the returned tables should only be used while that remains
+	 * unchanged. Changes to the tectonic region type parameter are allowed, as the source TRT is included in each
+	 * table key.
+	 *
+	 * @param imr
+	 * @param xVals IMLs (in the form passed to {@link ScalarIMR#getExceedProbabilities(DiscretizedFunc)})
+	 * @param maxDist maximum distance set in the IMR (see {@link ScalarIMR#setUserMaxDistance(double)})
+	 * @return tables for the given IMR and IMLs
+	 */
+	public ContextTables getTables(ScalarIMR imr, DiscretizedFunc xVals, double maxDist) {
+		String contextKey = buildContextKey(imr, xVals, maxDist);
+		ConcurrentMap<RuptureKey, Table> tables = contextTables.get(contextKey);
+		if (tables == null) {
+			tables = new ConcurrentHashMap<>();
+			ConcurrentMap<RuptureKey, Table> prev = contextTables.putIfAbsent(contextKey, tables);
+			if (prev != null)
+				tables = prev;
+		}
+		return new ContextTables(tables, xVals, Math.min(maxDist, maxTableDist));
+	}
+
+	private static String buildContextKey(ScalarIMR imr, DiscretizedFunc xVals, double maxDist) {
+		StringBuilder key = new StringBuilder();
+		key.append(imr.getClass().getName()).append("|").append(imr.getShortName());
+		Parameter<?> im = imr.getIntensityMeasure();
+		key.append("|IM:").append(im.getName());
+		for (Parameter<?> param : im.getIndependentParameterList())
+			appendParam(key, param);
+		key.append("|OTHER");
+		for (Parameter<?> param : imr.getOtherParams())
+			appendParam(key, param);
+		key.append("|SITE");
+		for (Parameter<?> param : imr.getSiteParams())
+			appendParam(key, param);
+		key.append("|MAX_DIST:").append(maxDist);
+		key.append("|X");
+		for (int i=0; i<xVals.size(); i++)
+			key.append(",").append(xVals.getX(i));
+		return key.toString();
+	}
+
+	private static void appendParam(StringBuilder key, Parameter<?> param) {
+		key.append("|").append(param.getName()).append("=").append(param.getValue());
+	}
+
+	/**
+	 * Clears all cached tables
+	 */
+	public void clear() {
+		contextTables.clear();
+	}
+
+	/**
+	 * @return total number of tables across all contexts
+	 */
+	public int getNumTables() {
+		int num = 0;
+		for (ConcurrentMap<RuptureKey, Table> tables : contextTables.values())
+			num += tables.size();
+		return num;
+	}
+
+	/**
+	 * @return number of rupture exceedance calculations served by table interpolation
+	 */
+	public long getNumTableCalcs() {
+		return tableCalcs.sum();
+	}
+
+	/**
+	 * @return number of rupture exceedance calculations done exactly because the distance was outside of the table
+	 * distance range
+	 */
+	public long getNumExactCalcs() {
+		return exactCalcs.sum();
+	}
+
+	/**
+	 * @return number of table distances that have been calculated
+	 */
+	public long getNumNodeCalcs() {
+		return nodeCalcs.sum();
+	}
+
+	@Override
+	public String toString() {
+		return "PointSourceExceedanceCache[tables="+getNumTables()+", nodeCalcs="+getNumNodeCalcs()
+				+", tableCalcs="+getNumTableCalcs()+", exactCalcs="+getNumExactCalcs()+"]";
+	}
+
+	/**
+	 * Tables for a single IMR configuration and set of IMLs
+	 */
+	public class ContextTables {
+
+		private final ConcurrentMap<RuptureKey, Table> tables;
+		private final DiscretizedFunc xVals;
+		private final double maxDist;
+		private final int numNodes;
+
+		private ContextTables(ConcurrentMap<RuptureKey, Table> tables, DiscretizedFunc xVals, double maxDist) {
+			this.tables = tables;
+			this.xVals = new LightFixedXFunc(xVals);
+			this.maxDist = maxDist;
+			if (maxDist > minTableDist)
+				numNodes = (int)Math.ceil(Math.log10(maxDist/minTableDist)*pointsPerDecade) + 1;
+			else
+				numNodes = 0;
+		}
+
+		/**
+		 * Calculates exceedance probabilities for the given rupture, which must be supported (see
+		 * {@link PointSourceExceedanceCache#isSupported(EqkRupture)}). The rupture in the IMR is not necessarily
+		 * set to this rupture after this call.
+		 *
+		 * @param rupture
+		 * @param trt tectonic region type of the source
+		 * @param site site, which must already be set in the IMR
+		 * @param imr
+		 * @param condProbFunc function in which to store exceedance probabilities
+		 * @return condProbFunc with exceedance probabilities set
+		 */
+		public DiscretizedFunc getExceedProbabilities(ProbEqkRupture rupture, TectonicRegionType trt, Site site,
+				ScalarIMR imr, DiscretizedFunc condProbFunc) {
+			PointSurface surf = (PointSurface)rupture.getRuptureSurface();
+			double dist = LocationUtils.horzDistanceFast(surf.getLocation(), site.getLocation());
+			if (numNodes < 2 || dist < minTableDist || dist > maxDist) {
+				exactCalcs.increment();
+				imr.setEqkRupture(rupture);
+				return imr.getExceedProbabilities(condProbFunc);
+			}
+			tableCalcs.increment();
+			RuptureKey key = new RuptureKey(rupture, surf, trt);
+			Table table = tables.get(key);
+			if (table == null) {
+				table = new Table(numNodes);
+				Table prev = tables.putIfAbsent(key, table);
+				if (prev != null)
+					table = prev;
+			}
+
+			double nodeLoc = Math.log10(dist/minTableDist)*pointsPerDecade;
+			int index = (int)nodeLoc;
+			if (index >= numNodes-1)
+				index = numNodes-2;
+			double fract = nodeLoc - index;
+			double[] lower = getNode(table, index, rupture, surf, site, imr);
+			double[] upper = getNode(table, index+1, rupture, surf, site, imr);
+			for (int i=0; i<lower.length; i++)
+				condProbFunc.set(i, lower[i] + fract*(upper[i] - lower[i]));
+			return condProbFunc;
+		}
+
+		private double[] getNode(Table table, int index, ProbEqkRupture rupture, PointSurface surf, Site site,
+				ScalarIMR imr) {
+			double[] probs = table.nodes.get(index);
+			if (probs != null)
+				return probs;
+			// calculate it for a rupture moved due north of the site such that it is at the node distance
+			double nodeDist = minTableDist*Math.pow(10d, index/pointsPerDecade);
+			Location siteLoc = site.getLocation();
+			Location movedLoc = LocationUtils.location(siteLoc, 0d, nodeDist);
+			PointSurface movedSurf = (PointSurface)surf.copyShallow();
+			movedSurf.setLocation(new Location(movedLoc.getLatitude(), movedLoc.getLongitude(),
+					surf.getLocation().getDepth()));
+			Location hypo = rupture.getHypocenterLocation();
+			if (hypo != null)
+				hypo = new Location(movedLoc.getLatitude(), movedLoc.getLongitude(), hypo.getDepth());
+			ProbEqkRupture movedRup = new ProbEqkRupture(rupture.getMag(), rupture.getAveRake(),
+					rupture.getProbability(), movedSurf, hypo);
+			imr.setEqkRupture(movedRup);
+			DiscretizedFunc func = imr.getExceedProbabilities(new LightFixedXFunc(xVals));
+			probs = new double[func.size()];
+			for (int i=0; i<probs.length; i++)
+				probs[i] = func.getY(i);
+			nodeCalcs.increment();
+			// if another thread beat us to it, use theirs (they are identical)
+			if (!table.nodes.compareAndSet(index, null, probs))
+				probs = table.nodes.get(index);
+			return probs;
+		}
+	}
+
+	private static class Table {
+		private final AtomicReferenceArray<double[]> nodes;
+
+		private Table(int numNodes) {
+			nodes = new AtomicReferenceArray<>(numNodes);
+		}
+	}
+
+	/**
+	 * Everything about a point source rupture that can influence exceedance probabilities other than the distance
+	 */
+	private static final class RuptureKey {
+		private final Class<?> surfClass;
+		private final double mag;
+		private final double rake;
+		private final double hypoDepth;
+		private final double depth;
+		private final double zTop;
+		private final double zBot;
+		private final double dip;
+		private final double width;
+		private final double length;
+		private final boolean footwall;
+		private final PtSrcDistCorr.Type corrType;
+		private final double corrMag;
+		private final TectonicRegionType trt;
+		private final int hashCode;
+
+		private RuptureKey(ProbEqkRupture rupture, PointSurface surf, TectonicRegionType trt) {
+			this.surfClass = surf.getClass();
+			this.mag = rupture.getMag();
+			this.rake = rupture.getAveRake();
+			Location hypo = rupture.getHypocenterLocation();
+			this.hypoDepth = hypo == null ? Double.NaN : hypo.getDepth();
+			this.depth = surf.getLocation().getDepth();
+			this.zTop = surf.getAveRupTopDepth();
+			this.dip = surf.getAveDip();
+			this.width = surf.getAveWidth();
+			this.length = surf.getAveLength();
+			if (surf instanceof FiniteApproxPointSurface) {
+				FiniteApproxPointSurface finite = (FiniteApproxPointSurface)surf;
+				this.zBot = finite.getLowerDepth();
+				this.footwall = finite.isOnFootwall();
+			} else {
+				this.zBot = Double.NaN;
+				this.footwall = false;
+			}
+			this.corrType = surf.getDistCorrType();
+			this.corrMag = surf.getDistCorrMag();
+			this.trt = trt;
+
+			int result = surfClass.hashCode();
+			result = 31*result + Double.hashCode(mag);
+			result = 31*result + Double.hashCode(rake);
+			result = 31*result + Double.hashCode(hypoDepth);
+			result = 31*result + Double.hashCode(depth);
+			result = 31*result + Double.hashCode(zTop);
+			result = 31*result + Double.hashCode(zBot);
+			result = 31*result + Double.hashCode(dip);
+			result = 31*result + Double.hashCode(width);
+			result = 31*result + Double.hashCode(length);
+			result = 31*result + Boolean.hashCode(footwall);
+			result = 31*result + (corrType == null ? 0 : corrType.hashCode());
+			result = 31*result + Double.hashCode(corrMag);
+			result = 31*result + (trt == null ? 0 : trt.hashCode());
+			this.hashCode = result;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof RuptureKey))
+				return false;
+			RuptureKey o = (RuptureKey)obj;
+			return hashCode == o.hashCode && surfClass == o.surfClass
+					&& Double.compare(mag, o.mag) == 0
+					&& Double.compare(rake, o.rake) == 0
+					&& Double.compare(hypoDepth, o.hypoDepth) == 0
+					&& Double.compare(depth, o.depth) == 0
+					&& Double.compare(zTop, o.zTop) == 0
+					&& Double.compare(zBot, o.zBot) == 0
+					&& Double.compare(dip, o.dip) == 0
+					&& Double.compare(width, o.width) == 0
+					&& Double.compare(length, o.length) == 0
+					&& footwall == o.footwall
+					&& corrType == o.corrType
+					&& Double.compare(corrMag, o.corrMag) == 0
+					&& trt == o.trt;
+		}
+	}
+
+}
@@ -0,0 +1,124 @@
+package org.opensha.sha.calc;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Cheap, conservative estimates of the conditional exceedance probabilities of a rupture for a single IMR and site,
+ * used by {@link HazardCurveCalculator} to skip ruptures with negligible contributions (see
+ * {@link HazardCurveCalculator#setRuptureSkipTolerance(double)}).
+ * <br><br>
+ * Estimates are tabulated in magnitude, upper depth, and Joyner-Boore distance bins, and are calculated on demand for
+ * a proxy rupture at the upper magnitude edge and the lower depth and distance edges of the bin: a vertical point
+ * rupture, taking the maximum across strike-slip, reverse, and normal mechanisms. That would be an upper bound for
+ * GMMs in which exceedance probabilities increase with magnitude and decrease with distance, but a point rupture can't
+ * capture everything (e.g., hanging wall terms or rupture distances for dipping finite ruptures). Proxy probabilities
+ * are multiplied by a heuristic margin factor of {@value #MARGIN_FACTOR} (capped at 1) to cover typical differences,
+ * but these are estimates, not strict bounds: they can be exceeded, most often far in the tails of hazard curves.
+ * <br><br>
+ * Instances are not thread safe, and are only valid while the site and IMR parameters are unchanged.
+ *
+ * @author kevin
+ *
+ */
+class RuptureExceedanceEstimates {
+
+	static final double MAG_BIN_WIDTH = 0.1;
+	static final double DIST_BINS_PER_DECADE = 10d;
+	static final double MIN_BIN_DIST = 1d;
+	static final double DEPTH_BIN_WIDTH = 1d;
+	static final double MARGIN_FACTOR = 2d;
+
+	private static final double[] RAKES = { 0d, 90d, -90d };
+	// bin indexes are offset so that they are always positive
+	private static final int DIST_BIN_OFFSET = 1;
+	private static final int MAX_DIST_BINS = 100;
+	private static final int MAX_MAG_BINS = 100;
+	private static final int MAX_DEPTH_BINS = 50;
+
+	private final ScalarIMR imr;
+	private final Site site;
+	private final DiscretizedFunc xVals;
+
+	private final Map<Integer, double[]> estimates = new HashMap<>();
+	// consecutive ruptures are often in the same bin
+	private int prevKey = -1;
+	private double[] prevEstimate;
+
+	/**
+	 * @param imr IMR, which must already have the site set
+	 * @param site
+	 * @param xVals IMLs
+	 */
+	RuptureExceedanceEstimates(ScalarIMR imr, Site site, DiscretizedFunc xVals) {
+		this.imr = imr;
+		this.site = site;
+		this.xVals = new LightFixedXFunc(xVals);
+	}
+
+	/**
+	 * Conservative estimate of the conditional exceedance probabilities for the given rupture. This changes the
+	 * rupture in the IMR if a new estimate needs to be calculated.
+	 *
+	 * @param rupture
+	 * @param trt tectonic region type currently set in the IMR (if any)
+	 * @return estimated exceedance probabilities at each IML, which must not be modified
+	 */
+	double[] getEstimate(ProbEqkRupture rupture, TectonicRegionType trt) {
+		double dist = rupture.getRuptureSurface().getDistanceJB(site.getLocation());
+		int distBin;
+		if (dist < MIN_BIN_DIST)
+			distBin = 0;
+		else
+			distBin = Integer.min(MAX_DIST_BINS-1,
+					DIST_BIN_OFFSET + (int)Math.floor(Math.log10(dist/MIN_BIN_DIST)*DIST_BINS_PER_DECADE));
+		int magBin = Integer.max(0, Integer.min(MAX_MAG_BINS-1, (int)Math.floor(rupture.getMag()/MAG_BIN_WIDTH)));
+		int depthBin = Integer.max(0, Integer.min(MAX_DEPTH_BINS-1,
+				(int)Math.floor(rupture.getRuptureSurface().getAveRupTopDepth()/DEPTH_BIN_WIDTH)));
+		int trtIndex = trt == null ? 0 : trt.ordinal()+1;
+		int key = ((trtIndex*MAX_MAG_BINS + magBin)*MAX_DEPTH_BINS + depthBin)*MAX_DIST_BINS + distBin;
+		if (key == prevKey)
+			return prevEstimate;
+		double[] estimate = estimates.get(key);
+		if (estimate == null) {
+			double binDist = distBin == 0 ? 0d : MIN_BIN_DIST*Math.pow(10d, (distBin-DIST_BIN_OFFSET)/DIST_BINS_PER_DECADE);
+			double binMag = (magBin+1)*MAG_BIN_WIDTH;
+			estimate = calcEstimate(binMag, binDist, depthBin*DEPTH_BIN_WIDTH);
+			estimates.put(key, estimate);
+		}
+		prevKey = key;
+		prevEstimate = estimate;
+		return estimate;
+	}
+
+	private double[] calcEstimate(double mag, double dist, double depth) {
+		// vertical point rupture due north of the site
+		Location siteLoc = site.getLocation();
+		Location loc = dist > 0d ? LocationUtils.location(siteLoc, 0d, dist) : siteLoc;
+		PointSurface surf = new PointSurface(new Location(loc.getLatitude(), loc.getLongitude(), depth));
+		surf.setAveDip(90d);
+		double[] estimate = new double[xVals.size()];
+		DiscretizedFunc func = new LightFixedXFunc(xVals);
+		for (double rake : RAKES) {
+			ProbEqkRupture rup = new ProbEqkRupture(mag, rake, 0d, surf, null);
+			imr.setEqkRupture(rup);
+			func = imr.getExceedProbabilities(func);
+			for (int i=0; i<estimate.length; i++)
+				estimate[i] = Math.max(estimate[i], func.getY(i));
+		}
+		for (int i=0; i<estimate.length; i++)
+			estimate[i] = Math.min(1d, estimate[i]*MARGIN_FACTOR);
+		return estimate;
+	}
+
+}
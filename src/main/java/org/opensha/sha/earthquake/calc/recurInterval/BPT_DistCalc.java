@@ -128,7 +128,7 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 	
 	
 	/**
-	 * This is a version of the parent method getCondProb(*) that avoids numerical artifacts
+	 * This is a version of the parent method calcCondProb(*) that avoids numerical artifacts
 	 * at high timeSinceLast (where 1-cdf gets too close to 0, and we therefore have division by 
 	 * zero).
 	 * 
@@ -159,8 +159,7 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 	 * @param duration
 	 * @return
 	 */
-	public double getCondProb(double timeSinceLast, double duration) {
-		this.duration=duration;
+	public double calcCondProb(double timeSinceLast, double duration) {
 		if(!upToDate) computeDistributions();
 		
 		double result=Double.NaN;
@@ -168,12 +167,12 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 		if(duration/mean >= MIN_NORM_DURATION*0.9999) {	// the last bit is to avoid roundoff errors that cause infinite loop
 //			System.out.println("good");
 			if(timeSinceLast+duration <= safeTimeSinceLast) {
-				result = super.getCondProb(timeSinceLast, duration);	// use super method
+				result = super.calcCondProb(timeSinceLast, duration);	// use super method
 			}
 			else {
 				if(safeTimeSinceLast-duration*1.0001<0)
 					return 1.0; // very long duration
-				double condProbAtSafeTime = super.getCondProb(safeTimeSinceLast-duration*1.0001, duration);	// 1.0001 is needed because safeTimeSinceLast-duration+duration != safeTimeSinceLast inside this method
+				double condProbAtSafeTime = super.calcCondProb(safeTimeSinceLast-duration*1.0001, duration);	// 1.0001 is needed because safeTimeSinceLast-duration+duration != safeTimeSinceLast inside this method
 				double condProbAtInfTime = 1-Math.exp(-duration/(aperiodicity*aperiodicity*mean*2)); // based on Equation 24 of Matthews et al. (2002).
 				if(timeSinceLast+duration>cdf.getMaxX())
 					return condProbAtInfTime;
@@ -186,9 +185,8 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 		}
 		else {
 //			System.out.println("bad");
-			double condProbForMinNormDur = getCondProb(timeSinceLast, MIN_NORM_DURATION*mean); // this will temporarily override this.duration, so we need to fix this below
+			double condProbForMinNormDur = calcCondProb(timeSinceLast, MIN_NORM_DURATION*mean);
 			result = condProbForMinNormDur*duration/(MIN_NORM_DURATION*mean);
-			this.duration=duration;
 		}
 		
 		 return result;
@@ -226,15 +224,29 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 	 * @return
 	 */
 	public double getCondProbForUnknownTimeSinceLastEvent() {
+		return getCondProbForUnknownTimeSinceLastEvent(duration, histOpenInterval);
+	}
+	
+	/**
+	 * This is the same as {@link #getCondProbForUnknownTimeSinceLastEvent()}, but for the given duration and
+	 * historic open interval rather than those set in this calculator (which are not modified).
+	 * 
+	 * This is safe to call concurrently from multiple threads once {@link #precomputeDistributions()} has
+	 * been called.
+	 * @param duration
+	 * @param histOpenInterval
+	 * @return
+	 */
+	public double getCondProbForUnknownTimeSinceLastEvent(double duration, double histOpenInterval) {
 		if(!upToDate) computeDistributions();
 
-		double condProbAtSafeTime = this.getCondProb(safeTimeSinceLast,duration);
+		double condProbAtSafeTime = calcCondProb(safeTimeSinceLast,duration);
 		if(histOpenInterval>=safeTimeSinceLast) {
 			return condProbAtSafeTime;
 		}
 		
 		// if first and last are same, don't need to weight average any
-		double diffFromFirst = Math.abs((condProbAtSafeTime-getCondProb(histOpenInterval,duration))/condProbAtSafeTime);
+		double diffFromFirst = Math.abs((condProbAtSafeTime-calcCondProb(histOpenInterval,duration))/condProbAtSafeTime);
 		if(diffFromFirst < 1e-4)  {
 			return condProbAtSafeTime;
 		}
@@ -267,7 +279,10 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 		else {
 			result=0;
 			double normDenom=0;
-			EvenlyDiscretizedFunc condProbFunc = getCondProbFunc();
+			// same as getCondProbFunc(), but for the given duration
+			if(duration==0)
+				throw new RuntimeException("duration has not been set");
+			EvenlyDiscretizedFunc condProbFunc = new EvenlyDiscretizedFunc(0.0, numPoints - (int)(duration/deltaX+1), deltaX);
 			int firstIndex = condProbFunc.getClosestXIndex(histOpenInterval);
 			int indexOfSafeTime = condProbFunc.getClosestXIndex(safeTimeSinceLast);	// need to use closest because condProbFunc has fewer points than CDF (so safeTimeSinceLast can exceed the x-axis range)
 	
@@ -277,7 +292,7 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 				if(i==firstIndex)
 					probOfTimeSince *= ((cdf.getX(i)+deltaX/2.0) - histOpenInterval)/deltaX;	// fraction of first bin
 				normDenom+=probOfTimeSince; 
-				result+= condProbFunc.getY(i)*probOfTimeSince;
+				result+= calcCondProb(condProbFunc.getX(i), duration)*probOfTimeSince;
 			}
 			result /= normDenom;	// normalize properly
 			
@@ -358,7 +373,7 @@ public final class BPT_DistCalc extends EqkProbDistCalc implements ParameterChan
 //						double safeProb = safeCondProbFunc.getY(i);
 //						double prob = condProbFunc.getY(i);
 						double safeProb = this.getCondProb(timeSince, dur);
-						double prob = super.getCondProb(timeSince, dur);
+						double prob = super.calcCondProb(timeSince, dur);
 						double fractDiff;
 						if(prob<1e-16 && safeProb<1e-16) {
 							fractDiff=0.0;
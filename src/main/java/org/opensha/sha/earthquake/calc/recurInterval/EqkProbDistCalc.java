@@ -175,6 +175,22 @@ public abstract class EqkProbDistCalc implements ParameterChangeListener {
 		this.duration = duration;
 		if(!upToDate) computeDistributions();
 		
+		return calcCondProb(timeSinceLast, duration);
+	}
+	
+	/**
+	 * This computes the probability of occurrence over the given duration conditioned on timeSinceLast, 
+	 * as in {@link #getCondProb(double, double)}, but without setting the duration of this calculator.
+	 * 
+	 * This is safe to call concurrently from multiple threads once distributions have been computed
+	 * (see {@link #precomputeDistributions()}).
+	 * @param timeSinceLast
+	 * @param duration
+	 * @return
+	 */
+	public double calcCondProb(double timeSinceLast, double duration) {
+		if(!upToDate) computeDistributions();
+		
 		boolean interpolate = this.interpolate;
 		int pt1 = 0, pt2 = 0;
 		if (!interpolate) {
@@ -375,6 +391,18 @@ public abstract class EqkProbDistCalc implements ParameterChangeListener {
 	}
 	
 	
+	/**
+	 * This computes the distributions and integrated CDFs if they are not already up to date. Call this 
+	 * before using a calculator from multiple threads, after which the methods that take duration (and 
+	 * historic open interval) as arguments don't modify this calculator.
+	 */
+	public synchronized void precomputeDistributions() {
+		if(!upToDate) computeDistributions();
+		if(integratedCDF==null) 
+			makeIntegratedCDFs();
+	}
+	
+	
 	protected void makeIntegratedCDFs() {
 		integratedCDF = new EvenlyDiscretizedFunc(0,numPoints,deltaX);
 		integratedOneMinusCDF = new EvenlyDiscretizedFunc(0,numPoints,deltaX);
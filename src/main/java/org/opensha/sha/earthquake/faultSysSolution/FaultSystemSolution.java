@@ -331,7 +331,10 @@ SubModule<ModuleArchive<OpenSHA_Module>> {
 				} else if (input.hasEntry(entryPrefix+GridSourceList.ARCHIVE_GRID_SOURCES_FILE_NAME)) {
 					try {
 						System.out.println("Trying to load unlisted GridSourceList module");
-						archive.loadUnlistedModule(GridSourceList.Precomputed.class, entryPrefix, this);
+						if (input.hasEntry(entryPrefix+GridSourceList.ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME))
+							archive.loadUnlistedModule(GridSourceList.Columnar.class, entryPrefix, this);
+						else
+							archive.loadUnlistedModule(GridSourceList.Precomputed.class, entryPrefix, this);
 					} catch (Exception e) {
 						e.printStackTrace();
 					}
@@ -5,6 +5,7 @@ import static org.opensha.sha.earthquake.param.IncludeBackgroundOption.ONLY;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.BitSet;
 import java.util.EventObject;
 import java.util.List;
 import java.util.Optional;
@@ -108,6 +109,11 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 	
 	protected List<ProbEqkSource> faultSourceList;
 	
+	// if true, fault system source probabilities will be updated in place when possible, rather than rebuilding sources
+	protected boolean updateSourcesInPlace = false;
+	// fault system ruptures whose probabilities need to be updated at the next forecast update (null if none)
+	protected BitSet fltSysRupsForProbUpdate;
+	
 	public BaseFaultSystemSolutionERF() {
 		this(true);
 	}
@@ -234,6 +240,45 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 				|| useRupMFDsChanged;
 	}
 	
+	/**
+	 * @return true if fault system source ruptures (surfaces, magnitudes, or rupture counts) need to be rebuilt. If
+	 * {@link #shouldRebuildFaultSystemSources()} returns true but this returns false, then only rates or probabilities
+	 * have changed and sources can be updated in place (if {@link #isUpdateSourcesInPlace()}). Subclasses that add
+	 * changes which affect more than rupture rates to {@link #shouldRebuildFaultSystemSources()} must also add them here.
+	 */
+	protected boolean shouldRebuildFaultSystemSourceRuptures() {
+		return faultSysSolutionChanged || faultGridSpacingChanged || quadSurfacesChanged
+				|| aseisReducesAreaChanged || useProxyRupturesChanged || useRupMFDsChanged;
+	}
+	
+	/**
+	 * Flags the given fault system rupture such that its source probabilities will be recomputed at the next call to
+	 * {@link #updateForecast()}, without rebuilding any other sources. Used by subclasses when inputs to the rate gain
+	 * for specific ruptures change (e.g., the date of last event on a section).
+	 * 
+	 * @param fltSysRupIndex
+	 */
+	protected void markFaultSysRupForProbabilityUpdate(int fltSysRupIndex) {
+		if (fltSysRupsForProbUpdate == null)
+			fltSysRupsForProbUpdate = new BitSet();
+		fltSysRupsForProbUpdate.set(fltSysRupIndex);
+	}
+	
+	/**
+	 * Sets whether or not fault system source probabilities can be updated in place when only rate gains or the
+	 * duration change (e.g., in time-dependent sweeps over start times), reusing existing source and rupture objects.
+	 * If false, all fault system sources will be rebuilt whenever anything changes. Disabled by default.
+	 * 
+	 * @param updateSourcesInPlace
+	 */
+	public void setUpdateSourcesInPlace(boolean updateSourcesInPlace) {
+		this.updateSourcesInPlace = updateSourcesInPlace;
+	}
+	
+	public boolean isUpdateSourcesInPlace() {
+		return updateSourcesInPlace;
+	}
+	
 	/**
 	 * Can be overridden to update data needed for building other (gridded) sources
 	 */
@@ -276,10 +321,26 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 		}
 
 		// now make the list of fault-system sources if any of the following have changed
-		if (shouldRebuildFaultSystemSources()) {
+		boolean rebuildFaultSources = shouldRebuildFaultSystemSources();
+		boolean updateSomeProbs = fltSysRupsForProbUpdate != null && !fltSysRupsForProbUpdate.isEmpty();
+		boolean inPlace = updateSourcesInPlace && faultSourceList != null && !shouldRebuildFaultSystemSourceRuptures();
+		if (inPlace && rebuildFaultSources) {
+			// only rates/probabilities changed, update existing sources
+			updateHookBeforeFaultSourceBuild();
+			for (int i=0; i<numNonZeroFaultSystemSources; i++)
+				numFaultRupsChanged |= updateFaultSystemSourceProbabilities(i);
+		} else if (inPlace && updateSomeProbs) {
+			// only rates/probabilities changed for specific ruptures, update those sources
+			updateHookBeforeFaultSourceBuild();
+			for (int r=fltSysRupsForProbUpdate.nextSetBit(0); r>=0; r=fltSysRupsForProbUpdate.nextSetBit(r+1))
+				if (r < srcIndexForFltSysRup.length && srcIndexForFltSysRup[r] >= 0)
+					numFaultRupsChanged |= updateFaultSystemSourceProbabilities(srcIndexForFltSysRup[r]);
+		} else if (rebuildFaultSources || updateSomeProbs) {
 			updateHookBeforeFaultSourceBuild();
-			makeAllFaultSystemSources();	// overrides all fault-based source objects; created even if not fault sources aren't wanted
+			// overrides all fault-based source objects; created even if not fault sources aren't wanted
+			numFaultRupsChanged |= makeAllFaultSystemSources();
 		}
+		fltSysRupsForProbUpdate = null;
 		
 		// update the following ERF rup-related fields: totNumRups, totNumRupsFromFaultSystem, nthRupIndicesForSource, srcIndexForNthRup[], rupIndexForNthRup[], fltSysRupIndexForNthRup[]
 		if(numOtherRupsChanged || numFaultRupsChanged) {
@@ -458,7 +519,10 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 		}
 	}
 	
-	protected DoubleBinaryOperator getGridSourceAftershockFilter() {
+	/**
+	 * @return aftershock filter applied to gridded source rates, or null if none
+	 */
+	public DoubleBinaryOperator getGridSourceAftershockFilter() {
 		return null;
 	}
 	
@@ -524,11 +588,71 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 	/**
 	 * This makes all the fault-system sources and put them into faultSourceList
 	 */
-	private void makeAllFaultSystemSources() {
+	/**
+	 * @return true if the number of ruptures in any source changed (e.g., due to changes in rupture MFDs)
+	 */
+	private boolean makeAllFaultSystemSources() {
+		List<ProbEqkSource> prevSourceList = faultSourceList;
+		boolean numRupsChanged = prevSourceList == null || prevSourceList.size() != numNonZeroFaultSystemSources;
 		faultSourceList = new ArrayList<>(numNonZeroFaultSystemSources);
 		for (int i=0; i<numNonZeroFaultSystemSources; i++) {
-			faultSourceList.add(makeFaultSystemSource(i));
+			ProbEqkSource src = makeFaultSystemSource(i);
+			if (!numRupsChanged && src.getNumRuptures() != prevSourceList.get(i).getNumRuptures())
+				numRupsChanged = true;
+			faultSourceList.add(src);
+		}
+		return numRupsChanged;
+	}
+	
+	/**
+	 * Updates probabilities of the given existing fault system source for the current rate gain and duration. The
+	 * source and rupture objects are updated in place when possible, otherwise the source is rebuilt (reusing cached
+	 * rupture surfaces).
+	 * 
+	 * @param iSource - source index in ERF
+	 * @return true if the source was rebuilt with a different number of ruptures (e.g., if a rupture MFD has
+	 * different non-zero bins), in which case nth rupture arrays must be updated
+	 */
+	protected boolean updateFaultSystemSourceProbabilities(int iSource) {
+		ProbEqkSource src = faultSourceList.get(iSource);
+		int fltSystRupIndex = fltSysRupIndexForSource[iSource];
+		
+		double duration = timeSpan.getDuration();
+		double rateGain = getFaultSysRupRateGain(fltSystRupIndex);
+		boolean isPoisson = isFaultSysRupPoisson(fltSystRupIndex);
+		
+		if (src.getClass() == FaultRuptureSource.class && src.isSourcePoissonian() == isPoisson) {
+			Preconditions.checkState(isRateGainValid(rateGain, fltSystRupIndex, duration),
+					"Bad probGain=%s for rupIndex=%s, duration=%s", rateGain, fltSystRupIndex, duration);
+			DiscretizedFunc rupMFD = getFaultSysRupMFD(fltSystRupIndex);
+			if (rupMFD == null || rupMFD.size() < 2) {
+				// simple case, single rupture
+				if (src.getNumRuptures() == 1) {
+					double annualRate = rateGain*longTermRateOfFltSysRupInERF[fltSystRupIndex];
+					src.getRupture(0).setProbability(calcFaultSysRupProb(annualRate, duration, isPoisson));
+					return false;
+				}
+			} else {
+				try {
+					((FaultRuptureSource)src).updateProbabilities(rupMFD, rateGain, duration);
+					return false;
+				} catch (IllegalStateException e) {
+					// MFD has different non-zero bins than the existing ruptures, rebuild it below
+				}
+			}
 		}
+		
+		// can't update in place, rebuild it
+		ProbEqkSource newSrc = makeFaultSystemSource(iSource);
+		faultSourceList.set(iSource, newSrc);
+		return newSrc.getNumRuptures() != src.getNumRuptures();
+	}
+	
+	private static double calcFaultSysRupProb(double annualRate, double duration, boolean isPoisson) {
+		if (isPoisson)
+			return 1d-Math.exp(-annualRate*duration);
+		// cannot exceed 1
+		return Math.min(1d, annualRate*duration);
 	}
 	
 	/**
@@ -659,12 +783,7 @@ public class BaseFaultSystemSolutionERF extends AbstractNthRupERF {
 				src = new ProxyRupsFaultRuptureSource(origSects, proxyRupSects,
 						meanMag, annualRate, rake, duration, isPoisson, faultGridSpacing, aseisReducesArea);
 			} else {
-				double prob;
-				if (isPoisson)
-					prob = 1d-Math.exp(-annualRate*duration);
-				else
-					// cannot exceed 1
-					prob = Math.min(1d, annualRate*duration);
+				double prob = calcFaultSysRupProb(annualRate, duration, isPoisson);
 				src = new FaultRuptureSource(meanMag, 
 						rupSet.getSurfaceForRupture(fltSystRupIndex, faultGridSpacing, aseisReducesArea), 
 						rake, prob, isPoisson);
@@ -12,7 +12,6 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
-import java.io.StringWriter;
 import java.text.DecimalFormat;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
@@ -75,6 +74,7 @@ import org.opensha.sha.util.TectonicRegionType;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
 import com.google.common.collect.HashBasedTable;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Table;
 import com.google.common.io.Files;
 import com.google.gson.Gson;
@@ -222,6 +222,8 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				// make sure this isn't common to both trees
 				combLevels.add(level);
 		}
+		// immutable so that it is shared by all combined branches rather than copied for each
+		combLevels = ImmutableList.copyOf(combLevels);
 		
 		System.out.println("Combined levels:");
 		for (LogicTreeLevel<?> level : combLevels)
@@ -367,10 +369,6 @@ public abstract class AbstractLogicTreeHazardCombiner {
 		
 		int printMod = 100;
 		
-		Map<LogicTreeBranch<?>, Integer> innerBranchIndexes = new HashMap<>();
-		for (int i=0; i<innerTree.size(); i++)
-			innerBranchIndexes.put(innerTree.getBranch(i), i);
-		
 		for (int o=0; o<outerTree.size(); o++) {
 			LogicTreeBranch<?> outerBranch = outerTree.getBranch(o);
 			LogicTree<?> matchingInnerTree;
@@ -453,7 +451,9 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				combBranchesOuterPortion.add(outerBranch);
 				combBranchesInnerPortion.add(innerBranch);
 				combBranchesOuterIndexes.add(o);
-				combBranchesInnerIndexes.add(innerBranchIndexes.get(innerBranch));
+				int innerIndex = innerTree.indexOf(innerBranch);
+				Preconditions.checkState(innerIndex >= 0, "Inner branch not found: %s", innerBranch);
+				combBranchesInnerIndexes.add(innerIndex);
 				
 				int count = combBranches.size();
 				if (count % printMod == 0) {
@@ -719,6 +719,8 @@ public abstract class AbstractLogicTreeHazardCombiner {
 		String outputHazardSubDirName = null;
 		MapCurveLoader outerHazardMapLoader = this.outerHazardMapLoader;
 		MapCurveLoader innerHazardMapLoader = this.innerHazardMapLoader;
+		final String[] mapLocPrefixes;
+		final double[] rpProbLevels;
 		if (doHazardMaps) {
 			outerHazardSubDirName = getHazardDirName(gridReg.getSpacing(), outerBGOp);
 			innerHazardSubDirName = getHazardDirName(gridReg.getSpacing(), innerBGOp);
@@ -737,7 +739,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				for (int b=0; b<innerTree.size(); b++) {
 					LogicTreeBranch<?> innerBranch = innerTree.getBranch(b);
 					System.out.println("Pre-loading curves for inner branch "+b+"/"+innerTree.size()+": "+innerBranch);
-					innerCurvesMap.put(innerBranch, curveLoadFuture(innerHazardMapLoader, innerHazardSubDirName, innerBranch, periods).join());
+					innerCurvesMap.put(innerBranch, curveLoadFuture(innerHazardMapLoader, innerHazardSubDirName, innerBranch, periods).join().pack());
 				}
 			}
 			
@@ -757,6 +759,12 @@ public abstract class AbstractLogicTreeHazardCombiner {
 			for (int p=0; p<periods.length; p++)
 				meanCurves[p] = new LogicTreeCurveAverager(gridReg.getNodeList(), variableNodes, nodeLevels);
 			
+			// location portion of each map line, identical for every map
+			mapLocPrefixes = buildMapLocPrefixes(gridReg);
+			rpProbLevels = new double[rps.length];
+			for (int r=0; r<rps.length; r++)
+				rpProbLevels[r] = rps[r].oneYearProb;
+			
 			if (!averageAcrossLevels.isEmpty()) {
 				if (origInnerTree != innerTree)
 					innerHazardMapLoader = new AveragedMapCurveLoader(origInnerTree, innerHazardMapLoader, curveIOExec);
@@ -766,6 +774,8 @@ public abstract class AbstractLogicTreeHazardCombiner {
 			}
 		} else {
 			hazardOutDir = null;
+			mapLocPrefixes = null;
+			rpProbLevels = null;
 		}
 		int writeThreads = Integer.max(2, Integer.min(16, FaultSysTools.defaultNumThreads())); // at least 2, no more than 16
 		ArchiveOutput hazardOutZip = doHazardMaps ? new ArchiveOutput.ParallelZipFileOutput(hazardZipOutFinal, writeThreads, false) : null;
@@ -903,7 +913,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				int outerIndex = this.combBranchesOuterIndexes.get(i);
 				outerCurveLoadIndex = i;
 				if (outerCurveLoadIndexes.isEmpty() || outerCurveLoadIndexes.getLast() != outerIndex) {
-					outerCurveLoadFutures.add(curveLoadFuture(outerHazardMapLoader, outerHazardSubDirName,
+					outerCurveLoadFutures.add(packedCurveLoadFuture(outerHazardMapLoader, outerHazardSubDirName,
 							outerTree.getBranch(outerIndex), periods, curveIOExec));
 					outerCurveLoadIndexes.add(outerIndex);
 					System.out.println("Adding outer read future for "+outerIndex);
@@ -914,7 +924,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				innerCurveLoadFutures = new ArrayDeque<>(readDequeSize);
 				innerCurveLoadCombinedIndexes = new ArrayDeque<>(readDequeSize);
 				for (int i=0; i<readDequeSize && i<combTree.size(); i++) {
-					innerCurveLoadFutures.add(curveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
+					innerCurveLoadFutures.add(packedCurveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
 							combBranchesInnerPortion.get(i), periods, curveIOExec));
 					innerCurveLoadCombinedIndexes.add(i);
 				}
@@ -925,7 +935,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 			nextOuterSolLoadFuture = solLoadFuture(outerSLT, combBranchesOuterPortion.get(0));
 		
 		LogicTreeBranch<?> prevOuter = null;
-		DiscretizedFunc[][] prevOuterCurves = null;
+		PackedHazardCurves[] prevOuterCurves = null;
 		FaultSystemSolution prevOuterSol = null;
 		
 		CompletableFuture<Void> combineSLTFuture = null;
@@ -935,7 +945,11 @@ public abstract class AbstractLogicTreeHazardCombiner {
 		int numOutersProcessed = 0;
 
 		List<Future<?>> curveWriteFutures = null;
-		ExecutorService exec = Executors.newFixedThreadPool(FaultSysTools.defaultNumThreads());
+		int combineThreads = FaultSysTools.defaultNumThreads();
+		ExecutorService exec = Executors.newFixedThreadPool(combineThreads);
+		// several blocks of sites per thread when combining map curves
+		int combineBlockSize = gridReg == null ? 0 :
+			Integer.max(MIN_COMBINE_BLOCK_SIZE, (int)Math.ceil(gridReg.getNodeCount()/(4d*combineThreads)));
 		
 		Stopwatch watch = Stopwatch.createStarted();
 		
@@ -978,7 +992,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 						node, combBranch);
 			}
 			
-			DiscretizedFunc[][] outerCurves = null;
+			PackedHazardCurves[] outerCurves = null;
 			FaultSystemSolution outerSol = null;
 			
 			if (prevOuter == null || outerBranch != prevOuter) {
@@ -995,7 +1009,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 						Preconditions.checkState(outerBranch.equals(outerBranchCurves.branch),
 								"Curve load mismatch for outer %s; expected %s, was %s",
 								outerIndex, outerBranch, outerBranchCurves.branch);
-						outerCurves = outerBranchCurves.curves;
+						outerCurves = outerBranchCurves.packed;
 					} catch (InterruptedException | ExecutionException e) {
 						throw ExceptionUtils.asRuntimeException(e);
 					}
@@ -1004,7 +1018,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 						outerCurveLoadIndex = i;
 						if (outerCurveLoadIndexes.getLast() != nextSubmitOuterIndex) {
 							System.out.println("Adding outer read future for "+nextSubmitOuterIndex);
-							outerCurveLoadFutures.add(curveLoadFuture(outerHazardMapLoader, outerHazardSubDirName,
+							outerCurveLoadFutures.add(packedCurveLoadFuture(outerHazardMapLoader, outerHazardSubDirName,
 									outerTree.getBranch(nextSubmitOuterIndex), periods, curveIOExec));
 							outerCurveLoadIndexes.add(nextSubmitOuterIndex);
 						}
@@ -1125,14 +1139,14 @@ public abstract class AbstractLogicTreeHazardCombiner {
 					curveReadWatch.stop();
 					
 //					for (int i=0; i<readDequeSize && i<combTree.size(); i++)
-//						innerCurveLoadFutures.add(curveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
+//						innerCurveLoadFutures.add(packedCurveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
 //								combBranchesInnerPortion.get(i), periods, curveIOExec));
 					if (innerCurveLoadCombinedIndexes.isEmpty()) {
 						Preconditions.checkState(n == combTree.size()-1, "No load indexes left, but not on last branch: %s", n);
 					} else {
 						int lastRunningInnerIndex = innerCurveLoadCombinedIndexes.getLast();
 						for (int m=lastRunningInnerIndex+1; m<combTree.size() && innerCurveLoadFutures.size() < readDequeSize; m++) {
-							innerCurveLoadFutures.add(curveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
+							innerCurveLoadFutures.add(packedCurveLoadFuture(innerHazardMapLoader, innerHazardSubDirName,
 									combBranchesInnerPortion.get(m), periods, curveIOExec));
 							innerCurveLoadCombinedIndexes.add(m);
 						}
@@ -1141,9 +1155,9 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				Preconditions.checkState(innerBranch.equals(innerBranchCurves.branch),
 						"Curve load mismatch for inner %s; expected %s, was %s",
 						innerIndex, innerBranch, innerBranchCurves.branch);
-				DiscretizedFunc[][] innerCurves = innerBranchCurves.curves;
+				PackedHazardCurves[] innerCurves = innerBranchCurves.packed;
 				
-				Map<String, GriddedGeoDataSet> writeMap = new HashMap<>(gridReg.getNodeCount()*periods.length);
+				Map<String, double[]> writeMap = new HashMap<>(rps.length*periods.length);
 				
 				File branchHazardOutDir;
 				if (hazardOutDir == null) {
@@ -1157,32 +1171,41 @@ public abstract class AbstractLogicTreeHazardCombiner {
 
 				combineWatch.start();
 				for (int p=0; p<periods.length; p++) {
-					Preconditions.checkState(outerCurves[p].length == gridReg.getNodeCount(),
-							"Expected %s locations but have %s", gridReg.getNodeCount(), outerCurves[p].length);
-					Preconditions.checkState(outerCurves[p].length == innerCurves[p].length,
-							"Outer curves have %s locs but inner curves have %s", outerCurves[p].length, innerCurves[p].length);
-					double[] xVals = new double[outerCurves[p][0].size()];
+					PackedHazardCurves outerPerCurves = outerCurves[p];
+					PackedHazardCurves innerPerCurves = innerCurves[p];
+					int numSites = outerPerCurves.getNumSites();
+					Preconditions.checkState(numSites == gridReg.getNodeCount(),
+							"Expected %s locations but have %s", gridReg.getNodeCount(), numSites);
+					Preconditions.checkState(numSites == innerPerCurves.getNumSites(),
+							"Outer curves have %s locs but inner curves have %s", numSites, innerPerCurves.getNumSites());
+					double[] xVals = outerPerCurves.getXVals();
+					double[] innerXVals = innerPerCurves.getXVals();
+					Preconditions.checkState(xVals.length == innerXVals.length,
+							"Outer curves have %s x-values but inner curves have %s", xVals.length, innerXVals.length);
 					for (int i=0; i<xVals.length; i++)
-						xVals[i] = outerCurves[p][0].getX(i);
-					
-					List<Future<CurveCombineResult>> futures = new ArrayList<>();
+						Preconditions.checkState((float)xVals[i] == (float)innerXVals[i],
+								"Curve gridding differs between outer and inner curves");
 					
-					for (int i=0; i<outerCurves[p].length; i++)
-						futures.add(exec.submit(new CurveCombineCallable(i, xVals, outerCurves[p][i], innerCurves[p][i], rps)));
-					
-					DiscretizedFunc[] combCurves = new DiscretizedFunc[innerCurves[p].length];
-					GriddedGeoDataSet[] xyzs = new GriddedGeoDataSet[rps.length];
-					for (int r=0; r<rps.length; r++)
-						xyzs[r] = new GriddedGeoDataSet(gridReg, false);
+					// combine in blocks of sites
+					PackedHazardCurves combCurves = PackedHazardCurves.emptyLike(outerPerCurves);
+					double[][] mapVals = new double[rps.length][numSites];
+					List<Future<?>> futures = new ArrayList<>();
+					for (int start=0; start<numSites; start+=combineBlockSize) {
+						int blockStart = start;
+						int blockEnd = Integer.min(numSites, start+combineBlockSize);
+						futures.add(exec.submit(new Runnable() {
+							
+							@Override
+							public void run() {
+								PackedHazardCurves.combine(outerPerCurves, innerPerCurves, blockStart, blockEnd,
+										combCurves, rpProbLevels, mapVals);
+							}
+						}));
+					}
 					
 					try {
-						for (Future<CurveCombineResult> future : futures) {
-							CurveCombineResult result = future.get();
-							
-							combCurves[result.index] = result.combCurve;
-							for (int r=0; r<rps.length; r++)
-								xyzs[r].set(result.index, result.mapVals[r]);
-						}
+						for (Future<?> future : futures)
+							future.get();
 					} catch (ExecutionException | InterruptedException e) {
 						throw ExceptionUtils.asRuntimeException(e);
 					}
@@ -1192,7 +1215,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 						String mapFileName = MPJ_LogicTreeHazardCalc.mapPrefix(periods[p], rps[r])+".txt";
 						String entryName = combZipPrefix+"/"+mapFileName;
 						
-						Preconditions.checkState(writeMap.put(entryName, xyzs[r]) == null,
+						Preconditions.checkState(writeMap.put(entryName, mapVals[r]) == null,
 								"Duplicate entry? %s", entryName);
 					}
 					
@@ -1205,7 +1228,7 @@ public abstract class AbstractLogicTreeHazardCombiner {
 							@Override
 							public void run() {
 								try {
-									SolHazardMapCalc.writeCurvesCSV(csvFile, combCurves, gridReg.getNodeList());
+									SolHazardMapCalc.writeCurvesCSV(csvFile, combCurves.toCurves(), gridReg.getNodeList());
 								} catch (IOException e) {
 									throw ExceptionUtils.asRuntimeException(e);
 								}
@@ -1225,22 +1248,17 @@ public abstract class AbstractLogicTreeHazardCombiner {
 				
 				combineWatch.stop();
 				
-				// build map string representations (surprisingly slow)
+				// build map string representations directly from the values, reusing location strings
 				mapStringWatch.start();
 				Map<String, Future<byte[]>> mapStringByteFutures = new HashMap<>(writeMap.size());
 				
 				for (String entryName : writeMap.keySet()) {
-					GriddedGeoDataSet xyz = writeMap.get(entryName);
+					double[] values = writeMap.get(entryName);
 					mapStringByteFutures.put(entryName, exec.submit(new Callable<byte[]>() {
 
 						@Override
 						public byte[] call() throws Exception {
-							// build string representation
-							int size = Integer.max(1000, xyz.size()*12);
-							StringWriter stringWriter = new StringWriter(size);
-							ArbDiscrGeoDataSet.writeXYZWriter(xyz, stringWriter);
-							stringWriter.flush();
-							return stringWriter.toString().getBytes();
+							return buildMapBytes(mapLocPrefixes, values);
 						}
 						
 					}));
@@ -1578,12 +1596,28 @@ public abstract class AbstractLogicTreeHazardCombiner {
 	
 	private static class BranchCurves {
 		public final DiscretizedFunc[][] curves;
+		public final PackedHazardCurves[] packed;
 		public final LogicTreeBranch<?> branch;
 		private BranchCurves(DiscretizedFunc[][] curves, LogicTreeBranch<?> branch) {
+			this(curves, null, branch);
+		}
+		
+		private BranchCurves(DiscretizedFunc[][] curves, PackedHazardCurves[] packed, LogicTreeBranch<?> branch) {
 			super();
 			this.curves = curves;
+			this.packed = packed;
 			this.branch = branch;
 		}
+		
+		/**
+		 * @return packed version of these curves (for each period), without the original curve objects
+		 */
+		private BranchCurves pack() {
+			PackedHazardCurves[] packed = new PackedHazardCurves[curves.length];
+			for (int p=0; p<curves.length; p++)
+				packed[p] = PackedHazardCurves.pack(curves[p]);
+			return new BranchCurves(null, packed, branch);
+		}
 	}
 	
 	private static Future<BranchCurves> curveLoadFuture(MapCurveLoader loader, String hazardSubDirName,
@@ -1601,6 +1635,52 @@ public abstract class AbstractLogicTreeHazardCombiner {
 		});
 	}
 	
+	private static Future<BranchCurves> packedCurveLoadFuture(MapCurveLoader loader, String hazardSubDirName,
+			LogicTreeBranch<?> branch, double[] periods, ExecutorService exec) {
+		return exec.submit(new Callable<BranchCurves>() {
+
+			@Override
+			public BranchCurves call() {
+				try {
+					return loader.getCurveBranchResult(hazardSubDirName, branch, periods).pack();
+				} catch (IOException e) {
+					throw ExceptionUtils.asRuntimeException(e);
+				}
+			}
+		});
+	}
+	
+	private static final int MIN_COMBINE_BLOCK_SIZE = 100;
+	
+	/**
+	 * @param gridReg
+	 * @return location portion of each line of a hazard map text file, including the trailing tab
+	 */
+	static String[] buildMapLocPrefixes(GriddedRegion gridReg) {
+		String[] locPrefixes = new String[gridReg.getNodeCount()];
+		GriddedGeoDataSet refXYZ = new GriddedGeoDataSet(gridReg, false);
+		for (int i=0; i<locPrefixes.length; i++) {
+			Point2D pt = refXYZ.getPoint(i);
+			locPrefixes[i] = String.valueOf(pt.getX())+"\t"+String.valueOf(pt.getY())+"\t";
+		}
+		return locPrefixes;
+	}
+	
+	/**
+	 * Builds the text representation of a hazard map, identical to that written by
+	 * {@link ArbDiscrGeoDataSet#writeXYZWriter(org.opensha.commons.data.xyz.XYZ_DataSet, java.io.Writer)}
+	 * 
+	 * @param locPrefixes location portion of each line, including the trailing tab
+	 * @param values map values
+	 * @return
+	 */
+	static byte[] buildMapBytes(String[] locPrefixes, double[] values) {
+		StringBuilder str = new StringBuilder(Integer.max(1000, values.length*40));
+		for (int i=0; i<values.length; i++)
+			str.append(locPrefixes[i]).append(String.valueOf(values[i])).append('\n');
+		return str.toString().getBytes();
+	}
+	
 	private static CompletableFuture<FaultSystemSolution> solLoadFuture(SolutionLogicTree slt, LogicTreeBranch<?> branch) {
 		return CompletableFuture.supplyAsync(new Supplier<FaultSystemSolution>() {
 
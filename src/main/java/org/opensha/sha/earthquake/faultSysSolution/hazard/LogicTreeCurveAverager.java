@@ -110,17 +110,7 @@ public class LogicTreeCurveAverager {
 			xVals[i] = curves[0].getX(i);
 		
 		for (String key : keys) {
-			DiscretizedFunc[] meanCurves = curvesMap.get(key);
-			if (meanCurves == null) {
-				meanCurves = new DiscretizedFunc[curves.length];
-				for (int i=0; i<curves.length; i++)
-					meanCurves[i] = new LightFixedXFunc(xVals, new double[xVals.length]);
-				curvesMap.put(key, meanCurves);
-				weightSumsMap.put(key, weight);
-			} else {
-				Preconditions.checkState(meanCurves.length == curves.length);
-				weightSumsMap.put(key, weightSumsMap.get(key)+weight);
-			}
+			DiscretizedFunc[] meanCurves = getMeanCurvesForUpdate(key, xVals, weight);
 			for (int i=0; i<curves.length; i++) {
 				DiscretizedFunc curve = curves[i];
 				DiscretizedFunc meanCurve = meanCurves[i];
@@ -131,6 +121,49 @@ public class LogicTreeCurveAverager {
 		}
 	}
 	
+	/**
+	 * Same as {@link #processBranchCurves(LogicTreeBranch, double, DiscretizedFunc[])}, but for packed curves
+	 * 
+	 * @param branch
+	 * @param weight
+	 * @param curves
+	 */
+	synchronized void processBranchCurves(LogicTreeBranch<?> branch, double weight, PackedHazardCurves curves) {
+		Preconditions.checkState(curves.getNumSites() == gridLocs.size());
+		
+		List<String> keys = getMeanCurveKeys(branch);
+		
+		double[] xVals = curves.getXVals();
+		double[] yVals = curves.getYVals();
+		int numX = xVals.length;
+		
+		for (String key : keys) {
+			DiscretizedFunc[] meanCurves = getMeanCurvesForUpdate(key, xVals, weight);
+			for (int i=0; i<meanCurves.length; i++) {
+				DiscretizedFunc meanCurve = meanCurves[i];
+				Preconditions.checkState(numX == meanCurve.size());
+				int offset = i*numX;
+				for (int j=0; j<numX; j++)
+					meanCurve.set(j, meanCurve.getY(j) + weight*yVals[offset+j]);
+			}
+		}
+	}
+	
+	private DiscretizedFunc[] getMeanCurvesForUpdate(String key, double[] xVals, double weight) {
+		DiscretizedFunc[] meanCurves = curvesMap.get(key);
+		if (meanCurves == null) {
+			meanCurves = new DiscretizedFunc[gridLocs.size()];
+			for (int i=0; i<meanCurves.length; i++)
+				meanCurves[i] = new LightFixedXFunc(xVals, new double[xVals.length]);
+			curvesMap.put(key, meanCurves);
+			weightSumsMap.put(key, weight);
+		} else {
+			Preconditions.checkState(meanCurves.length == gridLocs.size());
+			weightSumsMap.put(key, weightSumsMap.get(key)+weight);
+		}
+		return meanCurves;
+	}
+	
 	public void rawCacheToDir(File outputDir, double period) throws IOException {
 		List<String> keys = new ArrayList<>(curvesMap.keySet());
 		Collections.sort(keys);
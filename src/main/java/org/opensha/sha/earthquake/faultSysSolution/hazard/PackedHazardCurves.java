@@ -0,0 +1,182 @@
+package org.opensha.sha.earthquake.faultSysSolution.hazard;
+
+import java.util.Arrays;
+
+import org.apache.commons.math3.stat.StatUtils;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.util.Interpolate;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Hazard curves for every site in a map packed into a single primitive array (site-major), all sharing the same
+ * x-values. Used by {@link AbstractLogicTreeHazardCombiner} to combine outer and inner branch curves in blocks of
+ * sites without creating intermediate function objects. Combined curves are also packed, so that each period of each
+ * combined branch allocates a single array.
+ *
+ * @author kevin
+ *
+ */
+class PackedHazardCurves {
+
+	private final double[] xVals;
+	private final double[] yVals;
+	private final int numSites;
+
+	private PackedHazardCurves(double[] xVals, double[] yVals, int numSites) {
+		this.xVals = xVals;
+		this.yVals = yVals;
+		this.numSites = numSites;
+	}
+
+	/**
+	 * Packs the given curves, which must all have the same x-values (to float precision)
+	 *
+	 * @param curves
+	 * @return
+	 */
+	public static PackedHazardCurves pack(DiscretizedFunc[] curves) {
+		Preconditions.checkState(curves.length > 0, "No curves to pack");
+		DiscretizedFunc curve0 = curves[0];
+		int numX = curve0.size();
+		double[] xVals = new double[numX];
+		for (int i=0; i<numX; i++)
+			xVals[i] = curve0.getX(i);
+		double[] yVals = new double[curves.length*numX];
+		int index = 0;
+		for (DiscretizedFunc curve : curves) {
+			Preconditions.checkState(curve.size() == numX, "Curve sizes vary: %s != %s", curve.size(), numX);
+			for (int i=0; i<numX; i++) {
+				Preconditions.checkState((float)curve.getX(i) == (float)xVals[i], "Curve x-values vary");
+				yVals[index++] = curve.getY(i);
+			}
+		}
+		return new PackedHazardCurves(xVals, yVals, curves.length);
+	}
+
+	/**
+	 * @param template
+	 * @return new zero-valued curves with the same x-values and number of sites as the given curves
+	 */
+	public static PackedHazardCurves emptyLike(PackedHazardCurves template) {
+		return new PackedHazardCurves(template.xVals, new double[template.yVals.length], template.numSites);
+	}
+
+	public double[] getXVals() {
+		return xVals;
+	}
+
+	/**
+	 * @return packed y-values, site-major (x-index varies fastest)
+	 */
+	public double[] getYVals() {
+		return yVals;
+	}
+
+	/**
+	 * @return a curve for each site, each of which is a copy
+	 */
+	public DiscretizedFunc[] toCurves() {
+		int numX = xVals.length;
+		DiscretizedFunc[] curves = new DiscretizedFunc[numSites];
+		for (int s=0; s<numSites; s++)
+			curves[s] = new LightFixedXFunc(xVals, Arrays.copyOfRange(yVals, s*numX, (s+1)*numX));
+		return curves;
+	}
+
+	public int getNumSites() {
+		return numSites;
+	}
+
+	/**
+	 * Combines the outer and inner curves for the given range of sites, i.e., 1 - (1 - p_outer)*(1 - p_inner) at
+	 * each x-value, optionally also computing map values (the IML at each probability level, interpolated in
+	 * log-log space).
+	 *
+	 * @param outer
+	 * @param inner
+	 * @param startSite first site index (inclusive)
+	 * @param endSite last site index (exclusive)
+	 * @param combined curves (e.g., from {@link #emptyLike(PackedHazardCurves)}) that will be populated with
+	 * combined y-values for each site
+	 * @param probLevels probability levels for map values, or null to skip map calculation
+	 * @param mapVals array (indexed by probability level, then site) that will be populated with map values
+	 */
+	public static void combine(PackedHazardCurves outer, PackedHazardCurves inner, int startSite, int endSite,
+			PackedHazardCurves combined, double[] probLevels, double[][] mapVals) {
+		double[] xVals = outer.xVals;
+		int numX = xVals.length;
+		double[] outerY = outer.yVals;
+		double[] innerY = inner.yVals;
+		double[] combY = combined.yVals;
+		for (int s=startSite; s<endSite; s++) {
+			int offset = s*numX;
+			for (int i=offset; i<offset+numX; i++) {
+				double y1 = outerY[i];
+				double y2 = innerY[i];
+				double y;
+				if (y1 == 0)
+					y = y2;
+				else if (y2 == 0)
+					y = y1;
+				else
+					y = 1d - (1d - y1)*(1d - y2);
+				combY[i] = y;
+			}
+
+			if (probLevels != null) {
+				double maxY = StatUtils.max(combY, offset, numX);
+				double minY = StatUtils.min(combY, offset, numX);
+				for (int r=0; r<probLevels.length; r++) {
+					double curveLevel = probLevels[r];
+					double val;
+					// curveLevel is a probability, return the IML at that probability
+					if (curveLevel > maxY)
+						val = 0d;
+					else if (curveLevel < minY)
+						// saturated
+						val = xVals[numX-1];
+					else
+						val = firstInterpolatedX_inLogXLogYDomain(xVals, combY, offset, curveLevel);
+					mapVals[r][s] = val;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link DiscretizedFunc#getFirstInterpolatedX_inLogXLogYDomain(double)} for the curve starting at the
+	 * given offset in the packed y-values, for a y value that has already been checked to be within the range of
+	 * the y-values
+	 */
+	private static double firstInterpolatedX_inLogXLogYDomain(double[] xVals, double[] yVals, int offset, double y) {
+		int num = xVals.length;
+		if (num == 1 && y == yVals[offset])
+			return xVals[0];
+
+		double y1 = Double.NaN;
+		double y2 = Double.NaN;
+		int i;
+		boolean found = false;
+		for (i=0; i<num-1; ++i) {
+			y1 = yVals[offset+i];
+			y2 = yVals[offset+i+1];
+			if ((y<=y1 && y>=y2 && y2<=y1) || (y>=y1 && y<=y2 && y2>=y1)) {
+				found = true;
+				break;
+			}
+		}
+		Preconditions.checkState(found, "Y Value (%s) must be within the range: %s and %s",
+				y, yVals[offset], yVals[offset+num-1]);
+
+		double x1 = xVals[i];
+		double x2 = xVals[i+1];
+		if (x1 == 0 && x2 == 0)
+			return 0;
+
+		double x = Interpolate.findX(Math.log(x1), Math.log(y1), Math.log(x2), Math.log(y2), Math.log(y));
+		return Math.exp(x);
+	}
+
+}
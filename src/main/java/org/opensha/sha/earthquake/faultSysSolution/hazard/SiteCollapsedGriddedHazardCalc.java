@@ -0,0 +1,309 @@
+package org.opensha.sha.earthquake.faultSysSolution.hazard;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.DoubleBinaryOperator;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.geo.LocationUtils;
+import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.calc.params.filters.SourceFilterManager;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureSource;
+import org.opensha.sha.earthquake.faultSysSolution.util.SolHazardMapCalc;
+import org.opensha.sha.earthquake.param.BackgroundRupType;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Site-specific gridded seismicity hazard calculator that collapses {@link GridSourceList} ruptures before calling
+ * the GMM. For a given site, ruptures from all grid nodes are binned by site-node horizontal distance, and ruptures
+ * within a bin that share the same {@link GriddedRuptureProperties} have their rates summed. Each distance bin then
+ * becomes a single {@link GriddedRuptureSource} located at the rate-weighted mean distance of the nodes in that bin
+ * (due north of the site), so the GMM is called once per unique rupture per bin rather than once per rupture per grid
+ * node.
+ * <br><br>
+ * For Poisson sources this is exact when all nodes in a bin are at the same distance; the error otherwise is
+ * controlled by the distance bin width (see {@link #setDistanceBinWidth(double)}). Ruptures are assumed to
+ * have point surfaces whose distances only depend on the horizontal site-node distance (e.g.,
+ * {@link BackgroundRupType#POINT}), and the GMM must not depend on the absolute location of the rupture.
+ * <br><br>
+ * Curves can be checked against the exact calculation with the uncollapsed sources with
+ * {@link #validate(DiscretizedFunc, Site, Map)}, e.g., to choose the distance bin width.
+ * <br><br>
+ * Instances are not thread safe; use one per calculation thread.
+ *
+ * @author kevin
+ *
+ */
+public class SiteCollapsedGriddedHazardCalc {
+
+	public static final double DIST_BIN_WIDTH_DEFAULT = 1d;
+
+	private GridSourceList gridSources;
+	private SourceFilterManager sourceFilters;
+	private BackgroundRupType bgRupType;
+	private double duration;
+	private DoubleBinaryOperator aftershockFilter;
+
+	private double distBinWidth = DIST_BIN_WIDTH_DEFAULT;
+
+	private HazardCurveCalculator calc;
+
+	/**
+	 * @param gridSources gridded sources
+	 * @param sourceFilters source filters, used both in the hazard calculation and to determine maximum distances
+	 * @param bgRupType background rupture type, typically {@link BackgroundRupType#POINT}
+	 * @param duration forecast duration in years
+	 */
+	public SiteCollapsedGriddedHazardCalc(GridSourceList gridSources, SourceFilterManager sourceFilters,
+			BackgroundRupType bgRupType, double duration) {
+		this.gridSources = gridSources;
+		this.sourceFilters = sourceFilters;
+		this.bgRupType = bgRupType;
+		this.duration = duration;
+		this.calc = new HazardCurveCalculator(sourceFilters);
+	}
+
+	/**
+	 * Sets the width of distance bins in km. Smaller values are more accurate, larger values are faster.
+	 *
+	 * @param distBinWidth
+	 */
+	public void setDistanceBinWidth(double distBinWidth) {
+		Preconditions.checkArgument(distBinWidth > 0d, "Distance bin width must be positive");
+		this.distBinWidth = distBinWidth;
+	}
+
+	public double getDistanceBinWidth() {
+		return distBinWidth;
+	}
+
+	/**
+	 * @param aftershockFilter optional aftershock filter applied to rates, see
+	 * {@link GridSourceList#getSource(int, double, DoubleBinaryOperator, BackgroundRupType)}
+	 */
+	public void setAftershockFilter(DoubleBinaryOperator aftershockFilter) {
+		this.aftershockFilter = aftershockFilter;
+	}
+
+	/**
+	 * @return the underlying hazard curve calculator, which can be used to set other calculation options
+	 */
+	public HazardCurveCalculator getCalculator() {
+		return calc;
+	}
+
+	/**
+	 * Builds collapsed sources for the given site
+	 *
+	 * @param site
+	 * @return ERF with collapsed sources
+	 */
+	public AbstractERF getCollapsedERF(Site site) {
+		Location siteLoc = site.getLocation();
+		int numLocs = gridSources.getNumLocations();
+		double minMag = gridSources.getSourceMinMagCutoff();
+
+		double[] nodeDists = new double[numLocs];
+		for (int l=0; l<numLocs; l++)
+			nodeDists[l] = LocationUtils.horzDistanceFast(siteLoc, gridSources.getLocation(l));
+
+		List<ProbEqkSource> sources = new ArrayList<>();
+		for (TectonicRegionType trt : gridSources.getTectonicRegionTypes()) {
+			double maxDist = SolHazardMapCalc.getMaxDistForTRT(sourceFilters, trt);
+			double maxNodeDist = 0d;
+			for (double dist : nodeDists)
+				if (dist <= maxDist)
+					maxNodeDist = Math.max(maxNodeDist, dist);
+			int numBins = (int)(maxNodeDist/distBinWidth) + 1;
+
+			// total rate and rate-weighted distance in each bin, used to determine the bin distance
+			double[] binRates = new double[numBins];
+			double[] binRateDists = new double[numBins];
+			// rates in each bin for each unique set of properties (linked for deterministic ordering)
+			Map<GriddedRuptureProperties, double[]> propBinRates = new LinkedHashMap<>();
+
+			for (int l=0; l<numLocs; l++) {
+				double dist = nodeDists[l];
+				if (dist > maxDist)
+					continue;
+				int bin = (int)(dist/distBinWidth);
+				for (GriddedRupture rup : gridSources.getRuptures(trt, l)) {
+					if (rup.rate == 0d || rup.properties.magnitude < minMag)
+						continue;
+					double[] rates = propBinRates.get(rup.properties);
+					if (rates == null) {
+						rates = new double[numBins];
+						propBinRates.put(rup.properties, rates);
+					}
+					rates[bin] += rup.rate;
+					binRates[bin] += rup.rate;
+					binRateDists[bin] += rup.rate*dist;
+				}
+			}
+
+			for (int bin=0; bin<numBins; bin++) {
+				if (binRates[bin] == 0d)
+					continue;
+				double dist = binRateDists[bin]/binRates[bin];
+				Location binLoc = LocationUtils.location(siteLoc, 0d, dist);
+				binLoc = new Location(binLoc.getLatitude(), binLoc.getLongitude());
+				List<GriddedRupture> binRups = new ArrayList<>();
+				for (GriddedRuptureProperties props : propBinRates.keySet()) {
+					double rate = propBinRates.get(props)[bin];
+					if (rate > 0d)
+						binRups.add(new GriddedRupture(-1, binLoc, props, rate));
+				}
+				sources.add(new GriddedRuptureSource(binLoc, binRups, duration, minMag, aftershockFilter, bgRupType, trt));
+			}
+		}
+
+		return new SourceListERF(sources);
+	}
+
+	/**
+	 * Builds the exact (uncollapsed) gridded seismicity ERF
+	 *
+	 * @return ERF with one source per grid node and tectonic region type
+	 */
+	public AbstractERF getExactERF() {
+		List<ProbEqkSource> sources = new ArrayList<>(gridSources.getNumSources());
+		for (int s=0; s<gridSources.getNumSources(); s++)
+			sources.add(gridSources.getSource(s, duration, aftershockFilter, bgRupType));
+		return new SourceListERF(sources);
+	}
+
+	/**
+	 * Calculates a hazard curve for the given site using collapsed gridded sources
+	 *
+	 * @param hazFunction x values to use (should be log IMLs), y values will be set
+	 * @param site
+	 * @param imrMap
+	 * @return hazard curve
+	 */
+	public DiscretizedFunc getHazardCurve(DiscretizedFunc hazFunction, Site site,
+			Map<TectonicRegionType, ScalarIMR> imrMap) {
+		calc.getHazardCurve(hazFunction, site, imrMap, getCollapsedERF(site));
+		return hazFunction;
+	}
+
+	/**
+	 * Calculates a hazard curve for the given site both with collapsed gridded sources and exactly (without
+	 * collapsing), and compares them. This is slow and intended for choosing and verifying the distance bin width.
+	 *
+	 * @param hazFunction x values to use (should be log IMLs), y values will be set to the collapsed curve
+	 * @param site
+	 * @param imrMap
+	 * @return comparison between the collapsed and exact curves
+	 */
+	public Validation validate(DiscretizedFunc hazFunction, Site site, Map<TectonicRegionType, ScalarIMR> imrMap) {
+		Stopwatch watch = Stopwatch.createStarted();
+		AbstractERF collapsed = getCollapsedERF(site);
+		calc.getHazardCurve(hazFunction, site, imrMap, collapsed);
+		watch.stop();
+		long collapsedMillis = watch.elapsed().toMillis();
+		watch.reset().start();
+		DiscretizedFunc exact = hazFunction.deepClone();
+		AbstractERF exactERF = getExactERF();
+		calc.getHazardCurve(exact, site, imrMap, exactERF);
+		watch.stop();
+		long exactMillis = watch.elapsed().toMillis();
+
+		double maxAbsDiff = 0d;
+		double maxRelDiff = 0d;
+		for (int i=0; i<exact.size(); i++) {
+			double exactY = exact.getY(i);
+			double diff = Math.abs(hazFunction.getY(i) - exactY);
+			maxAbsDiff = Math.max(maxAbsDiff, diff);
+			if (exactY > 0d)
+				maxRelDiff = Math.max(maxRelDiff, diff/exactY);
+		}
+		int collapsedRups = 0;
+		for (ProbEqkSource source : collapsed)
+			collapsedRups += source.getNumRuptures();
+		int exactRups = 0;
+		for (ProbEqkSource source : exactERF)
+			exactRups += source.getNumRuptures();
+		return new Validation(hazFunction, exact, maxAbsDiff, maxRelDiff, collapsedRups, exactRups,
+				collapsedMillis, exactMillis);
+	}
+
+	/**
+	 * Comparison between a collapsed and exact hazard curve for a single site, see
+	 * {@link SiteCollapsedGriddedHazardCalc#validate(DiscretizedFunc, Site, Map)}
+	 *
+	 * @author kevin
+	 *
+	 */
+	public static class Validation {
+		public final DiscretizedFunc collapsedCurve;
+		public final DiscretizedFunc exactCurve;
+		public final double maxAbsDiff;
+		public final double maxRelDiff;
+		public final int numCollapsedRuptures;
+		public final int numExactRuptures;
+		public final long collapsedMillis;
+		public final long exactMillis;
+
+		private Validation(DiscretizedFunc collapsedCurve, DiscretizedFunc exactCurve, double maxAbsDiff,
+				double maxRelDiff, int numCollapsedRuptures, int numExactRuptures, long collapsedMillis,
+				long exactMillis) {
+			this.collapsedCurve = collapsedCurve;
+			this.exactCurve = exactCurve;
+			this.maxAbsDiff = maxAbsDiff;
+			this.maxRelDiff = maxRelDiff;
+			this.numCollapsedRuptures = numCollapsedRuptures;
+			this.numExactRuptures = numExactRuptures;
+			this.collapsedMillis = collapsedMillis;
+			this.exactMillis = exactMillis;
+		}
+
+		@Override
+		public String toString() {
+			return "maxAbsDiff="+(float)maxAbsDiff+", maxRelDiff="+(float)maxRelDiff
+					+"; collapsed "+numExactRuptures+" ruptures to "+numCollapsedRuptures
+					+"; collapsed time: "+collapsedMillis+" ms, exact time: "+exactMillis+" ms";
+		}
+	}
+
+	private static class SourceListERF extends AbstractERF {
+
+		private List<ProbEqkSource> sources;
+
+		public SourceListERF(List<ProbEqkSource> sources) {
+			this.sources = sources;
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.size();
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			return sources.get(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return "Collapsed Gridded Sources";
+		}
+
+	}
+
+}
@@ -0,0 +1,352 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint.EncodingTarget;
+
+import com.google.common.base.Preconditions;
+
+import cern.colt.function.tdouble.IntIntDoubleFunction;
+import cern.colt.map.tlong.OpenLongIntHashMap;
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Buffer used to encode a single {@link InversionConstraint} and then merge it into a column compressed A matrix.
+ * Each constraint gets its own buffer, so constraints can be encoded in parallel. Constraints are encoded via
+ * {@link InversionConstraint#encode(DoubleMatrix2D, EncodingTarget, double[], int)}, which appends each value set
+ * to growable primitive triplet arrays. Values that are set more than once are resolved (last set wins) when
+ * {@link #finishEncoding()} sorts the triplets by row. The triplets of all buffers are then merged directly into
+ * a {@link SparseCCDoubleMatrix2D} by {@link #toColumnCompressed(int, int, List)}, without ever building a
+ * hash-based matrix.
+ * <br><br>
+ * Lookups of previously set values (e.g., for constraints that add to existing values) are supported by an index
+ * from position in the matrix to triplet, which is only built the first time that a value is retrieved.
+ *
+ * @author kevin
+ *
+ */
+class ConstraintEncodingBuffer implements EncodingTarget {
+
+	private static final int INITIAL_CAPACITY = 1024;
+
+	private final int columns;
+	private final int startRow;
+	private final int endRow;
+
+	// passed in to the constraint as the A matrix, only contains values if the constraint sets them directly
+	private SparseDoubleMatrix2D matrix;
+
+	private int size;
+	private int[] rowIndexes;
+	private int[] colIndexes;
+	private double[] values;
+	// index from row*columns+col to triplet index+1, only built if needed
+	private OpenLongIntHashMap index;
+
+	private boolean finished = false;
+	private long peakBytes;
+
+	/**
+	 *
+	 * @param rows total number of rows in the A matrix
+	 * @param columns total number of columns in the A matrix
+	 * @param startRow first row (inclusive) that this buffer may contain
+	 * @param endRow last row (exclusive) that this buffer may contain
+	 */
+	public ConstraintEncodingBuffer(int rows, int columns, int startRow, int endRow) {
+		Preconditions.checkArgument(startRow >= 0 && startRow <= endRow && endRow <= rows,
+				"Bad row range [%s, %s) for matrix with %s rows", startRow, endRow, rows);
+		this.columns = columns;
+		this.startRow = startRow;
+		this.endRow = endRow;
+		// default initial capacity scales with the number of rows in the full matrix, which is way too large here
+		matrix = new SparseDoubleMatrix2D(rows, columns, 1, 0.2, 0.5);
+		rowIndexes = new int[INITIAL_CAPACITY];
+		colIndexes = new int[INITIAL_CAPACITY];
+		values = new double[INITIAL_CAPACITY];
+	}
+
+	/**
+	 * Encodes the given constraint into this buffer and finishes encoding
+	 *
+	 * @param constraint
+	 * @param d
+	 * @return number of non-zero values reported by the constraint
+	 */
+	long encode(InversionConstraint constraint, double[] d) {
+		Preconditions.checkState(!finished, "Encoding already finished");
+		long ret = constraint.encode(matrix, this, d, startRow);
+		finishEncoding();
+		return ret;
+	}
+
+	@Override
+	public void set(int row, int col, double val) {
+		Preconditions.checkState(!finished, "Encoding already finished");
+		// not using Preconditions here to avoid boxing on every call
+		if (row < startRow || row >= endRow)
+			throw new IllegalStateException("Row "+row+" is outside of constraint row range ["
+					+startRow+", "+endRow+")");
+		if (col < 0 || col >= columns)
+			throw new IllegalStateException("Column "+col+" is outside of range [0, "+columns+")");
+		if (index != null) {
+			long key = (long)row*columns + col;
+			int ind = index.get(key);
+			if (ind > 0) {
+				values[ind-1] = val;
+				return;
+			}
+			if (val == 0d)
+				// not yet set, nothing to do
+				return;
+			index.put(key, size+1);
+		}
+		if (size == values.length) {
+			int capacity = (int)Math.min(Integer.MAX_VALUE-8, values.length + (values.length >> 1));
+			Preconditions.checkState(capacity > size, "Too many values for a single constraint");
+			rowIndexes = Arrays.copyOf(rowIndexes, capacity);
+			colIndexes = Arrays.copyOf(colIndexes, capacity);
+			values = Arrays.copyOf(values, capacity);
+			updatePeakBytes();
+		}
+		rowIndexes[size] = row;
+		colIndexes[size] = col;
+		values[size] = val;
+		size++;
+	}
+
+	@Override
+	public double get(int row, int col) {
+		Preconditions.checkState(!finished, "Encoding already finished");
+		if (index == null) {
+			index = new OpenLongIntHashMap(Integer.max(INITIAL_CAPACITY, 2*size));
+			// later values overwrite earlier values for the same position
+			for (int i=0; i<size; i++)
+				index.put((long)rowIndexes[i]*columns + colIndexes[i], i+1);
+			updatePeakBytes();
+		}
+		int ind = index.get((long)row*columns + col);
+		return ind > 0 ? values[ind-1] : 0d;
+	}
+
+	private void updatePeakBytes() {
+		// triplets are 16 bytes each, index entries are 13 bytes each with a maximum load factor of 0.5
+		long bytes = 16l*values.length;
+		if (index != null)
+			bytes += 26l*index.size();
+		peakBytes = Math.max(peakBytes, bytes);
+	}
+
+	/**
+	 * Called once the constraint has been encoded. Sorts the triplets by row, which is required for
+	 * {@link #toColumnCompressed(int, int, List)} to produce sorted row indexes, and resolves duplicate and
+	 * zero values.
+	 */
+	void finishEncoding() {
+		Preconditions.checkState(!finished, "Encoding already finished");
+		if (matrix.cardinality() > 0) {
+			// constraint set some values directly rather than through the InversionConstraint utility methods
+			matrix.forEachNonZero(new IntIntDoubleFunction() {
+
+				@Override
+				public double apply(int row, int col, double val) {
+					set(row, col, val);
+					return val;
+				}
+			});
+		}
+		matrix = null;
+		index = null;
+		updatePeakBytes();
+		final int numRows = endRow - startRow;
+		// stable counting sort by row, so that later values for the same position are still later
+		int[] rowStarts = new int[numRows+1];
+		for (int i=0; i<size; i++)
+			rowStarts[rowIndexes[i]-startRow+1]++;
+		for (int r=0; r<numRows; r++)
+			rowStarts[r+1] += rowStarts[r];
+		int[] sortedRows = new int[size];
+		int[] sortedCols = new int[size];
+		double[] sortedVals = new double[size];
+		int[] next = Arrays.copyOf(rowStarts, numRows);
+		for (int i=0; i<size; i++) {
+			int dest = next[rowIndexes[i]-startRow]++;
+			sortedRows[dest] = rowIndexes[i];
+			sortedCols[dest] = colIndexes[i];
+			sortedVals[dest] = values[i];
+		}
+		peakBytes = Math.max(peakBytes, 16l*values.length + 16l*size);
+		rowIndexes = null;
+		colIndexes = null;
+		values = null;
+
+		// resolve duplicates within each row, keeping the position of the first and value of the last
+		int[] colDests = new int[columns];
+		Arrays.fill(colDests, -1);
+		int num = 0;
+		for (int r=0; r<numRows; r++) {
+			int rowStart = num;
+			for (int i=rowStarts[r]; i<rowStarts[r+1]; i++) {
+				int col = sortedCols[i];
+				int dest = colDests[col];
+				if (dest >= rowStart) {
+					// already set in this row
+					sortedVals[dest] = sortedVals[i];
+				} else {
+					colDests[col] = num;
+					sortedRows[num] = sortedRows[i];
+					sortedCols[num] = col;
+					sortedVals[num] = sortedVals[i];
+					num++;
+				}
+			}
+		}
+		// remove any zeros
+		int numNonZero = 0;
+		for (int i=0; i<num; i++) {
+			if (sortedVals[i] != 0d) {
+				sortedRows[numNonZero] = sortedRows[i];
+				sortedCols[numNonZero] = sortedCols[i];
+				sortedVals[numNonZero] = sortedVals[i];
+				numNonZero++;
+			}
+		}
+		if (numNonZero < sortedVals.length) {
+			sortedRows = Arrays.copyOf(sortedRows, numNonZero);
+			sortedCols = Arrays.copyOf(sortedCols, numNonZero);
+			sortedVals = Arrays.copyOf(sortedVals, numNonZero);
+		}
+		rowIndexes = sortedRows;
+		colIndexes = sortedCols;
+		values = sortedVals;
+		size = numNonZero;
+		finished = true;
+	}
+
+	/**
+	 * @return approximate peak memory used by this buffer during encoding, in bytes
+	 */
+	long getPeakBytes() {
+		return peakBytes;
+	}
+
+	/**
+	 * Sets already encoded (e.g., cached) triplets, which must be sorted by row. This finishes encoding.
+	 *
+	 * @param rows
+	 * @param cols
+	 * @param vals
+	 */
+	void setEncoded(int[] rows, int[] cols, double[] vals) {
+		Preconditions.checkState(!finished, "Encoding already finished");
+		Preconditions.checkArgument(rows.length == cols.length && cols.length == vals.length);
+		for (int i=0; i<rows.length; i++) {
+			Preconditions.checkState(rows[i] >= startRow && rows[i] < endRow,
+					"Row %s is outside of constraint row range [%s, %s)", rows[i], startRow, endRow);
+			Preconditions.checkState(i == 0 || rows[i] >= rows[i-1], "Rows must be sorted");
+		}
+		matrix = null;
+		index = null;
+		rowIndexes = rows;
+		colIndexes = cols;
+		values = vals;
+		size = rows.length;
+		finished = true;
+		peakBytes = Math.max(peakBytes, 16l*size);
+	}
+
+	int getNumColumns() {
+		return columns;
+	}
+
+	int getNumRowsInRange() {
+		return endRow - startRow;
+	}
+
+	int getNumStored() {
+		return size;
+	}
+
+	int[] getStoredRows() {
+		return rowIndexes;
+	}
+
+	int[] getStoredCols() {
+		return colIndexes;
+	}
+
+	double[] getStoredValues() {
+		return values;
+	}
+
+	private void clear() {
+		rowIndexes = null;
+		colIndexes = null;
+		values = null;
+		size = 0;
+	}
+
+	/**
+	 * Merges the given encoded buffers into a single column compressed matrix. Buffers must be supplied in order
+	 * of increasing row range and {@link #finishEncoding()} must already have been called on each. Buffers are
+	 * cleared as they are merged in order to limit peak memory.
+	 *
+	 * @param rows
+	 * @param columns
+	 * @param buffers
+	 * @return column compressed matrix with sorted row indexes in each column
+	 */
+	static SparseCCDoubleMatrix2D toColumnCompressed(int rows, int columns, List<ConstraintEncodingBuffer> buffers) {
+		// count non-zero values in each column
+		int[] colPointers = new int[columns+1];
+		long nnz = 0l;
+		int prevEndRow = 0;
+		for (ConstraintEncodingBuffer buffer : buffers) {
+			Preconditions.checkState(buffer.finished, "Encoding not finished for buffer");
+			Preconditions.checkState(buffer.startRow >= prevEndRow, "Buffers must be in row order");
+			prevEndRow = buffer.endRow;
+			for (int i=0; i<buffer.size; i++) {
+				if (buffer.values[i] != 0d) {
+					colPointers[buffer.colIndexes[i]+1]++;
+					nnz++;
+				}
+			}
+		}
+		Preconditions.checkState(nnz <= Integer.MAX_VALUE-8, "Too many non-zero values for a single matrix: %s", nnz);
+		for (int c=0; c<columns; c++)
+			colPointers[c+1] += colPointers[c];
+
+		int nzmax = Math.max(1, (int)nnz);
+		int[] rowInds = new int[nzmax];
+		double[] vals = new double[nzmax];
+		int[] next = Arrays.copyOf(colPointers, columns);
+		// buffers are in row order, and sorted by row internally, so row indexes will be sorted within each column
+		for (ConstraintEncodingBuffer buffer : buffers) {
+			for (int i=0; i<buffer.size; i++) {
+				double val = buffer.values[i];
+				if (val != 0d) {
+					int dest = next[buffer.colIndexes[i]]++;
+					rowInds[dest] = buffer.rowIndexes[i];
+					vals[dest] = val;
+				}
+			}
+			buffer.clear();
+		}
+
+		Dcs dcs = new Dcs();
+		dcs.m = rows;
+		dcs.n = columns;
+		dcs.nzmax = nzmax;
+		dcs.p = colPointers;
+		dcs.i = rowInds;
+		dcs.x = vals;
+		dcs.nz = -1; // column compressed
+		return new SparseCCDoubleMatrix2D(dcs);
+	}
+
+}
@@ -26,6 +26,7 @@ import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.Constra
 import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint.Adapter;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ColumnOrganizedAnnealingData;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ProjectedGradientPolisher;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ReweightEvenFitSimulatedAnnealing;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.SerialSimulatedAnnealing;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.SimulatedAnnealing;
@@ -80,6 +81,9 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 	private CompletionCriteria completion;
 	private Quantity reweightTargetQuantity = null;
 	
+	// optional projected gradient polish after annealing
+	private CompletionCriteria polishCompletion;
+	
 	// for threaded inversions
 	private int threads = 1;
 	private CompletionCriteria subCompletion;
@@ -194,6 +198,9 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 			else if (cmd.hasOption("reweight"))
 				config.reweightTargetQuantity = ReweightEvenFitSimulatedAnnealing.QUANTITY_DEFAULT;
 			
+			if (cmd.hasOption("polish-completion"))
+				config.polishCompletion = parseCompletionArg(cmd.getOptionValue("polish-completion"));
+			
 			return this;
 		}
 		
@@ -310,6 +317,23 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 			return this;
 		}
 		
+		/**
+		 * Enables a projected gradient polish stage after annealing, which will run until the given completion
+		 * criteria is satisfied (or the solution converges). See {@link ProjectedGradientPolisher}.
+		 * 
+		 * @param polishCompletion
+		 * @return
+		 */
+		public Builder polish(CompletionCriteria polishCompletion) {
+			config.polishCompletion = polishCompletion;
+			return this;
+		}
+		
+		public Builder noPolish() {
+			config.polishCompletion = null;
+			return this;
+		}
+		
 		public Builder except(Class<? extends InversionConstraint> type) {
 			return except(type, true);
 		}
@@ -449,6 +473,12 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 		reweight.setRequired(false);
 		ops.addOption(reweight);
 		
+		Option polishOption = new Option("pc", "polish-completion", true, "Enables a projected gradient (non-negative "
+				+ "least squares) polish stage after annealing, which runs until this completion criteria is satisfied "
+				+ "or the solution converges. "+complText);
+		polishOption.setRequired(false);
+		ops.addOption(polishOption);
+		
 		return ops;
 	}
 	
@@ -462,8 +492,11 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 	public SimulatedAnnealing buildSA(InversionInputGenerator inputs) {
 		ColumnOrganizedAnnealingData equalityData = new ColumnOrganizedAnnealingData(inputs.getA(), inputs.getD());
 		ColumnOrganizedAnnealingData inequalityData = null;
-		if (inputs.getA_ineq() != null)
+		equalityData.setMatVecThreads(threads);
+		if (inputs.getA_ineq() != null) {
 			inequalityData = new ColumnOrganizedAnnealingData(inputs.getA_ineq(), inputs.getD_ineq());
+			inequalityData.setMatVecThreads(threads);
+		}
 		SimulatedAnnealing sa;
 		if (threads > 1) {
 			if (avgThreads != null && avgThreads > 0) {
@@ -583,6 +616,10 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 	public Quantity getReweightTargetQuantity() {
 		return reweightTargetQuantity;
 	}
+	
+	public CompletionCriteria getPolishCompletionCriteria() {
+		return polishCompletion;
+	}
 
 	@Override
 	public void setParent(ModuleContainer<?> parent) throws IllegalStateException {
@@ -643,6 +680,7 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 		avgThreads = source.avgThreads;
 		avgCompletion = source.avgCompletion;
 		reweightTargetQuantity = source.reweightTargetQuantity;
+		polishCompletion = source.polishCompletion;
 	}
 
 	@Override
@@ -653,7 +691,8 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 		result = prime * result + Arrays.hashCode(variablePertubationBasis);
 		result = prime * result + Arrays.hashCode(waterLevel);
 		result = prime * result + Objects.hash(complStr(avgCompletion), avgThreads, complStr(completion),
-				constrStr(constraints), cool, nonneg, perturb, sampler, complStr(subCompletion), threads);
+				constrStr(constraints), cool, nonneg, perturb, sampler, complStr(subCompletion), threads,
+				complStr(polishCompletion));
 		return result;
 	}
 	
@@ -689,7 +728,8 @@ public class InversionConfiguration implements SubModule<ModuleContainer<?>>, JS
 				&& perturb == other.perturb && Objects.equals(sampler, other.sampler)
 				&& Objects.equals(complStr(subCompletion), complStr(other.subCompletion)) && threads == other.threads
 				&& Arrays.equals(variablePertubationBasis, other.variablePertubationBasis)
-				&& Arrays.equals(waterLevel, other.waterLevel);
+				&& Arrays.equals(waterLevel, other.waterLevel)
+				&& Objects.equals(complStr(polishCompletion), complStr(other.polishCompletion));
 	}
 
 	@Override
@@ -0,0 +1,310 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import org.apache.commons.cli.CommandLine;
+import org.apache.commons.cli.Option;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.modules.AveSlipModule;
+import org.opensha.sha.earthquake.faultSysSolution.modules.ClusterRuptures;
+import org.opensha.sha.earthquake.faultSysSolution.modules.ModSectMinMags;
+import org.opensha.sha.earthquake.faultSysSolution.modules.SectSlipRates;
+import org.opensha.sha.earthquake.faultSysSolution.modules.SlipAlongRuptureModel;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.Jump;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.base.Preconditions;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.stream.JsonWriter;
+
+/**
+ * On-disk cache of encoded constraint blocks (rows of the A matrix and d vector for a single constraint), used to
+ * skip re-encoding constraints that are identical between inversions. This is useful when running a logic tree
+ * where many branches share the same rupture set and constraints, and only some constraints differ.
+ * <br><br>
+ * Each block is keyed by a fingerprint of the rupture set (see {@link #fingerprint(FaultSystemRupSet)}) and the
+ * constraint JSON (as written by {@link InversionConstraint.Adapter}, which includes the weight). Blocks are stored
+ * with row indexes relative to the start of the constraint, so they can be reused if preceding constraints change
+ * size. Block files are written atomically and memory mapped when read, so the cache directory can be shared
+ * between concurrent processes.
+ * <br><br>
+ * Only data included in the constraint JSON and in the rupture set fingerprint is considered. The fingerprint covers
+ * every rupture set module read by the constraints in this package; constraints which depend on other modules
+ * should serialize that data, otherwise stale blocks could be reused.
+ *
+ * @author kevin
+ *
+ */
+public class InversionInputCache {
+
+	private static final int MAGIC = 0x49494342; // "IICB"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 4*4 + 8 + 4;
+
+	private static final String SUFFIX = ".iicb";
+
+	private File cacheDir;
+
+	public InversionInputCache(File cacheDir) {
+		Preconditions.checkArgument(cacheDir.exists() || cacheDir.mkdirs(),
+				"Inversion input cache directory doesn't exist and could not be created: %s", cacheDir.getAbsolutePath());
+		this.cacheDir = cacheDir;
+	}
+
+	public File getCacheDir() {
+		return cacheDir;
+	}
+
+	public static Option createOption() {
+		Option cacheOption = new Option("icd", "input-cache-dir", true,
+				"Optional directory to store/load encoded inversion constraints. Constraints that are identical between "
+				+ "inversions with the same rupture set will be loaded from this cache rather than re-encoded.");
+		cacheOption.setRequired(false);
+		return cacheOption;
+	}
+
+	/**
+	 * @param cmd
+	 * @return cache for the --input-cache-dir option (see {@link #createOption()}), or null if not supplied
+	 */
+	public static InversionInputCache fromCommandLine(CommandLine cmd) {
+		if (cmd == null || !cmd.hasOption("input-cache-dir"))
+			return null;
+		return new InversionInputCache(new File(cmd.getOptionValue("input-cache-dir")));
+	}
+
+	/**
+	 * Computes a fingerprint of the rupture set data that constraints depend on: rupture section indexes and
+	 * properties, section slip rates and properties, and the following modules (if present):
+	 * <ul>
+	 * <li>{@link SectSlipRates} and {@link AveSlipModule} values</li>
+	 * <li>{@link SlipAlongRuptureModel}: the slip on each section of each rupture that it calculates (if
+	 * {@link AveSlipModule} is also present), so that models with parameters are covered</li>
+	 * <li>{@link ModSectMinMags} section minimum magnitudes</li>
+	 * <li>{@link PlausibilityConfiguration} JSON, which includes the connection strategy</li>
+	 * <li>{@link ClusterRuptures} jumps</li>
+	 * </ul>
+	 *
+	 * @param rupSet
+	 * @return fingerprint string, or null if the {@link PlausibilityConfiguration} can't be serialized (in which
+	 * case inputs should not be cached)
+	 */
+	public static String fingerprint(FaultSystemRupSet rupSet) {
+		Hasher hasher = Hashing.sha256().newHasher();
+		int numSects = rupSet.getNumSections();
+		int numRups = rupSet.getNumRuptures();
+		hasher.putInt(numSects).putInt(numRups);
+		for (int s=0; s<numSects; s++) {
+			FaultSection sect = rupSet.getFaultSectionData(s);
+			hasher.putInt(sect.getSectionId());
+			hasher.putInt(sect.getParentSectionId());
+			hasher.putDouble(sect.getAveDip());
+			hasher.putDouble(sect.getAveRake());
+			hasher.putDouble(sect.getOrigAveUpperDepth());
+			hasher.putDouble(sect.getAveLowerDepth());
+			hasher.putDouble(sect.getOrigAveSlipRate());
+			hasher.putDouble(sect.getOrigSlipRateStdDev());
+			hasher.putDouble(rupSet.getAreaForSection(s));
+		}
+		double[] lengths = rupSet.getLengthForAllRups();
+		for (int r=0; r<numRups; r++) {
+			for (int s : rupSet.getSectionsIndicesForRup(r))
+				hasher.putInt(s);
+			hasher.putInt(-1); // separator
+			hasher.putDouble(rupSet.getMagForRup(r));
+			hasher.putDouble(rupSet.getAveRakeForRup(r));
+			hasher.putDouble(rupSet.getAreaForRup(r));
+			if (lengths != null)
+				hasher.putDouble(lengths[r]);
+		}
+		SectSlipRates slipRates = rupSet.getModule(SectSlipRates.class);
+		if (slipRates != null) {
+			for (int s=0; s<numSects; s++) {
+				hasher.putDouble(slipRates.getSlipRate(s));
+				hasher.putDouble(slipRates.getSlipRateStdDev(s));
+			}
+		}
+		AveSlipModule aveSlips = rupSet.getModule(AveSlipModule.class);
+		if (aveSlips != null)
+			for (int r=0; r<numRups; r++)
+				hasher.putDouble(aveSlips.getAveSlip(r));
+		SlipAlongRuptureModel slipAlong = rupSet.getModule(SlipAlongRuptureModel.class);
+		if (slipAlong != null) {
+			hasher.putString(slipAlong.getClass().getName(), StandardCharsets.UTF_8);
+			if (aveSlips != null)
+				for (int r=0; r<numRups; r++)
+					for (double slip : slipAlong.calcSlipOnSectionsForRup(rupSet, aveSlips, r))
+						hasher.putDouble(slip);
+		}
+		ModSectMinMags minMags = rupSet.getModule(ModSectMinMags.class);
+		if (minMags != null) {
+			hasher.putString(ModSectMinMags.class.getName(), StandardCharsets.UTF_8);
+			for (int s=0; s<numSects; s++)
+				hasher.putDouble(minMags.getMinMagForSection(s));
+		}
+		PlausibilityConfiguration plausibility = rupSet.getModule(PlausibilityConfiguration.class);
+		if (plausibility != null) {
+			String json;
+			try {
+				json = plausibility.toJSON();
+			} catch (Exception e) {
+				return null;
+			}
+			hasher.putString(PlausibilityConfiguration.class.getName(), StandardCharsets.UTF_8);
+			hasher.putString(json, StandardCharsets.UTF_8);
+		}
+		ClusterRuptures cRups = rupSet.getModule(ClusterRuptures.class);
+		if (cRups != null) {
+			hasher.putString(ClusterRuptures.class.getName(), StandardCharsets.UTF_8);
+			for (int r=0; r<numRups; r++) {
+				for (Jump jump : cRups.get(r).getJumpsIterable()) {
+					hasher.putInt(jump.fromSection.getSectionId());
+					hasher.putInt(jump.toSection.getSectionId());
+					hasher.putDouble(jump.distance);
+				}
+				hasher.putInt(-1); // separator
+			}
+		}
+		return hasher.hash().toString();
+	}
+
+	/**
+	 * @param rupSetFingerprint
+	 * @param constraint
+	 * @return cache key for the given constraint, or null if the fingerprint is null or the constraint can't be
+	 * serialized to JSON (and thus can't be cached)
+	 */
+	public static String getKey(String rupSetFingerprint, InversionConstraint constraint) {
+		if (rupSetFingerprint == null)
+			return null;
+		StringWriter json = new StringWriter();
+		try {
+			new InversionConstraint.Adapter().write(new JsonWriter(json), constraint);
+		} catch (Exception e) {
+			return null;
+		}
+		return Hashing.sha256().newHasher()
+				.putString(rupSetFingerprint, StandardCharsets.UTF_8)
+				.putString(json.toString(), StandardCharsets.UTF_8)
+				.hash().toString();
+	}
+
+	private File getFile(String key) {
+		return new File(cacheDir, key+SUFFIX);
+	}
+
+	/**
+	 * Loads the given constraint block into the given buffer and data vector, if it exists
+	 *
+	 * @param key
+	 * @param buffer
+	 * @param d
+	 * @param startRow
+	 * @return the number of non-zero values reported when the block was encoded, or -1 if not cached
+	 * @throws IOException
+	 */
+	long load(String key, ConstraintEncodingBuffer buffer, double[] d, int startRow) throws IOException {
+		File file = getFile(key);
+		if (!file.exists())
+			return -1l;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long len = channel.size();
+			if (len < HEADER_BYTES)
+				return -1l;
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0l, HEADER_BYTES);
+			Preconditions.checkState(header.getInt() == MAGIC, "Not an inversion input cache file: %s", file.getAbsolutePath());
+			if (header.getInt() != VERSION)
+				return -1l;
+			int numRows = header.getInt();
+			int numCols = header.getInt();
+			long numNonZero = header.getLong();
+			int numStored = header.getInt();
+			Preconditions.checkState(numRows == buffer.getNumRowsInRange() && numCols == buffer.getNumColumns(),
+					"Cached block size mismatch for %s: %sx%s != %sx%s",
+					file.getName(), numRows, numCols, buffer.getNumRowsInRange(), buffer.getNumColumns());
+
+			long dStart = HEADER_BYTES;
+			long rowsStart = dStart + 8l*numRows;
+			long colsStart = rowsStart + 4l*numStored;
+			long valsStart = colsStart + 4l*numStored;
+			long expectedLen = valsStart + 8l*numStored;
+			Preconditions.checkState(len == expectedLen, "Unexpected file size for %s: %s != %s",
+					file.getName(), len, expectedLen);
+
+			channel.map(MapMode.READ_ONLY, dStart, rowsStart-dStart).asDoubleBuffer().get(d, startRow, numRows);
+			int[] rows = new int[numStored];
+			channel.map(MapMode.READ_ONLY, rowsStart, colsStart-rowsStart).asIntBuffer().get(rows);
+			for (int i=0; i<numStored; i++)
+				rows[i] += startRow;
+			int[] cols = new int[numStored];
+			channel.map(MapMode.READ_ONLY, colsStart, valsStart-colsStart).asIntBuffer().get(cols);
+			double[] vals = new double[numStored];
+			channel.map(MapMode.READ_ONLY, valsStart, expectedLen-valsStart).asDoubleBuffer().get(vals);
+
+			buffer.setEncoded(rows, cols, vals);
+			return numNonZero;
+		}
+	}
+
+	/**
+	 * Stores the given encoded constraint block. {@link ConstraintEncodingBuffer#finishEncoding()} must have already
+	 * been called on the buffer.
+	 *
+	 * @param key
+	 * @param buffer
+	 * @param d
+	 * @param startRow
+	 * @param numNonZero
+	 * @throws IOException
+	 */
+	void store(String key, ConstraintEncodingBuffer buffer, double[] d, int startRow, long numNonZero)
+			throws IOException {
+		File file = getFile(key);
+		File tempFile = File.createTempFile(file.getName(), ".tmp", cacheDir);
+		try {
+			int numRows = buffer.getNumRowsInRange();
+			int numStored = buffer.getNumStored();
+			int[] rows = buffer.getStoredRows();
+			int[] cols = buffer.getStoredCols();
+			double[] vals = buffer.getStoredValues();
+
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numRows);
+			out.writeInt(buffer.getNumColumns());
+			out.writeLong(numNonZero);
+			out.writeInt(numStored);
+			for (int r=0; r<numRows; r++)
+				out.writeDouble(d[startRow+r]);
+			for (int i=0; i<numStored; i++)
+				out.writeInt(rows[i]-startRow);
+			for (int i=0; i<numStored; i++)
+				out.writeInt(cols[i]);
+			for (int i=0; i<numStored; i++)
+				out.writeDouble(vals[i]);
+			out.close();
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+}
@@ -7,16 +7,24 @@ import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.math3.stat.StatUtils;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.data.CSVWriter;
+import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.io.archive.ArchiveOutput;
 import org.opensha.commons.util.modules.helpers.CSV_BackedModule;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ConstraintRange;
+import org.opensha.sha.earthquake.faultSysSolution.util.FaultSysTools;
 
 import com.google.common.base.Preconditions;
 import com.google.common.base.Stopwatch;
@@ -53,6 +61,11 @@ public class InversionInputGenerator {
 	protected double[] d_ineq;
 	
 	protected List<ConstraintRange> constraintRowRanges;
+	
+	// number of threads used to encode constraints when building column compressed matrices directly
+	private int encodeThreads = FaultSysTools.defaultNumThreads();
+	// optional cache of encoded constraint blocks
+	private InversionInputCache inputCache;
 
 	public InversionInputGenerator(FaultSystemRupSet rupSet, List<InversionConstraint> constraints) {
 		this(rupSet, constraints, null, null);
@@ -79,6 +92,29 @@ public class InversionInputGenerator {
 		generateInputs(null, verbose);
 	}
 	
+	/**
+	 * Sets the number of threads used to encode constraints in parallel when inputs are generated directly as
+	 * {@link SparseCCDoubleMatrix2D} matrices (see {@link #generateInputs(Class, boolean)}). Set to 1 to encode
+	 * constraints serially.
+	 * 
+	 * @param encodeThreads
+	 */
+	public void setEncodeThreads(int encodeThreads) {
+		Preconditions.checkArgument(encodeThreads > 0, "Encode threads must be positive");
+		this.encodeThreads = encodeThreads;
+	}
+	
+	/**
+	 * Sets a cache of encoded constraints. Constraints found in the cache will be loaded rather than encoded, and
+	 * newly encoded constraints will be written to the cache. The cache is only used when inputs are generated
+	 * directly as {@link SparseCCDoubleMatrix2D} matrices (see {@link #generateInputs(Class, boolean)}).
+	 * 
+	 * @param inputCache
+	 */
+	public void setInputCache(InversionInputCache inputCache) {
+		this.inputCache = inputCache;
+	}
+	
 	public static List<ConstraintRange> buildConstraintRanges(List<InversionConstraint> constraints, boolean verbose) {
 		int numRows = 0;
 		int numIneqRows = 0;
@@ -98,6 +134,17 @@ public class InversionInputGenerator {
 		return constraintRowRanges;
 	}
 	
+	/**
+	 * Generates inversion inputs using the given matrix type (default is {@link SparseDoubleMatrix2D} if null).
+	 * <br><br>
+	 * If {@link SparseCCDoubleMatrix2D} is passed in, each constraint is encoded (in parallel) into its own triplet
+	 * buffer, and those buffers are merged directly into column compressed matrices. This avoids building
+	 * an intermediate hash-based matrix that would later be converted by {@link #columnCompress()}, lowering both
+	 * peak memory and encoding time.
+	 * 
+	 * @param clazz
+	 * @param verbose
+	 */
 	public void generateInputs(Class<? extends DoubleMatrix2D> clazz, final boolean verbose) {
 		if (verbose)
 			System.out.println("Generating inversion inputs with "+numRuptures+" ruptures "
@@ -138,57 +185,64 @@ public class InversionInputGenerator {
 			System.out.println("Took "+getTimeStr(watch)+" to get row counts");
 		}
 		
-		if (numRows > 0) {
-			if (verbose)
-				System.out.println("Building A matrix with "+numRows
-						+" rows and "+numRuptures+" columns");
-			// Components of matrix equation to invert (A*x=d)
-			A = buildMatrix(clazz, numRows, numRuptures); // A matrix
-			d = new double[numRows];	// data vector d
-		}
-		
-		if (numIneqRows > 0) {
-			if (verbose)
-				System.out.println("Building A inequality matrix with "+numIneqRows
-						+" rows and "+numRuptures+" columns");
-			// inequality constraint matrix and data vector (A_ineq*x <= d_ineq)
-			A_ineq = buildMatrix(clazz, numIneqRows, numRuptures); // A matrix
-			d_ineq = new double[numIneqRows];	// data vector d
-		}
-		
-		if (verbose)
-			System.out.println("Encoding matrices");
-		
-		watch = verbose ? Stopwatch.createStarted() : null;
-		int numNonZero = 0;
-		
-		for (int i=0; i<constraints.size(); i++) {
-			InversionConstraint constraint = constraints.get(i);
-			ConstraintRange rowRange = constraintRowRanges.get(i);
+		long numNonZero;
+		if (clazz != null && clazz.equals(SparseCCDoubleMatrix2D.class)) {
+			// encode directly to column compressed form
+			watch = verbose ? Stopwatch.createStarted() : null;
+			numNonZero = encodeColumnCompressed(numRows, numIneqRows, verbose);
+		} else {
+			if (numRows > 0) {
+				if (verbose)
+					System.out.println("Building A matrix with "+numRows
+							+" rows and "+numRuptures+" columns");
+				// Components of matrix equation to invert (A*x=d)
+				A = buildMatrix(clazz, numRows, numRuptures); // A matrix
+				d = new double[numRows];	// data vector d
+			}
 			
-			DoubleMatrix2D myA;
-			double[] myD;
-			if (constraint.isInequality()) {
-				myA = A_ineq;
-				myD = d_ineq;
-			} else {
-				myA = A;
-				myD = d;
+			if (numIneqRows > 0) {
+				if (verbose)
+					System.out.println("Building A inequality matrix with "+numIneqRows
+							+" rows and "+numRuptures+" columns");
+				// inequality constraint matrix and data vector (A_ineq*x <= d_ineq)
+				A_ineq = buildMatrix(clazz, numIneqRows, numRuptures); // A matrix
+				d_ineq = new double[numIneqRows];	// data vector d
 			}
 			
 			if (verbose)
-				System.out.println("\tEncoding "+constraint.getName()
-					+", ineq="+constraint.isInequality());
-			Stopwatch subWatch = verbose ? Stopwatch.createStarted() : null;
-			long myNonZero = constraint.encode(myA, myD, rowRange.startRow);
-			if (verbose) {
-				long maxNum = (rowRange.endRow - rowRange.startRow)*(long)numRuptures;
-				double density = 100d*(double)myNonZero/(double)maxNum;
-				System.out.println("\t\tDONE, took "+getTimeStr(subWatch)+" to encode "
-						+myNonZero+" values (density: "+oneDigit.format(density)+" %)");
-				subWatch.stop();
+				System.out.println("Encoding matrices");
+			
+			watch = verbose ? Stopwatch.createStarted() : null;
+			numNonZero = 0;
+			
+			for (int i=0; i<constraints.size(); i++) {
+				InversionConstraint constraint = constraints.get(i);
+				ConstraintRange rowRange = constraintRowRanges.get(i);
+				
+				DoubleMatrix2D myA;
+				double[] myD;
+				if (constraint.isInequality()) {
+					myA = A_ineq;
+					myD = d_ineq;
+				} else {
+					myA = A;
+					myD = d;
+				}
+				
+				if (verbose)
+					System.out.println("\tEncoding "+constraint.getName()
+						+", ineq="+constraint.isInequality());
+				Stopwatch subWatch = verbose ? Stopwatch.createStarted() : null;
+				long myNonZero = constraint.encode(myA, myD, rowRange.startRow);
+				if (verbose) {
+					long maxNum = (rowRange.endRow - rowRange.startRow)*(long)numRuptures;
+					double density = 100d*(double)myNonZero/(double)maxNum;
+					System.out.println("\t\tDONE, took "+getTimeStr(subWatch)+" to encode "
+							+myNonZero+" values (density: "+oneDigit.format(density)+" %)");
+					subWatch.stop();
+				}
+				numNonZero += myNonZero;
 			}
-			numNonZero += myNonZero;
 		}
 		
 		if (verbose) {
@@ -255,6 +309,129 @@ public class InversionInputGenerator {
 		
 	}
 	
+	private long encodeColumnCompressed(int numRows, int numIneqRows, boolean verbose) {
+		if (numRows > 0)
+			d = new double[numRows];
+		if (numIneqRows > 0)
+			d_ineq = new double[numIneqRows];
+		
+		int threads = Integer.min(encodeThreads, constraints.size());
+		if (verbose)
+			System.out.println("Encoding "+constraints.size()+" constraints to column compressed matrices with "
+					+threads+" threads");
+		
+		String rupSetFingerprint = null;
+		if (inputCache != null) {
+			Stopwatch fingerprintWatch = verbose ? Stopwatch.createStarted() : null;
+			rupSetFingerprint = InversionInputCache.fingerprint(rupSet);
+			if (verbose) {
+				fingerprintWatch.stop();
+				System.out.println("Took "+getTimeStr(fingerprintWatch)+" to fingerprint rupture set for input cache: "
+						+inputCache.getCacheDir().getAbsolutePath());
+				if (rupSetFingerprint == null)
+					System.out.println("Rupture set can't be fingerprinted, won't use the input cache");
+			}
+		}
+		
+		List<ConstraintEncodingBuffer> buffers = new ArrayList<>(constraints.size());
+		List<Future<Long>> futures = new ArrayList<>(constraints.size());
+		ExecutorService exec = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+		for (int i=0; i<constraints.size(); i++) {
+			InversionConstraint constraint = constraints.get(i);
+			ConstraintRange rowRange = constraintRowRanges.get(i);
+			
+			ConstraintEncodingBuffer buffer;
+			double[] myD;
+			if (constraint.isInequality()) {
+				buffer = new ConstraintEncodingBuffer(numIneqRows, numRuptures, rowRange.startRow, rowRange.endRow);
+				myD = d_ineq;
+			} else {
+				buffer = new ConstraintEncodingBuffer(numRows, numRuptures, rowRange.startRow, rowRange.endRow);
+				myD = d;
+			}
+			buffers.add(buffer);
+			
+			String cacheKey = inputCache == null ? null : InversionInputCache.getKey(rupSetFingerprint, constraint);
+			
+			// each constraint only writes to its own rows of the data vector, so they can share it
+			Callable<Long> call = new Callable<Long>() {
+
+				@Override
+				public Long call() throws Exception {
+					Stopwatch subWatch = verbose ? Stopwatch.createStarted() : null;
+					long myNonZero = cacheKey == null ? -1l : inputCache.load(cacheKey, buffer, myD, rowRange.startRow);
+					boolean cached = myNonZero >= 0l;
+					if (!cached) {
+						myNonZero = buffer.encode(constraint, myD);
+						if (cacheKey != null)
+							inputCache.store(cacheKey, buffer, myD, rowRange.startRow, myNonZero);
+					}
+					if (verbose) {
+						long maxNum = (rowRange.endRow - rowRange.startRow)*(long)numRuptures;
+						double density = 100d*(double)myNonZero/(double)maxNum;
+						subWatch.stop();
+						System.out.println("\tDONE "+(cached ? "loading cached " : "encoding ")+constraint.getName()
+								+", ineq="+constraint.isInequality()+", took "+getTimeStr(subWatch)+" to "
+								+(cached ? "load " : "encode ")+myNonZero+" values (density: "
+								+oneDigit.format(density)+" %, peak buffer memory: "
+								+oneDigit.format(buffer.getPeakBytes()/(1024d*1024d))+" MB)");
+					}
+					return myNonZero;
+				}
+			};
+			if (exec == null)
+				futures.add(CompletableFuture.completedFuture(encodeSerial(call)));
+			else
+				futures.add(exec.submit(call));
+		}
+		
+		long numNonZero = 0l;
+		try {
+			for (Future<Long> future : futures)
+				numNonZero += future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} finally {
+			if (exec != null)
+				exec.shutdown();
+		}
+		
+		// merge into column compressed matrices, constraints are already in row order for each matrix
+		Stopwatch mergeWatch = verbose ? Stopwatch.createStarted() : null;
+		List<ConstraintEncodingBuffer> eqBuffers = new ArrayList<>();
+		List<ConstraintEncodingBuffer> ineqBuffers = new ArrayList<>();
+		for (int i=0; i<constraints.size(); i++) {
+			if (constraints.get(i).isInequality())
+				ineqBuffers.add(buffers.get(i));
+			else
+				eqBuffers.add(buffers.get(i));
+		}
+		buffers = null;
+		if (numRows > 0)
+			A = ConstraintEncodingBuffer.toColumnCompressed(numRows, numRuptures, eqBuffers);
+		if (numIneqRows > 0)
+			A_ineq = ConstraintEncodingBuffer.toColumnCompressed(numIneqRows, numRuptures, ineqBuffers);
+		if (verbose) {
+			mergeWatch.stop();
+			long bytes = 0l;
+			if (A != null)
+				bytes += 12l*A.cardinality() + 4l*(numRuptures+1);
+			if (A_ineq != null)
+				bytes += 12l*A_ineq.cardinality() + 4l*(numRuptures+1);
+			System.out.println("Took "+getTimeStr(mergeWatch)+" to merge to column compressed matrices ("
+					+oneDigit.format(bytes/(1024d*1024d))+" MB)");
+		}
+		return numNonZero;
+	}
+	
+	private static long encodeSerial(Callable<Long> call) {
+		try {
+			return call.call();
+		} catch (Exception e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+	
 	static ConstraintRange calcRowRange(int startIndex, InversionConstraint constraint, boolean verbose) {
 		Stopwatch watch = verbose ? Stopwatch.createStarted() : null;
 		ConstraintRange range = constraint.getRange(startIndex);
@@ -6,6 +6,8 @@ import org.apache.commons.cli.CommandLine;
 import org.opensha.commons.logicTree.LogicTreeBranch;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.InversionState;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ProjectedGradientPolisher;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ReweightEvenFitSimulatedAnnealing;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.SerialSimulatedAnnealing;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.SimulatedAnnealing;
@@ -14,10 +16,13 @@ import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.completion.Compl
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.completion.IterationCompletionCriteria;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.completion.ProgressTrackingCompletionCriteria;
 import org.opensha.sha.earthquake.faultSysSolution.modules.InitialSolution;
+import org.opensha.sha.earthquake.faultSysSolution.modules.InversionMisfitProgress;
 import org.opensha.sha.earthquake.faultSysSolution.modules.InversionMisfits;
 import org.opensha.sha.earthquake.faultSysSolution.modules.WaterLevelRates;
 import org.opensha.sha.earthquake.faultSysSolution.modules.SolutionLogicTree.SolutionProcessor;
 
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+
 public interface InversionSolver {
 	
 	public default FaultSystemSolution run(InversionConfigurationFactory factory, LogicTreeBranch<?> branch, int threads)
@@ -53,7 +58,7 @@ public interface InversionSolver {
 				// apply any command line overrides
 				config = InversionConfiguration.builder(config).forCommandLine(cmd).build();
 			
-			FaultSystemSolution sol = run(rupSet, config, null);
+			FaultSystemSolution sol = run(rupSet, config, InversionInputCache.fromCommandLine(cmd), null);
 			
 			// attach any relevant modules before writing out
 			SolutionProcessor processor = factory.getSolutionLogicTreeProcessor();
@@ -66,8 +71,19 @@ public interface InversionSolver {
 
 		@Override
 		public FaultSystemSolution run(FaultSystemRupSet rupSet, InversionConfiguration config, String info) {
+			return run(rupSet, config, (InversionInputCache)null, info);
+		}
+		
+		public FaultSystemSolution run(FaultSystemRupSet rupSet, InversionConfiguration config,
+				InversionInputCache inputCache, String info) {
 			InversionInputGenerator inputs = new InversionInputGenerator(rupSet, config);
-			inputs.generateInputs(true);
+			if (inputCache == null) {
+				inputs.generateInputs(true);
+			} else {
+				// the input cache is only used when encoding directly to column compressed matrices
+				inputs.setInputCache(inputCache);
+				inputs.generateInputs(SparseCCDoubleMatrix2D.class, true);
+			}
 			
 			return run(rupSet, config, inputs, info);
 		}
@@ -111,11 +127,32 @@ public interface InversionSolver {
 			}
 			
 			System.out.println("Annealing!");
-			sa.iterate(progress);
+			InversionState annealState = sa.iterate(progress);
 			
 			if (sa instanceof ThreadedSimulatedAnnealing)
 				((ThreadedSimulatedAnnealing)sa).shutdown();
 			
+			InversionMisfitProgress misfitProgress = null;
+			if (sa instanceof ReweightEvenFitSimulatedAnnealing)
+				misfitProgress = ((ReweightEvenFitSimulatedAnnealing)sa).getMisfitProgress();
+			
+			CompletionCriteria polishCompletion = config.getPolishCompletionCriteria();
+			if (polishCompletion != null) {
+				System.out.println("Polishing with projected gradient, completion: "+polishCompletion);
+				ProjectedGradientPolisher polisher = new ProjectedGradientPolisher(
+						sa.getEqualityData(), sa.getInequalityData(), config.getThreads());
+				polisher.setConstraintRanges(sa.getConstraintRanges());
+				polisher.polish(sa.getBestSolution(), polishCompletion);
+				if (polisher.getBestEnergy()[0] <= sa.getBestEnergy()[0]) {
+					sa.setResults(polisher.getBestEnergy(), polisher.getBestSolution(), polisher.getBestMisfit(),
+							polisher.getBestInequalityMisfit(), polisher.getNumNonZero());
+					misfitProgress = polisher.getMisfitProgress(misfitProgress,
+							annealState.iterations, annealState.elapsedTimeMillis);
+				} else {
+					System.out.println("Polish did not improve on the annealing solution, keeping annealing result");
+				}
+			}
+			
 			System.out.println("DONE. Building solution...");
 			double[] rawSol = sa.getBestSolution();
 			double[] rates = inputs.adjustSolutionForWaterLevel(rawSol);
@@ -134,8 +171,8 @@ public interface InversionSolver {
 			sol.addModule(misfits.getMisfitStats());
 			if (info != null)
 				sol.setInfoString(info);
-			if (sa instanceof ReweightEvenFitSimulatedAnnealing)
-				sol.addModule(((ReweightEvenFitSimulatedAnnealing)sa).getMisfitProgress());
+			if (misfitProgress != null)
+				sol.addModule(misfitProgress);
 			
 			return sol;
 		}
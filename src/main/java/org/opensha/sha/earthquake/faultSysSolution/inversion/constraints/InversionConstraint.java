@@ -39,6 +39,9 @@ import cern.colt.matrix.tdouble.DoubleMatrix2D;
 public abstract class InversionConstraint implements ShortNamed {
 	
 	private transient boolean quickGetsSets = true;
+	// used when encoding directly to an EncodingTarget, see encode(DoubleMatrix2D, EncodingTarget, double[], int)
+	private transient DoubleMatrix2D targetA;
+	private transient EncodingTarget target;
 	private transient String name;
 	private transient String shortName;
 	protected transient double weight;
@@ -145,6 +148,57 @@ public abstract class InversionConstraint implements ShortNamed {
 	 */
 	public abstract long encode(DoubleMatrix2D A, double[] d, int startRow);
 	
+	/**
+	 * Interface for encoding A matrix values directly into a data structure other than a {@link DoubleMatrix2D}, see
+	 * {@link InversionConstraint#encode(DoubleMatrix2D, EncodingTarget, double[], int)}
+	 * 
+	 * @author kevin
+	 *
+	 */
+	public static interface EncodingTarget {
+		
+		/**
+		 * Sets the given A matrix value
+		 * 
+		 * @param row
+		 * @param col
+		 * @param val
+		 */
+		public void set(int row, int col, double val);
+		
+		/**
+		 * @param row
+		 * @param col
+		 * @return the current A matrix value, or zero if not yet set
+		 */
+		public double get(int row, int col);
+	}
+	
+	/**
+	 * Encodes this constraint, sending all A matrix values set via {@link #setA(DoubleMatrix2D, int, int, double)},
+	 * {@link #addA(DoubleMatrix2D, int, int, double)}, and {@link #getA(DoubleMatrix2D, int, int)} to the given
+	 * target rather than to the given matrix. The given matrix should have the dimensions of the full A matrix and
+	 * will only receive any values that the constraint sets directly (without using those utility methods).
+	 * 
+	 * @param A matrix passed to {@link #encode(DoubleMatrix2D, double[], int)}
+	 * @param target target for A matrix values
+	 * @param d
+	 * @param startRow
+	 * @return number of non-zero elements added
+	 */
+	public synchronized long encode(DoubleMatrix2D A, EncodingTarget target, double[] d, int startRow) {
+		Preconditions.checkNotNull(A);
+		Preconditions.checkNotNull(target);
+		this.targetA = A;
+		this.target = target;
+		try {
+			return encode(A, d, startRow);
+		} finally {
+			this.targetA = null;
+			this.target = null;
+		}
+	}
+	
 	/**
 	 * Utility method to set a value in the given A matrix, respecting the quickGetsSets value
 	 * 
@@ -156,7 +210,9 @@ public abstract class InversionConstraint implements ShortNamed {
 	protected void setA(DoubleMatrix2D A, int row, int col, double val) {
 		Preconditions.checkState(Double.isFinite(val),
 				"Setting non-finite value in A matrix at [%s, %s]: %s", row, col, val);
-		if (quickGetsSets)
+		if (A == targetA)
+			target.set(row, col, val);
+		else if (quickGetsSets)
 			A.setQuick(row, col, val);
 		else
 			A.set(row, col, val);
@@ -171,6 +227,8 @@ public abstract class InversionConstraint implements ShortNamed {
 	 * @return value at that location
 	 */
 	protected double getA(DoubleMatrix2D A, int row, int col) {
+		if (A == targetA)
+			return target.get(row, col);
 		if (quickGetsSets)
 			return A.getQuick(row, col);
 		return A.get(row, col);
@@ -187,7 +245,9 @@ public abstract class InversionConstraint implements ShortNamed {
 	 */
 	protected boolean addA(DoubleMatrix2D A, int row, int col, double val) {
 		double prevVal = getA(A, row, col);
-		if (quickGetsSets)
+		if (A == targetA)
+			target.set(row, col, val+prevVal);
+		else if (quickGetsSets)
 			A.setQuick(row, col, val+prevVal);
 		else
 			A.set(row, col, val+prevVal);
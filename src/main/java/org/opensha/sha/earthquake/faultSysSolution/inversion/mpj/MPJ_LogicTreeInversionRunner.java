@@ -22,6 +22,7 @@ import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionConfiguration;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionConfigurationFactory;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionInputCache;
 import org.opensha.sha.earthquake.faultSysSolution.inversion.Inversions;
 import org.opensha.sha.earthquake.faultSysSolution.modules.SolutionLogicTree.SolutionProcessor;
 import org.opensha.sha.earthquake.faultSysSolution.util.AverageSolutionCreator;
@@ -391,6 +392,7 @@ public class MPJ_LogicTreeInversionRunner extends MPJTaskCalculator {
 		ops.addRequiredOption("lt", "logic-tree", true, "Path to logic tree JSON file");
 		ops.addRequiredOption("od", "output-dir", true, "Path to output directory");
 		ops.addOption(FaultSysTools.cacheDirOption());
+		ops.addOption(InversionInputCache.createOption());
 		ops.addRequiredOption("at", "annealing-threads", true, "Number of annealing threads per inversion");
 		ops.addOption("rpb", "runs-per-branch", true, "Runs per branch (default is 1)");
 		ops.addOption("rpb", "runs-per-bundle", true, "Simultaneous runs to executure (default is 1)");
@@ -47,6 +47,9 @@ public class ColumnOrganizedAnnealingData {
 	 */
 	final int maxRowsPerCol;
 	
+	private SparseMatVec matVec;
+	private int matVecThreads = 1;
+	
 	public ColumnOrganizedAnnealingData(DoubleMatrix2D A, double[] d) {
 		Preconditions.checkNotNull(A, "A is null");
 		Preconditions.checkNotNull(d, "d is null");
@@ -116,4 +119,42 @@ public class ColumnOrganizedAnnealingData {
 			this.maxRowsPerCol = maxRowsPerCol;
 		}
 	}
-}
\ No newline at end of file
+	
+	/**
+	 * Sets the number of threads used by {@link #getMatVec()} for full matrix-vector products, which should match
+	 * the number of threads configured for the inversion. Default is 1.
+	 * 
+	 * @param threads
+	 */
+	public synchronized void setMatVecThreads(int threads) {
+		Preconditions.checkArgument(threads > 0, "Threads must be positive");
+		if (threads != matVecThreads)
+			releaseMatVec();
+		this.matVecThreads = threads;
+	}
+	
+	public synchronized int getMatVecThreads() {
+		return matVecThreads;
+	}
+	
+	/**
+	 * @return matrix-vector product kernels for this data using {@link #getMatVecThreads()} threads, shared between
+	 * all users of this data and created on first use
+	 */
+	public synchronized SparseMatVec getMatVec() {
+		if (matVec == null)
+			matVec = new SparseMatVec(this, matVecThreads);
+		return matVec;
+	}
+	
+	/**
+	 * Releases any threads and memory (e.g., the CSR copy of A used for multithreaded products) held by
+	 * {@link #getMatVec()}. It will be recreated if needed.
+	 */
+	public synchronized void releaseMatVec() {
+		if (matVec != null) {
+			matVec.release();
+			matVec = null;
+		}
+	}
+}
@@ -0,0 +1,335 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion.sa;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.completion.CompletionCriteria;
+import org.opensha.sha.earthquake.faultSysSolution.modules.InversionMisfitProgress;
+import org.opensha.sha.earthquake.faultSysSolution.modules.InversionMisfitStats;
+import org.opensha.sha.earthquake.faultSysSolution.modules.InversionMisfits;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+/**
+ * Refines a (typically simulated annealing) solution by solving the same non-negative least squares problem with
+ * projected gradient descent. Annealing is very good at finding the general shape of a solution but slow to
+ * converge on the last few percent of misfit, which gradient methods handle well.
+ * <br><br>
+ * The objective is the annealing energy without the entropy term: <code>||A*x-d||^2</code> plus squared positive
+ * inequality misfits, subject to <code>x>=0</code>. Each iteration uses a Barzilai-Borwein step with backtracking
+ * so that energy never increases, and all matrix-vector products are computed in parallel with
+ * {@link SparseMatVec}.
+ *
+ * @author kevin
+ *
+ */
+public class ProjectedGradientPolisher {
+
+	// sufficient decrease parameter for the backtracking line search
+	private static final double ARMIJO_C = 1e-4;
+	// smallest step size before we give up (the solution is converged)
+	private static final double MIN_STEP = 1e-30;
+
+	private final ColumnOrganizedAnnealingData equalityData;
+	private final ColumnOrganizedAnnealingData inequalityData;
+	private final SparseMatVec eqMatVec;
+	private final SparseMatVec ineqMatVec;
+	private final int nCols;
+
+	private List<ConstraintRange> constraintRanges;
+	private long progressModulus = 10;
+
+	private double[] xbest;
+	private double[] Ebest;
+	private double[] misfitBest;
+	private double[] misfitIneqBest;
+	private int numNonZero;
+
+	private List<Long> progressIters;
+	private List<Long> progressTimes;
+	private List<InversionMisfitStats> progressStats;
+
+	/**
+	 * @param equalityData
+	 * @param inequalityData inequality data, can be null
+	 * @param threads number of threads for matrix-vector products
+	 */
+	public ProjectedGradientPolisher(ColumnOrganizedAnnealingData equalityData,
+			ColumnOrganizedAnnealingData inequalityData, int threads) {
+		this.equalityData = equalityData;
+		this.inequalityData = inequalityData;
+		this.nCols = equalityData.nCols;
+		eqMatVec = new SparseMatVec(equalityData, threads);
+		if (inequalityData != null) {
+			Preconditions.checkState(inequalityData.nCols == nCols);
+			ineqMatVec = new SparseMatVec(inequalityData, threads);
+		} else {
+			ineqMatVec = null;
+		}
+	}
+
+	public void setConstraintRanges(List<ConstraintRange> constraintRanges) {
+		this.constraintRanges = constraintRanges;
+	}
+
+	/**
+	 * Sets how often (in iterations) misfit statistics are recorded for {@link #getMisfitProgress(InversionMisfitProgress, long, long)}
+	 *
+	 * @param progressModulus
+	 */
+	public void setProgressModulus(long progressModulus) {
+		Preconditions.checkArgument(progressModulus > 0);
+		this.progressModulus = progressModulus;
+	}
+
+	private void calcMisfits(double[] x, double[] misfit, double[] misfitIneq) {
+		eqMatVec.multiply(x, misfit);
+		double[] d = equalityData.d;
+		for (int r=0; r<equalityData.nRows; r++)
+			misfit[r] -= d[r];
+		if (ineqMatVec != null) {
+			ineqMatVec.multiply(x, misfitIneq);
+			double[] dIneq = inequalityData.d;
+			for (int r=0; r<inequalityData.nRows; r++)
+				misfitIneq[r] -= dIneq[r];
+		}
+	}
+
+	private static double objective(double[] misfit, double[] misfitIneq) {
+		double sum = 0d;
+		for (double val : misfit)
+			sum += val*val;
+		if (misfitIneq != null)
+			for (double val : misfitIneq)
+				if (val > 0d)
+					sum += val*val;
+		return sum;
+	}
+
+	private void calcGradient(double[] misfit, double[] misfitIneq, double[] grad, double[] scratch, double[] scratchIneq) {
+		eqMatVec.transposeMultiply(misfit, grad);
+		if (ineqMatVec != null) {
+			// only positive inequality misfits contribute
+			for (int r=0; r<misfitIneq.length; r++)
+				scratchIneq[r] = misfitIneq[r] > 0d ? misfitIneq[r] : 0d;
+			ineqMatVec.transposeMultiply(scratchIneq, scratch);
+			for (int c=0; c<nCols; c++)
+				grad[c] += scratch[c];
+		}
+		for (int c=0; c<nCols; c++)
+			grad[c] *= 2d;
+	}
+
+	private double[] calcEnergy(double[] x, double[] misfit, double[] misfitIneq) {
+		return SerialSimulatedAnnealing.calculateEnergy(x, misfit, misfitIneq, equalityData.nRows, nCols,
+				inequalityData == null ? 0 : inequalityData.nRows, constraintRanges, 0d);
+	}
+
+	private static int countNonZero(double[] x) {
+		int count = 0;
+		for (double val : x)
+			if (val > 0d)
+				count++;
+		return count;
+	}
+
+	private void addProgress(long iteration, long millis, double[] misfit, double[] misfitIneq) {
+		if (constraintRanges == null)
+			return;
+		InversionMisfits misfits = new InversionMisfits(constraintRanges, Arrays.copyOf(misfit, misfit.length),
+				equalityData.d, misfitIneq == null ? null : Arrays.copyOf(misfitIneq, misfitIneq.length),
+				inequalityData == null ? null : inequalityData.d);
+		progressIters.add(iteration);
+		progressTimes.add(millis);
+		progressStats.add(misfits.getMisfitStats());
+	}
+
+	/**
+	 * Polishes the given starting solution until the completion criteria is satisfied or the solution converges
+	 *
+	 * @param x0 starting solution, negative values will be set to zero
+	 * @param completion
+	 * @return final state
+	 */
+	public InversionState polish(double[] x0, CompletionCriteria completion) {
+		Preconditions.checkArgument(x0.length == nCols, "Solution has wrong length: %s != %s", x0.length, nCols);
+		try {
+			return doPolish(x0, completion);
+		} finally {
+			// release product threads and memory, they would be recreated if we polish again
+			eqMatVec.release();
+			if (ineqMatVec != null)
+				ineqMatVec.release();
+		}
+	}
+
+	private InversionState doPolish(double[] x0, CompletionCriteria completion) {
+		Stopwatch watch = Stopwatch.createStarted();
+
+		progressIters = new ArrayList<>();
+		progressTimes = new ArrayList<>();
+		progressStats = new ArrayList<>();
+
+		int nRows = equalityData.nRows;
+		int nIneqRows = inequalityData == null ? 0 : inequalityData.nRows;
+
+		double[] x = new double[nCols];
+		for (int c=0; c<nCols; c++)
+			x[c] = Math.max(0d, x0[c]);
+		double[] misfit = new double[nRows];
+		double[] misfitIneq = nIneqRows > 0 ? new double[nIneqRows] : null;
+		calcMisfits(x, misfit, misfitIneq);
+		double f = objective(misfit, misfitIneq);
+
+		double[] grad = new double[nCols];
+		double[] scratch = new double[nCols];
+		double[] scratchIneq = nIneqRows > 0 ? new double[nIneqRows] : null;
+		calcGradient(misfit, misfitIneq, grad, scratch, scratchIneq);
+
+		double[] xNew = new double[nCols];
+		double[] misfitNew = new double[nRows];
+		double[] misfitIneqNew = nIneqRows > 0 ? new double[nIneqRows] : null;
+		double[] gradNew = new double[nCols];
+
+		// initial step: exact line search along the (unprojected) gradient for the equality terms
+		double gg = 0d;
+		for (double val : grad)
+			gg += val*val;
+		eqMatVec.multiply(grad, misfitNew);
+		double ag = 0d;
+		for (int r=0; r<nRows; r++)
+			ag += misfitNew[r]*misfitNew[r];
+		double step = ag > 0d ? gg/(2d*ag) : 1d;
+
+		long iterations = 0;
+		long evaluations = 0;
+		addProgress(0l, 0l, misfit, misfitIneq);
+		double[] E = calcEnergy(x, misfit, misfitIneq);
+		InversionState state = new InversionState(0l, 0l, E, 0l, 0l, countNonZero(x), x, misfit, misfitIneq,
+				constraintRanges);
+		boolean converged = false;
+		while (!completion.isSatisfied(state)) {
+			double gdx = 0d;
+			for (int c=0; c<nCols; c++) {
+				double val = x[c] - step*grad[c];
+				xNew[c] = val > 0d ? val : 0d;
+				gdx += grad[c]*(xNew[c] - x[c]);
+			}
+			if (gdx >= 0d) {
+				// projected gradient is zero, nothing left to do
+				converged = true;
+				break;
+			}
+			calcMisfits(xNew, misfitNew, misfitIneqNew);
+			evaluations++;
+			double fNew = objective(misfitNew, misfitIneqNew);
+			if (fNew > f + ARMIJO_C*gdx) {
+				// not enough decrease, backtrack
+				step *= 0.5;
+				if (step < MIN_STEP) {
+					converged = true;
+					break;
+				}
+				continue;
+			}
+			calcGradient(misfitNew, misfitIneqNew, gradNew, scratch, scratchIneq);
+
+			// Barzilai-Borwein step for the next iteration
+			double ss = 0d;
+			double sy = 0d;
+			for (int c=0; c<nCols; c++) {
+				double s = xNew[c] - x[c];
+				ss += s*s;
+				sy += s*(gradNew[c] - grad[c]);
+			}
+			step = sy > 0d ? ss/sy : step*2d;
+
+			double[] tmp = x; x = xNew; xNew = tmp;
+			tmp = misfit; misfit = misfitNew; misfitNew = tmp;
+			tmp = misfitIneq; misfitIneq = misfitIneqNew; misfitIneqNew = tmp;
+			tmp = grad; grad = gradNew; gradNew = tmp;
+			f = fNew;
+			iterations++;
+
+			long millis = watch.elapsed().toMillis();
+			if (iterations % progressModulus == 0l)
+				addProgress(iterations, millis, misfit, misfitIneq);
+			E = calcEnergy(x, misfit, misfitIneq);
+			state = new InversionState(millis, iterations, E, iterations, 0l, countNonZero(x), x, misfit, misfitIneq,
+					constraintRanges);
+		}
+		long millis = watch.elapsed().toMillis();
+		if (iterations % progressModulus != 0l)
+			addProgress(iterations, millis, misfit, misfitIneq);
+		System.out.println("Projected gradient polish "+(converged ? "converged" : "completed")+" after "+iterations
+				+" iterations ("+evaluations+" evaluations) in "+(float)(millis/1000d)+" s; E[0]: "
+				+(float)state.energy[0]);
+
+		xbest = x;
+		Ebest = state.energy;
+		misfitBest = misfit;
+		misfitIneqBest = misfitIneq;
+		numNonZero = state.numNonZero;
+		return state;
+	}
+
+	public double[] getBestSolution() {
+		return xbest;
+	}
+
+	public double[] getBestEnergy() {
+		return Ebest;
+	}
+
+	public double[] getBestMisfit() {
+		return misfitBest;
+	}
+
+	public double[] getBestInequalityMisfit() {
+		return misfitIneqBest;
+	}
+
+	public int getNumNonZero() {
+		return numNonZero;
+	}
+
+	/**
+	 * Builds misfit progress for the polish stage. If a prior progress (e.g., from reweighted annealing) is supplied,
+	 * polish progress is appended to it.
+	 *
+	 * @param prior prior progress, or null
+	 * @param iterOffset offset to add to polish iteration counts (e.g., the number of annealing iterations)
+	 * @param timeOffset offset to add to polish times in milliseconds (e.g., the annealing time)
+	 * @return misfit progress, or null if constraint ranges were not supplied
+	 */
+	public InversionMisfitProgress getMisfitProgress(InversionMisfitProgress prior, long iterOffset, long timeOffset) {
+		Preconditions.checkState(progressIters != null, "Must polish first");
+		if (constraintRanges == null)
+			return prior;
+		List<Long> iters = new ArrayList<>();
+		List<Long> times = new ArrayList<>();
+		List<InversionMisfitStats> stats = new ArrayList<>();
+		List<Double> targetVals = null;
+		if (prior != null) {
+			iters.addAll(prior.getIterations());
+			times.addAll(prior.getTimes());
+			stats.addAll(prior.getStats());
+			if (prior.getTargetVals() != null && !prior.getTargetVals().isEmpty())
+				targetVals = new ArrayList<>(prior.getTargetVals());
+		}
+		for (int i=0; i<progressIters.size(); i++) {
+			iters.add(progressIters.get(i) + iterOffset);
+			times.add(progressTimes.get(i) + timeOffset);
+			stats.add(progressStats.get(i));
+			if (targetVals != null)
+				// target is no longer updated
+				targetVals.add(targetVals.get(targetVals.size()-1));
+		}
+		if (targetVals != null)
+			return new InversionMisfitProgress(iters, times, stats, prior.getTargetQuantity(), targetVals);
+		return new InversionMisfitProgress(iters, times, stats);
+	}
+
+}
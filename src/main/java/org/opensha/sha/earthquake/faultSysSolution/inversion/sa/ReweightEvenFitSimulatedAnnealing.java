@@ -623,18 +623,20 @@ public class ReweightEvenFitSimulatedAnnealing extends ThreadedSimulatedAnnealin
 			if (verbose) System.out.println("Re-calculating misfits");
 			double[] xbest = getBestSolution();
 			double[] misfit = new double[modD.length];
-			SerialSimulatedAnnealing.calculateMisfit(modA, modD, xbest, misfit);
+			ColumnOrganizedAnnealingData modEqualityData = new ColumnOrganizedAnnealingData(modA, modD);
+			modEqualityData.setMatVecThreads(getNumThreads());
+			SerialSimulatedAnnealing.calculateMisfit(modEqualityData, xbest, misfit);
 			double[] misfit_ineq = null;
 			int nRow = modA.rows();
 			int nCol = modA.columns();
 			int ineqRows = 0;
-			ColumnOrganizedAnnealingData modEqualityData = new ColumnOrganizedAnnealingData(modA, modD);
 			ColumnOrganizedAnnealingData modInqualityData = null;
 			if (modA_ineq != null) {
 				modInqualityData = new ColumnOrganizedAnnealingData(modA_ineq, modD_ineq);
+				modInqualityData.setMatVecThreads(getNumThreads());
 				misfit_ineq = new double[modD_ineq.length];
 				ineqRows = misfit_ineq.length;
-				SerialSimulatedAnnealing.calculateMisfit(modA_ineq, modD_ineq, xbest, misfit_ineq);
+				SerialSimulatedAnnealing.calculateMisfit(modInqualityData, xbest, misfit_ineq);
 			}
 
 			if (verbose) System.out.println("Re-calculating energies");
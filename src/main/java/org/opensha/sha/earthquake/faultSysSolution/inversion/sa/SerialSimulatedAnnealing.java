@@ -20,6 +20,7 @@ import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.params.Nonnegati
 import cern.colt.matrix.tdouble.DoubleMatrix1D;
 import cern.colt.matrix.tdouble.DoubleMatrix2D;
 import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
 
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Doubles;
@@ -294,15 +295,18 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	}
 	
 	/**
-	 * Calculates misfits (synthetics - date) for the given solution. This is slow as it does a complete matrix
-	 * multiplication, and is not used in the inner annealing loops.
+	 * Calculates misfits (synthetics - date) for the given solution. This does a complete matrix multiplication
+	 * (multithreaded if configured, see {@link ColumnOrganizedAnnealingData#getMatVec()}), and is not used in the inner annealing
+	 * loops.
 	 * 
 	 * @param data constraint data
 	 * @param solution solution
 	 * @param misfit array where misfits will be stored
 	 */
 	public static void calculateMisfit(ColumnOrganizedAnnealingData data, double[] solution, double[] misfit) {
-		calculateMisfit(data.A, data.d, solution, misfit);
+		data.getMatVec().multiply(solution, misfit);
+		for (int i = 0; i < data.nRows; i++)
+			misfit[i] -= data.d[i];  // misfit between synthetics and data
 	}
 	
 	/**
@@ -315,6 +319,28 @@ public class SerialSimulatedAnnealing implements SimulatedAnnealing {
 	 * @param misfit array where misfits will be stored
 	 */
 	public static void calculateMisfit(DoubleMatrix2D mat, double[] data, double[] solution, double[] misfit) {
+		calculateMisfit(mat, data, solution, misfit, 1);
+	}
+	
+	/**
+	 * Calculates misfits (synthetics - date) for the given solution. This is slow as it does a complete matrix
+	 * multiplication, and is not used in the inner annealing loops.
+	 * 
+	 * @param mat A matrix
+	 * @param data data
+	 * @param solution solution
+	 * @param misfit array where misfits will be stored
+	 * @param threads number of threads to use if the A matrix is column compressed
+	 */
+	public static void calculateMisfit(DoubleMatrix2D mat, double[] data, double[] solution, double[] misfit,
+			int threads) {
+		if (mat instanceof SparseCCDoubleMatrix2D) {
+			// operate directly on the compressed arrays, no temporary Colt vectors
+			SparseMatVec.multiply(((SparseCCDoubleMatrix2D)mat).elements(), solution, misfit, threads);
+			for (int i = 0; i < mat.rows(); i++)
+				misfit[i] -= data[i];  // misfit between synthetics and data
+			return;
+		}
 		DoubleMatrix1D sol_clone = new DenseDoubleMatrix1D(solution);
 		
 		DenseDoubleMatrix1D syn = new DenseDoubleMatrix1D(mat.rows());
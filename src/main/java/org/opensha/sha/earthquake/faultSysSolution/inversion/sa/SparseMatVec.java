@@ -0,0 +1,487 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion.sa;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionConfiguration;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionInputGenerator;
+import org.opensha.sha.earthquake.faultSysSolution.util.FaultSysTools;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Stopwatch;
+
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import edu.emory.mathcs.csparsej.tdouble.Dcs_common.Dcs;
+
+/**
+ * Multithreaded sparse matrix-vector products for a {@link ColumnOrganizedAnnealingData} A matrix, operating
+ * directly on primitive arrays.
+ * <br><br>
+ * With a single thread, products with A (<code>y = A*x</code>) scatter directly from the column organized data. With
+ * multiple threads, they are partitioned into blocks of rows with approximately equal numbers of non-zero values,
+ * using a compressed sparse row (CSR) copy of A that is built on first use (and can be released with
+ * {@link #release()}). Products with the transpose (<code>g = A^T*r</code>) are partitioned into blocks of columns
+ * and use the column organized data directly. In all cases each task writes to a distinct range of the output, so
+ * no synchronization or reduction is required.
+ * <br><br>
+ * Blocks are executed on a pool with the given number of threads, which is either supplied by the caller or created
+ * on first use (idle threads of a created pool time out, and {@link #shutdown()} can be used to release it
+ * immediately).
+ *
+ * @author kevin
+ *
+ */
+public class SparseMatVec {
+
+	private final ColumnOrganizedAnnealingData data;
+	private final int threads;
+
+	// column blocks for transpose products
+	private final int[] colBlockStarts;
+
+	// CSR copy, built lazily and only if multithreaded
+	private int[] rowPointers;
+	private int[] csrCols;
+	private double[] csrValues;
+	private int[] rowBlockStarts;
+
+	private ExecutorService exec;
+	private final boolean ownsExec;
+
+	private static final long IDLE_THREAD_TIMEOUT_SECS = 30l;
+
+	/**
+	 * @param data column organized A matrix
+	 * @param threads number of threads, and blocks to partition products into
+	 */
+	public SparseMatVec(ColumnOrganizedAnnealingData data, int threads) {
+		this(data, threads, null);
+	}
+
+	/**
+	 * @param data column organized A matrix
+	 * @param threads number of blocks to partition products into
+	 * @param exec executor on which blocks are executed, or null to create a pool with the given number of threads
+	 * on first use
+	 */
+	public SparseMatVec(ColumnOrganizedAnnealingData data, int threads, ExecutorService exec) {
+		Preconditions.checkArgument(threads > 0, "Threads must be positive");
+		this.data = data;
+		this.threads = threads;
+		this.exec = exec;
+		this.ownsExec = exec == null;
+
+		long[] colNNZ = new long[data.nCols];
+		for (int c=0; c<data.nCols; c++)
+			colNNZ[c] = data.colRows[c].length;
+		colBlockStarts = balancedBlocks(colNNZ, threads);
+	}
+
+	/**
+	 * Splits the given indexes into up to numBlocks contiguous blocks with approximately equal weights
+	 *
+	 * @param weights
+	 * @param numBlocks
+	 * @return block start indexes, with the final value equal to the total number of indexes
+	 */
+	private static int[] balancedBlocks(long[] weights, int numBlocks) {
+		long total = 0l;
+		for (long weight : weights)
+			total += weight;
+		numBlocks = Integer.max(1, Integer.min(numBlocks, weights.length));
+		int[] starts = new int[numBlocks+1];
+		long targetPerBlock = (total + numBlocks - 1)/numBlocks;
+		int block = 1;
+		long running = 0l;
+		for (int i=0; i<weights.length && block<numBlocks; i++) {
+			running += weights[i];
+			if (running >= targetPerBlock*block)
+				starts[block++] = i+1;
+		}
+		for (; block<=numBlocks; block++)
+			starts[block] = weights.length;
+		return starts;
+	}
+
+	private synchronized void checkBuildCSR() {
+		if (rowPointers != null)
+			return;
+		int nRows = data.nRows;
+		int[] rowCounts = new int[nRows+1];
+		long nnz = 0l;
+		for (int c=0; c<data.nCols; c++) {
+			for (int row : data.colRows[c])
+				rowCounts[row+1]++;
+			nnz += data.colRows[c].length;
+		}
+		Preconditions.checkState(nnz <= Integer.MAX_VALUE-8, "Too many non-zero values for CSR: %s", nnz);
+		long[] rowNNZ = new long[nRows];
+		for (int r=0; r<nRows; r++) {
+			rowNNZ[r] = rowCounts[r+1];
+			rowCounts[r+1] += rowCounts[r];
+		}
+		int[] cols = new int[(int)nnz];
+		double[] vals = new double[(int)nnz];
+		int[] next = new int[nRows];
+		System.arraycopy(rowCounts, 0, next, 0, nRows);
+		// iterate over columns in order so that columns are sorted within each row
+		for (int c=0; c<data.nCols; c++) {
+			int[] rows = data.colRows[c];
+			double[] colVals = data.colA_values[c];
+			for (int i=0; i<rows.length; i++) {
+				int dest = next[rows[i]]++;
+				cols[dest] = c;
+				vals[dest] = colVals[i];
+			}
+		}
+		csrCols = cols;
+		csrValues = vals;
+		rowBlockStarts = balancedBlocks(rowNNZ, threads);
+		rowPointers = rowCounts;
+	}
+
+	private synchronized ExecutorService getExecutor() {
+		if (exec == null || (ownsExec && exec.isShutdown())) {
+			Preconditions.checkState(ownsExec, "Supplied executor is null");
+			exec = createPool(threads);
+		}
+		return exec;
+	}
+
+	private static ExecutorService createPool(int threads) {
+		ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+				IDLE_THREAD_TIMEOUT_SECS, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "SparseMatVec");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// don't hold on to idle threads between infrequent products
+		pool.allowCoreThreadTimeOut(true);
+		return pool;
+	}
+
+	/**
+	 * Shuts down the thread pool if it was created by this instance (a supplied executor is left alone). Further
+	 * products will create a new pool.
+	 */
+	public synchronized void shutdown() {
+		if (ownsExec && exec != null) {
+			exec.shutdown();
+			exec = null;
+		}
+	}
+
+	/**
+	 * Shuts down the thread pool (see {@link #shutdown()}) and releases the CSR copy of A, if it has been built.
+	 * Both will be recreated if further products are computed.
+	 */
+	public synchronized void release() {
+		shutdown();
+		rowPointers = null;
+		csrCols = null;
+		csrValues = null;
+		rowBlockStarts = null;
+	}
+
+	synchronized boolean isCSRBuilt() {
+		return rowPointers != null;
+	}
+
+	private interface BlockTask {
+		public void run(int start, int end);
+	}
+
+	private void runBlocks(int[] blockStarts, BlockTask task) {
+		if (blockStarts.length == 2)
+			task.run(blockStarts[0], blockStarts[1]);
+		else
+			runBlocks(getExecutor(), blockStarts, task);
+	}
+
+	private static void runBlocks(ExecutorService exec, int[] blockStarts, BlockTask task) {
+		int numBlocks = blockStarts.length-1;
+		if (numBlocks == 1) {
+			task.run(blockStarts[0], blockStarts[1]);
+			return;
+		}
+		List<Future<?>> futures = new ArrayList<>(numBlocks);
+		for (int b=0; b<numBlocks; b++) {
+			int start = blockStarts[b];
+			int end = blockStarts[b+1];
+			if (end > start)
+				futures.add(exec.submit(new Runnable() {
+
+					@Override
+					public void run() {
+						task.run(start, end);
+					}
+				}));
+		}
+		try {
+			for (Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException | ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+
+	/**
+	 * Computes <code>y = A*x</code>
+	 *
+	 * @param x vector of length nCols
+	 * @param y output vector of length at least nRows
+	 */
+	public void multiply(double[] x, double[] y) {
+		Preconditions.checkArgument(x.length == data.nCols, "x has wrong length: %s != %s", x.length, data.nCols);
+		Preconditions.checkArgument(y.length >= data.nRows, "y is too short: %s < %s", y.length, data.nRows);
+		if (threads == 1) {
+			// scatter directly from the columns, no need for a CSR copy
+			int[][] colRows = data.colRows;
+			double[][] colVals = data.colA_values;
+			Arrays.fill(y, 0, data.nRows, 0d);
+			for (int c=0; c<data.nCols; c++) {
+				double xc = x[c];
+				if (xc == 0d)
+					continue;
+				int[] rows = colRows[c];
+				double[] vals = colVals[c];
+				for (int i=0; i<rows.length; i++)
+					y[rows[i]] += vals[i]*xc;
+			}
+			return;
+		}
+		final int[] rowPointers;
+		final int[] cols;
+		final double[] vals;
+		final int[] rowBlockStarts;
+		synchronized (this) {
+			// local copies, in case the CSR is released during this product
+			checkBuildCSR();
+			rowPointers = this.rowPointers;
+			cols = this.csrCols;
+			vals = this.csrValues;
+			rowBlockStarts = this.rowBlockStarts;
+		}
+		runBlocks(rowBlockStarts, new BlockTask() {
+
+			@Override
+			public void run(int start, int end) {
+				for (int r=start; r<end; r++) {
+					double sum = 0d;
+					for (int k=rowPointers[r]; k<rowPointers[r+1]; k++)
+						sum += vals[k]*x[cols[k]];
+					y[r] = sum;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computes <code>g = A^T*r</code>
+	 *
+	 * @param r vector of length at least nRows
+	 * @param g output vector of length nCols
+	 */
+	public void transposeMultiply(double[] r, double[] g) {
+		Preconditions.checkArgument(r.length >= data.nRows, "r is too short: %s < %s", r.length, data.nRows);
+		Preconditions.checkArgument(g.length == data.nCols, "g has wrong length: %s != %s", g.length, data.nCols);
+		final int[][] colRows = data.colRows;
+		final double[][] colVals = data.colA_values;
+		runBlocks(colBlockStarts, new BlockTask() {
+
+			@Override
+			public void run(int start, int end) {
+				for (int c=start; c<end; c++) {
+					int[] rows = colRows[c];
+					double[] vals = colVals[c];
+					double sum = 0d;
+					for (int i=0; i<rows.length; i++)
+						sum += vals[i]*r[rows[i]];
+					g[c] = sum;
+				}
+			}
+		});
+	}
+
+	/**
+	 * Computes <code>y = A*x</code> directly from column compressed arrays, without any temporary Colt objects.
+	 * This is single threaded; use an instance (e.g., {@link ColumnOrganizedAnnealingData#getMatVec()}) for
+	 * repeated and parallel products.
+	 *
+	 * @param dcs column compressed A matrix
+	 * @param x vector of length n
+	 * @param y output vector of length at least m
+	 */
+	public static void multiply(Dcs dcs, double[] x, double[] y) {
+		multiply(dcs, x, y, 1);
+	}
+
+	/**
+	 * Computes <code>y = A*x</code> directly from column compressed arrays, without any temporary Colt objects.
+	 * <br><br>
+	 * If multiple threads are used, the columns are partitioned into blocks with approximately equal numbers of
+	 * non-zero values. Each block accumulates into its own partial output, and partial outputs are then summed in
+	 * block order, so results are reproducible for a given thread count but may differ from the single threaded
+	 * product in the last few bits. A temporary pool is used for the product; use an instance (e.g.,
+	 * {@link ColumnOrganizedAnnealingData#getMatVec()}) for repeated products.
+	 *
+	 * @param dcs column compressed A matrix
+	 * @param x vector of length n
+	 * @param y output vector of length at least m
+	 * @param threads number of threads
+	 */
+	public static void multiply(Dcs dcs, double[] x, double[] y, int threads) {
+		Preconditions.checkArgument(dcs.nz == -1, "Matrix is not column compressed");
+		Preconditions.checkArgument(x.length == dcs.n, "x has wrong length: %s != %s", x.length, dcs.n);
+		Preconditions.checkArgument(y.length >= dcs.m, "y is too short: %s < %s", y.length, dcs.m);
+		Preconditions.checkArgument(threads > 0, "Threads must be positive");
+		final int m = dcs.m;
+		final int[] colPointers = dcs.p;
+		final int[] rows = dcs.i;
+		final double[] vals = dcs.x;
+
+		long[] colNNZ = new long[dcs.n];
+		for (int c=0; c<dcs.n; c++)
+			colNNZ[c] = colPointers[c+1] - colPointers[c];
+		int[] colBlockStarts = balancedBlocks(colNNZ, threads);
+		int numBlocks = colBlockStarts.length-1;
+		if (numBlocks == 1) {
+			multiplyColumns(colPointers, rows, vals, x, y, m, 0, dcs.n);
+			return;
+		}
+
+		// first block accumulates directly into y
+		final double[][] partials = new double[numBlocks][];
+		partials[0] = y;
+		for (int b=1; b<numBlocks; b++)
+			partials[b] = new double[m];
+		ExecutorService exec = createPool(numBlocks);
+		try {
+			int[] blockIndexes = new int[numBlocks+1];
+			for (int b=0; b<=numBlocks; b++)
+				blockIndexes[b] = b;
+			runBlocks(exec, blockIndexes, new BlockTask() {
+
+				@Override
+				public void run(int start, int end) {
+					for (int b=start; b<end; b++)
+						multiplyColumns(colPointers, rows, vals, x, partials[b], m, colBlockStarts[b], colBlockStarts[b+1]);
+				}
+			});
+			// now sum the partial outputs, in block order
+			int[] rowBlockStarts = new int[numBlocks+1];
+			for (int b=0; b<=numBlocks; b++)
+				rowBlockStarts[b] = (int)((long)m*b/numBlocks);
+			runBlocks(exec, rowBlockStarts, new BlockTask() {
+
+				@Override
+				public void run(int start, int end) {
+					for (int b=1; b<partials.length; b++) {
+						double[] partial = partials[b];
+						for (int r=start; r<end; r++)
+							y[r] += partial[r];
+					}
+				}
+			});
+		} finally {
+			exec.shutdown();
+		}
+	}
+
+	private static void multiplyColumns(int[] colPointers, int[] rows, double[] vals, double[] x, double[] y, int m,
+			int startCol, int endCol) {
+		Arrays.fill(y, 0, m, 0d);
+		for (int c=startCol; c<endCol; c++) {
+			double xc = x[c];
+			if (xc == 0d)
+				continue;
+			for (int k=colPointers[c]; k<colPointers[c+1]; k++)
+				y[rows[k]] += vals[k]*xc;
+		}
+	}
+
+	public ColumnOrganizedAnnealingData getData() {
+		return data;
+	}
+
+	public int getThreads() {
+		return threads;
+	}
+
+	/**
+	 * Benchmark of A*x products on the equality A matrix of an actual inversion. The inversion inputs are rebuilt from
+	 * the {@link InversionConfiguration} module of the given solution (e.g., an NSHM23 branch solution), and products
+	 * are computed with the solution rates.
+	 *
+	 * @param args [solution file, max threads (optional)]
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		Preconditions.checkArgument(args.length == 1 || args.length == 2,
+				"USAGE: <solution-file> [<max-threads>]");
+		FaultSystemSolution sol = FaultSystemSolution.load(new File(args[0]));
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) : FaultSysTools.defaultNumThreads();
+		int trials = 10;
+
+		InversionConfiguration config = sol.requireModule(InversionConfiguration.class);
+		InversionInputGenerator inputs = new InversionInputGenerator(sol.getRupSet(), config);
+		inputs.generateInputs(SparseCCDoubleMatrix2D.class, false);
+		SparseCCDoubleMatrix2D A = (SparseCCDoubleMatrix2D)inputs.getA();
+		Dcs dcs = A.elements();
+		int rows = A.rows();
+		System.out.println("A matrix: "+rows+"x"+A.columns()+", "+dcs.p[dcs.n]+" non-zero values");
+		ColumnOrganizedAnnealingData data = new ColumnOrganizedAnnealingData(A, inputs.getD());
+
+		double[] x = sol.getRateForAllRups();
+		double[] y = new double[rows];
+
+		Stopwatch watch = Stopwatch.createStarted();
+		DenseDoubleMatrix1D syn = null;
+		for (int t=0; t<trials; t++) {
+			syn = new DenseDoubleMatrix1D(rows);
+			A.zMult(new DenseDoubleMatrix1D(x), syn);
+		}
+		watch.stop();
+		System.out.println("Colt zMult:\t"+(float)(watch.elapsed(TimeUnit.MICROSECONDS)/1000d/trials)+" ms");
+
+		for (int threads=1; threads<=maxThreads; threads = threads == maxThreads ? threads+1 : Integer.min(maxThreads, threads*2)) {
+			watch.reset().start();
+			for (int t=0; t<trials; t++)
+				multiply(dcs, x, y, threads);
+			watch.stop();
+			System.out.println("CSC "+threads+" threads:\t"+(float)(watch.elapsed(TimeUnit.MICROSECONDS)/1000d/trials)+" ms");
+
+			SparseMatVec matVec = new SparseMatVec(data, threads);
+			matVec.multiply(x, y); // builds CSR if multithreaded
+			watch.reset().start();
+			for (int t=0; t<trials; t++)
+				matVec.multiply(x, y);
+			watch.stop();
+			matVec.release();
+			System.out.println((threads == 1 ? "Columns " : "CSR ")+threads+" threads:\t"+(float)(watch.elapsed(TimeUnit.MICROSECONDS)/1000d/trials)+" ms");
+		}
+
+		double maxDiff = 0d;
+		for (int i=0; i<rows; i++)
+			maxDiff = Math.max(maxDiff, Math.abs(y[i] - syn.getQuick(i)));
+		System.out.println("Max absolute difference from Colt: "+maxDiff);
+	}
+
+}
@@ -24,6 +24,7 @@ import org.opensha.commons.logicTree.LogicTreeLevel;
 import org.opensha.commons.logicTree.LogicTreeNode;
 import org.opensha.commons.util.io.archive.ArchiveInput;
 import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.io.archive.ParallelArchiveWriter;
 import org.opensha.commons.util.modules.ArchivableModule;
 import org.opensha.commons.util.modules.ModuleHelper;
 import org.opensha.commons.util.modules.helpers.FileBackedModule;
@@ -52,6 +53,7 @@ public abstract class AbstractLogicTreeModule implements ArchivableModule {
 	private Map<LogicTreeLevel<?>, Integer> levelIndexes;
 	
 	protected boolean verbose;
+	private int writeThreads = 1;
 
 	public static final String LOGIC_TREE_FILE_NAME = "logic_tree.json";
 	public static final String LOGIC_TREE_MAPPINGS_FILE_NAME = "logic_tree_mappings.json";
@@ -66,6 +68,22 @@ public abstract class AbstractLogicTreeModule implements ArchivableModule {
 		this.verbose = verbose;
 	}
 	
+	/**
+	 * Sets the number of threads used to serialize branch files in {@link #writeToArchive(ArchiveOutput, String)}. If
+	 * greater than 1, each branch is serialized (and deflated, if supported by the output) in parallel via a
+	 * {@link ParallelArchiveWriter}, and the resulting archive is identical to a serial write.
+	 * 
+	 * @param writeThreads
+	 */
+	public void setWriteThreads(int writeThreads) {
+		Preconditions.checkArgument(writeThreads > 0, "Must supply at least 1 thread");
+		this.writeThreads = writeThreads;
+	}
+	
+	public int getWriteThreads() {
+		return writeThreads;
+	}
+	
 	/**
 	 * Logic tree specific files will live in their own unique sub-directory, with this name
 
@@ -195,6 +213,73 @@ public abstract class AbstractLogicTreeModule implements ArchivableModule {
 	protected abstract Map<String, String> writeBranchFilesToArchive(ArchiveOutput output, String prefix, LogicTreeBranch<?> branch,
 			HashSet<String> writtenFiles) throws IOException;
 	
+	/**
+	 * Same as {@link #writeBranchFilesToArchive(ArchiveOutput, String, LogicTreeBranch, HashSet)}, but files may be
+	 * written in parallel through the given {@link ParallelArchiveWriter} (if non-null). The writtenFiles set must
+	 * still be updated before this returns.
+	 * <p>
+	 * The default implementation flushes any pending parallel writes and then writes files directly.
+	 * 
+	 * @param output
+	 * @param parallel parallel writer for the given output, or null to write directly
+	 * @param prefix
+	 * @param branch
+	 * @param writtenFiles set containing names of all files already written
+	 * @return file name mappings for this branch
+	 * @throws IOException
+	 */
+	protected Map<String, String> writeBranchFilesToArchive(ArchiveOutput output, ParallelArchiveWriter parallel,
+			String prefix, LogicTreeBranch<?> branch, HashSet<String> writtenFiles) throws IOException {
+		if (parallel != null)
+			parallel.flush();
+		return writeBranchFilesToArchive(output, prefix, branch, writtenFiles);
+	}
+	
+	/**
+	 * Collects the files written for a single branch. Without a {@link ParallelArchiveWriter}, each task is written
+	 * immediately; otherwise, tasks are queued and then submitted as a single parallel task by {@link #submit()}.
+	 * <p>
+	 * Decisions about which files to write (and updates to the written files set) must be made on the calling thread,
+	 * and tasks must not modify any shared state.
+	 * 
+	 * @author kevin
+	 *
+	 */
+	protected static class BranchFileWriter {
+		
+		private ArchiveOutput output;
+		private ParallelArchiveWriter parallel;
+		private List<ParallelArchiveWriter.WriteTask> tasks;
+		
+		public BranchFileWriter(ArchiveOutput output, ParallelArchiveWriter parallel) {
+			this.output = output;
+			this.parallel = parallel;
+			this.tasks = new ArrayList<>();
+		}
+		
+		public void write(ParallelArchiveWriter.WriteTask task) throws IOException {
+			if (parallel == null)
+				task.write(output);
+			else
+				tasks.add(task);
+		}
+		
+		public void submit() throws IOException {
+			if (parallel == null || tasks.isEmpty())
+				return;
+			List<ParallelArchiveWriter.WriteTask> branchTasks = tasks;
+			tasks = new ArrayList<>();
+			parallel.submit(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					for (ParallelArchiveWriter.WriteTask task : branchTasks)
+						task.write(output);
+				}
+			}, null);
+		}
+	}
+	
 	protected String getFilePrefix() {
 		Preconditions.checkNotNull(prefix, "Not yet initialized");
 		return prefix;
@@ -349,10 +434,16 @@ public abstract class AbstractLogicTreeModule implements ArchivableModule {
 		HashSet<String> writtenFiles = new HashSet<>();
 		
 		List<Map<String, String>> branchMappings = new ArrayList<>();
-		for (int i=0; i<logicTree.size(); i++) {
-			LogicTreeBranch<?> branch = logicTree.getBranch(i);
-			if (verbose) System.out.println("Writing branch "+i+"/"+logicTree.size()+": "+branch);
-			branchMappings.add(writeBranchFilesToArchive(output, outPrefix, branch, writtenFiles));
+		ParallelArchiveWriter parallel = writeThreads > 1 ? new ParallelArchiveWriter(output, writeThreads) : null;
+		try {
+			for (int i=0; i<logicTree.size(); i++) {
+				LogicTreeBranch<?> branch = logicTree.getBranch(i);
+				if (verbose) System.out.println("Writing branch "+i+"/"+logicTree.size()+": "+branch);
+				branchMappings.add(writeBranchFilesToArchive(output, parallel, outPrefix, branch, writtenFiles));
+			}
+		} finally {
+			if (parallel != null)
+				parallel.close();
 		}
 		
 		// write mappings file
@@ -10,7 +10,9 @@ import org.opensha.commons.util.io.archive.ArchiveOutput;
 import org.opensha.commons.util.modules.ArchivableModule;
 import org.opensha.commons.util.modules.AverageableModule;
 import org.opensha.commons.util.modules.SubModule;
-import org.opensha.commons.util.modules.helpers.CSV_BackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumnBackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumns;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.RupSetScalingRelationship;
 import org.opensha.sha.faultSurface.FaultSection;
@@ -167,9 +169,11 @@ SplittableRuptureModule<AveSlipModule> {
 	
 	public static final String DATA_FILE_NAME = "average_slips.csv";
 
-	public static class Precomputed extends AveSlipModule implements CSV_BackedModule {
+	public static class Precomputed extends AveSlipModule implements BinaryColumnBackedModule {
 
 		private double[] aveSlips;
+		
+		private transient Encoding binaryEncoding;
 
 		private Precomputed() {
 			super(null);
@@ -220,6 +224,36 @@ SplittableRuptureModule<AveSlipModule> {
 			}
 			this.aveSlips = aveSlips;
 		}
+
+		/**
+		 * Sets the binary encoding used when writing this module to an archive, or null (default) to use
+		 * {@link BinaryColumns#getDefaultEncoding()} (CSV unless configured)
+		 * 
+		 * @param binaryEncoding
+		 */
+		public void setBinaryEncoding(Encoding binaryEncoding) {
+			this.binaryEncoding = binaryEncoding;
+		}
+
+		@Override
+		public Encoding getBinaryEncoding() {
+			return binaryEncoding;
+		}
+
+		@Override
+		public BinaryColumns getBinaryColumns() {
+			return new BinaryColumns().add("Average Slip (m)", aveSlips);
+		}
+
+		@Override
+		public void initFromBinaryColumns(BinaryColumns columns) {
+			int numRups = rupSet.getNumRuptures();
+			double[] aveSlips = columns.getDoubles("Average Slip (m)");
+			Preconditions.checkState(aveSlips.length == numRups,
+					"Expected %s rupture average slips, have %s", numRups, aveSlips.length);
+			this.aveSlips = aveSlips;
+			this.binaryEncoding = columns.getEncoding();
+		}
 		
 		@Override
 		public SubModule<FaultSystemRupSet> copy(FaultSystemRupSet newParent) throws IllegalStateException {
@@ -238,9 +272,11 @@ SplittableRuptureModule<AveSlipModule> {
 				private double[] values;
 				
 				private double sumWeight = 0d;
+				private AveragingEncodingTracker encodings = new AveragingEncodingTracker();
 				
 				@Override
 				public void process(AveSlipModule module, double relWeight) {
+					encodings.process(module);
 					if (refValues == null) {
 						allSame = true;
 						ref = module;
@@ -268,7 +304,9 @@ SplittableRuptureModule<AveSlipModule> {
 					if (allSame)
 						return ref;
 					AverageableModule.scaleToTotalWeight(values, sumWeight);
-					return new Precomputed(null, values);
+					Precomputed average = new Precomputed(null, values);
+					average.setBinaryEncoding(encodings.getEncoding());
+					return average;
 				}
 
 				@Override
@@ -1,9 +1,16 @@
 package org.opensha.sha.earthquake.faultSysSolution.modules;
 
 import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStreamWriter;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -15,6 +22,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.DoubleBinaryOperator;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
@@ -96,7 +104,7 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 
 	@Override
 	public double getSourceMinMagCutoff() {
-		return getSourceMinMagCutoff();
+		return sourceMinMag;
 	}
 
 	@Override
@@ -357,6 +365,7 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 	
 	public static final String ARCHIVE_GRID_LOCS_FILE_NAME = "grid_source_locations.csv";
 	public static final String ARCHIVE_GRID_SOURCES_FILE_NAME = "grid_sources.csv";
+	public static final String ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME = "grid_sources.bin";
 	
 	private static final int locRoundScale = 3;
 	private static final int magRoundScale = 3;
@@ -366,9 +375,22 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 	private static final int rateRoundSigFigs = 6;
 	
 	private boolean round = true;
+	private boolean writeBinary = true;
 	
 	public void setArhiveRounding(boolean round) {
-		this.round = true;
+		this.round = round;
+	}
+	
+	/**
+	 * Sets whether or not {@link #ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME} should be written (in addition to the CSV file)
+	 * when this module is written to an archive. Binary values are rounded identically to the CSV file
+	 * (see {@link #setArhiveRounding(boolean)}). If written, this module will be loaded back in as a {@link Columnar}
+	 * instance. Default is true.
+	 * 
+	 * @param writeBinary
+	 */
+	public void setArchiveBinary(boolean writeBinary) {
+		this.writeBinary = writeBinary;
 	}
 	
 	public CSVFile<String> buildGridLocsCSV() {
@@ -466,12 +488,37 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 		
 		// write gridded rupture list
 		writeGridSourcesCSV(output, ArchivableModule.getEntryName(entryPrefix, ARCHIVE_GRID_SOURCES_FILE_NAME));
+		
+		if (writeBinary)
+			// also write it in binary columnar form, which is faster to load
+			writeGridSourcesBinary(output, ArchivableModule.getEntryName(entryPrefix, ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME));
+	}
+	
+	/**
+	 * Writes all gridded ruptures in the binary columnar format read by {@link Columnar}. Values are rounded exactly
+	 * as they are in {@link #writeGridSourcesCSV(ArchiveOutput, String)}, so ruptures loaded from either file are
+	 * identical.
+	 * 
+	 * @param output
+	 * @param entryName
+	 * @throws IOException
+	 */
+	public void writeGridSourcesBinary(ArchiveOutput output, String entryName) throws IOException {
+		Columnar columnar = new Columnar(this, true);
+		// store uncompressed (if supported) so that it can be memory-mapped when loaded
+		output.putNextUncompressedEntry(entryName);
+		// don't close this stream, that would close the archive
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(output.getOutputStream()));
+		columnar.writeColumns(dout);
+		dout.flush();
+		output.closeEntry();
 	}
 
 	@Override
 	public Class<? extends ArchivableModule> getLoadingClass() {
-		// will always load back in as Precomputed unless explicitly overridden in a downstream class
-		return Precomputed.class;
+		// will always load back in as Columnar (if the binary file is written) or Precomputed, unless explicitly
+		// overridden in a downstream class
+		return writeBinary ? Columnar.class : Precomputed.class;
 	}
 	
 	private static boolean isRangeString(String str) {
@@ -528,6 +575,57 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 		return DataUtils.roundSigFigs(val, sigFigs)+"";
 	}
 	
+	private static double parseArchiveValue(String str) {
+		return str.isEmpty() ? Double.NaN : Double.parseDouble(str);
+	}
+	
+	/**
+	 * @param rup
+	 * @param cache
+	 * @return copy of the given rupture with values exactly as they would be loaded from
+	 * {@link #writeGridSourcesCSV(ArchiveOutput, String)}
+	 */
+	private GriddedRupture getArchiveRounded(GriddedRupture rup, GriddedRupturePropertiesCache cache) {
+		GriddedRuptureProperties props = rup.properties;
+		Range<Double> strikeRange = null;
+		if (props.strikeRange != null)
+			strikeRange = Range.closed(
+					parseArchiveValue(getSigFigs(props.strikeRange.lowerEndpoint(), mechRoundSigFigs)),
+					parseArchiveValue(getSigFigs(props.strikeRange.upperEndpoint(), mechRoundSigFigs)));
+		GriddedRuptureProperties roundedProps = cache.getCached(new GriddedRuptureProperties(
+				parseArchiveValue(getFixedPrecision(props.magnitude, magRoundScale)),
+				parseArchiveValue(getSigFigs(props.rake, mechRoundSigFigs)),
+				parseArchiveValue(getSigFigs(props.dip, mechRoundSigFigs)),
+				strikeRange == null ? parseArchiveValue(getSigFigs(props.strike, mechRoundSigFigs)) : Double.NaN,
+				strikeRange,
+				parseArchiveValue(getSigFigs(props.upperDepth, depthRoundSigFigs)),
+				parseArchiveValue(getSigFigs(props.lowerDepth, depthRoundSigFigs)),
+				parseArchiveValue(getSigFigs(props.length, lenRoundSigFigs)),
+				parseArchiveValue(getSigFigs(props.hypocentralDepth, depthRoundSigFigs)),
+				parseArchiveValue(getSigFigs(props.hypocentralDAS, lenRoundSigFigs)),
+				props.tectonicRegionType));
+		int[] associatedSections = null;
+		double[] associatedSectionFracts = null;
+		if (rup.associatedSections != null && rup.associatedSections.length > 0) {
+			associatedSections = rup.associatedSections;
+			associatedSectionFracts = new double[rup.associatedSectionFracts.length];
+			for (int i=0; i<associatedSectionFracts.length; i++)
+				// fractions are parsed as floats
+				associatedSectionFracts[i] = Float.parseFloat(getSigFigs(rup.associatedSectionFracts[i], rateRoundSigFigs));
+		}
+		return new GriddedRupture(rup.gridIndex, rup.location, roundedProps,
+				parseArchiveValue(getSigFigs(rup.rate, rateRoundSigFigs)), associatedSections, associatedSectionFracts);
+	}
+	
+	private static GriddedRegion loadGridRegion(ArchiveInput input, String entryPrefix) throws IOException {
+		if (!FileBackedModule.hasEntry(input, entryPrefix, GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME))
+			return null;
+		BufferedInputStream regionIS = FileBackedModule.getInputStream(input, entryPrefix, GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME);
+		InputStreamReader regionReader = new InputStreamReader(regionIS);
+		Feature regFeature = Feature.read(regionReader);
+		return GriddedRegion.fromFeature(regFeature);
+	}
+	
 	public static LocationList loadGridLocsCSV(CSVFile<String> gridCSV, GriddedRegion gridReg) {
 		LocationList fileLocs = new LocationList();
 		for (int row=1; row<gridCSV.getNumRows(); row++) {
@@ -571,85 +669,9 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 			if (row == null)
 				break;
 			
-			int col = 0;
-			int gridIndex = row.getInt(col++);
-			Preconditions.checkState(gridIndex >= 0 && gridIndex < locs.size(),
-					"Bad gridIndex=%s with %s locations", gridIndex, locs.size());
-			double mag = row.getDouble(col++);
-			Preconditions.checkState(Double.isFinite(mag), "Bad magnitude=%s", mag);
-			double rate = row.getDouble(col++);
-			Preconditions.checkState(Double.isFinite(rate) && rate >= 0d, "Bad rate=%s", rate);
-			double rake = row.getDouble(col++);
-			FaultUtils.assertValidRake(rake);
-			double dip = row.getDouble(col++);
-			FaultUtils.assertValidDip(dip);
-			String strikeStr = row.get(col++);
-			Range<Double> strikeRange = null;
-			double strike = Double.NaN;
-			if (isRangeString(strikeStr))
-				strikeRange = parseRangeString(strikeStr);
-			else if (!strikeStr.isBlank())
-				strike = Double.parseDouble(strikeStr);
-			double upperDepth = row.getDouble(col++);
-			FaultUtils.assertValidDepth(upperDepth);
-			double lowerDepth = row.getDouble(col++);
-			FaultUtils.assertValidDepth(lowerDepth);
-			double length = row.getDouble(col++);
-			Preconditions.checkState(Double.isFinite(length) && length >= 0d, "Bad length=%s", length);
-			String hypocentralDepthStr = row.get(col++);
-			double hypocentralDepth = hypocentralDepthStr.isBlank() ? Double.NaN : Double.parseDouble(hypocentralDepthStr);
-			if (!Double.isNaN(hypocentralDepth)) {
-				FaultUtils.assertValidDepth(hypocentralDepth);
-				Preconditions.checkState((float)hypocentralDepth >= (float)upperDepth,
-						"Hypocentral depth (%s) must be at or below upper depth (%s)", (float)hypocentralDepth, (float)upperDepth);
-				Preconditions.checkState((float)hypocentralDepth <= (float)lowerDepth,
-						"Hypocentral depth (%s) must be at or above lower depth (%s)", (float)hypocentralDepth, (float)lowerDepth);
-			}
-			String hypocentralDASStr = row.get(col++);
-			double hypocentralDAS = hypocentralDASStr.isBlank() ? Double.NaN : Double.parseDouble(hypocentralDASStr);
-			if (!Double.isNaN(hypocentralDAS)) {
-				Preconditions.checkState(hypocentralDAS >= 0d && (float)hypocentralDAS <= (float)length,
-						"Hypocentral DAS (%s) must be >= 0 and <= len (%s)", (float)hypocentralDAS, (float)length);
-			}
-			TectonicRegionType tectonicRegionType = TectonicRegionType.valueOf(row.get(col++));
-			int colsLeft = row.columns() - col;
-			int[] associatedSections = null;
-			double[] associatedSectionFracts = null;
-			if (colsLeft > 0) {
-				Preconditions.checkState(colsLeft % 2 == 0,
-						"Have %s columns left for associations, which is not divisible by 2; expected pairs of id, fract",
-						colsLeft);
-				int numAssoc = colsLeft/2;
-				associatedSections = new int[numAssoc];
-				associatedSectionFracts = new double[numAssoc];
-				for (int i=0; i<numAssoc; i++) {
-					String sectStr = row.get(col++);
-					if (sectStr.isBlank()) {
-						// empty, bail here
-						if (i == 0) {
-							// didn't actually have any
-							associatedSections = null;
-							associatedSectionFracts = null;
-						} else {
-							// trim
-							associatedSections = Arrays.copyOf(associatedSections, i);
-							associatedSectionFracts = Arrays.copyOf(associatedSectionFracts, i);
-						}
-						break;
-					} else {
-						int sectID = Integer.parseInt(sectStr);
-						Preconditions.checkState(sectID >= 0, "Bad associated sectID=%s", sectID);
-						float fract = row.getFloat(col++);
-						Preconditions.checkState(fract >= 0d && fract <= 1d, "Bad associated fraction=%s", fract);
-						associatedSections[i] = sectID;
-						associatedSectionFracts[i] = fract;
-					}
-				}
-			}
-			GriddedRuptureProperties props = cache.getCached(new GriddedRuptureProperties(mag, rake, dip,
-					strike, strikeRange, upperDepth, lowerDepth, length, hypocentralDepth, hypocentralDAS,
-					tectonicRegionType));
-			GriddedRupture rup = new GriddedRupture(gridIndex, locs.get(gridIndex), props, rate, associatedSections, associatedSectionFracts);
+			GriddedRupture rup = parseGriddedRupture(row, locs, cache);
+			int gridIndex = rup.gridIndex;
+			TectonicRegionType tectonicRegionType = rup.properties.tectonicRegionType;
 			if (!trtRuptureLists.containsKey(tectonicRegionType)) {
 				List<List<GriddedRupture>> ruptureLists = new ArrayList<>(locs.size());
 				for (int i=0; i<locs.size(); i++)
@@ -664,6 +686,88 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 		return trtRuptureLists;
 	}
 	
+	private static GriddedRupture parseGriddedRupture(Row row, LocationList locs, GriddedRupturePropertiesCache cache) {
+		int col = 0;
+		int gridIndex = row.getInt(col++);
+		Preconditions.checkState(gridIndex >= 0 && gridIndex < locs.size(),
+				"Bad gridIndex=%s with %s locations", gridIndex, locs.size());
+		double mag = row.getDouble(col++);
+		Preconditions.checkState(Double.isFinite(mag), "Bad magnitude=%s", mag);
+		double rate = row.getDouble(col++);
+		Preconditions.checkState(Double.isFinite(rate) && rate >= 0d, "Bad rate=%s", rate);
+		double rake = row.getDouble(col++);
+		FaultUtils.assertValidRake(rake);
+		double dip = row.getDouble(col++);
+		FaultUtils.assertValidDip(dip);
+		String strikeStr = row.get(col++);
+		Range<Double> strikeRange = null;
+		double strike = Double.NaN;
+		if (isRangeString(strikeStr))
+			strikeRange = parseRangeString(strikeStr);
+		else if (!strikeStr.isBlank())
+			strike = Double.parseDouble(strikeStr);
+		double upperDepth = row.getDouble(col++);
+		FaultUtils.assertValidDepth(upperDepth);
+		double lowerDepth = row.getDouble(col++);
+		FaultUtils.assertValidDepth(lowerDepth);
+		double length = row.getDouble(col++);
+		Preconditions.checkState(Double.isFinite(length) && length >= 0d, "Bad length=%s", length);
+		String hypocentralDepthStr = row.get(col++);
+		double hypocentralDepth = hypocentralDepthStr.isBlank() ? Double.NaN : Double.parseDouble(hypocentralDepthStr);
+		if (!Double.isNaN(hypocentralDepth)) {
+			FaultUtils.assertValidDepth(hypocentralDepth);
+			Preconditions.checkState((float)hypocentralDepth >= (float)upperDepth,
+					"Hypocentral depth (%s) must be at or below upper depth (%s)", (float)hypocentralDepth, (float)upperDepth);
+			Preconditions.checkState((float)hypocentralDepth <= (float)lowerDepth,
+					"Hypocentral depth (%s) must be at or above lower depth (%s)", (float)hypocentralDepth, (float)lowerDepth);
+		}
+		String hypocentralDASStr = row.get(col++);
+		double hypocentralDAS = hypocentralDASStr.isBlank() ? Double.NaN : Double.parseDouble(hypocentralDASStr);
+		if (!Double.isNaN(hypocentralDAS)) {
+			Preconditions.checkState(hypocentralDAS >= 0d && (float)hypocentralDAS <= (float)length,
+					"Hypocentral DAS (%s) must be >= 0 and <= len (%s)", (float)hypocentralDAS, (float)length);
+		}
+		TectonicRegionType tectonicRegionType = TectonicRegionType.valueOf(row.get(col++));
+		int colsLeft = row.columns() - col;
+		int[] associatedSections = null;
+		double[] associatedSectionFracts = null;
+		if (colsLeft > 0) {
+			Preconditions.checkState(colsLeft % 2 == 0,
+					"Have %s columns left for associations, which is not divisible by 2; expected pairs of id, fract",
+					colsLeft);
+			int numAssoc = colsLeft/2;
+			associatedSections = new int[numAssoc];
+			associatedSectionFracts = new double[numAssoc];
+			for (int i=0; i<numAssoc; i++) {
+				String sectStr = row.get(col++);
+				if (sectStr.isBlank()) {
+					// empty, bail here
+					if (i == 0) {
+						// didn't actually have any
+						associatedSections = null;
+						associatedSectionFracts = null;
+					} else {
+						// trim
+						associatedSections = Arrays.copyOf(associatedSections, i);
+						associatedSectionFracts = Arrays.copyOf(associatedSectionFracts, i);
+					}
+					break;
+				} else {
+					int sectID = Integer.parseInt(sectStr);
+					Preconditions.checkState(sectID >= 0, "Bad associated sectID=%s", sectID);
+					float fract = row.getFloat(col++);
+					Preconditions.checkState(fract >= 0d && fract <= 1d, "Bad associated fraction=%s", fract);
+					associatedSections[i] = sectID;
+					associatedSectionFracts[i] = fract;
+				}
+			}
+		}
+		GriddedRuptureProperties props = cache.getCached(new GriddedRuptureProperties(mag, rake, dip,
+				strike, strikeRange, upperDepth, lowerDepth, length, hypocentralDepth, hypocentralDAS,
+				tectonicRegionType));
+		return new GriddedRupture(gridIndex, locs.get(gridIndex), props, rate, associatedSections, associatedSectionFracts);
+	}
+	
 	public static final class GriddedRupturePropertiesCache {
 		private HashMap<GriddedRuptureProperties, GriddedRuptureProperties> cache = new HashMap<>();
 		
@@ -1721,6 +1825,17 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 		return new GridSourceList.Precomputed(combRegion, trtRuptureLists);
 	}
 	
+	private static IncrementalMagFreqDist buildRefMFD(double minMag, double maxMag, boolean magsTenthAligned) {
+		double delta = 0.1;
+		if (!magsTenthAligned) {
+			// align to 0.x5 bins (so that bin edges are at tenths)
+			minMag = Math.floor(minMag*10d)/10d + 0.5*delta;
+			maxMag = Math.floor(maxMag*10d)/10d + 0.5*delta;
+		}
+		int size = (int)Math.round((maxMag - minMag)/delta) + 1;
+		return new IncrementalMagFreqDist(minMag, size, delta);
+	}
+	
 	public static class Precomputed extends GridSourceList {
 		
 		private IncrementalMagFreqDist refMFD; // used for getMFD(...) methods
@@ -1830,14 +1945,7 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 			Preconditions.checkState(sourceIndex == sourceCount,
 					"Source count mismatch; expected=%s, sourceIndex=%s after last", sourceCount, sourceIndex);
 			Preconditions.checkState(numRups > 0, "Must supply at least 1 rupture to determine MFD gridding");
-			double delta = 0.1;
-			if (!magsTenthAligned) {
-				// align to 0.x5 bins (so that bin edges are at tenths)
-				minMag = Math.floor(minMag*10d)/10d + 0.5*delta;
-				maxMag = Math.floor(maxMag*10d)/10d + 0.5*delta;
-			}
-			int size = (int)Math.round((maxMag - minMag)/delta) + 1;
-			refMFD = new IncrementalMagFreqDist(minMag, size, delta);
+			refMFD = buildRefMFD(minMag, maxMag, magsTenthAligned);
 			
 			this.trtRuptureLists = trtRuptureListsOut;
 			this.sourceTRTs = sourceTRTs;
@@ -1916,24 +2024,716 @@ public abstract class GridSourceList implements GridSourceProvider, ArchivableMo
 		@Override
 		public void initFromArchive(ArchiveInput input, String entryPrefix) throws IOException {
 			// load gridded region (if supplied)
-			GriddedRegion gridReg = null;
-			if (FileBackedModule.hasEntry(input, entryPrefix, GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME)) {
-				BufferedInputStream regionIS = FileBackedModule.getInputStream(input, entryPrefix, GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME);
-				InputStreamReader regionReader = new InputStreamReader(regionIS);
-				Feature regFeature = Feature.read(regionReader);
-				gridReg = GriddedRegion.fromFeature(regFeature);
+			GriddedRegion gridReg = loadGridRegion(input, entryPrefix);
+			
+			// load grid location CSV
+			CSVFile<String> gridCSV = CSV_BackedModule.loadFromArchive(input, entryPrefix, ARCHIVE_GRID_LOCS_FILE_NAME);
+			LocationList locs = loadGridLocsCSV(gridCSV, gridReg);
+			
+			// load ruptures themselves, from the binary file if available (it contains identical values, but is faster)
+			EnumMap<TectonicRegionType, List<List<GriddedRupture>>> trtRuptureLists;
+			if (FileBackedModule.hasEntry(input, entryPrefix, ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME)) {
+				ByteBuffer buffer = input.getByteBuffer(ArchivableModule.getEntryName(entryPrefix, ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME));
+				EnumMap<TectonicRegionType, TRTColumns> trtColumns = Columnar.readColumns(buffer, locs.size());
+				trtRuptureLists = new EnumMap<>(TectonicRegionType.class);
+				for (TectonicRegionType trt : trtColumns.keySet()) {
+					TRTColumns columns = trtColumns.get(trt);
+					List<List<GriddedRupture>> ruptureLists = new ArrayList<>(locs.size());
+					for (int gridIndex=0; gridIndex<locs.size(); gridIndex++)
+						ruptureLists.add(columns.buildRuptures(gridIndex, locs.get(gridIndex)));
+					trtRuptureLists.put(trt, ruptureLists);
+				}
+			} else {
+				CSVReader rupSectsCSV = CSV_BackedModule.loadLargeFileFromArchive(input, entryPrefix, ARCHIVE_GRID_SOURCES_FILE_NAME);
+				trtRuptureLists = loadGridSourcesCSV(rupSectsCSV, locs);
+			}
+			setAll(gridReg, locs, trtRuptureLists);
+		}
+		
+	}
+	
+	/**
+	 * {@link GridSourceList} implementation that stores ruptures in primitive, columnar form rather than as
+	 * {@link GriddedRupture} instances. For each tectonic region type, ruptures are stored contiguously by grid node
+	 * with a node offset column, a rate column, a column of indexes into a table of unique
+	 * {@link GriddedRuptureProperties} (which hold magnitudes and geometry), and offset, section, and fraction columns
+	 * for fault associations.
+	 * <br><br>
+	 * {@link GriddedRupture} instances are built from the columns on the first call to
+	 * {@link #getRuptures(TectonicRegionType, int)} for each grid node and cached via soft references, so they can be
+	 * garbage collected (and later rebuilt) if memory is needed.
+	 * Use {@link #getNumRuptures(TectonicRegionType, int)}, {@link #getRate(TectonicRegionType, int, int)}, and
+	 * {@link #getProperties(TectonicRegionType, int, int)} to access values without building any ruptures.
+	 * <br><br>
+	 * When loaded from an archive that contains {@link GridSourceList#ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME}, columns
+	 * are views into that entry, which is memory-mapped if it is stored uncompressed
+	 * (see {@link ArchiveInput#getByteBuffer(String)}). Otherwise, columns are built directly from
+	 * {@link GridSourceList#ARCHIVE_GRID_SOURCES_FILE_NAME}.
+	 */
+	public static class Columnar extends GridSourceList {
+		
+		private static final int BINARY_MAGIC = 0x47534C43; // "GSLC"
+		private static final int BINARY_VERSION = 1;
+		// number of doubles used to store each GriddedRuptureProperties instance
+		private static final int PROPS_NUM_DOUBLES = 11;
+		
+		// the actual rupture data
+		private EnumMap<TectonicRegionType, TRTColumns> trtColumns;
+		
+		private IncrementalMagFreqDist refMFD; // used for getMFD(...) methods
+		
+		// mappings from source index to tectonic region type and grid index
+		private TectonicRegionType[] sourceTRTs;
+		private int[] sourceGridIndexes;
+		
+		// mapping from associated sections to grid nodes, built on demand
+		private Map<Integer, Set<Integer>> sectAssociations;
+		
+		@SuppressWarnings("unused") // for deserialization
+		private Columnar() {};
+		
+		/**
+		 * Builds a columnar copy of the given gridded source list
+		 * 
+		 * @param gridSources
+		 */
+		public Columnar(GridSourceList gridSources) {
+			this(gridSources, false);
+		}
+		
+		private Columnar(GridSourceList gridSources, boolean archiveRounded) {
+			setLocations(gridSources.gridReg, gridSources.locs);
+			EnumMap<TectonicRegionType, TRTColumns> trtColumns = new EnumMap<>(TectonicRegionType.class);
+			GriddedRupturePropertiesCache cache = archiveRounded ? new GriddedRupturePropertiesCache() : null;
+			for (TectonicRegionType trt : gridSources.getTectonicRegionTypes()) {
+				ColumnBuilder builder = new ColumnBuilder(trt);
+				for (int gridIndex=0; gridIndex<gridSources.getNumLocations(); gridIndex++)
+					for (GriddedRupture rup : gridSources.getRuptures(trt, gridIndex))
+						builder.add(archiveRounded ? gridSources.getArchiveRounded(rup, cache) : rup);
+				trtColumns.put(trt, builder.build(getNumLocations()));
+			}
+			setColumns(trtColumns);
+		}
+		
+		private void setColumns(EnumMap<TectonicRegionType, TRTColumns> trtColumns) {
+			int numLocs = getNumLocations();
+			int sourceCount = 0;
+			int numRups = 0;
+			double minMag = Double.POSITIVE_INFINITY;
+			double maxMag = Double.NEGATIVE_INFINITY;
+			boolean magsTenthAligned = true;
+			for (TectonicRegionType trt : trtColumns.keySet()) {
+				TRTColumns columns = trtColumns.get(trt);
+				Preconditions.checkState(columns.nodeOffsets.limit() == numLocs+1,
+						"Have offsets for %s nodes for %s, but %s locations", columns.nodeOffsets.limit()-1, trt, numLocs);
+				for (int gridIndex=0; gridIndex<numLocs; gridIndex++)
+					if (columns.getNumRuptures(gridIndex) > 0)
+						sourceCount++;
+				numRups += columns.getNumRuptures();
+				for (GriddedRuptureProperties props : columns.props) {
+					Preconditions.checkState(props.tectonicRegionType == trt, "Rupture says TRT is %s, but we're in the columns for %s",
+							props.tectonicRegionType, trt);
+					minMag = Math.min(minMag, props.magnitude);
+					maxMag = Math.max(maxMag, props.magnitude);
+					// detect the case where ruptures are directly on the tenths (e.g., 5.0, 5.1)
+					magsTenthAligned &= (float)(props.magnitude*10d) == (float)Math.floor(props.magnitude*10d);
+				}
+			}
+			Preconditions.checkState(numRups > 0, "Must supply at least 1 rupture to determine MFD gridding");
+			
+			TectonicRegionType[] sourceTRTs = new TectonicRegionType[sourceCount];
+			int[] sourceGridIndexes = new int[sourceCount];
+			int sourceIndex = 0;
+			for (TectonicRegionType trt : trtColumns.keySet()) {
+				TRTColumns columns = trtColumns.get(trt);
+				for (int gridIndex=0; gridIndex<numLocs; gridIndex++) {
+					if (columns.getNumRuptures(gridIndex) > 0) {
+						sourceTRTs[sourceIndex] = trt;
+						sourceGridIndexes[sourceIndex] = gridIndex;
+						sourceIndex++;
+					}
+				}
+			}
+			
+			this.refMFD = buildRefMFD(minMag, maxMag, magsTenthAligned);
+			this.trtColumns = trtColumns;
+			this.sourceTRTs = sourceTRTs;
+			this.sourceGridIndexes = sourceGridIndexes;
+			this.sectAssociations = null;
+		}
+		
+		@Override
+		public Set<TectonicRegionType> getTectonicRegionTypes() {
+			return trtColumns.keySet();
+		}
+
+		@Override
+		public int getNumSources() {
+			return sourceGridIndexes.length;
+		}
+
+		@Override
+		public int getLocationIndexForSource(int sourceIndex) {
+			return sourceGridIndexes[sourceIndex];
+		}
+
+		@Override
+		public TectonicRegionType tectonicRegionTypeForSourceIndex(int sourceIndex) {
+			return sourceTRTs[sourceIndex];
+		}
+		
+		@Override
+		public Set<Integer> getAssociatedGridIndexes(int sectionIndex) {
+			Set<Integer> ret = getSectAssociations().get(sectionIndex);
+			if (ret == null)
+				return Set.of();
+			return ret;
+		}
+		
+		private synchronized Map<Integer, Set<Integer>> getSectAssociations() {
+			if (sectAssociations == null) {
+				HashMap<Integer, Set<Integer>> sectAssociations = new HashMap<>();
+				for (TRTColumns columns : trtColumns.values()) {
+					if (columns.assocOffsets == null)
+						continue;
+					for (int gridIndex=0; gridIndex<getNumLocations(); gridIndex++) {
+						int start = columns.assocOffsets.get(columns.nodeOffsets.get(gridIndex));
+						int end = columns.assocOffsets.get(columns.nodeOffsets.get(gridIndex+1));
+						for (int a=start; a<end; a++) {
+							int sectID = columns.assocSects.get(a);
+							Set<Integer> sectNodes = sectAssociations.get(sectID);
+							if (sectNodes == null) {
+								sectNodes = new HashSet<>();
+								sectAssociations.put(sectID, sectNodes);
+							}
+							sectNodes.add(gridIndex);
+						}
+					}
+				}
+				this.sectAssociations = sectAssociations;
+			}
+			return sectAssociations;
+		}
+		
+		@Override
+		public IncrementalMagFreqDist getRefMFD() {
+			return refMFD;
+		}
+		
+		@Override
+		public ImmutableList<GriddedRupture> getRuptures(TectonicRegionType tectonicRegionType, int gridIndex) {
+			if (tectonicRegionType == null) {
+				ImmutableList.Builder<GriddedRupture> listBuilder = ImmutableList.builder();
+				for (TRTColumns columns : trtColumns.values())
+					listBuilder.addAll(columns.getRuptures(gridIndex, getLocation(gridIndex)));
+				return listBuilder.build();
 			}
+			TRTColumns columns = trtColumns.get(tectonicRegionType);
+			if (columns == null)
+				return ImmutableList.of();
+			return columns.getRuptures(gridIndex, getLocation(gridIndex));
+		}
+		
+		/**
+		 * @param tectonicRegionType
+		 * @param gridIndex
+		 * @return the number of ruptures at the given grid node for the given tectonic region type
+		 */
+		public int getNumRuptures(TectonicRegionType tectonicRegionType, int gridIndex) {
+			TRTColumns columns = trtColumns.get(tectonicRegionType);
+			if (columns == null)
+				return 0;
+			return columns.getNumRuptures(gridIndex);
+		}
+		
+		/**
+		 * @param tectonicRegionType
+		 * @param gridIndex
+		 * @param index rupture index within the given grid node, in the range [0, {@link #getNumRuptures(TectonicRegionType, int)})
+		 * @return the rate of the given rupture
+		 */
+		public double getRate(TectonicRegionType tectonicRegionType, int gridIndex, int index) {
+			TRTColumns columns = trtColumns.get(tectonicRegionType);
+			return columns.rates.get(columns.getRuptureIndex(gridIndex, index));
+		}
+		
+		/**
+		 * @param tectonicRegionType
+		 * @param gridIndex
+		 * @param index rupture index within the given grid node, in the range [0, {@link #getNumRuptures(TectonicRegionType, int)})
+		 * @return the properties of the given rupture
+		 */
+		public GriddedRuptureProperties getProperties(TectonicRegionType tectonicRegionType, int gridIndex, int index) {
+			TRTColumns columns = trtColumns.get(tectonicRegionType);
+			return columns.props[columns.propIndexes.get(columns.getRuptureIndex(gridIndex, index))];
+		}
+
+		@Override
+		public void scaleAll(TectonicRegionType tectonicRegionType, double[] valuesArray) {
+			Preconditions.checkState(valuesArray.length == getNumLocations(),
+					"Scale value size mismatch: %s != %s", valuesArray.length, getNumLocations());
+			TRTColumns columns = trtColumns.get(tectonicRegionType);
+			if (columns == null)
+				return;
+			trtColumns.put(tectonicRegionType, columns.scaled(valuesArray));
+		}
+
+		@Override
+		public void initFromArchive(ArchiveInput input, String entryPrefix) throws IOException {
+			// load gridded region (if supplied)
+			GriddedRegion gridReg = loadGridRegion(input, entryPrefix);
 			
 			// load grid location CSV
 			CSVFile<String> gridCSV = CSV_BackedModule.loadFromArchive(input, entryPrefix, ARCHIVE_GRID_LOCS_FILE_NAME);
 			LocationList locs = loadGridLocsCSV(gridCSV, gridReg);
+			setLocations(gridReg, locs);
 			
 			// load ruptures themselves
-			CSVReader rupSectsCSV = CSV_BackedModule.loadLargeFileFromArchive(input, entryPrefix, ARCHIVE_GRID_SOURCES_FILE_NAME);
-			EnumMap<TectonicRegionType, List<List<GriddedRupture>>> trtRuptureLists = loadGridSourcesCSV(rupSectsCSV, locs);
-			setAll(gridReg, locs, trtRuptureLists);
+			if (FileBackedModule.hasEntry(input, entryPrefix, ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME)) {
+				ByteBuffer buffer = input.getByteBuffer(ArchivableModule.getEntryName(entryPrefix, ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME));
+				setColumns(readColumns(buffer, locs.size()));
+			} else {
+				// older archive without the binary file, build columns directly from the CSV
+				CSVReader rupSectsCSV = CSV_BackedModule.loadLargeFileFromArchive(input, entryPrefix, ARCHIVE_GRID_SOURCES_FILE_NAME);
+				rupSectsCSV.read(); // skip header row
+				EnumMap<TectonicRegionType, ColumnBuilder> builders = new EnumMap<>(TectonicRegionType.class);
+				GriddedRupturePropertiesCache cache = new GriddedRupturePropertiesCache();
+				while (true) {
+					Row row = rupSectsCSV.read();
+					if (row == null)
+						break;
+					GriddedRupture rup = parseGriddedRupture(row, locs, cache);
+					ColumnBuilder builder = builders.get(rup.properties.tectonicRegionType);
+					if (builder == null) {
+						builder = new ColumnBuilder(rup.properties.tectonicRegionType);
+						builders.put(rup.properties.tectonicRegionType, builder);
+					}
+					builder.add(rup);
+				}
+				EnumMap<TectonicRegionType, TRTColumns> trtColumns = new EnumMap<>(TectonicRegionType.class);
+				for (TectonicRegionType trt : builders.keySet())
+					trtColumns.put(trt, builders.get(trt).build(locs.size()));
+				setColumns(trtColumns);
+			}
+		}
+		
+		/*
+		 * Binary format (big endian), with all double and int columns aligned to 8 bytes:
+		 * 
+		 * int magic, int version, int numLocs, int numTRTs
+		 * for each TRT: UTF name, int numProps, int numRups, int numAssoc (-1 if no associations)
+		 * for each TRT:
+		 * 	double[numProps*PROPS_NUM_DOUBLES] properties
+		 * 	double[numRups] rates
+		 * 	double[numAssoc] association fractions (if numAssoc >= 0)
+		 * 	int[numLocs+1] node offsets
+		 * 	int[numRups] property indexes
+		 * 	int[numRups+1] association offsets (if numAssoc >= 0)
+		 * 	int[numAssoc] associated section indexes (if numAssoc >= 0)
+		 */
+		
+		private void writeColumns(DataOutputStream dout) throws IOException {
+			dout.writeInt(BINARY_MAGIC);
+			dout.writeInt(BINARY_VERSION);
+			dout.writeInt(getNumLocations());
+			dout.writeInt(trtColumns.size());
+			for (TectonicRegionType trt : trtColumns.keySet()) {
+				TRTColumns columns = trtColumns.get(trt);
+				dout.writeUTF(trt.name());
+				dout.writeInt(columns.props.length);
+				dout.writeInt(columns.getNumRuptures());
+				dout.writeInt(columns.assocOffsets == null ? -1 : columns.assocSects.limit());
+			}
+			pad(dout);
+			for (TRTColumns columns : trtColumns.values()) {
+				for (GriddedRuptureProperties props : columns.props) {
+					dout.writeDouble(props.magnitude);
+					dout.writeDouble(props.rake);
+					dout.writeDouble(props.dip);
+					dout.writeDouble(props.strike);
+					dout.writeDouble(props.strikeRange == null ? Double.NaN : props.strikeRange.lowerEndpoint());
+					dout.writeDouble(props.strikeRange == null ? Double.NaN : props.strikeRange.upperEndpoint());
+					dout.writeDouble(props.upperDepth);
+					dout.writeDouble(props.lowerDepth);
+					dout.writeDouble(props.length);
+					dout.writeDouble(props.hypocentralDepth);
+					dout.writeDouble(props.hypocentralDAS);
+				}
+				write(dout, columns.rates);
+				if (columns.assocOffsets != null)
+					write(dout, columns.assocFracts);
+				write(dout, columns.nodeOffsets);
+				write(dout, columns.propIndexes);
+				if (columns.assocOffsets != null) {
+					write(dout, columns.assocOffsets);
+					write(dout, columns.assocSects);
+				}
+				pad(dout);
+			}
+		}
+		
+		private static void write(DataOutputStream dout, DoubleBuffer values) throws IOException {
+			for (int i=0; i<values.limit(); i++)
+				dout.writeDouble(values.get(i));
+		}
+		
+		private static void write(DataOutputStream dout, IntBuffer values) throws IOException {
+			for (int i=0; i<values.limit(); i++)
+				dout.writeInt(values.get(i));
+		}
+		
+		private static void pad(DataOutputStream dout) throws IOException {
+			while (dout.size() % 8 != 0)
+				dout.writeByte(0);
+		}
+		
+		private static int align(int pos) {
+			return pos % 8 == 0 ? pos : pos + 8 - pos % 8;
+		}
+		
+		private static EnumMap<TectonicRegionType, TRTColumns> readColumns(ByteBuffer buffer, int numLocs) {
+			int pos = buffer.position();
+			Preconditions.checkState(buffer.getInt(pos) == BINARY_MAGIC, "Not a binary gridded source file");
+			pos += 4;
+			int version = buffer.getInt(pos);
+			Preconditions.checkState(version == BINARY_VERSION, "Unsupported binary gridded source version: %s", version);
+			pos += 4;
+			int fileNumLocs = buffer.getInt(pos);
+			Preconditions.checkState(fileNumLocs == numLocs,
+					"Binary gridded source file has %s locations, but we have %s", fileNumLocs, numLocs);
+			pos += 4;
+			int numTRTs = buffer.getInt(pos);
+			pos += 4;
+			TectonicRegionType[] trts = new TectonicRegionType[numTRTs];
+			int[] numProps = new int[numTRTs];
+			int[] numRups = new int[numTRTs];
+			int[] numAssoc = new int[numTRTs];
+			for (int t=0; t<numTRTs; t++) {
+				int nameLen = Short.toUnsignedInt(buffer.getShort(pos));
+				pos += 2;
+				byte[] nameBytes = new byte[nameLen];
+				for (int i=0; i<nameLen; i++)
+					nameBytes[i] = buffer.get(pos++);
+				trts[t] = TectonicRegionType.valueOf(new String(nameBytes, StandardCharsets.UTF_8));
+				numProps[t] = buffer.getInt(pos);
+				numRups[t] = buffer.getInt(pos+4);
+				numAssoc[t] = buffer.getInt(pos+8);
+				pos += 12;
+			}
+			pos = align(pos);
+			EnumMap<TectonicRegionType, TRTColumns> trtColumns = new EnumMap<>(TectonicRegionType.class);
+			for (int t=0; t<numTRTs; t++) {
+				GriddedRuptureProperties[] props = new GriddedRuptureProperties[numProps[t]];
+				for (int p=0; p<props.length; p++) {
+					double[] vals = new double[PROPS_NUM_DOUBLES];
+					for (int i=0; i<vals.length; i++) {
+						vals[i] = buffer.getDouble(pos);
+						pos += 8;
+					}
+					Range<Double> strikeRange = Double.isNaN(vals[4]) ? null : Range.closed(vals[4], vals[5]);
+					props[p] = new GriddedRuptureProperties(vals[0], vals[1], vals[2], vals[3], strikeRange,
+							vals[6], vals[7], vals[8], vals[9], vals[10], trts[t]);
+				}
+				boolean hasAssoc = numAssoc[t] >= 0;
+				DoubleBuffer rates = doubleView(buffer, pos, numRups[t]);
+				pos += 8*numRups[t];
+				DoubleBuffer assocFracts = null;
+				if (hasAssoc) {
+					assocFracts = doubleView(buffer, pos, numAssoc[t]);
+					pos += 8*numAssoc[t];
+				}
+				IntBuffer nodeOffsets = intView(buffer, pos, numLocs+1);
+				pos += 4*(numLocs+1);
+				IntBuffer propIndexes = intView(buffer, pos, numRups[t]);
+				pos += 4*numRups[t];
+				IntBuffer assocOffsets = null;
+				IntBuffer assocSects = null;
+				if (hasAssoc) {
+					assocOffsets = intView(buffer, pos, numRups[t]+1);
+					pos += 4*(numRups[t]+1);
+					assocSects = intView(buffer, pos, numAssoc[t]);
+					pos += 4*numAssoc[t];
+				}
+				pos = align(pos);
+				Preconditions.checkState(nodeOffsets.get(0) == 0 && nodeOffsets.get(numLocs) == numRups[t],
+						"Bad node offsets for %s", trts[t]);
+				trtColumns.put(trts[t], new TRTColumns(props, nodeOffsets, rates, propIndexes,
+						assocOffsets, assocSects, assocFracts));
+			}
+			Preconditions.checkState(pos == buffer.limit(),
+					"Binary gridded source file size mismatch: read %s bytes, but have %s", pos, buffer.limit());
+			return trtColumns;
+		}
+		
+		private static DoubleBuffer doubleView(ByteBuffer buffer, int pos, int size) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(pos);
+			view.limit(pos + 8*size);
+			return view.slice().asDoubleBuffer();
+		}
+		
+		private static IntBuffer intView(ByteBuffer buffer, int pos, int size) {
+			ByteBuffer view = buffer.duplicate();
+			view.position(pos);
+			view.limit(pos + 4*size);
+			return view.slice().asIntBuffer();
+		}
+		
+	}
+	
+	/**
+	 * Columnar rupture data for a single tectonic region type, see {@link Columnar}. Values are only accessed with
+	 * absolute gets, so instances can be shared across threads.
+	 */
+	private static class TRTColumns {
+		private final GriddedRuptureProperties[] props;
+		// ruptures for grid node i are in [nodeOffsets[i], nodeOffsets[i+1])
+		private final IntBuffer nodeOffsets;
+		private final DoubleBuffer rates;
+		private final IntBuffer propIndexes;
+		// associations for rupture i are in [assocOffsets[i], assocOffsets[i+1]), all null if no associations
+		private final IntBuffer assocOffsets;
+		private final IntBuffer assocSects;
+		private final DoubleBuffer assocFracts;
+		// ruptures built for each grid node, cached on demand
+		private final AtomicReferenceArray<SoftReference<ImmutableList<GriddedRupture>>> rupCache;
+		
+		public TRTColumns(GriddedRuptureProperties[] props, IntBuffer nodeOffsets, DoubleBuffer rates,
+				IntBuffer propIndexes, IntBuffer assocOffsets, IntBuffer assocSects, DoubleBuffer assocFracts) {
+			Preconditions.checkState(rates.limit() == propIndexes.limit());
+			Preconditions.checkState((assocOffsets == null) == (assocSects == null) && (assocSects == null) == (assocFracts == null));
+			Preconditions.checkState(assocOffsets == null || assocOffsets.limit() == rates.limit()+1);
+			this.props = props;
+			this.nodeOffsets = nodeOffsets;
+			this.rates = rates;
+			this.propIndexes = propIndexes;
+			this.assocOffsets = assocOffsets;
+			this.assocSects = assocSects;
+			this.assocFracts = assocFracts;
+			this.rupCache = new AtomicReferenceArray<>(nodeOffsets.limit()-1);
+		}
+		
+		public int getNumRuptures() {
+			return rates.limit();
+		}
+		
+		public int getNumRuptures(int gridIndex) {
+			return nodeOffsets.get(gridIndex+1) - nodeOffsets.get(gridIndex);
+		}
+		
+		public int getRuptureIndex(int gridIndex, int index) {
+			int start = nodeOffsets.get(gridIndex);
+			Preconditions.checkElementIndex(index, nodeOffsets.get(gridIndex+1) - start);
+			return start + index;
+		}
+		
+		/**
+		 * @param gridIndex
+		 * @param location
+		 * @return ruptures for the given grid node, from the cache if available
+		 */
+		public ImmutableList<GriddedRupture> getRuptures(int gridIndex, Location location) {
+			if (getNumRuptures(gridIndex) == 0)
+				return ImmutableList.of();
+			SoftReference<ImmutableList<GriddedRupture>> ref = rupCache.get(gridIndex);
+			ImmutableList<GriddedRupture> ruptures = ref == null ? null : ref.get();
+			if (ruptures == null) {
+				// benign race if multiple threads build the same list at once
+				ruptures = buildRuptures(gridIndex, location);
+				rupCache.set(gridIndex, new SoftReference<>(ruptures));
+			}
+			return ruptures;
 		}
 		
+		public ImmutableList<GriddedRupture> buildRuptures(int gridIndex, Location location) {
+			int end = nodeOffsets.get(gridIndex+1);
+			ImmutableList.Builder<GriddedRupture> listBuilder = ImmutableList.builderWithExpectedSize(end - nodeOffsets.get(gridIndex));
+			for (int r=nodeOffsets.get(gridIndex); r<end; r++) {
+				int[] associatedSections = null;
+				double[] associatedSectionFracts = null;
+				if (assocOffsets != null) {
+					int assocStart = assocOffsets.get(r);
+					int numAssoc = assocOffsets.get(r+1) - assocStart;
+					if (numAssoc > 0) {
+						associatedSections = new int[numAssoc];
+						associatedSectionFracts = new double[numAssoc];
+						for (int a=0; a<numAssoc; a++) {
+							associatedSections[a] = assocSects.get(assocStart+a);
+							associatedSectionFracts[a] = assocFracts.get(assocStart+a);
+						}
+					}
+				}
+				listBuilder.add(new GriddedRupture(gridIndex, location, props[propIndexes.get(r)], rates.get(r),
+						associatedSections, associatedSectionFracts));
+			}
+			return listBuilder.build();
+		}
+		
+		/**
+		 * @param valuesArray scalar for each grid node
+		 * @return new in-memory columns with rates scaled by the given values, and ruptures removed for any nodes
+		 * with a scalar of zero
+		 */
+		public TRTColumns scaled(double[] valuesArray) {
+			int numLocs = valuesArray.length;
+			int[] modNodeOffsets = new int[numLocs+1];
+			int numAssoc = 0;
+			for (int gridIndex=0; gridIndex<numLocs; gridIndex++) {
+				boolean retain = valuesArray[gridIndex] != 0d;
+				modNodeOffsets[gridIndex+1] = modNodeOffsets[gridIndex] + (retain ? getNumRuptures(gridIndex) : 0);
+				if (retain && assocOffsets != null)
+					numAssoc += assocOffsets.get(nodeOffsets.get(gridIndex+1)) - assocOffsets.get(nodeOffsets.get(gridIndex));
+			}
+			int numRups = modNodeOffsets[numLocs];
+			double[] modRates = new double[numRups];
+			int[] modPropIndexes = new int[numRups];
+			int[] modAssocOffsets = assocOffsets == null ? null : new int[numRups+1];
+			int[] modAssocSects = assocOffsets == null ? null : new int[numAssoc];
+			double[] modAssocFracts = assocOffsets == null ? null : new double[numAssoc];
+			int index = 0;
+			int assocIndex = 0;
+			for (int gridIndex=0; gridIndex<numLocs; gridIndex++) {
+				double scalar = valuesArray[gridIndex];
+				if (scalar == 0d)
+					continue;
+				for (int r=nodeOffsets.get(gridIndex); r<nodeOffsets.get(gridIndex+1); r++) {
+					modRates[index] = rates.get(r)*scalar;
+					modPropIndexes[index] = propIndexes.get(r);
+					if (modAssocOffsets != null) {
+						modAssocOffsets[index] = assocIndex;
+						for (int a=assocOffsets.get(r); a<assocOffsets.get(r+1); a++) {
+							modAssocSects[assocIndex] = assocSects.get(a);
+							modAssocFracts[assocIndex] = assocFracts.get(a);
+							assocIndex++;
+						}
+					}
+					index++;
+				}
+			}
+			if (modAssocOffsets != null)
+				modAssocOffsets[numRups] = assocIndex;
+			return new TRTColumns(props, IntBuffer.wrap(modNodeOffsets), DoubleBuffer.wrap(modRates),
+					IntBuffer.wrap(modPropIndexes), modAssocOffsets == null ? null : IntBuffer.wrap(modAssocOffsets),
+					modAssocSects == null ? null : IntBuffer.wrap(modAssocSects),
+					modAssocFracts == null ? null : DoubleBuffer.wrap(modAssocFracts));
+		}
+	}
+	
+	/**
+	 * Accumulates {@link GriddedRupture}s for a single tectonic region type, in any grid node order, and builds
+	 * {@link TRTColumns}
+	 */
+	private static class ColumnBuilder {
+		
+		private static final int INITIAL_CAPACITY = 1024;
+		
+		private final TectonicRegionType trt;
+		private final Map<GriddedRuptureProperties, Integer> propIndexMap = new HashMap<>();
+		private final List<GriddedRuptureProperties> propsList = new ArrayList<>();
+		
+		private int size;
+		private int[] gridIndexes = new int[INITIAL_CAPACITY];
+		private double[] rates = new double[INITIAL_CAPACITY];
+		private int[] propIndexes = new int[INITIAL_CAPACITY];
+		
+		// null until we encounter the first association
+		private int[] assocCounts;
+		private int numAssoc;
+		private int[] assocSects;
+		private double[] assocFracts;
+		
+		public ColumnBuilder(TectonicRegionType trt) {
+			this.trt = trt;
+		}
+		
+		public void add(GriddedRupture rup) {
+			Preconditions.checkState(rup.properties.tectonicRegionType == trt, "Rupture says TRT is %s, but we're building columns for %s",
+					rup.properties.tectonicRegionType, trt);
+			if (size == rates.length) {
+				int newCapacity = size*2;
+				gridIndexes = Arrays.copyOf(gridIndexes, newCapacity);
+				rates = Arrays.copyOf(rates, newCapacity);
+				propIndexes = Arrays.copyOf(propIndexes, newCapacity);
+				if (assocCounts != null)
+					assocCounts = Arrays.copyOf(assocCounts, newCapacity);
+			}
+			Integer propIndex = propIndexMap.get(rup.properties);
+			if (propIndex == null) {
+				propIndex = propsList.size();
+				propsList.add(rup.properties);
+				propIndexMap.put(rup.properties, propIndex);
+			}
+			gridIndexes[size] = rup.gridIndex;
+			rates[size] = rup.rate;
+			propIndexes[size] = propIndex;
+			if (rup.associatedSections != null) {
+				if (assocCounts == null) {
+					assocCounts = new int[rates.length];
+					assocSects = new int[INITIAL_CAPACITY];
+					assocFracts = new double[INITIAL_CAPACITY];
+				}
+				int count = rup.associatedSections.length;
+				if (numAssoc + count > assocSects.length) {
+					int newCapacity = Integer.max(assocSects.length*2, numAssoc + count);
+					assocSects = Arrays.copyOf(assocSects, newCapacity);
+					assocFracts = Arrays.copyOf(assocFracts, newCapacity);
+				}
+				System.arraycopy(rup.associatedSections, 0, assocSects, numAssoc, count);
+				System.arraycopy(rup.associatedSectionFracts, 0, assocFracts, numAssoc, count);
+				assocCounts[size] = count;
+				numAssoc += count;
+			}
+			size++;
+		}
+		
+		public TRTColumns build(int numLocs) {
+			// stable counting sort by grid index, retaining the original order of ruptures within each node
+			int[] nodeOffsets = new int[numLocs+1];
+			for (int i=0; i<size; i++) {
+				Preconditions.checkState(gridIndexes[i] >= 0 && gridIndexes[i] < numLocs,
+						"Bad gridIndex=%s with %s locations", gridIndexes[i], numLocs);
+				nodeOffsets[gridIndexes[i]+1]++;
+			}
+			for (int l=0; l<numLocs; l++)
+				nodeOffsets[l+1] += nodeOffsets[l];
+			int[] next = Arrays.copyOf(nodeOffsets, numLocs);
+			int[] dests = new int[size];
+			double[] sortedRates = new double[size];
+			int[] sortedPropIndexes = new int[size];
+			for (int i=0; i<size; i++) {
+				int dest = next[gridIndexes[i]]++;
+				dests[i] = dest;
+				sortedRates[dest] = rates[i];
+				sortedPropIndexes[dest] = propIndexes[i];
+			}
+			
+			IntBuffer assocOffsetsBuffer = null;
+			IntBuffer assocSectsBuffer = null;
+			DoubleBuffer assocFractsBuffer = null;
+			if (assocCounts != null) {
+				int[] assocOffsets = new int[size+1];
+				for (int i=0; i<size; i++)
+					assocOffsets[dests[i]+1] = assocCounts[i];
+				for (int r=0; r<size; r++)
+					assocOffsets[r+1] += assocOffsets[r];
+				int[] sortedAssocSects = new int[numAssoc];
+				double[] sortedAssocFracts = new double[numAssoc];
+				int srcStart = 0;
+				for (int i=0; i<size; i++) {
+					int destStart = assocOffsets[dests[i]];
+					System.arraycopy(assocSects, srcStart, sortedAssocSects, destStart, assocCounts[i]);
+					System.arraycopy(assocFracts, srcStart, sortedAssocFracts, destStart, assocCounts[i]);
+					srcStart += assocCounts[i];
+				}
+				assocOffsetsBuffer = IntBuffer.wrap(assocOffsets);
+				assocSectsBuffer = IntBuffer.wrap(sortedAssocSects);
+				assocFractsBuffer = DoubleBuffer.wrap(sortedAssocFracts);
+			}
+			
+			return new TRTColumns(propsList.toArray(new GriddedRuptureProperties[0]), IntBuffer.wrap(nodeOffsets),
+					DoubleBuffer.wrap(sortedRates), IntBuffer.wrap(sortedPropIndexes),
+					assocOffsetsBuffer, assocSectsBuffer, assocFractsBuffer);
+		}
 	}
 	
 	/**
@@ -3,7 +3,9 @@ package org.opensha.sha.earthquake.faultSysSolution.modules;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.util.modules.AverageableModule.ConstantAverageable;
 import org.opensha.commons.util.modules.SubModule;
-import org.opensha.commons.util.modules.helpers.CSV_BackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumnBackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumns;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 
 import com.google.common.base.Preconditions;
@@ -102,9 +104,11 @@ public abstract class SectAreas implements SubModule<FaultSystemRupSet>, Splitta
 	
 	public static final String DATA_FILE_NAME = "sect_areas.csv";
 	
-	public static class Precomputed extends SectAreas implements CSV_BackedModule, ConstantAverageable<Precomputed> {
+	public static class Precomputed extends SectAreas implements BinaryColumnBackedModule, ConstantAverageable<Precomputed> {
 		
 		private double[] sectAreas;
+		
+		private transient Encoding binaryEncoding;
 
 		// required for serialization
 		private Precomputed() {
@@ -168,6 +172,36 @@ public abstract class SectAreas implements SubModule<FaultSystemRupSet>, Splitta
 			this.sectAreas = sectAreas;
 		}
 
+		/**
+		 * Sets the binary encoding used when writing this module to an archive, or null (default) to use
+		 * {@link BinaryColumns#getDefaultEncoding()} (CSV unless configured)
+		 * 
+		 * @param binaryEncoding
+		 */
+		public void setBinaryEncoding(Encoding binaryEncoding) {
+			this.binaryEncoding = binaryEncoding;
+		}
+
+		@Override
+		public Encoding getBinaryEncoding() {
+			return binaryEncoding;
+		}
+
+		@Override
+		public BinaryColumns getBinaryColumns() {
+			return new BinaryColumns().add("Section Area (m^2)", sectAreas);
+		}
+
+		@Override
+		public void initFromBinaryColumns(BinaryColumns columns) {
+			int numSects = getParent().getNumSections();
+			double[] sectAreas = columns.getDoubles("Section Area (m^2)");
+			Preconditions.checkState(sectAreas.length == numSects,
+					"Expected %s section areas, have %s", numSects, sectAreas.length);
+			this.sectAreas = sectAreas;
+			this.binaryEncoding = columns.getEncoding();
+		}
+
 		@Override
 		public Class<Precomputed> getAveragingType() {
 			return Precomputed.class;
@@ -4,7 +4,9 @@ import org.opensha.commons.calc.FaultMomentCalc;
 import org.opensha.commons.data.CSVFile;
 import org.opensha.commons.util.modules.AverageableModule;
 import org.opensha.commons.util.modules.SubModule;
-import org.opensha.commons.util.modules.helpers.CSV_BackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumnBackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumns;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 
 import com.google.common.base.Preconditions;
@@ -161,10 +163,12 @@ SplittableRuptureModule<SectSlipRates>{
 	
 	public static final String DATA_FILE_NAME = "sect_slip_rates.csv";
 	
-	public static class Precomputed extends SectSlipRates implements CSV_BackedModule {
+	public static class Precomputed extends SectSlipRates implements BinaryColumnBackedModule {
 		
 		private double[] slipRates;
 		private double[] slipRateStdDevs;
+		
+		private transient Encoding binaryEncoding;
 
 		// required for serialization
 		private Precomputed() {
@@ -247,6 +251,46 @@ SplittableRuptureModule<SectSlipRates>{
 			this.slipRateStdDevs = slipRateStdDevs;
 		}
 
+		/**
+		 * Sets the binary encoding used when writing this module to an archive, or null (default) to use
+		 * {@link BinaryColumns#getDefaultEncoding()} (CSV unless configured)
+		 * 
+		 * @param binaryEncoding
+		 */
+		public void setBinaryEncoding(Encoding binaryEncoding) {
+			this.binaryEncoding = binaryEncoding;
+		}
+
+		@Override
+		public Encoding getBinaryEncoding() {
+			return binaryEncoding;
+		}
+
+		@Override
+		public BinaryColumns getBinaryColumns() {
+			int numSections = getParent().getNumSections();
+			double[] slipRates = new double[numSections];
+			double[] slipRateStdDevs = new double[numSections];
+			for (int s=0; s<numSections; s++) {
+				slipRates[s] = getSlipRate(s);
+				slipRateStdDevs[s] = getSlipRateStdDev(s);
+			}
+			return new BinaryColumns().add("Slip Rate (m/yr)", slipRates)
+					.add("Slip Rate Standard Deviation (m/yr)", slipRateStdDevs);
+		}
+
+		@Override
+		public void initFromBinaryColumns(BinaryColumns columns) {
+			int numSects = getParent().getNumSections();
+			double[] slipRates = columns.getDoubles("Slip Rate (m/yr)");
+			double[] slipRateStdDevs = columns.getDoubles("Slip Rate Standard Deviation (m/yr)");
+			Preconditions.checkState(slipRates.length == numSects && slipRateStdDevs.length == numSects,
+					"Expected %s section values, have %s", numSects, slipRates.length);
+			this.slipRates = slipRates;
+			this.slipRateStdDevs = slipRateStdDevs;
+			this.binaryEncoding = columns.getEncoding();
+		}
+
 		@Override
 		public AveragingAccumulator<SectSlipRates> averagingAccumulator() {
 			
@@ -255,6 +299,7 @@ SplittableRuptureModule<SectSlipRates>{
 				private double[] slipRates = null;
 				private double[] slipRateStdDevs = null;
 				private double totWeight = 0d;
+				private AveragingEncodingTracker encodings = new AveragingEncodingTracker();
 
 				@Override
 				public void process(SectSlipRates module, double relWeight) {
@@ -267,6 +312,7 @@ SplittableRuptureModule<SectSlipRates>{
 						slipRateStdDevs[i] += module.getSlipRateStdDev(i)*relWeight;
 					}
 					totWeight += relWeight;
+					encodings.process(module);
 				}
 
 				@Override
@@ -277,6 +323,7 @@ SplittableRuptureModule<SectSlipRates>{
 					Precomputed ret = new Precomputed();
 					ret.slipRates = slipRates;
 					ret.slipRateStdDevs = slipRateStdDevs;
+					ret.binaryEncoding = encodings.getEncoding();
 					return ret;
 				}
 
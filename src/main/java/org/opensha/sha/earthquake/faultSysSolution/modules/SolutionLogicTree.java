@@ -44,6 +44,7 @@ import org.opensha.commons.util.ComparablePairing;
 import org.opensha.commons.util.ExceptionUtils;
 import org.opensha.commons.util.io.archive.ArchiveInput;
 import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.io.archive.ParallelArchiveWriter;
 import org.opensha.commons.util.modules.ArchivableModule;
 import org.opensha.commons.util.modules.ModuleArchive;
 import org.opensha.commons.util.modules.ModuleContainer;
@@ -59,6 +60,7 @@ import org.opensha.sha.earthquake.faultSysSolution.modules.MFDGridSourceProvider
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
 import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.GeoJSONFaultReader;
 import org.opensha.sha.earthquake.faultSysSolution.util.BranchAverageSolutionCreator;
+import org.opensha.sha.earthquake.faultSysSolution.util.FaultSysTools;
 import org.opensha.sha.earthquake.faultSysSolution.util.SolModuleStripper;
 import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.imr.logicTree.ScalarIMR_ParamsLogicTreeNode;
@@ -349,6 +351,9 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 		
 		private ArchiveInput directCopySource = null;
 		
+		private int writeThreads = 1;
+		private ParallelArchiveWriter parallel;
+		
 		public FileBuilder(File outputFile) throws IOException {
 			this(null, outputFile);
 		}
@@ -447,6 +452,25 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			this.buildInfo = buildInfo;
 		}
 		
+		/**
+		 * Sets the number of threads used to serialize branch files. If greater than 1, files for each branch passed
+		 * to {@link #solution(FaultSystemSolution, LogicTreeBranch)} are serialized (and deflated, if supported by the
+		 * output) in parallel via a {@link ParallelArchiveWriter}, and the resulting archive is identical to a serial
+		 * write. Up to <code>2 x threads</code> solutions will be held in memory until they are written.
+		 * 
+		 * @param writeThreads
+		 */
+		public synchronized void setWriteThreads(int writeThreads) {
+			Preconditions.checkArgument(writeThreads > 0, "Must supply at least 1 thread");
+			Preconditions.checkState(parallel == null, "Can't change write threads after writing has started");
+			this.writeThreads = writeThreads;
+		}
+		
+		private void flushParallel() throws IOException {
+			if (parallel != null)
+				parallel.flush();
+		}
+		
 		private void initSolTree(LogicTreeBranch<?> branch) {
 			if (D) debug("initSolTree");
 			if (levels == null) {
@@ -558,15 +582,19 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 
 			if (D) System.out.println("Writing branch: "+branch);
 			Map<String, String> mappings = new HashMap<>();
+			if (parallel == null && writeThreads > 1)
+				parallel = new ParallelArchiveWriter(output, writeThreads);
+			BranchFileWriter writer = new BranchFileWriter(output, parallel);
 //			if (directCopyRatesFrom != null)
 //				mappings.putAll(solTree.directCopyRatesToArchive(directCopyRatesFrom, output, outPrefix, branch, writtenFiles));
-			mappings.putAll(solTree.writeBranchFilesToArchive(output, outPrefix, branch, writtenFiles, sol));
+			mappings.putAll(solTree.writeBranchFilesToArchive(writer, outPrefix, branch, writtenFiles, sol));
 
 			if (directCopyGriddedFrom != null) {
 				Preconditions.checkState(!serializeGridded);
 				if (D) System.out.println("Direct copying gridded for: "+branch);
-				mappings.putAll(solTree.directCopyGridProvToArchive(directCopyGriddedFrom, output, outPrefix, branch, writtenFiles));
+				mappings.putAll(solTree.directCopyGridProvToArchive(directCopyGriddedFrom, writer, outPrefix, branch, writtenFiles));
 			}
+			writer.submit();
 			branchMappings.add(mappings);
 			if (D) debug("solution: DONE for "+branch);
 		}
@@ -576,6 +604,12 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 		}
 
 		public synchronized void close() throws IOException {
+			if (parallel != null) {
+				// finish writing any pending branches
+				if (D) debug("close: closing parallel writer");
+				parallel.close();
+				parallel = null;
+			}
 			if (output != null) {
 				// write logic tree
 				if (D) debug("close: writing logic tree");
@@ -626,6 +660,8 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 				initSolTree(branches.get(0));
 			waitUntilWriting();
 			
+			flushParallel();
+			
 			String processorName = solTree.getSubDirectoryName()+"/"+PROCESSOR_FILE_NAME;
 			String treeName = solTree.getSubDirectoryName()+"/"+PROCESSOR_FILE_NAME;
 			String modulesName = ModuleArchive.MODULE_FILE_NAME;
@@ -648,6 +684,7 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			waitUntilWriting();
 			String prefix = solTree.buildPrefix(entryPrefix);
 			if (D) debug("writeGridProvToArchive: writing for "+branch);
+			flushParallel();
 			solTree.writeGridProvToArchive(prov, output, prefix, branch, writtenFiles);
 			if (D) debug("writeGridProvToArchive: DONE for "+branch);
 		}
@@ -941,6 +978,26 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 
 	protected Map<String, String> writeBranchFilesToArchive(ArchiveOutput output, String prefix, LogicTreeBranch<?> branch,
 			HashSet<String> writtenFiles, FaultSystemSolution sol) throws IOException {
+		return writeBranchFilesToArchive(new BranchFileWriter(output, null), prefix, branch, writtenFiles, sol);
+	}
+	
+	@Override
+	protected Map<String, String> writeBranchFilesToArchive(ArchiveOutput output, ParallelArchiveWriter parallel,
+			String prefix, LogicTreeBranch<?> branch, HashSet<String> writtenFiles) throws IOException {
+		FaultSystemSolution sol = forBranch(branch);
+		BranchFileWriter writer = new BranchFileWriter(output, parallel);
+		Map<String, String> mappings = writeBranchFilesToArchive(writer, prefix, branch, writtenFiles, sol);
+		writer.submit();
+		return mappings;
+	}
+
+	/**
+	 * Writes all files for the given branch through the given writer. Files to be written (and the writtenFiles set)
+	 * are determined here on the calling thread, but the files themselves may be written later in parallel (see
+	 * {@link BranchFileWriter}); the caller is responsible for calling {@link BranchFileWriter#submit()}.
+	 */
+	protected Map<String, String> writeBranchFilesToArchive(BranchFileWriter writer, String prefix, LogicTreeBranch<?> branch,
+			HashSet<String> writtenFiles, FaultSystemSolution sol) throws IOException {
 		// could try to be fancy and copy files over without loading, but these things will be written out so rarely
 		// (usually one and done) so it's not worth the added complexity
 		FaultSystemRupSet rupSet = sol.getRupSet();
@@ -952,74 +1009,100 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 		String rsPrefix = FaultSystemRupSet.NESTING_PREFIX;
 		String solPrefix = FaultSystemSolution.NESTING_PREFIX;
 		
-		ArchiveInput input = directCopySource;
-		boolean inputIsSolArchive = false;
-		if (input == null) {
-			input = sol.getArchive().getInput();
-			inputIsSolArchive = true;
-		}
+		ArchiveInput input = directCopySource == null ? sol.getArchive().getInput() : directCopySource;
+		boolean inputIsSolArchive = directCopySource == null;
 		
 		String sectsFile = getRecordBranchFileName(branch, prefix, FaultSystemRupSet.SECTS_FILE_NAME, true, mappings);
 		if (!writtenFiles.contains(sectsFile)) {
-			if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.SECTS_FILE_NAME, sectsFile, inputIsSolArchive)) {
-				FileBackedModule.initEntry(output, entryPrefix, sectsFile);
-				OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
-				GeoJSONFaultReader.writeFaultSections(writer, rupSet.getFaultSectionDataList());
-				writer.flush();
-				output.closeEntry();
-			}
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.SECTS_FILE_NAME, sectsFile, inputIsSolArchive)) {
+						FileBackedModule.initEntry(output, entryPrefix, sectsFile);
+						OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
+						GeoJSONFaultReader.writeFaultSections(writer, rupSet.getFaultSectionDataList());
+						writer.flush();
+						output.closeEntry();
+					}
+				}
+			});
 			writtenFiles.add(sectsFile);
 		}
 		
 		String indicesFile = getRecordBranchFileName(branch, prefix, FaultSystemRupSet.RUP_SECTS_FILE_NAME, true, mappings);
 		if (!writtenFiles.contains(indicesFile)) {
-			if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.RUP_SECTS_FILE_NAME, indicesFile, inputIsSolArchive)) {
-				FileBackedModule.initEntry(output, entryPrefix, indicesFile);
-				CSVWriter entryWriter = new CSVWriter(output.getOutputStream(), false);
-				FaultSystemRupSet.buildRupSectsCSV(rupSet,entryWriter);
-				entryWriter.flush();
-				output.closeEntry();
-			}
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.RUP_SECTS_FILE_NAME, indicesFile, inputIsSolArchive)) {
+						FileBackedModule.initEntry(output, entryPrefix, indicesFile);
+						CSVWriter entryWriter = new CSVWriter(output.getOutputStream(), false);
+						FaultSystemRupSet.buildRupSectsCSV(rupSet,entryWriter);
+						entryWriter.flush();
+						output.closeEntry();
+					}
+				}
+			});
 			writtenFiles.add(indicesFile);
 		}
 		
 		String propsFile = getRecordBranchFileName(branch, prefix, FaultSystemRupSet.RUP_PROPS_FILE_NAME, true, mappings);
 		if (!writtenFiles.contains(propsFile)) {
-			if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.RUP_PROPS_FILE_NAME, propsFile, inputIsSolArchive)) {
-				FileBackedModule.initEntry(output, entryPrefix, propsFile);
-				CSVWriter entryWriter = new CSVWriter(output.getOutputStream(), true);
-				new RuptureProperties(rupSet).buildCSV(entryWriter);
-				entryWriter.flush();
-				output.closeEntry();
-			}
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					if (!directCopy(input, output, rsPrefix+FaultSystemRupSet.RUP_PROPS_FILE_NAME, propsFile, inputIsSolArchive)) {
+						FileBackedModule.initEntry(output, entryPrefix, propsFile);
+						CSVWriter entryWriter = new CSVWriter(output.getOutputStream(), true);
+						new RuptureProperties(rupSet).buildCSV(entryWriter);
+						entryWriter.flush();
+						output.closeEntry();
+					}
+				}
+			});
 			writtenFiles.add(propsFile);
 		}
 		
 		String ratesFile = getRecordBranchFileName(branch, prefix, FaultSystemSolution.RATES_FILE_NAME, true, mappings);
 		if (!writtenFiles.contains(ratesFile)) {
-			if (!directCopy(input, output, solPrefix+FaultSystemSolution.RATES_FILE_NAME, ratesFile, inputIsSolArchive)) {
-				CSV_BackedModule.writeToArchive(FaultSystemSolution.buildRatesCSV(sol), output, entryPrefix, ratesFile);
-			}
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					if (!directCopy(input, output, solPrefix+FaultSystemSolution.RATES_FILE_NAME, ratesFile, inputIsSolArchive)) {
+						CSV_BackedModule.writeToArchive(FaultSystemSolution.buildRatesCSV(sol), output, entryPrefix, ratesFile);
+					}
+				}
+			});
 			writtenFiles.add(ratesFile);
 		}
 		
 		if (sol.hasModule(RupMFDsModule.class)) {
 			String mfdsFile = getRecordBranchFileName(branch, prefix, RupMFDsModule.FILE_NAME, true, mappings);
 			if (!writtenFiles.contains(mfdsFile)) {
-				if (!directCopy(input, output, solPrefix+RupMFDsModule.FILE_NAME, mfdsFile, inputIsSolArchive)) {
-					RupMFDsModule mfds = sol.requireModule(RupMFDsModule.class);
-					CSV_BackedModule.writeToArchive(mfds.getCSV(), output, entryPrefix, mfdsFile);
-				}
+				RupMFDsModule mfds = sol.requireModule(RupMFDsModule.class);
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+RupMFDsModule.FILE_NAME, mfdsFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(mfds.getCSV(), output, entryPrefix, mfdsFile);
+						}
+					}
+				});
 				writtenFiles.add(mfdsFile);
 			}
 		}
 		
 		if (constantGridProv != null) {
-			mappings.putAll(writeGridProvToArchive(constantGridProv, output, prefix, null, writtenFiles));
+			mappings.putAll(writeGridProvToArchive(constantGridProv, writer, prefix, null, writtenFiles, directCopySource, false));
 		} else if (serializeGridded && sol.hasModule(GridSourceProvider.class)) {
 			GridSourceProvider prov = sol.getModule(GridSourceProvider.class);
 			// TODO direct
-			mappings.putAll(writeGridProvToArchive(prov, output, prefix, branch, writtenFiles));
+			mappings.putAll(writeGridProvToArchive(prov, writer, prefix, branch, writtenFiles, directCopySource, false));
 		}
 		
 		InversionMisfitStats misfitStats = sol.getModule(InversionMisfitStats.class);
@@ -1030,9 +1113,16 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			String statsFile = getRecordBranchFileName(branch, prefix,
 					InversionMisfitStats.MISFIT_STATS_FILE_NAME, true, mappings);
 			if (!writtenFiles.contains(statsFile)) {
-				if (!directCopy(input, output, solPrefix+InversionMisfitStats.MISFIT_STATS_FILE_NAME, statsFile, inputIsSolArchive)) {
-					CSV_BackedModule.writeToArchive(misfitStats.getCSV(), output, entryPrefix, statsFile);
-				}
+				InversionMisfitStats stats = misfitStats;
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+InversionMisfitStats.MISFIT_STATS_FILE_NAME, statsFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(stats.getCSV(), output, entryPrefix, statsFile);
+						}
+					}
+				});
 				writtenFiles.add(statsFile);
 			}
 		}
@@ -1043,9 +1133,15 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			String progressFile = getRecordBranchFileName(branch, prefix,
 					AnnealingProgress.PROGRESS_FILE_NAME, true, mappings);
 			if (!writtenFiles.contains(progressFile)) {
-				if (!directCopy(input, output, solPrefix+AnnealingProgress.PROGRESS_FILE_NAME, progressFile, inputIsSolArchive)) {
-					CSV_BackedModule.writeToArchive(progress.getCSV(), output, entryPrefix, progressFile);
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+AnnealingProgress.PROGRESS_FILE_NAME, progressFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(progress.getCSV(), output, entryPrefix, progressFile);
+						}
+					}
+				});
 				writtenFiles.add(progressFile);
 			}
 		}
@@ -1056,9 +1152,15 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			String progressFile = getRecordBranchFileName(branch, prefix,
 					InversionMisfitProgress.MISFIT_PROGRESS_FILE_NAME, true, mappings);
 			if (!writtenFiles.contains(progressFile)) {
-				if (!directCopy(input, output, solPrefix+InversionMisfitProgress.MISFIT_PROGRESS_FILE_NAME, progressFile, inputIsSolArchive)) {
-					CSV_BackedModule.writeToArchive(misfitProgress.getCSV(), output, entryPrefix, progressFile);
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+InversionMisfitProgress.MISFIT_PROGRESS_FILE_NAME, progressFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(misfitProgress.getCSV(), output, entryPrefix, progressFile);
+						}
+					}
+				});
 				writtenFiles.add(progressFile);
 			}
 		}
@@ -1072,12 +1174,16 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			PlausibilityConfiguration plausibility = rupSet.getModule(PlausibilityConfiguration.class);
 			
 			if (plausibility != null) {
-				if (!writtenFiles.contains(plausibilityFile)) {
-					if (!directCopy(input, output, rsPrefix+PlausibilityConfiguration.JSON_FILE_NAME, plausibilityFile, inputIsSolArchive)) {
-						plausibility.writeToArchive(output, entryPrefix, plausibilityFile);
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, rsPrefix+PlausibilityConfiguration.JSON_FILE_NAME, plausibilityFile, inputIsSolArchive)) {
+							plausibility.writeToArchive(output, entryPrefix, plausibilityFile);
+						}
 					}
-					writtenFiles.add(plausibilityFile);
-				}
+				});
+				writtenFiles.add(plausibilityFile);
 				mappings.put(PlausibilityConfiguration.JSON_FILE_NAME, plausibilityFile);
 			}
 		}
@@ -1094,6 +1200,12 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 
 	protected Map<String, String> writeGridProvToArchive(GridSourceProvider prov, ArchiveOutput output, String prefix,
 			LogicTreeBranch<?> branch, HashSet<String> writtenFiles, ArchiveInput input, boolean inputIsSolArchive) throws IOException {
+		return writeGridProvToArchive(prov, new BranchFileWriter(output, null), prefix, branch, writtenFiles,
+				input, inputIsSolArchive);
+	}
+
+	protected Map<String, String> writeGridProvToArchive(GridSourceProvider prov, BranchFileWriter writer, String prefix,
+			LogicTreeBranch<?> branch, HashSet<String> writtenFiles, ArchiveInput input, boolean inputIsSolArchive) throws IOException {
 		Map<String, String> mappings = new LinkedHashMap<>();
 		String solPrefix = FaultSystemSolution.NESTING_PREFIX;
 		if (prov instanceof MFDGridSourceProvider) {
@@ -1110,62 +1222,63 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			String gridRegFile = getRecordBranchFileName(branch, prefix,
 					GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, false, mappings);
 			if (gridRegFile != null && !writtenFiles.contains(gridRegFile)) {
-				if (!directCopy(input, output, solPrefix+GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, gridRegFile, inputIsSolArchive)) {
-					FileBackedModule.initEntry(output, null, gridRegFile);
-					Feature regFeature = precomputed.getGriddedRegion().toFeature();
-					OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
-					Feature.write(regFeature, writer);
-					writer.flush();
-					output.closeEntry();
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, gridRegFile, inputIsSolArchive)) {
+							FileBackedModule.initEntry(output, null, gridRegFile);
+							Feature regFeature = precomputed.getGriddedRegion().toFeature();
+							OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
+							Feature.write(regFeature, writer);
+							writer.flush();
+							output.closeEntry();
+						}
+					}
+				});
 				writtenFiles.add(gridRegFile);
 			}
 
 			String mechFile = getRecordBranchFileName(branch, prefix,
 					MFDGridSourceProvider.ARCHIVE_MECH_WEIGHT_FILE_NAME, false, mappings);
 			if (mechFile != null && !writtenFiles.contains(mechFile)) {
-				if (!directCopy(input, output, solPrefix+MFDGridSourceProvider.ARCHIVE_MECH_WEIGHT_FILE_NAME, mechFile, inputIsSolArchive)) {
-					CSV_BackedModule.writeToArchive(precomputed.buildWeightsCSV(), output, null, mechFile);
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+MFDGridSourceProvider.ARCHIVE_MECH_WEIGHT_FILE_NAME, mechFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(precomputed.buildWeightsCSV(), output, null, mechFile);
+						}
+					}
+				});
 				writtenFiles.add(mechFile);
 			}
 			String subSeisFile = getRecordBranchFileName(branch, prefix,
 					MFDGridSourceProvider.ARCHIVE_SUB_SEIS_FILE_NAME, true, mappings);
-			if (subSeisFile != null && !writtenFiles.contains(subSeisFile)) {
-				if (!directCopy(input, output, solPrefix+MFDGridSourceProvider.ARCHIVE_SUB_SEIS_FILE_NAME, subSeisFile, inputIsSolArchive)) {
-					CSVFile<String> csv = precomputed.buildSubSeisCSV();
-					if (csv != null) {
-						CSV_BackedModule.writeToArchive(csv, output, null, subSeisFile);
-						writtenFiles.add(subSeisFile);
-					}
-				} else {
-					// direct copied
-					writtenFiles.add(subSeisFile);
-				}
-			}
+			if (subSeisFile != null && !writtenFiles.contains(subSeisFile))
+				writeOptionalCSV(writer, input, solPrefix+MFDGridSourceProvider.ARCHIVE_SUB_SEIS_FILE_NAME, subSeisFile,
+						inputIsSolArchive, precomputed, true, writtenFiles);
 			String unassociatedFile = getRecordBranchFileName(branch, prefix,
 					MFDGridSourceProvider.ARCHIVE_UNASSOCIATED_FILE_NAME, true, mappings);
-			if (unassociatedFile != null && !writtenFiles.contains(unassociatedFile)) {
-				if (!directCopy(input, output, solPrefix+MFDGridSourceProvider.ARCHIVE_UNASSOCIATED_FILE_NAME, unassociatedFile, inputIsSolArchive)) {
-					CSVFile<String> csv = precomputed.buildUnassociatedCSV();
-					if (csv != null) {
-						CSV_BackedModule.writeToArchive(csv, output, null, unassociatedFile);
-						writtenFiles.add(unassociatedFile);
-					}
-				} else {
-					// direct copied
-					writtenFiles.add(unassociatedFile);
-				}
-			}
+			if (unassociatedFile != null && !writtenFiles.contains(unassociatedFile))
+				writeOptionalCSV(writer, input, solPrefix+MFDGridSourceProvider.ARCHIVE_UNASSOCIATED_FILE_NAME, unassociatedFile,
+						inputIsSolArchive, precomputed, false, writtenFiles);
 			
 			// write the implementing class
 			List<? extends LogicTreeLevel<?>> mappingLevels = getLevelsAffectingFile(MFDGridSourceProvider.ARCHIVE_SUB_SEIS_FILE_NAME, true);
 			String gridProvFile = getRecordBranchFileName(branch, prefix,
 					GRID_PROV_INSTANCE_FILE_NAME, mappingLevels, mappings);
 			if (!writtenFiles.contains(gridProvFile)) {
-				FileBackedModule.initEntry(output, null, gridProvFile);
-				writeGridSourceProvInstanceFile(output.getOutputStream(), loadingClass);
-				output.closeEntry();
+				Class<? extends ArchivableModule> instanceClass = loadingClass;
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						FileBackedModule.initEntry(output, null, gridProvFile);
+						writeGridSourceProvInstanceFile(output.getOutputStream(), instanceClass);
+						output.closeEntry();
+					}
+				});
 				writtenFiles.add(gridProvFile);
 			}
 		} else if (prov instanceof GridSourceList) {
@@ -1175,14 +1288,20 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 				String gridRegFile = getRecordBranchFileName(branch, prefix,
 						GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, false, mappings);
 				if (gridRegFile != null && !writtenFiles.contains(gridRegFile)) {
-					if (!directCopy(input, output, solPrefix+GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, gridRegFile, inputIsSolArchive)) {
-						FileBackedModule.initEntry(output, null, gridRegFile);
-						Feature regFeature = gridSources.getGriddedRegion().toFeature();
-						OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
-						Feature.write(regFeature, writer);
-						writer.flush();
-						output.closeEntry();
-					}
+					writer.write(new ParallelArchiveWriter.WriteTask() {
+						
+						@Override
+						public void write(ArchiveOutput output) throws IOException {
+							if (!directCopy(input, output, solPrefix+GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, gridRegFile, inputIsSolArchive)) {
+								FileBackedModule.initEntry(output, null, gridRegFile);
+								Feature regFeature = gridSources.getGriddedRegion().toFeature();
+								OutputStreamWriter writer = new OutputStreamWriter(output.getOutputStream());
+								Feature.write(regFeature, writer);
+								writer.flush();
+								output.closeEntry();
+							}
+						}
+					});
 					writtenFiles.add(gridRegFile);
 				}
 			}
@@ -1190,17 +1309,29 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			String locsFile = getRecordBranchFileName(branch, prefix,
 					GridSourceList.ARCHIVE_GRID_LOCS_FILE_NAME, false, mappings);
 			if (locsFile != null && !writtenFiles.contains(locsFile)) {
-				if (!directCopy(input, output, solPrefix+GridSourceList.ARCHIVE_GRID_LOCS_FILE_NAME, locsFile, inputIsSolArchive)) {
-					CSV_BackedModule.writeToArchive(gridSources.buildGridLocsCSV(), output, null, locsFile);
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+GridSourceList.ARCHIVE_GRID_LOCS_FILE_NAME, locsFile, inputIsSolArchive)) {
+							CSV_BackedModule.writeToArchive(gridSources.buildGridLocsCSV(), output, null, locsFile);
+						}
+					}
+				});
 				writtenFiles.add(locsFile);
 			}
 			String sourcesFile = getRecordBranchFileName(branch, prefix,
 					GridSourceList.ARCHIVE_GRID_SOURCES_FILE_NAME, true, mappings);
 			if (sourcesFile != null && !writtenFiles.contains(sourcesFile)) {
-				if (!directCopy(input, output, solPrefix+GridSourceList.ARCHIVE_GRID_SOURCES_FILE_NAME, sourcesFile, inputIsSolArchive)) {
-					gridSources.writeGridSourcesCSV(output, sourcesFile);
-				}
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						if (!directCopy(input, output, solPrefix+GridSourceList.ARCHIVE_GRID_SOURCES_FILE_NAME, sourcesFile, inputIsSolArchive)) {
+							gridSources.writeGridSourcesCSV(output, sourcesFile);
+						}
+					}
+				});
 				writtenFiles.add(sourcesFile);
 			}
 		} else {
@@ -1211,6 +1342,38 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 		return mappings;
 	}
 	
+	/**
+	 * Writes the sub-seismogenic or unassociated MFD CSV file, which may not exist. In that case, the file isn't marked
+	 * as written, so the CSV is built here on the calling thread; only serialization is handed to the writer.
+	 */
+	private void writeOptionalCSV(BranchFileWriter writer, ArchiveInput input, String origFileName, String fileName,
+			boolean inputIsSolArchive, MFDGridSourceProvider.AbstractPrecomputed precomputed, boolean subSeis,
+			HashSet<String> writtenFiles) throws IOException {
+		if (input != null && input.hasEntry(inputIsSolArchive ? origFileName : fileName)) {
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					Preconditions.checkState(directCopy(input, output, origFileName, fileName, inputIsSolArchive));
+				}
+			});
+			// direct copied
+			writtenFiles.add(fileName);
+			return;
+		}
+		CSVFile<String> csv = subSeis ? precomputed.buildSubSeisCSV() : precomputed.buildUnassociatedCSV();
+		if (csv != null) {
+			writer.write(new ParallelArchiveWriter.WriteTask() {
+				
+				@Override
+				public void write(ArchiveOutput output) throws IOException {
+					CSV_BackedModule.writeToArchive(csv, output, null, fileName);
+				}
+			});
+			writtenFiles.add(fileName);
+		}
+	}
+	
 	protected boolean directCopy(ArchiveInput input, ArchiveOutput output, String origFileName,
 			String outputFileName, boolean useOrigFileName) throws IOException {
 		if (input == null)
@@ -1244,7 +1407,7 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 //		return mappings;
 //	}
 
-	protected Map<String, String> directCopyGridProvToArchive(ArchiveInput input, ArchiveOutput output, String prefix,
+	protected Map<String, String> directCopyGridProvToArchive(ArchiveInput input, BranchFileWriter writer, String prefix,
 			LogicTreeBranch<?> branch, HashSet<String> writtenFiles) throws IOException {
 		
 		List<String> inputFileNames = new ArrayList<>(6);
@@ -1283,7 +1446,13 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 				continue;
 			}
 			if (input.hasEntry(branchFileName)) {
-				output.transferFrom(input, branchFileName);
+				writer.write(new ParallelArchiveWriter.WriteTask() {
+					
+					@Override
+					public void write(ArchiveOutput output) throws IOException {
+						output.transferFrom(input, branchFileName);
+					}
+				});
 				writtenFiles.add(branchFileName);
 				mappings.put(fileName, branchFileName);
 				anyPresent = true;
@@ -1938,6 +2107,8 @@ public class SolutionLogicTree extends AbstractLogicTreeModule {
 			hasBranchSpecificGridded = false;
 		}
 		FileBuilder builder = new FileBuilder(slt.getProcessor(), ArchiveOutput.getDefaultOutput(outputFile, directCopyInput));
+		// serialize branches in parallel; keep the thread count modest as each pending branch holds a solution in memory
+		builder.setWriteThreads(Integer.min(4, FaultSysTools.defaultNumThreads()));
 		if (slt.constantGridProv != null)
 			builder.setConstantGridProv(slt.constantGridProv);
 		if (hasBranchSpecificGridded) {
@@ -52,6 +52,7 @@ import org.opensha.commons.util.MarkdownUtils;
 import org.opensha.commons.util.ReturnPeriodUtils;
 import org.opensha.commons.util.cpt.CPT;
 import org.opensha.sha.calc.HazardCurveCalculator;
+import org.opensha.sha.calc.PointSourceExceedanceCache;
 import org.opensha.sha.calc.params.filters.FixedDistanceCutoffFilter;
 import org.opensha.sha.calc.params.filters.SourceFilter;
 import org.opensha.sha.calc.params.filters.SourceFilterManager;
@@ -63,6 +64,8 @@ import org.opensha.sha.earthquake.DistCachedERFWrapper;
 import org.opensha.sha.earthquake.ProbEqkSource;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
 import org.opensha.sha.earthquake.faultSysSolution.erf.BaseFaultSystemSolutionERF;
+import org.opensha.sha.earthquake.faultSysSolution.hazard.SiteCollapsedGriddedHazardCalc;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList;
 import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceProvider;
 import org.opensha.sha.earthquake.faultSysSolution.modules.RupMFDsModule;
 import org.opensha.sha.earthquake.faultSysSolution.reports.ReportMetadata;
@@ -82,6 +85,8 @@ import org.opensha.sha.faultSurface.FaultSection;
 import org.opensha.sha.gui.infoTools.IMT_Info;
 import org.opensha.sha.imr.AttenRelRef;
 import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.attenRelImpl.nshmp.GroundMotionMemoCache;
+import org.opensha.sha.imr.attenRelImpl.nshmp.NSHMP_GMM_Wrapper;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGV_Param;
 import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
@@ -91,6 +96,8 @@ import org.opensha.sha.util.TectonicRegionType;
 import com.google.common.base.Preconditions;
 import com.google.common.primitives.Doubles;
 
+import gov.usgs.earthquake.nshmp.gmm.GmmInput.Field;
+
 import scratch.UCERF3.erf.FaultSystemSolutionERF;
 
 public class SolHazardMapCalc {
@@ -252,6 +259,16 @@ public class SolHazardMapCalc {
 	}
 	private SourceFilterManager siteSkipSourceFilter = SITE_SKIP_SOURCE_FILTER_DEFAULT;
 	
+	private PointSourceExceedanceCache ptSrcExceedCache;
+	
+	private double collapseGridDistBinWidth = 0d;
+	
+	// optional per-thread memo caches for nshmp-lib GMMs, disabled if size is zero
+	private int gmMemoCacheSize = 0;
+	private EnumMap<Field, Double> gmMemoCacheQuanta = new EnumMap<>(Field.class);
+	private long gmMemoCacheHits;
+	private long gmMemoCacheMisses;
+	
 	// ERF params
 	private IncludeBackgroundOption backSeisOption;
 	private BackgroundRupType backSeisType;
@@ -432,6 +449,63 @@ public class SolHazardMapCalc {
 		this.siteSkipSourceFilter = siteSkipSourceFilter;
 	}
 	
+	/**
+	 * Sets an optional cache of point source exceedance tables, shared by all calculation threads. This can
+	 * substantially speed up gridded seismicity calculations at the cost of a small interpolation error, see
+	 * {@link PointSourceExceedanceCache}.
+	 * 
+	 * @param ptSrcExceedCache
+	 */
+	public void setPointSourceExceedanceCache(PointSourceExceedanceCache ptSrcExceedCache) {
+		this.ptSrcExceedCache = ptSrcExceedCache;
+	}
+	
+	/**
+	 * Enables site-collapsed gridded seismicity calculations (see {@link SiteCollapsedGriddedHazardCalc}) with the
+	 * given distance bin width. Gridded ruptures are binned by site-node distance for each site, which can
+	 * substantially speed up gridded seismicity calculations at the cost of a small error that is controlled by the
+	 * bin width. This requires the solution to have a {@link GridSourceList} and {@link BackgroundRupType#POINT}
+	 * gridded ruptures, and only applies when gridded seismicity is included.
+	 * 
+	 * @param distBinWidth distance bin width in km, or 0 to disable (default)
+	 */
+	public void setCollapseGriddedSources(double distBinWidth) {
+		Preconditions.checkArgument(distBinWidth >= 0d, "Distance bin width can't be negative");
+		this.collapseGridDistBinWidth = distBinWidth;
+	}
+	
+	/**
+	 * Enables per-thread {@link GroundMotionMemoCache}s for any {@link NSHMP_GMM_Wrapper} GMMs, each with the given
+	 * maximum size. Hit rates are printed after each calculation.
+	 * 
+	 * @param maxSize maximum cache size, or 0 to disable
+	 */
+	public void setGroundMotionMemoCacheSize(int maxSize) {
+		Preconditions.checkArgument(maxSize >= 0);
+		this.gmMemoCacheSize = maxSize;
+	}
+	
+	/**
+	 * Sets the quantization for the given field in any {@link GroundMotionMemoCache}s, see
+	 * {@link GroundMotionMemoCache#setQuantization(Field, double)}.
+	 * 
+	 * @param field
+	 * @param quantum quantization step in nshmp-lib units, or 0 for exact matching
+	 */
+	public void setGroundMotionMemoCacheQuantization(Field field, double quantum) {
+		if (quantum > 0d)
+			gmMemoCacheQuanta.put(field, quantum);
+		else
+			gmMemoCacheQuanta.remove(field);
+	}
+	
+	private synchronized void memoCacheCompleted(List<GroundMotionMemoCache> caches) {
+		for (GroundMotionMemoCache cache : caches) {
+			gmMemoCacheHits += cache.getHits();
+			gmMemoCacheMisses += cache.getMisses();
+		}
+	}
+	
 	public static DiscretizedFunc getDefaultXVals(double period) {
 		return getDefaultXVals(new IMT_Info(), period);
 	}
@@ -504,6 +578,8 @@ public class SolHazardMapCalc {
 		checkInitERF();
 		
 		System.out.println("Calculating hazard maps with "+numThreads+" threads and "+calcIndexes.size()+" sites...");
+		gmMemoCacheHits = 0l;
+		gmMemoCacheMisses = 0l;
 		List<CalcThread> threads = new ArrayList<>();
 		CalcTracker track = new CalcTracker(calcIndexes.size());
 		for (int i=0; i<numThreads; i++) {
@@ -519,6 +595,11 @@ public class SolHazardMapCalc {
 				throw ExceptionUtils.asRuntimeException(e);
 			}
 		}
+		
+		long gmMemoCacheTotal = gmMemoCacheHits + gmMemoCacheMisses;
+		if (gmMemoCacheTotal > 0l)
+			System.out.println("Ground motion memo cache: "+gmMemoCacheHits+"/"+gmMemoCacheTotal+" hits ("
+					+percentDF.format((double)gmMemoCacheHits/(double)gmMemoCacheTotal)+")");
 	}
 	
 	private class CalcTracker {
@@ -573,6 +654,9 @@ public class SolHazardMapCalc {
 		private GridSourceProvider gridProv;
 		private CalcTracker track;
 		private SolHazardMapCalc combineWith;
+		// only used for site-collapsed gridded seismicity
+		private AbstractERF faultERF;
+		private SiteCollapsedGriddedHazardCalc collapsedGridCalc;
 		
 		public CalcThread(ConcurrentLinkedDeque<Integer> calcIndexes, BaseFaultSystemSolutionERF erf,
 				CalcTracker track, SolHazardMapCalc combineWith) {
@@ -584,6 +668,22 @@ public class SolHazardMapCalc {
 			if (bgOption == IncludeBackgroundOption.INCLUDE || bgOption == IncludeBackgroundOption.ONLY)
 				gridProv = erf.getSolution().requireModule(GridSourceProvider.class);
 			this.erf = new DistCachedERFWrapper(erf);
+			if (gridProv != null && collapseGridDistBinWidth > 0d) {
+				Preconditions.checkState(gridProv instanceof GridSourceList,
+						"Collapsed gridded seismicity requires a GridSourceList, have %s", gridProv.getClass().getName());
+				BackgroundRupType bgType = (BackgroundRupType)erf.getParameter(BackgroundRupParam.NAME).getValue();
+				Preconditions.checkState(bgType == BackgroundRupType.POINT,
+						"Collapsed gridded seismicity requires point sources, have %s", bgType);
+				Preconditions.checkState(erf.getNumSources() - (bgOption == IncludeBackgroundOption.ONLY ? 0 : numFaultSysSources)
+						== gridProv.getNumSources(), "ERF gridded sources don't match the grid source provider");
+				collapsedGridCalc = new SiteCollapsedGriddedHazardCalc((GridSourceList)gridProv, sourceFilter, bgType,
+						erf.getTimeSpan().getDuration());
+				collapsedGridCalc.setDistanceBinWidth(collapseGridDistBinWidth);
+				collapsedGridCalc.setAftershockFilter(erf.getGridSourceAftershockFilter());
+				collapsedGridCalc.getCalculator().setPointSourceExceedanceCache(ptSrcExceedCache);
+				if (bgOption == IncludeBackgroundOption.INCLUDE && numFaultSysSources > 0)
+					faultERF = new FaultSourcesERF(this.erf, numFaultSysSources);
+			}
 		}
 
 		@Override
@@ -592,7 +692,21 @@ public class SolHazardMapCalc {
 			for (TectonicRegionType trt : gmpeRefMap.keySet())
 				gmpeMap.put(trt, gmpeRefMap.get(trt).get());
 			
+			List<GroundMotionMemoCache> memoCaches = new ArrayList<>();
+			if (gmMemoCacheSize > 0) {
+				for (ScalarIMR gmpe : gmpeMap.values()) {
+					if (gmpe instanceof NSHMP_GMM_Wrapper) {
+						GroundMotionMemoCache memoCache = new GroundMotionMemoCache(gmMemoCacheSize);
+						for (Field field : gmMemoCacheQuanta.keySet())
+							memoCache.setQuantization(field, gmMemoCacheQuanta.get(field));
+						((NSHMP_GMM_Wrapper)gmpe).setGroundMotionMemoCache(memoCache);
+						memoCaches.add(memoCache);
+					}
+				}
+			}
+			
 			HazardCurveCalculator calc = new HazardCurveCalculator(sourceFilter);
+			calc.setPointSourceExceedanceCache(ptSrcExceedCache);
 			while (true) {
 				Integer index = calcIndexes.pollFirst();
 				if (index == null)
@@ -622,13 +736,20 @@ public class SolHazardMapCalc {
 					}
 				}
 				
-				List<DiscretizedFunc> curves = calcSiteCurves(calc, erf, gmpeMap, site, combineWith, index);
+				List<DiscretizedFunc> curves;
+				if (collapsedGridCalc == null)
+					curves = calcSiteCurves(calc, erf, gmpeMap, site, combineWith, index);
+				else
+					curves = calcSiteCurves(calc, faultERF, collapsedGridCalc, gmpeMap, site, combineWith, index);
 				
 				for (int p=0; p<periods.length; p++)
 					curvesList.get(p)[index] = curves.get(p);
 				
 				track.taskCompleted();
 			}
+			
+			if (!memoCaches.isEmpty())
+				memoCacheCompleted(memoCaches);
 		}
 	}
 	
@@ -684,13 +805,31 @@ public class SolHazardMapCalc {
 	private List<DiscretizedFunc> calcSiteCurves(HazardCurveCalculator calc, AbstractERF erf,
 			EnumMap<TectonicRegionType, ScalarIMR> gmpeMap, Site site,
 			SolHazardMapCalc combineWith, int index) {
+		return calcSiteCurves(calc, erf, null, gmpeMap, site, combineWith, index);
+	}
+	
+	/**
+	 * Calculates curves for each period at the given site. If collapsedGridCalc is non null, the given ERF should only
+	 * contain fault sources (or be null if there are none), and gridded seismicity curves from collapsedGridCalc
+	 * will be combined in.
+	 */
+	private List<DiscretizedFunc> calcSiteCurves(HazardCurveCalculator calc, AbstractERF erf,
+			SiteCollapsedGriddedHazardCalc collapsedGridCalc, EnumMap<TectonicRegionType, ScalarIMR> gmpeMap, Site site,
+			SolHazardMapCalc combineWith, int index) {
 		checkInitXVals();
 		List<DiscretizedFunc> ret = new ArrayList<>(periods.length);
 		
 		for (int p=0; p<periods.length; p++) {
 			setIMforPeriod(gmpeMap, periods[p]);
 			DiscretizedFunc logCurve = logXVals[p].deepClone();
-			calc.getHazardCurve(logCurve, site, gmpeMap, erf);
+			if (erf != null) {
+				calc.getHazardCurve(logCurve, site, gmpeMap, erf);
+			} else {
+				for (int i=0; i<logCurve.size(); i++)
+					logCurve.set(i, 0d);
+			}
+			if (collapsedGridCalc != null)
+				combineIn(logCurve, collapsedGridCalc.getHazardCurve(logXVals[p].deepClone(), site, gmpeMap));
 			DiscretizedFunc curve = xVals[p].deepClone();
 			for (int i=0; i<curve.size(); i++)
 				curve.set(i, logCurve.getY(i));
@@ -993,6 +1132,40 @@ public class SolHazardMapCalc {
 		return new MapPlot(spec, lonRange, latRange, tick, tick, outputDir, prefix);
 	}
 	
+	/**
+	 * View of the fault system sources of an ERF (which are always first)
+	 */
+	private static class FaultSourcesERF extends AbstractERF {
+		
+		private AbstractERF erf;
+		private int numFaultSysSources;
+
+		public FaultSourcesERF(AbstractERF erf, int numFaultSysSources) {
+			this.erf = erf;
+			this.numFaultSysSources = numFaultSysSources;
+		}
+
+		@Override
+		public int getNumSources() {
+			return numFaultSysSources;
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			Preconditions.checkElementIndex(idx, numFaultSysSources);
+			return erf.getSource(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return erf.getName();
+		}
+		
+	}
+	
 	public static class MapPlot {
 		public final XYZPlotSpec spec;
 		public final Range xRnage;
@@ -7,6 +7,7 @@ import java.util.Random;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.Options;
 import org.opensha.commons.logicTree.LogicTree;
+import org.opensha.commons.logicTree.LogicTreeSamplingMethod;
 import org.opensha.commons.util.io.archive.ArchiveInput;
 import org.opensha.sha.earthquake.faultSysSolution.modules.SolutionLogicTree;
 
@@ -20,6 +21,8 @@ public class SolLogicTreeSampler {
 		ops.addOption(null, "samples", true, "Number of random samples. Must supply this or --logic-tree");
 		ops.addOption(null, "rand-seed", true, "Random seed to use when downsampling; default is repeatable and based "
 				+ "on the number of samples and the number of original branches");
+		ops.addOption(null, "sampling-method", true, "Sampling method, one of: "
+				+FaultSysTools.enumOptions(LogicTreeSamplingMethod.class)+". Default: "+LogicTreeSamplingMethod.MONTE_CARLO.name());
 		ops.addOption(null, "logic-tree", true, "Already sampled logic tree. Must supply this or --samples");
 		ops.addOption(null, "simplify", false, "Flag to simplify the written SolutionLogicTree");
 		
@@ -45,7 +48,10 @@ public class SolLogicTreeSampler {
 				randSeed = Long.parseLong(cmd.getOptionValue("rand-seed"));
 			else
 				randSeed = (long)origTree.size() * (long)numSamples;
-			outputTree = origTree.sample(numSamples, true, new Random(randSeed), true);
+			LogicTreeSamplingMethod method = LogicTreeSamplingMethod.MONTE_CARLO;
+			if (cmd.hasOption("sampling-method"))
+				method = LogicTreeSamplingMethod.valueOf(cmd.getOptionValue("sampling-method"));
+			outputTree = origTree.sample(numSamples, true, new Random(randSeed), true, method);
 		} else if (cmd.hasOption("logic-tree")) {
 			outputTree = LogicTree.read(new File(cmd.getOptionValue("logic-tree")));
 		} else {
@@ -206,6 +206,12 @@ public class SolSiteHazardCalc {
 		ops.addOption(null, "duration", true, "Sets the duration for curve calculations; default is 1 year (annual "
 				+ "probabilities of exceedance).");
 		
+		ops.addOption(null, "rupture-skip-tol", true, "Enables skipping of ruptures with negligible contributions to "
+				+ "hazard curves, such that the estimated relative error at any IML is at most the given tolerance "
+				+ "(e.g., 0.001). Ground motion estimates for skipped ruptures are conservative approximations, not "
+				+ "strict bounds, so actual errors can occasionally exceed the tolerance. Disabled by default, and not "
+				+ "applied to disaggregations.");
+		
 		ops.addOption(null, "disagg-prob", true, "Enables disaggregation at the specified probability of exceedance "
 				+ "level(s); multiple levels can be comma separated.");
 		
@@ -518,14 +524,19 @@ public class SolSiteHazardCalc {
 
 		
 		int numCurves = sites.size() * periods.length;
-		int threads = Integer.min(FaultSysTools.getNumThreads(cmd), numCurves);
+		int totThreads = FaultSysTools.getNumThreads(cmd);
+		int threads = Integer.min(totThreads, numCurves);
+		// if we have fewer curves than threads, also parallelize over sources within each curve
+		int sourceThreads = totThreads / threads;
 		
-		if (threads == 1)
+		if (threads == 1 && sourceThreads == 1)
 			SurfaceCachingPolicy.force(CacheTypes.SINGLE);
 		else if (!THREAD_LOCAL_ERFS)
 			SurfaceCachingPolicy.force(CacheTypes.THREAD_LOCAL);
 		
 		double duration = cmd.hasOption("duration") ? Double.parseDouble(cmd.getOptionValue("duration")) : 1d;
+		double ruptureSkipTol = cmd.hasOption("rupture-skip-tol") ?
+				Double.parseDouble(cmd.getOptionValue("rupture-skip-tol")) : 0d;
 		
 		System.out.println("Building ERF for "+name);
 		FaultSystemSolutionERF erf = buildERF(sol, mainGridOp, duration);
@@ -533,6 +544,9 @@ public class SolSiteHazardCalc {
 		List<HazardCalcThread> calcThreads = new ArrayList<>(threads);		
 		for (int i=0; i<threads; i++) {
 			HazardCurveCalculator calc = new HazardCurveCalculator(sourceFilters);
+			if (sourceThreads > 1)
+				calc.setSourceParallelism(sourceThreads, gmmSuppliers);
+			calc.setRuptureSkipTolerance(ruptureSkipTol);
 			calcThreads.add(new HazardCalcThread(calc, i == 0 ? gmms0 : SolHazardMapCalc.getGmmInstances(gmmSuppliers)));
 		}
 		
@@ -1848,8 +1862,18 @@ public class SolSiteHazardCalc {
 				LightFixedXFunc linearCurve = new LightFixedXFunc(linearXVals, logCurve.getYVals());
 				task.setResult(linearCurve);
 				
+				String skipStr = "";
+				DiscretizedFunc skipErr = calc.getSkippedRuptureErrorEstimate();
+				if (skipErr != null) {
+					double maxRelErr = 0d;
+					for (int i=0; i<skipErr.size(); i++)
+						if (logCurve.getY(i) > 0d)
+							maxRelErr = Math.max(maxRelErr, skipErr.getY(i)/logCurve.getY(i));
+					skipStr = "; skipped "+calc.getNumSkippedRuptures()+" ruptures (rate="
+							+(float)calc.getSkippedRuptureRate()+", estMaxRelErr="+(float)maxRelErr+")";
+				}
 				System.out.println("done calculating curve "+track.getInrementProgress()
-						+": "+task.site.name+", period="+(float)task.period);
+						+": "+task.site.name+", period="+(float)task.period+skipStr);
 				
 				task = tasks.getNextTask(task.site);
 			}
@@ -261,6 +261,47 @@ extends ProbEqkSource {
 		duration = newDuration;
 	}
 
+	/**
+	 * This updates the probability of each rupture in place for the case where a mag-freq dist was given in the
+	 * constructor. The given distribution (with rates multiplied by rateScale) must have non-zero rates at the same
+	 * magnitudes as that used to construct this source, otherwise an {@link IllegalStateException} is thrown and no
+	 * probabilities are modified (the source should be rebuilt instead).
+	 * @param magDist
+	 * @param rateScale - factor to multiply each rate by, e.g., a probability gain
+	 * @param newDuration
+	 * @throws IllegalStateException if the non-zero bins of the given distribution don't match the existing ruptures
+	 */
+	public void updateProbabilities(DiscretizedFunc magDist, double rateScale, double newDuration)
+			throws IllegalStateException {
+		// first make sure that it matches, so that we don't leave this source partially updated
+		int index = 0;
+		for (int i = 0; i < magDist.size(); ++i) {
+			if (magDist.getY(i)*rateScale > 0) {
+				if (index == ruptureList.size() || (float)ruptureList.get(index).getMag() != (float)magDist.getX(i))
+					throw new IllegalStateException(C+" Error - magDist doesn't match existing ruptures");
+				index++;
+			}
+		}
+		if (index != ruptureList.size())
+			throw new IllegalStateException(C+" Error - magDist doesn't match existing ruptures");
+		
+		index = 0;
+		for (int i = 0; i < magDist.size(); ++i) {
+			double rate = magDist.getY(i);
+			if (rateScale != 1d)
+				rate *= rateScale;
+			if (rate > 0) {
+				double prob;
+				if (isPoissonian)
+					prob = 1 - Math.exp( -newDuration * rate);
+				else
+					prob = Math.min(1d, rate*newDuration);
+				ruptureList.get(index++).setProbability(prob);
+			}
+		}
+		duration = newDuration;
+	}
+
 	/**
 	 * @return the total num of rutures for all magnitudes
 	 */
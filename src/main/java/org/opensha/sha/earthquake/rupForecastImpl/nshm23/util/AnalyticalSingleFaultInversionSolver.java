@@ -205,14 +205,15 @@ public class AnalyticalSingleFaultInversionSolver extends InversionSolver.Defaul
 				inputGen.generateInputs(false);
 				double[] data_eq = inputGen.getD();
 				double[] misfits_eq = new double[data_eq.length];
-				SerialSimulatedAnnealing.calculateMisfit(inputGen.getA(), data_eq, rates, misfits_eq);
+				SerialSimulatedAnnealing.calculateMisfit(inputGen.getA(), data_eq, rates, misfits_eq, config.getThreads());
 				
 				double[] data_ineq = null;
 				double[] misfits_ineq = null;
 				if (inputGen.getA_ineq() != null) {
 					data_ineq = inputGen.getD_ineq();
 					misfits_ineq = new double[data_eq.length];
-					SerialSimulatedAnnealing.calculateMisfit(inputGen.getA_ineq(), data_ineq, rates, misfits_ineq);
+					SerialSimulatedAnnealing.calculateMisfit(inputGen.getA_ineq(), data_ineq, rates, misfits_ineq,
+							config.getThreads());
 				}
 				
 				InversionMisfits misfits = new InversionMisfits(inputGen.getConstraintRowRanges(), misfits_eq, data_eq,
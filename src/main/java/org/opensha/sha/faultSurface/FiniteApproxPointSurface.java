@@ -4,6 +4,7 @@ import org.opensha.commons.calc.magScalingRelations.magScalingRelImpl.WC1994_Mag
 import org.opensha.commons.exceptions.InvalidRangeException;
 import org.opensha.commons.geo.Location;
 import org.opensha.commons.geo.LocationUtils;
+import org.opensha.commons.geo.LocationVector;
 import org.opensha.commons.geo.Region;
 import org.opensha.sha.earthquake.rupForecastImpl.PointSource13b.PointSurface13b;
 import org.opensha.sha.earthquake.rupForecastImpl.PointSourceNshm;
@@ -168,6 +169,27 @@ public class FiniteApproxPointSurface extends PointSurface {
 		return footwall;
 	}
 
+	public double getLowerDepth() {
+		return zBot;
+	}
+
+	@Override
+	public FiniteApproxPointSurface getMoved(LocationVector v) {
+		FiniteApproxPointSurface moved = copyShallow();
+		moved.setLocation(LocationUtils.location(moved.getLocation(), v));
+		return moved;
+	}
+
+	@Override
+	public FiniteApproxPointSurface copyShallow() {
+		FiniteApproxPointSurface o = new FiniteApproxPointSurface(getLocation(), aveDip, zTop, zBot, footwall, length);
+		o.corrType = corrType;
+		o.corrMag = corrMag;
+		o.aveStrike = aveStrike;
+		o.name = name;
+		return o;
+	}
+
 	/**
 	 * Same as {@code Math.hypot()} without regard to under/over flow.
 	 */
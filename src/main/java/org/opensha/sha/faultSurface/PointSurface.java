@@ -238,6 +238,20 @@ public class PointSurface implements RuptureSurface, java.io.Serializable{
 		corrMag = mag;
 		corrType = type;
 	}
+	
+	/**
+	 * @return the point-source distance correction type, see {@link #setDistCorrMagAndType(double, PtSrcDistCorr.Type)}
+	 */
+	public PtSrcDistCorr.Type getDistCorrType() {
+		return corrType;
+	}
+	
+	/**
+	 * @return the point-source distance correction magnitude, see {@link #setDistCorrMagAndType(double, PtSrcDistCorr.Type)}
+	 */
+	public double getDistCorrMag() {
+		return corrMag;
+	}
 
 
 	/**
@@ -0,0 +1,104 @@
+package org.opensha.sha.imr;
+
+import static org.opensha.commons.geo.GeoTools.TO_RAD;
+
+import org.opensha.commons.data.Site;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.ParameterList;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.RuptureSurface;
+import org.opensha.sha.imr.param.SiteParams.DepthTo1pt0kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.DepthTo2pt5kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.SedimentThicknessParam;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam;
+
+/**
+ * Reusable, mutable record of primitive ground motion model inputs for use with {@link DirectInputIMR}, bypassing
+ * the parameter machinery (constraint checks and change events) when many ruptures are evaluated for a single site.
+ * <br><br>
+ * Values use OpenSHA units (e.g., Z1.0 in meters, Z2.5 in km), and null optional site values are NaN. Typical use
+ * is to call {@link #setSite(Site, ScalarIMR)} once per site and IMR and then {@link #setRupture(EqkRupture, Location)}
+ * for each rupture.
+ *
+ * @author kevin
+ *
+ */
+public class DirectIMR_Input {
+
+	// rupture values
+	public double mag = Double.NaN;
+	public double rake = Double.NaN;
+	public double dip = Double.NaN;
+	public double width = Double.NaN;
+	public double zTor = Double.NaN;
+	public double zHyp = Double.NaN;
+
+	// distances
+	public double rRup = Double.NaN;
+	public double rJB = Double.NaN;
+	public double rX = Double.NaN;
+
+	// site values
+	public double vs30 = Double.NaN;
+	public boolean vs30Inferred = true;
+	public double z1p0 = Double.NaN;
+	public double z2p5 = Double.NaN;
+	public double zSed = Double.NaN;
+
+	/**
+	 * Sets site values from the given site's parameters. Any parameters that the site doesn't contain are set from the
+	 * default value of the matching IMR site parameter (or NaN if the IMR doesn't have that parameter). Null values
+	 * are set to NaN.
+	 *
+	 * @param site
+	 * @param imr IMR that will be used with these inputs, supplies defaults for missing site parameters
+	 */
+	public void setSite(Site site, ScalarIMR imr) {
+		vs30 = siteValue(site, imr, Vs30_Param.NAME);
+		Object vs30Type = siteParamValue(site, imr, Vs30_TypeParam.NAME);
+		vs30Inferred = !Vs30_TypeParam.VS30_TYPE_MEASURED.equals(vs30Type);
+		z1p0 = siteValue(site, imr, DepthTo1pt0kmPerSecParam.NAME);
+		z2p5 = siteValue(site, imr, DepthTo2pt5kmPerSecParam.NAME);
+		zSed = siteValue(site, imr, SedimentThicknessParam.NAME);
+	}
+
+	private static double siteValue(Site site, ScalarIMR imr, String paramName) {
+		Object value = siteParamValue(site, imr, paramName);
+		return value == null ? Double.NaN : (Double)value;
+	}
+
+	private static Object siteParamValue(Site site, ScalarIMR imr, String paramName) {
+		if (site.containsParameter(paramName))
+			return site.getParameter(paramName).getValue();
+		ParameterList imrSiteParams = imr.getSiteParams();
+		if (imrSiteParams.containsParameter(paramName))
+			return imrSiteParams.getParameter(paramName).getDefaultValue();
+		return null;
+	}
+
+	/**
+	 * Sets rupture values and site-to-rupture distances for the given rupture and site location
+	 *
+	 * @param rupture
+	 * @param siteLoc
+	 */
+	public void setRupture(EqkRupture rupture, Location siteLoc) {
+		RuptureSurface surf = rupture.getRuptureSurface();
+
+		mag = rupture.getMag();
+		rake = rupture.getAveRake();
+		dip = surf.getAveDip();
+		width = surf.getAveWidth();
+		zTor = surf.getAveRupTopDepth();
+		if (rupture.getHypocenterLocation() != null)
+			zHyp = rupture.getHypocenterLocation().getDepth();
+		else
+			zHyp = zTor + Math.sin(dip * TO_RAD) * width/2.0;
+
+		rJB = surf.getDistanceJB(siteLoc);
+		rRup = surf.getDistanceRup(siteLoc);
+		rX = surf.getDistanceX(siteLoc);
+	}
+
+}
@@ -0,0 +1,32 @@
+package org.opensha.sha.imr;
+
+/**
+ * Optional interface for {@link ScalarIMR}s that can be set directly from primitive values via a
+ * {@link DirectIMR_Input}, rather than from an {@link org.opensha.sha.earthquake.EqkRupture} and
+ * {@link org.opensha.commons.data.Site} through parameters. This is used as a fast path in hazard calculations.
+ * <br><br>
+ * After {@link #setDirectInput(DirectIMR_Input)} is called, the mean, standard deviation, and exceedance probabilities
+ * will be computed for those inputs (and the current intensity measure) until the next call to
+ * {@link #setSite(org.opensha.commons.data.Site)}, {@link #setEqkRupture(org.opensha.sha.earthquake.EqkRupture)},
+ * or {@link #setDirectInput(DirectIMR_Input)}. Independent parameter values are not updated.
+ *
+ * @author kevin
+ *
+ */
+public interface DirectInputIMR extends ScalarIMR {
+
+	/**
+	 * @return true if direct inputs can be used with the current configuration
+	 */
+	public default boolean isDirectInputSupported() {
+		return true;
+	}
+
+	/**
+	 * Sets all site and rupture inputs directly
+	 *
+	 * @param input
+	 */
+	public void setDirectInput(DirectIMR_Input input);
+
+}
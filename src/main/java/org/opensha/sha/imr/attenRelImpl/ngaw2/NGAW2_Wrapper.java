@@ -20,6 +20,8 @@ import org.opensha.commons.util.FaultUtils;
 import org.opensha.sha.earthquake.EqkRupture;
 import org.opensha.sha.faultSurface.RuptureSurface;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DirectIMR_Input;
+import org.opensha.sha.imr.DirectInputIMR;
 import org.opensha.sha.imr.param.IntensityMeasureParams.DampingParam;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
 import org.opensha.sha.imr.param.IntensityMeasureParams.PGD_Param;
@@ -41,11 +43,13 @@ import com.google.common.base.Preconditions;
  * @author kevin
  *
  */
-public class NGAW2_Wrapper extends AttenuationRelationship implements ParameterChangeListener {
+public class NGAW2_Wrapper extends AttenuationRelationship implements ParameterChangeListener, DirectInputIMR {
 	
 	private String shortName;
 	private NGAW2_GMM gmpe;
 	private ScalarGroundMotion gm;
+	// IMT for direct inputs, cleared whenever parameters are updated
+	private IMT directIMT;
 	
 	public NGAW2_Wrapper(String shortName, NGAW2_GMM gmpe) {
 		this.shortName = shortName;
@@ -132,19 +136,53 @@ public class NGAW2_Wrapper extends AttenuationRelationship implements ParameterC
 		update();
 	}
 	
+	private IMT getCurrentIMT() {
+		if (im.getName().equals(SA_Param.NAME))
+			return IMT.getSA(SA_Param.getPeriodInSA_Param(im));
+		return IMT.parseIMT(im.getName());
+	}
+
+	@Override
+	public void setDirectInput(DirectIMR_Input input) {
+		gm = null;
+		
+		if (directIMT == null)
+			directIMT = getCurrentIMT();
+		gmpe.set_IMT(directIMT);
+		
+		// assert in range [-180 180]
+		FaultUtils.assertValidRake(input.rake);
+		
+		gmpe.set_Mw(input.mag);
+		
+		gmpe.set_rJB(input.rJB);
+		gmpe.set_rRup(input.rRup);
+		gmpe.set_rX(input.rX);
+		
+		gmpe.set_dip(input.dip);
+		gmpe.set_width(input.width);
+		gmpe.set_zTop(input.zTor);
+		gmpe.set_zHyp(input.zHyp);
+		
+		gmpe.set_vs30(input.vs30);
+		gmpe.set_vsInf(input.vs30Inferred);
+		gmpe.set_z2p5(input.z2p5);
+		// OpenSHA has Z1.0 in m instead of km, need to convert
+		gmpe.set_z1p0(input.z1p0/1000d);
+		
+		gmpe.set_fault(getFaultStyle(input.rake));
+	}
+	
 	/**
 	 * This updates all values in the wrapped GMPE
 	 */
 	private void update() {
 		gm = null;
+		directIMT = null;
 		
 		if (site != null && eqkRupture != null) {
 			// IMT
-			IMT imt;
-			if (im.getName().equals(SA_Param.NAME))
-				imt = IMT.getSA(SA_Param.getPeriodInSA_Param(im));
-			else
-				imt = IMT.parseIMT(im.getName());
+			IMT imt = getCurrentIMT();
 			
 			RuptureSurface surf = eqkRupture.getRuptureSurface();
 			Location siteLoc = site.getLocation();
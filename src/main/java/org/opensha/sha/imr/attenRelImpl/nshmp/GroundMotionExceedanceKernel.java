@@ -0,0 +1,163 @@
+package org.opensha.sha.imr.attenRelImpl.nshmp;
+
+import java.util.Arrays;
+
+import org.opensha.commons.calc.GaussianDistCalc;
+
+import com.google.common.base.Preconditions;
+
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Primitive representation of a ground motion {@link LogicTree} for fast evaluation of weighted exceedance
+ * probabilities across all branches in a single loop.
+ * <br><br>
+ * Branches with identical mean and sigma are merged (summing their weights), and weights are normalized up front.
+ * Branches that share a mean are grouped so that the distance from the mean is computed once per IML and group.
+ * Evaluation stops early once all branches in a group have zero exceedance probability, as IMLs are sorted.
+ *
+ * @author kevin
+ *
+ */
+class GroundMotionExceedanceKernel {
+
+	private final LogicTree<GroundMotion> tree;
+
+	// distinct means
+	private final double[] means;
+	// start index in the sigma arrays for each mean, with a final entry for the total count
+	private final int[] groupStarts;
+	// 1/sigma and normalized weight for each distinct (mean, sigma) pair
+	private final double[] invSigmas;
+	private final double[] weights;
+
+	GroundMotionExceedanceKernel(LogicTree<GroundMotion> tree) {
+		this.tree = tree;
+
+		final int num = tree.size();
+		double[] branchMeans = new double[num];
+		double[] branchSigmas = new double[num];
+		double[] branchWeights = new double[num];
+		double weightSum = 0d;
+		int index = 0;
+		for (Branch<GroundMotion> branch : tree) {
+			GroundMotion gm = branch.value();
+			branchMeans[index] = gm.mean();
+			branchSigmas[index] = gm.sigma();
+			branchWeights[index] = branch.weight();
+			weightSum += branchWeights[index];
+			index++;
+		}
+		Preconditions.checkState(weightSum > 0d, "Ground motion tree weights sum to zero");
+
+		// group by mean (in order of first occurrence), merging duplicate sigmas within each group
+		double[] distinctMeans = new double[num];
+		int numMeans = 0;
+		int[] groupStarts = new int[num+1];
+		double[] invSigmas = new double[num];
+		double[] weights = new double[num];
+		boolean[] used = new boolean[num];
+		int count = 0;
+		for (int i=0; i<num; i++) {
+			if (used[i])
+				continue;
+			double mean = branchMeans[i];
+			distinctMeans[numMeans] = mean;
+			groupStarts[numMeans] = count;
+			numMeans++;
+			int groupStart = count;
+			for (int j=i; j<num; j++) {
+				if (used[j] || branchMeans[j] != mean)
+					continue;
+				used[j] = true;
+				double invSigma = 1d/branchSigmas[j];
+				double weight = weightSum == 1d ? branchWeights[j] : branchWeights[j]/weightSum;
+				boolean merged = false;
+				for (int k=groupStart; k<count; k++) {
+					if (invSigmas[k] == invSigma) {
+						weights[k] += weight;
+						merged = true;
+						break;
+					}
+				}
+				if (!merged) {
+					invSigmas[count] = invSigma;
+					weights[count] = weight;
+					count++;
+				}
+			}
+		}
+		groupStarts[numMeans] = count;
+
+		this.means = numMeans == num ? distinctMeans : Arrays.copyOf(distinctMeans, numMeans);
+		this.groupStarts = numMeans == num ? groupStarts : Arrays.copyOf(groupStarts, numMeans+1);
+		this.invSigmas = invSigmas;
+		this.weights = weights;
+	}
+
+	/**
+	 * @return the tree that this kernel represents
+	 */
+	LogicTree<GroundMotion> getTree() {
+		return tree;
+	}
+
+	/**
+	 * Computes weighted exceedance probabilities for each IML, overwriting any values in the y array
+	 *
+	 * @param xVals IMLs (natural log units), sorted in increasing order
+	 * @param yVals array to fill in with exceedance probabilities
+	 * @param size number of values to compute
+	 * @param truncType 0 for none, 1 for upper only, and 2 for two sided
+	 * @param truncLevel truncation level in units of sigma
+	 */
+	void calcExceedProbs(double[] xVals, double[] yVals, int size, int truncType, double truncLevel) {
+		Preconditions.checkArgument(truncType >= 0 && truncType <= 2, "truncType must be 0, 1, or 2");
+		if (truncType == 2)
+			Preconditions.checkArgument(truncLevel > 0d, "truncLevel must be greater than zero for truncType=2");
+		else if (truncType == 1)
+			Preconditions.checkArgument(truncLevel >= 0d, "truncLevel cannot be negative");
+
+		// these are constant for all branches
+		final double pUp = truncType > 0 ? GaussianDistCalc.getCDF(truncLevel) : 1d;
+		final double pLow = truncType == 2 ? GaussianDistCalc.getCDF(-truncLevel) : 0d;
+		final double pRange = pUp - pLow;
+
+		for (int i=0; i<size; i++)
+			yVals[i] = 0d;
+
+		for (int g=0; g<means.length; g++) {
+			final double mean = means[g];
+			final int start = groupStarts[g];
+			final int end = groupStarts[g+1];
+			for (int i=0; i<size; i++) {
+				// shared by all sigma branches for this mean
+				final double diff = xVals[i] - mean;
+				double sum = 0d;
+				for (int k=start; k<end; k++) {
+					final double z = diff*invSigmas[k];
+					final double y;
+					if (truncType == 0) {
+						y = 1d - GaussianDistCalc.getCDF(z);
+					} else if (z > truncLevel) {
+						y = 0d;
+					} else if (truncType == 2 && z < -truncLevel) {
+						y = 1d;
+					} else if (truncType == 1) {
+						y = 1d - GaussianDistCalc.getCDF(z)/pUp;
+					} else {
+						y = (pUp - GaussianDistCalc.getCDF(z))/pRange;
+					}
+					sum = Math.fma(y, weights[k], sum);
+				}
+				if (sum == 0d && diff > 0d)
+					// exceedance probabilities are monotonically decreasing, all remaining are zero for this group
+					break;
+				yVals[i] += sum;
+			}
+		}
+	}
+
+}
@@ -0,0 +1,258 @@
+package org.opensha.sha.imr.attenRelImpl.nshmp;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.google.common.base.Preconditions;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput.Field;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Bounded (least-recently-used) memo cache of computed ground motion logic trees, keyed by {@link Gmm}, {@link Imt},
+ * and {@link GmmInput} values. Used by {@link NSHMP_GMM_Wrapper} to avoid recomputing ground motions for inputs that
+ * have already been seen.
+ * <br><br>
+ * Input values can optionally be quantized on a per-field basis (see {@link #setQuantization(Field, double)}). When a
+ * field is quantized, its value is snapped to the nearest multiple of the quantum and ground motions are computed for
+ * the snapped input, so results are independent of the order in which inputs are encountered. By default, all fields
+ * are matched exactly and results are identical to those without this cache.
+ * <br><br>
+ * This is not thread safe and is intended to be confined to a single thread (e.g., one per GMM instance); it keeps
+ * hit/miss counters that can be used to evaluate its effectiveness.
+ *
+ * @author kevin
+ *
+ */
+public class GroundMotionMemoCache {
+
+	public static final int DEFAULT_MAX_SIZE = 10000;
+
+	private static final Field[] FIELDS = Field.values();
+
+	private final int maxSize;
+	// quantum for each field (in nshmp-lib units), 0 for exact
+	private final double[] quanta;
+	private boolean quantized = false;
+
+	private final LinkedHashMap<Key, LogicTree<GroundMotion>> map;
+	// reused for lookups so that they don't allocate, never stored in the map
+	private final Key probe = new Key();
+
+	private long hits = 0l;
+	private long misses = 0l;
+	private long evictions = 0l;
+
+	/**
+	 * Cache key. Keys are mutable so that a single probe key can be reused for lookups, but must never be modified
+	 * once they have been stored in the map.
+	 */
+	private static class Key {
+		private Gmm gmm;
+		private Imt imt;
+		private final long[] values = new long[FIELDS.length];
+		private int hashCode;
+
+		public Key set(Gmm gmm, Imt imt, GmmInput input) {
+			this.gmm = gmm;
+			this.imt = imt;
+			for (int i=0; i<values.length; i++)
+				values[i] = Double.doubleToLongBits(MutableGmmInputBuilder.valueForField(input, FIELDS[i]));
+			int result = 31 + (gmm == null ? 0 : gmm.hashCode());
+			result = 31 * result + imt.hashCode();
+			hashCode = 31 * result + Arrays.hashCode(values);
+			return this;
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj)
+				return true;
+			if (!(obj instanceof Key))
+				return false;
+			Key other = (Key) obj;
+			return hashCode == other.hashCode && gmm == other.gmm && imt == other.imt
+					&& Arrays.equals(values, other.values);
+		}
+	}
+
+	public GroundMotionMemoCache() {
+		this(DEFAULT_MAX_SIZE);
+	}
+
+	/**
+	 * @param maxSize maximum number of ground motion trees to retain; the least recently used tree will be evicted
+	 * once this size is exceeded
+	 */
+	public GroundMotionMemoCache(int maxSize) {
+		Preconditions.checkArgument(maxSize > 0, "Max size must be positive");
+		this.maxSize = maxSize;
+		this.quanta = new double[FIELDS.length];
+		this.map = new LinkedHashMap<Key, LogicTree<GroundMotion>>(Integer.min(maxSize, 1024), 0.75f, true) {
+
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<Key, LogicTree<GroundMotion>> eldest) {
+				if (size() > GroundMotionMemoCache.this.maxSize) {
+					evictions++;
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Sets the quantization for the given field. Any cached values are cleared.
+	 *
+	 * @param field
+	 * @param quantum quantization step in nshmp-lib units (e.g., km for distances, m for Z1.0), or 0 for exact matching
+	 */
+	public void setQuantization(Field field, double quantum) {
+		Preconditions.checkArgument(quantum >= 0d && Double.isFinite(quantum), "Bad quantum: %s", quantum);
+		quanta[field.ordinal()] = quantum;
+		quantized = false;
+		for (double q : quanta)
+			quantized |= q > 0d;
+		clear();
+	}
+
+	/**
+	 * @param field
+	 * @return quantization step for the given field, or 0 if exact
+	 */
+	public double getQuantization(Field field) {
+		return quanta[field.ordinal()];
+	}
+
+	/**
+	 * @return map of all quantized fields to their quantization step
+	 */
+	public Map<Field, Double> getQuantizations() {
+		EnumMap<Field, Double> ret = new EnumMap<>(Field.class);
+		for (int i=0; i<quanta.length; i++)
+			if (quanta[i] > 0d)
+				ret.put(FIELDS[i], quanta[i]);
+		return ret;
+	}
+
+	/**
+	 * @return true if any fields are quantized
+	 */
+	public boolean isQuantized() {
+		return quantized;
+	}
+
+	/**
+	 * @param input
+	 * @return the given input snapped to the quantization grid, or the input itself if no fields are quantized
+	 */
+	public GmmInput quantize(GmmInput input) {
+		if (!quantized)
+			return input;
+		MutableGmmInputBuilder builder = new MutableGmmInputBuilder();
+		for (int i=0; i<FIELDS.length; i++) {
+			double value = MutableGmmInputBuilder.valueForField(input, FIELDS[i]);
+			if (quanta[i] > 0d && Double.isFinite(value))
+				value = Math.round(value/quanta[i])*quanta[i];
+			builder.setValue(FIELDS[i], value);
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns the cached ground motion tree for the given GMM, IMT, and input, if it exists. The input should already
+	 * have been quantized via {@link #quantize(GmmInput)}.
+	 *
+	 * @param gmm
+	 * @param imt
+	 * @param input
+	 * @return cached tree, or null if not cached
+	 */
+	public LogicTree<GroundMotion> get(Gmm gmm, Imt imt, GmmInput input) {
+		LogicTree<GroundMotion> tree = map.get(probe.set(gmm, imt, input));
+		if (tree == null)
+			misses++;
+		else
+			hits++;
+		return tree;
+	}
+
+	/**
+	 * Caches the given ground motion tree for the given GMM, IMT, and (already quantized) input.
+	 *
+	 * @param gmm
+	 * @param imt
+	 * @param input
+	 * @param tree
+	 */
+	public void put(Gmm gmm, Imt imt, GmmInput input, LogicTree<GroundMotion> tree) {
+		Preconditions.checkNotNull(tree);
+		map.put(new Key().set(gmm, imt, input), tree);
+	}
+
+	/**
+	 * Clears all cached values (but not the hit/miss counters)
+	 */
+	public void clear() {
+		map.clear();
+	}
+
+	/**
+	 * @return current number of cached trees
+	 */
+	public int size() {
+		return map.size();
+	}
+
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	public long getHits() {
+		return hits;
+	}
+
+	public long getMisses() {
+		return misses;
+	}
+
+	public long getEvictions() {
+		return evictions;
+	}
+
+	/**
+	 * @return fraction of lookups that were cache hits, or NaN if there have been no lookups
+	 */
+	public double getHitRate() {
+		long total = hits + misses;
+		if (total == 0l)
+			return Double.NaN;
+		return (double)hits/(double)total;
+	}
+
+	public void resetCounters() {
+		hits = 0l;
+		misses = 0l;
+		evictions = 0l;
+	}
+
+	@Override
+	public String toString() {
+		return "GroundMotionMemoCache[size="+size()+"/"+maxSize+", hits="+hits+", misses="+misses
+				+", hitRate="+(float)getHitRate()+", evictions="+evictions+"]";
+	}
+
+}
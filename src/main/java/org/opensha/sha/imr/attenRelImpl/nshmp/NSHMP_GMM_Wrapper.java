@@ -28,6 +28,8 @@ import org.opensha.sha.earthquake.rupForecastImpl.PointEqkSource;
 import org.opensha.sha.faultSurface.RuptureSurface;
 import org.opensha.sha.gcim.imr.param.EqkRuptureParams.FocalDepthParam;
 import org.opensha.sha.imr.AttenuationRelationship;
+import org.opensha.sha.imr.DirectIMR_Input;
+import org.opensha.sha.imr.DirectInputIMR;
 import org.opensha.sha.imr.param.EqkRuptureParams.DipParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.MagParam;
 import org.opensha.sha.imr.param.EqkRuptureParams.RakeParam;
@@ -80,7 +82,7 @@ import gov.usgs.earthquake.nshmp.tree.LogicTree;
  * @author kevin
  *
  */
-public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements ParameterChangeListener {
+public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements ParameterChangeListener, DirectInputIMR {
 	
 	public final static String C = "NSHMP_GMM_WrapperFullParam";
 	
@@ -105,11 +107,16 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 	private GmmInput gmmInput;
 	private EnumMap<Imt, GroundMotionModel> instanceMap;
 	private LogicTree<GroundMotion> gmTree;
+	// primitive representation of gmTree for exceedance calculations
+	private GroundMotionExceedanceKernel gmKernel;
 	
 	// if enabled, will cache GmmInputs on a per-rupture basis
 	private boolean cacheInputsPerRupture = false;
 	private Map<EqkRupture, GmmInput> perRuptureInputCache;
 	
+	// optional memo cache of computed ground motion trees
+	private GroundMotionMemoCache memoCache;
+	
 	// params not in parent class
 	private DistanceX_Parameter distanceXParam;
 	private SedimentThicknessParam zSedParam;
@@ -259,6 +266,24 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 		this.perRuptureInputCache = other.perRuptureInputCache;
 	}
 	
+	/**
+	 * Sets an optional {@link GroundMotionMemoCache} of computed ground motion logic trees, which will be used to avoid
+	 * recomputing ground motions for inputs that have already been seen. The cache is not thread safe and should not
+	 * be shared between GMM instances used by different threads.
+	 * @param memoCache cache, or null to disable
+	 */
+	public void setGroundMotionMemoCache(GroundMotionMemoCache memoCache) {
+		this.memoCache = memoCache;
+		gmTree = null;
+	}
+	
+	/**
+	 * @return the {@link GroundMotionMemoCache} if set, otherwise null
+	 */
+	public GroundMotionMemoCache getGroundMotionMemoCache() {
+		return memoCache;
+	}
+	
 	/**
 	 * Set a custom {@link GroundMotionLogicTreeFilter} to filter the nshmp-haz logic tree to only contain certain elements.
 	 * Useful for isolating a sub-model.
@@ -267,6 +292,9 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 	public void setGroundMotionTreeFilter(GroundMotionLogicTreeFilter treeFilter) {
 		this.treeFilter = treeFilter;
 		clearCachedGmmInputs();
+		if (memoCache != null)
+			// cached trees were filtered with the previous filter
+			memoCache.clear();
 	}
 	
 	/**
@@ -287,10 +315,23 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 		
 		GroundMotionModel gmmInstance = getCurrentGMM_Instance();
 		
-		LogicTree<GroundMotion> gmTree = gmmInstance.calc(getCurrentGmmInput());
+		GmmInput input = getCurrentGmmInput();
+		LogicTree<GroundMotion> gmTree = null;
+		if (memoCache != null) {
+			input = memoCache.quantize(input);
+			gmTree = memoCache.get(gmm, getCurrentIMT(), input);
+			if (gmTree != null) {
+				this.gmTree = gmTree;
+				return gmTree;
+			}
+		}
+		
+		gmTree = gmmInstance.calc(input);
 		if (treeFilter != null)
 			gmTree = treeFilter.filter(gmTree);
 		this.gmTree = gmTree;
+		if (memoCache != null)
+			memoCache.put(gmm, getCurrentIMT(), input, gmTree);
 
 		return gmTree;
 	}
@@ -351,10 +392,6 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 		double numSig = sigmaTruncLevelParam.getValue();
 		
 		final int size = intensityMeasureLevels.size();
-		double weightSum = 0d;
-		boolean first = true;
-		double weight, mean, stdDev, x, y, stRndVar;
-		int i;
 		
 		double[] xVals, yVals;
 		if (intensityMeasureLevels instanceof LightFixedXFunc) {
@@ -363,34 +400,18 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 		} else {
 			xVals = new double[size];
 			yVals = new double[size];
-			for (i=0; i<size; i++)
+			for (int i=0; i<size; i++)
 				xVals[i] = intensityMeasureLevels.getX(i);
 		}
 		
-		for (Branch<GroundMotion> branch : gmTree) {
-			weight = branch.weight();
-			weightSum += weight;
-			mean = branch.value().mean();
-			stdDev = branch.value().sigma();
-			for (i=0; i<size; i++) {
-				stRndVar = (xVals[i] - mean) / stdDev;
-				if (sigmaTruncType == 0)
-					y = GaussianDistCalc.getExceedProb(stRndVar);
-				else
-					y = GaussianDistCalc.getExceedProb(stRndVar, sigmaTruncType, numSig);
-				if (first)
-					yVals[i] = y*weight;
-				else
-					yVals[i] = Math.fma(y, weight, yVals[i]);
-			}
-			first = false;
-		}
-		if (weightSum != 1d)
-			for (i=0; i<size; i++)
-				yVals[i] /= weightSum;
+		// evaluate all branches and IMLs in a single pass
+		if (gmKernel == null || gmKernel.getTree() != gmTree)
+			gmKernel = new GroundMotionExceedanceKernel(gmTree);
+		gmKernel.calcExceedProbs(xVals, yVals, size, sigmaTruncType, numSig);
+		
 		if (!(intensityMeasureLevels instanceof LightFixedXFunc))
 			// this means we didn't modify in place, need to set
-			for (i=0; i<size; i++)
+			for (int i=0; i<size; i++)
 				intensityMeasureLevels.set(i, yVals[i]);
 		
 		return intensityMeasureLevels;
@@ -406,7 +427,7 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 			weightSum += weight;
 			double mean = branch.value().mean();
 			double stdDev = branch.value().sigma();
-			double prob = getExceedProbability(mean, stdDev, iml)*weight;
+			double prob = getExceedProbability(mean, stdDev, iml);
 			weightValSum = Math.fma(prob, weight, weightValSum);
 		}
 		if (weightSum == 1d)
@@ -874,6 +895,40 @@ public class NSHMP_GMM_Wrapper extends AttenuationRelationship implements Parame
 		}
 	}
 
+	@Override
+	public boolean isDirectInputSupported() {
+		// per-rupture input caches are keyed by rupture, use the standard path if enabled
+		return !cacheInputsPerRupture;
+	}
+
+	@Override
+	public void setDirectInput(DirectIMR_Input input) {
+		GmmInput.Builder builder = GmmInput.builder();
+		builder.mag(directValue(Field.MW, input.mag));
+		builder.rake(directValue(Field.RAKE, input.rake));
+		builder.dip(directValue(Field.DIP, input.dip));
+		builder.width(directValue(Field.WIDTH, input.width));
+		builder.zTor(directValue(Field.ZTOR, input.zTor));
+		builder.zHyp(directValue(Field.ZHYP, input.zHyp));
+		builder.rJB(directValue(Field.RJB, input.rJB));
+		builder.rRup(directValue(Field.RRUP, input.rRup));
+		builder.rX(directValue(Field.RX, input.rX));
+		builder.vs30(directValue(Field.VS30, input.vs30));
+		builder.z1p0(directValue(Field.Z1P0, input.z1p0));
+		builder.z2p5(directValue(Field.Z2P5, input.z2p5));
+		builder.zSed(directValue(Field.ZSED, input.zSed));
+		// set directly without going through the value manager (parameters are not updated)
+		gmmInput = builder.build();
+		gmTree = null;
+	}
+	
+	private double directValue(Field field, double value) {
+		if (Double.isNaN(value) || !fields.contains(field))
+			return Double.NaN;
+		// translates units
+		return FieldParameterValueManager.openshaToNSHMP(field, value);
+	}
+
 	@Override
 	protected void setPropagationEffectParams() {
 		clearCachedGmmInputs();
@@ -34,6 +34,13 @@ public class MagRangeRuptureIdentifier extends AbstractRuptureIdentifier {
 		return false;
 	}
 
+	/**
+	 * @return set of element IDs to which matches are restricted, or null if unrestricted
+	 */
+	public Set<Integer> getElementsInRegion() {
+		return elementsInRegion;
+	}
+
 	@Override
 	public String getName() {
 		return "Mag Range: "+minMag+" => "+maxMag;
@@ -487,13 +487,29 @@ public class RSQSimFileReader {
 	
 	public static List<RSQSimEvent> readEventsFile(File file, List<SimulatorElement> elements,
 			Collection<? extends RuptureIdentifier> rupIdens, boolean skipSlipsAndTimes) throws IOException {
+		File[] listFiles = detectListFiles(file);
+		File eListFile = listFiles[0];
+		File pListFile = listFiles[1];
+		File dListFile = listFiles[2];
+		File tListFile = listFiles[3];
+		return readEventsFile(new FileInputStream(eListFile), new FileInputStream(pListFile), new FileInputStream(dListFile),
+				new FileInputStream(tListFile), elements, rupIdens, isBigEndian(pListFile, elements), skipSlipsAndTimes);
+	}
+	
+	/**
+	 * Detects the eList, pList, dList, and tList files (in that order)
+	 * @param file either a directory containing all list files, or one of the files themselves
+	 * @return
+	 * @throws FileNotFoundException
+	 */
+	static File[] detectListFiles(File file) throws FileNotFoundException {
 		// detect file names
 		if (file.isDirectory()) {
 			// find the first .*List file and use that as the basis
 			for (File sub : file.listFiles()) {
 				if (sub.getName().endsWith(".eList")) {
 					System.out.println("Found eList file in directory: "+sub.getAbsolutePath());
-					return readEventsFile(sub, elements, rupIdens, skipSlipsAndTimes);
+					return detectListFiles(sub);
 				}
 			}
 			throw new FileNotFoundException("Couldn't find eList file in given directory");
@@ -516,8 +532,26 @@ public class RSQSimFileReader {
 		File tListFile = new File(dir, prefix+".tList");
 		Preconditions.checkState(tListFile.exists(),
 				"Couldn't find tList file with prefix %s: %s", prefix, tListFile.getAbsolutePath());
-		return readEventsFile(new FileInputStream(eListFile), new FileInputStream(pListFile), new FileInputStream(dListFile),
-				new FileInputStream(tListFile), elements, rupIdens, isBigEndian(pListFile, elements), skipSlipsAndTimes);
+		return new File[] { eListFile, pListFile, dListFile, tListFile };
+	}
+	
+	/**
+	 * Reads RSQSim *List binary files through memory mapping, decoding events in parallel. Events are filtered
+	 * before they are built if all rupture identifiers only depend on event ID, time, and/or magnitude.
+	 * 
+	 * @param file either a directory containing all list files, or one of the files themselves
+	 * @param elements
+	 * @param rupIdens
+	 * @param skipSlipsAndTimes
+	 * @param threads
+	 * @return
+	 * @throws IOException
+	 * @see RSQSimMappedEventsReader
+	 */
+	public static List<RSQSimEvent> readEventsFileMapped(File file, List<SimulatorElement> elements,
+			Collection<? extends RuptureIdentifier> rupIdens, boolean skipSlipsAndTimes, int threads) throws IOException {
+		RSQSimMappedEventsReader reader = RSQSimMappedEventsReader.forFile(file, elements);
+		return reader.readEvents(rupIdens, skipSlipsAndTimes, threads);
 	}
 	
 	public static List<RSQSimEvent> readEventsFile(File eListFile, File pListFile, File dListFile, File tListFile,
@@ -850,7 +884,7 @@ public class RSQSimFileReader {
 	
 	private static EventRecordTimeComparator recordTimeComp = new EventRecordTimeComparator();
 	
-	private static RSQSimEvent buildEvent(int eventID, Map<Integer, RSQSimEventRecord> records,
+	static RSQSimEvent buildEvent(int eventID, Map<Integer, RSQSimEventRecord> records,
 			Collection<? extends RuptureIdentifier> rupIdens) {
 		List<RSQSimEventRecord> recordsForEvent = Lists.newArrayList(records.values());
 		
@@ -0,0 +1,469 @@
+package org.opensha.sha.simulators.parsers;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.opensha.commons.calc.FaultMomentCalc;
+import org.opensha.commons.eq.MagUtils;
+import org.opensha.commons.util.ExceptionUtils;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.RSQSimEventRecord;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.iden.CatalogLengthLoadIden;
+import org.opensha.sha.simulators.iden.EventIDsRangeIden;
+import org.opensha.sha.simulators.iden.EventIDsRupIden;
+import org.opensha.sha.simulators.iden.EventTimeIdentifier;
+import org.opensha.sha.simulators.iden.LogicalAndRupIden;
+import org.opensha.sha.simulators.iden.LogicalOrRupIden;
+import org.opensha.sha.simulators.iden.MagRangeRuptureIdentifier;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.iden.SkipYearsLoadIden;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Memory-mapped reader for RSQSim *List binary files. Unlike the stream based readers in {@link RSQSimFileReader},
+ * the four list files are mapped (with the correct byte order) and event boundaries are indexed in a single pass
+ * through the eList file. This allows random access to any event, and decoding of many events in parallel.
+ * <br><br>
+ * When reading with {@link RuptureIdentifier}s that only depend on event ID, time, and/or magnitude (see
+ * {@link #isHeaderOnly(RuptureIdentifier)}), events are filtered before any records are built.
+ * Identifiers are always evaluated in event order on a single thread, as many of them are stateful.
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimMappedEventsReader {
+
+	// maximum size of a single mapping, must be a multiple of 8
+	private static final int MAX_CHUNK_BYTES = 1 << 30;
+
+	// number of events decoded per parallel task
+	private static final int DECODE_BATCH_SIZE = 1000;
+
+	private List<SimulatorElement> elements;
+
+	private MappedListFile eList;
+	private MappedListFile pList;
+	private MappedListFile dList;
+	private MappedListFile tList;
+
+	private int numEvents;
+	private int[] eventIDs;
+	// index of the first value for each event, with the total number of values appended
+	private long[] eventStarts;
+	private boolean idsSorted;
+
+	/**
+	 * @param file a directory containing the list files, or any one of the list files
+	 * @param elements
+	 * @return reader with endianness detected from the pList file
+	 * @throws IOException
+	 */
+	public static RSQSimMappedEventsReader forFile(File file, List<SimulatorElement> elements) throws IOException {
+		File[] listFiles = RSQSimFileReader.detectListFiles(file);
+		return new RSQSimMappedEventsReader(listFiles[0], listFiles[1], listFiles[2], listFiles[3], elements,
+				RSQSimFileReader.isBigEndian(listFiles[1], elements));
+	}
+
+	public RSQSimMappedEventsReader(File eListFile, File pListFile, File dListFile, File tListFile,
+			List<SimulatorElement> elements, boolean bigEndian) throws IOException {
+		this.elements = elements;
+		ByteOrder order = bigEndian ? ByteOrder.BIG_ENDIAN : ByteOrder.LITTLE_ENDIAN;
+		eList = new MappedListFile(eListFile, 4, order);
+		pList = new MappedListFile(pListFile, 4, order);
+		dList = new MappedListFile(dListFile, 8, order);
+		tList = new MappedListFile(tListFile, 8, order);
+		long numValues = eList.size();
+		Preconditions.checkState(pList.size() == numValues && dList.size() == numValues && tList.size() == numValues,
+				"List file sizes are inconsistent: eList=%s, pList=%s, dList=%s, tList=%s",
+				numValues, pList.size(), dList.size(), tList.size());
+
+		buildIndex();
+	}
+
+	private void buildIndex() {
+		long numValues = eList.size();
+		int capacity = 1024;
+		int[] ids = new int[capacity];
+		long[] starts = new long[capacity+1];
+		int count = 0;
+		int prevID = 0;
+		idsSorted = true;
+		for (long i=0; i<numValues; i++) {
+			int eventID = eList.getInt(i);
+			if (count == 0 || eventID != prevID) {
+				if (count == capacity) {
+					capacity *= 2;
+					ids = Arrays.copyOf(ids, capacity);
+					starts = Arrays.copyOf(starts, capacity+1);
+				}
+				if (count > 0 && eventID < prevID)
+					idsSorted = false;
+				ids[count] = eventID;
+				starts[count] = i;
+				count++;
+				prevID = eventID;
+			}
+		}
+		starts[count] = numValues;
+		this.numEvents = count;
+		this.eventIDs = Arrays.copyOf(ids, count);
+		this.eventStarts = Arrays.copyOf(starts, count+1);
+
+		if (!idsSorted) {
+			// make sure that there are no duplicates, which would indicate a corrupt file
+			int[] sorted = Arrays.copyOf(eventIDs, numEvents);
+			Arrays.sort(sorted);
+			for (int i=1; i<sorted.length; i++)
+				Preconditions.checkState(sorted[i] != sorted[i-1],
+						"Duplicate eventID found, file is out of order or corrupt: %s", sorted[i]);
+		}
+	}
+
+	public int getNumEvents() {
+		return numEvents;
+	}
+
+	/**
+	 * @param index
+	 * @return event ID for the event at the given index (in file order)
+	 */
+	public int getEventID(int index) {
+		return eventIDs[index];
+	}
+
+	/**
+	 * @param index
+	 * @return number of patch records for the event at the given index
+	 */
+	public int getNumPatchRecords(int index) {
+		return (int)(eventStarts[index+1] - eventStarts[index]);
+	}
+
+	/**
+	 * @param eventID
+	 * @return file index for the given event ID, or -1 if not found
+	 */
+	public int getIndexForID(int eventID) {
+		if (idsSorted) {
+			int index = Arrays.binarySearch(eventIDs, eventID);
+			return index < 0 ? -1 : index;
+		}
+		for (int i=0; i<numEvents; i++)
+			if (eventIDs[i] == eventID)
+				return i;
+		return -1;
+	}
+
+	/**
+	 * @param index
+	 * @return the event at the given index (in file order)
+	 */
+	public RSQSimEvent getEvent(int index) {
+		return getEvent(index, false);
+	}
+
+	/**
+	 * @param index
+	 * @param skipSlipsAndTimes if true, individual patch slips and times will not be stored
+	 * @return the event at the given index (in file order)
+	 */
+	public RSQSimEvent getEvent(int index, boolean skipSlipsAndTimes) {
+		Preconditions.checkElementIndex(index, numEvents);
+		long start = eventStarts[index];
+		long end = eventStarts[index+1];
+		// one EventRecord for each section
+		Map<Integer, RSQSimEventRecord> recordMap = new HashMap<>();
+		for (long i=start; i<end; i++) {
+			int patchID = pList.getInt(i);
+			double slip = dList.getDouble(i);
+			double time = tList.getDouble(i);
+			SimulatorElement element = getElement(patchID);
+			double elementMoment = FaultMomentCalc.getMoment(element.getArea(), slip);
+
+			RSQSimEventRecord record = recordMap.get(element.getSectionID());
+			if (record == null) {
+				record = new RSQSimEventRecord(elements);
+				recordMap.put(element.getSectionID(), record);
+				record.setTime(time);
+				record.setMoment(0);
+				record.setSectionID(element.getSectionID());
+				record.setFirstPatchToSlip(patchID);
+			}
+			if (skipSlipsAndTimes) {
+				if (slip > 0)
+					record.addElement(patchID);
+			} else {
+				record.addSlip(patchID, slip, time);
+				if (time < record.getTime()) {
+					record.setFirstPatchToSlip(patchID);
+					record.setTime(time);
+				}
+			}
+			record.setMoment(record.getMoment()+elementMoment);
+		}
+		RSQSimEvent event = RSQSimFileReader.buildEvent(eventIDs[index], recordMap, null);
+		event.setNextEventTime(getNextEventTime(index));
+		return event;
+	}
+
+	private SimulatorElement getElement(int patchID) {
+		Preconditions.checkState(RSQSimFileReader.isValidPatchID(patchID, elements));
+		SimulatorElement element = elements.get(patchID-1);
+		Preconditions.checkState(element.getID() == patchID, "Elements not sequential");
+		return element;
+	}
+
+	/**
+	 * The next event time is the earliest patch time of the following event (also considering the first patch of
+	 * the event after that), consistent with {@link RSQSimFileReader#readEventsFile(File, List)}
+	 * @param index
+	 * @return
+	 */
+	private double getNextEventTime(int index) {
+		if (index == numEvents-1)
+			return Double.POSITIVE_INFINITY;
+		long start = eventStarts[index+1];
+		long end = Long.min(eventStarts[index+2]+1, tList.size());
+		double nextTime = Double.POSITIVE_INFINITY;
+		for (long i=start; i<end; i++)
+			nextTime = Math.min(nextTime, tList.getDouble(i));
+		return nextTime;
+	}
+
+	/**
+	 * Builds a lightweight event with only ID, time and magnitude populated (no elements), for use with
+	 * identifiers for which {@link #isHeaderOnly(RuptureIdentifier)} is true
+	 * @param index
+	 * @param skipSlipsAndTimes
+	 * @return
+	 */
+	private RSQSimEvent getHeaderEvent(int index, boolean skipSlipsAndTimes) {
+		long start = eventStarts[index];
+		long end = eventStarts[index+1];
+		double totMoment = 0d;
+		double time = Double.POSITIVE_INFINITY;
+		// if skipping slips and times, section record times are that of the first patch of each section
+		Map<Integer, Boolean> sectsEncountered = skipSlipsAndTimes ? new HashMap<>() : null;
+		for (long i=start; i<end; i++) {
+			int patchID = pList.getInt(i);
+			SimulatorElement element = getElement(patchID);
+			totMoment += FaultMomentCalc.getMoment(element.getArea(), dList.getDouble(i));
+			if (skipSlipsAndTimes && sectsEncountered.put(element.getSectionID(), true) != null)
+				continue;
+			time = Math.min(time, tList.getDouble(i));
+		}
+		RSQSimEventRecord record = new RSQSimEventRecord(elements);
+		record.setID(eventIDs[index]);
+		record.setTime(time);
+		record.setMagnitude(MagUtils.momentToMag(totMoment));
+		record.setMoment(totMoment);
+		return new RSQSimEvent(Collections.singletonList(record));
+	}
+
+	/**
+	 * @param iden
+	 * @return true if the given identifier only depends on event ID, time, and/or magnitude
+	 */
+	public static boolean isHeaderOnly(RuptureIdentifier iden) {
+		if (iden instanceof LogicalAndRupIden) {
+			for (RuptureIdentifier sub : ((LogicalAndRupIden)iden).getSubIdens())
+				if (!isHeaderOnly(sub))
+					return false;
+			return true;
+		}
+		if (iden instanceof LogicalOrRupIden) {
+			for (RuptureIdentifier sub : ((LogicalOrRupIden)iden).getSubIdens())
+				if (!isHeaderOnly(sub))
+					return false;
+			return true;
+		}
+		if (iden instanceof MagRangeRuptureIdentifier)
+			return ((MagRangeRuptureIdentifier)iden).getElementsInRegion() == null;
+		return iden instanceof EventIDsRangeIden || iden instanceof EventIDsRupIden || iden instanceof EventTimeIdentifier
+				|| iden instanceof CatalogLengthLoadIden || iden instanceof SkipYearsLoadIden;
+	}
+
+	private static boolean isMatch(RSQSimEvent event, Collection<? extends RuptureIdentifier> rupIdens) {
+		for (RuptureIdentifier iden : rupIdens)
+			if (iden.isMatch(event))
+				return true;
+		return false;
+	}
+
+	private static boolean furtherMatchesPossible(Collection<? extends RuptureIdentifier> rupIdens) {
+		for (RuptureIdentifier iden : rupIdens)
+			if (iden.furtherMatchesPossible())
+				return true;
+		return false;
+	}
+
+	/**
+	 * Reads all events which match any of the given rupture identifiers (or all events if null), decoding events
+	 * in parallel.
+	 *
+	 * @param rupIdens
+	 * @param skipSlipsAndTimes if true, individual patch slips and times will not be stored
+	 * @param threads number of decoding threads
+	 * @return list of events, sorted
+	 * @throws IOException
+	 */
+	public List<RSQSimEvent> readEvents(Collection<? extends RuptureIdentifier> rupIdens, boolean skipSlipsAndTimes,
+			int threads) throws IOException {
+		return readEvents(0, numEvents, rupIdens, skipSlipsAndTimes, threads);
+	}
+
+	/**
+	 * Reads all events in the given index range which match any of the given rupture identifiers (or all events
+	 * if null), decoding events in parallel.
+	 *
+	 * @param fromIndex first event index, inclusive
+	 * @param toIndex last event index, exclusive
+	 * @param rupIdens
+	 * @param skipSlipsAndTimes if true, individual patch slips and times will not be stored
+	 * @param threads number of decoding threads
+	 * @return list of events, sorted
+	 * @throws IOException
+	 */
+	public List<RSQSimEvent> readEvents(int fromIndex, int toIndex, Collection<? extends RuptureIdentifier> rupIdens,
+			boolean skipSlipsAndTimes, int threads) throws IOException {
+		Preconditions.checkPositionIndexes(fromIndex, toIndex, numEvents);
+		Preconditions.checkArgument(threads > 0, "Must have at least 1 thread");
+		boolean headerOnly = rupIdens != null;
+		if (rupIdens != null)
+			for (RuptureIdentifier iden : rupIdens)
+				headerOnly = headerOnly && isHeaderOnly(iden);
+
+		List<RSQSimEvent> events = new ArrayList<>();
+		ExecutorService exec = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+
+		try {
+			int blockSize = DECODE_BATCH_SIZE*threads;
+			int[] indexes = new int[blockSize];
+			boolean done = false;
+			for (int blockStart=fromIndex; blockStart<toIndex && !done; blockStart+=blockSize) {
+				int blockEnd = Integer.min(toIndex, blockStart+blockSize);
+				int numIndexes = 0;
+				for (int index=blockStart; index<blockEnd; index++) {
+					if (headerOnly && !isMatch(getHeaderEvent(index, skipSlipsAndTimes), rupIdens)) {
+						if (!furtherMatchesPossible(rupIdens)) {
+							done = true;
+							break;
+						}
+						continue;
+					}
+					indexes[numIndexes++] = index;
+				}
+				List<RSQSimEvent> decoded = decode(indexes, numIndexes, skipSlipsAndTimes, exec);
+				if (rupIdens == null || headerOnly) {
+					events.addAll(decoded);
+				} else {
+					// filter now that they're built, in order
+					for (RSQSimEvent event : decoded) {
+						if (isMatch(event, rupIdens)) {
+							events.add(event);
+						} else if (!furtherMatchesPossible(rupIdens)) {
+							done = true;
+							break;
+						}
+					}
+				}
+			}
+		} finally {
+			if (exec != null)
+				exec.shutdown();
+		}
+
+		Collections.sort(events);
+		return events;
+	}
+
+	private List<RSQSimEvent> decode(int[] indexes, int numIndexes, final boolean skipSlipsAndTimes,
+			ExecutorService exec) {
+		List<RSQSimEvent> ret = new ArrayList<>(numIndexes);
+		if (exec == null) {
+			for (int i=0; i<numIndexes; i++)
+				ret.add(getEvent(indexes[i], skipSlipsAndTimes));
+			return ret;
+		}
+		List<Future<List<RSQSimEvent>>> futures = new ArrayList<>();
+		for (int batchStart=0; batchStart<numIndexes; batchStart+=DECODE_BATCH_SIZE) {
+			final int[] batch = Arrays.copyOfRange(indexes, batchStart, Integer.min(numIndexes, batchStart+DECODE_BATCH_SIZE));
+			futures.add(exec.submit(() -> {
+				List<RSQSimEvent> batchEvents = new ArrayList<>(batch.length);
+				for (int index : batch)
+					batchEvents.add(getEvent(index, skipSlipsAndTimes));
+				return batchEvents;
+			}));
+		}
+		for (Future<List<RSQSimEvent>> future : futures) {
+			try {
+				ret.addAll(future.get());
+			} catch (InterruptedException | ExecutionException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		return ret;
+	}
+
+	/**
+	 * Read-only memory mapping of a list file of fixed size values. Files larger than {@link #MAX_CHUNK_BYTES}
+	 * are mapped in multiple chunks. Only absolute gets are used, so a single instance can be shared across threads.
+	 */
+	private static class MappedListFile {
+
+		private final ByteBuffer[] chunks;
+		private final int valueBytes;
+		private final int valuesPerChunk;
+		private final long numValues;
+
+		public MappedListFile(File file, int valueBytes, ByteOrder order) throws IOException {
+			this.valueBytes = valueBytes;
+			this.valuesPerChunk = MAX_CHUNK_BYTES/valueBytes;
+			try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+				long len = channel.size();
+				Preconditions.checkState(len % valueBytes == 0,
+						"File size (%s) is not a multiple of %s: %s", len, valueBytes, file.getAbsolutePath());
+				numValues = len/valueBytes;
+				int numChunks = (int)((numValues + valuesPerChunk - 1)/valuesPerChunk);
+				chunks = new ByteBuffer[numChunks];
+				for (int c=0; c<numChunks; c++) {
+					long chunkStart = (long)c*valuesPerChunk*valueBytes;
+					long chunkLen = Long.min((long)valuesPerChunk*valueBytes, len - chunkStart);
+					chunks[c] = channel.map(MapMode.READ_ONLY, chunkStart, chunkLen).order(order);
+				}
+			}
+			// mappings remain valid after the channel is closed
+		}
+
+		public long size() {
+			return numValues;
+		}
+
+		public int getInt(long index) {
+			return chunks[(int)(index/valuesPerChunk)].getInt((int)(index % valuesPerChunk)*valueBytes);
+		}
+
+		public double getDouble(long index) {
+			return chunks[(int)(index/valuesPerChunk)].getDouble((int)(index % valuesPerChunk)*valueBytes);
+		}
+	}
+
+}
@@ -1,17 +1,20 @@
 package scratch.UCERF3.erf.ETAS;
 
-import java.util.HashSet;
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.LongAdder;
 
 import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
 import org.opensha.commons.util.ExceptionUtils;
 
 import com.google.common.base.Preconditions;
-import com.google.common.cache.Cache;
-import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.CacheStats;
 import com.google.common.cache.LoadingCache;
@@ -19,96 +22,264 @@ import com.google.common.collect.ImmutableMap;
 
 
 /**
- * Cache for cube samplers which keeps uses the number of forthcoming events for eviction.
+ * Cache for cube samplers which uses the number of forthcoming events and the cost of rebuilding
+ * each sampler for eviction. The eviction weight of an entry is its number of forthcoming events
+ * multiplied by the size of the sampler (which rebuild cost scales with), so that small samplers
+ * or samplers with no forthcoming events are evicted first.
+ * <p>
  * When the cache is full and a new value is loaded into memory then each get command will
- * evict the first entry whose num forthcoming events is lower than the newly loaded entry.
+ * evict the lowest weight entry if its weight is not greater than that of the newly loaded entry.
  * If no such entry is found, the new value is not cached.
- * 
+ * <p>
+ * There is no global lock: each key is loaded through its own future, so threads asking for
+ * the same cube wait for a single load while threads asking for other cubes proceed unblocked.
+ * Eviction is also lock-free, entries are removed with atomic conditional removals, so concurrent
+ * evictions can occasionally leave the cache slightly below capacity but never block.
+ *
  * @author kevin
  *
  */
 public class CubeSamplerCache implements LoadingCache<Integer, IntegerPDF_FunctionSampler> {
-	
+
 	private static final boolean D = true;
 	private static final boolean DD = D && false;
-	
+
 	private int size;
 	private CacheLoader<Integer, IntegerPDF_FunctionSampler> loader;
 	private Map<Integer, Integer> numForthcomingMap;
-	
-//	private Map<Integer, IntegerPDF_FunctionSampler> cache;
-	private Cache<Integer, IntegerPDF_FunctionSampler> cache;
-	
-	private int getCount = 0;
-	private int loadCount = 0;
-	private int regenCount = 0;
-	
-	private HashSet<Integer> regenTracker;
-	
+	private boolean softCacheValues;
+
+	private ConcurrentMap<Integer, CacheEntry> cache;
+	// indexes that have been loaded at least once, retained after eviction
+	private Set<Integer> loadedIndexes;
+
+	private LongAdder getCount = new LongAdder();
+	private LongAdder hitCount = new LongAdder();
+	private LongAdder missCount = new LongAdder();
+	private LongAdder loadCount = new LongAdder();
+	private LongAdder loadExceptionCount = new LongAdder();
+	private LongAdder regenCount = new LongAdder();
+	private LongAdder evictionCount = new LongAdder();
+	private LongAdder totalLoadNanos = new LongAdder();
+
 	public CubeSamplerCache(int size, CacheLoader<Integer, IntegerPDF_FunctionSampler> loader,
 			Map<Integer, Integer> numForthcomingMap, boolean softCacheValues) {
+		Preconditions.checkArgument(size > 0, "Cache size must be positive: %s", size);
 		this.size = size;
 		this.loader = loader;
 		this.numForthcomingMap = numForthcomingMap;
+		this.softCacheValues = softCacheValues;
+
+		cache = new ConcurrentHashMap<>(size*2);
+		loadedIndexes = ConcurrentHashMap.newKeySet();
+	}
+
+	/**
+	 * Cache entry which is loaded exactly once through a future. Once loaded, the future is released and
+	 * the value is held directly, or only softly referenced if soft values are enabled (in which case the
+	 * entry will report null if it was cleared).
+	 */
+	private class CacheEntry {
+		private final Integer index;
+		// null once the value has been loaded and published below
+		private volatile FutureTask<IntegerPDF_FunctionSampler> future;
+		private IntegerPDF_FunctionSampler value;
+		private Reference<IntegerPDF_FunctionSampler> softRef;
+		// size of the loaded sampler, set before the value is published
+		private volatile int samplerSize;
+
+		public CacheEntry(Integer index, Callable<? extends IntegerPDF_FunctionSampler> valueLoader) {
+			this.index = index;
+			this.future = new FutureTask<>(new Callable<IntegerPDF_FunctionSampler>() {
+
+				@Override
+				public IntegerPDF_FunctionSampler call() throws Exception {
+					long start = System.nanoTime();
+					IntegerPDF_FunctionSampler ret;
+					try {
+						ret = valueLoader.call();
+					} catch (Exception e) {
+						loadExceptionCount.increment();
+						throw e;
+					}
+					Preconditions.checkNotNull(ret);
+					totalLoadNanos.add(System.nanoTime() - start);
+					loadCount.increment();
+					if (!loadedIndexes.add(CacheEntry.this.index))
+						regenCount.increment();
+					samplerSize = ret.size();
+					return ret;
+				}
+			});
+		}
+
+		public boolean isLoaded() {
+			FutureTask<IntegerPDF_FunctionSampler> future = this.future;
+			return future == null || future.isDone();
+		}
 		
-		// make this cache bigger since we're doing manual eviction
-		CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder().maximumSize(size*2);
-		if (softCacheValues)
-			builder = builder.softValues();
-		cache = builder.build();
+		/**
+		 * Runs the load in the calling thread
+		 */
+		public void load() {
+			FutureTask<IntegerPDF_FunctionSampler> future = this.future;
+			if (future != null)
+				future.run();
+		}
 		
-		regenTracker = new HashSet<Integer>();
-	}
-	
-	public synchronized IntegerPDF_FunctionSampler get(Integer index) {
-		getCount++;
-		IntegerPDF_FunctionSampler ret = cache.getIfPresent(index);
-		if (ret == null) {
-			if (DD) System.out.println("Cache miss for "+index+" size="+cache.size());
+		/**
+		 * Stores the loaded value (softly if enabled) and releases the future, which would otherwise keep a
+		 * strong reference to the value
+		 */
+		private synchronized void publish(IntegerPDF_FunctionSampler loaded) {
+			if (future == null)
+				return;
+			if (softCacheValues)
+				softRef = new SoftReference<>(loaded);
+			else
+				value = loaded;
+			// volatile write after the fields above, readers that see null will also see them
+			future = null;
+		}
+
+		/**
+		 * @return the loaded value, waiting for the load to complete if necessary, or null if
+		 * the value was softly referenced and has since been cleared
+		 * @throws ExecutionException
+		 */
+		public IntegerPDF_FunctionSampler get() throws ExecutionException {
+			FutureTask<IntegerPDF_FunctionSampler> future = this.future;
+			if (future == null)
+				return softCacheValues ? softRef.get() : value;
+			IntegerPDF_FunctionSampler ret;
 			try {
-				ret = loader.load(index);
-			} catch (Exception e) {
-				throw ExceptionUtils.asRuntimeException(e);
+				ret = future.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new ExecutionException(e);
 			}
-			Preconditions.checkNotNull(ret);
-			loadCount++;
-			if (regenTracker.contains(index))
-				regenCount++;
-			else
-				regenTracker.add(index);
-			while (cache.size() >= size) {
-				// try to free up space
-				int myPriority = getNumForthcoming(index);
-				int toRemoveIndex = -1;
-				for (int key : cache.asMap().keySet()) {
-					int oPriority = getNumForthcoming(key);
-					if (oPriority <= myPriority) {
-						toRemoveIndex = key;
-						if (oPriority < myPriority)
-							// if it's less, stop search
-							break;
-					}
+			publish(ret);
+			return ret;
+		}
+
+		/**
+		 * @return the value if loaded and still available, otherwise null (never blocks)
+		 */
+		public IntegerPDF_FunctionSampler getIfLoaded() {
+			if (!isLoaded())
+				return null;
+			try {
+				return get();
+			} catch (ExecutionException e) {
+				return null;
+			}
+		}
+	}
+
+	public IntegerPDF_FunctionSampler get(Integer index) {
+		try {
+			return get(index, new Callable<IntegerPDF_FunctionSampler>() {
+
+				@Override
+				public IntegerPDF_FunctionSampler call() throws Exception {
+					return loader.load(index);
+				}
+			});
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause() == null ? e : e.getCause());
+		}
+	}
+
+	@Override
+	public IntegerPDF_FunctionSampler get(Integer index,
+			Callable<? extends IntegerPDF_FunctionSampler> valueLoader)
+			throws ExecutionException {
+		getCount.increment();
+		while (true) {
+			CacheEntry entry = cache.get(index);
+			boolean isLoader = false;
+			if (entry == null) {
+				CacheEntry newEntry = new CacheEntry(index, valueLoader);
+				entry = cache.putIfAbsent(index, newEntry);
+				if (entry == null) {
+					// we won the race, we're responsible for loading
+					entry = newEntry;
+					isLoader = true;
+				}
+			}
+			IntegerPDF_FunctionSampler ret;
+			if (isLoader) {
+				if (DD) System.out.println("Cache miss for "+index+" size="+cache.size());
+				missCount.increment();
+				entry.load();
+				try {
+					ret = entry.get();
+				} catch (ExecutionException e) {
+					// don't cache failures
+					cache.remove(index, entry);
+					throw e;
 				}
-				if (toRemoveIndex >= 0) {
-					if (DD) System.out.println("Evicting "+toRemoveIndex+" with p="
-							+getNumForthcoming(toRemoveIndex)+" <= "+myPriority);
-					cache.invalidate(toRemoveIndex);
-//					Preconditions.checkNotNull(cache.remove(toRemoveIndex));
-				} else {
-					// nothing evictable, don't cache current result
-					break;
+				evictFor(entry);
+			} else {
+				// if the load failed in another thread, that thread will remove the entry
+				ret = entry.get();
+				if (ret == null) {
+					// soft reference was cleared, remove and retry
+					cache.remove(index, entry);
+					continue;
 				}
+				hitCount.increment();
 			}
-			if (cache.size() < size) {
-				if (DD) System.out.println("Caching "+index);
-				cache.put(index, ret);
+			if (D && getCount.sum() % 100 == 0)
+				System.out.println("***CACHE "+getStatsSummary());
+			return ret;
+		}
+	}
+
+	/**
+	 * Evicts entries while the cache is over capacity. Only loaded entries are eligible, and an entry
+	 * is only evicted if its weight is less than or equal to that of the newly loaded entry, otherwise
+	 * the newly loaded entry itself is removed (it has already been returned to the caller).
+	 * <p>
+	 * This doesn't lock: if another thread evicts the chosen entry first, the conditional removal fails
+	 * and the capacity is checked again.
+	 *
+	 * @param newEntry
+	 */
+	private void evictFor(CacheEntry newEntry) {
+		while (cache.size() > size) {
+			if (cache.get(newEntry.index) != newEntry)
+				// already evicted by another thread
+				break;
+			double myWeight = getEvictionWeight(newEntry);
+			CacheEntry toRemove = null;
+			double toRemoveWeight = Double.POSITIVE_INFINITY;
+			for (CacheEntry entry : cache.values()) {
+				if (entry == newEntry || !entry.isLoaded())
+					continue;
+				double oWeight = getEvictionWeight(entry);
+				if (oWeight <= myWeight && oWeight < toRemoveWeight) {
+					toRemove = entry;
+					toRemoveWeight = oWeight;
+					if (oWeight == 0d)
+						// can't do any better, stop search
+						break;
+				}
 			}
+			if (toRemove == null) {
+				// nothing evictable, don't cache current result
+				if (DD) System.out.println("Not caching "+newEntry.index);
+				if (cache.remove(newEntry.index, newEntry))
+					evictionCount.increment();
+				break;
+			}
+			if (DD) System.out.println("Evicting "+toRemove.index+" with w="
+					+toRemoveWeight+" <= "+myWeight);
+			if (cache.remove(toRemove.index, toRemove))
+				evictionCount.increment();
 		}
-		if (D && getCount % 100 == 0)
-			System.out.println("***CACHE get="+getCount+", load="+loadCount+", regen="+regenCount);
-		return ret;
 	}
-	
+
 	private int getNumForthcoming(int index) {
 		Integer num = numForthcomingMap.get(index);
 		if (num == null)
@@ -116,50 +287,101 @@ public class CubeSamplerCache implements LoadingCache<Integer, IntegerPDF_Functi
 		return num;
 	}
 
-	public void invalidateAll() {
-		cache.invalidateAll();
+	/**
+	 * @param entry loaded entry
+	 * @return eviction weight for the given entry: the number of forthcoming events times the
+	 * sampler size
+	 */
+	private double getEvictionWeight(CacheEntry entry) {
+		return (double)getNumForthcoming(entry.index)*Math.max(1, entry.samplerSize);
 	}
 
-	@Override
-	public void cleanUp() {}
+	/**
+	 * @return summary of cache statistics, including the number of times a previously evicted sampler
+	 * had to be rebuilt
+	 */
+	public String getStatsSummary() {
+		long loads = loadCount.sum();
+		double avgLoadMillis = loads == 0 ? 0d : totalLoadNanos.sum()/(1e6*loads);
+		return "get="+getCount.sum()+", hit="+hitCount.sum()+", miss="+missCount.sum()+", load="+loads
+				+", regen="+regenCount.sum()+", evict="+evictionCount.sum()+", size="+cache.size()
+				+", avgLoad="+(float)avgLoadMillis+" ms";
+	}
+
+	/**
+	 * @return the number of times a sampler which had previously been loaded (and since evicted) was rebuilt
+	 */
+	public long getRegenCount() {
+		return regenCount.sum();
+	}
+
+	public void invalidateAll() {
+		cache.clear();
+	}
 
 	@Override
-	public synchronized IntegerPDF_FunctionSampler get(Integer key,
-			Callable<? extends IntegerPDF_FunctionSampler> valueLoader)
-			throws ExecutionException {
-		return cache.get(key, valueLoader);
+	public void cleanUp() {
+		for (CacheEntry entry : cache.values())
+			if (softCacheValues && entry.isLoaded() && entry.getIfLoaded() == null)
+				cache.remove(entry.index, entry);
 	}
 
 	@Override
 	public ImmutableMap<Integer, IntegerPDF_FunctionSampler> getAllPresent(
 			Iterable<?> keys) {
-		return cache.getAllPresent(keys);
+		ImmutableMap.Builder<Integer, IntegerPDF_FunctionSampler> builder = ImmutableMap.builder();
+		for (Object key : keys) {
+			IntegerPDF_FunctionSampler value = getIfPresent(key);
+			if (value != null)
+				builder.put((Integer)key, value);
+		}
+		return builder.build();
 	}
 
 	@Override
 	public IntegerPDF_FunctionSampler getIfPresent(Object key) {
-		return cache.getIfPresent(key);
+		CacheEntry entry = cache.get(key);
+		if (entry == null)
+			return null;
+		return entry.getIfLoaded();
 	}
 
 	@Override
 	public void invalidate(Object key) {
-		cache.invalidate(key);
+		cache.remove(key);
 	}
 
 	@Override
 	public void invalidateAll(Iterable<?> keys) {
-		cache.invalidateAll();
+		for (Object key : keys)
+			cache.remove(key);
 	}
 
 	@Override
 	public void put(Integer key, IntegerPDF_FunctionSampler value) {
-		cache.put(key, value);
+		Preconditions.checkNotNull(value);
+		CacheEntry entry = new CacheEntry(key, new Callable<IntegerPDF_FunctionSampler>() {
+
+			@Override
+			public IntegerPDF_FunctionSampler call() throws Exception {
+				return value;
+			}
+		});
+		entry.load();
+		try {
+			entry.get();
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+		cache.put(key, entry);
+		evictFor(entry);
 	}
 
 	@Override
 	public void putAll(
 			Map<? extends Integer, ? extends IntegerPDF_FunctionSampler> m) {
-		cache.putAll(m);
+		for (Integer key : m.keySet())
+			put(key, m.get(key));
 	}
 
 	@Override
@@ -169,7 +391,8 @@ public class CubeSamplerCache implements LoadingCache<Integer, IntegerPDF_Functi
 
 	@Override
 	public CacheStats stats() {
-		return cache.stats();
+		return new CacheStats(hitCount.sum(), missCount.sum(), loadCount.sum(), loadExceptionCount.sum(),
+				totalLoadNanos.sum(), evictionCount.sum());
 	}
 
 	@Override
@@ -177,15 +400,25 @@ public class CubeSamplerCache implements LoadingCache<Integer, IntegerPDF_Functi
 		throw new UnsupportedOperationException();
 	}
 
+	/**
+	 * @return snapshot of all currently loaded values. Changes to the returned map are not reflected
+	 * in the cache.
+	 */
 	@Override
 	public ConcurrentMap<Integer, IntegerPDF_FunctionSampler> asMap() {
-		return cache.asMap();
+		ConcurrentMap<Integer, IntegerPDF_FunctionSampler> ret = new ConcurrentHashMap<>();
+		for (CacheEntry entry : cache.values()) {
+			IntegerPDF_FunctionSampler value = entry.getIfLoaded();
+			if (value != null)
+				ret.put(entry.index, value);
+		}
+		return ret;
 	}
 
 	@Override
 	public ImmutableMap<Integer, IntegerPDF_FunctionSampler> getAll(
 			Iterable<? extends Integer> keys) throws ExecutionException {
-		return cache.getAllPresent(keys);
+		return getAllPresent(keys);
 	}
 
 	@Override
@@ -196,7 +429,7 @@ public class CubeSamplerCache implements LoadingCache<Integer, IntegerPDF_Functi
 	@Override
 	public void refresh(Integer key) {
 		try {
-			cache.put(key, loader.load(key));
+			put(key, loader.load(key));
 		} catch (Exception e) {
 			ExceptionUtils.throwAsRuntimeException(e);
 		}
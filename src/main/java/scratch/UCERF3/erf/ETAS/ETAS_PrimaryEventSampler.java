@@ -135,6 +135,8 @@ public class ETAS_PrimaryEventSampler {
 	
 	public static final String defaultCubeInsidePolyCacheFilename="src/main/resources/scratchData/ucerf3/InversionSolutions/cubeInsidePolyCache";
 	
+	public static final String defaultCubeAssocCSR_CacheFilename="src/main/resources/scratchData/ucerf3/InversionSolutions/"+MappedCubeAssociationCache.DEFAULT_FILE_NAME;
+	
 	// these define the cubes in space
 	int numCubeDepths, numCubesPerDepth, numCubes, numParDepths, numParLocsPerDepth, numParLocs;
 	double maxDepth, depthDiscr;
@@ -173,6 +175,8 @@ public class ETAS_PrimaryEventSampler {
 	List<float[]> fractionSectInCubeList;
 	List<float[]> sectDistForCubeList;
 	List<int[]> sectInCubeList;
+	// memory mapped version of the above two lists, if used (in which case the lists decode a new array on each call)
+	MappedCubeAssociationCache cubeAssocCache;
 	int[] isCubeInsideFaultPolygon;	// independent of depth, so number of elements the equal to numCubesPerDepth
 	int[] numCubesInsideFaultPolygonArray;
 	
@@ -349,13 +353,30 @@ public class ETAS_PrimaryEventSampler {
 		if(inputSectDistForCubeList!=null && inputSectInCubeList != null && inputIsCubeInsideFaultPolygon != null) {
 				sectInCubeList = inputSectInCubeList;
 				sectDistForCubeList = inputSectDistForCubeList;
+				cubeAssocCache = MappedCubeAssociationCache.getBackingCache(sectInCubeList, sectDistForCubeList);
 				isCubeInsideFaultPolygon = inputIsCubeInsideFaultPolygon;
 		}
 		else {
 			File sectInCubeCacheFilename = new File(defaultSectInCubeCacheFilename);
 			File sectDistForCubeCacheFilename = new File(defaultSectDistForCubeCacheFilename);	
 			File cubeInsidePolyCacheFilename = new File(defaultCubeInsidePolyCacheFilename);	
-			if (sectInCubeCacheFilename.exists() && sectDistForCubeCacheFilename.exists() && cubeInsidePolyCacheFilename.exists()) { // read from file if it exists
+			File cubeAssocCSR_CacheFilename = new File(defaultCubeAssocCSR_CacheFilename);
+			if (cubeAssocCSR_CacheFilename.exists()) {	// memory map the combined cache if it exists and is consistent
+				try {
+					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before mapping "+cubeAssocCSR_CacheFilename);
+					MappedCubeAssociationCache mapped = MappedCubeAssociationCache.load(cubeAssocCSR_CacheFilename);
+					mapped.validate(numCubes, numCubesPerDepth, rupSet == null ? 0 : rupSet.getNumSections());
+					mapped.validateAgainstLegacy(sectDistForCubeCacheFilename, sectInCubeCacheFilename, cubeInsidePolyCacheFilename);
+					cubeAssocCache = mapped;
+					sectDistForCubeList = cubeAssocCache.getSectDistForCubeList();
+					sectInCubeList = cubeAssocCache.getSectInCubeList();
+					isCubeInsideFaultPolygon = cubeAssocCache.getIsCubeInsideFaultPolygon();
+					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after mapping "+cubeAssocCSR_CacheFilename);
+				} catch (IOException | IllegalStateException e) {
+					System.err.println("WARNING: not using "+cubeAssocCSR_CacheFilename+": "+e.getMessage());
+				}
+			}
+			if (cubeAssocCache == null && sectInCubeCacheFilename.exists() && sectDistForCubeCacheFilename.exists() && cubeInsidePolyCacheFilename.exists()) { // read from file if it exists
 				try {
 					if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before reading "+sectDistForCubeCacheFilename);
 					sectDistForCubeList = MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFilename);
@@ -368,7 +389,7 @@ public class ETAS_PrimaryEventSampler {
 					e.printStackTrace();
 				}
 			}
-			else {  // make cache file if they don't exist
+			else if (cubeAssocCache == null) {  // make cache file if they don't exist
 				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory before running generateAndWriteCacheDataToFiles()");
 				generateAndWriteCacheDataToFiles();
 				if(D) ETAS_SimAnalysisTools.writeMemoryUse("Memory after running generateAndWriteCacheDataToFiles()");
@@ -395,11 +416,10 @@ public class ETAS_PrimaryEventSampler {
 			cubeDistsForSectionList.add(new ArrayList<Float>());
 		}
 		for(int c=0; c<numCubes;c++) {
-			int[] sectInCubeArray=sectInCubeList.get(c);
-			float[] sectDistForCubeArray = sectDistForCubeList.get(c);
-			for(int i=0;i<sectInCubeArray.length;i++) {
-				int s = sectInCubeArray[i];
-				float dist = sectDistForCubeArray[i];
+			int numSectsInCube = getNumSectsInCube(c);
+			for(int i=0;i<numSectsInCube;i++) {
+				int s = getSectInCube(c, i);
+				float dist = getSectDistForCube(c, i);
 				cubesForSectionList.get(s).add(c);
 				cubeDistsForSectionList.get(s).add(dist);
 			}
@@ -412,10 +432,9 @@ public class ETAS_PrimaryEventSampler {
 		}
 		fractionSectInCubeList = new ArrayList<float[]>();
 		for(int c=0; c<numCubes;c++) {
-			int[] sectInCubeArray = sectInCubeList.get(c);
-			float[] fracsForCubeArray = new float[sectInCubeArray.length];
-			for(int i=0;i<sectInCubeArray.length;i++) {
-				int s=sectInCubeArray[i];
+			float[] fracsForCubeArray = new float[getNumSectsInCube(c)];
+			for(int i=0;i<fracsForCubeArray.length;i++) {
+				int s=getSectInCube(c, i);
 				fracsForCubeArray[i]=hashMapForSectList.get(s).get(c);
 			}
 			fractionSectInCubeList.add(fracsForCubeArray);
@@ -614,10 +633,9 @@ public class ETAS_PrimaryEventSampler {
 		long st = System.currentTimeMillis();
 		totalSectRateInCubeArray = new double[numCubes];
 		for(int c=0;c<numCubes;c++) {
-			int[] sectInCubeArray = sectInCubeList.get(c);
 			float[] fracts = fractionSectInCubeList.get(c);
-			for(int s=0; s<sectInCubeArray.length;s++) {
-				totalSectRateInCubeArray[c] += totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s];
+			for(int s=0; s<fracts.length;s++) {
+				totalSectRateInCubeArray[c] += totSectNuclRateArray[getSectInCube(c, s)]*(double)fracts[s];
 			}
 		}
 		
@@ -632,6 +650,43 @@ public class ETAS_PrimaryEventSampler {
 	public void setSectInCubeCaches(List<float[]> sectDistForCubeList, List<int[]> sectInCubeList) {
 		this.sectDistForCubeList = sectDistForCubeList;
 		this.sectInCubeList = sectInCubeList;
+		this.cubeAssocCache = MappedCubeAssociationCache.getBackingCache(sectInCubeList, sectDistForCubeList);
+	}
+	
+	/**
+	 * @param cubeIndex
+	 * @return number of sections associated with the given cube
+	 */
+	private int getNumSectsInCube(int cubeIndex) {
+		if(cubeAssocCache != null)
+			return cubeAssocCache.getNumSectsInCube(cubeIndex);
+		return sectInCubeList.get(cubeIndex).length;
+	}
+	
+	/**
+	 * This gets the index of the i-th section associated with the given cube without decoding the full array
+	 * if the memory mapped cache is in use
+	 * @param cubeIndex
+	 * @param i
+	 * @return
+	 */
+	private int getSectInCube(int cubeIndex, int i) {
+		if(cubeAssocCache != null)
+			return cubeAssocCache.getSect(cubeAssocCache.getCubeOffset(cubeIndex)+i);
+		return sectInCubeList.get(cubeIndex)[i];
+	}
+	
+	/**
+	 * This gets the distance to the i-th section associated with the given cube without decoding the full array
+	 * if the memory mapped cache is in use
+	 * @param cubeIndex
+	 * @param i
+	 * @return
+	 */
+	private float getSectDistForCube(int cubeIndex, int i) {
+		if(cubeAssocCache != null)
+			return cubeAssocCache.getSectDist(cubeAssocCache.getCubeOffset(cubeIndex)+i);
+		return sectDistForCubeList.get(cubeIndex)[i];
 	}
 	
 	
@@ -650,6 +705,15 @@ public class ETAS_PrimaryEventSampler {
 	}
 	
 	
+	/**
+	 * This discards all ruptures registered via {@link #addRuptureToProcess(ETAS_EqkRupture)} that have not
+	 * yet been assigned a cube index (e.g., before restoring the pending ruptures from a checkpoint)
+	 */
+	public void clearRupturesToProcess() {
+		eventListForParLocIndexMap.clear();
+	}
+	
+	
 	/**
 	 * This returns a map giving the cubes that are inside the fault-section's polygon (cube index is map key),
 	 * plus the distance (map value) of each cube center from the fault-section surface.
@@ -1292,11 +1356,10 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		
 		for(int c=0;c<numCubes;c++) {
 			fltNuclRate[c] = 0d;
-			if(sectInCubeList.get(c).length > 0) {
-				int[] sectInCube = sectInCubeList.get(c);
+			if(getNumSectsInCube(c) > 0) {
 				float[] fractInCube = fractionSectInCubeList.get(c);				
-				for(int s=0; s<sectInCube.length;s++)
-					fltNuclRate[c] += totSectNuclRateArray[sectInCube[s]]*fractInCube[s];
+				for(int s=0; s<fractInCube.length;s++)
+					fltNuclRate[c] += totSectNuclRateArray[getSectInCube(c, s)]*fractInCube[s];
 			}
 			totCubeProb[c] = fltNuclRate[c]*aveSampler.getY(c);
 		}
@@ -1308,14 +1371,14 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		for(int cubeIndex : topCubeIndices) {
 			double gridSeisRateInCube = cubeSamplerGriddedRatesOnly.getY(cubeIndex);
 			Location loc = getCubeLocationForIndex(cubeIndex);
-			int[] sectInCube = sectInCubeList.get(cubeIndex);
+			int numSectsInCube = getNumSectsInCube(cubeIndex);
 			float[] fractInCube = fractionSectInCubeList.get(cubeIndex);
 			System.out.print(cubeIndex+"\t"+totCubeProb[cubeIndex]+"\t"+aveSampler.getY(cubeIndex)+"\t"+gridSeisRateInCube+"\t"+fltNuclRate[cubeIndex]+
 					"\t"+loc.getLongitude()+"\t"+loc.getLatitude()+"\t"+loc.getDepth());
 			
 			List<? extends FaultSection> fltDataList = ((FaultSystemSolutionERF)erf).getSolution().getRupSet().getFaultSectionDataList();
-			for(int s=0;s<sectInCube.length;s++) {
-				int sectIndex = sectInCube[s];
+			for(int s=0;s<numSectsInCube;s++) {
+				int sectIndex = getSectInCube(cubeIndex, s);
 				double sectRate = totSectNuclRateArray[sectIndex]*fractInCube[s];
 				System.out.print("\t"+fltDataList.get(sectIndex).getName()+"\t"+totSectNuclRateArray[sectIndex]+"\t"+fractInCube[s]);
 			}
@@ -1393,13 +1456,13 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			gridSrcRate = cubeSamplerGriddedRatesOnly.getY(cubeIndex);	
 		}
 		
-		int[] sectInCubeArray = sectInCubeList.get(cubeIndex);
+		int numSectsInCube = getNumSectsInCube(cubeIndex);
 		
-		if(gridSrcIndex == -1 && sectInCubeArray.length==0) {
+		if(gridSrcIndex == -1 && numSectsInCube==0) {
 			return null;
 		}
 		
-		if(gridSrcIndex != -1 && (sectInCubeArray.length==0 || fracSupra==0.0)) {
+		if(gridSrcIndex != -1 && (numSectsInCube==0 || fracSupra==0.0)) {
 			rateForSrcHashtable.put(gridSrcIndex, gridSrcRate);	// only gridded source in this cube
 			return rateForSrcHashtable;
 		}
@@ -1409,8 +1472,8 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		
 		// now fill in nucleation rate of remaining sources
 		float[] fracts = fractionSectInCubeList.get(cubeIndex);
-		for(int s=0;s<sectInCubeArray.length;s++) {
-			int sectIndex = sectInCubeArray[s];
+		for(int s=0;s<numSectsInCube;s++) {
+			int sectIndex = getSectInCube(cubeIndex, s);
 			double fracSectInCube = fracts[s];
 			for (int i=0; i<srcNuclRateOnSects[sectIndex].size(); i++) {
 				int srcIndex = srcNuclRateOnSects[sectIndex].getSourceIndex(i);
@@ -1793,7 +1856,7 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 					continue;
 				}
 				
-				int[] sectInCubeArray = sectInCubeList.get(i);
+				int numSectsInCube = getNumSectsInCube(i);
 				
 				
 				// TEST for just ERT effect with no time dep probabilities
@@ -1813,16 +1876,16 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 
 				float[] fractInCubeArray = fractionSectInCubeList.get(i);
 				double sum = 0;
-				for(int s=0;s<sectInCubeArray.length;s++) {
-					int sectIndex = sectInCubeArray[s];
+				for(int s=0;s<numSectsInCube;s++) {
+					int sectIndex = getSectInCube(i, s);
 					sum += totSectNuclRateArray[sectIndex]*fractInCubeArray[s]*fracSupra;
 				}
 				double gridCubeRate=cubeSamplerGriddedRatesOnly.getY(i);
 				sum += gridCubeRate;	// to make it the total nucleation rate in cube
 				if(sum > 0) {	// avoid division by zero if all rates are zero
 					totGridProb += sampler.getY(i)*gridCubeRate/sum;
-					for(int s=0;s<sectInCubeArray.length;s++) {
-						int sectIndex = sectInCubeArray[s];
+					for(int s=0;s<numSectsInCube;s++) {
+						int sectIndex = getSectInCube(i, s);
 						double val = totSectNuclRateArray[sectIndex]*fractInCubeArray[s]*fracSupra*sampler.getY(i)/sum;
 						sectProbArray[sectIndex] += val;
 
@@ -4077,7 +4140,8 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		if(parRegIndex <0) {
 			if(D) {
 				System.out.print("Warning: parent location outside of region; parRegIndex="+parRegIndex+"; parentLoc="+actualParentLoc.toString()+
-						"; Num pts on main shock surface: "+parRup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface().size());
+						"; Num pts on main shock surface: "+(parRup.getRuptureSurface() == null ? "(unknown)"
+								: parRup.getRuptureSurface().getEvenlyDiscritizedListOfLocsOnSurface().size()));
 				if(parRup instanceof ETAS_EqkRupture) {
 					System.out.println("; Problem event generation: "+((ETAS_EqkRupture)parRup).getGeneration());
 				}
@@ -4551,11 +4615,11 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			int cubeRegIndex = getCubeRegAndDepIndicesForIndex(cubeIndex)[0];
 			if(isCubeInsideFaultPolygon[cubeRegIndex]==1) {
 				// need to construct this carefully because not all sections in cell influence all cubes in cell
-				int[] sectInCubeArray = sectInCubeList.get(cubeIndex);	// TODO this assumes that supra sect rates are spread to all cubes in polygon, and not to those on the main fault surface
+				int numSectsInCube = getNumSectsInCube(cubeIndex);	// TODO this assumes that supra sect rates are spread to all cubes in polygon, and not to those on the main fault surface
 				// can't use fracSectInCubeArray because rates may not have been distributed evenly
 				double totCubeRate=0;
-				for(int i=0;i<sectInCubeArray.length;i++) {
-					int sectID = sectInCubeArray[i];
+				for(int i=0;i<numSectsInCube;i++) {
+					int sectID = getSectInCube(cubeIndex, i);
 					double cubeRate = longTermSubSeisMFD_OnSectList.get(sectID).getCumRate(2.55)/(double)numCubesInsideFaultPolygonArray[sectID]; // TODO remove hard coded mag
 					totCubeRate += cubeRate;	
 					if(debug)
@@ -4598,28 +4662,28 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		
 		int gridSrcIndex = numFltSystSources + griddeSeisRegionIndex;
 		
-		int[] sectInCubeArray = sectInCubeList.get(cubeIndex);
-		if(sectInCubeArray.length==0) {
+		int numSectsInCube = getNumSectsInCube(cubeIndex);
+		if(numSectsInCube==0) {
 			return gridSrcIndex;	// only gridded source in this cube
 		}
 		else {		// choose between gridded seis and a section nucleation
-			IntegerPDF_FunctionSampler sampler = new IntegerPDF_FunctionSampler(sectInCubeArray.length+1);  // plus 1 for gridded source
+			IntegerPDF_FunctionSampler sampler = new IntegerPDF_FunctionSampler(numSectsInCube+1);  // plus 1 for gridded source
 			double gridSrcRate = sourceRates[gridSrcIndex]/(numPtSrcSubPts*numPtSrcSubPts*numCubeDepths);	// divide rate among all the cubes in grid cell
 			sampler.set(0,gridSrcRate);	// first is the gridded source
 			float[] fracts = fractionSectInCubeList.get(cubeIndex);
-			for(int s=0; s<sectInCubeArray.length;s++) {
+			for(int s=0; s<numSectsInCube;s++) {
 //				if(applyGR_Corr) {
 //					sampler.set(s+1,totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s]*grCorrFactorForSectArray[sectInCubeArray[s]]);		
 //				}
 //				else
-					sampler.set(s+1,totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s]);		
+					sampler.set(s+1,totSectNuclRateArray[getSectInCube(cubeIndex, s)]*(double)fracts[s]);		
 			}
 			int randSampleIndex = sampler.getRandomInt(etas_utils.getRandomDouble());
 			if(randSampleIndex == 0)	// gridded source chosen
 				return gridSrcIndex;
 			else {	// choose a source that nucleates on the section
 				
-				int sectIndex = sectInCubeArray[randSampleIndex-1];
+				int sectIndex = getSectInCube(cubeIndex, randSampleIndex-1);
 //				HashMap<Integer,Float> srcNuclRateHashMap = srcNuclRateOnSectList.get(sectIndex);
 				IntegerPDF_FunctionSampler srcSampler = srcNuclRateOnSects[sectIndex].buildSampler();
 				int index = srcSampler.getRandomInt(etas_utils.getRandomDouble());
@@ -4660,14 +4724,13 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 			}
 			else {
 				// randomly sample a section first
-				int[] sectInCubeArray = sectInCubeList.get(cubeIndex);
 				float[] fracts = fractionSectInCubeList.get(cubeIndex);
-				IntegerPDF_FunctionSampler sectSampler = new IntegerPDF_FunctionSampler(sectInCubeArray.length);  // plus 1 for gridded source
-				for(int s=0; s<sectInCubeArray.length;s++) {
-					sectSampler.set(s,totSectNuclRateArray[sectInCubeArray[s]]*(double)fracts[s]);		
+				IntegerPDF_FunctionSampler sectSampler = new IntegerPDF_FunctionSampler(fracts.length);  // plus 1 for gridded source
+				for(int s=0; s<fracts.length;s++) {
+					sectSampler.set(s,totSectNuclRateArray[getSectInCube(cubeIndex, s)]*(double)fracts[s]);		
 				}
 				int randSectIndex = sectSampler.getRandomInt(etas_utils.getRandomDouble());
-				int sectIndex = sectInCubeArray[randSectIndex];
+				int sectIndex = getSectInCube(cubeIndex, randSectIndex);
 				int index = srcNuclRateOnSects[sectIndex].buildSampler().getRandomInt(etas_utils.getRandomDouble());
 				return srcNuclRateOnSects[sectIndex].getSourceIndex(index);
 			}
@@ -4874,10 +4937,10 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		// now compute section rates
 		double[] sectSupraRatesTest = new double[this.rupSet.getNumSections()];
 		for(int i=0;i<numCubes;i++) {
-			int[] sections = sectInCubeList.get(i);
 			float[] fracts = fractionSectInCubeList.get(i);
-			for(int j=0; j<sections.length;j++) {
-				sectSupraRatesTest[sections[j]] += totSectNuclRateArray[sections[j]]*(double)fracts[j];
+			for(int j=0; j<fracts.length;j++) {
+				int sectIndex = getSectInCube(i, j);
+				sectSupraRatesTest[sectIndex] += totSectNuclRateArray[sectIndex]*(double)fracts[j];
 			}
 		}
 		double totSectSupraRate=0;
@@ -6848,7 +6911,9 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		double rate3=0;
 		SummedMagFreqDist[] longTermSupraSeisMFD_OnSectArray = longTermMFDs.getLongTermSupraSeisMFD_OnSectArray();
 		List<? extends IncrementalMagFreqDist> longTermSubSeisMFD_OnSectList = longTermMFDs.getLongTermSubSeisMFD_OnSectList();
-		for(int sectID: sectInCubeList.get(cubeIndex)) {
+		int numSectsInCube = getNumSectsInCube(cubeIndex);
+		for(int j=0; j<numSectsInCube; j++) {
+			int sectID = getSectInCube(cubeIndex, j);
 			System.out.println("\n"+rupSet.getFaultSectionData(sectID).getName());
 			int numCubesInsideFaultPolygon = numCubesInsideFaultPolygonArray[sectID];
 			System.out.println("numCubesInsideFaultPolygonArray[sectID]="+numCubesInsideFaultPolygon);
@@ -6881,14 +6946,14 @@ double maxCharFactor = maxRate/cubeRateBeyondDistThresh;
 		double aveGRcorr=0;
 		double totRateSupra=0;
 		float[] fracArray = fractionSectInCubeList.get(cubeIndex);
-		int[] sectArray = sectInCubeList.get(cubeIndex);
+		int numSectsInCube = getNumSectsInCube(cubeIndex);
 		if(fracArray.length==0) { // no sections in cube
 			return getTrulyOffFaultGR_Corr(false);
 		}
 		SummedMagFreqDist[] longTermSupraSeisMFD_OnSectArray = longTermMFDs.getLongTermSupraSeisMFD_OnSectArray();
 		List<? extends IncrementalMagFreqDist> longTermSubSeisMFD_OnSectList = longTermMFDs.getLongTermSubSeisMFD_OnSectList();
-		for(int i=0;i<sectArray.length;i++) {
-			int sectID=sectArray[i];
+		for(int i=0;i<numSectsInCube;i++) {
+			int sectID=getSectInCube(cubeIndex, i);
 			IncrementalMagFreqDist supraMFD = longTermSupraSeisMFD_OnSectArray[sectID].deepClone();
 			IncrementalMagFreqDist subMFD = longTermSubSeisMFD_OnSectList.get(sectID).deepClone();
 
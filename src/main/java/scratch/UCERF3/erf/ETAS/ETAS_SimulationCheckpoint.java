@@ -0,0 +1,343 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.faultSurface.PointSurface;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Progress checkpoint for a single ETAS simulation, allowing a partially simulated catalog to be resumed after
+ * the job is killed (e.g. preempted or out of wall time) rather than restarted from scratch.
+ * <br><br>
+ * Ruptures which have already been simulated are not stored here; they are in the simulatedEvents.txt file, which
+ * is truncated to the length recorded at checkpoint time when resuming. The checkpoint stores the random number
+ * generator state, ID counters, the queue of pending (not yet sampled) ruptures, and the ancestors of those pending
+ * ruptures with full precision (needed for elastic rebound triggering of gridded seismicity).
+ * <br><br>
+ * File format (all values big endian): int magic, int version, long randomSeed, long eventsFileLength,
+ * int numSimulatedEvents, int nextEventID, long currentTime, int numRandomStateBytes, byte[] randomState,
+ * int numAncestors, ancestor records, int numPending, pending records.
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_SimulationCheckpoint {
+
+	public static final String FILE_NAME = "simulationCheckpoint.bin";
+
+	private static final int MAGIC = 0x45545343; // "ETSC"
+	private static final int VERSION = 2;
+
+	private long randomSeed;
+	private long eventsFileLength;
+	private int numSimulatedEvents;
+	private int nextEventID;
+	private long currentTime;
+	private byte[] randomState;
+	private List<RupRecord> ancestors;
+	private List<RupRecord> pending;
+
+	private ETAS_SimulationCheckpoint() {}
+
+	/**
+	 * @return random seed of the simulation that wrote this checkpoint
+	 */
+	public long getRandomSeed() {
+		return randomSeed;
+	}
+
+	/**
+	 * @return length in bytes of the simulated events file at the time of this checkpoint
+	 */
+	public long getEventsFileLength() {
+		return eventsFileLength;
+	}
+
+	public int getNumSimulatedEvents() {
+		return numSimulatedEvents;
+	}
+
+	/**
+	 * @return ID that will be assigned to the next triggered or spontaneous rupture
+	 */
+	public int getNextEventID() {
+		return nextEventID;
+	}
+
+	/**
+	 * @return origin time of the last simulated rupture at the time of this checkpoint, in epoch milliseconds
+	 */
+	public long getCurrentTime() {
+		return currentTime;
+	}
+
+	/**
+	 * @return random number generator state, see {@link ETAS_Utils#setRandomState(byte[])}
+	 */
+	public byte[] getRandomState() {
+		return randomState;
+	}
+
+	public int getNumPending() {
+		return pending.size();
+	}
+
+	/**
+	 * Builds the pending ruptures (in order of ID), including links to their parent ruptures. Pending ruptures
+	 * which have not yet been assigned a cube index will need to be registered with the
+	 * {@link ETAS_PrimaryEventSampler#addRuptureToProcess(ETAS_EqkRupture)} in the returned order.
+	 *
+	 * @param inputRups input (observed and/or scenario) ruptures, which are the oldest possible ancestors
+	 * @return
+	 */
+	public List<ETAS_EqkRupture> buildPendingRuptures(List<? extends ETAS_EqkRupture> inputRups) {
+		// input and simulated IDs are tracked separately as they are not guaranteed to be unique across the two
+		Map<Integer, ETAS_EqkRupture> inputsByID = new HashMap<>();
+		for (ETAS_EqkRupture rup : inputRups)
+			inputsByID.put(rup.getID(), rup);
+		Map<Integer, ETAS_EqkRupture> ancestorsByID = new HashMap<>();
+		// ancestors are sorted by ID, so parents are always built before their children
+		for (RupRecord record : ancestors)
+			ancestorsByID.put(record.id, record.build(inputsByID, ancestorsByID));
+		List<ETAS_EqkRupture> ret = new ArrayList<>(pending.size());
+		for (RupRecord record : pending)
+			ret.add(record.build(inputsByID, ancestorsByID));
+		return ret;
+	}
+
+	private static class RupRecord {
+		private int id;
+		private int parentID;
+		private boolean inputParent;
+		private int generation;
+		private long originTime;
+		private int cubeIndex;
+		private int nthERF_Index;
+		private int fssIndex;
+		private int gridNodeIndex;
+		private double mag;
+		private Location hypocenter;
+		private Location parentTriggerLoc;
+		private boolean pointSurface;
+
+		private RupRecord() {}
+
+		private RupRecord(ETAS_EqkRupture rup, boolean inputParent) {
+			id = rup.getID();
+			parentID = rup.getParentID();
+			this.inputParent = inputParent;
+			generation = rup.getGeneration();
+			originTime = rup.getOriginTime();
+			cubeIndex = rup.getCubeIndex();
+			nthERF_Index = rup.getNthERF_Index();
+			fssIndex = rup.getFSSIndex();
+			gridNodeIndex = rup.getGridNodeIndex();
+			mag = rup.getMag();
+			hypocenter = rup.getHypocenterLocation();
+			parentTriggerLoc = rup.getParentTriggerLoc();
+			pointSurface = rup.getRuptureSurface() instanceof PointSurface;
+		}
+
+		private void write(DataOutputStream out) throws IOException {
+			out.writeInt(id);
+			out.writeInt(parentID);
+			out.writeBoolean(inputParent);
+			out.writeInt(generation);
+			out.writeLong(originTime);
+			out.writeInt(cubeIndex);
+			out.writeInt(nthERF_Index);
+			out.writeInt(fssIndex);
+			out.writeInt(gridNodeIndex);
+			out.writeDouble(mag);
+			writeLocation(out, hypocenter);
+			writeLocation(out, parentTriggerLoc);
+			out.writeBoolean(pointSurface);
+		}
+
+		private static RupRecord read(DataInputStream in) throws IOException {
+			RupRecord record = new RupRecord();
+			record.id = in.readInt();
+			record.parentID = in.readInt();
+			record.inputParent = in.readBoolean();
+			record.generation = in.readInt();
+			record.originTime = in.readLong();
+			record.cubeIndex = in.readInt();
+			record.nthERF_Index = in.readInt();
+			record.fssIndex = in.readInt();
+			record.gridNodeIndex = in.readInt();
+			record.mag = in.readDouble();
+			record.hypocenter = readLocation(in);
+			record.parentTriggerLoc = readLocation(in);
+			record.pointSurface = in.readBoolean();
+			return record;
+		}
+
+		private ETAS_EqkRupture build(Map<Integer, ETAS_EqkRupture> inputsByID,
+				Map<Integer, ETAS_EqkRupture> ancestorsByID) {
+			ETAS_EqkRupture rup;
+			if (parentID < 0) {
+				// spontaneous
+				rup = new ETAS_EqkRupture();
+				rup.setID(id);
+				rup.setOriginTime(originTime);
+			} else {
+				ETAS_EqkRupture parent = inputParent ? inputsByID.get(parentID) : ancestorsByID.get(parentID);
+				Preconditions.checkState(parent != null, "Parent %s not found for rupture %s", parentID, id);
+				rup = new ETAS_EqkRupture(parent, id, originTime);
+			}
+			rup.setGeneration(generation);
+			rup.setCubeIndex(cubeIndex);
+			if (parentTriggerLoc != null)
+				rup.setParentTriggerLoc(parentTriggerLoc);
+			if (hypocenter != null) {
+				// this rupture has already been sampled (it's an ancestor)
+				rup.setMag(mag);
+				rup.setHypocenterLocation(hypocenter);
+				rup.setNthERF_Index(nthERF_Index);
+				rup.setFSSIndex(fssIndex);
+				rup.setGridNodeIndex(gridNodeIndex);
+				// finite surfaces are not stored, they're only used for triggering which has already been done
+				if (pointSurface)
+					rup.setPointSurface(hypocenter);
+			}
+			return rup;
+		}
+	}
+
+	private static void writeLocation(DataOutputStream out, Location loc) throws IOException {
+		out.writeBoolean(loc != null);
+		if (loc != null) {
+			out.writeDouble(loc.getLatitude());
+			out.writeDouble(loc.getLongitude());
+			out.writeDouble(loc.getDepth());
+		}
+	}
+
+	private static Location readLocation(DataInputStream in) throws IOException {
+		if (!in.readBoolean())
+			return null;
+		double lat = in.readDouble();
+		double lon = in.readDouble();
+		double depth = in.readDouble();
+		return new Location(lat, lon, depth);
+	}
+
+	/**
+	 * Writes a checkpoint file. The file is first written to a temporary file in the same directory and then
+	 * atomically moved into place, so that a job killed while writing leaves the previous checkpoint intact.
+	 *
+	 * @param file checkpoint file
+	 * @param etas_utils ETAS utils, from which the random seed and state will be retrieved
+	 * @param eventsFileLength length of the simulated events file (after flushing)
+	 * @param numSimulatedEvents number of ruptures simulated so far
+	 * @param nextEventID ID that will be assigned to the next rupture
+	 * @param currentTime origin time of the last simulated rupture
+	 * @param inputRups input (observed and/or scenario) ruptures
+	 * @param pendingRups ruptures which have been created but not yet sampled
+	 * @throws IOException
+	 */
+	public static void write(File file, ETAS_Utils etas_utils, long eventsFileLength, int numSimulatedEvents,
+			int nextEventID, long currentTime, Collection<? extends ETAS_EqkRupture> inputRups,
+			Collection<ETAS_EqkRupture> pendingRups) throws IOException {
+		Set<ETAS_EqkRupture> inputSet = Collections.newSetFromMap(new IdentityHashMap<ETAS_EqkRupture, Boolean>());
+		inputSet.addAll(inputRups);
+		// sort pending ruptures by ID, and find all of their simulated ancestors
+		TreeMap<Integer, ETAS_EqkRupture> pendingMap = new TreeMap<>();
+		TreeMap<Integer, ETAS_EqkRupture> ancestorMap = new TreeMap<>();
+		for (ETAS_EqkRupture rup : pendingRups) {
+			pendingMap.put(rup.getID(), rup);
+			ETAS_EqkRupture ancestor = rup.getParentRup();
+			while (ancestor != null && !inputSet.contains(ancestor) && !ancestorMap.containsKey(ancestor.getID())) {
+				ancestorMap.put(ancestor.getID(), ancestor);
+				ancestor = ancestor.getParentRup();
+			}
+		}
+		byte[] randomState = etas_utils.getRandomState();
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(etas_utils.getRandomSeed());
+			out.writeLong(eventsFileLength);
+			out.writeInt(numSimulatedEvents);
+			out.writeInt(nextEventID);
+			out.writeLong(currentTime);
+			out.writeInt(randomState.length);
+			out.write(randomState);
+			out.writeInt(ancestorMap.size());
+			for (ETAS_EqkRupture rup : ancestorMap.values())
+				new RupRecord(rup, inputSet.contains(rup.getParentRup())).write(out);
+			out.writeInt(pendingMap.size());
+			for (ETAS_EqkRupture rup : pendingMap.values())
+				new RupRecord(rup, inputSet.contains(rup.getParentRup())).write(out);
+			out.close();
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	/**
+	 * Loads a checkpoint from the given file
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException if the file cannot be read or is not a valid checkpoint
+	 */
+	public static ETAS_SimulationCheckpoint load(File file) throws IOException {
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+		try {
+			int magic = in.readInt();
+			if (magic != MAGIC)
+				throw new IOException("Not an ETAS simulation checkpoint file: "+file.getAbsolutePath());
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IOException("Unsupported ETAS simulation checkpoint version: "+version);
+			ETAS_SimulationCheckpoint checkpoint = new ETAS_SimulationCheckpoint();
+			checkpoint.randomSeed = in.readLong();
+			checkpoint.eventsFileLength = in.readLong();
+			checkpoint.numSimulatedEvents = in.readInt();
+			checkpoint.nextEventID = in.readInt();
+			checkpoint.currentTime = in.readLong();
+			checkpoint.randomState = new byte[in.readInt()];
+			in.readFully(checkpoint.randomState);
+			int numAncestors = in.readInt();
+			checkpoint.ancestors = new ArrayList<>(numAncestors);
+			for (int i=0; i<numAncestors; i++)
+				checkpoint.ancestors.add(RupRecord.read(in));
+			int numPending = in.readInt();
+			checkpoint.pending = new ArrayList<>(numPending);
+			for (int i=0; i<numPending; i++)
+				checkpoint.pending.add(RupRecord.read(in));
+			return checkpoint;
+		} finally {
+			in.close();
+		}
+	}
+
+}
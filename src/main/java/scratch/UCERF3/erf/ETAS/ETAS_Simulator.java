@@ -6,6 +6,7 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.RandomAccessFile;
 import java.io.Writer;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -165,6 +166,29 @@ public class ETAS_Simulator {
 			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
 			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
 			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs) throws IOException {
+		return runETAS_Simulation(resultsDir, erf, griddedRegion, scenarioRups, histQkList, includeSpontEvents,
+				includeIndirectTriggering, gridSeisDiscr, simulationName, randomSeed, fractionSrcInCubeList, srcInCubeList,
+				inputIsCubeInsideFaultPolygon, etasParams, cubeParams, longTermMFDs, 0l);
+	}
+	
+	/**
+	 * This represents an ETAS simulation which can take multiple scenario ruptures, and which can be periodically
+	 * checkpointed so that it can be resumed if killed.
+	 * 
+	 * If checkpointIntervalMillis is positive, progress is written to {@link ETAS_SimulationCheckpoint#FILE_NAME} in the
+	 * results directory at (approximately) that interval, and the checkpoint is deleted once the simulation completes. If
+	 * a valid checkpoint for the same random seed already exists in the results directory, the simulation is resumed
+	 * from that checkpoint rather than started from scratch.
+	 * 
+	 * @param checkpointIntervalMillis - interval between checkpoints in milliseconds, or <= 0 to disable checkpointing
+	 * @see #runETAS_Simulation(File, AbstractNthRupERF, GriddedRegion, List, List, boolean, boolean, double, String, Long, List, List, int[], ETAS_ParameterList, ETAS_CubeDiscretizationParams, ETAS_LongTermMFDs)
+	 */
+	public static ETAS_SimulationMetadata runETAS_Simulation(File resultsDir, AbstractNthRupERF erf,
+			GriddedRegion griddedRegion, List<ETAS_EqkRupture> scenarioRups, List<? extends ObsEqkRupture> histQkList, boolean includeSpontEvents,
+			boolean includeIndirectTriggering, double gridSeisDiscr, String simulationName,
+			Long randomSeed, List<float[]> fractionSrcInCubeList, List<int[]> srcInCubeList, int[] inputIsCubeInsideFaultPolygon, 
+			ETAS_ParameterList etasParams, ETAS_CubeDiscretizationParams cubeParams, ETAS_LongTermMFDs longTermMFDs,
+			long checkpointIntervalMillis) throws IOException {
 		long simulationStartTime = System.currentTimeMillis();
 		
 		// Overide to Poisson if needed
@@ -205,8 +229,35 @@ public class ETAS_Simulator {
 		// TODO this is closed below; why the warning?
 		int bufferSize = 1000000;
 		Writer info_fr = new BufferedWriter(new FileWriter(new File(resultsDir, "infoString.txt")), bufferSize);
-		Writer simulatedEventsFileWriter = new BufferedWriter(new FileWriter(new File(resultsDir, "simulatedEvents.txt")), bufferSize);
-		ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
+		File simulatedEventsFile = new File(resultsDir, "simulatedEvents.txt");
+		
+		// see if we're resuming from a checkpoint
+		File checkpointFile = new File(resultsDir, ETAS_SimulationCheckpoint.FILE_NAME);
+		ETAS_SimulationCheckpoint checkpoint = null;
+		List<ETAS_EqkRupture> checkpointSimulatedRups = null;
+		if (checkpointIntervalMillis > 0 && checkpointFile.exists()) {
+			checkpoint = loadCheckpoint(checkpointFile, simulatedEventsFile, randomSeed);
+			if (checkpoint != null) {
+				// discard anything written after the checkpoint, and load everything before it
+				try (RandomAccessFile raf = new RandomAccessFile(simulatedEventsFile, "rw")) {
+					raf.setLength(checkpoint.getEventsFileLength());
+				}
+				checkpointSimulatedRups = ETAS_CatalogIO.loadCatalog(simulatedEventsFile);
+				if (checkpointSimulatedRups.size() != checkpoint.getNumSimulatedEvents()) {
+					System.err.println("Warning: checkpoint expected "+checkpoint.getNumSimulatedEvents()
+						+" simulated events but found "+checkpointSimulatedRups.size()+", starting over");
+					checkpoint = null;
+					checkpointSimulatedRups = null;
+				}
+			}
+		}
+		Writer simulatedEventsFileWriter;
+		if (checkpoint == null) {
+			simulatedEventsFileWriter = new BufferedWriter(new FileWriter(simulatedEventsFile), bufferSize);
+			ETAS_CatalogIO.writeEventHeaderToFile(simulatedEventsFileWriter);
+		} else {
+			simulatedEventsFileWriter = new BufferedWriter(new FileWriter(simulatedEventsFile, true), bufferSize);
+		}
 
 		info_fr.write(simulationName+"\n");
 		info_fr.write("\nrandomSeed="+etas_utils.getRandomSeed()+"\n");
@@ -625,10 +676,58 @@ public class ETAS_Simulator {
 		
 		final double maxPointSourceMag = etasParams.getMaxPointSourceMag();
 		
+		long currentTime = simStartTimeMillis;	// origin time of the most recent simulated event
+		if (checkpoint != null) {
+			// the setup above always starts from the initial state, replace it with that from the checkpoint
+			eventsToProcess.clear();
+			etas_PrimEventSampler.clearRupturesToProcess();
+			
+			simulatedRupsQueue.addAll(checkpointSimulatedRups);
+			numSimulatedEvents = checkpointSimulatedRups.size();
+			eventID = checkpoint.getNextEventID();
+			currentTime = checkpoint.getCurrentTime();
+			
+			// replay the fault system ruptures (in order of occurrence), then update rates once
+			boolean fltSysRupsReplayed = false;
+			for (ETAS_EqkRupture rup : checkpointSimulatedRups) {
+				if (rup.getFSSIndex() >= 0) {
+					int srcIndex = fssERF.getSrcIndexForFltSysRup(rup.getFSSIndex());
+					erf.getTimeSpan().setStartTimeInMillis(rup.getOriginTime());
+					fssERF.setFltSystemSourceOccurranceTime(srcIndex, rup.getOriginTime());
+					fltSysRupsReplayed = true;
+				}
+			}
+			if (fltSysRupsReplayed && erf.getParameter(ProbabilityModelParam.NAME).getValue() != ProbabilityModelOptions.POISSON)
+				updateFaultSystemRates(erf, numFaultSysSources, sourceRates, spontaneousRupSampler, duration, etas_PrimEventSampler, -1);
+			
+			// pending ruptures are in order of ID, which is the order in which they were originally registered
+			for (ETAS_EqkRupture rup : checkpoint.buildPendingRuptures(obsEqkRuptureList)) {
+				if (rup.getCubeIndex() == -1 && rup.getParentTriggerLoc() != null)
+					etas_PrimEventSampler.addRuptureToProcess(rup);
+				eventsToProcess.add(rup);
+			}
+			
+			etas_utils.setRandomState(checkpoint.getRandomState());
+			
+			String resumeStr = "Resumed from checkpoint with "+numSimulatedEvents+" simulated events and "
+					+eventsToProcess.size()+" pending events";
+			if (D) System.out.println(resumeStr);
+			info_fr.write("\n"+resumeStr+"\n");
+		}
+		long lastCheckpointTime = System.currentTimeMillis();
+		
 		while(eventsToProcess.size()>0) {
 			
 			if (progressBar != null) progressBar.updateProgress(numSimulatedEvents, eventsToProcess.size()+numSimulatedEvents);
 			
+			if (checkpointIntervalMillis > 0 && numSimulatedEvents > 0
+					&& System.currentTimeMillis() - lastCheckpointTime >= checkpointIntervalMillis) {
+				simulatedEventsFileWriter.flush();
+				ETAS_SimulationCheckpoint.write(checkpointFile, etas_utils, simulatedEventsFile.length(), numSimulatedEvents,
+						eventID, currentTime, obsEqkRuptureList, eventsToProcess);
+				lastCheckpointTime = System.currentTimeMillis();
+			}
+			
 			ETAS_EqkRupture rup = eventsToProcess.poll();	//Retrieves and removes the head of this queue, or returns null if this queue is empty.
 			
 			boolean succeededInSettingRupture=true;	// used later to indicate whether ETAS Primary event sampler succeeded in sampling an event
@@ -712,6 +811,7 @@ public class ETAS_Simulator {
 			ETAS_CatalogIO.writeEventToFile(simulatedEventsFileWriter, rup);
 			
 			long rupOT = rup.getOriginTime();
+			currentTime = rupOT;
 			
 			// now sample primary aftershock times for this event (this should be in a method because it's redundant with code above)
 			if(includeIndirectTriggering) {
@@ -793,28 +893,8 @@ public class ETAS_Simulator {
 				if(D) System.out.print("\tUpdating src rates for etas_PrimEventSampler & spontaneousRupSampler; ");
 				Long st2 = System.currentTimeMillis();
 				if(erf.getParameter(ProbabilityModelParam.NAME).getValue() != ProbabilityModelOptions.POISSON) {
-					erf.updateForecast();
-					for(int s=0;s<numFaultSysSources;s++) {
-						ProbEqkSource src = erf.getSource(s);
-						double oldRate = sourceRates[s];
-						sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
-						double newRate = sourceRates[s];
-						// TEST THAT RATE CHANGED PROPERLY
-						if(D) {
-							if(s == erf.getSrcIndexForNthRup(nthRup)) {
-								System.out.print("for rup that occurred, oldRate="+(float)oldRate+" & newRate = "+(float)newRate+"\n");			
-							}
-						}
-						// update the spontaneous event sampler with new rupture rates
-						for(int r=0 ; r<src.getNumRuptures(); r++) {
-							ProbEqkRupture rupInSrc = src.getRupture(r);
-							double rate = rupInSrc.getMeanAnnualRate(duration);
-							spontaneousRupSampler.set(erf.getIndexN_ForSrcAndRupIndices(s, r), rate);
-						}
-					}
-					// now update the ETAS sampler
-					etas_PrimEventSampler.declareRateChange();
-
+					updateFaultSystemRates(erf, numFaultSysSources, sourceRates, spontaneousRupSampler, duration,
+							etas_PrimEventSampler, srcIndex);
 				}
 				if(D) {
 					System.out.println("Sampler update took "+(System.currentTimeMillis()-st2)/1000+" secs");					
@@ -928,6 +1008,10 @@ public class ETAS_Simulator {
 				simulationStartTime, System.currentTimeMillis(), ETAS_Utils.magMin_DEFAULT, simulatedRupsQueue);
 		ETAS_CatalogIO.writeMetadataToFile(simulatedEventsFileWriter, meta);
 		simulatedEventsFileWriter.close();
+		
+		// simulation is complete, checkpoint no longer needed
+		if (checkpointFile.exists())
+			checkpointFile.delete();
 
 		ETAS_SimAnalysisTools.writeMemoryUse("Memory at end of simultation");
 		return meta;
@@ -936,6 +1020,65 @@ public class ETAS_Simulator {
 	
 	
 	
+	/**
+	 * This updates fault system source rates, the spontaneous rupture sampler, and the primary event sampler after
+	 * the date of last event has changed for one or more fault system sources
+	 * @param debugSrcIndex - source index of the rupture that occurred, for debugging only (-1 if not applicable)
+	 */
+	private static void updateFaultSystemRates(AbstractNthRupERF erf, int numFaultSysSources, double[] sourceRates,
+			IntegerPDF_FunctionSampler spontaneousRupSampler, double duration, ETAS_PrimaryEventSampler etas_PrimEventSampler,
+			int debugSrcIndex) {
+		erf.updateForecast();
+		for(int s=0;s<numFaultSysSources;s++) {
+			ProbEqkSource src = erf.getSource(s);
+			double oldRate = sourceRates[s];
+			sourceRates[s] = src.computeTotalEquivMeanAnnualRate(duration);
+			double newRate = sourceRates[s];
+			// TEST THAT RATE CHANGED PROPERLY
+			if(D) {
+				if(s == debugSrcIndex) {
+					System.out.print("for rup that occurred, oldRate="+(float)oldRate+" & newRate = "+(float)newRate+"\n");			
+				}
+			}
+			// update the spontaneous event sampler with new rupture rates
+			for(int r=0 ; r<src.getNumRuptures(); r++) {
+				ProbEqkRupture rupInSrc = src.getRupture(r);
+				double rate = rupInSrc.getMeanAnnualRate(duration);
+				spontaneousRupSampler.set(erf.getIndexN_ForSrcAndRupIndices(s, r), rate);
+			}
+		}
+		// now update the ETAS sampler
+		etas_PrimEventSampler.declareRateChange();
+	}
+	
+	/**
+	 * This loads the given checkpoint file, returning null if it can't be used to resume this simulation
+	 * @param checkpointFile
+	 * @param simulatedEventsFile
+	 * @param randomSeed
+	 * @return
+	 */
+	private static ETAS_SimulationCheckpoint loadCheckpoint(File checkpointFile, File simulatedEventsFile, long randomSeed) {
+		ETAS_SimulationCheckpoint checkpoint;
+		try {
+			checkpoint = ETAS_SimulationCheckpoint.load(checkpointFile);
+		} catch (IOException e) {
+			System.err.println("Warning: couldn't load checkpoint, starting over: "+e.getMessage());
+			return null;
+		}
+		if (checkpoint.getRandomSeed() != randomSeed) {
+			System.err.println("Warning: checkpoint random seed ("+checkpoint.getRandomSeed()
+				+") differs from that of the simulation ("+randomSeed+"), starting over");
+			return null;
+		}
+		if (!simulatedEventsFile.exists() || simulatedEventsFile.length() < checkpoint.getEventsFileLength()) {
+			System.err.println("Warning: simulated events file is missing or shorter than checkpoint, starting over");
+			return null;
+		}
+		return checkpoint;
+	}
+	
+	
 	/**
 	 * This builds a scenario rup for the given scenario and resets date of last on subsections if it's a fault system rupture
 	 * This returns null if scenario=null.
@@ -6,6 +6,10 @@ import static org.opensha.commons.geo.GeoTools.TO_RAD;
 import java.awt.Color;
 import java.awt.HeadlessException;
 import java.awt.Toolkit;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
@@ -69,9 +73,11 @@ import org.opensha.sha.magdist.GutenbergRichterMagFreqDist;
 import org.opensha.sha.magdist.IncrementalMagFreqDist;
 import org.opensha.sha.magdist.SummedMagFreqDist;
 import org.apache.commons.math3.random.RandomDataGenerator;
+import org.apache.commons.math3.random.Well19937c;
 import org.apache.commons.math3.stat.StatUtils;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.apache.commons.math3.stat.descriptive.moment.StandardDeviation;
+import org.apache.commons.math3.util.FastMath;
 import org.dom4j.DocumentException;
 
 import com.google.common.base.Preconditions;
@@ -121,6 +127,7 @@ public class ETAS_Utils {
 
 	private long randomSeed;
 	
+	private StatefulWell19937c randomGen;
 	RandomDataGenerator randomDataGen;
 	
 	/**
@@ -135,7 +142,9 @@ public class ETAS_Utils {
 	 * @param randomSeed - the seed for random number generation (set for reproducibility)
 	 */
 	public ETAS_Utils(long randomSeed) {
-		randomDataGen = new RandomDataGenerator();
+		// same generator that RandomDataGenerator uses by default, but with state that we can save and restore
+		randomGen = new StatefulWell19937c();
+		randomDataGen = new RandomDataGenerator(randomGen);
 		randomDataGen.reSeed(randomSeed);
 		this.randomSeed = randomSeed;
 	}
@@ -143,6 +152,100 @@ public class ETAS_Utils {
 	public long getRandomSeed() {
 		return randomSeed;
 	}
+	
+	/**
+	 * This returns the state of the random number generator, which can be used with
+	 * {@link #setRandomState(byte[])} to continue the same sequence of random numbers (e.g. when resuming
+	 * a simulation from a checkpoint). The state is written explicitly (not with Java serialization), so it
+	 * remains valid across JDK and library versions.
+	 * @return
+	 * @throws IOException
+	 */
+	public byte[] getRandomState() throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		randomGen.writeState(out);
+		out.close();
+		return bytes.toByteArray();
+	}
+	
+	/**
+	 * This restores the random number generator state from that returned by {@link #getRandomState()}
+	 * @param state
+	 * @throws IOException if the state is not valid
+	 */
+	public void setRandomState(byte[] state) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(state));
+		try {
+			randomGen.readState(in);
+			if (in.read() >= 0)
+				throw new IOException("Unexpected trailing bytes in random state");
+		} finally {
+			in.close();
+		}
+	}
+	
+	/**
+	 * {@link Well19937c} that exposes its state. The Gaussian pair cache of the parent class is private, so
+	 * it is reimplemented here (with the same algorithm) in order to save it.
+	 */
+	private static class StatefulWell19937c extends Well19937c {
+		
+		private static final int STATE_VERSION = 1;
+		
+		private double nextGaussian = Double.NaN;
+		
+		@Override
+		public double nextGaussian() {
+			final double random;
+			if (Double.isNaN(nextGaussian)) {
+				// generate a new pair of gaussian numbers
+				final double x = nextDouble();
+				final double y = nextDouble();
+				final double alpha = 2 * FastMath.PI * x;
+				final double r = FastMath.sqrt(-2 * FastMath.log(y));
+				random = r * FastMath.cos(alpha);
+				nextGaussian = r * FastMath.sin(alpha);
+			} else {
+				random = nextGaussian;
+				nextGaussian = Double.NaN;
+			}
+			return random;
+		}
+		
+		@Override
+		public void clear() {
+			nextGaussian = Double.NaN;
+			super.clear();
+		}
+		
+		private void writeState(DataOutputStream out) throws IOException {
+			out.writeInt(STATE_VERSION);
+			out.writeInt(index);
+			out.writeInt(v.length);
+			for (int val : v)
+				out.writeInt(val);
+			out.writeDouble(nextGaussian);
+		}
+		
+		private void readState(DataInputStream in) throws IOException {
+			int version = in.readInt();
+			if (version != STATE_VERSION)
+				throw new IOException("Unsupported random state version: "+version);
+			int index = in.readInt();
+			int len = in.readInt();
+			if (len != v.length || index < 0 || index >= len)
+				throw new IOException("Bad random state: index="+index+", length="+len);
+			int[] vals = new int[len];
+			for (int i=0; i<len; i++)
+				vals[i] = in.readInt();
+			double nextGaussian = in.readDouble();
+			// only modify the generator once the full state has been read
+			this.index = index;
+			System.arraycopy(vals, 0, v, 0, len);
+			this.nextGaussian = nextGaussian;
+		}
+	}
 
 	
 	public static final ArrayList<String> getDefaultParametersAsStrings() {
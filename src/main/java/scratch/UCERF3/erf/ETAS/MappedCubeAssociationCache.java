@@ -0,0 +1,474 @@
+package scratch.UCERF3.erf.ETAS;
+
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import com.google.common.base.Preconditions;
+
+import scratch.UCERF3.utils.MatrixIO;
+
+/**
+ * Memory-mapped, compressed sparse row (CSR) version of the ETAS cube association caches
+ * (sectInCubeCache, sectDistForCubeCache and cubeInsidePolyCache). All three are stored in a single file
+ * which is mapped read-only, so multiple JVMs on the same node (e.g. MPJ ranks) share a single physical copy
+ * through the OS page cache and nothing is read until it is accessed.
+ * <br><br>
+ * File format (all values big endian, matching {@link MatrixIO}):<br>
+ * header: int magic, int version, int numCubes, int numValues, int numCubesPerDepth, int numSections<br>
+ * int[numCubes+1] row offsets into the value arrays<br>
+ * int[numValues] section indexes<br>
+ * float[numValues] section distances<br>
+ * int[numCubesPerDepth] inside fault polygon flags<br>
+ * <br>
+ * numSections is one more than the largest section index in the file, and is checked against the rupture set in
+ * {@link #validate(int)}. Blocks larger than {@link #DEFAULT_CHUNK_BITS} values are mapped in multiple chunks, as a
+ * single mapping is limited to 2 GB.
+ *
+ * @author kevin
+ *
+ */
+public class MappedCubeAssociationCache {
+
+	public static final String DEFAULT_FILE_NAME = "cubeAssocCSR_Cache";
+
+	private static final int MAGIC = 0x45544343; // "ETCC"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 6*4;
+
+	/**
+	 * Each mapped chunk holds at most 2^DEFAULT_CHUNK_BITS values (1 GB of ints or floats)
+	 */
+	static final int DEFAULT_CHUNK_BITS = 28;
+
+	private final File file;
+
+	private final int numCubes;
+	private final int numValues;
+	private final int numSections;
+
+	private final int chunkBits;
+	private final int chunkMask;
+	private final IntBuffer[] offsets;
+	private final IntBuffer[] sects;
+	private final FloatBuffer[] dists;
+	private final int[] isCubeInsideFaultPolygon;
+
+	private MappedCubeAssociationCache(File file, int chunkBits) throws IOException {
+		Preconditions.checkArgument(chunkBits > 0 && chunkBits <= DEFAULT_CHUNK_BITS, "Bad chunk bits: %s", chunkBits);
+		this.file = file;
+		this.chunkBits = chunkBits;
+		this.chunkMask = (1 << chunkBits) - 1;
+		try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+			long len = channel.size();
+			Preconditions.checkState(len >= HEADER_BYTES, "file is too small: %s", file.getAbsolutePath());
+			MappedByteBuffer header = channel.map(MapMode.READ_ONLY, 0l, HEADER_BYTES);
+			int magic = header.getInt();
+			Preconditions.checkState(magic == MAGIC, "Not a cube association CSR cache file: %s", file.getAbsolutePath());
+			int version = header.getInt();
+			Preconditions.checkState(version == VERSION, "Unsupported cube association cache version (%s) in %s, "
+					+ "regenerate it from the legacy cache files", version, file.getAbsolutePath());
+			numCubes = header.getInt();
+			numValues = header.getInt();
+			int numCubesPerDepth = header.getInt();
+			numSections = header.getInt();
+			Preconditions.checkState(numCubes > 0 && numValues >= 0 && numCubesPerDepth > 0 && numSections >= 0,
+					"Bad header: numCubes=%s, numValues=%s, numCubesPerDepth=%s, numSections=%s",
+					numCubes, numValues, numCubesPerDepth, numSections);
+
+			long offsetsStart = HEADER_BYTES;
+			long sectsStart = offsetsStart + 4l*(numCubes+1l);
+			long distsStart = sectsStart + 4l*numValues;
+			long polyStart = distsStart + 4l*numValues;
+			long expectedLen = polyStart + 4l*numCubesPerDepth;
+			Preconditions.checkState(len == expectedLen, "Unexpected file size: %s != %s", len, expectedLen);
+
+			offsets = mapInts(channel, offsetsStart, numCubes+1l);
+			sects = mapInts(channel, sectsStart, numValues);
+			dists = mapFloats(channel, distsStart, numValues);
+			// this one is small (one value per cube per depth) and accessed often, keep it on heap
+			IntBuffer polyBuff = channel.map(MapMode.READ_ONLY, polyStart, expectedLen-polyStart).asIntBuffer();
+			isCubeInsideFaultPolygon = new int[numCubesPerDepth];
+			polyBuff.get(isCubeInsideFaultPolygon);
+		}
+		// mappings remain valid after the channel is closed
+	}
+
+	private int getNumChunks(long numVals) {
+		return (int)((numVals + chunkMask) >>> chunkBits);
+	}
+
+	private IntBuffer[] mapInts(FileChannel channel, long start, long numVals) throws IOException {
+		IntBuffer[] ret = new IntBuffer[getNumChunks(numVals)];
+		for (int i=0; i<ret.length; i++) {
+			long chunkStart = (long)i << chunkBits;
+			long chunkLen = Long.min(numVals - chunkStart, 1l << chunkBits);
+			ret[i] = channel.map(MapMode.READ_ONLY, start + 4l*chunkStart, 4l*chunkLen).asIntBuffer();
+		}
+		return ret;
+	}
+
+	private FloatBuffer[] mapFloats(FileChannel channel, long start, long numVals) throws IOException {
+		FloatBuffer[] ret = new FloatBuffer[getNumChunks(numVals)];
+		for (int i=0; i<ret.length; i++) {
+			long chunkStart = (long)i << chunkBits;
+			long chunkLen = Long.min(numVals - chunkStart, 1l << chunkBits);
+			ret[i] = channel.map(MapMode.READ_ONLY, start + 4l*chunkStart, 4l*chunkLen).asFloatBuffer();
+		}
+		return ret;
+	}
+
+	private int getOffset(int cubeIndex) {
+		return offsets[cubeIndex >>> chunkBits].get(cubeIndex & chunkMask);
+	}
+
+	/**
+	 * Memory maps the given CSR cache file
+	 *
+	 * @param file
+	 * @return
+	 * @throws IOException
+	 */
+	public static MappedCubeAssociationCache load(File file) throws IOException {
+		Preconditions.checkNotNull(file, "File cannot be null!");
+		Preconditions.checkArgument(file.exists(), "File doesn't exist: %s", file.getAbsolutePath());
+		return new MappedCubeAssociationCache(file, DEFAULT_CHUNK_BITS);
+	}
+
+	/**
+	 * Memory maps the given CSR cache file with chunks of at most 2^chunkBits values (for tests)
+	 */
+	static MappedCubeAssociationCache load(File file, int chunkBits) throws IOException {
+		Preconditions.checkNotNull(file, "File cannot be null!");
+		Preconditions.checkArgument(file.exists(), "File doesn't exist: %s", file.getAbsolutePath());
+		return new MappedCubeAssociationCache(file, chunkBits);
+	}
+
+	public int getNumCubes() {
+		return numCubes;
+	}
+
+	public int getNumValues() {
+		return numValues;
+	}
+
+	/**
+	 * @return one more than the largest section index in this cache
+	 */
+	public int getNumSections() {
+		return numSections;
+	}
+
+	/**
+	 * Checks that this cache is consistent with the given number of cubes and sections
+	 *
+	 * @param numCubes expected number of cubes
+	 * @param numCubesPerDepth expected number of cubes at each depth
+	 * @param numSections number of sections in the rupture set
+	 * @throws IllegalStateException if inconsistent
+	 */
+	public void validate(int numCubes, int numCubesPerDepth, int numSections) {
+		Preconditions.checkState(this.numCubes == numCubes, "Cube count mismatch for %s: %s != %s",
+				file.getAbsolutePath(), this.numCubes, numCubes);
+		Preconditions.checkState(isCubeInsideFaultPolygon.length == numCubesPerDepth,
+				"Cubes per depth mismatch for %s: %s != %s",
+				file.getAbsolutePath(), isCubeInsideFaultPolygon.length, numCubesPerDepth);
+		validate(numSections);
+	}
+
+	/**
+	 * Checks that all section indexes in this cache are valid for a rupture set with the given number of sections
+	 *
+	 * @param numSections number of sections in the rupture set
+	 * @throws IllegalStateException if inconsistent
+	 */
+	public void validate(int numSections) {
+		Preconditions.checkState(this.numSections <= numSections,
+				"%s references section %s, but the rupture set only has %s sections",
+				file.getAbsolutePath(), this.numSections-1, numSections);
+	}
+
+	/**
+	 * Checks that this cache is consistent with the legacy {@link MatrixIO} cache files that it would have been
+	 * converted from. Only file headers and sizes are read. Missing legacy files are skipped.
+	 *
+	 * @param sectDistForCubeCacheFile
+	 * @param sectInCubeCacheFile
+	 * @param cubeInsidePolyCacheFile
+	 * @throws IllegalStateException if any legacy file is newer than this cache or inconsistent with it
+	 * @throws IOException
+	 */
+	public void validateAgainstLegacy(File sectDistForCubeCacheFile, File sectInCubeCacheFile,
+			File cubeInsidePolyCacheFile) throws IOException {
+		// list files: int list size, then for each cube an int array size followed by the values
+		long expectedListLen = 4l*(1l + numCubes + numValues);
+		for (File legacyFile : new File[] { sectDistForCubeCacheFile, sectInCubeCacheFile }) {
+			if (legacyFile == null || !legacyFile.exists())
+				continue;
+			checkNotNewer(legacyFile);
+			Preconditions.checkState(legacyFile.length() == expectedListLen,
+					"Legacy cache file %s has size %s, expected %s for %s",
+					legacyFile.getAbsolutePath(), legacyFile.length(), expectedListLen, file.getAbsolutePath());
+			try (DataInputStream in = new DataInputStream(new FileInputStream(legacyFile))) {
+				int size = in.readInt();
+				Preconditions.checkState(size == numCubes, "Legacy cache file %s has %s cubes, but %s has %s",
+						legacyFile.getAbsolutePath(), size, file.getAbsolutePath(), numCubes);
+			}
+		}
+		if (cubeInsidePolyCacheFile != null && cubeInsidePolyCacheFile.exists()) {
+			checkNotNewer(cubeInsidePolyCacheFile);
+			long expectedLen = 4l*isCubeInsideFaultPolygon.length;
+			Preconditions.checkState(cubeInsidePolyCacheFile.length() == expectedLen,
+					"Legacy cache file %s has size %s, expected %s for %s", cubeInsidePolyCacheFile.getAbsolutePath(),
+					cubeInsidePolyCacheFile.length(), expectedLen, file.getAbsolutePath());
+		}
+	}
+
+	private void checkNotNewer(File legacyFile) {
+		Preconditions.checkState(legacyFile.lastModified() <= file.lastModified(),
+				"Legacy cache file %s is newer than %s, regenerate it", legacyFile.getAbsolutePath(), file.getAbsolutePath());
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return number of sections associated with the given cube
+	 */
+	public int getNumSectsInCube(int cubeIndex) {
+		return getOffset(cubeIndex+1) - getOffset(cubeIndex);
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return offset of the first association for the given cube in the value arrays, for use with
+	 * {@link #getSect(int)} and {@link #getSectDist(int)}
+	 */
+	public int getCubeOffset(int cubeIndex) {
+		return getOffset(cubeIndex);
+	}
+
+	/**
+	 * @param valueIndex index into the value arrays, see {@link #getCubeOffset(int)}
+	 * @return section index at the given position
+	 */
+	public int getSect(int valueIndex) {
+		return sects[valueIndex >>> chunkBits].get(valueIndex & chunkMask);
+	}
+
+	/**
+	 * @param valueIndex index into the value arrays, see {@link #getCubeOffset(int)}
+	 * @return section distance at the given position
+	 */
+	public float getSectDist(int valueIndex) {
+		return dists[valueIndex >>> chunkBits].get(valueIndex & chunkMask);
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return array of section indexes associated with the given cube, decoded from the mapped file. Use
+	 * {@link #getCubeOffset(int)} and {@link #getSect(int)} in loops to avoid the allocation.
+	 */
+	public int[] getSectsInCube(int cubeIndex) {
+		int start = getOffset(cubeIndex);
+		int[] ret = new int[getOffset(cubeIndex+1) - start];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = getSect(start+i);
+		return ret;
+	}
+
+	/**
+	 * @param cubeIndex
+	 * @return array of distances to each section associated with the given cube, decoded from the mapped file. Use
+	 * {@link #getCubeOffset(int)} and {@link #getSectDist(int)} in loops to avoid the allocation.
+	 */
+	public float[] getSectDistsForCube(int cubeIndex) {
+		int start = getOffset(cubeIndex);
+		float[] ret = new float[getOffset(cubeIndex+1) - start];
+		for (int i=0; i<ret.length; i++)
+			ret[i] = getSectDist(start+i);
+		return ret;
+	}
+
+	/**
+	 * @return lazy list view with the same contents as that returned by {@link MatrixIO#intArraysListFromFile(File)}
+	 * for the sectInCubeCache. Arrays are decoded on each call to get and should not be retained.
+	 */
+	public List<int[]> getSectInCubeList() {
+		return new SectInCubeList();
+	}
+
+	/**
+	 * @return lazy list view with the same contents as that returned by {@link MatrixIO#floatArraysListFromFile(File)}
+	 * for the sectDistForCubeCache. Arrays are decoded on each call to get and should not be retained.
+	 */
+	public List<float[]> getSectDistForCubeList() {
+		return new SectDistForCubeList();
+	}
+
+	/**
+	 * @param sectInCubeList
+	 * @param sectDistForCubeList
+	 * @return the cache backing the given lists if both are views returned by {@link #getSectInCubeList()} and
+	 * {@link #getSectDistForCubeList()} of the same cache, otherwise null
+	 */
+	public static MappedCubeAssociationCache getBackingCache(List<int[]> sectInCubeList, List<float[]> sectDistForCubeList) {
+		if (sectInCubeList instanceof SectInCubeList && sectDistForCubeList instanceof SectDistForCubeList) {
+			MappedCubeAssociationCache cache = ((SectInCubeList)sectInCubeList).getCache();
+			if (cache == ((SectDistForCubeList)sectDistForCubeList).getCache())
+				return cache;
+		}
+		return null;
+	}
+
+	/**
+	 * @return inside fault polygon flags (1 if inside, 0 otherwise) for each cube at a single depth
+	 */
+	public int[] getIsCubeInsideFaultPolygon() {
+		return isCubeInsideFaultPolygon;
+	}
+
+	private class SectInCubeList extends AbstractList<int[]> implements RandomAccess {
+
+		private MappedCubeAssociationCache getCache() {
+			return MappedCubeAssociationCache.this;
+		}
+
+		@Override
+		public int[] get(int index) {
+			return getSectsInCube(index);
+		}
+
+		@Override
+		public int size() {
+			return numCubes;
+		}
+
+	}
+
+	private class SectDistForCubeList extends AbstractList<float[]> implements RandomAccess {
+
+		private MappedCubeAssociationCache getCache() {
+			return MappedCubeAssociationCache.this;
+		}
+
+		@Override
+		public float[] get(int index) {
+			return getSectDistsForCube(index);
+		}
+
+		@Override
+		public int size() {
+			return numCubes;
+		}
+
+	}
+
+	/**
+	 * Writes the given cube association data to a CSR cache file. The file is first written to a temporary file
+	 * in the same directory and then atomically moved into place, so that concurrent readers (or writers) never
+	 * see a partial file.
+	 *
+	 * @param sectInCubeList
+	 * @param sectDistForCubeList
+	 * @param isCubeInsideFaultPolygon
+	 * @param file
+	 * @throws IOException
+	 */
+	public static void write(List<int[]> sectInCubeList, List<float[]> sectDistForCubeList,
+			int[] isCubeInsideFaultPolygon, File file) throws IOException {
+		Preconditions.checkArgument(sectInCubeList.size() == sectDistForCubeList.size(),
+				"List sizes inconsistent: %s != %s", sectInCubeList.size(), sectDistForCubeList.size());
+		int numCubes = sectInCubeList.size();
+		long numValues = 0;
+		int numSections = 0;
+		for (int c=0; c<numCubes; c++) {
+			int[] sects = sectInCubeList.get(c);
+			Preconditions.checkState(sects.length == sectDistForCubeList.get(c).length,
+					"Section and distance array sizes inconsistent for cube %s", c);
+			numValues += sects.length;
+			for (int sect : sects) {
+				Preconditions.checkState(sect >= 0, "Bad section index for cube %s: %s", c, sect);
+				numSections = Integer.max(numSections, sect+1);
+			}
+		}
+		Preconditions.checkState(numValues <= Integer.MAX_VALUE, "Too many values for CSR format: %s", numValues);
+
+		File dir = file.getAbsoluteFile().getParentFile();
+		File tempFile = File.createTempFile(file.getName(), ".tmp", dir);
+		try {
+			DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(numCubes);
+			out.writeInt((int)numValues);
+			out.writeInt(isCubeInsideFaultPolygon.length);
+			out.writeInt(numSections);
+			int offset = 0;
+			out.writeInt(offset);
+			for (int c=0; c<numCubes; c++) {
+				offset += sectInCubeList.get(c).length;
+				out.writeInt(offset);
+			}
+			for (int c=0; c<numCubes; c++)
+				for (int sect : sectInCubeList.get(c))
+					out.writeInt(sect);
+			for (int c=0; c<numCubes; c++)
+				for (float dist : sectDistForCubeList.get(c))
+					out.writeFloat(dist);
+			for (int val : isCubeInsideFaultPolygon)
+				out.writeInt(val);
+			out.close();
+
+			Files.move(tempFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		} finally {
+			if (tempFile.exists())
+				tempFile.delete();
+		}
+	}
+
+	/**
+	 * Converts legacy {@link MatrixIO} cache files to a single CSR cache file
+	 *
+	 * @param sectDistForCubeCacheFile
+	 * @param sectInCubeCacheFile
+	 * @param cubeInsidePolyCacheFile
+	 * @param outputFile
+	 * @throws IOException
+	 */
+	public static void convert(File sectDistForCubeCacheFile, File sectInCubeCacheFile,
+			File cubeInsidePolyCacheFile, File outputFile) throws IOException {
+		List<float[]> sectDistForCubeList = MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFile);
+		List<int[]> sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeCacheFile);
+		int[] isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(cubeInsidePolyCacheFile);
+		write(sectInCubeList, sectDistForCubeList, isCubeInsideFaultPolygon, outputFile);
+	}
+
+	public static void main(String[] args) throws IOException {
+		if (args.length != 1) {
+			System.err.println("USAGE: "+MappedCubeAssociationCache.class.getName()+" <cache-dir>");
+			System.exit(2);
+		}
+		File cacheDir = new File(args[0]);
+		File outputFile = new File(cacheDir, DEFAULT_FILE_NAME);
+		convert(new File(cacheDir, "sectDistForCubeCache"), new File(cacheDir, "sectInCubeCache"),
+				new File(cacheDir, "cubeInsidePolyCache"), outputFile);
+		MappedCubeAssociationCache cache = load(outputFile);
+		System.out.println("Wrote "+outputFile.getAbsolutePath()+" with "+cache.getNumCubes()
+				+" cubes and "+cache.getNumValues()+" associations");
+	}
+
+}
@@ -83,6 +83,7 @@ import scratch.UCERF3.erf.ETAS.ETAS_SimAnalysisTools;
 import scratch.UCERF3.erf.ETAS.ETAS_SimulationMetadata;
 import scratch.UCERF3.erf.ETAS.ETAS_Simulator;
 import scratch.UCERF3.erf.ETAS.FaultSystemSolutionERF_ETAS;
+import scratch.UCERF3.erf.ETAS.MappedCubeAssociationCache;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.ETAS_ParameterList;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.U3ETAS_MaxPointSourceMagParam;
 import scratch.UCERF3.erf.ETAS.ETAS_Params.U3ETAS_StatewideCatalogCompletenessParam;
@@ -155,6 +156,14 @@ public class ETAS_Launcher {
 	
 	private boolean dateLastDebug = false;
 	
+	// if true, catalog output is handed off to a dedicated writer thread
+	private boolean asyncOutput = false;
+	private int outputQueueSize = ETAS_OutputPipeline.DEFAULT_QUEUE_SIZE;
+	private ETAS_OutputPipeline outputPipeline;
+	
+	// if positive, simulations will be checkpointed at this interval and resumed if restarted
+	private long checkpointIntervalMillis = 0l;
+	
 	public ETAS_Launcher(ETAS_Config config) throws IOException {
 		this(config, true);
 	}
@@ -592,6 +601,36 @@ public class ETAS_Launcher {
 		this.tempResultsDir = tempResultsDir;
 	}
 	
+	/**
+	 * If enabled, completed catalogs are written (and consolidated into binary output files, if configured) by
+	 * a dedicated writer thread so that calculation threads don't block on output I/O.
+	 * 
+	 * @param asyncOutput
+	 */
+	public void setAsyncOutput(boolean asyncOutput) {
+		this.asyncOutput = asyncOutput;
+	}
+	
+	/**
+	 * @param outputQueueSize maximum number of completed catalogs waiting to be written when asynchronous
+	 * output is enabled. Calculation threads will block if the queue is full.
+	 */
+	public void setOutputQueueSize(int outputQueueSize) {
+		Preconditions.checkArgument(outputQueueSize > 0, "Output queue size must be positive");
+		this.outputQueueSize = outputQueueSize;
+	}
+	
+	/**
+	 * If positive, the progress of each simulation will be checkpointed to its temporary results directory at this
+	 * interval, and partially completed simulations will be resumed from their checkpoint when restarted
+	 * (e.g., after the job is preempted or runs out of wall time).
+	 * 
+	 * @param checkpointIntervalMillis checkpoint interval in milliseconds, or <= 0 to disable
+	 */
+	public void setCheckpointInterval(long checkpointIntervalMillis) {
+		this.checkpointIntervalMillis = checkpointIntervalMillis;
+	}
+	
 	File getTempResultsDir(int index) {
 		return getResultsDir(tempResultsDir == null ? resultsDir : tempResultsDir, index);
 	}
@@ -768,6 +807,26 @@ public class ETAS_Launcher {
 	}
 	
 	private synchronized void checkLoadCaches(FaultSystemSolutionERF_ETAS erf) throws IOException {
+		if (fractionSrcAtPointList == null) {
+			File cacheDir = config.getCacheDir();
+			File csrCacheFile = new File(cacheDir, MappedCubeAssociationCache.DEFAULT_FILE_NAME);
+			if (csrCacheFile.exists()) {
+				// memory mapped, shared between all JVMs on this node through the page cache
+				debug("mapping cache from "+csrCacheFile.getAbsolutePath()+" ("+getMemoryDebug()+")");
+				MappedCubeAssociationCache csrCache = MappedCubeAssociationCache.load(csrCacheFile);
+				try {
+					csrCache.validate(erf.getSolution().getRupSet().getNumSections());
+					csrCache.validateAgainstLegacy(new File(cacheDir, "sectDistForCubeCache"),
+							new File(cacheDir, "sectInCubeCache"), new File(cacheDir, "cubeInsidePolyCache"));
+					fractionSrcAtPointList = csrCache.getSectDistForCubeList();
+					srcAtPointList = csrCache.getSectInCubeList();
+					isCubeInsideFaultPolygon = csrCache.getIsCubeInsideFaultPolygon();
+					debug("done mapping caches ("+getMemoryDebug()+")");
+				} catch (IllegalStateException e) {
+					debug("WARNING: not using mapped cache: "+e.getMessage());
+				}
+			}
+		}
 		if (fractionSrcAtPointList == null) {
 			File cacheDir = config.getCacheDir();
 			File fractionSrcAtPointListFile = new File(cacheDir, "sectDistForCubeCache");
@@ -785,7 +844,8 @@ public class ETAS_Launcher {
 			srcAtPointList = MatrixIO.intArraysListFromFile(srcAtPointListFile);
 			debug("loading cache from "+srcAtPointListFile.getAbsolutePath()+" ("+getMemoryDebug()+")");
 			isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(isCubeInsideFaultPolygonFile);
-			debug("done loading caches ("+getMemoryDebug()+")");
+			debug("done loading caches ("+getMemoryDebug()+"), run "+MappedCubeAssociationCache.class.getName()
+					+" on the cache directory to share them between processes through memory mapping");
 		}
 		if (longTermMFDs == null) {
 			debug("building long-term MFDs...");
@@ -843,6 +903,9 @@ public class ETAS_Launcher {
 						}
 					}
 				}
+				if (outputPipeline != null)
+					// still needs to be consolidated
+					outputPipeline.submit(index, resultsDir, null);
 				return index;
 			}
 			
@@ -927,45 +990,24 @@ public class ETAS_Launcher {
 						meta = ETAS_Simulator.runETAS_Simulation(tempResultsDir, (FaultSystemSolutionERF_ETAS)erf, griddedRegion,
 								triggers, histQkList, config.isIncludeSpontaneous(), config.isIncludeIndirectTriggering(),
 								config.getGridSeisDiscr(), simulationName, randSeed,
-								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs);
+								fractionSrcAtPointList, srcAtPointList, isCubeInsideFaultPolygon, params, cubeParams, longTermMFDs,
+								checkpointIntervalMillis);
 					}
 					meta = meta.getModCatalogIndex(index);
 					
 					debug("completed "+index+" ("+meta.totalNumRuptures+" ruptures)");
-					File asciiFile = new File(tempResultsDir, "simulatedEvents.txt");
-					ETAS_Catalog catalog = null;
-					waitOnDirCreation(resultsDir, 5, 2000);
-					if (config.isBinaryOutput()) {
-						// convert to binary
-						catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
-						catalog.setSimulationMetadata(meta);
-						File binaryFile = new File(resultsDir, "simulatedEvents.bin");
-						ETAS_CatalogIO.writeCatalogBinary(binaryFile, catalog);
-						// make sure that the binary file really succeeded before deleting ascii
-						if (binaryFile.length() > 0l)
-							asciiFile.delete();
-						else
-							binaryFile.delete();
-						debug("completed binary output "+index);
-					} else if (!tempResultsDir.equals(resultsDir)) {
-						// copy ASCII over
-						File newAscii = new File(resultsDir, asciiFile.getName());
-						Files.copy(asciiFile, newAscii);
-						File infoString = new File(tempResultsDir, "infoString.txt");
-						if (infoString.exists())
-							Files.copy(infoString, new File(resultsDir, infoString.getName()));
-						// make sure that the copy really succeeded before deleting the original
-						if (newAscii.length() > 0l) {
-							asciiFile.delete();
-							asciiFile = newAscii;
-						} else {
-							newAscii.delete();
-						}
-					}
-					if (binaryPreStage) {
-						if (catalog == null)
-							catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
-						preStage(index, catalog, resultsDir);
+					if (outputPipeline != null) {
+						// hand off to the writer thread and move on to the next simulation
+						final ETAS_SimulationMetadata outputMeta = meta;
+						outputPipeline.submit(index, resultsDir, new ETAS_OutputPipeline.OutputTask() {
+							
+							@Override
+							public void write() throws IOException {
+								writeOutput(index, outputMeta, tempResultsDir, resultsDir, binaryPreStage);
+							}
+						});
+					} else {
+						writeOutput(index, meta, tempResultsDir, resultsDir, binaryPreStage);
 					}
 					success = true;
 				} catch (Throwable t) {
@@ -1013,6 +1055,45 @@ public class ETAS_Launcher {
 		
 	}
 	
+	private void writeOutput(int index, ETAS_SimulationMetadata meta, File tempResultsDir, File resultsDir,
+			boolean binaryPreStage) throws IOException {
+		File asciiFile = new File(tempResultsDir, "simulatedEvents.txt");
+		ETAS_Catalog catalog = null;
+		waitOnDirCreation(resultsDir, 5, 2000);
+		if (config.isBinaryOutput()) {
+			// convert to binary
+			catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
+			catalog.setSimulationMetadata(meta);
+			File binaryFile = new File(resultsDir, "simulatedEvents.bin");
+			ETAS_CatalogIO.writeCatalogBinary(binaryFile, catalog);
+			// make sure that the binary file really succeeded before deleting ascii
+			if (binaryFile.length() > 0l)
+				asciiFile.delete();
+			else
+				binaryFile.delete();
+			debug("completed binary output "+index);
+		} else if (!tempResultsDir.equals(resultsDir)) {
+			// copy ASCII over
+			File newAscii = new File(resultsDir, asciiFile.getName());
+			Files.copy(asciiFile, newAscii);
+			File infoString = new File(tempResultsDir, "infoString.txt");
+			if (infoString.exists())
+				Files.copy(infoString, new File(resultsDir, infoString.getName()));
+			// make sure that the copy really succeeded before deleting the original
+			if (newAscii.length() > 0l) {
+				asciiFile.delete();
+				asciiFile = newAscii;
+			} else {
+				newAscii.delete();
+			}
+		}
+		if (binaryPreStage) {
+			if (catalog == null)
+				catalog = ETAS_CatalogIO.loadCatalog(asciiFile);
+			preStage(index, catalog, resultsDir);
+		}
+	}
+	
 	public static long getMaxMemMB() {
 		return Runtime.getRuntime().maxMemory() / 1024 / 1024;
 	}
@@ -1121,6 +1202,13 @@ public class ETAS_Launcher {
 		
 		debug("starting "+tasks.size()+" simulations with "+numThreads+" threads");
 		
+		if (asyncOutput) {
+			debug(DebugLevel.FINE, "using asynchronous output with queueSize="+outputQueueSize);
+			outputPipeline = new ETAS_OutputPipeline(binaryWriter, outputQueueSize);
+			// consolidation is handled by the pipeline
+			binaryWriter = null;
+		}
+		
 		if (numThreads > 1) {
 			ExecutorService exec = getExecutor(numThreads);
 			
@@ -1180,6 +1268,17 @@ public class ETAS_Launcher {
 			}
 		}
 		
+		if (outputPipeline != null) {
+			debug(DebugLevel.FINE, "waiting on asynchronous output");
+			try {
+				outputPipeline.close();
+			} catch (IOException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			} finally {
+				outputPipeline = null;
+			}
+		}
+		
 		watch.stop();
 		double secs = watch.elapsed(TimeUnit.MILLISECONDS)/1000d;
 		double mins = secs / 60d;
@@ -1272,8 +1371,43 @@ public class ETAS_Launcher {
 		dateLastDebugOption.setRequired(false);
 		ops.addOption(dateLastDebugOption);
 		
+		Option asyncOutputOption = new Option("ao", "async-output", false,
+				"Flag to write catalog output from a dedicated writer thread, so that calculation threads move "
+				+ "directly on to the next simulation. Useful for many short simulations.");
+		asyncOutputOption.setRequired(false);
+		ops.addOption(asyncOutputOption);
+		
+		ops.addOption(createOutputQueueSizeOption());
+		
+		ops.addOption(createCheckpointOption());
+		
 		return ops;
 	}
+	
+	static Option createOutputQueueSizeOption() {
+		Option queueSizeOption = new Option("oq", "output-queue-size", true,
+				"Maximum number of completed catalogs waiting to be written with --async-output (default: "
+				+ETAS_OutputPipeline.DEFAULT_QUEUE_SIZE+")");
+		queueSizeOption.setRequired(false);
+		return queueSizeOption;
+	}
+	
+	static Option createCheckpointOption() {
+		Option checkpointOption = new Option("ci", "checkpoint-interval", true,
+				"Interval in minutes at which the progress of each simulation is checkpointed. If supplied, "
+				+ "partially completed simulations will be resumed from their checkpoint when restarted. Only applies to "
+				+ "simulations with fault system sources.");
+		checkpointOption.setRequired(false);
+		return checkpointOption;
+	}
+	
+	static long parseCheckpointInterval(CommandLine cmd) {
+		if (!cmd.hasOption("checkpoint-interval"))
+			return 0l;
+		double minutes = Double.parseDouble(cmd.getOptionValue("checkpoint-interval"));
+		Preconditions.checkArgument(minutes > 0, "Checkpoint interval must be positive");
+		return (long)(minutes*60d*1000d);
+	}
 
 	public static void main(String[] args) throws IOException {
 		if (args.length == 1 && args[0].equals("--hardcoded")) {
@@ -1320,6 +1454,10 @@ public class ETAS_Launcher {
 		ETAS_Launcher launcher = new ETAS_Launcher(config);
 		
 		launcher.dateLastDebug = cmd.hasOption("date-last-debug");
+		launcher.setAsyncOutput(cmd.hasOption("async-output"));
+		if (cmd.hasOption("output-queue-size"))
+			launcher.setOutputQueueSize(Integer.parseInt(cmd.getOptionValue("output-queue-size")));
+		launcher.setCheckpointInterval(parseCheckpointInterval(cmd));
 		
 		if (cmd.hasOption("threads")) {
 			int numThreads = Integer.parseInt(cmd.getOptionValue("threads"));
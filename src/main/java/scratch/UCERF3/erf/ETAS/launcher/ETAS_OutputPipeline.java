@@ -0,0 +1,194 @@
+package scratch.UCERF3.erf.ETAS.launcher;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.opensha.commons.util.ExceptionUtils;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * Dedicated writer thread for ETAS catalog output. Simulation threads hand off completed catalogs (conversion
+ * to binary, copying out of the temp directory, pre-staging, and consolidation through the {@link ETAS_BinaryWriter})
+ * and immediately move on to the next simulation rather than blocking on I/O.
+ * <br><br>
+ * The queue is bounded: if the writer falls behind, {@link #submit(int, File, OutputTask)} blocks until space is
+ * available, which limits the number of completed catalogs held in memory. Queued items are written in batches, and
+ * the binary writer is flushed once per batch rather than once per catalog.
+ * <br><br>
+ * If any output fails, the writer thread discards everything still queued and exits, and the failure is rethrown
+ * by the next (or any currently blocked) call to {@link #submit(int, File, OutputTask)} and by {@link #close()}.
+ *
+ * @author kevin
+ *
+ */
+class ETAS_OutputPipeline implements Closeable {
+
+	public static final int DEFAULT_QUEUE_SIZE = 64;
+
+	// how often blocked submitters check for a writer failure
+	private static final long OFFER_POLL_MILLIS = 100l;
+
+	/**
+	 * Output action for a single catalog, executed on the writer thread
+	 *
+	 * @author kevin
+	 *
+	 */
+	public interface OutputTask {
+		public void write() throws IOException;
+	}
+
+	private static class QueueItem {
+		private final int index;
+		private final File resultsDir;
+		private final OutputTask task;
+
+		public QueueItem(int index, File resultsDir, OutputTask task) {
+			this.index = index;
+			this.resultsDir = resultsDir;
+			this.task = task;
+		}
+	}
+
+	// signals the writer thread to exit
+	private static final QueueItem END = new QueueItem(-1, null, null);
+
+	private ETAS_BinaryWriter binaryWriter;
+	private BlockingQueue<QueueItem> queue;
+	private int maxBatchSize;
+	private Thread writerThread;
+
+	private volatile Throwable failure;
+	private volatile int numWritten = 0;
+	private boolean closed = false;
+
+	/**
+	 * @param binaryWriter binary writer into which completed catalogs will be consolidated, or null
+	 * @param queueSize maximum number of completed catalogs waiting to be written
+	 */
+	public ETAS_OutputPipeline(ETAS_BinaryWriter binaryWriter, int queueSize) {
+		Preconditions.checkArgument(queueSize > 0, "Queue size must be positive");
+		this.binaryWriter = binaryWriter;
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.maxBatchSize = queueSize;
+
+		writerThread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				runWriter();
+			}
+		}, "ETAS-output-writer");
+		writerThread.setDaemon(true);
+		writerThread.start();
+	}
+
+	private void runWriter() {
+		List<QueueItem> batch = new ArrayList<>(maxBatchSize);
+		boolean done = false;
+		while (!done) {
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) {
+				fail(e);
+				return;
+			}
+			queue.drainTo(batch, maxBatchSize-1);
+			for (QueueItem item : batch) {
+				if (item == END) {
+					done = true;
+					break;
+				}
+				try {
+					if (item.task != null)
+						item.task.write();
+					if (binaryWriter != null)
+						binaryWriter.processCatalog(item.index, item.resultsDir);
+					numWritten++;
+				} catch (Throwable t) {
+					System.err.println("Output failed for catalog "+item.index+": "+t);
+					t.printStackTrace();
+					fail(t);
+					return;
+				}
+			}
+			batch.clear();
+			if (binaryWriter != null) {
+				try {
+					binaryWriter.flushWriters();
+				} catch (Throwable t) {
+					fail(t);
+					return;
+				}
+			}
+		}
+	}
+
+	private void fail(Throwable t) {
+		failure = t;
+		// nothing else will be written, free up the queue so that nobody waits on it
+		queue.clear();
+	}
+
+	/**
+	 * Queues output for the given catalog, blocking if the queue is full
+	 *
+	 * @param index catalog index
+	 * @param resultsDir final results directory for this catalog, used for binary consolidation
+	 * @param task output task to be executed before binary consolidation, or null if none is needed
+	 */
+	public void submit(int index, File resultsDir, OutputTask task) {
+		Preconditions.checkState(!closed, "Pipeline already closed");
+		checkFailure();
+		QueueItem item = new QueueItem(index, resultsDir, task);
+		try {
+			// don't block indefinitely, the writer stops taking items if it fails
+			while (!queue.offer(item, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS))
+				checkFailure();
+			// the item may have been discarded if the writer failed while we were queueing it
+			checkFailure();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		}
+	}
+
+	private void checkFailure() {
+		if (failure != null)
+			throw new IllegalStateException("Asynchronous catalog output failed", failure);
+	}
+
+	/**
+	 * @return number of catalogs which have been fully written so far
+	 */
+	public int getNumWritten() {
+		return numWritten;
+	}
+
+	/**
+	 * Waits for all queued output to be written. Any exception encountered by the writer is rethrown here.
+	 * The binary writer (if any) is not closed.
+	 */
+	@Override
+	public void close() throws IOException {
+		if (!closed) {
+			closed = true;
+			try {
+				// the writer thread will have already exited if it failed
+				while (writerThread.isAlive() && !queue.offer(END, OFFER_POLL_MILLIS, TimeUnit.MILLISECONDS))
+					continue;
+				writerThread.join();
+			} catch (InterruptedException e) {
+				throw ExceptionUtils.asRuntimeException(e);
+			}
+		}
+		checkFailure();
+	}
+
+}
@@ -50,6 +50,10 @@ public class MPJ_ETAS_Launcher extends MPJTaskCalculator {
 			this.launcher.setDebugLevel(DebugLevel.FINE);
 		else
 			this.launcher.setDebugLevel(DebugLevel.INFO);
+		this.launcher.setAsyncOutput(cmd.hasOption("async-output"));
+		if (cmd.hasOption("output-queue-size"))
+			this.launcher.setOutputQueueSize(Integer.parseInt(cmd.getOptionValue("output-queue-size")));
+		this.launcher.setCheckpointInterval(ETAS_Launcher.parseCheckpointInterval(cmd));
 		
 		if (rank == 0 && config.hasBinaryOutputFilters()) {
 			binaryWriter = new ETAS_BinaryWriter(config.getOutputDir(), config);
@@ -243,6 +247,16 @@ public class MPJ_ETAS_Launcher extends MPJTaskCalculator {
 		cleanOption.setRequired(false);
 		ops.addOption(cleanOption);
 		
+		Option asyncOutputOption = new Option("ao", "async-output", false,
+				"Flag to write catalog output from a dedicated writer thread, so that calculation threads move "
+				+ "directly on to the next simulation. Useful for many short simulations.");
+		asyncOutputOption.setRequired(false);
+		ops.addOption(asyncOutputOption);
+		
+		ops.addOption(ETAS_Launcher.createOutputQueueSizeOption());
+		
+		ops.addOption(ETAS_Launcher.createCheckpointOption());
+		
 		return ops;
 	}
 
@@ -3,6 +3,7 @@ package scratch.UCERF3.erf;
 import java.awt.HeadlessException;
 import java.io.File;
 import java.io.FileWriter;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -127,6 +128,12 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 	// map of weight to each ProbabilityModelsCalc instance. null value means Poisson
 	Map<ProbabilityModelsCalc, Double> prefBlendProbModelsCalc;
 	
+	// U3 probability gains (before any aftershock correction) indexed by fault system rupture, computed in parallel
+	// before sources are built or updated; only set for U3_BPT and U3_PREF_BLEND if batch gains are enabled
+	private double[] u3ProbGains;
+	// number of threads for batch U3 probability gain calculations, 0 to compute them one rupture at a time
+	private int probGainThreads = 0;
+	
 	/**
 	 * This creates the ERF from the given FaultSystemSolution.  FileParameter is removed 
 	 * from the adjustable parameter list (to prevent changes after instantiation).
@@ -212,6 +219,29 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 		}
 	}
 	
+	/**
+	 * Enables batch calculation of U3 BPT and preferred blend probability gains for all ruptures (or all that need
+	 * updating) at once before sources are built or updated, using the given number of threads. Gains are identical
+	 * to those computed one rupture at a time. Batch threads are shared by all calculators in this JVM, so callers
+	 * updating multiple ERFs in parallel should divide their threads among them. Disabled (0) by default.
+	 * 
+	 * @param threads number of threads, or 0 to compute gains one rupture at a time
+	 */
+	public void setProbGainCalcThreads(int threads) {
+		Preconditions.checkArgument(threads >= 0, "Threads can't be negative");
+		this.probGainThreads = threads;
+		if (threads == 0)
+			u3ProbGains = null;
+	}
+	
+	/**
+	 * @return number of threads used for batch probability gain calculations, or 0 if disabled
+	 * @see #setProbGainCalcThreads(int)
+	 */
+	public int getProbGainCalcThreads() {
+		return probGainThreads;
+	}
+	
 	/**
 	 * This sets the date of last event on the sections associated with the given source
 	 * @param srcIndex
@@ -254,7 +284,8 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 			}
 		}
 		// do this to make sure the probability will be updated even if nothing else changes
-		probModelChanged = true;
+		for(int sectIndex : sectIndexList)
+			markSectRupsForProbabilityUpdate(sectIndex);
 	}
 	
 	/**
@@ -275,7 +306,23 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 			}
 		}
 		// do this to make sure the probability will be updated even if nothing else changes
-		probModelChanged = true;
+		markSectRupsForProbabilityUpdate(sectIndex);
+	}
+	
+	/**
+	 * Rate gains only depend on the sections involved in each rupture, so only ruptures that include this section
+	 * need to be updated when its date of last event changes (the probability model calculators are updated in place
+	 * above).
+	 * @param sectIndex
+	 */
+	private void markSectRupsForProbabilityUpdate(int sectIndex) {
+		if (!updateSourcesInPlace || (probModelsCalc == null && prefBlendProbModelsCalc == null)) {
+			// rebuilding everything, or calculators haven't been built yet (or this is Poisson), make sure they will be
+			probModelChanged = true;
+			return;
+		}
+		for (int rupIndex : faultSysSolution.getRupSet().getRupturesForSection(sectIndex))
+			markFaultSysRupForProbabilityUpdate(rupIndex);
 	}
 	
 	/**
@@ -292,6 +339,12 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 				|| probModelChanged || magDepAperiodicityChanged || histOpenIntervalChanged;
 	}
 	
+	@Override
+	protected boolean shouldRebuildFaultSystemSourceRuptures() {
+		// aleatory variability changes the magnitudes of each source, others only affect rate gains
+		return super.shouldRebuildFaultSystemSourceRuptures() || aleatoryMagAreaStdDevChanged;
+	}
+	
 	@Override
 	protected void updateHookBeforeFaultSourceBuild() {
 		// update prob model calculator if needed
@@ -343,8 +396,59 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 			}
 		}
 
+		// compute gains for all ruptures with sources, or just those marked for update if nothing else has changed
+		if (probGainThreads > 0 && (probModel == ProbabilityModelOptions.U3_BPT
+				|| probModel == ProbabilityModelOptions.U3_PREF_BLEND)) {
+			if (u3ProbGains == null || u3ProbGains.length != longTermRateOfFltSysRupInERF.length
+					|| shouldRebuildFaultSystemSources() || fltSysRupsForProbUpdate == null) {
+				u3ProbGains = new double[longTermRateOfFltSysRupInERF.length];
+				calcU3_ProbGains(Arrays.copyOf(fltSysRupIndexForSource, numNonZeroFaultSystemSources));
+			} else {
+				int[] fltSysRupIndexes = new int[fltSysRupsForProbUpdate.cardinality()];
+				int num = 0;
+				for (int r=fltSysRupsForProbUpdate.nextSetBit(0); r>=0; r=fltSysRupsForProbUpdate.nextSetBit(r+1))
+					if (r < srcIndexForFltSysRup.length && srcIndexForFltSysRup[r] >= 0)
+						fltSysRupIndexes[num++] = r;
+				calcU3_ProbGains(Arrays.copyOf(fltSysRupIndexes, num));
+			}
+		} else {
+			u3ProbGains = null;
+		}
+
 		super.updateHookBeforeFaultSourceBuild();
 	}
+	
+	/**
+	 * Computes U3 probability gains for the given ruptures with the batch calculators and stores them in
+	 * {@link #u3ProbGains}
+	 * 
+	 * @param fltSysRupIndexes
+	 */
+	private void calcU3_ProbGains(int[] fltSysRupIndexes) {
+		long startTime = timeSpan.getStartTimeInMillis();
+		double duration = timeSpan.getDuration();
+		int threads = probGainThreads;
+		if (probModel == ProbabilityModelOptions.U3_BPT) {
+			double[] gains = probModelsCalc.getU3_ProbGainsForRups(fltSysRupIndexes, histOpenInterval, false,
+					aveRecurIntervalsInU3_BPTcalc, aveNormTimeSinceLastInU3_BPTcalc, startTime, duration, threads);
+			for (int i=0; i<fltSysRupIndexes.length; i++)
+				u3ProbGains[fltSysRupIndexes[i]] = gains[i];
+		} else {
+			// summed in the same order as the per-rupture calculation
+			for (int fltSysRupIndex : fltSysRupIndexes)
+				u3ProbGains[fltSysRupIndex] = 0d;
+			for (ProbabilityModelsCalc calc : prefBlendProbModelsCalc.keySet()) {
+				double weight = prefBlendProbModelsCalc.get(calc);
+				double[] gains = null;
+				if (calc != null)
+					gains = calc.getU3_ProbGainsForRups(fltSysRupIndexes, histOpenInterval, false,
+							aveRecurIntervalsInU3_BPTcalc, aveNormTimeSinceLastInU3_BPTcalc, startTime, duration, threads);
+				for (int i=0; i<fltSysRupIndexes.length; i++)
+					// null is poisson
+					u3ProbGains[fltSysRupIndexes[i]] += weight*(gains == null ? 1d : gains[i]);
+			}
+		}
+	}
 
 	@Override
 	public void updateForecast() {
@@ -448,7 +552,7 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 	}
 
 	@Override
-	protected DoubleBinaryOperator getGridSourceAftershockFilter() {
+	public DoubleBinaryOperator getGridSourceAftershockFilter() {
 		return applyAftershockFilter ? AbstractGridSourceProvider.GK_AFTERSHOCK_FILTER : null;
 	}
 
@@ -478,6 +582,11 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 			probGain = 1.0;
 			break;
 		case U3_BPT:
+			if (u3ProbGains != null) {
+				// already computed in parallel before the build
+				probGain = u3ProbGains[fltSystRupIndex];
+				break;
+			}
 			probGain = probModelsCalc.getU3_ProbGainForRup(fltSystRupIndex, histOpenInterval, false, aveRecurIntervalsInU3_BPTcalc, 
 					aveNormTimeSinceLastInU3_BPTcalc, timeSpan.getStartTimeInMillis(), duration);
 // TEST FOR CONSIDERING ONLY RUPS WITH DATE OF LAST EVENT ON ALL SECTIONS
@@ -487,6 +596,10 @@ public class FaultSystemSolutionERF extends BaseFaultSystemSolutionERF {
 //		probGain=0;
 			break;
 		case U3_PREF_BLEND:
+			if (u3ProbGains != null) {
+				probGain = u3ProbGains[fltSystRupIndex];
+				break;
+			}
 			probGain = 0;
 			for (ProbabilityModelsCalc calc : prefBlendProbModelsCalc.keySet()) {
 				double weight = prefBlendProbModelsCalc.get(calc);
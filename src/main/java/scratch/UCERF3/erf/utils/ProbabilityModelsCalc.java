@@ -10,6 +10,13 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.JFrame;
 
@@ -54,6 +61,7 @@ import org.opensha.sha.earthquake.calc.recurInterval.LognormalDistCalc;
 import org.opensha.sha.earthquake.calc.recurInterval.WeibullDistCalc;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.util.FaultSysTools;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupOrigTimeComparator;
 import org.opensha.sha.earthquake.observedEarthquake.ObsEqkRupture;
 import org.opensha.sha.earthquake.param.BPTAveragingTypeOptions;
@@ -168,6 +176,17 @@ public class ProbabilityModelsCalc {
 	double totRupAreaWithDateOfLast;
 	boolean allSectionsHadDateOfLast;
 	boolean noSectionsHadDateOfLast;
+	
+	// per-rupture values from the U3 gain calculation; these are kept local so that gains can be computed in
+	// parallel, and the diagnostics above are set from them for single rupture calls
+	private static class U3_RupGainInfo {
+		double totRupArea;
+		double totRupAreaWithDateOfLast;
+		boolean allSectionsHadDateOfLast;
+		boolean noSectionsHadDateOfLast;
+		double aveCondRecurInterval;
+		double aveTimeSinceLastWhereKnownYears;
+	}
 
 	// data dir for Elastic Rebound simulations
 	final static File dataDir = new File(UCERF3_DataUtils.DEFAULT_SCRATCH_DATA_DIR,File.separator+"erSimulations");
@@ -417,31 +436,38 @@ public class ProbabilityModelsCalc {
 	 * time in milliseconds will be considered.
 	 */
 	public long getAveDateOfLastEventWhereKnown(int fltSystRupIndex, Long presentTimeMillis) {
+		U3_RupGainInfo info = new U3_RupGainInfo();
+		long ret = getAveDateOfLastEventWhereKnown(fltSystRupIndex, presentTimeMillis, info);
+		setDiagnostics(info);
+		return ret;
+	}
+	
+	private long getAveDateOfLastEventWhereKnown(int fltSystRupIndex, Long presentTimeMillis, U3_RupGainInfo info) {
 //		System.out.println("getAveDateOfLastEventWhereKnown");
-		totRupArea=0;
-		totRupAreaWithDateOfLast=0;
+		info.totRupArea=0;
+		info.totRupAreaWithDateOfLast=0;
 		int numWithDateOfLast=0;
-		allSectionsHadDateOfLast = true;
-		noSectionsHadDateOfLast = false;
+		info.allSectionsHadDateOfLast = true;
+		info.noSectionsHadDateOfLast = false;
 		double sumDateOfLast = 0;
 		for(int s:fltSysRupSet.getSectionsIndicesForRup(fltSystRupIndex)) {
 			long dateOfLast = dateOfLastForSect[s];
 			double area = sectionArea[s];
-			totRupArea+=area;
+			info.totRupArea+=area;
 			if(dateOfLast != Long.MIN_VALUE && (presentTimeMillis == null || dateOfLast <= presentTimeMillis)) {
 //System.out.println("dateOfLast="+dateOfLast+"; presentTimeMillis="+presentTimeMillis);
 				sumDateOfLast += (double)dateOfLast*area;
-				totRupAreaWithDateOfLast += area;
+				info.totRupAreaWithDateOfLast += area;
 				numWithDateOfLast+=1;
 			}
 			else {
-				allSectionsHadDateOfLast = false;
+				info.allSectionsHadDateOfLast = false;
 			}
 		}
 		if(numWithDateOfLast>0)
-			return Math.round(sumDateOfLast/totRupAreaWithDateOfLast);  // epoch millis
+			return Math.round(sumDateOfLast/info.totRupAreaWithDateOfLast);  // epoch millis
 		else {
-			noSectionsHadDateOfLast=true;
+			info.noSectionsHadDateOfLast=true;
 			return Long.MIN_VALUE;
 		}
 	}
@@ -464,34 +490,41 @@ public class ProbabilityModelsCalc {
 	 * @param presentTimeMillis - present time in epoch milliseconds
 	 */
 	public double getAveNormTimeSinceLastEventWhereKnown(int fltSystRupIndex, long presentTimeMillis) {
+		U3_RupGainInfo info = new U3_RupGainInfo();
+		double ret = getAveNormTimeSinceLastEventWhereKnown(fltSystRupIndex, presentTimeMillis, info);
+		setDiagnostics(info);
+		return ret;
+	}
+	
+	private double getAveNormTimeSinceLastEventWhereKnown(int fltSystRupIndex, long presentTimeMillis, U3_RupGainInfo info) {
 		
 //		System.out.println("getAveNormTimeSinceLastEventWhereKnown");
 		
 //		List<FaultSectionPrefData> fltData = fltSysRupSet.getFaultSectionDataForRupture(fltSystRupIndex);
-		totRupArea=0;
-		totRupAreaWithDateOfLast=0;
-		allSectionsHadDateOfLast = true;
+		info.totRupArea=0;
+		info.totRupAreaWithDateOfLast=0;
+		info.allSectionsHadDateOfLast = true;
 		int numWithDateOfLast=0;
-		noSectionsHadDateOfLast = false;
+		info.noSectionsHadDateOfLast = false;
 		double sumNormTimeSinceLast = 0;
 		for(int s : fltSysRupSet.getSectionsIndicesForRup(fltSystRupIndex)) {
 			long dateOfLast = dateOfLastForSect[s];
 			double area = sectionArea[s];
-			totRupArea+=area;
+			info.totRupArea+=area;
 // System.out.println("dateOfLast="+dateOfLast+"; presentTimeMillis="+presentTimeMillis);
 			if(dateOfLast != Long.MIN_VALUE && dateOfLast <= presentTimeMillis) {
 				sumNormTimeSinceLast += area*((double)(presentTimeMillis-dateOfLast)/MILLISEC_PER_YEAR)*longTermPartRateForSectArray[s];
-				totRupAreaWithDateOfLast += area;
+				info.totRupAreaWithDateOfLast += area;
 				numWithDateOfLast += 1;
 			}
 			else {
-				allSectionsHadDateOfLast = false;
+				info.allSectionsHadDateOfLast = false;
 			}
 		}
 		if(numWithDateOfLast>0)
-			return sumNormTimeSinceLast/totRupAreaWithDateOfLast; 
+			return sumNormTimeSinceLast/info.totRupAreaWithDateOfLast; 
 		else {
-			noSectionsHadDateOfLast=true;
+			info.noSectionsHadDateOfLast=true;
 			return Double.NaN;
 		}
 	}
@@ -549,6 +582,35 @@ public class ProbabilityModelsCalc {
 	}
 	
 	
+	private void setDiagnostics(U3_RupGainInfo info) {
+		totRupArea = info.totRupArea;
+		totRupAreaWithDateOfLast = info.totRupAreaWithDateOfLast;
+		allSectionsHadDateOfLast = info.allSectionsHadDateOfLast;
+		noSectionsHadDateOfLast = info.noSectionsHadDateOfLast;
+	}
+	
+	
+	/**
+	 * This returns the average conditional recurrence interval for each fault system rup, computing
+	 * them if needed.
+	 * 
+	 * @param aveRecurIntervals - if false, rates will be averaged in get the conditional recurrence interval
+	 * @return
+	 */
+	private synchronized double[] getAveCondRecurIntervalForFltSysRups(boolean aveRecurIntervals) {
+		if(aveRecurIntervals) {
+			if(aveCondRecurIntervalForFltSysRups_type1 == null)
+				aveCondRecurIntervalForFltSysRups_type1 = computeAveCondRecurIntervalForFltSysRups(1);
+			return aveCondRecurIntervalForFltSysRups_type1;
+		}
+		else {
+			if(aveCondRecurIntervalForFltSysRups_type2 == null)
+				aveCondRecurIntervalForFltSysRups_type2 = computeAveCondRecurIntervalForFltSysRups(2);
+			return aveCondRecurIntervalForFltSysRups_type2;
+		}
+	}
+	
+	
 	/**
 	 * This computes the BPT probability gain using the UCERF3.
 	 * 
@@ -569,34 +631,76 @@ public class ProbabilityModelsCalc {
 	public double getU3_ProbGainForRup(int fltSysRupIndex, double histOpenInterval, boolean onlyIfAllSectionsHaveDateOfLast, 
 			boolean aveRecurIntervals, boolean aveNormTimeSinceLast, long presentTimeMillis, double durationYears) {
 		
+		U3_RupGainInfo info = new U3_RupGainInfo();
+		double probGain = calcU3_ProbGainForRup(fltSysRupIndex, histOpenInterval, onlyIfAllSectionsHaveDateOfLast,
+				aveRecurIntervals, aveNormTimeSinceLast, presentTimeMillis, durationYears, info);
+		setDiagnostics(info);
+		
+		if(simulationMode) {
+			double rupMag = fltSysRupSet.getMagForRup(fltSysRupIndex);
+			if(info.aveTimeSinceLastWhereKnownYears/info.aveCondRecurInterval > simNormTimeSinceLastHist.getMaxX()) {
+				simNormTimeSinceLastHist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+				if(rupMag <= 7)
+					simNormTimeSinceLastForMagBelow7_Hist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+				else
+					simNormTimeSinceLastForMagAbove7_Hist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+			}
+			else {
+				simNormTimeSinceLastHist.add(info.aveTimeSinceLastWhereKnownYears/info.aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
+				if(rupMag <= 7)
+					simNormTimeSinceLastForMagBelow7_Hist.add(info.aveTimeSinceLastWhereKnownYears/info.aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
+				else
+					simNormTimeSinceLastForMagAbove7_Hist.add(info.aveTimeSinceLastWhereKnownYears/info.aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
+			}
+			
+			if(probGain > simProbGainHist.getMaxX()) {
+				simProbGainHist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+				if(rupMag <= 7)
+					simProbGainForMagBelow7_Hist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+				else
+					simProbGainForMagAbove7_Hist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
+			}
+			else {
+				simProbGainHist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
+				if(rupMag <= 7)
+					simProbGainForMagBelow7_Hist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
+				else
+					simProbGainForMagAbove7_Hist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
+			}
+		}
+		
+		if(Double.isNaN(probGain))
+			throw new RuntimeException("NaN fltSysRupIndex="+fltSysRupIndex);
+		
+		return probGain;
+
+	}
+	
+	
+	/**
+	 * This does the work of {@link #getU3_ProbGainForRup(int, double, boolean, boolean, boolean, long, double)}
+	 * without modifying any global variables (diagnostics are stored in the given info instead), so that it can
+	 * be called in parallel.
+	 */
+	private double calcU3_ProbGainForRup(int fltSysRupIndex, double histOpenInterval, boolean onlyIfAllSectionsHaveDateOfLast, 
+			boolean aveRecurIntervals, boolean aveNormTimeSinceLast, long presentTimeMillis, double durationYears, U3_RupGainInfo info) {
+		
 		double rupMag = fltSysRupSet.getMagForRup(fltSysRupIndex);
 
 		// get the average recurrence interval
-		double aveCondRecurInterval;
-		if(aveRecurIntervals) {
-			if(aveCondRecurIntervalForFltSysRups_type1 == null)
-				aveCondRecurIntervalForFltSysRups_type1 = computeAveCondRecurIntervalForFltSysRups(1);
-//			System.out.println("aveRecurIntervals");
-			aveCondRecurInterval = aveCondRecurIntervalForFltSysRups_type1[fltSysRupIndex];
-		}
-		else {
-			if(aveCondRecurIntervalForFltSysRups_type2 == null)
-				aveCondRecurIntervalForFltSysRups_type2 = computeAveCondRecurIntervalForFltSysRups(2);
-//			System.out.println("aveRecurRates");
-			aveCondRecurInterval = aveCondRecurIntervalForFltSysRups_type2[fltSysRupIndex];			
-		}
+		double aveCondRecurInterval = getAveCondRecurIntervalForFltSysRups(aveRecurIntervals)[fltSysRupIndex];
 		
 		// get aveTimeSinceLastWhereKnownYears
 		double aveTimeSinceLastWhereKnownYears;
 		double aveNormTimeSinceLastEventWhereKnown=Double.NaN;
 		if(aveNormTimeSinceLast) {
-			aveNormTimeSinceLastEventWhereKnown = getAveNormTimeSinceLastEventWhereKnown(fltSysRupIndex, presentTimeMillis);
+			aveNormTimeSinceLastEventWhereKnown = getAveNormTimeSinceLastEventWhereKnown(fltSysRupIndex, presentTimeMillis, info);
 			aveTimeSinceLastWhereKnownYears = aveNormTimeSinceLastEventWhereKnown*aveCondRecurInterval;
 //			if(aveTimeSinceLastWhereKnownYears<0)
 //				throw new RuntimeException("1st "+aveTimeSinceLastWhereKnownYears);
 		}
 		else {
-			long aveTimeOfLastMillisWhereKnown = getAveDateOfLastEventWhereKnown(fltSysRupIndex, presentTimeMillis);
+			long aveTimeOfLastMillisWhereKnown = getAveDateOfLastEventWhereKnown(fltSysRupIndex, presentTimeMillis, info);
 			if(aveTimeOfLastMillisWhereKnown != Long.MIN_VALUE)
 				aveTimeSinceLastWhereKnownYears = (double)(presentTimeMillis-aveTimeOfLastMillisWhereKnown)/MILLISEC_PER_YEAR;	
 			else
@@ -608,11 +712,13 @@ public class ProbabilityModelsCalc {
 		
 		Preconditions.checkState(Double.isNaN(aveTimeSinceLastWhereKnownYears)
 				|| aveTimeSinceLastWhereKnownYears >= 0, "aveTimeSinceLastWhereKnownYears=%s", aveTimeSinceLastWhereKnownYears);
-		// the following global variables were just set by the above 
+		// the following info values were just set by the above 
 		// 		double totRupArea
 		// 		double totRupAreaWithDateOfLast
 		// 		boolean allSectionsHadDateOfLast
 		// 		boolean noSectionsHadDateOfLast
+		info.aveCondRecurInterval = aveCondRecurInterval;
+		info.aveTimeSinceLastWhereKnownYears = aveTimeSinceLastWhereKnownYears;
 		
 		
 		double expNum = durationYears/aveCondRecurInterval;
@@ -634,11 +740,11 @@ public class ProbabilityModelsCalc {
 		
 		double probGain;
 
-		if(onlyIfAllSectionsHaveDateOfLast && !allSectionsHadDateOfLast) {
+		if(onlyIfAllSectionsHaveDateOfLast && !info.allSectionsHadDateOfLast) {
 			probGain = Double.NaN;
 // if(fltSysRupIndex==testRupID) System.out.println("Here1");
 		}
-		else if(allSectionsHadDateOfLast) {
+		else if(info.allSectionsHadDateOfLast) {
 			probGain = computeBPT_ProbFast(aveCondRecurInterval, aveTimeSinceLastWhereKnownYears, durationYears, rupMag)/expNum;	
 //if(fltSysRupIndex==testRupID) System.out.println("Here2");
 			// these tests still fail for small ave norm since, disabling for now
@@ -648,7 +754,7 @@ public class ProbabilityModelsCalc {
 //					+ "\tdurationYears=%s\texpNum=%s",
 //					probGain, aveCondRecurInterval, aveTimeSinceLastWhereKnownYears, histOpenInterval, durationYears, expNum);
 		}
-		else if (noSectionsHadDateOfLast) {
+		else if (info.noSectionsHadDateOfLast) {
 			probGain = computeBPT_ProbForUnknownDateOfLastFast(aveCondRecurInterval, histOpenInterval, durationYears, rupMag)/expNum;
 // if(fltSysRupIndex==testRupID) System.out.println("Here3");
 			// these tests still fail for small ave norm since, disabling for now
@@ -664,7 +770,7 @@ public class ProbabilityModelsCalc {
 			EvenlyDiscretizedFunc normBPT_CDF=normBPT_CDF_Array[getAperIndexForRupMag(rupMag)];
 			double sumCondProbGain=0;
 			double totWeight=0;
-			double areaWithOutDateOfLast = totRupArea-totRupAreaWithDateOfLast;
+			double areaWithOutDateOfLast = info.totRupArea-info.totRupAreaWithDateOfLast;
 
 			
 			double condRecurIntWhereUnknown = computeAveCondRecurIntForFltSysRupsWhereDateLastUnknown(fltSysRupIndex, aveRecurIntervals, presentTimeMillis);
@@ -675,7 +781,7 @@ public class ProbabilityModelsCalc {
 					double normTimeSinceYears = normBPT_CDF.getX(i);
 					double relProbForTimeSinceLast = 1.0-normBPT_CDF.getY(i);	// this is the probability of the date of last event (not considering hist open interval)
 					if(normTimeSinceYears*condRecurIntWhereUnknown>=histOpenInterval && relProbForTimeSinceLast>1e-15) {
-						double aveNormTS = (normTimeSinceYears*areaWithOutDateOfLast + aveNormTimeSinceLastEventWhereKnown*totRupAreaWithDateOfLast)/totRupArea;
+						double aveNormTS = (normTimeSinceYears*areaWithOutDateOfLast + aveNormTimeSinceLastEventWhereKnown*info.totRupAreaWithDateOfLast)/info.totRupArea;
 						double condProb = computeBPT_ProbFast(1.0, aveNormTS, durationYears/aveCondRecurInterval, rupMag);
 						sumCondProbGain += (condProb/expNum)*relProbForTimeSinceLast;
 						totWeight += relProbForTimeSinceLast;
@@ -698,7 +804,7 @@ public class ProbabilityModelsCalc {
 
 					if(timeSinceYears>=histOpenInterval && relProbForTimeSinceLast>1e-15) {
 						// average the time since last between known and unknown sections
-						double aveTimeSinceLast = (timeSinceYears*areaWithOutDateOfLast + aveTimeSinceLastWhereKnownYears*totRupAreaWithDateOfLast)/totRupArea;
+						double aveTimeSinceLast = (timeSinceYears*areaWithOutDateOfLast + aveTimeSinceLastWhereKnownYears*info.totRupAreaWithDateOfLast)/info.totRupArea;
 						double condProb = computeBPT_ProbFast(aveCondRecurInterval, aveTimeSinceLast, durationYears, rupMag);
 						sumCondProbGain += (condProb/expNum)*relProbForTimeSinceLast;
 						totWeight += relProbForTimeSinceLast;
@@ -726,7 +832,7 @@ public class ProbabilityModelsCalc {
 //		"\tFractAreaUnknown="+(areaWithOutDateOfLast/totRupArea));
 				if(aveNormTimeSinceLast) {
 					double normTimeSinceYearsUnknown = histOpenInterval/condRecurIntWhereUnknown;
-					double aveNormTS = (normTimeSinceYearsUnknown*areaWithOutDateOfLast + aveNormTimeSinceLastEventWhereKnown*totRupAreaWithDateOfLast)/totRupArea;
+					double aveNormTS = (normTimeSinceYearsUnknown*areaWithOutDateOfLast + aveNormTimeSinceLastEventWhereKnown*info.totRupAreaWithDateOfLast)/info.totRupArea;
 					double condProb = computeBPT_ProbFast(1.0, aveNormTS, durationYears/aveCondRecurInterval, rupMag);
 					probGain = condProb/expNum;
 					// these tests still fail for small ave norm since, disabling for now
@@ -736,7 +842,7 @@ public class ProbabilityModelsCalc {
 //							probGain, condProb, expNum, normTimeSinceYearsUnknown, aveNormTS, durationYears, expNum);
 				}
 				else {
-					double aveTimeSinceLast = (histOpenInterval*areaWithOutDateOfLast + aveTimeSinceLastWhereKnownYears*totRupAreaWithDateOfLast)/totRupArea;
+					double aveTimeSinceLast = (histOpenInterval*areaWithOutDateOfLast + aveTimeSinceLastWhereKnownYears*info.totRupAreaWithDateOfLast)/info.totRupArea;
 					double condProb = computeBPT_ProbFast(aveCondRecurInterval, aveTimeSinceLast, durationYears, rupMag);
 					probGain = condProb/expNum;
 					// these tests still fail for small ave norm since, disabling for now
@@ -752,47 +858,146 @@ public class ProbabilityModelsCalc {
 //		if(fltSysRupIndex==testRupID) {
 //				System.out.println("\tprobGain="+probGain);
 //}
-
 		
-		if(simulationMode) {
-			if(aveTimeSinceLastWhereKnownYears/aveCondRecurInterval > simNormTimeSinceLastHist.getMaxX()) {
-				simNormTimeSinceLastHist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-				if(rupMag <= 7)
-					simNormTimeSinceLastForMagBelow7_Hist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-				else
-					simNormTimeSinceLastForMagAbove7_Hist.add(simNormTimeSinceLastHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-			}
-			else {
-				simNormTimeSinceLastHist.add(aveTimeSinceLastWhereKnownYears/aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
-				if(rupMag <= 7)
-					simNormTimeSinceLastForMagBelow7_Hist.add(aveTimeSinceLastWhereKnownYears/aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
-				else
-					simNormTimeSinceLastForMagAbove7_Hist.add(aveTimeSinceLastWhereKnownYears/aveCondRecurInterval, longTermRateOfFltSysRup[fltSysRupIndex]);
-			}
-			
-			if(probGain > simProbGainHist.getMaxX()) {
-				simProbGainHist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-				if(rupMag <= 7)
-					simProbGainForMagBelow7_Hist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-				else
-					simProbGainForMagAbove7_Hist.add(simProbGainHist.getMaxX(), longTermRateOfFltSysRup[fltSysRupIndex]);
-			}
-			else {
-				simProbGainHist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
-				if(rupMag <= 7)
-					simProbGainForMagBelow7_Hist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
-				else
-					simProbGainForMagAbove7_Hist.add(probGain, longTermRateOfFltSysRup[fltSysRupIndex]);
-			}
+		return probGain;
+	}
+	
+	
+	/**
+	 * This computes UCERF3 BPT probability gains for all fault system ruptures in parallel, using the default
+	 * number of threads (see {@link #getU3_ProbGainsForRups(int[], double, boolean, boolean, boolean, long, double, int)}).
+	 * 
+	 * @return gains indexed by fault system rupture
+	 */
+	public double[] getU3_ProbGainsForAllRups(double histOpenInterval, boolean onlyIfAllSectionsHaveDateOfLast, 
+			boolean aveRecurIntervals, boolean aveNormTimeSinceLast, long presentTimeMillis, double durationYears) {
+		return getU3_ProbGainsForRups(null, histOpenInterval, onlyIfAllSectionsHaveDateOfLast, aveRecurIntervals,
+				aveNormTimeSinceLast, presentTimeMillis, durationYears, FaultSysTools.defaultNumThreads());
+	}
+	
+	
+	/**
+	 * This computes UCERF3 BPT probability gains for the given fault system ruptures, giving the same values as
+	 * calling {@link #getU3_ProbGainForRup(int, double, boolean, boolean, boolean, long, double)} for each (except
+	 * that the diagnostic global variables are not set).
+	 * 
+	 * The reference BPT distributions (CDFs and integrated CDFs) and average conditional recurrence intervals 
+	 * are all computed up front, after which ruptures are split into blocks that are processed in parallel 
+	 * without modifying any shared state. Blocks are run on a daemon thread pool that is shared by all calculators
+	 * and reused between calls.
+	 * 
+	 * This can't be used in simulation mode.
+	 * 
+	 * @param fltSysRupIndexes - fault system rupture indexes, or null for all ruptures
+	 * @param histOpenInterval
+	 * @param onlyIfAllSectionsHaveDateOfLast
+	 * @param aveRecurIntervals - if false, rates will be averaged in get the conditional recurrence interval
+	 * @param aveNormTimeSinceLast - if true, normalized time since last is averaged (divided by section intervals); otherwise time since last is averaged
+	 * @param presentTimeMillis
+	 * @param durationYears
+	 * @param threads - number of threads to use
+	 * @return gains in the same order as fltSysRupIndexes (or indexed by fault system rupture if null)
+	 */
+	public double[] getU3_ProbGainsForRups(int[] fltSysRupIndexes, double histOpenInterval, boolean onlyIfAllSectionsHaveDateOfLast, 
+			boolean aveRecurIntervals, boolean aveNormTimeSinceLast, long presentTimeMillis, double durationYears, int threads) {
+		Preconditions.checkState(!simulationMode, "Batch probability gain calculations can't be used in simulation mode");
+		Preconditions.checkArgument(threads > 0, "Must supply at least 1 thread");
+		
+		int numRups = fltSysRupIndexes == null ? numRupsInFaultSystem : fltSysRupIndexes.length;
+		double[] gains = new double[numRups];
+		
+		// initialize everything that would otherwise be computed lazily, after which calculations are read-only
+		for(BPT_DistCalc refCalc : refBPT_CalcArray)
+			refCalc.precomputeDistributions();
+		getAveCondRecurIntervalForFltSysRups(aveRecurIntervals);
+		
+		// several blocks per thread to balance the load (cost varies a lot depending on date of last event data)
+		int blockSize = Integer.max(MIN_GAIN_BLOCK_SIZE, (int)Math.ceil((double)numRups/(double)(threads*10)));
+		
+		if(threads == 1 || numRups <= blockSize) {
+			calcU3_ProbGainsForRups(fltSysRupIndexes, 0, numRups, gains, histOpenInterval, onlyIfAllSectionsHaveDateOfLast,
+					aveRecurIntervals, aveNormTimeSinceLast, presentTimeMillis, durationYears);
+			return gains;
 		}
 		
-		if(Double.isNaN(probGain))
-			throw new RuntimeException("NaN fltSysRupIndex="+fltSysRupIndex);
+		ExecutorService exec = getGainExecutor(threads);
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for(int start=0; start<numRups; start+=blockSize) {
+				int blockStart = start;
+				int blockEnd = Integer.min(numRups, start+blockSize);
+				futures.add(exec.submit(new Runnable() {
+					
+					@Override
+					public void run() {
+						calcU3_ProbGainsForRups(fltSysRupIndexes, blockStart, blockEnd, gains, histOpenInterval,
+								onlyIfAllSectionsHaveDateOfLast, aveRecurIntervals, aveNormTimeSinceLast,
+								presentTimeMillis, durationYears);
+					}
+				}));
+			}
+			for(Future<?> future : futures)
+				future.get();
+		} catch (InterruptedException e) {
+			throw ExceptionUtils.asRuntimeException(e);
+		} catch (ExecutionException e) {
+			throw ExceptionUtils.asRuntimeException(e.getCause());
+		}
 		
-		return probGain;
-
+		return gains;
 	}
-
+	
+	
+	// minimum number of ruptures processed by a single task in batch gain calculations
+	private static final int MIN_GAIN_BLOCK_SIZE = 100;
+	
+	// idle batch gain threads are released after this long
+	private static final long GAIN_IDLE_THREAD_TIMEOUT_SECS = 30l;
+	
+	// shared by all instances, as ERFs create new calculators whenever the probability model changes
+	private static ThreadPoolExecutor gainExec;
+	
+	private static synchronized ExecutorService getGainExecutor(int threads) {
+		if(gainExec == null) {
+			gainExec = new ThreadPoolExecutor(threads, threads, GAIN_IDLE_THREAD_TIMEOUT_SECS,
+					TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "ProbabilityModelsCalc");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+			// don't hold on to idle threads between forecast updates
+			gainExec.allowCoreThreadTimeOut(true);
+		} else if(threads > gainExec.getMaximumPoolSize()) {
+			// resize rather than replace, as another calculation may be using it (max can't go below core)
+			gainExec.setMaximumPoolSize(threads);
+			gainExec.setCorePoolSize(threads);
+		} else if(threads < gainExec.getMaximumPoolSize()) {
+			gainExec.setCorePoolSize(threads);
+			gainExec.setMaximumPoolSize(threads);
+		}
+		return gainExec;
+	}
+	
+	
+	private void calcU3_ProbGainsForRups(int[] fltSysRupIndexes, int start, int end, double[] gains, double histOpenInterval,
+			boolean onlyIfAllSectionsHaveDateOfLast, boolean aveRecurIntervals, boolean aveNormTimeSinceLast,
+			long presentTimeMillis, double durationYears) {
+		// reused for each rupture, all values are reset in each calculation
+		U3_RupGainInfo info = new U3_RupGainInfo();
+		for(int i=start; i<end; i++) {
+			int fltSysRupIndex = fltSysRupIndexes == null ? i : fltSysRupIndexes[i];
+			double probGain = calcU3_ProbGainForRup(fltSysRupIndex, histOpenInterval, onlyIfAllSectionsHaveDateOfLast,
+					aveRecurIntervals, aveNormTimeSinceLast, presentTimeMillis, durationYears, info);
+			if(Double.isNaN(probGain))
+				throw new RuntimeException("NaN fltSysRupIndex="+fltSysRupIndex);
+			gains[i] = probGain;
+		}
+	}
+	
 	
 	/**
 	 * This returns the probability gain computed using the WG02 methodology, where the probability
@@ -1023,7 +1228,7 @@ public class ProbabilityModelsCalc {
 		double newTimeSinceLast = aveTimeSinceLastYears*refRI/aveRecurIntervalYears;
 		if(newTimeSinceLast<0 && newTimeSinceLast > -1e-10)
 			newTimeSinceLast=0;
-		double prob=refBPT_DistributionCalc.getCondProb(newTimeSinceLast, durationYears*refRI/aveRecurIntervalYears);
+		double prob=refBPT_DistributionCalc.calcCondProb(newTimeSinceLast, durationYears*refRI/aveRecurIntervalYears);
 //		if(prob<0d)
 //			System.out.println("Negative Prob: "+prob+"\t"+aveRecurIntervalYears+"\t"+aveTimeSinceLastYears+"\t"+durationYears);
 		return prob;
@@ -1055,8 +1260,8 @@ public class ProbabilityModelsCalc {
 	 */
 	public double computeBPT_ProbForUnknownDateOfLastFast(double aveRecurIntervalYears, double histOpenIntervalYears, double durationYears, double rupMag) {
 		BPT_DistCalc refBPT_DistributionCalc = refBPT_CalcArray[getAperIndexForRupMag(rupMag)];
-		refBPT_DistributionCalc.setDurationAndHistOpenInterval(durationYears*refRI/aveRecurIntervalYears, histOpenIntervalYears*refRI/aveRecurIntervalYears);
-		return refBPT_DistributionCalc.getCondProbForUnknownTimeSinceLastEvent();	 
+		return refBPT_DistributionCalc.getCondProbForUnknownTimeSinceLastEvent(
+				durationYears*refRI/aveRecurIntervalYears, histOpenIntervalYears*refRI/aveRecurIntervalYears);	 
 	}
 	
 	
@@ -1237,6 +1442,51 @@ public class ProbabilityModelsCalc {
 	
 	
 	
+	/**
+	 * This benchmarks the batch (parallel) UCERF3 probability gain calculation against the per-rupture calculation
+	 * for all ruptures, printing the average time for each and the maximum difference in gains.
+	 * 
+	 * @param histOpenInterval
+	 * @param aveRecurIntervals
+	 * @param aveNormTimeSinceLast
+	 * @param presentTimeMillis
+	 * @param durationYears
+	 * @param threads - number of threads for the batch calculation
+	 * @param numIterations - number of times to repeat each calculation (after one warmup iteration)
+	 */
+	public void benchmarkU3_ProbGains(double histOpenInterval, boolean aveRecurIntervals, boolean aveNormTimeSinceLast,
+			long presentTimeMillis, double durationYears, int threads, int numIterations) {
+		Preconditions.checkArgument(numIterations > 0);
+		double[] serialGains = new double[numRupsInFaultSystem];
+		double[] batchGains = null;
+		long serialNanos = 0;
+		long batchNanos = 0;
+		for(int n=0; n<=numIterations; n++) {
+			// first iteration is warmup
+			long startTime = System.nanoTime();
+			for(int r=0; r<numRupsInFaultSystem; r++)
+				serialGains[r] = getU3_ProbGainForRup(r, histOpenInterval, false, aveRecurIntervals,
+						aveNormTimeSinceLast, presentTimeMillis, durationYears);
+			if(n > 0)
+				serialNanos += System.nanoTime()-startTime;
+			startTime = System.nanoTime();
+			batchGains = getU3_ProbGainsForRups(null, histOpenInterval, false, aveRecurIntervals,
+					aveNormTimeSinceLast, presentTimeMillis, durationYears, threads);
+			if(n > 0)
+				batchNanos += System.nanoTime()-startTime;
+		}
+		double maxDiff = 0;
+		for(int r=0; r<numRupsInFaultSystem; r++)
+			maxDiff = Math.max(maxDiff, Math.abs(serialGains[r]-batchGains[r]));
+		double serialMillis = serialNanos/(1e6*numIterations);
+		double batchMillis = batchNanos/(1e6*numIterations);
+		System.out.println("U3 prob gains for "+numRupsInFaultSystem+" ruptures:");
+		System.out.println("	per-rupture:	"+(float)serialMillis+" ms");
+		System.out.println("	batch ("+threads+" threads):	"+(float)batchMillis+" ms ("+(float)(serialMillis/batchMillis)+"x)");
+		System.out.println("	max gain difference:	"+maxDiff);
+	}
+	
+	
 	/**
 	 * This simulates events from using elastic rebound probabilities
 	 * 
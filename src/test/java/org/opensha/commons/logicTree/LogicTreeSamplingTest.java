@@ -0,0 +1,227 @@
+package org.opensha.commons.logicTree;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
+import org.opensha.commons.logicTree.LogicTreeLevel.FileBackedLevel;
+import org.opensha.commons.logicTree.LogicTreeNode.FileBackedNode;
+import org.opensha.commons.logicTree.LogicTreeSamplingConvergence.ConvergenceResult;
+
+/**
+ * Tests for each {@link LogicTreeSamplingMethod} in {@link LogicTree#sample(int, boolean, Random, boolean, LogicTreeSamplingMethod)},
+ * and for {@link LogicTreeSamplingConvergence}.
+ *
+ * @author kevin
+ *
+ */
+public class LogicTreeSamplingTest {
+
+	// node weights are all multiples of 1/16, so that Latin hypercube strata line up with node boundaries
+	private static final int ALIGNED_SAMPLES = 16;
+	private static LogicTree<LogicTreeNode> alignedTree;
+	// 60 branches, with weights that don't line up with anything
+	private static LogicTree<LogicTreeNode> tree;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		alignedTree = buildTree(new double[][] {
+			{ 0.25, 0.75 },
+			{ 0.5, 0.25, 0.25 },
+			{ 0.125, 0.875 }
+		});
+		tree = buildTree(new double[][] {
+			{ 0.3, 0.7 },
+			{ 0.1, 0.6, 0.3 },
+			{ 0.2, 0.2, 0.2, 0.2, 0.2 },
+			{ 0.85, 0.15 }
+		});
+	}
+
+	private static LogicTree<LogicTreeNode> buildTree(double[][] levelWeights) {
+		List<LogicTreeLevel<? extends LogicTreeNode>> levels = new ArrayList<>();
+		for (int l=0; l<levelWeights.length; l++) {
+			List<FileBackedNode> nodes = new ArrayList<>();
+			for (int n=0; n<levelWeights[l].length; n++) {
+				String name = "L"+l+"N"+n;
+				nodes.add(new FileBackedNode(name, name, levelWeights[l][n], name));
+			}
+			levels.add(new FileBackedLevel("Level "+l, "L"+l, nodes));
+		}
+		return LogicTree.buildExhaustive(levels, true);
+	}
+
+	private static Map<LogicTreeNode, Double> calcNodeWeights(LogicTree<?> tree) {
+		Map<LogicTreeNode, Double> ret = new HashMap<>();
+		double totWeight = 0d;
+		for (int b=0; b<tree.size(); b++) {
+			double weight = tree.getBranchWeight(b);
+			totWeight += weight;
+			for (LogicTreeNode node : tree.getBranch(b))
+				ret.put(node, ret.containsKey(node) ? ret.get(node) + weight : weight);
+		}
+		for (LogicTreeNode node : List.copyOf(ret.keySet()))
+			ret.put(node, ret.get(node)/totWeight);
+		return ret;
+	}
+
+	private static double calcMaxNodeWeightError(LogicTree<?> full, LogicTree<?> sampled) {
+		Map<LogicTreeNode, Double> fullWeights = calcNodeWeights(full);
+		Map<LogicTreeNode, Double> sampledWeights = calcNodeWeights(sampled);
+		double maxErr = 0d;
+		for (LogicTreeNode node : fullWeights.keySet()) {
+			double sampledWeight = sampledWeights.containsKey(node) ? sampledWeights.get(node) : 0d;
+			maxErr = Math.max(maxErr, Math.abs(sampledWeight - fullWeights.get(node)));
+		}
+		return maxErr;
+	}
+
+	@Test
+	public void testMarginalsConverge() {
+		for (LogicTreeSamplingMethod method : LogicTreeSamplingMethod.values()) {
+			Random rand = new Random(tree.size());
+			double prevErr = Double.POSITIVE_INFINITY;
+			for (int numSamples : new int[] { 100, 10000, 1000000 }) {
+				// average over a few trials so that the decrease is reliable
+				double err = 0d;
+				int numTrials = 5;
+				for (int t=0; t<numTrials; t++)
+					err += calcMaxNodeWeightError(tree, tree.sample(numSamples, false, rand, false, method));
+				err /= numTrials;
+				// stratified designs can match node weights to floating point precision
+				assertTrue(method+": node weight error didn't decrease from "+(float)prevErr+" with "+numSamples
+						+" samples: "+(float)err, err < prevErr || err < 1e-10);
+				prevErr = err;
+			}
+			// 1e6 samples, Monte Carlo standard error is at most 5e-4
+			assertTrue(method+": node weights didn't converge, error="+prevErr, prevErr < 2e-3);
+		}
+	}
+
+	@Test
+	public void testLatinHypercubeStrata() {
+		Map<LogicTreeNode, Double> nodeWeights = calcNodeWeights(alignedTree);
+		Random rand = new Random(ALIGNED_SAMPLES);
+		boolean anyMonteCarloMismatch = false;
+		for (int t=0; t<100; t++) {
+			// each stratum of each level is used exactly once, so counts match node weights exactly
+			LogicTree<LogicTreeNode> sampled = alignedTree.sample(ALIGNED_SAMPLES, false, rand, false,
+					LogicTreeSamplingMethod.LATIN_HYPERCUBE);
+			assertEquals(ALIGNED_SAMPLES, sampled.size());
+			Map<LogicTreeNode, Integer> counts = countNodes(sampled);
+			for (LogicTreeNode node : nodeWeights.keySet()) {
+				int count = counts.containsKey(node) ? counts.get(node) : 0;
+				assertEquals("Trial "+t+", "+node.getShortName(), nodeWeights.get(node)*ALIGNED_SAMPLES, count, 1e-10);
+			}
+
+			// not true for independent draws
+			counts = countNodes(alignedTree.sample(ALIGNED_SAMPLES, false, rand, false,
+					LogicTreeSamplingMethod.MONTE_CARLO));
+			for (LogicTreeNode node : nodeWeights.keySet()) {
+				int count = counts.containsKey(node) ? counts.get(node) : 0;
+				anyMonteCarloMismatch |= Math.abs(nodeWeights.get(node)*ALIGNED_SAMPLES - count) > 0.5;
+			}
+		}
+		assertTrue("Test isn't meaningful, Monte Carlo also matched every time", anyMonteCarloMismatch);
+	}
+
+	private static Map<LogicTreeNode, Integer> countNodes(LogicTree<?> sampled) {
+		Map<LogicTreeNode, Integer> counts = new HashMap<>();
+		for (LogicTreeBranch<?> branch : sampled)
+			for (LogicTreeNode node : branch)
+				counts.put(node, counts.containsKey(node) ? counts.get(node) + 1 : 1);
+		return counts;
+	}
+
+	@Test
+	public void testMonteCarloRandomUsage() {
+		for (boolean redrawDuplicates : new boolean[] { false, true }) {
+			int numSamples = 40;
+			long seed = 12345l;
+
+			// previous implementation: draws from the integer PDF sampler, one random number each
+			Random rand = new Random(seed);
+			double[] weights = new double[tree.size()];
+			for (int b=0; b<weights.length; b++)
+				weights[b] = tree.getBranchWeight(b);
+			IntegerPDF_FunctionSampler sampler = new IntegerPDF_FunctionSampler(weights);
+			int[] expected = new int[tree.size()];
+			if (redrawDuplicates) {
+				int unique = 0;
+				while (unique < numSamples) {
+					int index = sampler.getRandomInt(rand);
+					if (expected[index] == 0)
+						unique++;
+					expected[index]++;
+				}
+			} else {
+				for (int i=0; i<numSamples; i++)
+					expected[sampler.getRandomInt(rand)]++;
+			}
+			long expectedNext = rand.nextLong();
+
+			Random actualRand = new Random(seed);
+			int[] actual = tree.sampleIndexCounts(numSamples, redrawDuplicates, actualRand,
+					LogicTreeSamplingMethod.MONTE_CARLO);
+			assertArrayEquals(expected, actual);
+			// same number of random values used
+			assertEquals(expectedNext, actualRand.nextLong());
+
+			// default sample method is Monte Carlo, and gives the same branches and weights
+			LogicTree<LogicTreeNode> sampled = tree.sample(numSamples, redrawDuplicates, new Random(seed), false);
+			LogicTree<LogicTreeNode> sampledMC = tree.sample(numSamples, redrawDuplicates, new Random(seed), false,
+					LogicTreeSamplingMethod.MONTE_CARLO);
+			assertEquals(sampled.size(), sampledMC.size());
+			for (int b=0; b<sampled.size(); b++) {
+				assertEquals(sampled.getBranch(b), sampledMC.getBranch(b));
+				assertEquals(sampled.getBranchWeight(b), sampledMC.getBranchWeight(b), 0d);
+			}
+		}
+	}
+
+	@Test
+	public void testConvergence() {
+		double[] branchValues = new double[tree.size()];
+		for (int b=0; b<branchValues.length; b++) {
+			// multiplicative, like hazard
+			double value = 1d;
+			int index = 0;
+			for (LogicTreeNode node : tree.getBranch(b))
+				value *= 1d + 0.3*(index++) + 0.1*Math.floorMod(node.getShortName().hashCode(), 5);
+			branchValues[b] = value;
+		}
+		LogicTreeSamplingConvergence conv = new LogicTreeSamplingConvergence(tree, branchValues, 0.5);
+		double expectedMean = 0d;
+		for (int b=0; b<branchValues.length; b++)
+			expectedMean += branchValues[b]*tree.getBranchWeight(b);
+		assertEquals(expectedMean, conv.getFullMean(), 1e-10);
+
+		int[] sampleCounts = { 5, 20, tree.size() };
+		for (LogicTreeSamplingMethod method : LogicTreeSamplingMethod.values()) {
+			List<ConvergenceResult> results = conv.calc(method, sampleCounts, 200, new Random(sampleCounts.length));
+			assertEquals(sampleCounts.length, results.size());
+			for (int i=1; i<results.size(); i++) {
+				assertTrue(method+" mean error didn't decrease",
+						results.get(i).meanRMSE < results.get(i-1).meanRMSE);
+				assertTrue(method+" node weight error didn't decrease",
+						results.get(i).meanMaxNodeWeightError < results.get(i-1).meanMaxNodeWeightError);
+			}
+		}
+
+		// duplicates are redrawn, so the sample count can't exceed the number of branches
+		try {
+			conv.calc(LogicTreeSamplingMethod.MONTE_CARLO, new int[] { tree.size()+1 }, 1, new Random());
+			fail("Should have failed for more samples than branches");
+		} catch (IllegalArgumentException e) {
+			// expected
+		}
+	}
+
+}
@@ -0,0 +1,18 @@
+package org.opensha.commons.logicTree;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+	TestLogicTreeBranch.class,
+	LogicTreeSamplingTest.class
+})
+
+public class LogicTreeSuite {
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.runClasses(LogicTreeSuite.class);
+	}
+
+}
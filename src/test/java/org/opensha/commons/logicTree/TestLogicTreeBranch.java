@@ -11,9 +11,13 @@ import scratch.UCERF3.enumTreeBranches.DeformationModels;
 import scratch.UCERF3.enumTreeBranches.FaultModels;
 import scratch.UCERF3.enumTreeBranches.InversionModels;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
+import java.util.Random;
 
 public class TestLogicTreeBranch {
 
@@ -208,4 +212,188 @@ public class TestLogicTreeBranch {
         assertEquals( LogicTreeLevel.FileBackedLevel.class, branch.getLevel(0).getClass());
         assertEquals("TestAdapterBackedNode", branch.getValue(0).getName());
     }
+
+    private static List<LogicTreeLevel<? extends LogicTreeNode>> buildIndexTestLevels(int numLevels, int nodesPerLevel) {
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = new ArrayList<>();
+        for (int l=0; l<numLevels; l++) {
+            List<LogicTreeNode.FileBackedNode> nodes = new ArrayList<>();
+            for (int n=0; n<nodesPerLevel; n++) {
+                String name = "L"+l+"N"+n;
+                nodes.add(new LogicTreeNode.FileBackedNode(name, name, 1d/nodesPerLevel, name));
+            }
+            levels.add(new LogicTreeLevel.FileBackedLevel("Level "+l, "L"+l, nodes));
+        }
+        return levels;
+    }
+
+    private static List<LogicTreeBranch<LogicTreeNode>> buildRandomBranches(
+            List<LogicTreeLevel<? extends LogicTreeNode>> levels, int numBranches, int nodesPerLevel, Random rand) {
+        List<LogicTreeBranch<LogicTreeNode>> branches = new ArrayList<>();
+        for (int b=0; b<numBranches; b++) {
+            List<LogicTreeNode> values = new ArrayList<>();
+            for (LogicTreeLevel<? extends LogicTreeNode> level : levels)
+                values.add(level.getNodes().get(rand.nextInt(nodesPerLevel)));
+            branches.add(new LogicTreeBranch<>(levels, values));
+        }
+        return branches;
+    }
+
+    private static List<LogicTreeNode> getValues(LogicTreeBranch<LogicTreeNode> branch) {
+        List<LogicTreeNode> values = new ArrayList<>();
+        for (int i=0; i<branch.size(); i++)
+            values.add(branch.getValue(i));
+        return values;
+    }
+
+    /**
+     * Brute force version of {@link LogicTree#indexOf(LogicTreeBranch)}
+     */
+    private static int linearIndexOf(LogicTree<?> tree, LogicTreeBranch<?> branch) {
+        for (int b=0; b<tree.size(); b++)
+            if (tree.getBranch(b).equals(branch))
+                return b;
+        return -1;
+    }
+
+    @Test
+    public void testIndexOfDuplicates() {
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = buildIndexTestLevels(3, 3);
+        // unique branches, in random order
+        List<LogicTreeBranch<LogicTreeNode>> branches = new ArrayList<>();
+        for (LogicTreeBranch<LogicTreeNode> branch : LogicTree.buildExhaustive(levels, true))
+            branches.add(branch);
+        Collections.shuffle(branches, new Random(10));
+        branches = new ArrayList<>(branches.subList(0, 10));
+        // duplicates (as from sampling), both as the same instance and as equal copies
+        branches.add(branches.get(3));
+        branches.add(branches.get(7).copy());
+        branches.add(2, branches.get(5).copy());
+        LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+
+        for (int b=0; b<tree.size(); b++) {
+            LogicTreeBranch<LogicTreeNode> branch = tree.getBranch(b);
+            int index = tree.indexOf(branch);
+            assertEquals("Branch "+b, linearIndexOf(tree, branch), index);
+            assertTrue(index <= b);
+            assertTrue(tree.contains(branch));
+        }
+        // first occurrence wins (indexes after the insertion are shifted by one)
+        assertEquals(4, tree.indexOf(tree.getBranch(11)));
+        assertEquals(8, tree.indexOf(tree.getBranch(12)));
+        assertEquals(2, tree.indexOf(tree.getBranch(6)));
+    }
+
+    @Test
+    public void testIndexOfNullValues() {
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = buildIndexTestLevels(3, 2);
+        List<LogicTreeBranch<LogicTreeNode>> branches = new ArrayList<>();
+        for (LogicTreeNode node0 : levels.get(0).getNodes()) {
+            for (LogicTreeNode node1 : levels.get(1).getNodes()) {
+                // last level unset
+                branches.add(new LogicTreeBranch<>(levels, Arrays.asList(node0, node1, null)));
+            }
+        }
+        LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+
+        List<LogicTreeNode> level2Nodes = new ArrayList<>(levels.get(2).getNodes());
+        for (int b=0; b<tree.size(); b++) {
+            LogicTreeBranch<LogicTreeNode> branch = tree.getBranch(b);
+            assertNull(branch.getValue(2));
+            assertEquals(b, tree.indexOf(branch.copy()));
+
+            // value set where the tree has null
+            LogicTreeBranch<LogicTreeNode> modified = branch.copy();
+            modified.setValue(2, level2Nodes.get(0));
+            assertEquals(-1, tree.indexOf(modified));
+            assertFalse(tree.contains(modified));
+
+            // null where the tree has a value
+            modified = branch.copy();
+            modified.setValue(0, null);
+            assertEquals(-1, tree.indexOf(modified));
+        }
+        // all null
+        assertEquals(-1, tree.indexOf(new LogicTreeBranch<>(levels)));
+    }
+
+    @Test
+    public void testIndexOfManyLevels() {
+        // 17 used nodes per level (more than are scanned, so looked up in a map) needs 5 bits each, so 20 levels need
+        // 100 bits and are packed into multiple words. The last node of each level is never used
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = buildIndexTestLevels(20, 18);
+        Random rand = new Random(levels.size());
+        List<LogicTreeBranch<LogicTreeNode>> branches = buildRandomBranches(levels, 2000, 17, rand);
+        LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+
+        for (int b=0; b<tree.size(); b++)
+            assertEquals(linearIndexOf(tree, tree.getBranch(b)), tree.indexOf(tree.getBranch(b).copy()));
+
+        // branches that differ at a single level, in the first and last words
+        for (int l : new int[] { 0, 5, 11, 12, 19 }) {
+            List<? extends LogicTreeNode> nodes = levels.get(l).getNodes();
+            for (int b=0; b<100; b++) {
+                LogicTreeBranch<LogicTreeNode> modified = tree.getBranch(b).copy();
+                int prevIndex = nodes.indexOf(modified.getValue(l));
+                modified.setValue(l, nodes.get((prevIndex + 1 + rand.nextInt(16)) % 17));
+                assertEquals("Level "+l+", branch "+b, linearIndexOf(tree, modified), tree.indexOf(modified));
+            }
+        }
+
+        // level member that isn't used by any branch
+        for (int l=0; l<levels.size(); l++) {
+            LogicTreeBranch<LogicTreeNode> modified = tree.getBranch(l).copy();
+            modified.setValue(l, levels.get(l).getNodes().get(17));
+            assertEquals(-1, tree.indexOf(modified));
+        }
+    }
+
+    @Test
+    public void testIndexOfBranchType() {
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = buildIndexTestLevels(3, 3);
+        List<LogicTreeBranch<LogicTreeNode>> branches = buildRandomBranches(levels, 10, 3, new Random(3));
+        LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+
+        for (int b=0; b<tree.size(); b++) {
+            LogicTreeBranch<LogicTreeNode> branch = tree.getBranch(b);
+            // same values, different type: not equal, so not contained
+            LogicTreeBranch<LogicTreeNode> subclass = new LogicTreeBranch<>(levels, getValues(branch)) {};
+            assertNotEquals(branch, subclass);
+            assertEquals(-1, tree.indexOf(subclass));
+            assertFalse(tree.contains(subclass));
+
+            // same values, equal but different level instances
+            List<LogicTreeLevel<? extends LogicTreeNode>> otherLevels = buildIndexTestLevels(3, 3);
+            LogicTreeBranch<LogicTreeNode> otherLevelBranch = new LogicTreeBranch<>(otherLevels, getValues(branch));
+            assertEquals(branch, otherLevelBranch);
+            assertEquals(linearIndexOf(tree, branch), tree.indexOf(otherLevelBranch));
+        }
+    }
+
+    @Test
+    public void testIndexOfJSON() throws IOException {
+        List<LogicTreeLevel<? extends LogicTreeNode>> levels = buildIndexTestLevels(4, 5);
+        List<LogicTreeBranch<LogicTreeNode>> branches = buildRandomBranches(levels, 50, 5, new Random(4));
+        // include a duplicate
+        branches.add(branches.get(10).copy());
+        LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+        // build the index before writing
+        assertEquals(10, tree.indexOf(tree.getBranch(50)));
+
+        File file = File.createTempFile("logic_tree", ".json");
+        file.deleteOnExit();
+        tree.write(file);
+        LogicTree<LogicTreeNode> tree2 = LogicTree.read(file);
+        file.delete();
+
+        assertEquals(tree.size(), tree2.size());
+        for (int b=0; b<tree.size(); b++) {
+            LogicTreeBranch<LogicTreeNode> branch = tree.getBranch(b);
+            LogicTreeBranch<LogicTreeNode> branch2 = tree2.getBranch(b);
+            assertEquals(branch, branch2);
+            int index = tree.indexOf(branch);
+            assertEquals(index, tree2.indexOf(branch2));
+            assertEquals(index, tree2.indexOf(branch));
+            assertEquals(index, tree.indexOf(branch2));
+        }
+    }
 }
@@ -4,6 +4,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.opensha.commons.util.binFile.BinaryMesh2DTest;
 import org.opensha.commons.util.binFile.GeolocatedBinaryMesh2DTest;
+import org.opensha.commons.util.io.archive.ArchiveOutputTest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
@@ -11,7 +12,8 @@ import org.opensha.commons.util.binFile.GeolocatedBinaryMesh2DTest;
 	FaultUtilsTests.class,
 	BinaryMesh2DTest.class,
 	GeolocatedBinaryMesh2DTest.class,
-	InterpolateTests.class
+	InterpolateTests.class,
+	ArchiveOutputTest.class
 })
 
 
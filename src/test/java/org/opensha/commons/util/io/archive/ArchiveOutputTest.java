@@ -0,0 +1,174 @@
+package org.opensha.commons.util.io.archive;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.ZipEntry;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests for {@link ArchiveOutput#putNextUncompressedEntry(String)} across {@link ArchiveOutput} implementations:
+ * contents must always round trip (including through {@link ArchiveInput#getByteBuffer(String)}), and zip
+ * implementations that support it must store the entry uncompressed and aligned for memory-mapping.
+ *
+ * @author kevin
+ *
+ */
+public class ArchiveOutputTest {
+
+	private static final String TEXT_BEFORE_NAME = "before.txt";
+	// odd length so that the following entry would not be aligned by chance
+	private static final String TEXT_BEFORE = "text before the binary entry.";
+	private static final String BINARY_NAME = "sub_dir/values.bin";
+	private static final String TEXT_AFTER_NAME = "after.txt";
+	private static final String TEXT_AFTER = "text after the binary entry";
+	private static final int NUM_VALUES = 1000;
+
+	private static File tempDir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		tempDir = Files.createTempDir();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static double value(int index) {
+		return Math.PI*index - 1d/(index+1);
+	}
+
+	private static void writeEntries(ArchiveOutput output) throws IOException {
+		writeText(output, TEXT_BEFORE_NAME, TEXT_BEFORE);
+		output.putNextEntry("sub_dir/");
+		output.closeEntry();
+		output.putNextUncompressedEntry(BINARY_NAME);
+		DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(output.getOutputStream()));
+		for (int i=0; i<NUM_VALUES; i++)
+			dout.writeDouble(value(i));
+		dout.flush();
+		output.closeEntry();
+		writeText(output, TEXT_AFTER_NAME, TEXT_AFTER);
+		output.close();
+	}
+
+	private static void writeText(ArchiveOutput output, String name, String text) throws IOException {
+		output.putNextEntry(name);
+		OutputStream out = output.getOutputStream();
+		out.write(text.getBytes(StandardCharsets.UTF_8));
+		out.flush();
+		output.closeEntry();
+	}
+
+	private static void validateContents(ArchiveInput input) throws IOException {
+		assertEquals(TEXT_BEFORE, readText(input, TEXT_BEFORE_NAME));
+		assertEquals(TEXT_AFTER, readText(input, TEXT_AFTER_NAME));
+
+		ByteBuffer buffer = input.getByteBuffer(BINARY_NAME);
+		assertEquals("Binary entry size mismatch", 8*NUM_VALUES, buffer.remaining());
+		for (int i=0; i<NUM_VALUES; i++)
+			assertEquals(value(i), buffer.getDouble(buffer.position()+8*i), 0d);
+		try (InputStream is = input.getInputStream(BINARY_NAME)) {
+			assertEquals(8*NUM_VALUES, is.readAllBytes().length);
+		}
+		input.close();
+	}
+
+	private static String readText(ArchiveInput input, String name) throws IOException {
+		try (InputStream is = input.getInputStream(name)) {
+			return new String(is.readAllBytes(), StandardCharsets.UTF_8);
+		}
+	}
+
+	/**
+	 * Checks that the binary entry is stored (uncompressed) in the given zip file, and that the data are 8-byte aligned
+	 */
+	private static void validateStoredAligned(File file) throws IOException {
+		try (ZipFile zip = ZipFile.builder().setFile(file).get()) {
+			ZipArchiveEntry binEntry = zip.getEntry(BINARY_NAME);
+			assertNotNull(binEntry);
+			assertEquals("Binary entry should be stored uncompressed", ZipEntry.STORED, binEntry.getMethod());
+			assertEquals("Binary entry data isn't 8-byte aligned", 0l, binEntry.getDataOffset() % 8l);
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry(TEXT_AFTER_NAME).getMethod());
+		}
+	}
+
+	@Test
+	public void testZipFileOutput() throws IOException {
+		File file = new File(tempDir, "java_zip.zip");
+		ArchiveOutput.ZipFileOutput output = new ArchiveOutput.ZipFileOutput(file);
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+		// java.util.zip doesn't support alignment, just check that it's stored
+		try (ZipFile zip = ZipFile.builder().setFile(file).get()) {
+			assertEquals(ZipEntry.STORED, zip.getEntry(BINARY_NAME).getMethod());
+			assertEquals(ZipEntry.DEFLATED, zip.getEntry(TEXT_AFTER_NAME).getMethod());
+		}
+	}
+
+	@Test
+	public void testApacheZipFileOutput() throws IOException {
+		File file = new File(tempDir, "apache_zip.zip");
+		ArchiveOutput.ApacheZipFileOutput output = new ArchiveOutput.ApacheZipFileOutput(file);
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+		validateStoredAligned(file);
+	}
+
+	@Test
+	public void testAsynchronousZipFileOutput() throws IOException {
+		File file = new File(tempDir, "async_zip.zip");
+		ArchiveOutput.AsynchronousZipFileOutput output = new ArchiveOutput.AsynchronousZipFileOutput(file);
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+		validateStoredAligned(file);
+	}
+
+	@Test
+	public void testParallelZipFileOutput() throws IOException {
+		// always compressed, but contents should still round trip
+		File file = new File(tempDir, "parallel_zip.zip");
+		ArchiveOutput.ParallelZipFileOutput output = new ArchiveOutput.ParallelZipFileOutput(file, 2);
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+	}
+
+	@Test
+	public void testInMemoryZipOutput() throws IOException {
+		ArchiveOutput.InMemoryZipOutput output = new ArchiveOutput.InMemoryZipOutput(true, 1024*1024);
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+	}
+
+	@Test
+	public void testTarFileOutput() throws IOException {
+		ArchiveOutput.TarFileOutput output = new ArchiveOutput.TarFileOutput(new File(tempDir, "archive.tar"));
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+	}
+
+	@Test
+	public void testDirectoryOutput() throws IOException {
+		ArchiveOutput.DirectoryOutput output = new ArchiveOutput.DirectoryOutput(new File(tempDir, "dir_output").toPath());
+		writeEntries(output);
+		validateContents(output.getCompletedInput());
+	}
+
+}
@@ -9,6 +9,7 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.util.Enumeration;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.Callable;
 import java.util.zip.ZipEntry;
@@ -21,6 +22,7 @@ import org.junit.Test;
 import org.opensha.commons.util.FileUtils;
 import org.opensha.commons.util.io.archive.ArchiveInput;
 import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.modules.ModuleArchive.ModuleLoadStats;
 import org.opensha.commons.util.modules.helpers.TextBackedModule;
 
 import com.google.common.base.Preconditions;
@@ -454,6 +456,62 @@ public class ModuleArchiveTest {
 	/**
 	 * Replaces a string in a zip entry, used to muck with already written archives to test input validation on load
 	 */
+	@Test
+	public void testLoadStats() throws IOException {
+		System.out.println("*** testLoadStats() ***");
+		System.out.println("Testing that load stats only count modules loaded from within other modules once");
+		
+		ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+		archive.addModule(new SlowTextModule("slow text"));
+		archive.addModule(new DependentTextModule("dependent text"));
+		
+		File outputFile = new File(parentDir, "load_stats.zip");
+		archive.write(outputFile);
+		
+		archive = new ModuleArchive<>(outputFile);
+		assertTrue("Nothing should have been loaded yet", archive.getModuleLoadStats().isEmpty());
+		// this will load the slow module from within its own load
+		DependentTextModule dependent = archive.requireModule(DependentTextModule.class);
+		assertEquals("dependent text", dependent.getText());
+		assertEquals("slow text", dependent.slowText);
+		
+		List<ModuleLoadStats> stats = archive.getModuleLoadStats();
+		System.out.println(archive.getModuleLoadReport());
+		assertEquals(2, stats.size());
+		ModuleLoadStats slowStats = null;
+		ModuleLoadStats dependentStats = null;
+		for (ModuleLoadStats stat : stats) {
+			if (stat.className.equals(SlowTextModule.class.getName()))
+				slowStats = stat;
+			else if (stat.className.equals(DependentTextModule.class.getName()))
+				dependentStats = stat;
+		}
+		assertNotNull(slowStats);
+		assertNotNull(dependentStats);
+		
+		assertTrue("Slow module load time is too fast: "+slowStats.millis, slowStats.millis >= SLOW_LOAD_MILLIS);
+		assertEquals("Slow module didn't load anything else", slowStats.millis, slowStats.totalMillis);
+		assertTrue("Dependent module total time should include the slow module load",
+				dependentStats.totalMillis >= slowStats.totalMillis);
+		assertTrue("Dependent module exclusive time should not include the slow module load: "+dependentStats.millis,
+				dependentStats.millis < SLOW_LOAD_MILLIS);
+		// exclusive times should sum to no more than the overall time
+		assertTrue(slowStats.millis + dependentStats.millis <= dependentStats.totalMillis);
+		assertTrue("Report total should sum exclusive times",
+				archive.getModuleLoadReport().contains("Total: "+(slowStats.millis + dependentStats.millis)+" ms"));
+		
+		for (ModuleLoadStats stat : stats)
+			assertEquals("Unexpected size for "+stat.name, expectedTextSize(stat), stat.bytes);
+
+		System.out.println("*** END testLoadStats() ***");
+	}
+	
+	private static long expectedTextSize(ModuleLoadStats stat) {
+		if (stat.className.equals(SlowTextModule.class.getName()))
+			return "slow text".length();
+		return "dependent text".length();
+	}
+	
 	private static void findReplaceInZipFile(File inZipFile, File outZipFile, String entryName, String find,
 			String replace) throws IOException {
 		ZipFile zip = new ZipFile(inZipFile);
@@ -579,6 +637,115 @@ public class ModuleArchiveTest {
 		
 	}
 	
+	private static final long SLOW_LOAD_MILLIS = 200l;
+	
+	private static class SlowTextModule implements TextBackedModule {
+		
+		private String text;
+		
+		private SlowTextModule() {
+			
+		}
+
+		public SlowTextModule(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public String getFileName() {
+			return "slow_text_module.txt";
+		}
+
+		@Override
+		public String getName() {
+			return "Slow Text Module";
+		}
+
+		@Override
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public void initFromStream(BufferedInputStream in) throws IOException {
+			try {
+				Thread.sleep(SLOW_LOAD_MILLIS);
+			} catch (InterruptedException e) {
+				throw new IOException(e);
+			}
+			TextBackedModule.super.initFromStream(in);
+		}
+		
+	}
+	
+	/**
+	 * Loads the {@link SlowTextModule} from its parent archive as part of its own load
+	 */
+	private static class DependentTextModule implements TextBackedModule, SubModule<ModuleArchive<OpenSHA_Module>> {
+		
+		private String text;
+		private String slowText;
+		private ModuleArchive<OpenSHA_Module> parent;
+		
+		private DependentTextModule() {
+			
+		}
+
+		public DependentTextModule(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public String getFileName() {
+			return "dependent_text_module.txt";
+		}
+
+		@Override
+		public String getName() {
+			return "Dependent Text Module";
+		}
+
+		@Override
+		public String getText() {
+			return text;
+		}
+
+		@Override
+		public void setText(String text) {
+			this.text = text;
+		}
+
+		@Override
+		public void initFromArchive(ArchiveInput input, String entryPrefix) throws IOException {
+			slowText = parent.requireModule(SlowTextModule.class).getText();
+			TextBackedModule.super.initFromArchive(input, entryPrefix);
+		}
+
+		@Override
+		public void setParent(ModuleArchive<OpenSHA_Module> parent) throws IllegalStateException {
+			this.parent = parent;
+		}
+
+		@Override
+		public ModuleArchive<OpenSHA_Module> getParent() {
+			return parent;
+		}
+
+		@Override
+		public SubModule<ModuleArchive<OpenSHA_Module>> copy(ModuleArchive<OpenSHA_Module> newParent)
+				throws IllegalStateException {
+			DependentTextModule copy = new DependentTextModule(text);
+			copy.setParent(newParent);
+			return copy;
+		}
+		
+	}
+	
 	private static class NestedModule extends ModuleContainer<OpenSHA_Module> implements ArchivableModule {
 		
 		private String nestingPrefix;
@@ -2,13 +2,15 @@ package org.opensha.commons.util.modules;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
+import org.opensha.commons.util.modules.helpers.BinaryColumnsTest;
 import org.opensha.commons.util.modules.helpers.FileBackedHelperTests;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	ModuleContainerTest.class,
 	ModuleArchiveTest.class,
-	FileBackedHelperTests.class
+	FileBackedHelperTests.class,
+	BinaryColumnsTest.class
 })
 
 public class ModuleTestSuite {
@@ -0,0 +1,236 @@
+package org.opensha.commons.util.modules.helpers;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.commons.util.modules.AverageableModule.AveragingAccumulator;
+import org.opensha.commons.util.modules.ModuleArchive;
+import org.opensha.commons.util.modules.OpenSHA_Module;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
+
+import com.google.common.io.Files;
+
+/**
+ * Round trip tests for {@link BinaryColumns} in each {@link Encoding}, both directly and through
+ * {@link BinaryColumnBackedModule} archives.
+ *
+ * @author kevin
+ *
+ */
+public class BinaryColumnsTest {
+
+	private static final int NUM_VALUES = 10000;
+
+	private static File tempDir;
+
+	private static double[] doubles;
+	private static float[] floats;
+	private static int[] ints;
+	// NaNs with non-canonical payloads (which CSV files can't retain), interleaved with regular values
+	private static double[] nanDoubles;
+	private static float[] nanFloats;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		tempDir = Files.createTempDir();
+
+		Random r = new Random(NUM_VALUES);
+		doubles = new double[NUM_VALUES];
+		floats = new float[NUM_VALUES];
+		ints = new int[NUM_VALUES];
+		for (int i=0; i<NUM_VALUES; i++) {
+			if (i % 5 == 0) {
+				// rate-like arrays are often mostly zero
+				doubles[i] = 0d;
+			} else if (i % 5 == 1) {
+				// slowly varying, which is where delta encoding helps
+				doubles[i] = 1d + i*1e-4;
+			} else {
+				doubles[i] = (r.nextDouble()-0.5)*Math.pow(10, r.nextInt(20)-10);
+			}
+			floats[i] = (float)(r.nextGaussian()*100d);
+			// sorted-ish indexes, with some negatives
+			ints[i] = i % 11 == 0 ? -r.nextInt(1000) : i*3 + r.nextInt(3);
+		}
+		// special values
+		doubles[3] = Double.NaN;
+		doubles[4] = Double.POSITIVE_INFINITY;
+		doubles[7] = Double.NEGATIVE_INFINITY;
+		doubles[8] = -0d;
+		doubles[9] = Double.MIN_VALUE;
+		doubles[12] = Double.MAX_VALUE;
+		floats[3] = Float.NaN;
+		floats[4] = Float.NEGATIVE_INFINITY;
+		ints[3] = Integer.MIN_VALUE;
+		ints[4] = Integer.MAX_VALUE;
+		nanDoubles = new double[] { 1d, Double.longBitsToDouble(0x7ff0000000000001l), 1d,
+				Double.longBitsToDouble(0xfff8000000abcdefl), Double.NaN, -2.5d, Double.longBitsToDouble(0x7ff4000000000000l) };
+		nanFloats = new float[] { 1f, Float.intBitsToFloat(0x7f800001), 1f, Float.intBitsToFloat(0xffc01234), Float.NaN,
+				-2.5f, Float.intBitsToFloat(0x7fa00000) };
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	@Test
+	public void testRaw() throws IOException {
+		doTestRoundTrip(Encoding.RAW);
+	}
+
+	@Test
+	public void testDeflate() throws IOException {
+		doTestRoundTrip(Encoding.DEFLATE);
+	}
+
+	@Test
+	public void testDeltaDeflate() throws IOException {
+		doTestRoundTrip(Encoding.DELTA_DEFLATE);
+	}
+
+	private static void doTestRoundTrip(Encoding encoding) throws IOException {
+		BinaryColumns columns = new BinaryColumns()
+				.add("doubles", doubles)
+				.add("floats", floats)
+				.add("ints", ints)
+				.add("nanDoubles", nanDoubles)
+				.add("nanFloats", nanFloats)
+				.add("empty", new double[0])
+				.add("short", new int[] { 42 });
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		columns.write(out, encoding);
+		byte[] bytes = out.toByteArray();
+		if (encoding.isCompressed())
+			assertTrue("Compressed size ("+bytes.length+") isn't smaller than raw", bytes.length < 16*NUM_VALUES);
+
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		assertTrue(BinaryColumns.isBinaryColumns(buffer));
+		BinaryColumns read = BinaryColumns.read(buffer);
+		assertEquals(encoding, read.getEncoding());
+		assertEquals(columns.getColumnNames(), read.getColumnNames());
+
+		// exact, bitwise equality (including NaN, infinities, and negative zero)
+		assertBitwiseEquals(doubles, read.getDoubles("doubles"));
+		assertBitwiseEquals(floats, read.getFloats("floats"));
+		assertBitwiseEquals(nanDoubles, read.getDoubles("nanDoubles"));
+		assertBitwiseEquals(nanFloats, read.getFloats("nanFloats"));
+		assertArrayEquals(ints, read.getInts("ints"));
+		assertEquals(0, read.getDoubles("empty").length);
+		assertArrayEquals(new int[] { 42 }, read.getInts("short"));
+
+		// module round trip should match the CSV round trip
+		TestValuesModule csvModule = new TestValuesModule(doubles);
+		TestValuesModule binModule = new TestValuesModule(doubles);
+		binModule.setBinaryEncoding(encoding);
+		File csvFile = writeModule(csvModule, encoding.name()+"_csv");
+		File binFile = writeModule(binModule, encoding.name()+"_bin");
+		assertFalse(hasBinaryEntry(csvFile, csvModule));
+		assertTrue(hasBinaryEntry(binFile, binModule));
+		TestValuesModule csvLoaded = new ModuleArchive<>(csvFile).requireModule(TestValuesModule.class);
+		TestValuesModule binLoaded = new ModuleArchive<>(binFile).requireModule(TestValuesModule.class);
+		assertNull(csvLoaded.getBinaryEncoding());
+		assertEquals(encoding, binLoaded.getBinaryEncoding());
+		assertBitwiseEquals(csvLoaded.get(), binLoaded.get());
+		assertBitwiseEquals(doubles, binLoaded.get());
+
+		// default encoding switch
+		BinaryColumns.setDefaultEncoding(encoding);
+		try {
+			File defaultFile = writeModule(csvModule, encoding.name()+"_default");
+			assertTrue("Default encoding wasn't used", hasBinaryEntry(defaultFile, csvModule));
+			TestValuesModule defaultLoaded = new ModuleArchive<>(defaultFile).requireModule(TestValuesModule.class);
+			assertEquals(encoding, defaultLoaded.getBinaryEncoding());
+			assertBitwiseEquals(doubles, defaultLoaded.get());
+		} finally {
+			BinaryColumns.setDefaultEncoding(null);
+		}
+
+		// averaging should keep the encoding
+		AveragingAccumulator<TestValuesModule> accumulator = binLoaded.averagingAccumulator();
+		accumulator.process(binLoaded, 1d);
+		accumulator.process(binModule, 1d);
+		assertEquals(encoding, accumulator.getAverage().getBinaryEncoding());
+		// unless they differ
+		accumulator = binLoaded.averagingAccumulator();
+		accumulator.process(binLoaded, 1d);
+		accumulator.process(csvLoaded, 1d);
+		assertNull(accumulator.getAverage().getBinaryEncoding());
+	}
+
+	private static void assertBitwiseEquals(double[] expected, double[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i=0; i<expected.length; i++)
+			assertEquals("Mismatch at "+i, Double.doubleToRawLongBits(expected[i]),
+					Double.doubleToRawLongBits(actual[i]));
+	}
+
+	private static void assertBitwiseEquals(float[] expected, float[] actual) {
+		assertEquals(expected.length, actual.length);
+		for (int i=0; i<expected.length; i++)
+			assertEquals("Mismatch at "+i, Float.floatToRawIntBits(expected[i]), Float.floatToRawIntBits(actual[i]));
+	}
+
+	private static File writeModule(TestValuesModule module, String name) throws IOException {
+		File file = new File(tempDir, name+".zip");
+		ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+		archive.addModule(module);
+		archive.write(file);
+		return file;
+	}
+
+	private static boolean hasBinaryEntry(File file, BinaryColumnBackedModule module) throws IOException {
+		try (ZipFile zip = new ZipFile(file)) {
+			return zip.getEntry(module.getBinaryFileName()) != null;
+		}
+	}
+
+	public static class TestValuesModule extends AbstractDoubleArrayCSV_BackedModule.Averageable<TestValuesModule> {
+
+		@SuppressWarnings("unused") // used in deserialization
+		private TestValuesModule() {
+			super();
+		}
+
+		public TestValuesModule(double[] values) {
+			super(values);
+		}
+
+		@Override
+		public String getFileName() {
+			return "test_values.csv";
+		}
+
+		@Override
+		public String getName() {
+			return "Test Values";
+		}
+
+		@Override
+		protected TestValuesModule averageInstance(double[] avgValues) {
+			return new TestValuesModule(avgValues);
+		}
+
+		@Override
+		protected String getIndexHeading() {
+			return "Index";
+		}
+
+		@Override
+		protected String getValueHeading() {
+			return "Value";
+		}
+
+	}
+
+}
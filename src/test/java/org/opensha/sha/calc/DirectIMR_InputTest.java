@@ -0,0 +1,205 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.earthquake.EqkRupture;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.PointSurface;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.DirectIMR_Input;
+import org.opensha.sha.imr.DirectInputIMR;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.ASK_2014;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.BSSA_2014;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.CB_2014;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.CY_2014;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.Idriss_2014;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_Wrapper;
+import org.opensha.sha.imr.attenRelImpl.nshmp.NSHMP_GMM_Wrapper;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.imr.param.SiteParams.DepthTo1pt0kmPerSecParam;
+import org.opensha.sha.imr.param.SiteParams.Vs30_Param;
+import org.opensha.sha.imr.param.SiteParams.Vs30_TypeParam;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+
+/**
+ * Checks that exceedance probabilities computed from a {@link DirectIMR_Input} via
+ * {@link DirectInputIMR#setDirectInput(DirectIMR_Input)} are identical to those computed through the standard
+ * {@link ScalarIMR#setSite(Site)} and {@link ScalarIMR#setEqkRupture(EqkRupture)} path.
+ *
+ * @author kevin
+ *
+ */
+public class DirectIMR_InputTest {
+
+	private static List<EqkRupture> ruptures;
+	private static List<Location> siteLocs;
+	private static DiscretizedFunc logXVals;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		ruptures = new ArrayList<>();
+		// point surfaces, with and without a hypocenter
+		Location ptLoc = new Location(34, -118);
+		PointSurface ptSurf = new PointSurface(ptLoc);
+		ptSurf.setAveDip(90d);
+		ptSurf.setAveWidth(10d);
+		ruptures.add(new EqkRupture(5.5, 0d, ptSurf, null));
+		PointSurface deepPtSurf = new PointSurface(new Location(ptLoc.lat, ptLoc.lon, 5d));
+		deepPtSurf.setAveDip(50d);
+		deepPtSurf.setAveWidth(8d);
+		ruptures.add(new EqkRupture(6.2, 90d, deepPtSurf, new Location(ptLoc.lat, ptLoc.lon, 8d)));
+		// finite surfaces: vertical strike-slip, and dipping reverse and normal
+		FaultTrace trace = new FaultTrace("test");
+		trace.add(new Location(34.1, -118.3));
+		trace.add(new Location(34.2, -117.9));
+		ruptures.add(new EqkRupture(7.1, 180d, new StirlingGriddedSurface(trace, 90d, 0d, 12d, 1d), null));
+		ruptures.add(new EqkRupture(6.8, 90d, new StirlingGriddedSurface(trace, 30d, 2d, 15d, 1d), null));
+		ruptures.add(new EqkRupture(6.5, -90d, new StirlingGriddedSurface(trace, 60d, 1d, 14d, 1d), null));
+
+		// near (including hanging wall and footwall) and far sites
+		siteLocs = List.of(new Location(34.05, -118.1), new Location(34.25, -118.05), new Location(34.15, -118.1),
+				new Location(34.8, -117.2));
+
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(PGA_Param.NAME);
+		logXVals = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.size(); i++)
+			logXVals.set(Math.log(xVals.getX(i)), 0d);
+	}
+
+	@Test
+	public void testDisabledByDefault() {
+		assertFalse(new HazardCurveCalculator().isUseDirectIMR_Inputs());
+	}
+
+	@Test
+	public void testASK_2014() {
+		doTest(new NGAW2_Wrapper(ASK_2014.SHORT_NAME, new ASK_2014()));
+	}
+
+	@Test
+	public void testBSSA_2014() {
+		doTest(new NGAW2_Wrapper(BSSA_2014.SHORT_NAME, new BSSA_2014()));
+	}
+
+	@Test
+	public void testCB_2014() {
+		doTest(new NGAW2_Wrapper(CB_2014.SHORT_NAME, new CB_2014()));
+	}
+
+	@Test
+	public void testCY_2014() {
+		doTest(new NGAW2_Wrapper(CY_2014.SHORT_NAME, new CY_2014()));
+	}
+
+	@Test
+	public void testIdriss_2014() {
+		doTest(new NGAW2_Wrapper(Idriss_2014.SHORT_NAME, new Idriss_2014()));
+	}
+
+	@Test
+	public void testNSHMP_ASK_14() {
+		doTest(new NSHMP_GMM_Wrapper(Gmm.ASK_14));
+	}
+
+	@Test
+	public void testNSHMP_CB_14() {
+		doTest(new NSHMP_GMM_Wrapper(Gmm.CB_14));
+	}
+
+	private static void doTest(DirectInputIMR imr) {
+		imr.setParamDefaults();
+		assertTrue(imr.isDirectInputSupported());
+
+		List<Site> sites = new ArrayList<>();
+		for (Location loc : siteLocs) {
+			// defaults (build these first, as setting a site can change IMR parameter values)
+			Site site = buildSite(loc, imr);
+			sites.add(site);
+			// non-default values
+			site = buildSite(loc, imr);
+			if (site.containsParameter(Vs30_Param.NAME))
+				site.getParameter(Double.class, Vs30_Param.NAME).setValue(400d);
+			if (site.containsParameter(Vs30_TypeParam.NAME))
+				site.getParameter(String.class, Vs30_TypeParam.NAME).setValue(Vs30_TypeParam.VS30_TYPE_MEASURED);
+			if (site.containsParameter(DepthTo1pt0kmPerSecParam.NAME))
+				site.getParameter(Double.class, DepthTo1pt0kmPerSecParam.NAME).setValue(350d);
+			sites.add(site);
+		}
+
+		for (String imt : new String[] { PGA_Param.NAME, SA_Param.NAME }) {
+			imr.setIntensityMeasure(imt);
+			if (imt.equals(SA_Param.NAME))
+				SA_Param.setPeriodInSA_Param(imr.getIntensityMeasure(), 1d);
+			for (int s=0; s<sites.size(); s++) {
+				Site site = sites.get(s);
+				DirectIMR_Input input = new DirectIMR_Input();
+				input.setSite(site, imr);
+				for (int r=0; r<ruptures.size(); r++) {
+					EqkRupture rup = ruptures.get(r);
+					String name = imr.getShortName()+", "+imt+", site "+s+", rupture "+r;
+
+					imr.setSite(site);
+					imr.setEqkRupture(rup);
+					DiscretizedFunc expected = imr.getExceedProbabilities(logXVals.deepClone());
+
+					input.setRupture(rup, site.getLocation());
+					imr.setDirectInput(input);
+					assertIdentical(name, expected, imr.getExceedProbabilities(logXVals.deepClone()));
+				}
+			}
+		}
+
+		// sites without any parameters should use the IMR defaults
+		imr.setIntensityMeasure(PGA_Param.NAME);
+		for (int s=0; s<siteLocs.size(); s++) {
+			Location loc = siteLocs.get(s);
+			Site defaultSite = sites.get(2*s);
+			DirectIMR_Input input = new DirectIMR_Input();
+			input.setSite(new Site(loc), imr);
+			for (int r=0; r<ruptures.size(); r++) {
+				EqkRupture rup = ruptures.get(r);
+				imr.setSite(defaultSite);
+				imr.setEqkRupture(rup);
+				DiscretizedFunc expected = imr.getExceedProbabilities(logXVals.deepClone());
+
+				input.setRupture(rup, loc);
+				imr.setDirectInput(input);
+				assertIdentical(imr.getShortName()+", empty site "+s+", rupture "+r,
+						expected, imr.getExceedProbabilities(logXVals.deepClone()));
+			}
+		}
+	}
+
+	private static Site buildSite(Location loc, ScalarIMR imr) {
+		Site site = new Site(loc);
+		// IMR parameters are at their default values
+		for (Parameter<?> param : imr.getSiteParams())
+			site.addParameter((Parameter<?>)param.clone());
+		return site;
+	}
+
+	private static void assertIdentical(String name, DiscretizedFunc expected, DiscretizedFunc actual) {
+		assertEquals(expected.size(), actual.size());
+		boolean anyNonZero = false;
+		for (int i=0; i<expected.size(); i++) {
+			assertEquals(name+", x="+(float)expected.getX(i), expected.getY(i), actual.getY(i), 0d);
+			anyNonZero |= expected.getY(i) > 0d;
+		}
+		assertTrue(name+": test isn't meaningful, curve is zero", anyNonZero);
+	}
+
+}
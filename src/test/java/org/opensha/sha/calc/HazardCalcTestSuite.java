@@ -0,0 +1,19 @@
+package org.opensha.sha.calc;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+	PointSourceExceedanceCacheTest.class,
+	DirectIMR_InputTest.class,
+	SourceParallelHazardCurveTest.class,
+	RuptureSkipHazardCurveTest.class
+})
+
+public class HazardCalcTestSuite {
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.runClasses(HazardCalcTestSuite.class);
+	}
+}
@@ -0,0 +1,212 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureSource;
+import org.opensha.sha.earthquake.param.BackgroundRupType;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_Wrappers;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Compares hazard curves calculated with and without a {@link PointSourceExceedanceCache} for small gridded source
+ * models. Interpolated exceedance probabilities must be within {@link #MAX_REL_DIFF} of the exact probabilities
+ * (relative to the exact value) wherever the exact probability is at least {@link #MIN_PROB}, and within
+ * {@link #MIN_PROB}*{@link #MAX_REL_DIFF} in absolute terms elsewhere.
+ *
+ * @author kevin
+ *
+ */
+public class PointSourceExceedanceCacheTest {
+
+	/**
+	 * Maximum relative curve difference with the default of 50 points per decade. Errors are below 0.1% for sites
+	 * within the source region, and largest (about 0.8%) in the tails of curves for sites outside of it.
+	 */
+	private static final double MAX_REL_DIFF = 0.01;
+	/**
+	 * Maximum relative curve difference with 100 points per decade (errors scale with the square of the spacing)
+	 */
+	private static final double MAX_REL_DIFF_FINE = 0.003;
+	private static final double MIN_PROB = 1e-8;
+
+	private static final double DURATION = 1d;
+
+	private static GriddedRegion gridReg;
+	private static List<Site> sites;
+	private static DiscretizedFunc logXVals;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Location center = new Location(34, -118);
+		gridReg = new GriddedRegion(new Location(center.lat-0.5, center.lon-0.5),
+				new Location(center.lat+0.5, center.lon+0.5), 0.1, null);
+
+		ScalarIMR imr = buildIMR();
+		sites = new ArrayList<>();
+		// on a grid node, between grid nodes, and outside of the region
+		for (Location loc : new Location[] { center, new Location(center.lat+0.23, center.lon-0.17),
+				new Location(center.lat+1, center.lon+0.8) }) {
+			Site site = new Site(loc);
+			for (Parameter<?> param : imr.getSiteParams())
+				site.addParameter((Parameter<?>)param.clone());
+			sites.add(site);
+		}
+
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(PGA_Param.NAME);
+		logXVals = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.size(); i++)
+			logXVals.set(Math.log(xVals.getX(i)), 0d);
+	}
+
+	private static ScalarIMR buildIMR() {
+		ScalarIMR imr = new NGAW2_Wrappers.ASK_2014_Wrapper();
+		imr.setParamDefaults();
+		return imr;
+	}
+
+	private static SourceListERF buildERF(BackgroundRupType bgRupType, boolean includeTruePoint) {
+		TectonicRegionType trt = TectonicRegionType.ACTIVE_SHALLOW;
+		List<ProbEqkSource> sources = new ArrayList<>();
+		for (int i=0; i<gridReg.getNodeCount(); i++) {
+			Location loc = gridReg.getLocation(i);
+			List<GriddedRupture> rups = new ArrayList<>();
+			if (includeTruePoint)
+				// true point rupture, which always gets a PointSurface
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(5.05, 0d, 90d, Double.NaN, null,
+						5d, 5d, 0d, 5d, Double.NaN, trt), 1e-3));
+			for (double mag=5.55; mag<7.6; mag+=0.5) {
+				double rate = 1e-3*Math.pow(10, -(mag-5.05));
+				double length = Math.pow(10, -3.22 + 0.69*mag);
+				// strike slip
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 0d, 90d, Double.NaN, null,
+						0d, 12d, length, 6d, Double.NaN, trt), rate));
+				// reverse
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 90d, 50d, Double.NaN, null,
+						1d, 15d, length, 8d, Double.NaN, trt), 0.5*rate));
+			}
+			sources.add(new GriddedRuptureSource(loc, rups, DURATION, 0d, null, bgRupType, trt));
+		}
+		return new SourceListERF(sources);
+	}
+
+	@Test
+	public void testPointSurfaces() {
+		doTest(BackgroundRupType.POINT, PGA_Param.NAME, new PointSourceExceedanceCache(), MAX_REL_DIFF);
+	}
+
+	@Test
+	public void testPointSurfacesSA() {
+		doTest(BackgroundRupType.POINT, SA_Param.NAME, new PointSourceExceedanceCache(), MAX_REL_DIFF);
+	}
+
+	@Test
+	public void testFineTables() {
+		doTest(BackgroundRupType.POINT, PGA_Param.NAME, new PointSourceExceedanceCache(100d,
+				PointSourceExceedanceCache.MIN_TABLE_DIST_DEFAULT, PointSourceExceedanceCache.MAX_TABLE_DIST_DEFAULT),
+				MAX_REL_DIFF_FINE);
+	}
+
+	@Test
+	public void testFiniteSurfacesUncached() {
+		// finite quadrilateral surfaces aren't supported, and curves should be identical
+		SourceListERF erf = buildERF(BackgroundRupType.FINITE, false);
+		PointSourceExceedanceCache cache = new PointSourceExceedanceCache();
+		ScalarIMR imr = buildIMR();
+		imr.setIntensityMeasure(PGA_Param.NAME);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		// the first calculation with a new calculator can differ in the last few bits, don't compare it
+		calc.getHazardCurve(logXVals.deepClone(), sites.get(0), imr, erf);
+		for (Site site : sites) {
+			calc.setPointSourceExceedanceCache(null);
+			DiscretizedFunc exact = calc.getHazardCurve(logXVals.deepClone(), site, imr, erf);
+			calc.setPointSourceExceedanceCache(cache);
+			DiscretizedFunc cached = calc.getHazardCurve(logXVals.deepClone(), site, imr, erf);
+			for (int i=0; i<exact.size(); i++)
+				assertEquals(exact.getY(i), cached.getY(i), 0d);
+		}
+		assertEquals("Shouldn't have built any tables for finite surfaces", 0, cache.getNumTables());
+	}
+
+	private static void doTest(BackgroundRupType bgRupType, String imt, PointSourceExceedanceCache cache,
+			double maxRelDiff) {
+		SourceListERF erf = buildERF(bgRupType, true);
+		ScalarIMR imr = buildIMR();
+		imr.setIntensityMeasure(imt);
+		if (imt.equals(SA_Param.NAME))
+			SA_Param.setPeriodInSA_Param(imr.getIntensityMeasure(), 1d);
+
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.getHazardCurve(logXVals.deepClone(), sites.get(0), imr, erf);
+		List<DiscretizedFunc> exactCurves = new ArrayList<>();
+		for (Site site : sites)
+			exactCurves.add(calc.getHazardCurve(logXVals.deepClone(), site, imr, erf));
+
+		calc.setPointSourceExceedanceCache(cache);
+		for (int s=0; s<sites.size(); s++) {
+			DiscretizedFunc exact = exactCurves.get(s);
+			DiscretizedFunc cached = calc.getHazardCurve(logXVals.deepClone(), sites.get(s), imr, erf);
+			assertEquals(exact.size(), cached.size());
+			boolean anyNonZero = false;
+			for (int i=0; i<exact.size(); i++) {
+				double expected = exact.getY(i);
+				double actual = cached.getY(i);
+				anyNonZero |= expected >= MIN_PROB;
+				String message = "Site "+s+", IML "+(float)Math.exp(exact.getX(i))+": cached="+actual+", exact="+expected;
+				if (expected >= MIN_PROB)
+					assertEquals(message, expected, actual, expected*maxRelDiff);
+				else
+					assertEquals(message, expected, actual, MIN_PROB*maxRelDiff);
+			}
+			assertTrue("Test isn't meaningful, curve is zero for site "+s, anyNonZero);
+		}
+		assertTrue("Tables weren't used", cache.getNumTableCalcs() > 0);
+	}
+
+	private static class SourceListERF extends AbstractERF {
+
+		private List<ProbEqkSource> sources;
+
+		public SourceListERF(List<ProbEqkSource> sources) {
+			this.sources = sources;
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.size();
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			return sources.get(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return "Test Gridded Sources";
+		}
+
+	}
+
+}
@@ -0,0 +1,194 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.EvenlyDiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureSource;
+import org.opensha.sha.earthquake.param.BackgroundRupType;
+import org.opensha.sha.earthquake.rupForecastImpl.FaultRuptureSource;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_Wrappers;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Compares hazard curves calculated with rupture skipping ({@link HazardCurveCalculator#setRuptureSkipTolerance(double)})
+ * against exact curves for an ERF with gridded point sources and dipping finite fault sources. Skipped rupture
+ * contributions are estimates rather than strict bounds, so actual errors are only checked against the tolerance where
+ * exceedance probabilities are at least {@link #MIN_PROB}.
+ *
+ * @author kevin
+ *
+ */
+public class RuptureSkipHazardCurveTest {
+
+	private static final double MIN_PROB = 1e-6;
+	private static final double[] TOLERANCES = { 1e-3, 1e-2 };
+
+	private static List<Site> sites;
+	private static DiscretizedFunc logXVals;
+	private static TestERF erf;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Location center = new Location(34, -118);
+		ScalarIMR imr = buildIMR(PGA_Param.NAME);
+		sites = new ArrayList<>();
+		// among the faults, between grid nodes, and outside of the gridded region
+		for (Location loc : new Location[] { center, new Location(center.lat+0.23, center.lon-0.17),
+				new Location(center.lat+1, center.lon+0.8) }) {
+			Site site = new Site(loc);
+			for (Parameter<?> param : imr.getSiteParams())
+				site.addParameter((Parameter<?>)param.clone());
+			sites.add(site);
+		}
+
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(PGA_Param.NAME);
+		logXVals = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.size(); i++)
+			logXVals.set(Math.log(xVals.getX(i)), 0d);
+
+		erf = buildERF(center);
+	}
+
+	private static ScalarIMR buildIMR(String imt) {
+		ScalarIMR imr = new NGAW2_Wrappers.ASK_2014_Wrapper();
+		imr.setParamDefaults();
+		imr.setIntensityMeasure(imt);
+		if (imt.equals(SA_Param.NAME))
+			SA_Param.setPeriodInSA_Param(imr.getIntensityMeasure(), 1d);
+		return imr;
+	}
+
+	private static TestERF buildERF(Location center) {
+		TectonicRegionType trt = TectonicRegionType.ACTIVE_SHALLOW;
+		GriddedRegion gridReg = new GriddedRegion(new Location(center.lat-0.5, center.lon-0.5),
+				new Location(center.lat+0.5, center.lon+0.5), 0.1, null);
+		List<ProbEqkSource> sources = new ArrayList<>();
+		for (int i=0; i<gridReg.getNodeCount(); i++) {
+			Location loc = gridReg.getLocation(i);
+			List<GriddedRupture> rups = new ArrayList<>();
+			for (double mag=5.05; mag<7.6; mag+=0.1) {
+				double rate = 1e-3*Math.pow(10, -(mag-5.05));
+				double length = Math.pow(10, -3.22 + 0.69*mag);
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 0d, 90d, Double.NaN, null,
+						0d, 12d, length, 6d, Double.NaN, trt), rate));
+			}
+			sources.add(new GriddedRuptureSource(loc, rups, 1d, 0d, null, BackgroundRupType.POINT, trt));
+		}
+		// dipping reverse faults, for which point proxies don't capture hanging wall effects
+		for (int i=0; i<10; i++) {
+			FaultTrace trace = new FaultTrace("Fault "+i);
+			double lat = center.lat - 0.45 + 0.1*i;
+			trace.add(new Location(lat, center.lon - 0.4));
+			trace.add(new Location(lat + 0.05, center.lon + 0.3));
+			EvenlyDiscretizedFunc mfd = new EvenlyDiscretizedFunc(6.05, 15, 0.1);
+			for (int m=0; m<mfd.size(); m++)
+				mfd.set(m, 1e-3*Math.pow(10, -(mfd.getX(m)-6.05)));
+			sources.add(new FaultRuptureSource(mfd, new StirlingGriddedSurface(trace, 40d, 1d, 15d, 1d), 90d, 1d));
+		}
+		return new TestERF(sources);
+	}
+
+	@Test
+	public void testPGA() {
+		doTest(PGA_Param.NAME);
+	}
+
+	@Test
+	public void testSA() {
+		doTest(SA_Param.NAME);
+	}
+
+	private static void doTest(String imt) {
+		ScalarIMR imr = buildIMR(imt);
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		// the first calculation with a new calculator can differ in the last few bits, don't compare it
+		calc.getHazardCurve(logXVals.deepClone(), sites.get(0), imr, erf);
+		long[] numSkipped = new long[TOLERANCES.length];
+		for (int s=0; s<sites.size(); s++) {
+			Site site = sites.get(s);
+			calc.setRuptureSkipTolerance(0d);
+			DiscretizedFunc exact = calc.getHazardCurve(logXVals.deepClone(), site, imr, erf);
+			assertNull(calc.getSkippedRuptureErrorEstimate());
+			assertEquals(0l, calc.getNumSkippedRuptures());
+
+			for (int t=0; t<TOLERANCES.length; t++) {
+				double tol = TOLERANCES[t];
+				calc.setRuptureSkipTolerance(tol);
+				DiscretizedFunc skipped = calc.getHazardCurve(logXVals.deepClone(), site, imr, erf);
+				DiscretizedFunc errEst = calc.getSkippedRuptureErrorEstimate();
+				assertNotNull(errEst);
+				numSkipped[t] += calc.getNumSkippedRuptures();
+				assertEquals(exact.size(), skipped.size());
+				assertEquals(exact.size(), errEst.size());
+				boolean anyChecked = false;
+				for (int i=0; i<exact.size(); i++) {
+					double expected = exact.getY(i);
+					double actual = skipped.getY(i);
+					String message = imt+", tol="+(float)tol+", site "+s+", IML "+(float)Math.exp(exact.getX(i))
+							+": skipped="+actual+", exact="+expected+", errEst="+errEst.getY(i);
+					// skipping can only remove contributions
+					assertTrue(message, actual <= expected*(1d + 1e-12));
+					// reported estimate is consistent with the tolerance
+					assertTrue(message, errEst.getY(i) <= tol*actual*(1d + 1e-6));
+					if (expected >= MIN_PROB) {
+						anyChecked = true;
+						assertEquals(message, expected, actual, tol*expected);
+					}
+				}
+				assertTrue("Test isn't meaningful, curve is below "+MIN_PROB+" for site "+s, anyChecked);
+			}
+		}
+		for (int t=0; t<TOLERANCES.length; t++)
+			assertTrue("Test isn't meaningful, no ruptures skipped with tol="+(float)TOLERANCES[t], numSkipped[t] > 0);
+	}
+
+	private static class TestERF extends AbstractERF {
+
+		private List<ProbEqkSource> sources;
+
+		public TestERF(List<ProbEqkSource> sources) {
+			this.sources = sources;
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.size();
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			return sources.get(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return "Test Skip Sources";
+		}
+
+	}
+
+}
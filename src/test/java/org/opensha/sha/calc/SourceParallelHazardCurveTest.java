@@ -0,0 +1,262 @@
+package org.opensha.sha.calc;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.commons.param.impl.DoubleParameter;
+import org.opensha.sha.calc.params.SetTRTinIMR_FromSourceParam;
+import org.opensha.sha.earthquake.AbstractERF;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureSource;
+import org.opensha.sha.earthquake.param.BackgroundRupType;
+import org.opensha.sha.earthquake.rupForecastImpl.FaultRuptureSource;
+import org.opensha.sha.faultSurface.FaultTrace;
+import org.opensha.sha.faultSurface.StirlingGriddedSurface;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.AttenRelRef;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.imr.param.IntensityMeasureParams.SA_Param;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncLevelParam;
+import org.opensha.sha.imr.param.OtherParams.SigmaTruncTypeParam;
+import org.opensha.sha.imr.param.OtherParams.TectonicRegionTypeParam;
+import org.opensha.sha.util.TectonicRegionType;
+
+/**
+ * Compares hazard curves calculated in parallel over sources ({@link HazardCurveCalculator#setSourceParallelism(int, Map)})
+ * against serial calculations, for an ERF with Poisson gridded and non-Poisson fault sources in multiple tectonic
+ * region types, with and without a {@link PointSourceExceedanceCache}.
+ *
+ * @author kevin
+ *
+ */
+public class SourceParallelHazardCurveTest {
+
+	/**
+	 * Partial products of non-exceedance probabilities are multiplied in a different order, so curves can differ at
+	 * the level of floating point precision
+	 */
+	private static final double TOL = 1e-13;
+	private static final int THREADS = 4;
+
+	private static final TectonicRegionType GRID_TRT_1 = TectonicRegionType.ACTIVE_SHALLOW;
+	private static final TectonicRegionType GRID_TRT_2 = TectonicRegionType.STABLE_SHALLOW;
+	private static final TectonicRegionType FAULT_TRT = TectonicRegionType.SUBDUCTION_INTERFACE;
+
+	private static List<Site> sites;
+	private static DiscretizedFunc logXVals;
+	private static Map<TectonicRegionType, AttenRelRef> suppliers;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		suppliers = new EnumMap<>(TectonicRegionType.class);
+		suppliers.put(GRID_TRT_1, AttenRelRef.ASK_2014);
+		suppliers.put(GRID_TRT_2, AttenRelRef.BSSA_2014);
+		// same GMM as the first TRT, and will be the same instance in IMR maps
+		suppliers.put(FAULT_TRT, AttenRelRef.ASK_2014);
+
+		Location center = new Location(34, -118);
+		sites = new ArrayList<>();
+		for (Location loc : new Location[] { center, new Location(center.lat+0.23, center.lon-0.17),
+				new Location(center.lat+1, center.lon+0.8) }) {
+			Site site = new Site(loc);
+			for (AttenRelRef ref : suppliers.values()) {
+				for (Parameter<?> param : ref.get().getSiteParams())
+					if (!site.containsParameter(param.getName()))
+						site.addParameter((Parameter<?>)param.clone());
+			}
+			sites.add(site);
+		}
+
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(PGA_Param.NAME);
+		logXVals = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.size(); i++)
+			logXVals.set(Math.log(xVals.getX(i)), 0d);
+	}
+
+	private static TestERF buildERF() {
+		Location center = sites.get(0).getLocation();
+		GriddedRegion gridReg = new GriddedRegion(new Location(center.lat-0.5, center.lon-0.5),
+				new Location(center.lat+0.5, center.lon+0.5), 0.1, null);
+		List<ProbEqkSource> sources = new ArrayList<>();
+		for (int i=0; i<gridReg.getNodeCount(); i++) {
+			Location loc = gridReg.getLocation(i);
+			// alternate TRTs, so that IMRs switch from source to source
+			TectonicRegionType trt = i % 2 == 0 ? GRID_TRT_1 : GRID_TRT_2;
+			List<GriddedRupture> rups = new ArrayList<>();
+			for (double mag=5.05; mag<7.6; mag+=0.5) {
+				double rate = 1e-3*Math.pow(10, -(mag-5.05));
+				double length = Math.pow(10, -3.22 + 0.69*mag);
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 0d, 90d, Double.NaN, null,
+						0d, 12d, length, 6d, Double.NaN, trt), rate));
+			}
+			sources.add(new GriddedRuptureSource(loc, rups, 1d, 0d, null, BackgroundRupType.POINT, trt));
+		}
+		// non-Poisson fault sources, interleaved with the gridded sources
+		for (int i=0; i<20; i++) {
+			FaultTrace trace = new FaultTrace("Fault "+i);
+			double lat = center.lat - 0.6 + 0.06*i;
+			trace.add(new Location(lat, center.lon - 0.4));
+			trace.add(new Location(lat + 0.1, center.lon + 0.3));
+			ProbEqkSource source = new FaultRuptureSource(6.5 + 0.05*i,
+					new StirlingGriddedSurface(trace, 60d, 0d, 15d, 1d), 90d, 0.01 + 0.002*i, false);
+			source.setTectonicRegionType(i % 3 == 0 ? FAULT_TRT : GRID_TRT_2);
+			sources.add(7*i, source);
+		}
+		return new TestERF(sources);
+	}
+
+	private static Map<TectonicRegionType, ScalarIMR> buildIMRs(String imt, double period) {
+		Map<TectonicRegionType, ScalarIMR> imrMap = new EnumMap<>(TectonicRegionType.class);
+		Map<AttenRelRef, ScalarIMR> instances = new EnumMap<>(AttenRelRef.class);
+		for (TectonicRegionType trt : suppliers.keySet()) {
+			AttenRelRef ref = suppliers.get(trt);
+			ScalarIMR imr = instances.get(ref);
+			if (imr == null) {
+				imr = ref.get();
+				imr.setParamDefaults();
+				imr.setIntensityMeasure(imt);
+				if (imt.equals(SA_Param.NAME))
+					SA_Param.setPeriodInSA_Param(imr.getIntensityMeasure(), period);
+				// non-default other parameters, which must be copied to the other threads' IMRs
+				imr.getParameter(SigmaTruncTypeParam.NAME).setValue(SigmaTruncTypeParam.SIGMA_TRUNC_TYPE_1SIDED);
+				imr.getParameter(SigmaTruncLevelParam.NAME).setValue(2d);
+				instances.put(ref, imr);
+			}
+			imrMap.put(trt, imr);
+		}
+		return imrMap;
+	}
+
+	@Test
+	public void testParallelMatchesSerial() {
+		doTest(null, false);
+	}
+
+	@Test
+	public void testParallelMatchesSerialSetTRTs() {
+		doTest(null, true);
+	}
+
+	@Test
+	public void testParallelMatchesSerialPointSourceCache() {
+		PointSourceExceedanceCache cache = new PointSourceExceedanceCache();
+		doTest(cache, false);
+		assertTrue("Tables weren't used", cache.getNumTableCalcs() > 0);
+	}
+
+	private static void doTest(PointSourceExceedanceCache cache, boolean setTRTs) {
+		TestERF erf = buildERF();
+		HazardCurveCalculator serialCalc = new HazardCurveCalculator();
+		HazardCurveCalculator parallelCalc = new HazardCurveCalculator();
+		parallelCalc.setSourceParallelism(THREADS, suppliers);
+		assertEquals(THREADS, parallelCalc.getSourceParallelism());
+		for (HazardCurveCalculator calc : new HazardCurveCalculator[] { serialCalc, parallelCalc }) {
+			calc.setPointSourceExceedanceCache(cache);
+			calc.getAdjustableParams().getParameter(Boolean.class, SetTRTinIMR_FromSourceParam.NAME).setValue(setTRTs);
+		}
+
+		try {
+			// change the IMT between calculations, which must be copied to cached IMRs for other threads
+			for (double period : new double[] { 0d, 1d, 0.2d }) {
+				String imt = period == 0d ? PGA_Param.NAME : SA_Param.NAME;
+				Map<TectonicRegionType, ScalarIMR> imrMap = buildIMRs(imt, period);
+				Map<ScalarIMR, Object> origTRTs = getTRTs(imrMap);
+				// the first calculation with a new calculator can differ in the last few bits, don't compare it
+				serialCalc.getHazardCurve(logXVals.deepClone(), sites.get(0), imrMap, erf);
+				for (int s=0; s<sites.size(); s++) {
+					DiscretizedFunc expected = serialCalc.getHazardCurve(logXVals.deepClone(), sites.get(s), imrMap, erf);
+					erf.sourceThreads.clear();
+					DiscretizedFunc actual = parallelCalc.getHazardCurve(logXVals.deepClone(), sites.get(s), imrMap, erf);
+					assertTrue("Sources weren't calculated in parallel", erf.sourceThreads.size() > 1);
+					assertEquals(expected.size(), actual.size());
+					boolean anyNonZero = false;
+					for (int i=0; i<expected.size(); i++) {
+						String message = imt+", period="+(float)period+", site "+s+", IML "+(float)Math.exp(expected.getX(i));
+						assertEquals(message, expected.getX(i), actual.getX(i), 0d);
+						assertEquals(message, expected.getY(i), actual.getY(i), TOL);
+						anyNonZero |= expected.getY(i) > 1e-6;
+					}
+					assertTrue("Test isn't meaningful, curve is zero for site "+s, anyNonZero);
+					// TRTs are reset in the passed in IMRs
+					assertEquals(origTRTs, getTRTs(imrMap));
+				}
+			}
+		} finally {
+			parallelCalc.shutdownSourceParallelism();
+		}
+	}
+
+	private static Map<ScalarIMR, Object> getTRTs(Map<TectonicRegionType, ScalarIMR> imrMap) {
+		Map<ScalarIMR, Object> ret = new HashMap<>();
+		for (ScalarIMR imr : imrMap.values())
+			ret.put(imr, imr.getParameter(TectonicRegionTypeParam.NAME).getValue());
+		return ret;
+	}
+
+	@Test
+	public void testMissingOtherParam() {
+		TestERF erf = buildERF();
+		HazardCurveCalculator calc = new HazardCurveCalculator();
+		calc.setSourceParallelism(THREADS, suppliers);
+		try {
+			Map<TectonicRegionType, ScalarIMR> imrMap = buildIMRs(PGA_Param.NAME, 0d);
+			// can't be copied to IMRs from the suppliers
+			imrMap.get(GRID_TRT_2).getOtherParams().addParameter(new DoubleParameter("Test Parameter", 1d));
+			calc.getHazardCurve(logXVals.deepClone(), sites.get(0), imrMap, erf);
+			fail("Should have failed for an IMR parameter that can't be copied");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getMessage(), e.getMessage().contains("Test Parameter"));
+		} finally {
+			calc.shutdownSourceParallelism();
+		}
+	}
+
+	private static class TestERF extends AbstractERF {
+
+		private List<ProbEqkSource> sources;
+		private Set<Thread> sourceThreads = ConcurrentHashMap.newKeySet();
+
+		public TestERF(List<ProbEqkSource> sources) {
+			this.sources = sources;
+		}
+
+		@Override
+		public int getNumSources() {
+			return sources.size();
+		}
+
+		@Override
+		public ProbEqkSource getSource(int idx) {
+			sourceThreads.add(Thread.currentThread());
+			return sources.get(idx);
+		}
+
+		@Override
+		public void updateForecast() {}
+
+		@Override
+		public String getName() {
+			return "Test Mixed Sources";
+		}
+
+	}
+
+}
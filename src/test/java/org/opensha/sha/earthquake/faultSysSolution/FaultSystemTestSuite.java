@@ -2,13 +2,29 @@ package org.opensha.sha.earthquake.faultSysSolution;
 
 import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
+import org.opensha.sha.earthquake.faultSysSolution.hazard.PackedHazardCurvesTest;
+import org.opensha.sha.earthquake.faultSysSolution.hazard.SiteCollapsedGriddedHazardCalcTest;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionInputCacheTest;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.InversionInputGeneratorTest;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ProjectedGradientPolisherTest;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.SparseMatVecTest;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceListArchiveTest;
+import org.opensha.sha.earthquake.faultSysSolution.modules.SolutionLogicTreeWriteTest;
 import org.opensha.sha.earthquake.faultSysSolution.modules.StandardFaultSysModulesTest;
 
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 	RupSetBuilderTests.class,
 	RupSetSaveLoadTests.class,
-	StandardFaultSysModulesTest.class
+	StandardFaultSysModulesTest.class,
+	InversionInputCacheTest.class,
+	InversionInputGeneratorTest.class,
+	ProjectedGradientPolisherTest.class,
+	SparseMatVecTest.class,
+	SiteCollapsedGriddedHazardCalcTest.class,
+	GridSourceListArchiveTest.class,
+	SolutionLogicTreeWriteTest.class,
+	PackedHazardCurvesTest.class
 })
 
 public class FaultSystemTestSuite {
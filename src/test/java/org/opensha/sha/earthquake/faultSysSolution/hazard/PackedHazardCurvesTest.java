@@ -0,0 +1,186 @@
+package org.opensha.sha.earthquake.faultSysSolution.hazard;
+
+import static org.junit.Assert.*;
+
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.commons.data.xyz.ArbDiscrGeoDataSet;
+import org.opensha.commons.data.xyz.GriddedGeoDataSet;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.logicTree.LogicTree;
+import org.opensha.commons.logicTree.LogicTreeBranch;
+import org.opensha.commons.logicTree.LogicTreeLevel;
+import org.opensha.commons.logicTree.LogicTreeNode;
+import org.opensha.commons.logicTree.LogicTreeNode.FileBackedNode;
+import org.opensha.sha.earthquake.faultSysSolution.hazard.AbstractLogicTreeHazardCombiner.CurveCombineCallable;
+import org.opensha.sha.earthquake.faultSysSolution.hazard.AbstractLogicTreeHazardCombiner.CurveCombineResult;
+import org.opensha.sha.earthquake.faultSysSolution.util.SolHazardMapCalc.ReturnPeriods;
+
+/**
+ * Checks that outer/inner map curves combined with {@link PackedHazardCurves} give identical curves, map text, and
+ * mean curves to the previous path ({@link CurveCombineCallable} for each site, and
+ * {@link ArbDiscrGeoDataSet#writeXYZWriter(org.opensha.commons.data.xyz.XYZ_DataSet, java.io.Writer)} for maps).
+ *
+ * @author kevin
+ *
+ */
+public class PackedHazardCurvesTest {
+
+	private static GriddedRegion gridReg;
+	private static double[] xVals;
+	private static ReturnPeriods[] rps = ReturnPeriods.values();
+	private static double[] probLevels;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		gridReg = new GriddedRegion(new Location(34, -118.5), new Location(35, -117.3), 0.05, null);
+		xVals = new double[20];
+		for (int i=0; i<xVals.length; i++)
+			xVals[i] = 1e-3*Math.pow(10, i*4d/(xVals.length-1));
+		probLevels = new double[rps.length];
+		for (int r=0; r<rps.length; r++)
+			probLevels[r] = rps[r].oneYearProb;
+	}
+
+	private static DiscretizedFunc[] buildCurves(Random rand) {
+		DiscretizedFunc[] curves = new DiscretizedFunc[gridReg.getNodeCount()];
+		for (int s=0; s<curves.length; s++) {
+			double[] yVals = new double[xVals.length];
+			int type = rand.nextInt(10);
+			if (type == 3) {
+				// above every probability level
+				for (int i=0; i<yVals.length; i++)
+					yVals[i] = 0.5 - 0.01*i;
+			} else if (type > 0) {
+				// decreasing curve, sometimes saturated at the lowest level or reaching zero at high levels
+				double scale = type == 1 ? 1d : Math.pow(10, -1 - 3*rand.nextDouble());
+				double slope = 1 + 2*rand.nextDouble();
+				for (int i=0; i<yVals.length; i++) {
+					double y = scale*Math.pow(xVals[i]/xVals[0], -slope);
+					yVals[i] = type == 2 && i > xVals.length/2 ? 0d : Math.min(1d, y);
+				}
+			}
+			// type 0 is all zeros
+			curves[s] = new LightFixedXFunc(xVals, yVals);
+		}
+		return curves;
+	}
+
+	@Test
+	public void testCombine() throws Exception {
+		Random rand = new Random(gridReg.getNodeCount());
+		String[] locPrefixes = AbstractLogicTreeHazardCombiner.buildMapLocPrefixes(gridReg);
+		for (int t=0; t<5; t++) {
+			DiscretizedFunc[] outer = buildCurves(rand);
+			DiscretizedFunc[] inner = buildCurves(rand);
+			int numSites = outer.length;
+
+			// previous implementation
+			DiscretizedFunc[] expectedCurves = new DiscretizedFunc[numSites];
+			GriddedGeoDataSet[] xyzs = new GriddedGeoDataSet[rps.length];
+			for (int r=0; r<rps.length; r++)
+				xyzs[r] = new GriddedGeoDataSet(gridReg, false);
+			for (int s=0; s<numSites; s++) {
+				CurveCombineResult result = new CurveCombineCallable(s, xVals, outer[s], inner[s], rps).call();
+				expectedCurves[result.index] = result.combCurve;
+				for (int r=0; r<rps.length; r++)
+					xyzs[r].set(result.index, result.mapVals[r]);
+			}
+
+			// packed, in uneven blocks
+			PackedHazardCurves outerPacked = PackedHazardCurves.pack(outer);
+			PackedHazardCurves innerPacked = PackedHazardCurves.pack(inner);
+			PackedHazardCurves combined = PackedHazardCurves.emptyLike(outerPacked);
+			double[][] mapVals = new double[rps.length][numSites];
+			int blockSize = 37;
+			for (int start=0; start<numSites; start+=blockSize)
+				PackedHazardCurves.combine(outerPacked, innerPacked, start, Integer.min(numSites, start+blockSize),
+						combined, probLevels, mapVals);
+
+			assertEquals(numSites, combined.getNumSites());
+			DiscretizedFunc[] actualCurves = combined.toCurves();
+			for (int s=0; s<numSites; s++) {
+				assertEquals(xVals.length, actualCurves[s].size());
+				for (int i=0; i<xVals.length; i++) {
+					assertEquals(xVals[i], actualCurves[s].getX(i), 0d);
+					assertEquals("site "+s+", x="+(float)xVals[i],
+							expectedCurves[s].getY(i), actualCurves[s].getY(i), 0d);
+				}
+			}
+
+			for (int r=0; r<rps.length; r++) {
+				StringWriter writer = new StringWriter();
+				ArbDiscrGeoDataSet.writeXYZWriter(xyzs[r], writer);
+				byte[] expected = writer.toString().getBytes();
+				byte[] actual = AbstractLogicTreeHazardCombiner.buildMapBytes(locPrefixes, mapVals[r]);
+				assertArrayEquals(rps[r].name(), expected, actual);
+				boolean anyZero = false;
+				boolean anySaturated = false;
+				for (double val : mapVals[r]) {
+					anyZero |= val == 0d;
+					anySaturated |= val == xVals[xVals.length-1];
+				}
+				assertTrue("Test isn't meaningful, no zero map values", anyZero);
+				assertTrue("Test isn't meaningful, no saturated map values", anySaturated);
+			}
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testPackMismatchedX() {
+		DiscretizedFunc[] curves = buildCurves(new Random(1));
+		double[] otherX = xVals.clone();
+		otherX[3] *= 1.1;
+		curves[5] = new LightFixedXFunc(otherX, new double[otherX.length]);
+		PackedHazardCurves.pack(curves);
+	}
+
+	@Test
+	public void testAverager() {
+		List<FileBackedNode> nodes1 = List.of(new FileBackedNode("A1", "A1", 0.3, "a1"),
+				new FileBackedNode("A2", "A2", 0.7, "a2"));
+		List<FileBackedNode> nodes2 = List.of(new FileBackedNode("B1", "B1", 0.5, "b1"),
+				new FileBackedNode("B2", "B2", 0.5, "b2"));
+		List<LogicTreeLevel<? extends LogicTreeNode>> levels = List.of(
+				new LogicTreeLevel.FileBackedLevel("Level A", "A", nodes1),
+				new LogicTreeLevel.FileBackedLevel("Level B", "B", nodes2));
+		List<LogicTreeBranch<LogicTreeNode>> branches = new ArrayList<>();
+		for (FileBackedNode node1 : nodes1)
+			for (FileBackedNode node2 : nodes2)
+				branches.add(new LogicTreeBranch<>(levels, List.of(node1, node2)));
+		LogicTree<LogicTreeNode> tree = LogicTree.fromExisting(levels, branches);
+
+		LogicTreeCurveAverager expected = new LogicTreeCurveAverager(tree, gridReg.getNodeList());
+		LogicTreeCurveAverager actual = new LogicTreeCurveAverager(tree, gridReg.getNodeList());
+		Random rand = new Random(branches.size());
+		for (LogicTreeBranch<LogicTreeNode> branch : tree) {
+			DiscretizedFunc[] curves = buildCurves(rand);
+			double weight = tree.getBranchWeight(branch);
+			expected.processBranchCurves(branch, weight, curves);
+			actual.processBranchCurves(branch, weight, PackedHazardCurves.pack(curves));
+		}
+
+		Map<String, DiscretizedFunc[]> expectedMeans = expected.getNormalizedCurves();
+		Map<String, DiscretizedFunc[]> actualMeans = actual.getNormalizedCurves();
+		assertEquals(expectedMeans.keySet(), actualMeans.keySet());
+		assertTrue(expectedMeans.size() > 1);
+		for (String key : expectedMeans.keySet()) {
+			DiscretizedFunc[] expectedCurves = expectedMeans.get(key);
+			DiscretizedFunc[] actualCurves = actualMeans.get(key);
+			assertEquals(expectedCurves.length, actualCurves.length);
+			for (int s=0; s<expectedCurves.length; s++)
+				for (int i=0; i<xVals.length; i++)
+					assertEquals(key+", site "+s, expectedCurves[s].getY(i), actualCurves[s].getY(i), 0d);
+		}
+	}
+
+}
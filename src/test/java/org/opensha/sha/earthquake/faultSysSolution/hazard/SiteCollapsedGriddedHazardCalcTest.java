@@ -0,0 +1,204 @@
+package org.opensha.sha.earthquake.faultSysSolution.hazard;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.Site;
+import org.opensha.commons.data.function.ArbitrarilyDiscretizedFunc;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.param.Parameter;
+import org.opensha.sha.calc.params.filters.SourceFilterManager;
+import org.opensha.sha.calc.params.filters.SourceFilters;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.earthquake.faultSysSolution.util.SolHazardMapCalc;
+import org.opensha.sha.earthquake.param.BackgroundRupType;
+import org.opensha.sha.earthquake.param.IncludeBackgroundOption;
+import org.opensha.sha.gui.infoTools.IMT_Info;
+import org.opensha.sha.imr.AttenRelRef;
+import org.opensha.sha.imr.ScalarIMR;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+import org.opensha.sha.util.TectonicRegionType;
+
+import scratch.UCERF3.erf.FSS_ERF_ParamTest;
+
+/**
+ * Compares site-collapsed gridded seismicity hazard curves against the uncollapsed (exact) gridded calculation, both
+ * directly and through {@link SolHazardMapCalc}.
+ *
+ * @author kevin
+ *
+ */
+public class SiteCollapsedGriddedHazardCalcTest {
+
+	/**
+	 * Maximum relative curve difference (where the exact probability is at least {@link #MIN_PROB}) with the default
+	 * 1 km distance bins
+	 */
+	private static final double MAX_REL_DIFF = 0.01;
+	/**
+	 * Maximum relative curve difference with very narrow distance bins, where all nodes in a bin are at nearly the same
+	 * distance
+	 */
+	private static final double MAX_REL_DIFF_NARROW = 1e-5;
+	private static final double MIN_PROB = 1e-8;
+
+	private static final TectonicRegionType TRT = TectonicRegionType.ACTIVE_SHALLOW;
+
+	private static GriddedRegion gridReg;
+	private static GridSourceList gridSources;
+	private static List<Site> sites;
+	private static DiscretizedFunc logXVals;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		// near the small test rupture set (Mojave and Parkfield)
+		Location center = new Location(34.6, -118.2);
+		gridReg = new GriddedRegion(new Location(center.lat-0.5, center.lon-0.5),
+				new Location(center.lat+0.5, center.lon+0.5), 0.1, null);
+
+		List<List<GriddedRupture>> nodeRups = new ArrayList<>();
+		for (int i=0; i<gridReg.getNodeCount(); i++) {
+			Location loc = gridReg.getLocation(i);
+			List<GriddedRupture> rups = new ArrayList<>();
+			// vary rates spatially so that collapsed bin distances aren't just the mean node distance
+			double rateScale = 1d + 0.5*Math.sin(i);
+			for (double mag=5.05; mag<7.6; mag+=0.5) {
+				double rate = rateScale*1e-3*Math.pow(10, -(mag-5.05));
+				double length = Math.pow(10, -3.22 + 0.69*mag);
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 0d, 90d, Double.NaN, null,
+						0d, 12d, length, 6d, Double.NaN, TRT), rate));
+				rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 90d, 50d, Double.NaN, null,
+						1d, 15d, length, 8d, Double.NaN, TRT), 0.5*rate));
+			}
+			nodeRups.add(rups);
+		}
+		gridSources = new GridSourceList.Precomputed(gridReg, TRT, nodeRups);
+
+		ScalarIMR imr = AttenRelRef.ASK_2014.get();
+		sites = new ArrayList<>();
+		// on a grid node, between grid nodes, and outside of the region
+		for (Location loc : new Location[] { center, new Location(center.lat+0.23, center.lon-0.17),
+				new Location(center.lat+1, center.lon+0.8) }) {
+			Site site = new Site(loc);
+			for (Parameter<?> param : imr.getSiteParams())
+				site.addParameter((Parameter<?>)param.clone());
+			sites.add(site);
+		}
+
+		DiscretizedFunc xVals = new IMT_Info().getDefaultHazardCurve(PGA_Param.NAME);
+		logXVals = new ArbitrarilyDiscretizedFunc();
+		for (int i=0; i<xVals.size(); i++)
+			logXVals.set(Math.log(xVals.getX(i)), 0d);
+	}
+
+	private static Map<TectonicRegionType, ScalarIMR> buildIMRMap() {
+		ScalarIMR imr = AttenRelRef.ASK_2014.get();
+		imr.setParamDefaults();
+		imr.setIntensityMeasure(PGA_Param.NAME);
+		Map<TectonicRegionType, ScalarIMR> imrMap = new EnumMap<>(TectonicRegionType.class);
+		imrMap.put(TRT, imr);
+		return imrMap;
+	}
+
+	private static SourceFilterManager buildSourceFilters() {
+		return new SourceFilterManager(SourceFilters.TRT_DIST_CUTOFFS);
+	}
+
+	@Test
+	public void testDefaultBinWidth() {
+		doTestDirect(SiteCollapsedGriddedHazardCalc.DIST_BIN_WIDTH_DEFAULT, MAX_REL_DIFF);
+	}
+
+	@Test
+	public void testNarrowBins() {
+		doTestDirect(0.001, MAX_REL_DIFF_NARROW);
+	}
+
+	private static void doTestDirect(double binWidth, double maxRelDiff) {
+		SiteCollapsedGriddedHazardCalc calc = new SiteCollapsedGriddedHazardCalc(gridSources, buildSourceFilters(),
+				BackgroundRupType.POINT, 1d);
+		calc.setDistanceBinWidth(binWidth);
+		Map<TectonicRegionType, ScalarIMR> imrMap = buildIMRMap();
+		for (int s=0; s<sites.size(); s++) {
+			SiteCollapsedGriddedHazardCalc.Validation validation = calc.validate(logXVals.deepClone(), sites.get(s), imrMap);
+			if (binWidth >= 1d)
+				// can't expect a reduction with narrow bins, as only nodes at exactly the same distance are combined
+				assertTrue("Collapsing didn't reduce the number of ruptures for site "+s,
+						validation.numCollapsedRuptures < validation.numExactRuptures);
+			assertCurvesClose("Site "+s, validation.exactCurve, validation.collapsedCurve, maxRelDiff);
+
+			// regular calculation should match the validation curve
+			DiscretizedFunc curve = calc.getHazardCurve(logXVals.deepClone(), sites.get(s), imrMap);
+			for (int i=0; i<curve.size(); i++)
+				assertEquals(validation.collapsedCurve.getY(i), curve.getY(i), 0d);
+		}
+	}
+
+	@Test
+	public void testSolHazardMapCalc() {
+		FaultSystemRupSet rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+		double[] rates = new double[rupSet.getNumRuptures()];
+		for (int r=0; r<rates.length; r++)
+			rates[r] = 1e-5;
+		FaultSystemSolution sol = new FaultSystemSolution(rupSet, rates);
+		sol.addModule(gridSources);
+
+		GriddedRegion mapReg = new GriddedRegion(new Location(34.4, -118.4), new Location(34.8, -118.0), 0.2, null);
+		for (IncludeBackgroundOption bgOption : new IncludeBackgroundOption[] {
+				IncludeBackgroundOption.INCLUDE, IncludeBackgroundOption.ONLY }) {
+			DiscretizedFunc[] exactCurves = calcMap(sol, mapReg, bgOption, 0d);
+			DiscretizedFunc[] collapsedCurves = calcMap(sol, mapReg, bgOption,
+					SiteCollapsedGriddedHazardCalc.DIST_BIN_WIDTH_DEFAULT);
+			assertEquals(exactCurves.length, collapsedCurves.length);
+			boolean anyDifferent = false;
+			for (int s=0; s<exactCurves.length; s++) {
+				assertCurvesClose(bgOption+", site "+s, exactCurves[s], collapsedCurves[s], MAX_REL_DIFF);
+				for (int i=0; i<exactCurves[s].size(); i++)
+					anyDifferent |= exactCurves[s].getY(i) != collapsedCurves[s].getY(i);
+			}
+			assertTrue(bgOption+": curves are identical, collapsed calculation wasn't used", anyDifferent);
+		}
+	}
+
+	private static DiscretizedFunc[] calcMap(FaultSystemSolution sol, GriddedRegion mapReg,
+			IncludeBackgroundOption bgOption, double collapseBinWidth) {
+		SolHazardMapCalc mapCalc = new SolHazardMapCalc(sol, AttenRelRef.ASK_2014, mapReg, bgOption, 0d);
+		mapCalc.setBackSeisType(BackgroundRupType.POINT);
+		mapCalc.setSourceFilter(buildSourceFilters());
+		mapCalc.setSiteSkipSourceFilter(null);
+		mapCalc.setCollapseGriddedSources(collapseBinWidth);
+		mapCalc.calcHazardCurves(1);
+		return mapCalc.getCurves(0d);
+	}
+
+	private static void assertCurvesClose(String name, DiscretizedFunc exact, DiscretizedFunc actual,
+			double maxRelDiff) {
+		assertEquals(exact.size(), actual.size());
+		boolean anyNonZero = false;
+		for (int i=0; i<exact.size(); i++) {
+			double expected = exact.getY(i);
+			double val = actual.getY(i);
+			String message = name+", x="+(float)exact.getX(i)+": collapsed="+val+", exact="+expected;
+			if (expected >= MIN_PROB) {
+				anyNonZero = true;
+				assertEquals(message, expected, val, expected*maxRelDiff);
+			} else {
+				assertEquals(message, expected, val, MIN_PROB*maxRelDiff);
+			}
+		}
+		assertTrue(name+": test isn't meaningful, curve is zero", anyNonZero);
+	}
+
+}
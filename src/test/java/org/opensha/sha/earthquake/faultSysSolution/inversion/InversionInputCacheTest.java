@@ -0,0 +1,212 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.ConstraintWeightingType;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.RelativeBValueConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.SlipRateInversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.ConstraintRange;
+import org.opensha.sha.earthquake.faultSysSolution.modules.ModSectMinMags;
+import org.opensha.sha.earthquake.faultSysSolution.modules.SlipAlongRuptureModel;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityConfiguration;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.plausibility.PlausibilityFilter;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.strategies.DistCutoffClosestSectClusterConnectionStrategy;
+import org.opensha.sha.earthquake.faultSysSolution.ruptures.util.SectionDistanceAzimuthCalculator;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import com.google.common.io.Files;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import scratch.UCERF3.erf.FSS_ERF_ParamTest;
+
+public class InversionInputCacheTest {
+
+	private static FaultSystemRupSet rupSet;
+	private static SlipAlongRuptureModel origSlipAlong;
+
+	private static File cacheDir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+		for (FaultSection sect : rupSet.getFaultSectionDataList()) {
+			double stdDev = sect.getOrigSlipRateStdDev();
+			if (Double.isNaN(stdDev) || stdDev == 0d)
+				sect.setSlipRateStdDev(sect.getOrigAveSlipRate()/3d);
+		}
+		origSlipAlong = rupSet.requireModule(SlipAlongRuptureModel.class);
+		cacheDir = Files.createTempDir();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(cacheDir);
+	}
+
+	@After
+	public void tearDown() {
+		// restore the original modules
+		rupSet.removeModuleInstances(ModSectMinMags.class);
+		rupSet.removeModuleInstances(PlausibilityConfiguration.class);
+		rupSet.addModule(origSlipAlong);
+	}
+
+	@Test
+	public void testFingerprintStable() {
+		String fingerprint = InversionInputCache.fingerprint(rupSet);
+		assertNotNull(fingerprint);
+		assertEquals(fingerprint, InversionInputCache.fingerprint(rupSet));
+	}
+
+	@Test
+	public void testModSectMinMagsChange() throws IOException {
+		List<InversionConstraint> constraints = new ArrayList<>();
+
+		rupSet.addModule(ModSectMinMags.above(rupSet, 6d, true));
+		constraints.add(new RelativeBValueConstraint(rupSet, 1d, 1d));
+		String fingerprint1 = InversionInputCache.fingerprint(rupSet);
+		InversionInputGenerator cached1 = generate(constraints, new InversionInputCache(cacheDir));
+
+		// same inputs should now hit the cache
+		assertTrue("Expected a cache hit for unchanged inputs", isCached(fingerprint1, constraints));
+
+		rupSet.addModule(ModSectMinMags.above(rupSet, 6.5d, true));
+		constraints.set(0, new RelativeBValueConstraint(rupSet, 1d, 1d));
+		String fingerprint2 = InversionInputCache.fingerprint(rupSet);
+		assertNotEquals("Fingerprint should change with section minimum magnitudes", fingerprint1, fingerprint2);
+		assertFalse("Expected a cache miss after changing section minimum magnitudes",
+				isCached(fingerprint2, constraints));
+
+		InversionInputGenerator cached2 = generate(constraints, new InversionInputCache(cacheDir));
+		InversionInputGenerator uncached2 = generate(constraints, null);
+		assertInputsEqual(uncached2, cached2);
+
+		// make sure that this actually changed the constraint, otherwise the test isn't meaningful
+		assertFalse("Minimum magnitudes didn't change the constraint",
+				equals(cached1.getA(), cached2.getA(), cached1.getD(), cached2.getD()));
+	}
+
+	@Test
+	public void testSlipAlongRuptureParamsChange() throws IOException {
+		List<InversionConstraint> constraints = new ArrayList<>();
+
+		rupSet.addModule(new ScaledUniformSlipAlong(1d));
+		constraints.add(new SlipRateInversionConstraint(1d, ConstraintWeightingType.UNNORMALIZED, rupSet));
+		String fingerprint1 = InversionInputCache.fingerprint(rupSet);
+		generate(constraints, new InversionInputCache(cacheDir));
+		assertTrue("Expected a cache hit for unchanged inputs", isCached(fingerprint1, constraints));
+
+		// same class, different parameter
+		rupSet.addModule(new ScaledUniformSlipAlong(0.5d));
+		constraints.set(0, new SlipRateInversionConstraint(1d, ConstraintWeightingType.UNNORMALIZED, rupSet));
+		String fingerprint2 = InversionInputCache.fingerprint(rupSet);
+		assertNotEquals("Fingerprint should change with slip along rupture parameters", fingerprint1, fingerprint2);
+		assertFalse("Expected a cache miss after changing slip along rupture parameters",
+				isCached(fingerprint2, constraints));
+
+		assertInputsEqual(generate(constraints, null), generate(constraints, new InversionInputCache(cacheDir)));
+	}
+
+	@Test
+	public void testConnectionStrategyChange() {
+		SectionDistanceAzimuthCalculator distAzCalc = new SectionDistanceAzimuthCalculator(rupSet.getFaultSectionDataList());
+
+		rupSet.addModule(new PlausibilityConfiguration(new ArrayList<PlausibilityFilter>(), 0,
+				new DistCutoffClosestSectClusterConnectionStrategy(rupSet.getFaultSectionDataList(), distAzCalc, 5d),
+				distAzCalc));
+		String fingerprint1 = InversionInputCache.fingerprint(rupSet);
+		assertNotNull(fingerprint1);
+
+		rupSet.addModule(new PlausibilityConfiguration(new ArrayList<PlausibilityFilter>(), 0,
+				new DistCutoffClosestSectClusterConnectionStrategy(rupSet.getFaultSectionDataList(), distAzCalc, 10d),
+				distAzCalc));
+		String fingerprint2 = InversionInputCache.fingerprint(rupSet);
+		assertNotNull(fingerprint2);
+		assertNotEquals("Fingerprint should change with the connection strategy", fingerprint1, fingerprint2);
+	}
+
+	private static InversionInputGenerator generate(List<InversionConstraint> constraints, InversionInputCache cache) {
+		InversionInputGenerator gen = new InversionInputGenerator(rupSet, constraints);
+		gen.setEncodeThreads(1);
+		if (cache != null)
+			gen.setInputCache(cache);
+		gen.generateInputs(SparseCCDoubleMatrix2D.class, false);
+		return gen;
+	}
+
+	private static boolean isCached(String fingerprint, List<InversionConstraint> constraints) throws IOException {
+		InversionInputCache cache = new InversionInputCache(cacheDir);
+		List<ConstraintRange> ranges = InversionInputGenerator.buildConstraintRanges(constraints, false);
+		int numRows = 0;
+		for (ConstraintRange range : ranges)
+			numRows = Integer.max(numRows, range.endRow);
+		for (int i=0; i<constraints.size(); i++) {
+			String key = InversionInputCache.getKey(fingerprint, constraints.get(i));
+			assertNotNull(key);
+			ConstraintRange range = ranges.get(i);
+			ConstraintEncodingBuffer buffer = new ConstraintEncodingBuffer(numRows, rupSet.getNumRuptures(),
+					range.startRow, range.endRow);
+			if (cache.load(key, buffer, new double[numRows], range.startRow) < 0l)
+				return false;
+		}
+		return true;
+	}
+
+	private static void assertInputsEqual(InversionInputGenerator expected, InversionInputGenerator actual) {
+		assertTrue("Inputs differ", equals(expected.getA(), actual.getA(), expected.getD(), actual.getD()));
+	}
+
+	private static boolean equals(DoubleMatrix2D A1, DoubleMatrix2D A2, double[] d1, double[] d2) {
+		if (A1.rows() != A2.rows() || A1.columns() != A2.columns() || d1.length != d2.length)
+			return false;
+		for (int r=0; r<A1.rows(); r++)
+			for (int c=0; c<A1.columns(); c++)
+				if (A1.getQuick(r, c) != A2.getQuick(r, c))
+					return false;
+		for (int i=0; i<d1.length; i++)
+			if (d1[i] != d2[i])
+				return false;
+		return true;
+	}
+
+	/**
+	 * Uniform slip along rupture model with a scale factor parameter, which is not reflected in the class name
+	 */
+	private static class ScaledUniformSlipAlong extends SlipAlongRuptureModel {
+
+		private double scale;
+
+		public ScaledUniformSlipAlong(double scale) {
+			this.scale = scale;
+		}
+
+		@Override
+		public String getName() {
+			return "Scaled Uniform";
+		}
+
+		@Override
+		public double[] calcSlipOnSectionsForRup(FaultSystemRupSet rupSet, int rthRup, double[] sectArea,
+				double aveSlip) {
+			double[] slips = new double[sectArea.length];
+			for (int i=0; i<slips.length; i++)
+				slips[i] = scale*aveSlip;
+			return slips;
+		}
+
+	}
+
+}
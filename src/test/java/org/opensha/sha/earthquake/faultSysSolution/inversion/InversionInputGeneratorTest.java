@@ -0,0 +1,152 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.ConstraintWeightingType;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.InversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.PaleoProbabilityModels;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.PaleoVisibleEventRateSmoothnessInversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.RelativeBValueConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.SlipRateInversionConstraint;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.constraints.impl.TotalRateInversionConstraint;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import scratch.UCERF3.erf.FSS_ERF_ParamTest;
+
+/**
+ * Tests that inputs encoded directly to column compressed matrices (in parallel, via
+ * {@link ConstraintEncodingBuffer}) are identical to those encoded with the legacy hash-based matrices
+ *
+ * @author kevin
+ *
+ */
+public class InversionInputGeneratorTest {
+
+	private static FaultSystemRupSet rupSet;
+	private static List<InversionConstraint> constraints;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+		for (FaultSection sect : rupSet.getFaultSectionDataList()) {
+			double stdDev = sect.getOrigSlipRateStdDev();
+			if (Double.isNaN(stdDev) || stdDev == 0d)
+				sect.setSlipRateStdDev(sect.getOrigAveSlipRate()/3d);
+		}
+		constraints = new ArrayList<>();
+		constraints.add(new SlipRateInversionConstraint(1d, ConstraintWeightingType.NORMALIZED_BY_UNCERTAINTY, rupSet));
+		constraints.add(new TotalRateInversionConstraint(1d, 1e-2, rupSet, 6.5d, ConstraintWeightingType.UNNORMALIZED,
+				0d, true));
+		constraints.add(new RelativeBValueConstraint(rupSet, 1d, 1d));
+		// this one gets and then sets previous values for ruptures that include both sections, zeroing many out
+		constraints.add(new PaleoVisibleEventRateSmoothnessInversionConstraint(rupSet, 1d,
+				PaleoProbabilityModels.NONE.get()));
+		constraints.add(new TotalRateInversionConstraint(10d, 1e-3, rupSet, 0d, ConstraintWeightingType.UNNORMALIZED,
+				0d, true));
+		constraints.add(new OverwritingConstraint(rupSet.getNumRuptures(), false));
+		constraints.add(new OverwritingConstraint(rupSet.getNumRuptures(), true));
+	}
+
+	@Test
+	public void testSerial() {
+		doTest(1);
+	}
+
+	@Test
+	public void testParallel() {
+		doTest(4);
+	}
+
+	private static void doTest(int threads) {
+		InversionInputGenerator legacy = new InversionInputGenerator(rupSet, constraints);
+		legacy.generateInputs(false);
+		legacy.columnCompress();
+
+		InversionInputGenerator direct = new InversionInputGenerator(rupSet, constraints);
+		direct.setEncodeThreads(threads);
+		direct.generateInputs(SparseCCDoubleMatrix2D.class, false);
+
+		assertTrue(direct.getA() instanceof SparseCCDoubleMatrix2D);
+		assertTrue(direct.getA_ineq() instanceof SparseCCDoubleMatrix2D);
+		assertIdentical((SparseCCDoubleMatrix2D)legacy.getA(), (SparseCCDoubleMatrix2D)direct.getA());
+		assertIdentical((SparseCCDoubleMatrix2D)legacy.getA_ineq(), (SparseCCDoubleMatrix2D)direct.getA_ineq());
+		assertArrayEquals(legacy.getD(), direct.getD(), 0d);
+		assertArrayEquals(legacy.getD_ineq(), direct.getD_ineq(), 0d);
+	}
+
+	private static void assertIdentical(SparseCCDoubleMatrix2D expected, SparseCCDoubleMatrix2D actual) {
+		assertEquals(expected.rows(), actual.rows());
+		assertEquals(expected.columns(), actual.columns());
+		int nnz = expected.cardinality();
+		assertTrue("Test isn't meaningful, matrix is empty", nnz > 0);
+		assertEquals(nnz, actual.cardinality());
+		int[] expectedPointers = expected.getColumnPointers();
+		int[] actualPointers = actual.getColumnPointers();
+		for (int c=0; c<=expected.columns(); c++)
+			assertEquals("Column pointer mismatch for column "+c, expectedPointers[c], actualPointers[c]);
+		int[] expectedRows = expected.getRowIndexes();
+		int[] actualRows = actual.getRowIndexes();
+		double[] expectedVals = expected.getValues();
+		double[] actualVals = actual.getValues();
+		for (int i=0; i<nnz; i++) {
+			assertEquals("Row index mismatch at "+i, expectedRows[i], actualRows[i]);
+			assertEquals("Value mismatch at "+i, expectedVals[i], actualVals[i], 0d);
+		}
+	}
+
+	/**
+	 * Constraint that exercises values that are set more than once, added to, zeroed out, and set directly on the
+	 * matrix rather than through the utility methods. Previous values are only retrieved if gets is true, which
+	 * exercises the index in {@link ConstraintEncodingBuffer}.
+	 */
+	private static class OverwritingConstraint extends InversionConstraint {
+
+		private int numRuptures;
+		private boolean gets;
+
+		public OverwritingConstraint(int numRuptures, boolean gets) {
+			super("Overwriting", "Overwriting", 1d, false);
+			this.numRuptures = numRuptures;
+			this.gets = gets;
+		}
+
+		@Override
+		public int getNumRows() {
+			return 4;
+		}
+
+		@Override
+		public long encode(DoubleMatrix2D A, double[] d, int startRow) {
+			long count = 0;
+			for (int r=0; r<getNumRows(); r++) {
+				int row = startRow + r;
+				for (int rup=r; rup<numRuptures; rup+=3) {
+					setA(A, row, rup, rup+1d);
+					if (rup % 2 == 0)
+						// overwritten
+						setA(A, row, rup, 0.5*rup);
+					if (gets && rup % 5 == 0)
+						addA(A, row, rup, 1d);
+					if (rup % 7 == 0)
+						// zeroed out
+						setA(A, row, rup, 0d);
+					else
+						count++;
+				}
+				d[row] = r+1;
+			}
+			// set directly, without the utility methods
+			A.setQuick(startRow+3, 1, 12345d);
+			return count+1;
+		}
+	}
+
+}
@@ -0,0 +1,165 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion.sa;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.commons.calc.nnls.NNLSWrapper;
+import org.opensha.sha.earthquake.faultSysSolution.inversion.sa.completion.CompletionCriteria;
+
+import cern.colt.matrix.tdouble.DoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+
+/**
+ * Tests {@link ProjectedGradientPolisher} against the active set NNLS solver in {@link NNLSWrapper} on small
+ * problems where some of the non-negativity constraints are active
+ *
+ * @author kevin
+ *
+ */
+public class ProjectedGradientPolisherTest {
+
+	private static final int ROWS = 40;
+	private static final int COLS = 15;
+	private static final long MAX_ITERS = 20000;
+
+	/**
+	 * Completion criteria that records the energy of every state it sees
+	 */
+	private static class RecordingCompletion implements CompletionCriteria {
+
+		private List<Double> energies = new ArrayList<>();
+		private long maxIters;
+
+		public RecordingCompletion(long maxIters) {
+			this.maxIters = maxIters;
+		}
+
+		@Override
+		public boolean isSatisfied(InversionState state) {
+			energies.add(state.energy[0]);
+			return state.iterations >= maxIters;
+		}
+	}
+
+	private static double[][] buildA(Random rand) {
+		double[][] A = new double[ROWS][COLS];
+		for (int r=0; r<ROWS; r++)
+			for (int c=0; c<COLS; c++)
+				// sparse, but still full column rank so that the solution is unique
+				if (r % COLS == c || rand.nextDouble() < 0.4)
+					A[r][c] = rand.nextDouble();
+		return A;
+	}
+
+	private static double[] buildD(double[][] A, Random rand) {
+		// data from a solution with some negative values, so that some non-negativity constraints are active
+		double[] x = new double[COLS];
+		for (int c=0; c<COLS; c++)
+			x[c] = rand.nextDouble() - 0.3;
+		double[] d = new double[ROWS];
+		for (int r=0; r<ROWS; r++) {
+			for (int c=0; c<COLS; c++)
+				d[r] += A[r][c]*x[c];
+			d[r] += 0.05*rand.nextGaussian();
+		}
+		return d;
+	}
+
+	private static double[] solveNNLS(double[][] A, double[] d) {
+		// column major
+		double[] packed = new double[ROWS*COLS];
+		int k = 0;
+		for (int c=0; c<COLS; c++)
+			for (int r=0; r<ROWS; r++)
+				packed[k++] = A[r][c];
+		NNLSWrapper nnls = new NNLSWrapper(packed, ROWS, COLS);
+		double[] x = new double[COLS];
+		assertTrue("NNLS failed", nnls.solve(d, x));
+		return x;
+	}
+
+	private static double misfit(double[][] A, double[] d, double[] x) {
+		double sum = 0d;
+		for (int r=0; r<ROWS; r++) {
+			double val = -d[r];
+			for (int c=0; c<COLS; c++)
+				val += A[r][c]*x[c];
+			sum += val*val;
+		}
+		return sum;
+	}
+
+	@Test
+	public void testSerial() {
+		doTest(1, 1234l);
+	}
+
+	@Test
+	public void testParallel() {
+		doTest(4, 5678l);
+	}
+
+	private static void doTest(int threads, long seed) {
+		Random rand = new Random(seed);
+		double[][] A = buildA(rand);
+		double[] d = buildD(A, rand);
+		double[] expected = solveNNLS(A, d);
+		double expectedMisfit = misfit(A, d, expected);
+
+		int numActive = 0;
+		for (double val : expected)
+			if (val == 0d)
+				numActive++;
+		assertTrue("Test isn't meaningful, no active non-negativity constraints", numActive > 0);
+		assertTrue("Test isn't meaningful, all non-negativity constraints active", numActive < COLS);
+
+		DoubleMatrix2D mat = new SparseDoubleMatrix2D(A);
+		ProjectedGradientPolisher polisher = new ProjectedGradientPolisher(
+				new ColumnOrganizedAnnealingData(mat, d), null, threads);
+		// start from a poor solution, with negative values that must be projected
+		double[] x0 = new double[COLS];
+		for (int c=0; c<COLS; c++)
+			x0[c] = rand.nextDouble()*2d - 0.5;
+		double startMisfit = misfit(A, d, x0);
+		double[] x0Orig = x0.clone();
+		RecordingCompletion completion = new RecordingCompletion(MAX_ITERS);
+		InversionState state = polisher.polish(x0, completion);
+
+		double[] x = polisher.getBestSolution();
+		assertEquals(COLS, x.length);
+		for (int c=0; c<COLS; c++)
+			assertTrue("Negative value at "+c+": "+x[c], x[c] >= 0d);
+		// input not modified
+		assertArrayEquals(x0Orig, x0, 0d);
+
+		// energy (misfit) never increases. the line search uses a different summation order than the reported energy,
+		// so allow for roundoff once converged
+		List<Double> energies = completion.energies;
+		assertTrue(energies.size() > 1);
+		for (int i=1; i<energies.size(); i++)
+			assertTrue("Energy increased at "+i+": "+energies.get(i-1)+" -> "+energies.get(i),
+					energies.get(i) <= energies.get(i-1)*(1d + 1e-12));
+		assertTrue(energies.get(energies.size()-1) < startMisfit);
+
+		double misfit = misfit(A, d, x);
+		assertEquals(misfit, state.energy[0], 1e-10*misfit);
+		assertEquals(misfit, polisher.getBestEnergy()[0], 1e-10*misfit);
+		// NNLS solution is optimal
+		assertTrue("Misfit "+misfit+" is below the NNLS misfit "+expectedMisfit,
+				misfit >= expectedMisfit*(1d - 1e-10));
+		assertEquals("Misfit doesn't match NNLS", expectedMisfit, misfit, 1e-6*expectedMisfit);
+		for (int c=0; c<COLS; c++)
+			assertEquals("Solution doesn't match NNLS at "+c, expected[c], x[c], 1e-4);
+
+		int expectedNonZero = 0;
+		for (double val : x)
+			if (val > 0d)
+				expectedNonZero++;
+		assertEquals(expectedNonZero, polisher.getNumNonZero());
+	}
+
+}
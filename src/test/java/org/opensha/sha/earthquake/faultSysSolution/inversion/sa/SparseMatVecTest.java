@@ -0,0 +1,136 @@
+package org.opensha.sha.earthquake.faultSysSolution.inversion.sa;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import cern.colt.matrix.tdouble.DoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.DenseDoubleMatrix1D;
+import cern.colt.matrix.tdouble.impl.SparseCCDoubleMatrix2D;
+import cern.colt.matrix.tdouble.impl.SparseDoubleMatrix2D;
+
+/**
+ * Tests {@link SparseMatVec} products against Colt <code>zMult</code> for one and multiple threads
+ *
+ * @author kevin
+ *
+ */
+public class SparseMatVecTest {
+
+	private static final int ROWS = 300;
+	private static final int COLS = 250;
+	private static final int[] THREADS = { 1, 3, 8 };
+
+	private static SparseCCDoubleMatrix2D A;
+	private static ColumnOrganizedAnnealingData data;
+	private static double[] x;
+	private static double[] r;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		Random rand = new Random(ROWS*COLS);
+		SparseDoubleMatrix2D mat = new SparseDoubleMatrix2D(ROWS, COLS);
+		for (int row=0; row<ROWS; row++) {
+			// some empty rows
+			if (row % 17 == 0)
+				continue;
+			for (int col=0; col<COLS; col++) {
+				// some empty columns, and some much denser columns
+				if (col % 13 == 0)
+					continue;
+				if (rand.nextDouble() < (col % 11 == 0 ? 0.5 : 0.03))
+					mat.setQuick(row, col, rand.nextGaussian());
+			}
+		}
+		A = mat.getColumnCompressed(true);
+		data = new ColumnOrganizedAnnealingData(A, new double[ROWS]);
+		x = new double[COLS];
+		for (int c=0; c<COLS; c++)
+			// some zero rates
+			x[c] = c % 7 == 0 ? 0d : rand.nextDouble();
+		r = new double[ROWS];
+		for (int i=0; i<ROWS; i++)
+			r[i] = rand.nextGaussian();
+	}
+
+	private static void assertClose(DoubleMatrix1D expected, double[] actual, int length) {
+		for (int i=0; i<length; i++) {
+			double exp = expected.getQuick(i);
+			assertEquals("Mismatch at "+i, exp, actual[i], 1e-12*Math.max(1d, Math.abs(exp)));
+		}
+	}
+
+	@Test
+	public void testMultiply() {
+		DoubleMatrix1D expected = A.zMult(new DenseDoubleMatrix1D(x), null);
+		for (int threads : THREADS) {
+			SparseMatVec matVec = new SparseMatVec(data, threads);
+			// longer than needed, and pre-filled so that we know every value is overwritten
+			double[] y = new double[ROWS+5];
+			for (int trial=0; trial<2; trial++) {
+				Arrays.fill(y, Double.NaN);
+				matVec.multiply(x, y);
+				assertClose(expected, y, ROWS);
+				assertTrue(Double.isNaN(y[ROWS]));
+			}
+			// CSR only built when multithreaded
+			assertEquals(threads > 1, matVec.isCSRBuilt());
+			matVec.release();
+			assertFalse(matVec.isCSRBuilt());
+			// still works after release
+			matVec.multiply(x, y);
+			assertClose(expected, y, ROWS);
+			matVec.release();
+		}
+	}
+
+	@Test
+	public void testTransposeMultiply() {
+		DoubleMatrix1D expected = A.zMult(new DenseDoubleMatrix1D(r), null, 1d, 0d, true);
+		for (int threads : THREADS) {
+			SparseMatVec matVec = new SparseMatVec(data, threads);
+			double[] g = new double[COLS];
+			Arrays.fill(g, Double.NaN);
+			matVec.transposeMultiply(r, g);
+			assertClose(expected, g, COLS);
+			// doesn't need the CSR
+			assertFalse(matVec.isCSRBuilt());
+			matVec.release();
+		}
+	}
+
+	@Test
+	public void testMultiplyDcs() {
+		DoubleMatrix1D expected = A.zMult(new DenseDoubleMatrix1D(x), null);
+		for (int threads : THREADS) {
+			double[] y = new double[ROWS];
+			Arrays.fill(y, Double.NaN);
+			SparseMatVec.multiply(A.elements(), x, y, threads);
+			assertClose(expected, y, ROWS);
+		}
+	}
+
+	@Test
+	public void testSharedMatVec() {
+		DoubleMatrix1D expected = A.zMult(new DenseDoubleMatrix1D(x), null);
+		ColumnOrganizedAnnealingData data = new ColumnOrganizedAnnealingData(A, new double[ROWS]);
+		for (int threads : THREADS) {
+			data.setMatVecThreads(threads);
+			double[] misfit = new double[ROWS];
+			SerialSimulatedAnnealing.calculateMisfit(data, x, misfit);
+			assertClose(expected, misfit, ROWS);
+			SparseMatVec matVec = data.getMatVec();
+			assertEquals(threads, matVec.getThreads());
+			assertEquals(threads > 1, matVec.isCSRBuilt());
+			data.releaseMatVec();
+			assertFalse(matVec.isCSRBuilt());
+			assertNotSame(matVec, data.getMatVec());
+		}
+		data.releaseMatVec();
+	}
+
+}
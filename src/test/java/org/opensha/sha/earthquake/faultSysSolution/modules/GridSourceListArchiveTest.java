@@ -0,0 +1,279 @@
+package org.opensha.sha.earthquake.faultSysSolution.modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.ZipFile;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.commons.util.io.archive.ArchiveInput;
+import org.opensha.commons.util.modules.ModuleArchive;
+import org.opensha.commons.util.modules.OpenSHA_Module;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.common.io.Files;
+
+/**
+ * Round trip tests for {@link GridSourceList} archive serialization, comparing ruptures loaded from the CSV and binary
+ * files against each other and against the original (unrounded) ruptures, and testing the {@link GridSourceList.Columnar}
+ * backing used when loading the binary file.
+ *
+ * @author kevin
+ *
+ */
+public class GridSourceListArchiveTest {
+
+	private static File tempDir;
+
+	private static GridSourceList gridSources;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		tempDir = Files.createTempDir();
+
+		GriddedRegion gridReg = new GriddedRegion(new Location(34, -118), new Location(34.5, -117.5), 0.1, null);
+		Random r = new Random(gridReg.getNodeCount());
+		EnumMap<TectonicRegionType, List<List<GriddedRupture>>> trtRuptureLists = new EnumMap<>(TectonicRegionType.class);
+		for (TectonicRegionType trt : new TectonicRegionType[] {TectonicRegionType.ACTIVE_SHALLOW, TectonicRegionType.STABLE_SHALLOW}) {
+			List<List<GriddedRupture>> ruptureLists = new ArrayList<>();
+			for (int i=0; i<gridReg.getNodeCount(); i++) {
+				List<GriddedRupture> rups = new ArrayList<>();
+				if (i % 7 == 3) {
+					// leave some nodes empty
+					ruptureLists.add(rups);
+					continue;
+				}
+				Location loc = gridReg.getLocation(i);
+				for (double mag=5.05; mag<7.6; mag+=0.1) {
+					// values that aren't representable at the archive precision
+					double rate = r.nextDouble()*1e-3*Math.pow(10, -(mag-5.05));
+					double length = Math.pow(10, -3.22 + 0.69*mag) + r.nextDouble();
+					double lowerDepth = 12d + r.nextDouble();
+					int[] assocSects = null;
+					double[] assocFracts = null;
+					if (i % 3 == 0) {
+						assocSects = new int[] { i, i+1 };
+						assocFracts = new double[] { r.nextDouble()*0.5, r.nextDouble()*0.5 };
+					}
+					rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 0d, 90d, Double.NaN,
+							Range.closed(0d, 180d*r.nextDouble()), 0d, lowerDepth, length, Double.NaN, Double.NaN, trt),
+							rate, assocSects, assocFracts));
+					rups.add(new GriddedRupture(i, loc, new GriddedRuptureProperties(mag, 90d, 45d+r.nextDouble(),
+							360d*r.nextDouble(), null, 1.5d, lowerDepth, length, 0.5*(1.5+lowerDepth), 0.5*length, trt),
+							0.5*rate, assocSects, assocFracts));
+				}
+				ruptureLists.add(rups);
+			}
+			trtRuptureLists.put(trt, ruptureLists);
+		}
+		gridSources = new GridSourceList.Precomputed(gridReg, trtRuptureLists);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static File write(String name, boolean binary) throws IOException {
+		File file = new File(tempDir, name+".zip");
+		ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+		gridSources.setArchiveBinary(binary);
+		try {
+			archive.addModule(gridSources);
+			archive.write(file);
+		} finally {
+			gridSources.setArchiveBinary(true);
+		}
+		return file;
+	}
+
+	private static boolean hasBinaryEntry(File file) throws IOException {
+		try (ZipFile zip = new ZipFile(file)) {
+			return zip.getEntry(GridSourceList.ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME) != null;
+		}
+	}
+
+	@Test
+	public void testBinaryDefault() throws IOException {
+		File defaultFile = new File(tempDir, "default.zip");
+		ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+		archive.addModule(gridSources);
+		archive.write(defaultFile);
+		assertTrue("Binary file not written by default", hasBinaryEntry(defaultFile));
+		assertFalse("Binary file written when disabled", hasBinaryEntry(write("csvOnly", false)));
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		File csvFile = write("csv", false);
+		File binFile = write("bin", true);
+
+		GridSourceList csvLoaded = new ModuleArchive<>(csvFile).requireModule(GridSourceList.class);
+		GridSourceList binLoaded = new ModuleArchive<>(binFile).requireModule(GridSourceList.class);
+		assertEquals(GridSourceList.Precomputed.class, csvLoaded.getClass());
+		assertEquals(GridSourceList.Columnar.class, binLoaded.getClass());
+
+		// explicitly loaded from the binary file as precomputed, and as columnar from the CSV file
+		GridSourceList precomputedLoaded = new ModuleArchive<>(binFile).loadUnlistedModule(
+				GridSourceList.Precomputed.class, "");
+		GridSourceList columnarCSVLoaded = new ModuleArchive<>(csvFile).loadUnlistedModule(
+				GridSourceList.Columnar.class, "");
+
+		// values from each file should be identical
+		assertIdentical(csvLoaded, binLoaded);
+		assertIdentical(csvLoaded, precomputedLoaded);
+		assertIdentical(csvLoaded, columnarCSVLoaded);
+
+		// and match the original to within the archive precision
+		assertEquals(gridSources.getTectonicRegionTypes(), csvLoaded.getTectonicRegionTypes());
+		assertEquals(gridSources.getNumSources(), csvLoaded.getNumSources());
+		for (TectonicRegionType trt : gridSources.getTectonicRegionTypes()) {
+			for (int i=0; i<gridSources.getNumLocations(); i++) {
+				ImmutableList<GriddedRupture> origRups = gridSources.getRuptures(trt, i);
+				ImmutableList<GriddedRupture> loadedRups = csvLoaded.getRuptures(trt, i);
+				assertEquals(origRups.size(), loadedRups.size());
+				for (int r=0; r<origRups.size(); r++)
+					assertClose(origRups.get(r), loadedRups.get(r));
+			}
+		}
+	}
+
+	@Test
+	public void testColumnarRupturesCached() throws IOException {
+		GridSourceList.Columnar columnar = new GridSourceList.Columnar(gridSources);
+		for (TectonicRegionType trt : gridSources.getTectonicRegionTypes()) {
+			for (int i=0; i<columnar.getNumLocations(); i++) {
+				ImmutableList<GriddedRupture> rups = columnar.getRuptures(trt, i);
+				assertEquals(gridSources.getRuptures(trt, i), rups);
+				// either cached, or rebuilt (if collected) and still equal
+				assertEquals(rups, columnar.getRuptures(trt, i));
+				if (!rups.isEmpty())
+					assertSame("Ruptures should be cached", rups.get(0), columnar.getRuptures(trt, i).get(0));
+			}
+		}
+	}
+
+	@Test
+	public void testColumnarLazyViews() throws IOException {
+		GridSourceList csvLoaded = new ModuleArchive<>(write("lazyCSV", false)).requireModule(GridSourceList.class);
+		GridSourceList.Columnar columnar = (GridSourceList.Columnar)new ModuleArchive<>(write("lazyBin", true))
+				.requireModule(GridSourceList.class);
+		int numNonEmpty = 0;
+		for (TectonicRegionType trt : columnar.getTectonicRegionTypes()) {
+			// access everything through the primitive views first, before any ruptures are built
+			for (int i=0; i<columnar.getNumLocations(); i++) {
+				ImmutableList<GriddedRupture> expectedRups = csvLoaded.getRuptures(trt, i);
+				assertEquals(expectedRups.size(), columnar.getNumRuptures(trt, i));
+				for (int r=0; r<expectedRups.size(); r++) {
+					assertEquals(expectedRups.get(r).rate, columnar.getRate(trt, i, r), 0d);
+					assertEquals(expectedRups.get(r).properties, columnar.getProperties(trt, i, r));
+				}
+				try {
+					columnar.getRate(trt, i, expectedRups.size());
+					fail("Should have thrown for a rupture index past the end of the node");
+				} catch (IndexOutOfBoundsException e) {}
+			}
+			for (int i=0; i<columnar.getNumLocations(); i++) {
+				ImmutableList<GriddedRupture> rups = columnar.getRuptures(trt, i);
+				assertEquals(csvLoaded.getRuptures(trt, i), rups);
+				if (rups.isEmpty())
+					continue;
+				numNonEmpty++;
+				// built once per node, and then reused
+				assertSame("Ruptures should be cached", rups, columnar.getRuptures(trt, i));
+			}
+		}
+		assertTrue(numNonEmpty > 0);
+	}
+
+	@Test
+	public void testColumnarMapped() throws IOException {
+		File binFile = write("mapped", true);
+		GridSourceList csvLoaded = new ModuleArchive<>(write("mappedCSV", false)).requireModule(GridSourceList.class);
+		try (ArchiveInput input = new ArchiveInput.ApacheZipFileInput(binFile)) {
+			// binary entry is stored uncompressed, so it should be memory-mapped rather than read into memory
+			ByteBuffer buffer = input.getByteBuffer(GridSourceList.ARCHIVE_GRID_SOURCES_BINARY_FILE_NAME);
+			assertTrue("Binary entry wasn't memory-mapped", buffer instanceof MappedByteBuffer);
+
+			GridSourceList mapped = new ModuleArchive<>(input).requireModule(GridSourceList.class);
+			assertEquals(GridSourceList.Columnar.class, mapped.getClass());
+			assertIdentical(csvLoaded, mapped);
+
+			// write it back out (from the mapped columns), and make sure that it's unchanged
+			File rewritten = new File(tempDir, "rewritten.zip");
+			ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+			archive.addModule(mapped);
+			archive.write(rewritten);
+			assertIdentical(csvLoaded, new ModuleArchive<>(rewritten).requireModule(GridSourceList.class));
+		}
+	}
+
+	private static void assertIdentical(GridSourceList expected, GridSourceList actual) {
+		assertEquals(expected.getTectonicRegionTypes(), actual.getTectonicRegionTypes());
+		assertEquals(expected.getNumSources(), actual.getNumSources());
+		for (TectonicRegionType trt : expected.getTectonicRegionTypes()) {
+			for (int i=0; i<expected.getNumLocations(); i++) {
+				ImmutableList<GriddedRupture> expectedRups = expected.getRuptures(trt, i);
+				ImmutableList<GriddedRupture> actualRups = actual.getRuptures(trt, i);
+				// exact equality, including rates and associations
+				assertEquals("Rupture mismatch for "+trt+", node "+i, expectedRups, actualRups);
+			}
+		}
+	}
+
+	private static void assertClose(GriddedRupture expected, GriddedRupture actual) {
+		assertEquals(expected.gridIndex, actual.gridIndex);
+		assertEquals(expected.rate, actual.rate, 1e-5*expected.rate);
+		GriddedRuptureProperties expectedProps = expected.properties;
+		GriddedRuptureProperties actualProps = actual.properties;
+		assertEquals(expectedProps.magnitude, actualProps.magnitude, 5e-4);
+		assertClose(expectedProps.rake, actualProps.rake);
+		assertClose(expectedProps.dip, actualProps.dip);
+		assertClose(expectedProps.strike, actualProps.strike);
+		if (expectedProps.strikeRange == null) {
+			assertNull(actualProps.strikeRange);
+		} else {
+			assertClose(expectedProps.strikeRange.lowerEndpoint(), actualProps.strikeRange.lowerEndpoint());
+			assertClose(expectedProps.strikeRange.upperEndpoint(), actualProps.strikeRange.upperEndpoint());
+		}
+		assertClose(expectedProps.upperDepth, actualProps.upperDepth);
+		assertClose(expectedProps.lowerDepth, actualProps.lowerDepth);
+		assertClose(expectedProps.length, actualProps.length);
+		assertClose(expectedProps.hypocentralDepth, actualProps.hypocentralDepth);
+		assertClose(expectedProps.hypocentralDAS, actualProps.hypocentralDAS);
+		assertEquals(expectedProps.tectonicRegionType, actualProps.tectonicRegionType);
+		if (expected.associatedSections == null) {
+			assertNull(actual.associatedSections);
+		} else {
+			assertArrayEquals(expected.associatedSections, actual.associatedSections);
+			assertArrayEquals(expected.associatedSectionFracts, actual.associatedSectionFracts, 1e-5);
+		}
+	}
+
+	/**
+	 * Checks that values agree to 3 significant figures
+	 */
+	private static void assertClose(double expected, double actual) {
+		if (Double.isNaN(expected))
+			assertTrue(Double.isNaN(actual));
+		else
+			assertEquals(expected, actual, 5e-3*Math.abs(expected));
+	}
+
+}
@@ -0,0 +1,197 @@
+package org.opensha.sha.earthquake.faultSysSolution.modules;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.List;
+
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.GriddedRegion;
+import org.opensha.commons.geo.Location;
+import org.opensha.commons.logicTree.LogicTree;
+import org.opensha.commons.logicTree.LogicTreeBranch;
+import org.opensha.commons.logicTree.LogicTreeLevel;
+import org.opensha.commons.logicTree.LogicTreeNode;
+import org.opensha.commons.logicTree.LogicTreeNode.FileBackedNode;
+import org.opensha.commons.util.FileUtils;
+import org.opensha.commons.util.io.archive.ArchiveOutput;
+import org.opensha.commons.util.modules.ModuleArchive;
+import org.opensha.commons.util.modules.OpenSHA_Module;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRupture;
+import org.opensha.sha.earthquake.faultSysSolution.modules.GridSourceList.GriddedRuptureProperties;
+import org.opensha.sha.util.TectonicRegionType;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.erf.FSS_ERF_ParamTest;
+
+/**
+ * Checks that {@link SolutionLogicTree} archives written with parallel branch serialization are identical to those
+ * written serially, both through {@link SolutionLogicTree.FileBuilder} and
+ * {@link AbstractLogicTreeModule#writeToArchive(ArchiveOutput, String)}.
+ * <p>
+ * Entries are compared in physical order, including their raw (compressed) bytes. Entry modification times are not
+ * compared, as they are set when each entry is written.
+ *
+ * @author kevin
+ *
+ */
+public class SolutionLogicTreeWriteTest {
+
+	private static final int THREADS = 3;
+
+	private static File tempDir;
+
+	private static LogicTree<LogicTreeNode> tree;
+	private static List<FaultSystemSolution> solutions;
+	private static BuildInfoModule buildInfo;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException {
+		tempDir = Files.createTempDir();
+
+		// first level affects everything, second only affects rates (so other files are shared across branches)
+		List<FileBackedNode> rsNodes = List.of(new FileBackedNode("Rupture Set 1", "RS1", 0.5, "rs1"),
+				new FileBackedNode("Rupture Set 2", "RS2", 0.5, "rs2"));
+		LogicTreeLevel.FileBackedLevel rsLevel = new LogicTreeLevel.FileBackedLevel("Rupture Set", "RS", rsNodes);
+		List<FileBackedNode> rateNodes = new ArrayList<>();
+		for (int i=0; i<4; i++)
+			rateNodes.add(new FileBackedNode("Rates "+i, "Rates"+i, 0.25, "rates"+i));
+		LogicTreeLevel.FileBackedLevel ratesLevel = new LogicTreeLevel.FileBackedLevel("Rates", "Rates", rateNodes);
+		ratesLevel.setAffected(List.of(FaultSystemSolution.RATES_FILE_NAME), List.of(FaultSystemRupSet.SECTS_FILE_NAME,
+				FaultSystemRupSet.RUP_SECTS_FILE_NAME, FaultSystemRupSet.RUP_PROPS_FILE_NAME,
+				GridSourceProvider.ARCHIVE_GRID_REGION_FILE_NAME, GridSourceList.ARCHIVE_GRID_LOCS_FILE_NAME,
+				GridSourceList.ARCHIVE_GRID_SOURCES_FILE_NAME), false);
+		List<LogicTreeLevel<? extends LogicTreeNode>> levels = List.of(rsLevel, ratesLevel);
+
+		List<LogicTreeBranch<LogicTreeNode>> branches = new ArrayList<>();
+		solutions = new ArrayList<>();
+		for (int r=0; r<rsNodes.size(); r++) {
+			FaultSystemRupSet rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+			GridSourceList gridSources = buildGridSources(r);
+			for (int i=0; i<rateNodes.size(); i++) {
+				branches.add(new LogicTreeBranch<>(levels, List.of(rsNodes.get(r), rateNodes.get(i))));
+				double[] rates = new double[rupSet.getNumRuptures()];
+				for (int j=0; j<rates.length; j++)
+					rates[j] = 1e-5*(1 + i + (j % 7)) + r*1e-6;
+				FaultSystemSolution sol = new FaultSystemSolution(rupSet, rates);
+				sol.addModule(gridSources);
+				solutions.add(sol);
+			}
+		}
+		tree = LogicTree.fromExisting(levels, branches);
+		buildInfo = BuildInfoModule.detect();
+	}
+
+	private static GridSourceList buildGridSources(int seed) {
+		GriddedRegion gridReg = new GriddedRegion(new Location(34.2, -118.4), new Location(34.6, -118.0), 0.1, null);
+		TectonicRegionType trt = TectonicRegionType.ACTIVE_SHALLOW;
+		List<List<GriddedRupture>> nodeRups = new ArrayList<>();
+		for (int i=0; i<gridReg.getNodeCount(); i++) {
+			List<GriddedRupture> rups = new ArrayList<>();
+			for (double mag=5.05; mag<7.6; mag+=0.5)
+				rups.add(new GriddedRupture(i, gridReg.getLocation(i), new GriddedRuptureProperties(mag, 0d, 90d,
+						Double.NaN, null, 0d, 12d, Math.pow(10, -3.22 + 0.69*mag), 6d, Double.NaN, trt),
+						(1+seed)*1e-4*Math.pow(10, -(mag-5.05))));
+			nodeRups.add(rups);
+		}
+		return new GridSourceList.Precomputed(gridReg, trt, nodeRups);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		FileUtils.deleteRecursive(tempDir);
+	}
+
+	private static File writeFileBuilder(String name, int threads) throws IOException {
+		File file = new File(tempDir, name+".zip");
+		SolutionLogicTree.FileBuilder builder = new SolutionLogicTree.FileBuilder(
+				new ArchiveOutput.ApacheZipFileOutput(file));
+		builder.setBuildInfo(buildInfo);
+		builder.setWriteThreads(threads);
+		for (int i=0; i<tree.size(); i++)
+			builder.solution(solutions.get(i), tree.getBranch(i));
+		builder.close();
+		return file;
+	}
+
+	private static File writeModule(String name, int threads) throws IOException {
+		File file = new File(tempDir, name+".zip");
+		SolutionLogicTree slt = new SolutionLogicTree.InMemory(solutions, tree);
+		slt.setWriteThreads(threads);
+		ModuleArchive<OpenSHA_Module> archive = new ModuleArchive<>();
+		archive.addModule(slt);
+		archive.addModule(buildInfo);
+		archive.write(new ArchiveOutput.ApacheZipFileOutput(file));
+		return file;
+	}
+
+	@Test
+	public void testFileBuilder() throws IOException {
+		File serial = writeFileBuilder("builder_serial", 1);
+		File parallel = writeFileBuilder("builder_parallel", THREADS);
+		assertIdentical(serial, parallel);
+		validate(parallel);
+	}
+
+	@Test
+	public void testWriteToArchive() throws IOException {
+		File serial = writeModule("module_serial", 1);
+		File parallel = writeModule("module_parallel", THREADS);
+		assertIdentical(serial, parallel);
+		validate(parallel);
+	}
+
+	private static void assertIdentical(File expectedFile, File actualFile) throws IOException {
+		try (ZipFile expected = ZipFile.builder().setFile(expectedFile).get();
+				ZipFile actual = ZipFile.builder().setFile(actualFile).get()) {
+			Enumeration<ZipArchiveEntry> expectedEntries = expected.getEntriesInPhysicalOrder();
+			Enumeration<ZipArchiveEntry> actualEntries = actual.getEntriesInPhysicalOrder();
+			int count = 0;
+			while (expectedEntries.hasMoreElements()) {
+				ZipArchiveEntry expectedEntry = expectedEntries.nextElement();
+				assertTrue("Parallel archive is missing entries, first missing: "+expectedEntry.getName(),
+						actualEntries.hasMoreElements());
+				ZipArchiveEntry actualEntry = actualEntries.nextElement();
+				String name = expectedEntry.getName();
+				assertEquals("Entry order mismatch at "+count, name, actualEntry.getName());
+				assertEquals(name, expectedEntry.getMethod(), actualEntry.getMethod());
+				assertEquals(name, expectedEntry.getSize(), actualEntry.getSize());
+				assertEquals(name, expectedEntry.getCompressedSize(), actualEntry.getCompressedSize());
+				assertEquals(name, expectedEntry.getCrc(), actualEntry.getCrc());
+				try (InputStream expectedIn = expected.getRawInputStream(expectedEntry);
+						InputStream actualIn = actual.getRawInputStream(actualEntry)) {
+					assertArrayEquals(name, expectedIn.readAllBytes(), actualIn.readAllBytes());
+				}
+				count++;
+			}
+			assertFalse("Parallel archive has extra entries", actualEntries.hasMoreElements());
+			assertTrue(count > 0);
+		}
+	}
+
+	private static void validate(File file) throws IOException {
+		SolutionLogicTree slt = SolutionLogicTree.load(file);
+		LogicTree<?> loadedTree = slt.getLogicTree();
+		assertEquals(tree.size(), loadedTree.size());
+		for (int i=0; i<tree.size(); i++) {
+			LogicTreeBranch<?> branch = tree.getBranch(i);
+			assertEquals(branch, loadedTree.getBranch(i));
+			FaultSystemSolution loaded = slt.forBranch(branch);
+			assertArrayEquals(solutions.get(i).getRateForAllRups(), loaded.getRateForAllRups(), 0d);
+			assertEquals(solutions.get(i).getGridSourceProvider().getNumLocations(),
+					loaded.getGridSourceProvider().getNumLocations());
+		}
+	}
+
+}
@@ -7,6 +7,8 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
@@ -38,6 +40,9 @@ import org.opensha.commons.util.modules.ArchivableModule;
 import org.opensha.commons.util.modules.ModuleArchive;
 import org.opensha.commons.util.modules.ModuleContainer;
 import org.opensha.commons.util.modules.OpenSHA_Module;
+import org.opensha.commons.util.modules.helpers.BinaryColumnBackedModule;
+import org.opensha.commons.util.modules.helpers.BinaryColumns;
+import org.opensha.commons.util.modules.helpers.BinaryColumns.Encoding;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
 import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
 import org.opensha.sha.earthquake.faultSysSolution.RupSetSaveLoadTests;
@@ -94,6 +99,37 @@ public class StandardFaultSysModulesTest {
 		testModuleSerialization(demoRupSet.getArchive(), demoRupSet, module, AveSlipModule.class);
 	}
 
+	@Test
+	public void testBinaryEncodedSize() throws IOException {
+		double[] sectAreas = SectAreas.fromFaultSectData(demoRupSet).getSectAreas();
+		doTestBinaryEncodedSize((BinaryColumnBackedModule)SectAreas.precomputed(demoRupSet, sectAreas));
+		doTestBinaryEncodedSize(new AveSlipModule.Precomputed(
+				AveSlipModule.forModel(demoRupSet, ScalingRelationships.SHAW_2009_MOD)));
+	}
+	
+	private static void doTestBinaryEncodedSize(BinaryColumnBackedModule module) throws IOException {
+		ByteArrayOutputStream csvOut = new ByteArrayOutputStream();
+		module.writeToStream(csvOut);
+		int csvSize = csvOut.size();
+		BinaryColumns columns = module.getBinaryColumns();
+		int[] sizes = new int[Encoding.values().length];
+		for (Encoding encoding : Encoding.values()) {
+			ByteArrayOutputStream binOut = new ByteArrayOutputStream();
+			columns.write(binOut, encoding);
+			sizes[encoding.ordinal()] = binOut.size();
+			System.out.println(module.getName()+" "+encoding+" size: "+binOut.size()+" (CSV: "+csvSize+")");
+			// exact round trip
+			BinaryColumns read = BinaryColumns.read(new ByteArrayInputStream(binOut.toByteArray()));
+			assertEquals(encoding, read.getEncoding());
+		}
+		int raw = sizes[Encoding.RAW.ordinal()];
+		int deflate = sizes[Encoding.DEFLATE.ordinal()];
+		int delta = sizes[Encoding.DELTA_DEFLATE.ordinal()];
+		assertTrue(module.getName()+" DEFLATE ("+deflate+") isn't smaller than RAW ("+raw+")", deflate < raw);
+		assertTrue(module.getName()+" DELTA_DEFLATE ("+delta+") isn't smaller than RAW ("+raw+")", delta < raw);
+		assertTrue(module.getName()+" DELTA_DEFLATE ("+delta+") isn't smaller than CSV ("+csvSize+")", delta < csvSize);
+	}
+
 	@Test
 	public void testClusterRuptures() throws IOException {
 		ClusterRuptures origRups = demoRupSet.getModule(ClusterRuptures.class);
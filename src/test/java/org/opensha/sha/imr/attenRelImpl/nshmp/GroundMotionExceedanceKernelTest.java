@@ -0,0 +1,183 @@
+package org.opensha.sha.imr.attenRelImpl.nshmp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.calc.GaussianDistCalc;
+
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Compares {@link GroundMotionExceedanceKernel} exceedance probabilities against the previous per-branch
+ * {@link NSHMP_GMM_Wrapper#getExceedProbabilities(org.opensha.commons.data.function.DiscretizedFunc)} implementation,
+ * which is reproduced here, for each truncation type.
+ *
+ * @author kevin
+ *
+ */
+public class GroundMotionExceedanceKernelTest {
+
+	private static final double TOL = 1e-12;
+
+	private static double[] xVals;
+	private static List<LogicTree<GroundMotion>> trees;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		// ln(IML) from 1e-5 to 10 g, extending far enough above the means that upper tails reach zero
+		int num = 61;
+		xVals = new double[num];
+		double minX = Math.log(1e-5);
+		double maxX = Math.log(10d);
+		for (int i=0; i<num; i++)
+			xVals[i] = minX + i*(maxX - minX)/(num-1);
+
+		trees = new ArrayList<>();
+		// single branch
+		trees.add(LogicTree.singleton("single", "single", GroundMotion.create(Math.log(0.1), 0.65)));
+
+		// 3x3 mean and sigma tree (weights are products, so may not sum exactly to 1)
+		double[] meanWeights = { 0.185, 0.63, 0.185 };
+		double[] meanShifts = { -0.3, 0d, 0.3 };
+		double[] sigmaWeights = { 0.2, 0.5, 0.3 };
+		double[] sigmas = { 0.55, 0.7, 0.85 };
+		LogicTree.Builder<GroundMotion> builder = LogicTree.builder("3x3");
+		for (int m=0; m<meanShifts.length; m++)
+			for (int s=0; s<sigmas.length; s++)
+				builder.addBranch("m"+m+"_s"+s, GroundMotion.create(Math.log(0.05)+meanShifts[m], sigmas[s]),
+						meanWeights[m]*sigmaWeights[s]);
+		trees.add(builder.build());
+
+		// duplicate mean and sigma branches, which are merged in the kernel, and a shared mean with distinct sigmas
+		builder = LogicTree.builder("duplicates");
+		builder.addBranch("a", GroundMotion.create(Math.log(0.2), 0.6), 0.25);
+		builder.addBranch("b", GroundMotion.create(Math.log(0.02), 0.8), 0.15);
+		builder.addBranch("c", GroundMotion.create(Math.log(0.2), 0.6), 0.25);
+		builder.addBranch("d", GroundMotion.create(Math.log(0.2), 0.7), 0.35);
+		trees.add(builder.build());
+
+		// very small sigma, so that probabilities reach exactly 0 and 1 within the IML range
+		builder = LogicTree.builder("narrow");
+		builder.addBranch("a", GroundMotion.create(Math.log(0.01), 0.05), 0.5);
+		builder.addBranch("b", GroundMotion.create(Math.log(0.5), 0.1), 0.5);
+		trees.add(builder.build());
+	}
+
+	/**
+	 * Previous implementation from {@link NSHMP_GMM_Wrapper}, looping over each branch
+	 */
+	private static double[] calcPrevious(LogicTree<GroundMotion> gmTree, int sigmaTruncType, double numSig) {
+		final int size = xVals.length;
+		double[] yVals = new double[size];
+		double weightSum = 0d;
+		boolean first = true;
+		for (Branch<GroundMotion> branch : gmTree) {
+			double weight = branch.weight();
+			weightSum += weight;
+			double mean = branch.value().mean();
+			double stdDev = branch.value().sigma();
+			for (int i=0; i<size; i++) {
+				double stRndVar = (xVals[i] - mean) / stdDev;
+				double y;
+				if (sigmaTruncType == 0)
+					y = GaussianDistCalc.getExceedProb(stRndVar);
+				else
+					y = GaussianDistCalc.getExceedProb(stRndVar, sigmaTruncType, numSig);
+				if (first)
+					yVals[i] = y*weight;
+				else
+					yVals[i] = Math.fma(y, weight, yVals[i]);
+			}
+			first = false;
+		}
+		if (weightSum != 1d)
+			for (int i=0; i<size; i++)
+				yVals[i] /= weightSum;
+		return yVals;
+	}
+
+	@Test
+	public void testUntruncated() {
+		doTest(0, 0d);
+		// level is ignored
+		doTest(0, 3d);
+	}
+
+	@Test
+	public void testUpperTruncated() {
+		doTest(1, 0d);
+		doTest(1, 1d);
+		doTest(1, 3d);
+	}
+
+	@Test
+	public void testTwoSidedTruncated() {
+		doTest(2, 0.5d);
+		doTest(2, 2d);
+		doTest(2, 3d);
+	}
+
+	@Test
+	public void testPartialSize() {
+		// only the first size values should be computed, and existing values overwritten
+		LogicTree<GroundMotion> tree = trees.get(1);
+		double[] expected = calcPrevious(tree, 1, 3d);
+		int size = xVals.length/2;
+		double[] yVals = new double[xVals.length];
+		for (int i=0; i<yVals.length; i++)
+			yVals[i] = -1d;
+		new GroundMotionExceedanceKernel(tree).calcExceedProbs(xVals, yVals, size, 1, 3d);
+		for (int i=0; i<yVals.length; i++) {
+			if (i < size)
+				assertEquals(expected[i], yVals[i], TOL);
+			else
+				assertEquals(-1d, yVals[i], 0d);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadTruncType() {
+		new GroundMotionExceedanceKernel(trees.get(0)).calcExceedProbs(xVals, new double[xVals.length],
+				xVals.length, 3, 3d);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadTwoSidedLevel() {
+		new GroundMotionExceedanceKernel(trees.get(0)).calcExceedProbs(xVals, new double[xVals.length],
+				xVals.length, 2, 0d);
+	}
+
+	private static void doTest(int truncType, double truncLevel) {
+		for (LogicTree<GroundMotion> tree : trees) {
+			GroundMotionExceedanceKernel kernel = new GroundMotionExceedanceKernel(tree);
+			assertSame(tree, kernel.getTree());
+			double[] expected = calcPrevious(tree, truncType, truncLevel);
+			// evaluate twice to make sure that the output array is fully overwritten
+			double[] actual = new double[xVals.length];
+			for (int n=0; n<2; n++) {
+				kernel.calcExceedProbs(xVals, actual, xVals.length, truncType, truncLevel);
+				boolean anyZero = false;
+				boolean anyOne = false;
+				for (int i=0; i<xVals.length; i++) {
+					String message = tree.name()+", truncType="+truncType+", truncLevel="+(float)truncLevel
+							+", x="+(float)xVals[i];
+					assertEquals(message, expected[i], actual[i], TOL);
+					assertTrue(message+": invalid probability "+actual[i], actual[i] >= 0d && actual[i] <= 1d+TOL);
+					anyZero |= actual[i] == 0d;
+					anyOne |= actual[i] >= 1d-TOL;
+				}
+				if (truncType > 0)
+					assertTrue(tree.name()+": truncated curve never reaches zero", anyZero);
+				if (truncType == 2 || tree.name().equals("narrow"))
+					assertTrue(tree.name()+": curve never reaches one", anyOne);
+			}
+		}
+	}
+
+}
@@ -0,0 +1,188 @@
+package org.opensha.sha.imr.attenRelImpl.nshmp;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+import org.opensha.sha.imr.param.IntensityMeasureParams.PGA_Param;
+
+import gov.usgs.earthquake.nshmp.gmm.Gmm;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput;
+import gov.usgs.earthquake.nshmp.gmm.GmmInput.Field;
+import gov.usgs.earthquake.nshmp.gmm.GroundMotion;
+import gov.usgs.earthquake.nshmp.gmm.Imt;
+import gov.usgs.earthquake.nshmp.tree.Branch;
+import gov.usgs.earthquake.nshmp.tree.LogicTree;
+
+/**
+ * Tests for {@link GroundMotionMemoCache}, both directly and through
+ * {@link NSHMP_GMM_Wrapper#getGroundMotionTree()}
+ *
+ * @author kevin
+ *
+ */
+public class GroundMotionMemoCacheTest {
+
+	private static final Gmm GMM = Gmm.ASK_14;
+
+	private static GmmInput buildInput(double mag, double rJB, double rRup, double vs30) {
+		MutableGmmInputBuilder builder = new MutableGmmInputBuilder();
+		builder.setAll(GmmInput.builder().withDefaults().build());
+		builder.setValue(Field.MW, mag);
+		builder.setValue(Field.RJB, rJB);
+		builder.setValue(Field.RRUP, rRup);
+		builder.setValue(Field.RX, rJB);
+		builder.setValue(Field.VS30, vs30);
+		return builder.build();
+	}
+
+	private static LogicTree<GroundMotion> tree(double mean) {
+		return LogicTree.singleton("gm", "gm", GroundMotion.create(mean, 0.6));
+	}
+
+	private static NSHMP_GMM_Wrapper buildWrapper(GroundMotionMemoCache memoCache) {
+		NSHMP_GMM_Wrapper wrapper = new NSHMP_GMM_Wrapper(GMM);
+		wrapper.setParamDefaults();
+		wrapper.setIntensityMeasure(PGA_Param.NAME);
+		wrapper.setGroundMotionMemoCache(memoCache);
+		return wrapper;
+	}
+
+	private static LogicTree<GroundMotion> calc(NSHMP_GMM_Wrapper wrapper, GmmInput input) {
+		wrapper.setCurrentGmmInput(input);
+		return wrapper.getGroundMotionTree();
+	}
+
+	private static void assertTreesEqual(LogicTree<GroundMotion> expected, LogicTree<GroundMotion> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++) {
+			Branch<GroundMotion> expectedBranch = expected.get(i);
+			Branch<GroundMotion> actualBranch = actual.get(i);
+			assertEquals(expectedBranch.id(), actualBranch.id());
+			assertEquals(expectedBranch.weight(), actualBranch.weight(), 0d);
+			assertEquals(expectedBranch.value().mean(), actualBranch.value().mean(), 0d);
+			assertEquals(expectedBranch.value().sigma(), actualBranch.value().sigma(), 0d);
+		}
+	}
+
+	@Test
+	public void testCachedMatchesUncached() {
+		Random r = new Random(12345l);
+		List<GmmInput> inputs = new ArrayList<>();
+		for (int i=0; i<50; i++) {
+			double rJB = 100d*r.nextDouble();
+			inputs.add(buildInput(5d + 3d*r.nextDouble(), rJB, rJB + 2d*r.nextDouble(), 760d));
+		}
+		// revisit the inputs, in a different order
+		List<GmmInput> allInputs = new ArrayList<>(inputs);
+		for (int i=inputs.size(); --i>=0;)
+			allInputs.add(inputs.get(i));
+
+		GroundMotionMemoCache memoCache = new GroundMotionMemoCache();
+		NSHMP_GMM_Wrapper cached = buildWrapper(memoCache);
+		NSHMP_GMM_Wrapper uncached = buildWrapper(null);
+		for (GmmInput input : allInputs) {
+			LogicTree<GroundMotion> expected = calc(uncached, input);
+			LogicTree<GroundMotion> actual = calc(cached, input);
+			assertTreesEqual(expected, actual);
+			assertEquals(uncached.getMean(), cached.getMean(), 0d);
+			assertEquals(uncached.getStdDev(), cached.getStdDev(), 0d);
+		}
+		assertEquals(inputs.size(), memoCache.getMisses());
+		assertEquals(inputs.size(), memoCache.getHits());
+		assertEquals(inputs.size(), memoCache.size());
+	}
+
+	@Test
+	public void testQuantizedShared() {
+		GroundMotionMemoCache memoCache = new GroundMotionMemoCache();
+		memoCache.setQuantization(Field.RJB, 1d);
+		memoCache.setQuantization(Field.RRUP, 1d);
+		memoCache.setQuantization(Field.RX, 1d);
+		assertTrue(memoCache.isQuantized());
+		NSHMP_GMM_Wrapper cached = buildWrapper(memoCache);
+		NSHMP_GMM_Wrapper uncached = buildWrapper(null);
+
+		LogicTree<GroundMotion> first = calc(cached, buildInput(6.5, 9.8, 10.2, 760d));
+		assertEquals(1l, memoCache.getMisses());
+		// different inputs that quantize to the same values
+		LogicTree<GroundMotion> second = calc(cached, buildInput(6.5, 10.3, 9.9, 760d));
+		assertEquals(1l, memoCache.getHits());
+		assertSame("Quantized inputs should share the cached result", first, second);
+		// and that result was computed for the quantized input, independent of which input was seen first
+		assertTreesEqual(calc(uncached, buildInput(6.5, 10d, 10d, 760d)), second);
+
+		// fields that aren't quantized must still match exactly
+		LogicTree<GroundMotion> other = calc(cached, buildInput(6.5, 10d, 10d, 760.5));
+		assertNotSame(first, other);
+		assertEquals(2l, memoCache.getMisses());
+
+		// changing the quantization clears the cache
+		memoCache.setQuantization(Field.RRUP, 0d);
+		assertEquals(0, memoCache.size());
+		assertFalse(memoCache.getQuantizations().containsKey(Field.RRUP));
+		assertTrue(memoCache.isQuantized());
+	}
+
+	@Test
+	public void testEviction() {
+		GroundMotionMemoCache memoCache = new GroundMotionMemoCache(3);
+		GmmInput[] inputs = new GmmInput[4];
+		List<LogicTree<GroundMotion>> trees = new ArrayList<>();
+		for (int i=0; i<inputs.length; i++) {
+			inputs[i] = buildInput(6d, i, i, 760d);
+			trees.add(tree(i));
+		}
+		for (int i=0; i<3; i++)
+			memoCache.put(GMM, Imt.PGA, inputs[i], trees.get(i));
+		assertEquals(3, memoCache.size());
+		assertEquals(0l, memoCache.getEvictions());
+
+		// access the first, so that the second is now the least recently used
+		assertSame(trees.get(0), memoCache.get(GMM, Imt.PGA, inputs[0]));
+		memoCache.put(GMM, Imt.PGA, inputs[3], trees.get(3));
+		assertEquals(3, memoCache.size());
+		assertEquals(1l, memoCache.getEvictions());
+		assertNull("Least recently used should have been evicted", memoCache.get(GMM, Imt.PGA, inputs[1]));
+		assertSame(trees.get(0), memoCache.get(GMM, Imt.PGA, inputs[0]));
+		assertSame(trees.get(2), memoCache.get(GMM, Imt.PGA, inputs[2]));
+		assertSame(trees.get(3), memoCache.get(GMM, Imt.PGA, inputs[3]));
+
+		// IMT and GMM are part of the key
+		assertNull(memoCache.get(GMM, Imt.PGV, inputs[0]));
+		assertNull(memoCache.get(Gmm.BSSA_14, Imt.PGA, inputs[0]));
+	}
+
+	@Test
+	public void testCounters() {
+		GroundMotionMemoCache memoCache = new GroundMotionMemoCache(10);
+		assertTrue(Double.isNaN(memoCache.getHitRate()));
+		GmmInput input = buildInput(6d, 5d, 5d, 760d);
+		assertNull(memoCache.get(GMM, Imt.PGA, input));
+		LogicTree<GroundMotion> tree = tree(0d);
+		memoCache.put(GMM, Imt.PGA, input, tree);
+		for (int i=0; i<3; i++)
+			// equal, but not the same, input instances
+			assertSame(tree, memoCache.get(GMM, Imt.PGA, buildInput(6d, 5d, 5d, 760d)));
+		assertEquals(3l, memoCache.getHits());
+		assertEquals(1l, memoCache.getMisses());
+		assertEquals(0.75, memoCache.getHitRate(), 0d);
+
+		// clearing keeps the counters
+		memoCache.clear();
+		assertEquals(0, memoCache.size());
+		assertNull(memoCache.get(GMM, Imt.PGA, input));
+		assertEquals(3l, memoCache.getHits());
+		assertEquals(2l, memoCache.getMisses());
+
+		memoCache.resetCounters();
+		assertEquals(0l, memoCache.getHits());
+		assertEquals(0l, memoCache.getMisses());
+		assertEquals(0l, memoCache.getEvictions());
+		assertTrue(Double.isNaN(memoCache.getHitRate()));
+	}
+
+}
@@ -4,6 +4,8 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Suite;
 import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_Tests;
 import org.opensha.sha.imr.attenRelImpl.ngaw2.NGAW2_WrapperTest;
+import org.opensha.sha.imr.attenRelImpl.nshmp.GroundMotionExceedanceKernelTest;
+import org.opensha.sha.imr.attenRelImpl.nshmp.GroundMotionMemoCacheTest;
 import org.opensha.sha.imr.mod.ModAttenuationRelationshipTest;
 
 @RunWith(Suite.class)
@@ -29,6 +31,8 @@ import org.opensha.sha.imr.mod.ModAttenuationRelationshipTest;
 	
 	NGAW2_WrapperTest.class,
 	NGAW2_Tests.class,
+	GroundMotionExceedanceKernelTest.class,
+	GroundMotionMemoCacheTest.class,
 	ModAttenuationRelationshipTest.class
 })
 
@@ -0,0 +1,17 @@
+package org.opensha.sha.simulators;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+import org.opensha.sha.simulators.parsers.RSQSimMappedEventsReaderTest;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+	RSQSimMappedEventsReaderTest.class
+})
+
+public class SimulatorsSuite {
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.runClasses(SimulatorsSuite.class);
+	}
+}
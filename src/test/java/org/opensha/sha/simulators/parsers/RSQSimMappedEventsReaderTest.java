@@ -0,0 +1,292 @@
+package org.opensha.sha.simulators.parsers;
+
+import static org.junit.Assert.*;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.function.Supplier;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.sha.earthquake.FocalMechanism;
+import org.opensha.sha.simulators.RSQSimEvent;
+import org.opensha.sha.simulators.RSQSimEventRecord;
+import org.opensha.sha.simulators.SimulatorElement;
+import org.opensha.sha.simulators.TriangularElement;
+import org.opensha.sha.simulators.Vertex;
+import org.opensha.sha.simulators.iden.CatalogLengthLoadIden;
+import org.opensha.sha.simulators.iden.ElementIden;
+import org.opensha.sha.simulators.iden.EventIDsRangeIden;
+import org.opensha.sha.simulators.iden.LogicalAndRupIden;
+import org.opensha.sha.simulators.iden.MagRangeRuptureIdentifier;
+import org.opensha.sha.simulators.iden.RuptureIdentifier;
+import org.opensha.sha.simulators.iden.SkipYearsLoadIden;
+import org.opensha.sha.simulators.utils.SimulatorUtils;
+
+import com.google.common.collect.Range;
+import com.google.common.io.Files;
+import com.google.common.io.LittleEndianDataOutputStream;
+
+/**
+ * Compares events read by {@link RSQSimMappedEventsReader} against those read by the stream based
+ * {@link RSQSimFileReader#readEventsFile(File, List, java.util.Collection, boolean)} for a small synthetic catalog,
+ * with and without filtering, and checks random access
+ *
+ * @author kevin
+ *
+ */
+public class RSQSimMappedEventsReaderTest {
+
+	private static final int NUM_SECTS = 4;
+	private static final int PATCHES_PER_SECT = 5;
+	private static final int NUM_EVENTS = 2500;
+
+	private static File tempDir;
+	private static List<SimulatorElement> elements;
+	private static File bigEndianDir;
+	private static File littleEndianDir;
+	private static double medianMag;
+	private static double durationYears;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException {
+		tempDir = Files.createTempDir();
+		elements = new ArrayList<>();
+		int id = 1;
+		for (int s=0; s<NUM_SECTS; s++) {
+			for (int p=0; p<PATCHES_PER_SECT; p++) {
+				double lat = 34 + 0.1*s;
+				double lon = -118 + 0.02*p;
+				Vertex[] vertices = {
+						new Vertex(lat, lon, 0d),
+						new Vertex(lat, lon+0.02, 0d),
+						new Vertex(lat, lon+0.01, 2d)
+				};
+				elements.add(new TriangularElement(id++, vertices, "Sect "+s, s, s, p, 0, 1e-3, 0d,
+						new FocalMechanism(90d, 90d, 0d)));
+			}
+		}
+
+		// synthetic catalog, with gaps in event IDs, events on multiple sections, patches out of time order
+		// within an event, and some zero slips
+		Random rand = new Random(NUM_EVENTS);
+		List<Integer> eventIDs = new ArrayList<>();
+		List<Integer> patchIDs = new ArrayList<>();
+		List<Double> slips = new ArrayList<>();
+		List<Double> times = new ArrayList<>();
+		int eventID = 0;
+		double time = 0d;
+		for (int e=0; e<NUM_EVENTS; e++) {
+			eventID += 1 + rand.nextInt(3);
+			time += rand.nextDouble()*SimulatorUtils.SECONDS_PER_YEAR;
+			List<Integer> patches = new ArrayList<>();
+			for (int p=1; p<=elements.size(); p++)
+				patches.add(p);
+			Collections.shuffle(patches, rand);
+			int numPatches = 1 + rand.nextInt(rand.nextInt(5) == 0 ? elements.size() : 4);
+			for (int p=0; p<numPatches; p++) {
+				eventIDs.add(eventID);
+				patchIDs.add(patches.get(p));
+				slips.add(rand.nextInt(10) == 0 ? 0d : 0.01 + 3*rand.nextDouble());
+				times.add(time + 10*rand.nextDouble());
+			}
+		}
+		durationYears = time/SimulatorUtils.SECONDS_PER_YEAR;
+
+		bigEndianDir = new File(tempDir, "big");
+		bigEndianDir.mkdir();
+		writeListFiles(bigEndianDir, true, eventIDs, patchIDs, slips, times);
+		littleEndianDir = new File(tempDir, "little");
+		littleEndianDir.mkdir();
+		writeListFiles(littleEndianDir, false, eventIDs, patchIDs, slips, times);
+
+		List<RSQSimEvent> events = readStream(null, false);
+		assertEquals(NUM_EVENTS, events.size());
+		List<Double> mags = new ArrayList<>();
+		for (RSQSimEvent event : events)
+			mags.add(event.getMagnitude());
+		Collections.sort(mags);
+		medianMag = mags.get(mags.size()/2);
+	}
+
+	private static void writeListFiles(File dir, boolean bigEndian, List<Integer> eventIDs, List<Integer> patchIDs,
+			List<Double> slips, List<Double> times) throws IOException {
+		DataOutput eOut = open(new File(dir, "test.eList"), bigEndian);
+		DataOutput pOut = open(new File(dir, "test.pList"), bigEndian);
+		DataOutput dOut = open(new File(dir, "test.dList"), bigEndian);
+		DataOutput tOut = open(new File(dir, "test.tList"), bigEndian);
+		for (int i=0; i<eventIDs.size(); i++) {
+			eOut.writeInt(eventIDs.get(i));
+			pOut.writeInt(patchIDs.get(i));
+			dOut.writeDouble(slips.get(i));
+			tOut.writeDouble(times.get(i));
+		}
+		for (DataOutput out : new DataOutput[] {eOut, pOut, dOut, tOut})
+			((OutputStream)out).close();
+	}
+
+	private static DataOutput open(File file, boolean bigEndian) throws IOException {
+		OutputStream out = new BufferedOutputStream(new FileOutputStream(file));
+		if (bigEndian)
+			return new DataOutputStream(out);
+		return new LittleEndianDataOutputStream(out);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		for (File dir : tempDir.listFiles()) {
+			for (File file : dir.listFiles())
+				file.delete();
+			dir.delete();
+		}
+		tempDir.delete();
+	}
+
+	private static List<RSQSimEvent> readStream(List<RuptureIdentifier> idens, boolean skipSlipsAndTimes)
+			throws IOException {
+		return RSQSimFileReader.readEventsFile(bigEndianDir, elements, idens, skipSlipsAndTimes);
+	}
+
+	private static void assertEventsEqual(List<RSQSimEvent> expected, List<RSQSimEvent> actual) {
+		assertEquals("Event count mismatch", expected.size(), actual.size());
+		for (int i=0; i<expected.size(); i++)
+			assertEventEqual(expected.get(i), actual.get(i));
+	}
+
+	private static void assertEventEqual(RSQSimEvent expected, RSQSimEvent actual) {
+		int id = expected.getID();
+		assertEquals(id, actual.getID());
+		assertEquals("time for "+id, expected.getTime(), actual.getTime(), 0d);
+		assertEquals("mag for "+id, expected.getMagnitude(), actual.getMagnitude(), 0d);
+		assertEquals("next time for "+id, expected.getNextEventTime(), actual.getNextEventTime(), 0d);
+		assertArrayEquals("elements for "+id, expected.getAllElementIDs(), actual.getAllElementIDs());
+		assertEquals("records for "+id, expected.size(), actual.size());
+		for (int r=0; r<expected.size(); r++) {
+			RSQSimEventRecord expectedRec = (RSQSimEventRecord)expected.get(r);
+			RSQSimEventRecord actualRec = (RSQSimEventRecord)actual.get(r);
+			assertEquals(expectedRec.getSectionID(), actualRec.getSectionID());
+			assertEquals(expectedRec.getID(), actualRec.getID());
+			assertEquals(expectedRec.getTime(), actualRec.getTime(), 0d);
+			assertEquals(expectedRec.getMoment(), actualRec.getMoment(), 0d);
+			assertEquals(expectedRec.getArea(), actualRec.getArea(), 0d);
+			assertEquals(expectedRec.getFirstPatchToSlip(), actualRec.getFirstPatchToSlip());
+			assertArrayEquals(expectedRec.getElementIDs(), actualRec.getElementIDs());
+			assertArrayEquals(expectedRec.getElementSlips(), actualRec.getElementSlips(), 0d);
+			assertArrayEquals(expectedRec.getElementTimeFirstSlips(), actualRec.getElementTimeFirstSlips(), 0d);
+		}
+	}
+
+	@Test
+	public void testEndianness() throws IOException {
+		assertTrue(RSQSimFileReader.isBigEndian(bigEndianDir, elements));
+		assertFalse(RSQSimFileReader.isBigEndian(littleEndianDir, elements));
+		List<RSQSimEvent> expected = readStream(null, false);
+		assertEventsEqual(expected, RSQSimFileReader.readEventsFile(littleEndianDir, elements));
+		assertEventsEqual(expected, RSQSimFileReader.readEventsFileMapped(littleEndianDir, elements, null, false, 1));
+		assertEventsEqual(expected, RSQSimFileReader.readEventsFileMapped(bigEndianDir, elements, null, false, 1));
+	}
+
+	@Test
+	public void testReadAll() throws IOException {
+		for (boolean skip : new boolean[] {false, true}) {
+			List<RSQSimEvent> expected = readStream(null, skip);
+			for (int threads : new int[] {1, 4})
+				assertEventsEqual(expected, RSQSimFileReader.readEventsFileMapped(
+						new File(bigEndianDir, "test.eList"), elements, null, skip, threads));
+		}
+	}
+
+	@Test
+	public void testRandomAccess() throws IOException {
+		List<RSQSimEvent> expected = readStream(null, false);
+		RSQSimMappedEventsReader reader = RSQSimMappedEventsReader.forFile(bigEndianDir, elements);
+		assertEquals(NUM_EVENTS, reader.getNumEvents());
+		Random rand = new Random(12345l);
+		for (int i=0; i<500; i++) {
+			int index = rand.nextInt(NUM_EVENTS);
+			RSQSimEvent event = expected.get(index);
+			assertEquals(event.getID(), reader.getEventID(index));
+			assertEquals(index, reader.getIndexForID(event.getID()));
+			assertEquals(event.getAllElementIDs().length, reader.getNumPatchRecords(index));
+			assertEventEqual(event, reader.getEvent(index));
+		}
+		// last event has no next event
+		assertEventEqual(expected.get(NUM_EVENTS-1), reader.getEvent(NUM_EVENTS-1));
+		assertEquals(Double.POSITIVE_INFINITY, reader.getEvent(NUM_EVENTS-1).getNextEventTime(), 0d);
+		// IDs not in the catalog
+		assertEquals(-1, reader.getIndexForID(0));
+		assertEquals(-1, reader.getIndexForID(expected.get(NUM_EVENTS-1).getID()+1));
+
+		// index range
+		List<RSQSimEvent> range = reader.readEvents(100, 300, null, false, 3);
+		assertEventsEqual(expected.subList(100, 300), range);
+	}
+
+	@Test
+	public void testFilters() throws IOException {
+		int midID = readStream(null, false).get(NUM_EVENTS/2).getID();
+		List<Supplier<List<RuptureIdentifier>>> idenSuppliers = new ArrayList<>();
+		// header only, stateless
+		idenSuppliers.add(() -> List.of(new MagRangeRuptureIdentifier(medianMag, 10d)));
+		idenSuppliers.add(() -> List.of(new EventIDsRangeIden(Range.closed(midID, midID+200))));
+		// header only, stateful with early termination
+		idenSuppliers.add(() -> List.of(new CatalogLengthLoadIden(0.3*durationYears)));
+		idenSuppliers.add(() -> List.of(new SkipYearsLoadIden(0.8*durationYears)));
+		idenSuppliers.add(() -> List.of(new LogicalAndRupIden(new CatalogLengthLoadIden(0.5*durationYears),
+				new MagRangeRuptureIdentifier(medianMag, 10d))));
+		// multiple identifiers, any match
+		idenSuppliers.add(() -> List.of(new MagRangeRuptureIdentifier(0d, medianMag),
+				new EventIDsRangeIden(Range.closed(midID, Integer.MAX_VALUE))));
+		// requires built events
+		idenSuppliers.add(() -> List.of(new ElementIden("test", 3, 17)));
+		idenSuppliers.add(() -> List.of(new LogicalAndRupIden(new CatalogLengthLoadIden(0.4*durationYears),
+				new ElementIden("test", 7))));
+
+		for (int i=0; i<idenSuppliers.size(); i++) {
+			Supplier<List<RuptureIdentifier>> supplier = idenSuppliers.get(i);
+			List<RSQSimEvent> expected = readStream(supplier.get(), false);
+			assertTrue("Filter "+i+" isn't meaningful: "+expected.size(),
+					!expected.isEmpty() && expected.size() < NUM_EVENTS);
+			for (int threads : new int[] {1, 4}) {
+				List<RSQSimEvent> actual = RSQSimFileReader.readEventsFileMapped(
+						bigEndianDir, elements, supplier.get(), false, threads);
+				assertEventsEqual(expected, actual);
+			}
+		}
+
+		assertTrue(RSQSimMappedEventsReader.isHeaderOnly(new MagRangeRuptureIdentifier(5d, 6d)));
+		assertTrue(RSQSimMappedEventsReader.isHeaderOnly(new LogicalAndRupIden(new CatalogLengthLoadIden(1d),
+				new EventIDsRangeIden(Range.closed(1, 10)))));
+		assertFalse(RSQSimMappedEventsReader.isHeaderOnly(new ElementIden("test", 1)));
+		assertFalse(RSQSimMappedEventsReader.isHeaderOnly(new LogicalAndRupIden(new CatalogLengthLoadIden(1d),
+				new ElementIden("test", 1))));
+	}
+
+	@Test
+	public void testInconsistentFiles() throws IOException {
+		File dir = new File(tempDir, "bad");
+		dir.mkdir();
+		for (String ext : new String[] {"eList", "pList", "dList", "tList"})
+			Files.copy(new File(bigEndianDir, "test."+ext), new File(dir, "test."+ext));
+		// truncate the slip file by one record
+		File dListFile = new File(dir, "test.dList");
+		byte[] dBytes = Files.toByteArray(dListFile);
+		Files.write(Arrays.copyOf(dBytes, dBytes.length-8), dListFile);
+		try {
+			RSQSimMappedEventsReader.forFile(dir, elements);
+			fail("Inconsistent list files should fail");
+		} catch (IllegalStateException e) {}
+	}
+
+}
@@ -0,0 +1,237 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+import org.opensha.commons.data.function.IntegerPDF_FunctionSampler;
+
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.CacheStats;
+
+/**
+ * Tests for hits, misses, size-weighted eviction, and concurrent use of {@link CubeSamplerCache}
+ *
+ * @author kevin
+ *
+ */
+public class CubeSamplerCacheTest {
+
+	/**
+	 * Loader that builds samplers of the given size for each index, with the index stored as the first value so
+	 * that returned samplers can be checked
+	 */
+	private static class TestLoader extends CacheLoader<Integer, IntegerPDF_FunctionSampler> {
+
+		private final Map<Integer, Integer> sizes;
+		private final int defaultSize;
+		private final Map<Integer, AtomicInteger> loadCounts = new ConcurrentHashMap<>();
+		private final AtomicInteger totalLoads = new AtomicInteger();
+
+		public TestLoader(Map<Integer, Integer> sizes, int defaultSize) {
+			this.sizes = sizes;
+			this.defaultSize = defaultSize;
+		}
+
+		@Override
+		public IntegerPDF_FunctionSampler load(Integer key) throws Exception {
+			Integer size = sizes.get(key);
+			double[] values = new double[size == null ? defaultSize : size];
+			values[0] = key;
+			loadCounts.computeIfAbsent(key, k -> new AtomicInteger()).incrementAndGet();
+			totalLoads.incrementAndGet();
+			return new IntegerPDF_FunctionSampler(values);
+		}
+
+		public int getLoadCount(int key) {
+			AtomicInteger count = loadCounts.get(key);
+			return count == null ? 0 : count.get();
+		}
+	}
+
+	private static void checkSampler(int index, IntegerPDF_FunctionSampler sampler) {
+		assertNotNull(sampler);
+		assertEquals(index, sampler.getY(0), 0d);
+	}
+
+	@Test
+	public void testHitMiss() {
+		TestLoader loader = new TestLoader(new HashMap<>(), 10);
+		CubeSamplerCache cache = new CubeSamplerCache(10, loader, new HashMap<>(), false);
+
+		checkSampler(3, cache.get(3));
+		checkSampler(3, cache.get(3));
+		checkSampler(5, cache.get(5));
+		checkSampler(3, cache.getIfPresent(3));
+		assertNull(cache.getIfPresent(7));
+
+		CacheStats stats = cache.stats();
+		assertEquals(1, stats.hitCount());
+		assertEquals(2, stats.missCount());
+		assertEquals(2, stats.loadSuccessCount());
+		assertEquals(0, stats.evictionCount());
+		assertEquals(2, cache.size());
+		assertEquals(1, loader.getLoadCount(3));
+
+		// rebuilt after invalidation
+		cache.invalidate(3);
+		assertNull(cache.getIfPresent(3));
+		checkSampler(3, cache.get(3));
+		assertEquals(2, loader.getLoadCount(3));
+		assertEquals(1, cache.getRegenCount());
+	}
+
+	@Test
+	public void testSizeWeightedEviction() {
+		Map<Integer, Integer> sizes = new HashMap<>();
+		sizes.put(0, 1000);
+		sizes.put(1, 10);
+		sizes.put(2, 100);
+		sizes.put(3, 5);
+		sizes.put(4, 5000);
+		sizes.put(5, 10000);
+		Map<Integer, Integer> numForthcoming = new HashMap<>();
+		for (int i=0; i<6; i++)
+			numForthcoming.put(i, 1);
+		// many forthcoming events for a small sampler
+		numForthcoming.put(1, 1000);
+		// none for a large sampler
+		numForthcoming.put(5, 0);
+		TestLoader loader = new TestLoader(sizes, 10);
+		CubeSamplerCache cache = new CubeSamplerCache(2, loader, numForthcoming, false);
+
+		cache.get(0); // weight 1000
+		cache.get(1); // weight 10000
+		assertEquals(2, cache.size());
+		// weight 100, less than both, so not cached
+		checkSampler(2, cache.get(2));
+		assertEquals(2, cache.size());
+		assertNull(cache.getIfPresent(2));
+		assertEquals(1, cache.stats().evictionCount());
+
+		// weight 5000, evicts the lowest weight entry (0, which is the largest sampler but has few forthcoming events)
+		checkSampler(4, cache.get(4));
+		assertNull(cache.getIfPresent(0));
+		assertNotNull(cache.getIfPresent(1));
+		assertNotNull(cache.getIfPresent(4));
+
+		// no forthcoming events, not cached despite the size
+		checkSampler(5, cache.get(5));
+		assertNull(cache.getIfPresent(5));
+		assertEquals(2, cache.size());
+
+		// forthcoming counts change as events are consumed
+		numForthcoming.put(1, 0);
+		checkSampler(3, cache.get(3)); // weight 5
+		assertNull(cache.getIfPresent(1));
+		assertNotNull(cache.getIfPresent(3));
+		assertNotNull(cache.getIfPresent(4));
+	}
+
+	@Test
+	public void testSingleLoadPerKey() throws Exception {
+		int numThreads = 8;
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicInteger loads = new AtomicInteger();
+		CacheLoader<Integer, IntegerPDF_FunctionSampler> loader = new CacheLoader<Integer, IntegerPDF_FunctionSampler>() {
+
+			@Override
+			public IntegerPDF_FunctionSampler load(Integer key) throws Exception {
+				loads.incrementAndGet();
+				// slow load, so that the other threads are all waiting on it
+				Thread.sleep(100);
+				double[] values = new double[10];
+				values[0] = key;
+				return new IntegerPDF_FunctionSampler(values);
+			}
+		};
+		CubeSamplerCache cache = new CubeSamplerCache(10, loader, new HashMap<>(), false);
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		try {
+			List<Future<IntegerPDF_FunctionSampler>> futures = new ArrayList<>();
+			for (int i=0; i<numThreads; i++)
+				futures.add(exec.submit(() -> {
+					start.await();
+					return cache.get(7);
+				}));
+			start.countDown();
+			IntegerPDF_FunctionSampler first = futures.get(0).get();
+			for (Future<IntegerPDF_FunctionSampler> future : futures)
+				assertSame(first, future.get());
+		} finally {
+			exec.shutdown();
+		}
+		assertEquals(1, loads.get());
+		assertEquals(1, cache.stats().missCount());
+		assertEquals(numThreads-1, cache.stats().hitCount());
+	}
+
+	@Test
+	public void testConcurrentEviction() throws Exception {
+		int numThreads = 8;
+		int numKeys = 200;
+		int capacity = 20;
+		int getsPerThread = 5000;
+		Random rand = new Random(numKeys);
+		Map<Integer, Integer> sizes = new HashMap<>();
+		Map<Integer, Integer> numForthcoming = new ConcurrentHashMap<>();
+		for (int i=0; i<numKeys; i++) {
+			sizes.put(i, 1 + rand.nextInt(100));
+			numForthcoming.put(i, rand.nextInt(5));
+		}
+		TestLoader loader = new TestLoader(sizes, 10);
+		CubeSamplerCache cache = new CubeSamplerCache(capacity, loader, numForthcoming, false);
+
+		ExecutorService exec = Executors.newFixedThreadPool(numThreads);
+		AtomicInteger maxSize = new AtomicInteger();
+		try {
+			List<Future<?>> futures = new ArrayList<>();
+			for (int t=0; t<numThreads; t++) {
+				long seed = rand.nextLong();
+				futures.add(exec.submit(() -> {
+					Random r = new Random(seed);
+					for (int i=0; i<getsPerThread; i++) {
+						// skewed, so that there are both hits and misses
+						int index = Math.min(numKeys-1, (int)Math.abs(r.nextGaussian()*numKeys/8));
+						checkSampler(index, cache.get(index));
+						if (r.nextInt(10) == 0)
+							// forthcoming counts change during the simulation
+							numForthcoming.put(index, r.nextInt(5));
+						maxSize.accumulateAndGet((int)cache.size(), Math::max);
+					}
+				}));
+			}
+			for (Future<?> future : futures)
+				future.get();
+		} finally {
+			exec.shutdown();
+			exec.awaitTermination(1, TimeUnit.MINUTES);
+		}
+
+		CacheStats stats = cache.stats();
+		long gets = (long)numThreads*getsPerThread;
+		assertEquals(gets, stats.hitCount() + stats.missCount());
+		assertEquals(loader.totalLoads.get(), stats.missCount());
+		assertEquals(stats.missCount(), stats.loadSuccessCount());
+		assertTrue("No hits", stats.hitCount() > 0);
+		assertTrue("No evictions", stats.evictionCount() > 0);
+		assertTrue("Size "+cache.size()+" is over capacity", cache.size() <= capacity);
+		// each thread can temporarily add one entry before evicting
+		assertTrue("Max size "+maxSize.get()+" is too large", maxSize.get() <= capacity + numThreads);
+		for (Map.Entry<Integer, IntegerPDF_FunctionSampler> entry : cache.asMap().entrySet())
+			checkSampler(entry.getKey(), entry.getValue());
+	}
+
+}
@@ -0,0 +1,281 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.commons.math3.random.RandomDataGenerator;
+import org.apache.commons.math3.random.RandomGenerator;
+import org.apache.commons.math3.random.Well19937c;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.geo.Location;
+import org.opensha.sha.faultSurface.PointSurface;
+
+import com.google.common.io.Files;
+
+/**
+ * Tests for saving and restoring ETAS random number generator state ({@link ETAS_Utils#getRandomState()}), and for
+ * {@link ETAS_SimulationCheckpoint} write/load round trips
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_SimulationCheckpointTest {
+
+	private static final long SEED = 123456789l;
+
+	private static File tempDir;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		tempDir = Files.createTempDir();
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		for (File file : tempDir.listFiles())
+			file.delete();
+		tempDir.delete();
+	}
+
+	/**
+	 * Draws a mix of values, with an odd number of gaussians so that a cached gaussian is left over
+	 */
+	private static double[] draw(ETAS_Utils etas_utils, int num) {
+		RandomGenerator gen = etas_utils.randomDataGen.getRandomGenerator();
+		double[] ret = new double[num];
+		for (int i=0; i<num; i++) {
+			switch (i % 5) {
+			case 0:
+				ret[i] = gen.nextDouble();
+				break;
+			case 1:
+			case 2:
+			case 3:
+				ret[i] = gen.nextGaussian();
+				break;
+			default:
+				ret[i] = etas_utils.getPoissonRandomNumber(2.5 + i % 50);
+				break;
+			}
+		}
+		return ret;
+	}
+
+	@Test
+	public void testMatchesWell19937c() {
+		ETAS_Utils etas_utils = new ETAS_Utils(SEED);
+		RandomGenerator gen = etas_utils.randomDataGen.getRandomGenerator();
+		// this is what RandomDataGenerator uses by default
+		RandomDataGenerator ref = new RandomDataGenerator(new Well19937c());
+		ref.reSeed(SEED);
+		RandomGenerator refGen = ref.getRandomGenerator();
+
+		for (int i=0; i<10000; i++) {
+			assertEquals(refGen.nextDouble(), gen.nextDouble(), 0d);
+			assertEquals(refGen.nextGaussian(), gen.nextGaussian(), 0d);
+			if (i % 3 == 0)
+				// leaves a cached gaussian for the next double
+				assertEquals(refGen.nextGaussian(), gen.nextGaussian(), 0d);
+			assertEquals(refGen.nextInt(1000), gen.nextInt(1000));
+			assertEquals(ref.nextUniform(0d, 1d, true), etas_utils.getRandomDouble(), 0d);
+			assertEquals(ref.nextPoisson(i % 100 + 0.5), etas_utils.getPoissonRandomNumber(i % 100 + 0.5));
+			assertEquals(ref.nextGaussian(1d, 0.5), gen.nextGaussian()*0.5 + 1d, 0d);
+		}
+
+		// reseeding clears the cached gaussian in both
+		refGen.nextGaussian();
+		gen.nextGaussian();
+		ref.reSeed(SEED+1);
+		etas_utils.randomDataGen.reSeed(SEED+1);
+		for (int i=0; i<100; i++)
+			assertEquals(refGen.nextGaussian(), gen.nextGaussian(), 0d);
+	}
+
+	@Test
+	public void testSaveRestore() throws IOException {
+		ETAS_Utils etas_utils = new ETAS_Utils(SEED);
+		draw(etas_utils, 1003);
+		byte[] state = etas_utils.getRandomState();
+		double[] expected = draw(etas_utils, 5000);
+
+		// restore into a generator with a different seed and history
+		ETAS_Utils restored = new ETAS_Utils(SEED+1);
+		draw(restored, 17);
+		restored.setRandomState(state);
+		assertArrayEquals(expected, draw(restored, 5000), 0d);
+		// and in the original
+		etas_utils.setRandomState(state);
+		assertArrayEquals(expected, draw(etas_utils, 5000), 0d);
+		// state is unchanged by restoring it
+		restored.setRandomState(state);
+		assertArrayEquals(state, restored.getRandomState());
+	}
+
+	@Test
+	public void testBadState() throws IOException {
+		ETAS_Utils etas_utils = new ETAS_Utils(SEED);
+		byte[] state = etas_utils.getRandomState();
+		double[] expected = draw(etas_utils, 100);
+		etas_utils.setRandomState(state);
+
+		try {
+			etas_utils.setRandomState(Arrays.copyOf(state, state.length-1));
+			fail("Truncated state should fail");
+		} catch (IOException e) {}
+		try {
+			etas_utils.setRandomState(Arrays.copyOf(state, state.length+1));
+			fail("State with trailing bytes should fail");
+		} catch (IOException e) {}
+		byte[] badVersion = state.clone();
+		badVersion[3]++;
+		try {
+			etas_utils.setRandomState(badVersion);
+			fail("Bad state version should fail");
+		} catch (IOException e) {}
+		// failed restores don't modify the generator
+		assertArrayEquals(expected, draw(etas_utils, 100), 0d);
+	}
+
+	@Test
+	public void testCheckpointRoundTrip() throws IOException {
+		ETAS_Utils etas_utils = new ETAS_Utils(SEED);
+		draw(etas_utils, 101);
+
+		ETAS_EqkRupture input = new ETAS_EqkRupture();
+		input.setID(0);
+		input.setMag(7d);
+		input.setOriginTime(1000l);
+		List<ETAS_EqkRupture> inputs = new ArrayList<>();
+		inputs.add(input);
+
+		// simulated ancestors, already sampled
+		ETAS_EqkRupture child = new ETAS_EqkRupture(input, 1, 2000l);
+		child.setGeneration(1);
+		child.setMag(5.5);
+		Location childHypo = new Location(34.123456789, -118.987654321, 7.654321);
+		child.setHypocenterLocation(childHypo);
+		child.setPointSurface(childHypo);
+		child.setNthERF_Index(12);
+		child.setGridNodeIndex(34);
+		child.setFSSIndex(-1);
+		child.setCubeIndex(56);
+		child.setParentTriggerLoc(new Location(34.1, -118.9, 6d));
+		ETAS_EqkRupture grandchild = new ETAS_EqkRupture(child, 2, 3000l);
+		grandchild.setGeneration(2);
+		grandchild.setMag(6.2);
+		Location grandchildHypo = new Location(34.2, -118.8, 9.5);
+		grandchild.setHypocenterLocation(grandchildHypo);
+		grandchild.setNthERF_Index(78);
+		grandchild.setFSSIndex(90);
+		grandchild.setGridNodeIndex(-1);
+		grandchild.setCubeIndex(91);
+
+		// pending, not yet sampled
+		ETAS_EqkRupture pendingTriggered = new ETAS_EqkRupture(grandchild, 5, 4000l);
+		pendingTriggered.setGeneration(3);
+		pendingTriggered.setCubeIndex(123);
+		Location triggerLoc = new Location(34.25, -118.75, 10.5);
+		pendingTriggered.setParentTriggerLoc(triggerLoc);
+		ETAS_EqkRupture pendingSpontaneous = new ETAS_EqkRupture();
+		pendingSpontaneous.setID(3);
+		pendingSpontaneous.setOriginTime(3500l);
+		pendingSpontaneous.setCubeIndex(-1);
+		ETAS_EqkRupture pendingFromInput = new ETAS_EqkRupture(input, 4, 3600l);
+		pendingFromInput.setGeneration(1);
+		pendingFromInput.setCubeIndex(-1);
+		List<ETAS_EqkRupture> pending = new ArrayList<>();
+		pending.add(pendingTriggered);
+		pending.add(pendingSpontaneous);
+		pending.add(pendingFromInput);
+
+		File file = new File(tempDir, ETAS_SimulationCheckpoint.FILE_NAME);
+		ETAS_SimulationCheckpoint.write(file, etas_utils, 4567l, 3, 6, 3000l, inputs, pending);
+		double[] expected = draw(etas_utils, 1000);
+
+		ETAS_SimulationCheckpoint checkpoint = ETAS_SimulationCheckpoint.load(file);
+		assertEquals(SEED, checkpoint.getRandomSeed());
+		assertEquals(4567l, checkpoint.getEventsFileLength());
+		assertEquals(3, checkpoint.getNumSimulatedEvents());
+		assertEquals(6, checkpoint.getNextEventID());
+		assertEquals(3000l, checkpoint.getCurrentTime());
+		assertEquals(3, checkpoint.getNumPending());
+
+		// random sequence continues from the checkpoint
+		ETAS_Utils resumed = new ETAS_Utils(checkpoint.getRandomSeed());
+		resumed.setRandomState(checkpoint.getRandomState());
+		assertArrayEquals(expected, draw(resumed, 1000), 0d);
+
+		List<ETAS_EqkRupture> built = checkpoint.buildPendingRuptures(inputs);
+		assertEquals(3, built.size());
+		// sorted by ID
+		ETAS_EqkRupture builtSpontaneous = built.get(0);
+		ETAS_EqkRupture builtFromInput = built.get(1);
+		ETAS_EqkRupture builtTriggered = built.get(2);
+
+		assertEquals(3, builtSpontaneous.getID());
+		assertEquals(-1, builtSpontaneous.getParentID());
+		assertNull(builtSpontaneous.getParentRup());
+		assertEquals(3500l, builtSpontaneous.getOriginTime());
+		assertNull(builtSpontaneous.getHypocenterLocation());
+
+		assertEquals(4, builtFromInput.getID());
+		assertSame(input, builtFromInput.getParentRup());
+		assertEquals(1, builtFromInput.getGeneration());
+		assertEquals(3600l, builtFromInput.getOriginTime());
+
+		assertEquals(5, builtTriggered.getID());
+		assertEquals(3, builtTriggered.getGeneration());
+		assertEquals(4000l, builtTriggered.getOriginTime());
+		assertEquals(123, builtTriggered.getCubeIndex());
+		assertEquals(triggerLoc, builtTriggered.getParentTriggerLoc());
+		assertNull(builtTriggered.getHypocenterLocation());
+
+		ETAS_EqkRupture builtGrandchild = builtTriggered.getParentRup();
+		assertEquals(2, builtGrandchild.getID());
+		assertEquals(2, builtGrandchild.getGeneration());
+		assertEquals(3000l, builtGrandchild.getOriginTime());
+		assertEquals(6.2, builtGrandchild.getMag(), 0d);
+		assertEquals(grandchildHypo, builtGrandchild.getHypocenterLocation());
+		assertEquals(78, builtGrandchild.getNthERF_Index());
+		assertEquals(90, builtGrandchild.getFSSIndex());
+		assertEquals(-1, builtGrandchild.getGridNodeIndex());
+		assertEquals(91, builtGrandchild.getCubeIndex());
+		assertFalse(builtGrandchild.getRuptureSurface() instanceof PointSurface);
+
+		ETAS_EqkRupture builtChild = builtGrandchild.getParentRup();
+		assertEquals(1, builtChild.getID());
+		assertEquals(5.5, builtChild.getMag(), 0d);
+		// full precision
+		assertEquals(childHypo.getLatitude(), builtChild.getHypocenterLocation().getLatitude(), 0d);
+		assertEquals(childHypo.getLongitude(), builtChild.getHypocenterLocation().getLongitude(), 0d);
+		assertEquals(childHypo.getDepth(), builtChild.getHypocenterLocation().getDepth(), 0d);
+		assertTrue(builtChild.getRuptureSurface() instanceof PointSurface);
+		assertEquals(12, builtChild.getNthERF_Index());
+		assertEquals(34, builtChild.getGridNodeIndex());
+		assertEquals(56, builtChild.getCubeIndex());
+		assertSame(input, builtChild.getParentRup());
+		assertSame(input, builtChild.getOldestAncestor());
+
+		// no temporary files left behind
+		assertEquals(1, tempDir.listFiles().length);
+	}
+
+	@Test(expected = IOException.class)
+	public void testLoadNotCheckpoint() throws IOException {
+		File file = new File(tempDir, "notCheckpoint.bin");
+		Files.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8}, file);
+		try {
+			ETAS_SimulationCheckpoint.load(file);
+		} finally {
+			file.delete();
+		}
+	}
+
+}
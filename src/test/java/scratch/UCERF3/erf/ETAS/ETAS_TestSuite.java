@@ -0,0 +1,21 @@
+package scratch.UCERF3.erf.ETAS;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Suite;
+
+import scratch.UCERF3.erf.ETAS.launcher.ETAS_OutputPipelineTest;
+
+@RunWith(Suite.class)
+@Suite.SuiteClasses({
+	CubeSamplerCacheTest.class,
+	MappedCubeAssociationCacheTest.class,
+	ETAS_SimulationCheckpointTest.class,
+	ETAS_OutputPipelineTest.class
+})
+
+public class ETAS_TestSuite {
+
+	public static void main(String args[]) {
+		org.junit.runner.JUnitCore.runClasses(ETAS_TestSuite.class);
+	}
+}
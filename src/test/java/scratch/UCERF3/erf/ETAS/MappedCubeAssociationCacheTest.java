@@ -0,0 +1,184 @@
+package scratch.UCERF3.erf.ETAS;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.google.common.io.Files;
+
+import scratch.UCERF3.utils.MatrixIO;
+
+/**
+ * Round trip tests for {@link MappedCubeAssociationCache}, checking that the mapped cache matches the legacy
+ * {@link MatrixIO} cache files that it was converted from
+ *
+ * @author kevin
+ *
+ */
+public class MappedCubeAssociationCacheTest {
+
+	private static final int NUM_CUBES_PER_DEPTH = 50;
+	private static final int NUM_CUBES = NUM_CUBES_PER_DEPTH*7;
+	private static final int NUM_SECTS = 40;
+
+	private static File tempDir;
+	private static File sectDistForCubeCacheFile;
+	private static File sectInCubeCacheFile;
+	private static File cubeInsidePolyCacheFile;
+	private static File csrFile;
+
+	@BeforeClass
+	public static void setUpBeforeClass() throws IOException {
+		tempDir = Files.createTempDir();
+		Random rand = new Random(NUM_CUBES);
+		List<int[]> sectInCubeList = new ArrayList<>();
+		List<float[]> sectDistForCubeList = new ArrayList<>();
+		for (int c=0; c<NUM_CUBES; c++) {
+			// many cubes have no associated sections
+			int num = rand.nextInt(3) == 0 ? 1 + rand.nextInt(5) : 0;
+			int[] sects = new int[num];
+			float[] dists = new float[num];
+			for (int i=0; i<num; i++) {
+				sects[i] = rand.nextInt(NUM_SECTS);
+				dists[i] = 20f*rand.nextFloat();
+			}
+			sectInCubeList.add(sects);
+			sectDistForCubeList.add(dists);
+		}
+		// make sure that the largest section is used
+		sectInCubeList.set(NUM_CUBES-1, new int[] {NUM_SECTS-1});
+		sectDistForCubeList.set(NUM_CUBES-1, new float[] {1f});
+		int[] isCubeInsideFaultPolygon = new int[NUM_CUBES_PER_DEPTH];
+		for (int i=0; i<NUM_CUBES_PER_DEPTH; i++)
+			isCubeInsideFaultPolygon[i] = rand.nextInt(2);
+
+		sectDistForCubeCacheFile = new File(tempDir, "sectDistForCubeCache");
+		sectInCubeCacheFile = new File(tempDir, "sectInCubeCache");
+		cubeInsidePolyCacheFile = new File(tempDir, "cubeInsidePolyCache");
+		MatrixIO.floatArraysListToFile(sectDistForCubeList, sectDistForCubeCacheFile);
+		MatrixIO.intArraysListToFile(sectInCubeList, sectInCubeCacheFile);
+		MatrixIO.intArrayToFile(isCubeInsideFaultPolygon, cubeInsidePolyCacheFile);
+
+		csrFile = new File(tempDir, MappedCubeAssociationCache.DEFAULT_FILE_NAME);
+		MappedCubeAssociationCache.convert(sectDistForCubeCacheFile, sectInCubeCacheFile, cubeInsidePolyCacheFile, csrFile);
+	}
+
+	@AfterClass
+	public static void tearDownAfterClass() {
+		for (File file : tempDir.listFiles())
+			file.delete();
+		tempDir.delete();
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		checkAgainstLegacy(MappedCubeAssociationCache.load(csrFile));
+	}
+
+	@Test
+	public void testChunkedRoundTrip() throws IOException {
+		// chunks much smaller than the value arrays, so that cubes span chunk boundaries
+		for (int chunkBits : new int[] {1, 3, 5})
+			checkAgainstLegacy(MappedCubeAssociationCache.load(csrFile, chunkBits));
+	}
+
+	private static void checkAgainstLegacy(MappedCubeAssociationCache cache) throws IOException {
+		List<int[]> sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeCacheFile);
+		List<float[]> sectDistForCubeList = MatrixIO.floatArraysListFromFile(sectDistForCubeCacheFile);
+		int[] isCubeInsideFaultPolygon = MatrixIO.intArrayFromFile(cubeInsidePolyCacheFile);
+
+		assertEquals(NUM_CUBES, cache.getNumCubes());
+		assertEquals(NUM_SECTS, cache.getNumSections());
+		assertArrayEquals(isCubeInsideFaultPolygon, cache.getIsCubeInsideFaultPolygon());
+
+		List<int[]> mappedSectInCubeList = cache.getSectInCubeList();
+		List<float[]> mappedSectDistForCubeList = cache.getSectDistForCubeList();
+		assertSame(cache, MappedCubeAssociationCache.getBackingCache(mappedSectInCubeList, mappedSectDistForCubeList));
+		assertNull(MappedCubeAssociationCache.getBackingCache(sectInCubeList, sectDistForCubeList));
+		assertEquals(sectInCubeList.size(), mappedSectInCubeList.size());
+		assertEquals(sectDistForCubeList.size(), mappedSectDistForCubeList.size());
+
+		int numValues = 0;
+		for (int c=0; c<NUM_CUBES; c++) {
+			int[] sects = sectInCubeList.get(c);
+			float[] dists = sectDistForCubeList.get(c);
+			assertArrayEquals(sects, mappedSectInCubeList.get(c));
+			assertArrayEquals(dists, mappedSectDistForCubeList.get(c), 0f);
+			assertEquals(sects.length, cache.getNumSectsInCube(c));
+			int offset = cache.getCubeOffset(c);
+			assertEquals(numValues, offset);
+			for (int i=0; i<sects.length; i++) {
+				assertEquals(sects[i], cache.getSect(offset+i));
+				assertEquals(dists[i], cache.getSectDist(offset+i), 0f);
+			}
+			numValues += sects.length;
+		}
+		assertEquals(numValues, cache.getNumValues());
+	}
+
+	@Test
+	public void testValidate() throws IOException {
+		MappedCubeAssociationCache cache = MappedCubeAssociationCache.load(csrFile);
+		cache.validate(NUM_CUBES, NUM_CUBES_PER_DEPTH, NUM_SECTS);
+		cache.validate(NUM_SECTS+10);
+		cache.validateAgainstLegacy(sectDistForCubeCacheFile, sectInCubeCacheFile, cubeInsidePolyCacheFile);
+		// missing legacy files are skipped
+		cache.validateAgainstLegacy(null, new File(tempDir, "missing"), null);
+		try {
+			cache.validate(NUM_SECTS-1);
+			fail("Should have failed with too few sections");
+		} catch (IllegalStateException e) {}
+		try {
+			cache.validate(NUM_CUBES+1, NUM_CUBES_PER_DEPTH, NUM_SECTS);
+			fail("Should have failed with a different cube count");
+		} catch (IllegalStateException e) {}
+		try {
+			cache.validate(NUM_CUBES, NUM_CUBES_PER_DEPTH-1, NUM_SECTS);
+			fail("Should have failed with a different cubes per depth count");
+		} catch (IllegalStateException e) {}
+	}
+
+	@Test
+	public void testValidateAgainstChangedLegacy() throws IOException {
+		MappedCubeAssociationCache cache = MappedCubeAssociationCache.load(csrFile);
+
+		// legacy file with one fewer cube, but older than the CSR file
+		List<int[]> sectInCubeList = MatrixIO.intArraysListFromFile(sectInCubeCacheFile);
+		File changedFile = new File(tempDir, "sectInCubeCacheChanged");
+		MatrixIO.intArraysListToFile(sectInCubeList.subList(0, NUM_CUBES-1), changedFile);
+		changedFile.setLastModified(csrFile.lastModified()-10000l);
+		try {
+			cache.validateAgainstLegacy(null, changedFile, null);
+			fail("Should have failed with a different legacy file");
+		} catch (IllegalStateException e) {}
+
+		// identical legacy file, but newer than the CSR file
+		File newerFile = new File(tempDir, "sectInCubeCacheNewer");
+		MatrixIO.intArraysListToFile(sectInCubeList, newerFile);
+		newerFile.setLastModified(csrFile.lastModified()+10000l);
+		try {
+			cache.validateAgainstLegacy(null, newerFile, null);
+			fail("Should have failed with a newer legacy file");
+		} catch (IllegalStateException e) {}
+		newerFile.setLastModified(csrFile.lastModified());
+		cache.validateAgainstLegacy(null, newerFile, null);
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void testWriteInconsistent() throws IOException {
+		List<int[]> sectInCubeList = new ArrayList<>();
+		List<float[]> sectDistForCubeList = new ArrayList<>();
+		sectInCubeList.add(new int[] {0, 1});
+		sectDistForCubeList.add(new float[] {0f});
+		MappedCubeAssociationCache.write(sectInCubeList, sectDistForCubeList, new int[1], new File(tempDir, "bad"));
+	}
+
+}
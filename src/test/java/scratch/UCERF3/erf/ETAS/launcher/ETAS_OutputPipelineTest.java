@@ -0,0 +1,138 @@
+package scratch.UCERF3.erf.ETAS.launcher;
+
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import org.junit.Test;
+
+/**
+ * Tests for ordering, failure propagation, and closing of {@link ETAS_OutputPipeline}
+ *
+ * @author kevin
+ *
+ */
+public class ETAS_OutputPipelineTest {
+
+	private static ETAS_OutputPipeline.OutputTask recordTask(List<Integer> written, int index) {
+		return () -> written.add(index);
+	}
+
+	@Test
+	public void testOrdering() throws IOException {
+		List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+		ETAS_OutputPipeline pipeline = new ETAS_OutputPipeline(null, 4);
+		int num = 500;
+		for (int i=0; i<num; i++)
+			pipeline.submit(i, null, recordTask(written, i));
+		pipeline.close();
+		assertEquals(num, pipeline.getNumWritten());
+		assertEquals(num, written.size());
+		for (int i=0; i<num; i++)
+			assertEquals(i, written.get(i).intValue());
+	}
+
+	@Test
+	public void testClose() throws Exception {
+		// nothing submitted
+		ETAS_OutputPipeline pipeline = new ETAS_OutputPipeline(null, 2);
+		pipeline.close();
+		assertEquals(0, pipeline.getNumWritten());
+		// closing twice is fine
+		pipeline.close();
+		try {
+			pipeline.submit(0, null, null);
+			fail("Submit after close should fail");
+		} catch (IllegalStateException e) {}
+
+		// close waits for slow output to finish
+		List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+		pipeline = new ETAS_OutputPipeline(null, 2);
+		for (int i=0; i<5; i++) {
+			int index = i;
+			pipeline.submit(i, null, () -> {
+				try {
+					Thread.sleep(20);
+				} catch (InterruptedException e) {
+					throw new IOException(e);
+				}
+				written.add(index);
+			});
+		}
+		pipeline.close();
+		assertEquals(5, written.size());
+		assertEquals(5, pipeline.getNumWritten());
+	}
+
+	@Test
+	public void testFailurePropagation() throws Exception {
+		List<Integer> written = Collections.synchronizedList(new ArrayList<>());
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+		IOException error = new IOException("test failure");
+		ETAS_OutputPipeline pipeline = new ETAS_OutputPipeline(null, 2);
+		pipeline.submit(0, null, recordTask(written, 0));
+		pipeline.submit(1, null, () -> {
+			started.countDown();
+			try {
+				release.await();
+			} catch (InterruptedException e) {}
+			throw error;
+		});
+		assertTrue(started.await(10, TimeUnit.SECONDS));
+		// these fill up the queue while the writer is stuck on 1
+		pipeline.submit(2, null, recordTask(written, 2));
+		pipeline.submit(3, null, recordTask(written, 3));
+
+		ExecutorService exec = Executors.newSingleThreadExecutor();
+		try {
+			// this one blocks on the full queue
+			Future<?> blocked = exec.submit(() -> pipeline.submit(4, null, recordTask(written, 4)));
+			try {
+				blocked.get(200, TimeUnit.MILLISECONDS);
+				fail("Submit should block while the queue is full");
+			} catch (TimeoutException e) {}
+
+			release.countDown();
+			// blocked submit fails rather than waiting on a writer which will never take from the queue
+			try {
+				blocked.get(10, TimeUnit.SECONDS);
+				fail("Blocked submit should fail after the writer failed");
+			} catch (ExecutionException e) {
+				assertTrue(e.getCause() instanceof IllegalStateException);
+				assertSame(error, e.getCause().getCause());
+			}
+		} finally {
+			exec.shutdownNow();
+		}
+
+		// subsequent submits fail immediately
+		try {
+			pipeline.submit(5, null, recordTask(written, 5));
+			fail("Submit should fail after the writer failed");
+		} catch (IllegalStateException e) {
+			assertSame(error, e.getCause());
+		}
+		try {
+			pipeline.close();
+			fail("Close should rethrow the writer failure");
+		} catch (IllegalStateException e) {
+			assertSame(error, e.getCause());
+		}
+
+		// nothing after the failure was written
+		assertEquals(1, pipeline.getNumWritten());
+		assertEquals(List.of(0), written);
+	}
+
+}
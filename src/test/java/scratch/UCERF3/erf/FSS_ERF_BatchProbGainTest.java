@@ -0,0 +1,232 @@
+package scratch.UCERF3.erf;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.param.ApplyGardnerKnopoffAftershockFilterParam;
+import org.opensha.sha.earthquake.param.HistoricOpenIntervalParam;
+import org.opensha.sha.earthquake.param.IncludeBackgroundOption;
+import org.opensha.sha.earthquake.param.IncludeBackgroundParam;
+import org.opensha.sha.earthquake.param.MagDependentAperiodicityOptions;
+import org.opensha.sha.earthquake.param.ProbabilityModelOptions;
+import org.opensha.sha.earthquake.param.ProbabilityModelParam;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Checks that batch UCERF3 probability gains from
+ * {@link ProbabilityModelsCalc#getU3_ProbGainsForRups(int[], double, boolean, boolean, boolean, long, double, int)}
+ * are identical to those from {@link ProbabilityModelsCalc#getU3_ProbGainForRup(int, double, boolean, boolean, boolean, long, double)},
+ * both directly and through {@link FaultSystemSolutionERF} source probabilities.
+ *
+ * @author kevin
+ *
+ */
+public class FSS_ERF_BatchProbGainTest {
+
+	private static final long START_TIME = 1325459622000l;
+	private static final double[] DURATIONS = { 1d, 30d };
+	private static final double[] HIST_OPEN_INTERVALS = { 0d, 150d };
+	private static final boolean[] TRUE_FALSE = { true, false };
+
+	private static FaultSystemSolution sol;
+	private static int[] nonZeroRups;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		sol = buildSolution();
+		double[] rates = sol.getRateForAllRups();
+		int numNonZero = 0;
+		for (double rate : rates)
+			if (rate > 0d)
+				numNonZero++;
+		nonZeroRups = new int[numNonZero];
+		for (int i=0, n=0; i<rates.length; i++)
+			if (rates[i] > 0d)
+				nonZeroRups[n++] = i;
+	}
+
+	private static FaultSystemSolution buildSolution() {
+		FaultSystemRupSet rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+		Random r = new Random(rupSet.getNumRuptures());
+		double[] rates = new double[rupSet.getNumRuptures()];
+		for (int i=0; i<rates.length; i++)
+			rates[i] = i % 20 == 0 ? 0d : Math.pow(10, r.nextDouble()*5 - 8);
+		// some sections with and without a date of last event, including some after the start time
+		for (FaultSection sect : rupSet.getFaultSectionDataList()) {
+			double rand = r.nextDouble();
+			if (rand < 0.5)
+				sect.setDateOfLastEvent(START_TIME - r.nextInt(250)*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+			else if (rand < 0.6)
+				sect.setDateOfLastEvent(START_TIME + r.nextInt(5)*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+			else
+				sect.setDateOfLastEvent(Long.MIN_VALUE);
+		}
+		return new FaultSystemSolution(rupSet, rates);
+	}
+
+	@Test
+	public void testCalcAllRups() {
+		doTestCalc(null);
+	}
+
+	@Test
+	public void testCalcSubset() {
+		// every third non-zero rate rupture, out of order
+		int[] indexes = new int[nonZeroRups.length/3];
+		for (int i=0; i<indexes.length; i++)
+			indexes[i] = nonZeroRups[nonZeroRups.length - 1 - 3*i];
+		doTestCalc(indexes);
+	}
+
+	private static void doTestCalc(int[] indexes) {
+		double[] rates = sol.getRateForAllRups();
+		for (MagDependentAperiodicityOptions aper : new MagDependentAperiodicityOptions[] {
+				MagDependentAperiodicityOptions.LOW_VALUES, MagDependentAperiodicityOptions.MID_VALUES }) {
+			ProbabilityModelsCalc singleCalc = new ProbabilityModelsCalc(sol, rates, aper);
+			ProbabilityModelsCalc batchCalc = new ProbabilityModelsCalc(sol, rates, aper);
+			for (boolean aveRI : TRUE_FALSE) {
+				for (boolean aveNTS : TRUE_FALSE) {
+					for (double histOpenInterval : HIST_OPEN_INTERVALS) {
+						for (double duration : DURATIONS) {
+							String message = aper.name()+", aveRI="+aveRI+", aveNTS="+aveNTS
+									+", histOpenInterval="+histOpenInterval+", duration="+duration;
+							int num = indexes == null ? rates.length : indexes.length;
+							double[] expected = new double[num];
+							for (int i=0; i<num; i++)
+								expected[i] = singleCalc.getU3_ProbGainForRup(indexes == null ? i : indexes[i],
+										histOpenInterval, false, aveRI, aveNTS, START_TIME, duration);
+							// serially, and with multiple threads (all ruptures span more than one block)
+							for (int threads : new int[] { 1, 4 }) {
+								double[] actual = batchCalc.getU3_ProbGainsForRups(indexes, histOpenInterval, false,
+										aveRI, aveNTS, START_TIME, duration, threads);
+								assertEquals(message, num, actual.length);
+								boolean anyNonUnit = false;
+								for (int i=0; i<num; i++) {
+									assertEquals(message+", threads="+threads+", index "+i, expected[i], actual[i], 0d);
+									anyNonUnit |= actual[i] != 1d;
+								}
+								assertTrue(message+": test isn't meaningful, all gains are 1", anyNonUnit);
+							}
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * ERF that computes gains one rupture at a time, as was done before batch calculations
+	 */
+	private static class PerRuptureERF extends FaultSystemSolutionERF {
+
+		public PerRuptureERF(FaultSystemSolution sol) {
+			super(sol);
+		}
+
+		@Override
+		protected double getFaultSysRupRateGain(int fltSystRupIndex) {
+			double aftRateCorr = applyAftershockFilter ? MO_RATE_REDUCTION_FOR_SUPRA_SEIS_RUPS : 1d;
+			long startTime = timeSpan.getStartTimeInMillis();
+			double duration = timeSpan.getDuration();
+			double histOpenInterval = (Double)getParameter(HistoricOpenIntervalParam.NAME).getValue();
+			if (probModel == ProbabilityModelOptions.U3_BPT)
+				return aftRateCorr*probModelsCalc.getU3_ProbGainForRup(fltSystRupIndex, histOpenInterval, false,
+						aveRecurIntervalsInU3_BPTcalc, aveNormTimeSinceLastInU3_BPTcalc, startTime, duration);
+			assertEquals(ProbabilityModelOptions.U3_PREF_BLEND, probModel);
+			double probGain = 0;
+			for (ProbabilityModelsCalc calc : prefBlendProbModelsCalc.keySet()) {
+				double weight = prefBlendProbModelsCalc.get(calc);
+				double subProbGain;
+				if (calc == null)
+					subProbGain = 1d;
+				else
+					subProbGain = calc.getU3_ProbGainForRup(fltSystRupIndex, histOpenInterval, false,
+							aveRecurIntervalsInU3_BPTcalc, aveNormTimeSinceLastInU3_BPTcalc, startTime, duration);
+				probGain += weight*subProbGain;
+			}
+			return aftRateCorr*probGain;
+		}
+
+	}
+
+	@Test
+	public void testERF() {
+		for (boolean inPlace : TRUE_FALSE) {
+			// new solution, as date of last event changes below are written to the sections
+			FaultSystemSolution sol = buildSolution();
+			// per-rupture reference, default (batch gains disabled), and batch gains with multiple threads
+			FaultSystemSolutionERF batchERF = new FaultSystemSolutionERF(sol);
+			batchERF.setProbGainCalcThreads(4);
+			FaultSystemSolutionERF[] erfs = { new PerRuptureERF(sol), new FaultSystemSolutionERF(sol), batchERF };
+			assertEquals(0, erfs[1].getProbGainCalcThreads());
+			for (FaultSystemSolutionERF erf : erfs) {
+				erf.setUpdateSourcesInPlace(inPlace);
+				erf.setParameter(IncludeBackgroundParam.NAME, IncludeBackgroundOption.EXCLUDE);
+			}
+			for (ProbabilityModelOptions probModel : new ProbabilityModelOptions[] {
+					ProbabilityModelOptions.U3_BPT, ProbabilityModelOptions.U3_PREF_BLEND }) {
+				String message = probModel.name()+", inPlace="+inPlace;
+				for (FaultSystemSolutionERF erf : erfs) {
+					erf.setParameter(ProbabilityModelParam.NAME, probModel);
+					erf.getTimeSpan().setStartTime(2014);
+					erf.getTimeSpan().setDuration(30d);
+				}
+				update(erfs, message);
+				for (FaultSystemSolutionERF erf : erfs) {
+					erf.setParameter(HistoricOpenIntervalParam.NAME, 100d);
+					erf.setParameter(ApplyGardnerKnopoffAftershockFilterParam.NAME, true);
+				}
+				update(erfs, message+", histOpenInterval=100, aftershock filter");
+				// only ruptures on these sections are updated
+				FaultSystemRupSet rupSet = sol.getRupSet();
+				for (int sectIndex=0; sectIndex<rupSet.getNumSections(); sectIndex+=7)
+					for (FaultSystemSolutionERF erf : erfs)
+						erf.setFltSectOccurranceTime(sectIndex,
+								START_TIME - (sectIndex+20)*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+				update(erfs, message+", new section dates");
+				for (FaultSystemSolutionERF erf : erfs) {
+					erf.setParameter(HistoricOpenIntervalParam.NAME, 0d);
+					erf.setParameter(ApplyGardnerKnopoffAftershockFilterParam.NAME, false);
+				}
+				update(erfs, message+", reset");
+			}
+		}
+	}
+
+	private static void update(FaultSystemSolutionERF[] erfs, String message) {
+		for (FaultSystemSolutionERF erf : erfs)
+			erf.updateForecast();
+		FaultSystemSolutionERF expected = erfs[0];
+		for (int i=1; i<erfs.length; i++)
+			assertSameProbs(expected, erfs[i], message+", threads="+erfs[i].getProbGainCalcThreads());
+	}
+
+	private static void assertSameProbs(FaultSystemSolutionERF expected, FaultSystemSolutionERF actual, String message) {
+		assertEquals(message, expected.getNumFaultSystemSources(), actual.getNumFaultSystemSources());
+		boolean anyNonPoisson = false;
+		for (int s=0; s<expected.getNumFaultSystemSources(); s++) {
+			ProbEqkSource expectedSource = expected.getSource(s);
+			ProbEqkSource actualSource = actual.getSource(s);
+			assertEquals(message, expectedSource.getNumRuptures(), actualSource.getNumRuptures());
+			for (int r=0; r<expectedSource.getNumRuptures(); r++) {
+				ProbEqkRupture expectedRup = expectedSource.getRupture(r);
+				double prob = expectedRup.getProbability();
+				// not exact, as preferred blend calculators are summed in hash order, which differs between instances
+				assertEquals(message+", source "+s+", rupture "+r, prob, actualSource.getRupture(r).getProbability(),
+						1e-14*prob);
+				anyNonPoisson |= !expectedSource.isSourcePoissonian() && prob > 0d;
+			}
+		}
+		assertTrue(message+": no non-zero time-dependent probabilities", anyNonPoisson);
+	}
+
+}
@@ -0,0 +1,297 @@
+package scratch.UCERF3.erf;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+import org.opensha.commons.data.function.DiscretizedFunc;
+import org.opensha.commons.data.function.LightFixedXFunc;
+import org.opensha.sha.earthquake.ProbEqkRupture;
+import org.opensha.sha.earthquake.ProbEqkSource;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemRupSet;
+import org.opensha.sha.earthquake.faultSysSolution.FaultSystemSolution;
+import org.opensha.sha.earthquake.faultSysSolution.modules.RupMFDsModule;
+import org.opensha.sha.earthquake.param.AleatoryMagAreaStdDevParam;
+import org.opensha.sha.earthquake.param.ApplyGardnerKnopoffAftershockFilterParam;
+import org.opensha.sha.earthquake.param.HistoricOpenIntervalParam;
+import org.opensha.sha.earthquake.param.IncludeBackgroundOption;
+import org.opensha.sha.earthquake.param.IncludeBackgroundParam;
+import org.opensha.sha.earthquake.param.MagDependentAperiodicityOptions;
+import org.opensha.sha.earthquake.param.MagDependentAperiodicityParam;
+import org.opensha.sha.earthquake.param.ProbabilityModelOptions;
+import org.opensha.sha.earthquake.param.ProbabilityModelParam;
+import org.opensha.sha.faultSurface.FaultSection;
+
+import scratch.UCERF3.erf.utils.ProbabilityModelsCalc;
+
+/**
+ * Compares fault system source probabilities in a {@link FaultSystemSolutionERF} that updates sources in place
+ * (see {@link FaultSystemSolutionERF#setUpdateSourcesInPlace(boolean)}) against one that rebuilds all sources, across
+ * changes to the duration, start year, probability model, and rupture MFDs.
+ *
+ * @author kevin
+ *
+ */
+public class FSS_ERF_InPlaceUpdateTest {
+
+	private static final long START_TIME = 1325459622000l;
+
+	private static FaultSystemSolution sol;
+	private static FaultSystemSolution solWithMFDs;
+
+	@BeforeClass
+	public static void setUpBeforeClass() {
+		FaultSystemRupSet rupSet = FSS_ERF_ParamTest.buildSmallTestRupSet();
+		Random r = new Random(rupSet.getNumRuptures());
+		double[] rates = new double[rupSet.getNumRuptures()];
+		for (int i=0; i<rates.length; i++)
+			rates[i] = i % 20 == 0 ? 0d : Math.pow(10, r.nextDouble()*5 - 8);
+		// some sections with and without a date of last event
+		for (FaultSection sect : rupSet.getFaultSectionDataList()) {
+			if (r.nextDouble() < 0.5)
+				sect.setDateOfLastEvent(START_TIME - r.nextInt(250)*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+			else
+				sect.setDateOfLastEvent(Long.MIN_VALUE);
+		}
+		sol = new FaultSystemSolution(rupSet, rates);
+
+		solWithMFDs = new FaultSystemSolution(rupSet, rates);
+		DiscretizedFunc[] rupMFDs = new DiscretizedFunc[rates.length];
+		for (int i=0; i<rates.length; i++) {
+			double mag = rupSet.getMagForRup(i);
+			if (i % 3 == 0)
+				// single magnitude
+				continue;
+			double[] mags = { mag-0.1, mag, mag+0.1 };
+			double[] mfdRates = { 0.25*rates[i], 0.5*rates[i], 0.25*rates[i] };
+			if (i % 7 == 0)
+				// zero bin
+				mfdRates[2] = 0d;
+			rupMFDs[i] = new LightFixedXFunc(mags, mfdRates);
+		}
+		solWithMFDs.addModule(new RupMFDsModule(solWithMFDs, rupMFDs));
+	}
+
+	/**
+	 * ERF that can remove the lowest magnitude bin from each rupture MFD, changing the non-zero bins
+	 */
+	private static class TestERF extends FaultSystemSolutionERF {
+
+		private boolean dropFirstMFDBin = false;
+
+		public TestERF(FaultSystemSolution sol, boolean inPlace) {
+			super(sol);
+			setUpdateSourcesInPlace(inPlace);
+			setParameter(IncludeBackgroundParam.NAME, IncludeBackgroundOption.EXCLUDE);
+		}
+
+		@Override
+		protected DiscretizedFunc getFaultSysRupMFD(int fltSystRupIndex) {
+			DiscretizedFunc mfd = super.getFaultSysRupMFD(fltSystRupIndex);
+			if (dropFirstMFDBin && mfd != null) {
+				mfd = mfd.deepClone();
+				mfd.set(0, 0d);
+			}
+			return mfd;
+		}
+
+	}
+
+	private static TestERF[] buildERFs(FaultSystemSolution sol) {
+		TestERF inPlace = new TestERF(sol, true);
+		TestERF rebuild = new TestERF(sol, false);
+		assertFalse("In place updates should be disabled by default", new FaultSystemSolutionERF().isUpdateSourcesInPlace());
+		assertFalse(rebuild.isUpdateSourcesInPlace());
+		assertTrue(inPlace.isUpdateSourcesInPlace());
+		return new TestERF[] { inPlace, rebuild };
+	}
+
+	private static void update(TestERF[] erfs, String message) {
+		for (TestERF erf : erfs)
+			erf.updateForecast();
+		assertEquivalent(message, erfs[1], erfs[0]);
+	}
+
+	private static void setParameter(TestERF[] erfs, String name, Object value) {
+		for (TestERF erf : erfs)
+			erf.setParameter(name, value);
+	}
+
+	private static void setDuration(TestERF[] erfs, double duration) {
+		for (TestERF erf : erfs)
+			erf.getTimeSpan().setDuration(duration);
+	}
+
+	private static void setStartYear(TestERF[] erfs, int year) {
+		for (TestERF erf : erfs)
+			erf.getTimeSpan().setStartTime(year);
+	}
+
+	private static List<ProbEqkSource> getFaultSources(TestERF erf) {
+		List<ProbEqkSource> sources = new ArrayList<>();
+		for (int s=0; s<erf.getNumFaultSystemSources(); s++)
+			sources.add(erf.getSource(s));
+		return sources;
+	}
+
+	@Test
+	public void testDuration() {
+		TestERF[] erfs = buildERFs(sol);
+		update(erfs, "initial");
+		List<ProbEqkSource> origSources = getFaultSources(erfs[0]);
+		for (double duration : new double[] { 30d, 5d, 50d, 1d }) {
+			setDuration(erfs, duration);
+			update(erfs, "Poisson, duration="+duration);
+		}
+		// should have been updated in place
+		assertSameSources(origSources, getFaultSources(erfs[0]));
+
+		setParameter(erfs, ProbabilityModelParam.NAME, ProbabilityModelOptions.U3_BPT);
+		update(erfs, "U3 BPT");
+		setStartYear(erfs, 2014);
+		update(erfs, "U3 BPT");
+		origSources = getFaultSources(erfs[0]);
+		for (double duration : new double[] { 30d, 5d, 50d, 1d }) {
+			setDuration(erfs, duration);
+			update(erfs, "U3 BPT, duration="+duration);
+		}
+		assertSameSources(origSources, getFaultSources(erfs[0]));
+	}
+
+	@Test
+	public void testStartYear() {
+		TestERF[] erfs = buildERFs(sol);
+		setParameter(erfs, ProbabilityModelParam.NAME, ProbabilityModelOptions.U3_PREF_BLEND);
+		update(erfs, "U3 pref blend");
+		setDuration(erfs, 30d);
+		update(erfs, "U3 pref blend, duration=30");
+		List<ProbEqkSource> origSources = getFaultSources(erfs[0]);
+		for (int year : new int[] { 2014, 2050, 2100, 2020 }) {
+			setStartYear(erfs, year);
+			update(erfs, "U3 pref blend, startYear="+year);
+		}
+		assertSameSources(origSources, getFaultSources(erfs[0]));
+
+		// date of last event changes on individual sections
+		FaultSystemRupSet rupSet = sol.getRupSet();
+		for (int sectIndex=0; sectIndex<rupSet.getNumSections(); sectIndex+=5) {
+			long epoch = START_TIME - (sectIndex+10)*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR;
+			for (TestERF erf : erfs)
+				erf.setFltSectOccurranceTime(sectIndex, epoch);
+		}
+		update(erfs, "U3 pref blend, new section dates");
+		int rupIndex = rupSet.getRupturesForSection(1).get(0);
+		for (TestERF erf : erfs)
+			erf.setFltSystemSourceOccurranceTimeForFSSIndex(rupIndex, START_TIME - 3l*(long)ProbabilityModelsCalc.MILLISEC_PER_YEAR);
+		update(erfs, "U3 pref blend, new rupture date");
+		assertSameSources(origSources, getFaultSources(erfs[0]));
+	}
+
+	@Test
+	public void testProbabilityModel() {
+		TestERF[] erfs = buildERFs(sol);
+		update(erfs, "initial");
+		setDuration(erfs, 30d);
+		update(erfs, "duration=30");
+		for (ProbabilityModelOptions probModel : new ProbabilityModelOptions[] { ProbabilityModelOptions.U3_BPT,
+				ProbabilityModelOptions.U3_PREF_BLEND, ProbabilityModelOptions.POISSON, ProbabilityModelOptions.U3_BPT }) {
+			setParameter(erfs, ProbabilityModelParam.NAME, probModel);
+			update(erfs, probModel.name());
+			if (probModel == ProbabilityModelOptions.U3_BPT) {
+				for (MagDependentAperiodicityOptions aper : new MagDependentAperiodicityOptions[] {
+						MagDependentAperiodicityOptions.LOW_VALUES, MagDependentAperiodicityOptions.MID_VALUES }) {
+					setParameter(erfs, MagDependentAperiodicityParam.NAME, aper);
+					update(erfs, probModel.name()+", "+aper.name());
+				}
+			}
+			if (probModel != ProbabilityModelOptions.POISSON) {
+				setParameter(erfs, HistoricOpenIntervalParam.NAME, 150d);
+				update(erfs, probModel.name()+", histOpenInterval=150");
+				setParameter(erfs, HistoricOpenIntervalParam.NAME, 0d);
+				update(erfs, probModel.name()+", histOpenInterval=0");
+			}
+			setParameter(erfs, ApplyGardnerKnopoffAftershockFilterParam.NAME, true);
+			update(erfs, probModel.name()+", aftershock filter");
+			setParameter(erfs, ApplyGardnerKnopoffAftershockFilterParam.NAME, false);
+			update(erfs, probModel.name()+", no aftershock filter");
+		}
+	}
+
+	@Test
+	public void testMFDs() {
+		TestERF[] erfs = buildERFs(solWithMFDs);
+		update(erfs, "initial");
+		List<ProbEqkSource> origSources = getFaultSources(erfs[0]);
+		setDuration(erfs, 30d);
+		update(erfs, "duration=30");
+		assertSameSources(origSources, getFaultSources(erfs[0]));
+		setParameter(erfs, ProbabilityModelParam.NAME, ProbabilityModelOptions.U3_PREF_BLEND);
+		update(erfs, "U3 pref blend");
+		setStartYear(erfs, 2030);
+		update(erfs, "U3 pref blend, startYear=2030");
+
+		// different non-zero bins, sources must be rebuilt with fewer ruptures
+		int prevNumRups = erfs[0].getTotNumRupsFromFaultSystem();
+		for (TestERF erf : erfs)
+			erf.dropFirstMFDBin = true;
+		setDuration(erfs, 50d);
+		update(erfs, "dropped MFD bin");
+		assertTrue(erfs[0].getTotNumRupsFromFaultSystem() < prevNumRups);
+		for (TestERF erf : erfs)
+			erf.dropFirstMFDBin = false;
+		setStartYear(erfs, 2014);
+		update(erfs, "restored MFD bin");
+		assertEquals(prevNumRups, erfs[0].getTotNumRupsFromFaultSystem());
+
+		// aleatory variability changes the magnitudes, must be rebuilt
+		for (double stdDev : new double[] { 0.12, 0d }) {
+			setParameter(erfs, AleatoryMagAreaStdDevParam.NAME, stdDev);
+			update(erfs, "aleatory stdDev="+stdDev);
+			setDuration(erfs, 5d);
+			update(erfs, "aleatory stdDev="+stdDev+", duration=5");
+			setDuration(erfs, 30d);
+			update(erfs, "aleatory stdDev="+stdDev+", duration=30");
+		}
+	}
+
+	private static void assertSameSources(List<ProbEqkSource> expected, List<ProbEqkSource> actual) {
+		assertEquals(expected.size(), actual.size());
+		for (int s=0; s<expected.size(); s++)
+			assertSame("Source "+s+" was rebuilt rather than updated in place", expected.get(s), actual.get(s));
+	}
+
+	private static void assertEquivalent(String message, TestERF expected, TestERF actual) {
+		assertEquals(message, expected.getNumFaultSystemSources(), actual.getNumFaultSystemSources());
+		assertEquals(message, expected.getTotNumRupsFromFaultSystem(), actual.getTotNumRupsFromFaultSystem());
+		assertEquals(message, expected.getTotNumRups(), actual.getTotNumRups());
+		boolean anyNonPoissonProb = false;
+		for (int s=0; s<expected.getNumFaultSystemSources(); s++) {
+			ProbEqkSource expectedSource = expected.getSource(s);
+			ProbEqkSource actualSource = actual.getSource(s);
+			String srcMessage = message+", source "+s;
+			assertEquals(srcMessage, expectedSource.isSourcePoissonian(), actualSource.isSourcePoissonian());
+			assertEquals(srcMessage, expectedSource.getNumRuptures(), actualSource.getNumRuptures());
+			for (int r=0; r<expectedSource.getNumRuptures(); r++) {
+				ProbEqkRupture expectedRup = expectedSource.getRupture(r);
+				ProbEqkRupture actualRup = actualSource.getRupture(r);
+				assertEquals(srcMessage+", rupture "+r, expectedRup.getMag(), actualRup.getMag(), 0d);
+				double prob = expectedRup.getProbability();
+				assertEquals(srcMessage+", rupture "+r, prob, actualRup.getProbability(), 1e-12*prob);
+				anyNonPoissonProb |= !expectedSource.isSourcePoissonian() && prob > 0d;
+			}
+		}
+		if (!expected.isPoisson())
+			assertTrue(message+": no non-zero time-dependent probabilities", anyNonPoissonProb);
+		// nth rupture mappings should be consistent
+		for (int n=0; n<expected.getTotNumRupsFromFaultSystem(); n++) {
+			assertEquals(message, expected.getSrcIndexForNthRup(n), actual.getSrcIndexForNthRup(n));
+			assertEquals(message, expected.getRupIndexInSourceForNthRup(n), actual.getRupIndexInSourceForNthRup(n));
+			assertEquals(message, expected.getFltSysRupIndexForNthRup(n), actual.getFltSysRupIndexForNthRup(n));
+		}
+	}
+
+}
@@ -6,7 +6,9 @@ import org.junit.runners.Suite;
 @RunWith(Suite.class)
 @Suite.SuiteClasses({
 //	FSS_ERF_ParamTest.class, TODO: disabled until #96 is fixed
-	FSS_ERF_PrefBlendTest.class
+	FSS_ERF_PrefBlendTest.class,
+	FSS_ERF_InPlaceUpdateTest.class,
+	FSS_ERF_BatchProbGainTest.class
 })
 
 public class UCERF3_ERF_TestSuite {